@@ -50,6 +50,7 @@ public class FileMgr {
     private int webdavMaxTotalConnections;
     private HttpClientProxy httpClient;
     private StorageClientMgr storageClientMgr;
+    private WebDavFileKeyProxyMapper webdavFileKeyProxyMapper;
     private LocalFileCache<WebdavCachedFileKey> webdavLocalFileCache;
 
     private FileMgr() {
@@ -71,10 +72,11 @@ public class FileMgr {
                 managerParams.setMaxTotalConnections(webdavMaxTotalConnections);
                 httpClient = new HttpClientProxy(new HttpClient(mgr));
                 storageClientMgr = new StorageClientMgr(webdavBaseUrl, httpClient);
+                webdavFileKeyProxyMapper = new WebDavFileKeyProxyMapper(httpClient, storageClientMgr);
                 webdavLocalFileCache = new LocalFileCache<>(
                         LocalCacheMgr.getInstance().getLocalFileCacheStorage(),
                         DEFAULT_FILE_CACHE_CONCURRENCY,
-                        new WebDavFileKeyProxyMapper(httpClient, storageClientMgr),
+                        webdavFileKeyProxyMapper,
                         Executors.newFixedThreadPool(4,
                                 new ThreadFactoryBuilder()
                                         .setNameFormat("CacheEvictor-%d")
@@ -115,6 +117,18 @@ public class FileMgr {
         return webdavLocalFileCache.getCachedFileEntry(new WebdavCachedFileKey(standardPath), forceRefresh);
     }
 
+    /**
+     * Returns a version of the file's content, which changes whenever the
+     * content does, for keying caches derived from the file.
+     *
+     * @param standardPath the standard system path for the file.
+     *
+     * @return the version, or null if the storage cannot provide one
+     */
+    public String getFileVersion(String standardPath) {
+        return webdavFileKeyProxyMapper.getVersionFromKey(new WebdavCachedFileKey(standardPath));
+    }
+
     /**
      * Open an input stream for the specified standard path.
      *
@@ -0,0 +1,227 @@
+package org.janelia.workstation.core.events;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.janelia.model.domain.DomainObject;
+import org.janelia.model.domain.Reference;
+import org.janelia.workstation.core.events.model.DomainObjectChangeEvent;
+import org.janelia.workstation.core.events.model.DomainObjectCreateEvent;
+import org.janelia.workstation.core.events.model.DomainObjectEvent;
+import org.janelia.workstation.core.events.model.DomainObjectEventBatch;
+import org.janelia.workstation.core.events.model.DomainObjectInvalidationEvent;
+import org.janelia.workstation.core.events.model.DomainObjectRemoveEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds domain object events for a short window before delivering them, so that a burst
+ * of events, such as a bulk annotation or the refresh of a large folder, is delivered
+ * without redundant events:
+ * <ul>
+ * <li>Repeated events of the same kind for the same object are delivered once, with the
+ * latest object, at the position of the first. Creation and removal events are only
+ * merged with the event right before them for the same object, so that they stay in order.</li>
+ * <li>Change events for an object which is invalidated later in the window are dropped,
+ * since subscribers reload invalidated objects anyway. Annotation changes are kept.</li>
+ * <li>All invalidations in the window are delivered as one event, after the events which
+ * were posted before the last of them.</li>
+ * </ul>
+ * After the coalesced events, a {@link DomainObjectEventBatch} with all of them is
+ * delivered. Any other event first delivers the pending events, so that the order of
+ * events of different kinds is kept.
+ *
+ * Delivery happens on the posting thread, or on a timer thread when the window ends.
+ * Either way, deliveries never overlap.
+ */
+public class CoalescingEventDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(CoalescingEventDispatcher.class);
+
+    // Stands in for the merged invalidation until the window ends
+    private static final Object INVALIDATION = new Object();
+
+    private final long windowMillis;
+    private final Consumer<Object> delivery;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> scheduledFlush;
+
+    // Pending events by order of arrival
+    private final LinkedHashMap<Long, Object> pending = new LinkedHashMap<>();
+    private final Map<Reference, ObjectSlots> objectSlots = new HashMap<>();
+    private final Map<Reference, DomainObject> invalidatedObjects = new LinkedHashMap<>();
+    private final Set<Reference> changedAfterInvalidation = new HashSet<>();
+    private boolean totalInvalidation;
+    private Long invalidationSlot;
+    private long nextSlot;
+    private int postedCount;
+
+    // Pending events of one object
+    private static class ObjectSlots {
+        private final Map<Class<?>, Long> byClass = new HashMap<>();
+        private Long last;
+    }
+
+    /**
+     * @param windowMillis how long to hold domain object events, or 0 to deliver everything at once
+     * @param delivery called with each event to deliver
+     */
+    public CoalescingEventDispatcher(long windowMillis, Consumer<Object> delivery) {
+        this.windowMillis = windowMillis;
+        this.delivery = delivery;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public synchronized void post(Object event) {
+        if (windowMillis <= 0 || !isCoalesced(event)) {
+            flush();
+            delivery.accept(event);
+            return;
+        }
+        postedCount++;
+        if (event instanceof DomainObjectInvalidationEvent) {
+            addInvalidation((DomainObjectInvalidationEvent) event);
+        }
+        else {
+            addObjectEvent((DomainObjectEvent) event);
+        }
+        if (scheduledFlush == null) {
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "CoalescingEventDispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            scheduledFlush = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Delivers the pending events now.
+     */
+    public synchronized void flush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Object> events = new ArrayList<>(pending.size());
+        for (Object event : pending.values()) {
+            if (event == INVALIDATION) {
+                events.add(totalInvalidation ? new DomainObjectInvalidationEvent()
+                        : new DomainObjectInvalidationEvent(invalidatedObjects.values()));
+            }
+            else {
+                events.add(event);
+            }
+        }
+        log.debug("Delivering {} of {} posted domain object events", events.size(), postedCount);
+        pending.clear();
+        objectSlots.clear();
+        invalidatedObjects.clear();
+        changedAfterInvalidation.clear();
+        totalInvalidation = false;
+        invalidationSlot = null;
+        postedCount = 0;
+
+        for (Object event : events) {
+            delivery.accept(event);
+        }
+        delivery.accept(new DomainObjectEventBatch(events));
+    }
+
+    private static boolean isCoalesced(Object event) {
+        if (event instanceof DomainObjectInvalidationEvent) {
+            return true;
+        }
+        return event instanceof DomainObjectEvent && ((DomainObjectEvent) event).getDomainObject() != null;
+    }
+
+    private void addObjectEvent(DomainObjectEvent event) {
+        Reference ref = Reference.createFor(event.getDomainObject());
+        ObjectSlots slots = objectSlots.computeIfAbsent(ref, k -> new ObjectSlots());
+        Class<?> eventClass = event.getClass();
+        if (event instanceof DomainObjectCreateEvent || event instanceof DomainObjectRemoveEvent) {
+            Object last = slots.last == null ? null : pending.get(slots.last);
+            if (last != null && last.getClass() == eventClass) {
+                pending.put(slots.last, event);
+                return;
+            }
+            // Events before this one may not be merged with events after it
+            slots.byClass.clear();
+        }
+        else {
+            Long slot = slots.byClass.get(eventClass);
+            if (slot != null && pending.containsKey(slot)) {
+                pending.put(slot, event);
+                return;
+            }
+            if (event instanceof DomainObjectChangeEvent
+                    && (totalInvalidation || invalidatedObjects.containsKey(ref))) {
+                // Superseded if the object is invalidated again in this window
+                changedAfterInvalidation.add(ref);
+            }
+        }
+        Long slot = nextSlot++;
+        pending.put(slot, event);
+        slots.byClass.put(eventClass, slot);
+        slots.last = slot;
+    }
+
+    private void addInvalidation(DomainObjectInvalidationEvent event) {
+        if (event.isTotalInvalidation()) {
+            totalInvalidation = true;
+            invalidatedObjects.clear();
+            for (Iterator<Object> i = pending.values().iterator(); i.hasNext(); ) {
+                if (i.next() instanceof DomainObjectChangeEvent) {
+                    i.remove();
+                }
+            }
+        }
+        else if (!totalInvalidation) {
+            for (DomainObject domainObject : event.getDomainObjects()) {
+                Reference ref = Reference.createFor(domainObject);
+                invalidatedObjects.put(ref, domainObject);
+                dropChange(ref);
+            }
+        }
+        for (Reference ref : changedAfterInvalidation) {
+            dropChange(ref);
+        }
+        changedAfterInvalidation.clear();
+
+        // The merged invalidation goes after everything posted so far
+        if (invalidationSlot != null) {
+            pending.remove(invalidationSlot);
+        }
+        invalidationSlot = nextSlot++;
+        pending.put(invalidationSlot, INVALIDATION);
+    }
+
+    private void dropChange(Reference ref) {
+        ObjectSlots slots = objectSlots.get(ref);
+        if (slots != null) {
+            Long slot = slots.byClass.remove(DomainObjectChangeEvent.class);
+            if (slot != null) {
+                pending.remove(slot);
+            }
+        }
+    }
+}
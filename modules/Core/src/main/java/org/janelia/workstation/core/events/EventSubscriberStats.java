@@ -0,0 +1,49 @@
+package org.janelia.workstation.core.events;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time spent on the EDT handling events, for all subscribers of one class.
+ */
+public class EventSubscriberStats {
+
+    private final String subscriberName;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public EventSubscriberStats(String subscriberName) {
+        this.subscriberName = subscriberName;
+    }
+
+    void record(long nanos) {
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public String getSubscriberName() {
+        return subscriberName;
+    }
+
+    /**
+     * @return number of events handled
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d events, %.1f ms total, %.1f ms max", subscriberName,
+                getCount(), getTotalNanos() / 1e6, getMaxNanos() / 1e6);
+    }
+}
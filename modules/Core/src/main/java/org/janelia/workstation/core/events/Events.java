@@ -2,13 +2,28 @@ package org.janelia.workstation.core.events;
 
 import com.google.common.eventbus.AsyncEventBus;
 import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
 import java.awt.EventQueue;
-import java.util.concurrent.Executor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.janelia.workstation.core.util.ConsoleProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Global event bus singleton. 
+ * Global event bus singleton.
+ *
+ * Domain object events are coalesced by a {@link CoalescingEventDispatcher} before they
+ * are delivered. Every subscriber gets its own bus, so that the time it spends on the EDT
+ * handling events can be measured, see {@link #getSubscriberStats()}.
  *
  * @author <a href="mailto:rokickik@janelia.hhmi.org">Konrad Rokicki</a>
  */
@@ -24,26 +39,64 @@ public class Events {
         }
         return instance;
     }
-    
-    private final EventBus eventBus;
-            
-    private Events() {
-        this.eventBus = new AsyncEventBus("awt", new Executor() {
-            @Override
-            public void execute(Runnable cmd) {
-                // TODO: this should queue the command on a queue that is aware of entity invalidation, 
-                // and does not generate other events for an entity if an invalidation is coming. 
-                // This will eliminate the "Instance mismatch" issues that we sometimes have.
-                EventQueue.invokeLater(cmd);
+
+    private static class Registration {
+        private final Object subscriber;
+        private final Set<Class<?>> eventTypes;
+        private final EventBus eventBus;
+
+        private Registration(Object subscriber, Set<Class<?>> eventTypes, EventBus eventBus) {
+            this.subscriber = subscriber;
+            this.eventTypes = eventTypes;
+            this.eventBus = eventBus;
+        }
+
+        private boolean handles(Object event) {
+            for (Class<?> eventType : eventTypes) {
+                if (eventType.isInstance(event)) {
+                    return true;
+                }
             }
-        });
+            return false;
+        }
+    }
+
+    private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, EventSubscriberStats> subscriberStats = new ConcurrentHashMap<>();
+    private final CoalescingEventDispatcher dispatcher;
+    private final long slowSubscriberNanos;
+
+    private Events() {
+        this.dispatcher = new CoalescingEventDispatcher(
+                ConsoleProperties.getLong("console.events.coalesceWindowMillis", 30), this::deliver);
+        this.slowSubscriberNanos = TimeUnit.MILLISECONDS.toNanos(
+                ConsoleProperties.getLong("console.events.slowSubscriberMillis", 100));
     }
-    
+
     public void registerOnEventBus(Object object) {
         log.debug("Registering: {}",object);
         try {
             synchronized (Events.class) {
+                if (findRegistration(object) != null) {
+                    return;
+                }
+                String name = object.getClass().getName();
+                EventSubscriberStats stats = subscriberStats.computeIfAbsent(name, EventSubscriberStats::new);
+                EventBus eventBus = new AsyncEventBus(name, cmd -> EventQueue.invokeLater(() -> {
+                    long start = System.nanoTime();
+                    try {
+                        cmd.run();
+                    }
+                    finally {
+                        long elapsed = System.nanoTime() - start;
+                        stats.record(elapsed);
+                        if (elapsed > slowSubscriberNanos) {
+                            log.warn("{} took {} ms to handle an event", name, TimeUnit.NANOSECONDS.toMillis(elapsed));
+                        }
+                    }
+                }));
                 eventBus.register(object);
+                registrations.add(new Registration(object, getSubscribedEventTypes(object.getClass()), eventBus));
             }
         }
         catch (IllegalArgumentException e) {
@@ -53,30 +106,83 @@ public class Events {
 
     public void unregisterOnEventBus(Object object) {
         log.debug("Unregistering: {}",object);
-        try {
-            synchronized (Events.class) {
-                eventBus.unregister(object);
+        synchronized (Events.class) {
+            Registration registration = findRegistration(object);
+            if (registration == null) {
+                log.warn("Cannot unregister object on event bus: {} is not registered", object);
+                return;
             }
-        }
-        catch (IllegalArgumentException e) {
-            log.warn("Cannot unregister object on event bus: {}",e.getMessage());
+            registrations.remove(registration);
         }
     }
 
     public void postOnEventBus(Object object) {
         try {
             if (log.isTraceEnabled()) {
-                log.trace("Post on event bus from " + 
-                        Thread.currentThread().getClass().getClassLoader() + "/" + 
-                        Thread.currentThread().getContextClassLoader() + " in thread " + 
+                log.trace("Post on event bus from " +
+                        Thread.currentThread().getClass().getClassLoader() + "/" +
+                        Thread.currentThread().getContextClassLoader() + " in thread " +
                         Thread.currentThread());
             }
             synchronized (Events.class) {
-                eventBus.post(object);
+                dispatcher.post(object);
             }
         }
         catch (IllegalArgumentException e) {
             log.warn("Cannot post event on event bus: {}",e.getMessage());
         }
     }
+
+    /**
+     * @return EDT time spent handling events by each class of subscriber, slowest first
+     */
+    public List<EventSubscriberStats> getSubscriberStats() {
+        List<EventSubscriberStats> stats = new ArrayList<>(subscriberStats.values());
+        stats.sort(Comparator.comparingLong(EventSubscriberStats::getTotalNanos).reversed());
+        return stats;
+    }
+
+    private void deliver(Object event) {
+        for (Registration registration : registrations) {
+            if (registration.handles(event)) {
+                registration.eventBus.post(event);
+            }
+        }
+    }
+
+    private Registration findRegistration(Object object) {
+        for (Registration registration : registrations) {
+            if (registration.subscriber == object) {
+                return registration;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the event types of all @Subscribe methods, including inherited ones, so that
+     * events are only posted to the buses which have subscribers for them.
+     */
+    private static Set<Class<?>> getSubscribedEventTypes(Class<?> subscriberClass) {
+        Set<Class<?>> eventTypes = new HashSet<>();
+        Set<Class<?>> visited = new HashSet<>();
+        List<Class<?>> classes = new ArrayList<>();
+        classes.add(subscriberClass);
+        while (!classes.isEmpty()) {
+            Class<?> clazz = classes.remove(classes.size() - 1);
+            if (clazz == null || !visited.add(clazz)) {
+                continue;
+            }
+            for (Method method : clazz.getDeclaredMethods()) {
+                if (method.isAnnotationPresent(Subscribe.class) && method.getParameterCount() == 1) {
+                    eventTypes.add(method.getParameterTypes()[0]);
+                }
+            }
+            classes.add(clazz.getSuperclass());
+            for (Class<?> iface : clazz.getInterfaces()) {
+                classes.add(iface);
+            }
+        }
+        return eventTypes;
+    }
 }
@@ -0,0 +1,29 @@
+package org.janelia.workstation.core.events.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The domain object events posted within one coalescing window, after duplicates and
+ * changes superseded by an invalidation have been dropped. The batch is posted after the
+ * events in it have been posted individually, in the same order.
+ *
+ * Subscribers which can handle a burst of events at once, for example by refreshing a
+ * whole view, should subscribe to this instead of the individual events.
+ */
+public class DomainObjectEventBatch {
+
+    private final List<Object> events;
+
+    public DomainObjectEventBatch(List<Object> events) {
+        this.events = Collections.unmodifiableList(new ArrayList<>(events));
+    }
+
+    /**
+     * @return instances of {@link DomainObjectEvent} and {@link DomainObjectInvalidationEvent}
+     */
+    public List<Object> getEvents() {
+        return events;
+    }
+}
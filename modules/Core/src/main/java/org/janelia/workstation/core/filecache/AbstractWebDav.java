@@ -25,6 +25,8 @@ class AbstractWebDav {
     private String webdavFileKey;
     private boolean isDirectory;
     private Long contentLength;
+    private String etag;
+    private String lastModified;
     private String storageRootDir;
     private String storageBindName;
 
@@ -69,6 +71,16 @@ class AbstractWebDav {
                     }
                 }
 
+                final DavProperty<?> etagProperty = goodResource.get(DavPropertyName.GETETAG);
+                if (etagProperty != null && etagProperty.getValue() != null) {
+                    this.etag = StringUtils.trimToNull(String.valueOf(etagProperty.getValue()));
+                }
+
+                final DavProperty<?> lastModifiedProperty = goodResource.get(DavPropertyName.GETLASTMODIFIED);
+                if (lastModifiedProperty != null && lastModifiedProperty.getValue() != null) {
+                    this.lastModified = StringUtils.trimToNull(String.valueOf(lastModifiedProperty.getValue()));
+                }
+
                 final DavProperty<?> storageRootDirProperty =
                         goodResource.get(DavPropertyName.create("storageRootDir", Namespace.getNamespace("JADE:")));
                 if (storageRootDirProperty != null) {
@@ -125,6 +137,14 @@ class AbstractWebDav {
         }
     }
 
+    /**
+     * @return the entity tag, or failing that the last modified time, which
+     * change whenever the content does; null if the server sent neither
+     */
+    String getVersion() {
+        return etag != null ? etag : lastModified;
+    }
+
     String getStorageRootDir() {
         return storageRootDir;
     }
@@ -140,6 +160,8 @@ class AbstractWebDav {
                 .append("webdavFileKey", webdavFileKey)
                 .append("isDirectory", isDirectory)
                 .append("contentLength", contentLength)
+                .append("etag", etag)
+                .append("lastModified", lastModified)
                 .append("storageRootDir", storageRootDir)
                 .append("storageBindName", storageBindName)
                 .toString();
@@ -157,6 +179,8 @@ class AbstractWebDav {
         DavPropertyNameSet nameSet = new DavPropertyNameSet();
         nameSet.add(DavPropertyName.RESOURCETYPE);
         nameSet.add(DavPropertyName.GETCONTENTLENGTH);
+        nameSet.add(DavPropertyName.GETETAG);
+        nameSet.add(DavPropertyName.GETLASTMODIFIED);
         PROPERTY_NAMES = nameSet;
     }
 }
@@ -1,7 +1,10 @@
 package org.janelia.workstation.core.filecache;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.net.URI;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.HeadMethod;
 import org.janelia.filecacheutils.FileKeyToProxyMapper;
@@ -65,6 +68,43 @@ public class WebDavFileKeyProxyMapper implements FileKeyToProxyMapper<WebdavCach
         }
     }
 
+    /**
+     * Returns a version of the file's content which changes whenever the
+     * content does: the modification time and size of a local file, or the
+     * entity tag or last modified time the server reports.
+     *
+     * @return the version, or null if none is available
+     */
+    public String getVersionFromKey(WebdavCachedFileKey fileKey) {
+        try {
+            switch(fileKey.getRemoteFileScheme()) {
+                case "file":
+                    File file = new File(URI.create(fileKey.getRemoteFileName()));
+                    return file.exists() ? file.lastModified() + "-" + file.length() : null;
+                case "http":
+                    HeadMethod httpHead = new HeadMethod(fileKey.getRemoteFileName());
+                    try {
+                        int responseCode = httpClient.executeMethod(httpHead);
+                        if (responseCode != 200) {
+                            return null;
+                        }
+                        Header version = httpHead.getResponseHeader("ETag");
+                        if (version == null) {
+                            version = httpHead.getResponseHeader("Last-Modified");
+                        }
+                        return version == null ? null : version.getValue();
+                    } finally {
+                        httpHead.releaseConnection();
+                    }
+                default:
+                    return storageClientMgr.findFile(fileKey.getRemoteFileName()).getVersion();
+            }
+        } catch (Exception e) {
+            LOG.debug("No version for {}", fileKey.getRemoteFileName(), e);
+            return null;
+        }
+    }
+
     private FileProxy getWebDavFileProxy(String remoteFileName) throws FileNotFoundException {
         WebDavFile webDavFile;
         try {
@@ -262,6 +262,11 @@ public class ConsoleProperties extends ConfigProperties {
         return ConsoleProperties.getString("console.localCache.rootDirectory", StringUtils.appendIfMissing(consolePrefsDir, "/") + ".jacs-file-cache");
     }
 
+    public static String getThumbnailCacheDir() {
+        String consolePrefsDir = System.getProperty("user.home") + ConsoleProperties.getString("Console.Home.Path");
+        return ConsoleProperties.getString("console.images.thumbnailCache.directory", StringUtils.appendIfMissing(consolePrefsDir, "/") + ".thumbnail-cache");
+    }
+
     public static String getOutOfSyncNeuronDir() {
         String consolePrefsDir = System.getProperty("user.home") + ConsoleProperties.getString("Console.Home.Path");
         return ConsoleProperties.getString("console.localCache.rootDirectory", StringUtils.appendIfMissing(consolePrefsDir, "/") + ".lvv-out-of-sync-neurons");
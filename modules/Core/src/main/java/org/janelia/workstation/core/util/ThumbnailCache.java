@@ -0,0 +1,407 @@
+package org.janelia.workstation.core.util;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A two tier cache of scaled-down images, for icon grids which show the same
+ * thumbnails over and over again. Decoded thumbnails are kept in memory up to a
+ * byte budget, and every thumbnail is also written to a local directory, so that
+ * paging back through results (or restarting the client) does not download and
+ * decode the full size images again.
+ *
+ * Thumbnails are keyed by image path, source version and width. Widths are
+ * rounded up to a few fixed buckets so that small changes in the display size
+ * reuse the same thumbnail. The version should change whenever the source image
+ * does; the disk entries for old versions are never read again and age out of
+ * the disk budget. A source with no version is cached in memory only, since a
+ * disk entry could outlive a change to the image.
+ *
+ * On a miss, formats that ImageIO can read are decoded with source subsampling,
+ * so that the full size raster is never allocated. Other formats are decoded by
+ * the given {@link ImageSource} and scaled afterwards.
+ */
+public class ThumbnailCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailCache.class);
+
+    private static final int[] WIDTH_BUCKETS = { 64, 128, 192, 256, 384, 512, 768, 1024 };
+    private static final String DISK_FORMAT = "png";
+    private static final String DISK_SUFFIX = "." + DISK_FORMAT;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Where the full size image comes from, on a cache miss.
+     */
+    public interface ImageSource {
+
+        InputStream openStream() throws Exception;
+
+        /**
+         * Decodes the full image, for formats which ImageIO cannot read.
+         */
+        BufferedImage decode(InputStream stream) throws Exception;
+    }
+
+    private final File diskDir;
+    private final long diskBudgetBytes;
+    private final Cache<String, BufferedImage> memoryCache;
+
+    // Disk entries by file name, least recently used first
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(256, 0.75f, true);
+    private long diskBytes = 0;
+    private boolean diskScanned = false;
+    private boolean diskUsable = false;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param diskDir directory for the disk tier, or null to keep thumbnails in memory only
+     * @param memoryBudgetBytes approximate size of the decoded thumbnails held in memory
+     * @param diskBudgetBytes total size of the files in the disk tier
+     */
+    public ThumbnailCache(File diskDir, long memoryBudgetBytes, long diskBudgetBytes) {
+        this.diskDir = diskDir;
+        this.diskBudgetBytes = diskBudgetBytes;
+        this.memoryCache = CacheBuilder.newBuilder()
+                .concurrencyLevel(16)
+                .maximumWeight(memoryBudgetBytes)
+                .weigher((String key, BufferedImage image) -> getImageBytes(image))
+                .build();
+    }
+
+    /**
+     * Returns the thumbnail width used for the given display width: the smallest bucket at
+     * least as wide, or the display width itself if it is wider than every bucket.
+     */
+    public static int getThumbnailWidth(int displayWidth) {
+        for (int bucket : WIDTH_BUCKETS) {
+            if (bucket >= displayWidth) {
+                return bucket;
+            }
+        }
+        return displayWidth;
+    }
+
+    /**
+     * Returns the cached thumbnail, from memory or disk, without touching the source.
+     * @param version of the source image, or null if it has none
+     * @return the thumbnail, or null if it is not cached
+     */
+    public BufferedImage getIfPresent(String path, String version, int displayWidth) {
+        String key = getKey(path, version, getThumbnailWidth(displayWidth));
+        BufferedImage image = memoryCache.getIfPresent(key);
+        if (image != null) {
+            memoryHits.incrementAndGet();
+            return image;
+        }
+        if (version == null) {
+            return null;
+        }
+        image = readFromDisk(key);
+        if (image != null) {
+            diskHits.incrementAndGet();
+            memoryCache.put(key, image);
+        }
+        return image;
+    }
+
+    /**
+     * Returns a thumbnail at least as wide as the display width, unless the source image is
+     * narrower, in which case it is returned at its own size. Concurrent requests for the same
+     * thumbnail share a single load.
+     * @param version of the source image, or null if it has none
+     */
+    public BufferedImage get(String path, String version, int displayWidth, ImageSource source) throws Exception {
+        int width = getThumbnailWidth(displayWidth);
+        String key = getKey(path, version, width);
+        BufferedImage cached = memoryCache.getIfPresent(key);
+        if (cached != null) {
+            memoryHits.incrementAndGet();
+            return cached;
+        }
+        try {
+            return memoryCache.get(key, () -> {
+                BufferedImage image = version == null ? null : readFromDisk(key);
+                if (image != null) {
+                    diskHits.incrementAndGet();
+                    return image;
+                }
+                misses.incrementAndGet();
+                image = loadThumbnail(path, width, source);
+                if (version != null) {
+                    writeToDisk(key, image);
+                }
+                return image;
+            });
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public void invalidateAll() {
+        memoryCache.invalidateAll();
+    }
+
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (BufferedImage image : memoryCache.asMap().values()) {
+            bytes += getImageBytes(image);
+        }
+        return bytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        scanDisk();
+        return diskBytes;
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static String getKey(String path, String version, int width) {
+        return Hashing.sha1().newHasher()
+                .putString(path, StandardCharsets.UTF_8)
+                .putChar('\0')
+                .putBoolean(version != null)
+                .putString(version == null ? "" : version, StandardCharsets.UTF_8)
+                .putChar('\0')
+                .putInt(width)
+                .hash().toString();
+    }
+
+    private static int getImageBytes(BufferedImage image) {
+        return image.getWidth() * image.getHeight() * 4;
+    }
+
+    private static BufferedImage loadThumbnail(String path, int width, ImageSource source) throws Exception {
+        ImageReader reader = getImageReader(path);
+        BufferedImage image;
+        try (InputStream stream = source.openStream()) {
+            if (reader != null) {
+                image = readSubsampled(reader, stream, width);
+            }
+            else {
+                image = source.decode(stream);
+            }
+        }
+        if (image == null) {
+            throw new IOException("Could not decode " + path);
+        }
+        if (image.getWidth() > width) {
+            image = scaleToWidth(image, width);
+        }
+        return image;
+    }
+
+    private static ImageReader getImageReader(String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReadersBySuffix(path.substring(dot + 1).toLowerCase());
+        return readers.hasNext() ? readers.next() : null;
+    }
+
+    /**
+     * Decodes only every n-th pixel in each direction, where n is the largest factor which still
+     * leaves the image at least as wide as the given width.
+     */
+    static BufferedImage readSubsampled(ImageReader reader, InputStream stream, int width) throws IOException {
+        try (ImageInputStream imageStream = ImageIO.createImageInputStream(stream)) {
+            reader.setInput(imageStream, true, true);
+            int sourceWidth = reader.getWidth(0);
+            ImageReadParam param = reader.getDefaultReadParam();
+            int subsampling = sourceWidth / width;
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            return reader.read(0, param);
+        }
+        finally {
+            reader.dispose();
+        }
+    }
+
+    static BufferedImage scaleToWidth(BufferedImage source, int width) {
+        int height = Math.max(1, (int) Math.round((double) width * source.getHeight() / source.getWidth()));
+        int type = source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = new BufferedImage(width, height, type);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(source, 0, 0, width, height, null);
+        }
+        finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    private BufferedImage readFromDisk(String key) {
+        if (diskDir == null) {
+            return null;
+        }
+        String name = key + DISK_SUFFIX;
+        synchronized (this) {
+            scanDisk();
+            if (!diskUsable || diskEntries.get(name) == null) {
+                return null;
+            }
+        }
+        File file = new File(diskDir, name);
+        try {
+            BufferedImage image = ImageIO.read(file);
+            if (image != null) {
+                if (!file.setLastModified(System.currentTimeMillis())) {
+                    log.trace("Could not touch {}", file);
+                }
+                return image;
+            }
+        }
+        catch (IOException e) {
+            log.warn("Could not read cached thumbnail {}", file, e);
+        }
+        synchronized (this) {
+            removeDiskEntry(name);
+        }
+        return null;
+    }
+
+    private void writeToDisk(String key, BufferedImage image) {
+        if (diskDir == null) {
+            return;
+        }
+        synchronized (this) {
+            scanDisk();
+            if (!diskUsable) {
+                return;
+            }
+        }
+        String name = key + DISK_SUFFIX;
+        File file = new File(diskDir, name);
+        try {
+            // Write to a temporary file first, so that readers never see a partial thumbnail
+            File temp = File.createTempFile(key, TEMP_SUFFIX, diskDir);
+            try {
+                if (!ImageIO.write(image, DISK_FORMAT, temp)) {
+                    log.warn("No writer for cached thumbnail {}", file);
+                    return;
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+        }
+        catch (IOException e) {
+            log.warn("Could not write cached thumbnail {}", file, e);
+            return;
+        }
+        synchronized (this) {
+            Long previous = diskEntries.put(name, file.length());
+            diskBytes += file.length() - (previous == null ? 0 : previous);
+            trimDisk();
+        }
+    }
+
+    // Called with the lock held, before the first read or write
+    private void scanDisk() {
+        if (diskScanned || diskDir == null) {
+            return;
+        }
+        diskScanned = true;
+        if (!diskDir.isDirectory() && !diskDir.mkdirs()) {
+            log.warn("Could not create thumbnail cache directory {}", diskDir);
+            return;
+        }
+        File[] files = diskDir.listFiles();
+        if (files == null) {
+            log.warn("Could not list thumbnail cache directory {}", diskDir);
+            return;
+        }
+        diskUsable = true;
+        List<File> thumbnails = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(DISK_SUFFIX)) {
+                thumbnails.add(file);
+            }
+            else if (file.getName().endsWith(TEMP_SUFFIX) && !file.delete()) {
+                // Left behind by an interrupted write; anything else is not ours
+                log.trace("Could not delete {}", file);
+            }
+        }
+        // Restore the LRU order from the last access times
+        thumbnails.sort((f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+        for (File file : thumbnails) {
+            diskEntries.put(file.getName(), file.length());
+            diskBytes += file.length();
+        }
+        log.debug("Found {} cached thumbnails ({} bytes) in {}", diskEntries.size(), diskBytes, diskDir);
+        trimDisk();
+    }
+
+    // Called with the lock held
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> iterator = diskEntries.entrySet().iterator();
+        while (diskBytes > diskBudgetBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            diskBytes -= entry.getValue();
+            File file = new File(diskDir, entry.getKey());
+            if (!file.delete()) {
+                log.trace("Could not delete {}", file);
+            }
+        }
+    }
+
+    // Called with the lock held
+    private void removeDiskEntry(String name) {
+        Long size = diskEntries.remove(name);
+        if (size != null) {
+            diskBytes -= size;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package org.janelia.workstation.core.events;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.janelia.model.domain.DomainObject;
+import org.janelia.model.domain.sample.Sample;
+import org.janelia.model.domain.workspace.TreeNode;
+import org.janelia.workstation.core.events.model.DomainObjectAnnotationChangeEvent;
+import org.janelia.workstation.core.events.model.DomainObjectChangeEvent;
+import org.janelia.workstation.core.events.model.DomainObjectCreateEvent;
+import org.janelia.workstation.core.events.model.DomainObjectEvent;
+import org.janelia.workstation.core.events.model.DomainObjectEventBatch;
+import org.janelia.workstation.core.events.model.DomainObjectInvalidationEvent;
+import org.janelia.workstation.core.events.model.DomainObjectRemoveEvent;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests the {@link CoalescingEventDispatcher} class by replaying event storms, written
+ * one event per line as "&lt;kind&gt; &lt;objects&gt;", where each object is "sample:&lt;id&gt;"
+ * or "node:&lt;id&gt;".
+ */
+public class CoalescingEventDispatcherTest {
+
+    // Long enough that only explicit flushes deliver
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    // Not a domain object event, like a selection
+    private static class OtherEvent {
+        @Override
+        public String toString() {
+            return "other";
+        }
+    }
+
+    private static class Replay {
+        final List<Object> delivered = Collections.synchronizedList(new ArrayList<>());
+        final CoalescingEventDispatcher dispatcher;
+        // Each event carries a new instance, named after the line which posted it
+        int line;
+
+        Replay(long windowMillis) {
+            dispatcher = new CoalescingEventDispatcher(windowMillis, delivered::add);
+        }
+
+        DomainObject object(String spec) {
+            String[] parts = spec.split(":");
+            DomainObject object = parts[0].equals("node") ? new TreeNode() : new Sample();
+            object.setId(Long.valueOf(parts[1]));
+            object.setName("line" + line);
+            return object;
+        }
+
+        Replay play(String... storm) {
+            for (String event : storm) {
+                line++;
+                String[] parts = event.split(" ");
+                List<DomainObject> objects = new ArrayList<>();
+                for (int i = 1; i < parts.length; i++) {
+                    objects.add(object(parts[i]));
+                }
+                switch (parts[0]) {
+                    case "create":
+                        dispatcher.post(new DomainObjectCreateEvent(objects.get(0)));
+                        break;
+                    case "change":
+                        dispatcher.post(new DomainObjectChangeEvent(objects.get(0)));
+                        break;
+                    case "annotate":
+                        dispatcher.post(new DomainObjectAnnotationChangeEvent(objects.get(0)));
+                        break;
+                    case "remove":
+                        dispatcher.post(new DomainObjectRemoveEvent(objects.get(0)));
+                        break;
+                    case "invalidate":
+                        dispatcher.post(new DomainObjectInvalidationEvent(objects));
+                        break;
+                    case "invalidate-all":
+                        dispatcher.post(new DomainObjectInvalidationEvent());
+                        break;
+                    case "other":
+                        dispatcher.post(new OtherEvent());
+                        break;
+                    default:
+                        throw new IllegalArgumentException(event);
+                }
+            }
+            return this;
+        }
+
+        List<String> flush() {
+            dispatcher.flush();
+            return describe(delivered);
+        }
+    }
+
+    private static String describe(DomainObject object) {
+        return (object instanceof TreeNode ? "node:" : "sample:") + object.getId();
+    }
+
+    // Describes events in the replay format, with a batch as "batch(<count>)"
+    private static List<String> describe(List<Object> events) {
+        List<String> descriptions = new ArrayList<>();
+        for (Object event : events) {
+            if (event instanceof DomainObjectInvalidationEvent) {
+                DomainObjectInvalidationEvent invalidation = (DomainObjectInvalidationEvent) event;
+                if (invalidation.isTotalInvalidation()) {
+                    descriptions.add("invalidate-all");
+                }
+                else {
+                    StringBuilder description = new StringBuilder("invalidate");
+                    for (DomainObject object : invalidation.getDomainObjects()) {
+                        description.append(' ').append(describe(object));
+                    }
+                    descriptions.add(description.toString());
+                }
+            }
+            else if (event instanceof DomainObjectEvent) {
+                String kind = event instanceof DomainObjectCreateEvent ? "create"
+                        : event instanceof DomainObjectChangeEvent ? "change"
+                        : event instanceof DomainObjectAnnotationChangeEvent ? "annotate" : "remove";
+                descriptions.add(kind + " " + describe(((DomainObjectEvent) event).getDomainObject()));
+            }
+            else if (event instanceof DomainObjectEventBatch) {
+                descriptions.add("batch(" + ((DomainObjectEventBatch) event).getEvents().size() + ")");
+            }
+            else {
+                descriptions.add(event.toString());
+            }
+        }
+        return descriptions;
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testBulkAnnotationStorm() throws Exception {
+        // Annotating many objects: each gets an annotation change, and a change event
+        // from the annotation update and from the reload of the object
+        List<String> storm = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int id = 1; id <= 300; id++) {
+            storm.add("annotate sample:" + id);
+            storm.add("change sample:" + id);
+            storm.add("change sample:" + id);
+            expected.add("annotate sample:" + id);
+            expected.add("change sample:" + id);
+        }
+        expected.add("batch(600)");
+        Replay replay = new Replay(NEVER).play(storm.toArray(new String[0]));
+        assertTrue(replay.delivered.isEmpty());
+        assertEquals(expected, replay.flush());
+
+        // The latest instance of each object is delivered
+        DomainObjectChangeEvent change = (DomainObjectChangeEvent) replay.delivered.get(1);
+        assertEquals("line3", change.getDomainObject().getName());
+        DomainObjectEventBatch batch = (DomainObjectEventBatch) replay.delivered.get(600);
+        assertEquals(replay.delivered.subList(0, 600), batch.getEvents());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testFolderRefreshStorm() throws Exception {
+        // Refreshing a folder: its children change, some more than once, then the
+        // folder and its children are invalidated, and one child is saved again
+        List<String> storm = new ArrayList<>();
+        storm.add("change node:1");
+        StringBuilder invalidation = new StringBuilder("invalidate node:1");
+        for (int id = 100; id < 300; id++) {
+            storm.add("change sample:" + id);
+            if (id % 3 == 0) {
+                storm.add("change sample:" + id);
+            }
+            invalidation.append(" sample:").append(id);
+        }
+        storm.add(invalidation.toString());
+        storm.add("change sample:150");
+        Replay replay = new Replay(NEVER).play(storm.toArray(new String[0]));
+        assertEquals(Arrays.asList(invalidation.toString(), "change sample:150", "batch(2)"), replay.flush());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testInvalidationsAreMerged() throws Exception {
+        Replay replay = new Replay(NEVER).play(
+                "invalidate sample:1",
+                "change sample:2",
+                "annotate sample:2",
+                "invalidate sample:2",
+                "change sample:1",
+                "change sample:3");
+        // Change of 1 came after it was invalidated, but before the last invalidation
+        replay.play("invalidate sample:4");
+        assertEquals(Arrays.asList(
+                "annotate sample:2",
+                "change sample:3",
+                "invalidate sample:1 sample:2 sample:4",
+                "batch(3)"), replay.flush());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testTotalInvalidation() throws Exception {
+        Replay replay = new Replay(NEVER).play(
+                "change sample:1",
+                "annotate sample:1",
+                "create node:2",
+                "invalidate-all",
+                "change sample:1",
+                "invalidate sample:3",
+                "change node:2");
+        assertEquals(Arrays.asList(
+                "annotate sample:1",
+                "create node:2",
+                "invalidate-all",
+                "change node:2",
+                "batch(4)"), replay.flush());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testCreateAndRemoveStayInOrder() throws Exception {
+        Replay replay = new Replay(NEVER).play(
+                "create node:1",
+                "create node:1",
+                "change node:1",
+                "remove node:1",
+                "change node:1",
+                "create node:1",
+                "change node:1");
+        assertEquals(Arrays.asList(
+                "create node:1",
+                "change node:1",
+                "remove node:1",
+                "change node:1",
+                "create node:1",
+                "change node:1",
+                "batch(6)"), replay.flush());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testOtherEventsDeliverPendingFirst() throws Exception {
+        Replay replay = new Replay(NEVER).play(
+                "change sample:1",
+                "change sample:1",
+                "other",
+                "change sample:1");
+        assertEquals(Arrays.asList("change sample:1", "batch(1)", "other"), describe(replay.delivered));
+        assertEquals(Arrays.asList("change sample:1", "batch(1)", "other", "change sample:1", "batch(1)"),
+                replay.flush());
+        // Nothing more to deliver
+        assertEquals(5, replay.flush().size());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testNoWindowDeliversAtOnce() throws Exception {
+        Replay replay = new Replay(0).play(
+                "change sample:1",
+                "change sample:1",
+                "invalidate sample:1");
+        assertEquals(Arrays.asList("change sample:1", "change sample:1", "invalidate sample:1"),
+                describe(replay.delivered));
+    }
+
+    @Test(timeout = 10000)
+    @Category(TestCategories.FastTests.class)
+    public void testWindowEndDelivers() throws Exception {
+        CountDownLatch delivered = new CountDownLatch(1);
+        Map<String, Thread> threads = new HashMap<>();
+        List<Object> events = Collections.synchronizedList(new ArrayList<>());
+        CoalescingEventDispatcher dispatcher = new CoalescingEventDispatcher(50, event -> {
+            events.add(event);
+            if (event instanceof DomainObjectEventBatch) {
+                threads.put("batch", Thread.currentThread());
+                delivered.countDown();
+            }
+        });
+        Sample sample = new Sample();
+        sample.setId(1L);
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            dispatcher.post(new DomainObjectChangeEvent(sample));
+        }
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertNotSame(Thread.currentThread(), threads.get("batch"));
+        assertEquals(Arrays.asList("change sample:1", "batch(1)"), describe(events));
+    }
+}
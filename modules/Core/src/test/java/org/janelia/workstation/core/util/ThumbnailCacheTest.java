@@ -0,0 +1,275 @@
+package org.janelia.workstation.core.util;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests the {@link ThumbnailCache} class.
+ */
+public class ThumbnailCacheTest {
+
+    private static final long MB = 1024L * 1024L;
+
+    private Path diskDir;
+
+    // Serves an encoded image, counting how often it is opened and fully decoded
+    private static class CountingSource implements ThumbnailCache.ImageSource {
+        final byte[] bytes;
+        final AtomicInteger opens = new AtomicInteger();
+        final AtomicInteger decodes = new AtomicInteger();
+
+        CountingSource(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public InputStream openStream() {
+            opens.incrementAndGet();
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public BufferedImage decode(InputStream stream) throws IOException {
+            decodes.incrementAndGet();
+            return ImageIO.read(stream);
+        }
+    }
+
+    private static BufferedImage createImage(int width, int height, int seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(seed * 53 & 0xff, seed * 97 & 0xff, seed * 31 & 0xff));
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.white);
+        for (int x = seed % 17; x < width; x += 23) {
+            g.drawLine(x, 0, width - x, height);
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, format, out));
+        return out.toByteArray();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        diskDir = Files.createTempDirectory("thumbnails");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(diskDir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testThumbnailWidthBuckets() {
+        assertEquals(64, ThumbnailCache.getThumbnailWidth(10));
+        assertEquals(128, ThumbnailCache.getThumbnailWidth(100));
+        assertEquals(384, ThumbnailCache.getThumbnailWidth(300));
+        assertEquals(384, ThumbnailCache.getThumbnailWidth(384));
+        assertEquals(1024, ThumbnailCache.getThumbnailWidth(1000));
+        assertEquals(1500, ThumbnailCache.getThumbnailWidth(1500));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testMemoryThenDiskHits() throws Exception {
+        CountingSource source = new CountingSource(encode(createImage(1600, 1200, 1), "png"));
+        ThumbnailCache cache = new ThumbnailCache(diskDir.toFile(), 64 * MB, 64 * MB);
+        BufferedImage thumbnail = cache.get("/data/a.png", "1", 300, source);
+        assertEquals(384, thumbnail.getWidth());
+        assertEquals(288, thumbnail.getHeight());
+        assertEquals(1, cache.getMisses());
+        assertSame(thumbnail, cache.get("/data/a.png", "1", 310, source));
+        assertEquals(1, cache.getMemoryHits());
+        assertEquals(1, source.opens.get());
+        assertEquals(0, source.decodes.get());
+        assertTrue(cache.getDiskBytes() > 0);
+
+        // A new cache over the same directory finds the thumbnail on disk
+        ThumbnailCache restarted = new ThumbnailCache(diskDir.toFile(), 64 * MB, 64 * MB);
+        BufferedImage fromDisk = restarted.getIfPresent("/data/a.png", "1", 300);
+        assertNotNull(fromDisk);
+        assertEquals(384, fromDisk.getWidth());
+        assertEquals(thumbnail.getRGB(100, 100), fromDisk.getRGB(100, 100));
+        assertEquals(1, restarted.getDiskHits());
+        assertEquals(1, source.opens.get());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testNewVersionIsReloaded() throws Exception {
+        CountingSource source = new CountingSource(encode(createImage(800, 600, 2), "jpg"));
+        ThumbnailCache cache = new ThumbnailCache(diskDir.toFile(), 64 * MB, 64 * MB);
+        cache.get("/data/b.jpg", "100", 128, source);
+        assertNull(cache.getIfPresent("/data/b.jpg", "101", 128));
+        cache.get("/data/b.jpg", "101", 128, source);
+        assertEquals(2, source.opens.get());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testUnversionedSourceStaysInMemory() throws Exception {
+        CountingSource source = new CountingSource(encode(createImage(800, 600, 5), "png"));
+        ThumbnailCache cache = new ThumbnailCache(diskDir.toFile(), 64 * MB, 64 * MB);
+        BufferedImage thumbnail = cache.get("/data/e.png", null, 128, source);
+        assertSame(thumbnail, cache.getIfPresent("/data/e.png", null, 128));
+        assertEquals(0, cache.getDiskBytes());
+        // not the entry of an empty version string, either
+        assertNull(cache.getIfPresent("/data/e.png", "", 128));
+
+        ThumbnailCache restarted = new ThumbnailCache(diskDir.toFile(), 64 * MB, 64 * MB);
+        assertNull(restarted.getIfPresent("/data/e.png", null, 128));
+        restarted.get("/data/e.png", null, 128, source);
+        assertEquals(2, source.opens.get());
+        assertEquals(0, restarted.getDiskHits());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testScanDeletesOnlyInterruptedWrites() throws Exception {
+        File interrupted = diskDir.resolve("key123.tmp").toFile();
+        File foreign = diskDir.resolve("notes.txt").toFile();
+        Files.write(interrupted.toPath(), new byte[10]);
+        Files.write(foreign.toPath(), new byte[10]);
+        ThumbnailCache cache = new ThumbnailCache(diskDir.toFile(), 64 * MB, 64 * MB);
+        assertEquals(0, cache.getDiskBytes());
+        assertFalse(interrupted.exists());
+        assertTrue(foreign.exists());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testSmallImagesAreNotEnlarged() throws Exception {
+        CountingSource source = new CountingSource(encode(createImage(90, 30, 3), "png"));
+        ThumbnailCache cache = new ThumbnailCache(diskDir.toFile(), 64 * MB, 64 * MB);
+        BufferedImage thumbnail = cache.get("/data/c.png", "1", 500, source);
+        assertEquals(90, thumbnail.getWidth());
+        assertEquals(30, thumbnail.getHeight());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testUnknownFormatUsesSourceDecoder() throws Exception {
+        CountingSource source = new CountingSource(encode(createImage(1000, 500, 4), "png"));
+        ThumbnailCache cache = new ThumbnailCache(diskDir.toFile(), 64 * MB, 64 * MB);
+        BufferedImage thumbnail = cache.get("/data/d.unknown", "1", 200, source);
+        assertEquals(1, source.decodes.get());
+        assertEquals(256, thumbnail.getWidth());
+        assertEquals(128, thumbnail.getHeight());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testSubsampledDecode() throws Exception {
+        byte[] bytes = encode(createImage(1000, 400, 5), "png");
+        BufferedImage image = ThumbnailCache.readSubsampled(
+                ImageIO.getImageReadersBySuffix("png").next(), new ByteArrayInputStream(bytes), 300);
+        // Every third pixel keeps the image at least 300 wide
+        assertEquals(334, image.getWidth());
+        assertEquals(134, image.getHeight());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testBudgets() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(diskDir.toFile(), 1 * MB, 200 * 1024);
+        for (int i = 0; i < 20; ++i) {
+            CountingSource source = new CountingSource(encode(createImage(1024, 1024, i), "png"));
+            cache.get("/data/" + i + ".png", "1", 512, source);
+        }
+        // Each thumbnail takes 1 MB decoded
+        assertTrue(cache.getMemoryBytes() <= 1 * MB);
+        assertTrue(cache.getDiskBytes() <= 200 * 1024);
+        long bytesOnDisk = 0;
+        File[] files = diskDir.toFile().listFiles();
+        for (File file : files) {
+            bytesOnDisk += file.length();
+        }
+        assertEquals(cache.getDiskBytes(), bytesOnDisk);
+        // The most recent thumbnail is still on disk
+        assertNotNull(new ThumbnailCache(diskDir.toFile(), 1 * MB, 200 * 1024).getIfPresent("/data/19.png", "1", 512));
+    }
+
+    /**
+     * Simulates paging through an icon grid of camera-sized JPEGs and back again, comparing the
+     * previous full decode and rescale of every image against the thumbnail cache.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkPageScroll() throws Exception {
+        int pages = 5;
+        int imagesPerPage = 24;
+        int displayWidth = 300;
+        List<byte[]> images = new ArrayList<>();
+        for (int i = 0; i < pages * imagesPerPage; ++i) {
+            images.add(encode(createImage(2048, 1536, i), "jpg"));
+        }
+
+        double[] baseline = new double[pages];
+        for (int page = 0; page < pages; ++page) {
+            long t0 = System.nanoTime();
+            for (int i = page * imagesPerPage; i < (page + 1) * imagesPerPage; ++i) {
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(images.get(i)));
+                ThumbnailCache.scaleToWidth(image, displayWidth);
+            }
+            baseline[page] = (System.nanoTime() - t0) / 1e6;
+        }
+
+        ThumbnailCache cache = new ThumbnailCache(diskDir.toFile(), 64 * MB, 512 * MB);
+        double[] cold = scrollPages(cache, images, pages, imagesPerPage, displayWidth);
+        double[] warmMemory = scrollPages(cache, images, pages, imagesPerPage, displayWidth);
+        ThumbnailCache restarted = new ThumbnailCache(diskDir.toFile(), 64 * MB, 512 * MB);
+        double[] warmDisk = scrollPages(restarted, images, pages, imagesPerPage, displayWidth);
+
+        System.out.println(String.format("Page latency for %d images of 2048x1536 at width %d", imagesPerPage, displayWidth));
+        for (int page = 0; page < pages; ++page) {
+            System.out.println(String.format("page %d: full decode %.1f ms; thumbnail cold %.1f ms, disk %.1f ms, memory %.1f ms",
+                    page, baseline[page], cold[page], warmDisk[page], warmMemory[page]));
+        }
+    }
+
+    private static double[] scrollPages(ThumbnailCache cache, List<byte[]> images, int pages, int imagesPerPage,
+            int displayWidth) throws Exception {
+        double[] millis = new double[pages];
+        for (int page = 0; page < pages; ++page) {
+            long t0 = System.nanoTime();
+            for (int i = page * imagesPerPage; i < (page + 1) * imagesPerPage; ++i) {
+                BufferedImage thumbnail = cache.get("/data/" + i + ".jpg", "1", displayWidth, new CountingSource(images.get(i)));
+                ThumbnailCache.scaleToWidth(thumbnail, displayWidth);
+            }
+            millis[page] = (System.nanoTime() - t0) / 1e6;
+        }
+        return millis;
+    }
+}
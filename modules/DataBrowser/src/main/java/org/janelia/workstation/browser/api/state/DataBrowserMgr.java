@@ -1,5 +1,6 @@
 package org.janelia.workstation.browser.api.state;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -12,7 +13,9 @@ import org.janelia.workstation.browser.gui.components.DomainListViewTopComponent
 import org.janelia.workstation.core.events.Events;
 import org.janelia.workstation.core.events.lifecycle.ApplicationClosing;
 import org.janelia.workstation.core.model.RecentFolder;
+import org.janelia.workstation.core.util.ConsoleProperties;
 import org.janelia.workstation.core.util.ImageCache;
+import org.janelia.workstation.core.util.ThumbnailCache;
 import org.janelia.workstation.integration.util.FrameworkAccess;
 import org.openide.windows.TopComponent;
 import org.slf4j.Logger;
@@ -33,6 +36,8 @@ public class DataBrowserMgr {
     public static final String ADD_TO_RESULTSET_HISTORY = "ADD_TO_RESULTSET_HISTORY";
     public static final int MAX_ADD_TO_ROOT_HISTORY = 5;
     private static final String AUTO_SHARE_TEMPLATE = "Browser.AutoShareTemplate";
+    private static final String THUMBNAIL_MEMORY_BYTES_PROPERTY = "console.images.thumbnailCache.memoryBytes";
+    private static final String THUMBNAIL_DISK_BYTES_PROPERTY = "console.images.thumbnailCache.diskBytes";
 
     // Singleton
     private static DataBrowserMgr instance;
@@ -46,6 +51,10 @@ public class DataBrowserMgr {
 
     private final Map<TopComponent,NavigationHistory> navigationHistoryMap = new HashMap<>();
     private final ImageCache imageCache = new ImageCache();
+    private final ThumbnailCache thumbnailCache = new ThumbnailCache(
+            new File(ConsoleProperties.getThumbnailCacheDir()),
+            ConsoleProperties.getLong(THUMBNAIL_MEMORY_BYTES_PROPERTY, 128 * 1024 * 1024),
+            ConsoleProperties.getLong(THUMBNAIL_DISK_BYTES_PROPERTY, 512 * 1024 * 1024));
     private PermissionTemplate autoShareTemplate;
 
 
@@ -57,6 +66,10 @@ public class DataBrowserMgr {
         return imageCache;
     }
 
+    public ThumbnailCache getThumbnailCache() {
+        return thumbnailCache;
+    }
+
     public NavigationHistory getNavigationHistory(DomainListViewTopComponent topComponent) {
         if (topComponent==null) return null;
         NavigationHistory navigationHistory = navigationHistoryMap.get(topComponent);
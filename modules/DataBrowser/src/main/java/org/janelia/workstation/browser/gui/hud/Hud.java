@@ -263,6 +263,9 @@ public class Hud extends ModalDialog {
     
     public void hideDialog() {
         log.debug("hideDialog");
+        if (hud3DController != null && hud3DController.cancelLoad()) {
+            dirtyEntityFor3D = true;
+        }
         setVisible(false);
     }
     
@@ -454,6 +457,9 @@ public class Hud extends ModalDialog {
                 protected void hadSuccess() {
                     if (image != null) {
                         previewLabel.setIcon(new ImageIcon(image));
+                        if (hud3DController != null) {
+                            hud3DController.cancelLoad();
+                        }
                         dirtyEntityFor3D = true;
                         if (render3DCheckbox != null) {
                             render3DCheckbox.setSelected(false);
@@ -48,6 +48,7 @@ public class Hud3DController implements ActionListener {
 
     /** Hook for re-loading. */
     public void load3d() {
+        cancelLoad();
         load3dSwingWorker = new Load3dSwingWorker( mip3d, hud.getFast3dFile() ) {
             public void filenameSufficient() {
                 Hud3DController.this.restoreMip3dToUi();
@@ -59,13 +60,31 @@ public class Hud3DController implements ActionListener {
         load3dSwingWorker.execute();
     }
 
-    /** Hook for seeing the reload-result. */
+    /**
+     * Stops a load still in progress.
+     *
+     * @return true if a load was stopped, leaving the 3D view without the current entity.
+     */
+    public boolean cancelLoad() {
+        return load3dSwingWorker != null && load3dSwingWorker.cancelLoad();
+    }
+
+    /**
+     * Hook for seeing the reload-result.  Does not wait for a load in progress, which is taken
+     * as current unless it is cancelled.
+     */
     public Boolean isDirty() throws Exception {
-        if ( load3dSwingWorker != null ) {
+        if ( load3dSwingWorker == null ) {
+            // Will return false, indicating not-dirty.
+            return false;
+        }
+        else if ( load3dSwingWorker.isCancelled() ) {
+            return true;
+        }
+        else if ( load3dSwingWorker.isDone() ) {
             return load3dSwingWorker.get();
         }
         else {
-            // Will return false, indicating not-dirty.
             return false;
         }
     }
@@ -8,6 +8,7 @@ import org.janelia.workstation.gui.viewer3d.Mip3d;
 import org.janelia.workstation.gui.viewer3d.VolumeBrickActorBuilder;
 import org.janelia.workstation.gui.viewer3d.VolumeBrickFactory;
 import org.janelia.workstation.gui.viewer3d.VolumeBrickI;
+import org.janelia.workstation.gui.viewer3d.VolumeLoader;
 import org.janelia.workstation.gui.viewer3d.VolumeModel;
 import org.janelia.workstation.gui.viewer3d.resolver.CacheFileResolver;
 import org.janelia.workstation.gui.viewer3d.texture.TextureDataI;
@@ -15,6 +16,10 @@ import org.janelia.workstation.gui.viewer3d.texture.TextureDataI;
 public class Load3dSwingWorker extends SwingWorker<Boolean,Boolean> {
     private Mip3d mip3d;
     private String filename;
+    private final VolumeLoader volumeLoader = new VolumeLoader(new CacheFileResolver());
+    // Written in doInBackground, read in done() after it.
+    private boolean loaded;
+
     public Load3dSwingWorker( Mip3d mip3d, String filename ) {
         this.mip3d = mip3d;
         this.filename = filename;
@@ -29,12 +34,28 @@ public class Load3dSwingWorker extends SwingWorker<Boolean,Boolean> {
      */
     @Override
     protected Boolean doInBackground() throws Exception {
+        if ( filename != null ) {
+            loaded = volumeLoader.loadVolume( filename );
+        }
         return false; // Not dirty
     }
 
+    /**
+     * Cancels this worker, also stopping the decode of a file being loaded.
+     *
+     * @return false if the worker had already finished.
+     */
+    public boolean cancelLoad() {
+        volumeLoader.cancelLoad();
+        return cancel( true );
+    }
+
     /** This is done in the event thread. */
     @Override
     protected void done() {
+        if ( isCancelled() ) {
+            return;
+        }
         if ( filename != null ) {
             mip3d.clear();
             VolumeBrickFactory factory = new VolumeBrickFactory() {
@@ -49,7 +70,7 @@ public class Load3dSwingWorker extends SwingWorker<Boolean,Boolean> {
                 }
             };
             VolumeBrickActorBuilder actorBuilder = new VolumeBrickActorBuilder();
-            GLActor actor = actorBuilder.buildVolumeBrickActor(mip3d.getVolumeModel(), factory, new CacheFileResolver(), filename);
+            GLActor actor = loaded ? actorBuilder.buildVolumeBrickActor(mip3d.getVolumeModel(), factory, volumeLoader) : null;
             mip3d.addActor( actor );
             filenameSufficient();
         }
@@ -68,6 +68,7 @@ public abstract class AnnotatedImageButton<T,S> extends SelectablePanel {
 
     // State
     protected boolean wantViewable = false;
+    protected int loadPriority = 0;
     protected double aspectRatio;
     protected boolean titleVisible;
     
@@ -336,6 +337,21 @@ public abstract class AnnotatedImageButton<T,S> extends SelectablePanel {
         return wantViewable;
     }
 
+    /**
+     * Set the order in which this button's image is loaded, relative to the other buttons. Lower values load first.
+     * This must be called before setViewable for it to apply to the next load.
+     */
+    public void setLoadPriority(int loadPriority) {
+        this.loadPriority = loadPriority;
+    }
+
+    /**
+     * Called for buttons just outside the visible area, so that their images can be loaded before they are
+     * scrolled into view. The default implementation does nothing.
+     */
+    public void prefetchImage() {
+    }
+
     public void toggleEditMode(boolean mode) {
         // if hiding edit mode, clear out checkbox
         if (!mode) {
@@ -14,6 +14,7 @@ import org.janelia.workstation.core.model.Decorator;
 import org.janelia.workstation.core.model.ImageModel;
 import org.janelia.workstation.common.gui.support.Icons;
 import org.janelia.workstation.core.events.selection.SelectionModel;
+import org.janelia.workstation.core.util.ThumbnailCache;
 import org.janelia.workstation.core.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -85,7 +86,15 @@ public class DynamicImageButton<T,S> extends AnnotatedImageButton<T,S> {
                 }
             }
     
+            boolean needsLargerThumbnail = viewable && maxSizeImage != null && displaySize > 0
+                    && width > maxSizeImage.getWidth()
+                    && maxSizeImage.getWidth() >= ThumbnailCache.getThumbnailWidth(displaySize);
             this.displaySize = width;
+            if (needsLargerThumbnail) {
+                // The thumbnail was cut down from a larger image, so load a larger thumbnail
+                cancelLoad();
+                loadImage();
+            }
             invalidate();
         }
     }
@@ -107,65 +116,7 @@ public class DynamicImageButton<T,S> extends AnnotatedImageButton<T,S> {
         if (imageFilename != null) {
             if (wantViewable) {
                 if (!this.viewable) {
-
-                    log.trace("LoadImageWorker: {}",imageFilename);
-                    
-                    loadWorker = new LoadImageWorker(imageFilename, displaySize) {
-
-                        @Override
-                        protected void hadSuccess() {
-
-                            log.trace("Load complete: {}",imageFilename);
-                                                        
-                            if (isCancelled()) {
-                                log.debug("Load was cancelled");
-                                return;
-                            }
-
-                            setDisplaySize(getNewDisplaySize());
-
-                            BufferedImage image = getNewMaxSizeImage();
-                            setMaxSizeImage(image);
-                            registerAspectRatio(image.getWidth(), image.getHeight());
-
-                            BufferedImage scaledImage = getNewScaledImage();
-                            if (scaledImage == null) {
-                                log.warn("Scaled image is null: {}",imageFilename);
-                                return;
-                            }
-
-                            imagePanel.setImage(scaledImage);
-                            setMainComponent(imagePanel);
-
-                            loadWorker = null;
-                        }
-
-                        @Override
-                        protected void hadError(Throwable error) {
-                            
-                            String errorType;
-                            if (error instanceof FileNotFoundException) {
-                                log.warn("File not found: " + imageFilename);
-                                errorType = "File not found";
-                            }
-                            else if (error.getCause() != null && (error.getCause() instanceof FormatException)) {
-                                log.warn("Image format not supported for: " + imageFilename, error);
-                                errorType = "Image format not supported";
-                            }
-                            else {
-                                log.warn("Image could not be loaded: " + imageFilename, error);
-                                errorType = "Image could not be loaded";
-                            }
-
-                            imagePanel.setImage(Icons.getImage("file_error.png"));
-                            imagePanel.setText(errorType, Color.red);
-                            setMainComponent(imagePanel);
-                            
-                            loadWorker = null;
-                        }
-                    };
-                    
-                    loadWorker.executeInImagePool();
+                    loadImage();
                 }
             }
             else {
@@ -188,6 +139,75 @@ public class DynamicImageButton<T,S> extends AnnotatedImageButton<T,S> {
         this.viewable = wantViewable;
     }
 
+    private void loadImage() {
+        log.trace("LoadImageWorker: {}",imageFilename);
+        
+        loadWorker = new LoadImageWorker(imageFilename, displaySize) {
+
+            @Override
+            protected void hadSuccess() {
+
+                log.trace("Load complete: {}",imageFilename);
+                                            
+                if (isCancelled()) {
+                    log.debug("Load was cancelled");
+                    return;
+                }
+
+                setDisplaySize(getNewDisplaySize());
+
+                BufferedImage image = getNewMaxSizeImage();
+                setMaxSizeImage(image);
+                registerAspectRatio(image.getWidth(), image.getHeight());
+
+                BufferedImage scaledImage = getNewScaledImage();
+                if (scaledImage == null) {
+                    log.warn("Scaled image is null: {}",imageFilename);
+                    return;
+                }
+
+                imagePanel.setImage(scaledImage);
+                setMainComponent(imagePanel);
+
+                loadWorker = null;
+            }
+
+            @Override
+            protected void hadError(Throwable error) {
+                
+                String errorType;
+                if (error instanceof FileNotFoundException) {
+                    log.warn("File not found: " + imageFilename);
+                    errorType = "File not found";
+                }
+                else if (error.getCause() != null && (error.getCause() instanceof FormatException)) {
+                    log.warn("Image format not supported for: " + imageFilename, error);
+                    errorType = "Image format not supported";
+                }
+                else {
+                    log.warn("Image could not be loaded: " + imageFilename, error);
+                    errorType = "Image could not be loaded";
+                }
+
+                imagePanel.setImage(Icons.getImage("file_error.png"));
+                imagePanel.setText(errorType, Color.red);
+                setMainComponent(imagePanel);
+                
+                loadWorker = null;
+            }
+        };
+        
+        loadWorker.setPriority(loadPriority);
+        loadWorker.executeInImagePool();
+    }
+
+    @Override
+    public void prefetchImage() {
+        if (imageFilename != null && !viewable && displaySize > 0) {
+            LoadImageWorker.prefetchThumbnail(imageFilename, displaySize, loadPriority);
+        }
+    }
+
     private boolean isUnloadImages() {
         return BrowserOptions.getInstance().isUnloadImages();
     }
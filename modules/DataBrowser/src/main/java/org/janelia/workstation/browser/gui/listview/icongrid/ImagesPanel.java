@@ -55,6 +55,8 @@ public abstract class ImagesPanel<T,S> extends JScrollPane {
     public static final int MIN_TABLE_HEIGHT = 50;
     public static final int DEFAULT_TABLE_HEIGHT = 200;
     public static final int MAX_TABLE_HEIGHT = 500;
+    // Prefetches load after every visible image
+    private static final int PREFETCH_LOAD_PRIORITY = 1000000;
     
     // Listeners
     private KeyListener buttonKeyListener;
@@ -682,15 +684,30 @@ public abstract class ImagesPanel<T,S> extends JScrollPane {
                 if (buttonsPanel.getColumns() == 1) {
                     viewRect.setSize(viewRect.width, viewRect.height + 100);
                 }
+                // One page above and below the visible area is prefetched
+                Rectangle prefetchRect = new Rectangle(viewRect.x, viewRect.y - viewRect.height,
+                        viewRect.width, 3 * viewRect.height);
                 for (AnnotatedImageButton<T,S> button : buttons.values()) {
                     if (loadUnloadImagesInterrupt.get()) {
                         log.trace("loadUnloadImages interrupted");
                         return;
                     }
                     try {
-                        boolean wantViewable = viewRect.intersects(button.getBounds());
-                        log.trace("viewRect.intersects(({}) = {}",button.getBounds(),wantViewable);
+                        Rectangle bounds = button.getBounds();
+                        boolean wantViewable = viewRect.intersects(bounds);
+                        log.trace("viewRect.intersects(({}) = {}",bounds,wantViewable);
+                        if (wantViewable) {
+                            // Rows load from the top of the view down
+                            button.setLoadPriority(Math.max(0, bounds.y - viewRect.y));
+                        }
                         button.setViewable(wantViewable);
+                        if (!wantViewable && prefetchRect.intersects(bounds)) {
+                            int distance = bounds.y < viewRect.y
+                                    ? viewRect.y - (bounds.y + bounds.height)
+                                    : bounds.y - (viewRect.y + viewRect.height);
+                            button.setLoadPriority(PREFETCH_LOAD_PRIORITY + Math.max(0, distance));
+                            button.prefetchImage();
+                        }
                     }
                     catch (Exception e) {
                         FrameworkAccess.handleException(e);
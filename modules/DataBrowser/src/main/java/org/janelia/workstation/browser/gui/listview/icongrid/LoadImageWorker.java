@@ -2,12 +2,15 @@ package org.janelia.workstation.browser.gui.listview.icongrid;
 
 import java.awt.image.BufferedImage;
 import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Stopwatch;
 
@@ -17,6 +20,7 @@ import org.janelia.workstation.browser.api.state.DataBrowserMgr;
 import org.janelia.workstation.core.api.FileMgr;
 import org.janelia.workstation.core.util.ConsoleProperties;
 import org.janelia.workstation.core.util.ImageCache;
+import org.janelia.workstation.core.util.ThumbnailCache;
 import org.janelia.workstation.core.util.Utils;
 import org.janelia.workstation.core.workers.SimpleWorker;
 import org.slf4j.Logger;
@@ -25,7 +29,8 @@ import org.slf4j.LoggerFactory;
 /**
  * SwingWorker class that loads the image and rescales it to the current imageSizePercent sizing. This
  * thread supports being canceled.
- * if an ImageCache has been set with setImageCache then this method will look there first.
+ * When a display width is given, the image is loaded through the ThumbnailCache, and the "max size" image is
+ * the cached thumbnail. Otherwise the full image is loaded, looking in the ImageCache first.
  *
  * @author <a href="mailto:rokickik@janelia.hhmi.org">Konrad Rokicki</a>
  */
@@ -51,8 +56,12 @@ public abstract class LoadImageWorker extends SimpleWorker {
         }
     }
 
+    private static final AtomicLong taskSequence = new AtomicLong();
+    private static final Set<String> pendingPrefetches = ConcurrentHashMap.newKeySet();
+
     private final String imageFilename;
     private final Integer displaySize;
+    private int priority = 0;
     
     private BufferedImage maxSizeImage;
     private BufferedImage scaledImage;
@@ -67,9 +76,23 @@ public abstract class LoadImageWorker extends SimpleWorker {
         this.displaySize = width;
     }
 
+    /**
+     * Images are loaded in order of increasing priority value; ties are loaded first come, first served.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     @Override
     protected void doStuff() throws Exception {
 
+        if (displaySize != null && displaySize>0) {
+            // Thumbnails come from the thumbnail cache, and never need the full size image
+            this.maxSizeImage = loadThumbnail(imageFilename, displaySize);
+            rescaleToDisplaySize();
+            return;
+        }
+
         ImageCache imageCache = DataBrowserMgr.getDataBrowserMgr().getImageCache();
         if (imageCache != null) {
             this.maxSizeImage = imageCache.get(imageFilename);
@@ -107,6 +130,51 @@ public abstract class LoadImageWorker extends SimpleWorker {
         }
     }
 
+    private static BufferedImage loadThumbnail(String imageFilename, int width) throws Exception {
+        ThumbnailCache thumbnailCache = DataBrowserMgr.getDataBrowserMgr().getThumbnailCache();
+        // Without a version the thumbnail cannot be kept on disk, since a replaced image would not be noticed
+        String version = FileMgr.getFileMgr().getFileVersion(imageFilename);
+        if (version == null) {
+            log.trace("No version for {}, caching its thumbnail in memory only", imageFilename);
+        }
+        return thumbnailCache.get(imageFilename, version, width, new ThumbnailCache.ImageSource() {
+            @Override
+            public InputStream openStream() throws Exception {
+                log.trace("Loading thumbnail source: {}", imageFilename);
+                return FileMgr.getFileMgr().getFile(imageFilename, false).openContentStream(false);
+            }
+
+            @Override
+            public BufferedImage decode(InputStream stream) {
+                return Utils.readImageFromInputStream(stream, FilenameUtils.getExtension(imageFilename));
+            }
+        });
+    }
+
+    /**
+     * Loads a thumbnail into the thumbnail cache in the background, so that it is ready
+     * when it is scrolled into view. Requests for thumbnails which are already queued
+     * at the same thumbnail width are ignored.
+     */
+    public static void prefetchThumbnail(String imageFilename, int width, int priority) {
+        String prefetchKey = imageFilename + "@" + ThumbnailCache.getThumbnailWidth(width);
+        if (!pendingPrefetches.add(prefetchKey)) {
+            return;
+        }
+        getWorkersExecutorService().execute(new PrioritizedTask(priority, () -> {
+            try {
+                loadThumbnail(imageFilename, width);
+            }
+            catch (Exception e) {
+                // Left for the real load to report
+                log.debug("Could not prefetch {}", imageFilename, e);
+            }
+            finally {
+                pendingPrefetches.remove(prefetchKey);
+            }
+        }));
+    }
+
     private void rescaleToDisplaySize() {
         if (displaySize != null && displaySize>0) {
             this.scaledImage = Utils.getScaledImageByWidth(maxSizeImage, displaySize);
@@ -147,7 +215,7 @@ public abstract class LoadImageWorker extends SimpleWorker {
 
             executorService = new ThreadPoolExecutor(numWorkerThreads, numWorkerThreads,
                             10L, TimeUnit.MINUTES,
-                            new LinkedBlockingQueue<Runnable>(),
+                            new PriorityBlockingQueue<Runnable>(),
                             threadFactory);
         }
 
@@ -155,6 +223,32 @@ public abstract class LoadImageWorker extends SimpleWorker {
     }
 
     public void executeInImagePool() {
-        getWorkersExecutorService().execute(this);
+        getWorkersExecutorService().execute(new PrioritizedTask(priority, this));
+    }
+
+    /**
+     * Queue entry for the image pool, which runs the lowest priority value first.
+     */
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+        private final int priority;
+        private final long sequence = taskSequence.getAndIncrement();
+        private final Runnable task;
+
+        PrioritizedTask(int priority, Runnable task) {
+            this.priority = priority;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            int c = Integer.compare(priority, other.priority);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
     }
 }
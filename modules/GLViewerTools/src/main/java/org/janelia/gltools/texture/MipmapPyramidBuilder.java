@@ -0,0 +1,218 @@
+package org.janelia.gltools.texture;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the mipmap pyramid of an 8 or 16 bit, interleaved multi-channel
+ * volume on a fork/join pool.
+ *
+ * Each output voxel is the second largest intensity, per channel, of the
+ * 2x2x2 block of input voxels beneath it; the second largest rather than the
+ * maximum, so single bright noise voxels do not take over coarse levels. At
+ * odd sizes the block is clamped to the input. Each level is split into Z
+ * slabs computed in parallel, and all levels are written into one direct
+ * buffer allocated up front.
+ */
+public class MipmapPyramidBuilder {
+
+    // Slabs are split no further than this many output voxels
+    private static final int MIN_SLAB_VOXELS = 16 * 1024;
+
+    private final ForkJoinPool pool;
+
+    public MipmapPyramidBuilder() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public MipmapPyramidBuilder(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Number of mipmap levels below a base level, down to 1x1x1.
+     */
+    public static int levelCount(int width, int height, int depth) {
+        int levels = 0;
+        while (width > 1 || height > 1 || depth > 1) {
+            width = Math.max(width / 2, 1);
+            height = Math.max(height / 2, 1);
+            depth = Math.max(depth / 2, 1);
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * @param base base level voxels, x fastest, in native byte order
+     * @param maxLevel highest mipmap level to compute, or negative for all
+     * @return mipmap levels 1, 2, ... as native ordered views of a single
+     * direct buffer
+     */
+    public List<ByteBuffer> build(ByteBuffer base, int width, int height, int depth,
+            int channelCount, int bytesPerIntensity, int maxLevel) {
+        int levels = levelCount(width, height, depth);
+        if (maxLevel >= 0) {
+            levels = Math.min(levels, maxLevel);
+        }
+        List<ByteBuffer> result = new ArrayList<>();
+        if (levels == 0) {
+            return result;
+        }
+        int[][] sizes = new int[levels + 1][];
+        sizes[0] = new int[] {width, height, depth};
+        long totalBytes = 0;
+        for (int level = 1; level <= levels; ++level) {
+            int[] previous = sizes[level - 1];
+            sizes[level] = new int[] {
+                    Math.max(previous[0] / 2, 1),
+                    Math.max(previous[1] / 2, 1),
+                    Math.max(previous[2] / 2, 1)};
+            totalBytes += (long) sizes[level][0] * sizes[level][1] * sizes[level][2] * channelCount * bytesPerIntensity;
+        }
+        if (totalBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Mipmap pyramid too large: " + totalBytes + " bytes");
+        }
+        ByteBuffer storage = ByteBuffer.allocateDirect((int) totalBytes).order(ByteOrder.nativeOrder());
+        ByteBuffer input = base.duplicate().order(ByteOrder.nativeOrder());
+        int offset = 0;
+        for (int level = 1; level <= levels; ++level) {
+            int[] in = sizes[level - 1];
+            int[] out = sizes[level];
+            int byteCount = out[0] * out[1] * out[2] * channelCount * bytesPerIntensity;
+            storage.limit(offset + byteCount).position(offset);
+            ByteBuffer output = storage.slice().order(ByteOrder.nativeOrder());
+            pool.invoke(new Slab(input, in, output, out, channelCount, bytesPerIntensity, 0, out[2]));
+            result.add(output);
+            input = output;
+            offset += byteCount;
+        }
+        return result;
+    }
+
+    /**
+     * Second largest of the first sampleCount samples; the only sample when
+     * there is just one.
+     */
+    static int secondLargestIntensity(int[] samples, int sampleCount) {
+        if (sampleCount == 1)
+            return samples[0];
+
+        int best, second;
+        if (samples[0] > samples[1]) {
+            best = samples[0];
+            second = samples[1];
+        }
+        else {
+            best = samples[1];
+            second = samples[0];
+        }
+
+        for (int i = 2; i < sampleCount; ++i) {
+            if (samples[i] <= second) continue;
+            if (samples[i] > best) {
+                second = best;
+                best = samples[i];
+            }
+            else {
+                second = samples[i];
+            }
+        }
+
+        return second;
+    }
+
+    private static class Slab extends RecursiveAction {
+        private final ByteBuffer input;
+        private final int[] in;
+        private final ByteBuffer output;
+        private final int[] out;
+        private final int channelCount;
+        private final int bytesPerIntensity;
+        private final int zStart;
+        private final int zEnd;
+
+        Slab(ByteBuffer input, int[] in, ByteBuffer output, int[] out, int channelCount, int bytesPerIntensity,
+                int zStart, int zEnd) {
+            this.input = input;
+            this.in = in;
+            this.output = output;
+            this.out = out;
+            this.channelCount = channelCount;
+            this.bytesPerIntensity = bytesPerIntensity;
+            this.zStart = zStart;
+            this.zEnd = zEnd;
+        }
+
+        @Override
+        protected void compute() {
+            int sliceVoxels = out[0] * out[1];
+            if (zEnd - zStart > 1 && (long) (zEnd - zStart) * sliceVoxels > MIN_SLAB_VOXELS) {
+                int zMid = (zStart + zEnd) >>> 1;
+                invokeAll(new Slab(input, in, output, out, channelCount, bytesPerIntensity, zStart, zMid),
+                        new Slab(input, in, output, out, channelCount, bytesPerIntensity, zMid, zEnd));
+                return;
+            }
+            downsample();
+        }
+
+        private void downsample() {
+            int[] samples = new int[8];
+            int[] xs = new int[2];
+            int[] ys = new int[2];
+            int[] zs = new int[2];
+            int inRow = in[0] * channelCount;
+            int inSlice = in[1] * inRow;
+            for (int z = zStart; z < zEnd; ++z) {
+                int zCount = blockStarts(z, in[2], zs);
+                for (int y = 0; y < out[1]; ++y) {
+                    int yCount = blockStarts(y, in[1], ys);
+                    int outIndex = (z * out[1] + y) * out[0] * channelCount;
+                    for (int x = 0; x < out[0]; ++x) {
+                        int xCount = blockStarts(x, in[0], xs);
+                        for (int c = 0; c < channelCount; ++c) {
+                            int sampleCount = 0;
+                            for (int k = 0; k < zCount; ++k) {
+                                for (int j = 0; j < yCount; ++j) {
+                                    int rowStart = zs[k] * inSlice + ys[j] * inRow + c;
+                                    for (int i = 0; i < xCount; ++i) {
+                                        samples[sampleCount++] = intensity(rowStart + xs[i] * channelCount);
+                                    }
+                                }
+                            }
+                            int value = secondLargestIntensity(samples, sampleCount);
+                            if (bytesPerIntensity > 1) {
+                                output.putShort(2 * outIndex, (short) value);
+                            } else {
+                                output.put(outIndex, (byte) value);
+                            }
+                            outIndex++;
+                        }
+                    }
+                }
+            }
+        }
+
+        private int intensity(int index) {
+            if (bytesPerIntensity > 1) {
+                return input.getShort(2 * index) & 0xffff;
+            }
+            return input.get(index) & 0xff;
+        }
+
+        // Input coordinates beneath one output coordinate, clamped to the input size
+        private static int blockStarts(int outCoordinate, int inSize, int[] result) {
+            result[0] = Math.min(2 * outCoordinate, inSize - 1);
+            if (2 * outCoordinate + 1 < inSize) {
+                result[1] = 2 * outCoordinate + 1;
+                return 2;
+            }
+            return 1;
+        }
+    }
+
+}
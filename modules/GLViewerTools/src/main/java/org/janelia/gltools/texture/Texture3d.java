@@ -11,10 +11,13 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.media.opengl.GL3;
 
@@ -45,11 +48,12 @@ public class Texture3d extends BasicTexture implements GL3Resource {
     
     private static final ScheduledThreadPoolExecutor scheduledThreadPoolExecutor=new ScheduledThreadPoolExecutor(6);
 
+    private static final MipmapPyramidBuilder mipmapPyramidBuilder = new MipmapPyramidBuilder();
+
     protected int height = 0;
     protected int depth = 0;
     private int pixelBufferObject = 0;
-    private byte[] pixelBytes;
-    private short[] shortBytes;
+    private int maxMipmapLevel = -1;
 
     public Texture3d() {
         textureTarget = GL3.GL_TEXTURE_3D;
@@ -58,6 +62,19 @@ public class Texture3d extends BasicTexture implements GL3Resource {
         useImmutableTexture = true;
     }
 
+    /**
+     * Limits precomputed mipmaps to levels 1 through maxMipmapLevel, for
+     * renderers that never sample the coarser levels. Negative, the default,
+     * computes all levels down to 1x1x1.
+     */
+    public void setMaxMipmapLevel(int maxMipmapLevel) {
+        this.maxMipmapLevel = maxMipmapLevel;
+    }
+
+    public int getMaxMipmapLevel() {
+        return maxMipmapLevel;
+    }
+
     @Override
     public void dispose(GL3 gl) {
         super.dispose(gl);
@@ -175,8 +192,7 @@ public class Texture3d extends BasicTexture implements GL3Resource {
 
     private void allocatePixels() {
         int byteCount = numberOfComponents * bytesPerIntensity * width * height * depth;
-        pixelBytes = new byte[byteCount];
-        pixels = ByteBuffer.wrap(pixelBytes);
+        pixels = ByteBuffer.allocateDirect(byteCount);
         pixels.order(ByteOrder.nativeOrder());
         pixels.rewind();
     }
@@ -237,35 +253,17 @@ public class Texture3d extends BasicTexture implements GL3Resource {
                 LoadStackZSlice8bit loadStackZSlice8bit=new LoadStackZSlice8bit(0,depth,pixels,raster,depth,height,width,numberOfComponents);
                 loadStackZSlice8bit.run();
             } else {
-                List<Future> threadList=new ArrayList<>();
+                List<Runnable> tasks=new ArrayList<>();
                 for (int z=0;z<depth;) {
                     int remainingZ=depth-z;
                     int zCount=3;
                     if (remainingZ<zCount) {
                         zCount=remainingZ;
                     }
-                    LoadStackZSlice8bit loadStackZSlice8bit=new LoadStackZSlice8bit(z,zCount,pixels,raster,depth,height,width,numberOfComponents);
-                    threadList.add(scheduledThreadPoolExecutor.submit(loadStackZSlice8bit));
+                    tasks.add(new LoadStackZSlice8bit(z,zCount,pixels,raster,depth,height,width,numberOfComponents));
                     z+=zCount;
                 }
-                int doneCount = 0;
-                long startTime = new Date().getTime();
-                while (doneCount < threadList.size()) {
-                    long currentTime = new Date().getTime();
-                    if (currentTime - startTime > 30000) {
-                        LOG.error("loadStack() exceeded max thread pool wait time");
-                        break;
-                    }
-                    try {
-                        Thread.sleep(10);
-                    }
-                    catch (Exception ex) {
-                    }
-                    doneCount = 0;
-                    for (Future f : threadList) {
-                        if (f.isDone()) doneCount++;
-                    }
-                }
+                runAndWait(tasks, "loadStack()");
             }
             pixels.flip();
         } else { // 16-bit
@@ -275,36 +273,17 @@ public class Texture3d extends BasicTexture implements GL3Resource {
                 LoadStackZSlice16bit loadStackZSlice16bit=new LoadStackZSlice16bit(0,depth,shortPixels,raster,depth,height,width,numberOfComponents);
                 loadStackZSlice16bit.run();
             } else {
-                List<Future> threadList=new ArrayList<>();
+                List<Runnable> tasks=new ArrayList<>();
                 for (int z=0;z<depth;) {
                     int remainingZ=depth-z;
                     int zCount=3;
                     if (remainingZ<zCount) {
                         zCount=remainingZ;
                     }
-                    LoadStackZSlice16bit loadStackZSlice16bit=new LoadStackZSlice16bit(z,zCount,shortPixels,raster,depth,height,width,numberOfComponents);
-                    threadList.add(scheduledThreadPoolExecutor.submit(loadStackZSlice16bit));
-                    //loadStackZSlice16bit.run();
+                    tasks.add(new LoadStackZSlice16bit(z,zCount,shortPixels,raster,depth,height,width,numberOfComponents));
                     z+=zCount;
                 }
-                int doneCount = 0;
-                long startTime = new Date().getTime();
-                while (doneCount < threadList.size()) {
-                    long currentTime = new Date().getTime();
-                    if (currentTime - startTime > 30000) {
-                        LOG.error("loadStack() exceeded max thread pool wait time");
-                        break;
-                    }
-                    try {
-                        Thread.sleep(10);
-                    }
-                    catch (Exception ex) {
-                    }
-                    doneCount = 0;
-                    for (Future f : threadList) {
-                        if (f.isDone()) doneCount++;
-                    }
-                }
+                runAndWait(tasks, "loadStack()");
             }
             shortPixels.flip();
         }
@@ -388,15 +367,49 @@ public class Texture3d extends BasicTexture implements GL3Resource {
         }
     }
 
+    /**
+     * Runs the tasks on the shared pool and waits for all of them, for at
+     * most 30 seconds.
+     */
+    private static void runAndWait(List<Runnable> tasks, String operation) {
+        List<Callable<Object>> callables = new ArrayList<>();
+        for (Runnable task : tasks) {
+            callables.add(Executors.callable(task));
+        }
+        try {
+            for (Future<Object> future : scheduledThreadPoolExecutor.invokeAll(callables, 30, TimeUnit.SECONDS)) {
+                if (future.isCancelled()) {
+                    LOG.error("{} exceeded max thread pool wait time", operation);
+                    return;
+                }
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            LOG.error("{} interrupted", operation);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            LOG.error("{} failed", operation, ex.getCause());
+        }
+    }
+
     private void computeMipmaps() {
         mipmaps.clear();
         PerformanceTimer timer = new PerformanceTimer();
-        Texture3d mipmap = createMipmapUsingMaxFilter();
-        while (mipmap != null) {
-            LOG.trace("Creating mipmap took {} ms", timer.reportMsAndRestart());
+        List<ByteBuffer> levels = mipmapPyramidBuilder.build(pixels, width, height, depth,
+                numberOfComponents, bytesPerIntensity, maxMipmapLevel);
+        Texture3d previous = this;
+        for (ByteBuffer levelPixels : levels) {
+            Texture3d mipmap = new Texture3d();
+            mipmap.copyParameters(this);
+            mipmap.width = Math.max(previous.width/2, 1);
+            mipmap.height = Math.max(previous.height/2, 1);
+            mipmap.depth = Math.max(previous.depth/2, 1);
+            mipmap.mipMapLevel = previous.mipMapLevel + 1;
+            mipmap.pixels = levelPixels;
             mipmaps.add(mipmap);
-            mipmap = mipmap.createMipmapUsingMaxFilter();
+            previous = mipmap;
         }
+        LOG.trace("Creating {} mipmaps took {} ms", levels.size(), timer.reportMsAndRestart());
     }
 
     private void copyParameters(Texture3d rhs) {
@@ -405,327 +418,6 @@ public class Texture3d extends BasicTexture implements GL3Resource {
         depth = rhs.depth;
     }
 
-    private static int secondLargestIntensity(int[] samples, int sampleCount) {
-        if (sampleCount == 1)
-            return samples[0];
-
-        int best, second;
-        if (samples[0] > samples[1]) {
-            best = samples[0];
-            second = samples[1];
-        }
-        else {
-            best = samples[1];
-            second = samples[0];
-        }
-
-        for (int i = 2; i < sampleCount; ++i) {
-            if (samples[i] <= second) continue;
-            if (samples[i] > best) {
-                second = best;
-                best = samples[i];
-            }
-            else {
-                second = samples[i];
-            }
-        }
-
-        return second;
-    }
-
-    private Texture3d createMipmapUsingMaxFilter() {
-        // Check whether smaller mipmap is possible
-        if ( (width <= 1) && (height <= 1) && (depth <= 1) )
-            return null; // already smallest possible texture
-
-        // Create a new texture at half the original size
-        Texture3d result = new Texture3d();
-        result.copyParameters(this);
-        result.width = Math.max(width/2, 1);
-        result.height = Math.max(height/2, 1);
-        result.depth = Math.max(depth/2, 1);
-        result.mipMapLevel = mipMapLevel + 1;
-
-        result.allocatePixels();
-
-        ByteBuffer bytesIn = pixels;
-        ByteBuffer bytesOut = result.pixels;
-        ShortBuffer shortsIn = pixels.asShortBuffer();
-        ShortBuffer shortsOut = result.pixels.asShortBuffer();
-
-        // New way - TODO - output oriented, with kernel
-        float [] halfInputDeltaUvw = new float[] { // normalized inter-pixel distance of input texture
-                0.5f/width, 0.5f/height, 0.5f/depth // Not useful for s
-        };
-        shortsOut.rewind();
-        bytesOut.rewind();
-
-        int HWN = height * width * numberOfComponents;
-        int WN = width * numberOfComponents;
-
-        short[] shortArr=null;
-        byte[] byteArr=null;
-
-        if (bytesPerIntensity>1) {
-            if (shortBytes==null) {
-                int length = pixelBytes.length / 2;
-                shortBytes = new short[length];
-                for (int i=0;i<length;i++) {
-                    int o=i*2;
-                    shortBytes[i]=(short)(((pixelBytes[o] & 0xff) | (pixelBytes[o+1] & 0xff) << 8) & 0xffff);
-                }
-            }
-            shortArr=shortBytes;
-        } else {
-            byteArr=pixelBytes;
-        }
-
-        // Outer loops over output texture voxels
-        int zh1=(int)(halfInputDeltaUvw[2]*depth);
-        int yh1=(int)(halfInputDeltaUvw[1]*height);
-        int xh1=(int)(halfInputDeltaUvw[0]*width);
-
-        if (result.depth<8) {
-            MipMapMaxFilterZSlice zRunnable = new MipMapMaxFilterZSlice(0, result.depth, zh1, yh1, xh1, HWN, WN, result, depth,
-                    width, height, numberOfComponents, shortArr, byteArr, bytesPerIntensity, shortsOut, bytesOut);
-            zRunnable.run();
-            return result;
-        } else {
-            List<Future> threadList = new ArrayList<>();
-            for (int z = 0; z < result.depth; ) {
-                int zCount = 4;
-                int zRemaining = result.depth - z;
-                if (zRemaining < zCount) {
-                    zCount = zRemaining;
-                }
-                MipMapMaxFilterZSlice zRunnable = new MipMapMaxFilterZSlice(z, zCount, zh1, yh1, xh1, HWN, WN, result, depth,
-                        width, height, numberOfComponents, shortArr, byteArr, bytesPerIntensity, shortsOut, bytesOut);
-                threadList.add(scheduledThreadPoolExecutor.submit(zRunnable));
-                z += zCount;
-            }
-            int doneCount = 0;
-            long startTime = new Date().getTime();
-            while (doneCount < threadList.size()) {
-                long currentTime = new Date().getTime();
-                if (currentTime - startTime > 30000) {
-                    LOG.error("createMipmapUsingMaxFilter() exceeded max thread pool wait time");
-                    break;
-                }
-                try {
-                    Thread.sleep(10);
-                } catch (Exception ex) {
-                }
-                doneCount = 0;
-                for (Future f : threadList) {
-                    if (f.isDone()) doneCount++;
-                }
-            }
-            return result;
-        }
-    }
-
-    private static class MipMapMaxFilterZSlice implements Runnable {
-
-        final int IGNORE_VALUE=Integer.MIN_VALUE;
-
-        int z, zCount, zh1, yh1, xh1, HWN, WN, depth, height, width, numberOfComponents, bytesPerIntensity;
-        Texture3d result;
-        short[] shortArr;
-        byte[] byteArr;
-        ShortBuffer shortsOut;
-        ByteBuffer bytesOut;
-
-        int [] zIn = new int [2];
-        int [] yIn = new int [2];
-        int [] xIn = new int [2];
-
-        int [] samples = new int [8];
-
-        MipMapMaxFilterZSlice(int z, int zCount, int zh1, int yh1, int xh1, int HWN, int WN, Texture3d result, int depth,
-                              int width, int height, int numberOfComponents, short[] shortArr, byte[] byteArr,
-                              int bytesPerIntensity, ShortBuffer shortsOut, ByteBuffer bytesOut) {
-            this.z=z;
-            this.zCount=zCount;
-            this.zh1=zh1;
-            this.yh1=yh1;
-            this.xh1=xh1;
-            this.HWN=HWN;
-            this.WN=WN;
-            this.result=result;
-            this.depth=depth;
-            this.width=width;
-            this.height=height;
-            this.numberOfComponents=numberOfComponents;
-            this.shortArr=shortArr;
-            this.byteArr=byteArr;
-            this.bytesPerIntensity=bytesPerIntensity;
-            this.shortsOut=shortsOut;
-            this.bytesOut=bytesOut;
-        }
-
-        public void run() {
-
-            int zMax = z + zCount;
-
-            int RHWC=result.height*result.width*numberOfComponents;
-
-            while (z < zMax) {
-
-                int outputIndex = z * RHWC;
-
-                if (depth == 1) {
-                    zIn[0] = 0;
-                    xIn[1] = IGNORE_VALUE;
-                } else {
-                    float fractionalZOut = (z + 0.5f) / result.depth;
-                    int zf1 = (int) (fractionalZOut * depth);
-                    zIn[0] = (zf1 - zh1) * HWN;
-                    zIn[1] = (zf1 + zh1) * HWN;
-                    if (zIn[0] == zIn[1]) zIn[1] = IGNORE_VALUE;
-                }
-                for (int y = 0; y < result.height; ++y) {
-                    if (height == 1) {
-                        yIn[0] = 0;
-                        yIn[1] = IGNORE_VALUE;
-                    } else {
-                        float fractionalYOut = (y + 0.5f) / result.height;
-                        int yf1 = (int) (fractionalYOut * height);
-                        yIn[0] = (yf1 - yh1) * WN;
-                        yIn[1] = (yf1 + yh1) * WN;
-                        if (yIn[0] == yIn[1]) yIn[1] = IGNORE_VALUE;
-                    }
-                    for (int x = 0; x < result.width; ++x) {
-                        if (width == 1) {
-                            xIn[0] = 0;
-                            xIn[1] = IGNORE_VALUE;
-                        } else {
-                            float fractionalXOut = (x + 0.5f) / result.width;
-                            int xf1 = (int) (fractionalXOut * width);
-                            xIn[0] = (xf1 - xh1);
-                            xIn[1] = (xf1 + xh1);
-                            if (xIn[0] == xIn[1]) xIn[1] = IGNORE_VALUE;
-                        }
-                        int sampleCount = 0;
-
-                        if (numberOfComponents == 1) {
-
-                            if (shortArr != null) {
-
-                                // Inner loops over input texture voxels
-                                for (int iz : zIn) {
-                                    if (iz != IGNORE_VALUE) {
-                                        for (int iy : yIn) {
-                                            if (iy != IGNORE_VALUE) {
-                                                int ZYWN = iy + iz;
-                                                for (int ix : xIn) {
-                                                    if (ix != IGNORE_VALUE) {
-                                                        int offset = ZYWN + ix;
-                                                        samples[sampleCount++] = shortArr[offset];
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-
-                            } else {
-
-                                // Inner loops over input texture voxels
-                                for (int iz : zIn) {
-                                    if (iz != IGNORE_VALUE) {
-                                        for (int iy : yIn) {
-                                            if (iy != IGNORE_VALUE) {
-                                                int ZYWN = iy + iz;
-                                                for (int ix : xIn) {
-                                                    if (ix != IGNORE_VALUE) {
-                                                        int offset = ZYWN + ix;
-                                                        samples[sampleCount++] = byteArr[offset] & 0xff;
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-
-                            int maxIntensity = secondLargestIntensity(samples, sampleCount);
-
-                            if (bytesPerIntensity > 1) {
-                                shortsOut.put(outputIndex, (short) (maxIntensity & 0xffff));
-                            } else {
-                                bytesOut.put(outputIndex, (byte) (maxIntensity & 0xff));
-                            }
-
-                            outputIndex++;
-
-                        } else {
-
-                            for (int c = 0; c < numberOfComponents; ++c) {
-
-                                if (shortArr != null) {
-
-                                    // Inner loops over input texture voxels
-                                    for (int iz : zIn) {
-                                        if (iz != IGNORE_VALUE) {
-                                            for (int iy : yIn) {
-                                                if (iy != IGNORE_VALUE) {
-                                                    int ZYWN = iy + iz;
-                                                    for (int ix : xIn) {
-                                                        if (ix != IGNORE_VALUE) {
-                                                            int offset = ZYWN
-                                                                    + ix * numberOfComponents
-                                                                    + c;
-                                                            samples[sampleCount++] = shortArr[offset];
-                                                        }
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-
-                                } else {
-
-                                    // Inner loops over input texture voxels
-                                    for (int iz : zIn) {
-                                        if (iz != IGNORE_VALUE) {
-                                            for (int iy : yIn) {
-                                                if (iy != IGNORE_VALUE) {
-                                                    int ZYWN = iy + iz;
-                                                    for (int ix : xIn) {
-                                                        if (ix != IGNORE_VALUE) {
-                                                            int offset = ZYWN
-                                                                    + ix * numberOfComponents
-                                                                    + c;
-                                                            samples[sampleCount++] = byteArr[offset] & 0xff;
-                                                        }
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-
-                                }
-
-                                int maxIntensity = secondLargestIntensity(samples, sampleCount);
-
-                                if (bytesPerIntensity > 1) {
-                                    shortsOut.put(outputIndex, (short) (maxIntensity & 0xffff));
-                                } else {
-                                    bytesOut.put(outputIndex, (byte) (maxIntensity & 0xff));
-                                }
-
-                                outputIndex++;
-
-                            }
-
-                        }
-                    }
-                }
-                z++;
-            }
-        }
-    }
-
     private RenderedImage[] renderedImagesFromTiffStack(InputStream stackStream) throws IOException {
         PerformanceTimer timer = new PerformanceTimer();
 
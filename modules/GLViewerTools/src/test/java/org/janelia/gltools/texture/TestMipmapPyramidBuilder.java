@@ -0,0 +1,139 @@
+package org.janelia.gltools.texture;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestMipmapPyramidBuilder {
+
+    private static ByteBuffer randomStack(int width, int height, int depth, int channelCount, int bytesPerIntensity, long seed) {
+        int byteCount = width * height * depth * channelCount * bytesPerIntensity;
+        ByteBuffer stack = ByteBuffer.allocateDirect(byteCount).order(ByteOrder.nativeOrder());
+        Random random = new Random(seed);
+        for (int i = 0; i < byteCount; ++i) {
+            stack.put(i, (byte) random.nextInt(256));
+        }
+        return stack;
+    }
+
+    private static int intensity(ByteBuffer buffer, int index, int bytesPerIntensity) {
+        if (bytesPerIntensity > 1) {
+            return buffer.getShort(2 * index) & 0xffff;
+        }
+        return buffer.get(index) & 0xff;
+    }
+
+    // Straightforward second largest of the clamped 2x2x2 block beneath each output voxel
+    private static void assertDownsampled(ByteBuffer in, int[] inSize, ByteBuffer out, int[] outSize,
+            int channelCount, int bytesPerIntensity) {
+        for (int z = 0; z < outSize[2]; ++z) {
+            for (int y = 0; y < outSize[1]; ++y) {
+                for (int x = 0; x < outSize[0]; ++x) {
+                    for (int c = 0; c < channelCount; ++c) {
+                        int best = -1;
+                        int second = -1;
+                        int count = 0;
+                        for (int zi = 2 * z; zi <= Math.min(2 * z + 1, inSize[2] - 1); ++zi) {
+                            for (int yi = 2 * y; yi <= Math.min(2 * y + 1, inSize[1] - 1); ++yi) {
+                                for (int xi = 2 * x; xi <= Math.min(2 * x + 1, inSize[0] - 1); ++xi) {
+                                    int index = ((zi * inSize[1] + yi) * inSize[0] + xi) * channelCount + c;
+                                    int value = intensity(in, index, bytesPerIntensity);
+                                    if (value > best) {
+                                        second = best;
+                                        best = value;
+                                    } else if (value > second) {
+                                        second = value;
+                                    }
+                                    count++;
+                                }
+                            }
+                        }
+                        int expected = count == 1 ? best : second;
+                        int outIndex = ((z * outSize[1] + y) * outSize[0] + x) * channelCount + c;
+                        assertEquals(expected, intensity(out, outIndex, bytesPerIntensity));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertPyramid(int width, int height, int depth, int channelCount, int bytesPerIntensity) {
+        ByteBuffer base = randomStack(width, height, depth, channelCount, bytesPerIntensity, 17);
+        List<ByteBuffer> levels = new MipmapPyramidBuilder().build(base, width, height, depth,
+                channelCount, bytesPerIntensity, -1);
+        assertEquals(MipmapPyramidBuilder.levelCount(width, height, depth), levels.size());
+        int[] inSize = {width, height, depth};
+        ByteBuffer in = base;
+        for (ByteBuffer out : levels) {
+            int[] outSize = {Math.max(inSize[0] / 2, 1), Math.max(inSize[1] / 2, 1), Math.max(inSize[2] / 2, 1)};
+            assertTrue(out.isDirect());
+            assertEquals(outSize[0] * outSize[1] * outSize[2] * channelCount * bytesPerIntensity, out.remaining());
+            assertDownsampled(in, inSize, out, outSize, channelCount, bytesPerIntensity);
+            in = out;
+            inSize = outSize;
+        }
+        assertArrayEquals(new int[] {1, 1, 1}, inSize);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testLevelCount() {
+        assertEquals(0, MipmapPyramidBuilder.levelCount(1, 1, 1));
+        assertEquals(1, MipmapPyramidBuilder.levelCount(2, 1, 1));
+        assertEquals(9, MipmapPyramidBuilder.levelCount(512, 300, 7));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void test8BitPyramid() {
+        assertPyramid(64, 48, 40, 1, 1);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void test16BitMultiChannelOddSizes() {
+        assertPyramid(37, 21, 19, 2, 2);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testMaxLevel() {
+        ByteBuffer base = randomStack(32, 32, 32, 1, 2, 3);
+        List<ByteBuffer> levels = new MipmapPyramidBuilder().build(base, 32, 32, 32, 1, 2, 2);
+        assertEquals(2, levels.size());
+        assertEquals(8 * 8 * 8 * 2, levels.get(1).remaining());
+        assertTrue(new MipmapPyramidBuilder().build(base, 32, 32, 32, 1, 2, 0).isEmpty());
+    }
+
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkPyramid() {
+        int width = 512;
+        int height = 512;
+        int depth = 128;
+        for (int bytesPerIntensity = 1; bytesPerIntensity <= 2; ++bytesPerIntensity) {
+            ByteBuffer base = randomStack(width, height, depth, 1, bytesPerIntensity, 5);
+            MipmapPyramidBuilder builder = new MipmapPyramidBuilder();
+            for (int i = 0; i < 3; ++i) { // warm up
+                builder.build(base, width, height, depth, 1, bytesPerIntensity, -1);
+            }
+            int runs = 10;
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; ++i) {
+                builder.build(base, width, height, depth, 1, bytesPerIntensity, -1);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double megavoxels = (double) width * height * depth * runs / 1e6;
+            System.out.printf("%d-bit %dx%dx%d pyramid: %.1f ms per stack, %.1f Mvoxel/s%n",
+                    8 * bytesPerIntensity, width, height, depth, 1000 * seconds / runs, megavoxels / seconds);
+        }
+    }
+
+}
@@ -19,6 +19,7 @@ import org.janelia.horta.volume.BrickInfo;
 import org.janelia.horta.volume.VoxelIndex;
 import org.janelia.rendering.RawImage;
 import org.janelia.rendering.RenderedVolumeLoader;
+import org.janelia.workstation.core.util.ConsoleProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -206,6 +207,7 @@ public class BrainTileInfo implements BrickInfo {
     @Override
     public Texture3d loadBrick(double maxEdgePadWidth, String fileExtension) {
         Texture3d texture = new Texture3d();
+        texture.setMaxMipmapLevel(ConsoleProperties.getInt("console.LVVHorta.rawTile.maxMipmapLevel", -1));
 
         RawImage rawImage = new RawImage();
         rawImage.setAcquisitionPath(basePath);
@@ -106,9 +106,11 @@ import org.janelia.horta.loader.ObjMeshLoader;
 import org.janelia.horta.loader.TarFileLoader;
 import org.janelia.horta.loader.TgzFileLoader;
 import org.janelia.horta.loader.TilebaseYamlLoader;
+import org.janelia.horta.movie.FrameSink;
 import org.janelia.horta.movie.HortaMovieSource;
 import org.janelia.horta.nodes.BasicHortaWorkspace;
 import org.janelia.horta.nodes.WorkspaceUtil;
+import org.janelia.horta.render.FrameReadback;
 import org.janelia.horta.render.NeuronMPRenderer;
 import org.janelia.horta.volume.BrickActor;
 import org.janelia.horta.volume.BrickInfo;
@@ -228,6 +230,7 @@ public final class NeuronTracerTopComponent extends TopComponent
 
     private final HortaVolumeCache volumeCache;
     private final HortaMovieSource movieSource = new HortaMovieSource(this);
+    private FrameReadback frameReadback; // movie frame capture
 
     private final KtxBlockMenuBuilder ktxBlockMenuBuilder = new KtxBlockMenuBuilder();
 
@@ -2115,6 +2118,47 @@ public final class NeuronTracerTopComponent extends TopComponent
         return image;
     }
 
+    /**
+     * Like getScreenShot(), for saving movie frames: the frame is read back
+     * without waiting for the GPU, and handed to the sink during the next
+     * call, or flushScreenShots(). Frames are cropped to even dimensions,
+     * for FFMpeg h264.
+     */
+    public void captureScreenShot(FrameSink sink) {
+        GLAutoDrawable glad = sceneWindow.getGLAutoDrawable();
+        glad.getContext().makeCurrent();
+        try {
+            if (frameReadback == null) {
+                frameReadback = new FrameReadback();
+            }
+            int w = glad.getSurfaceWidth();
+            int h = glad.getSurfaceHeight();
+            // keep the top left, as cropping the screen shot would
+            frameReadback.captureFrame(glad.getGL().getGL3(), 0, h & 1, w & ~1, h & ~1, sink);
+        } finally {
+            glad.getContext().release();
+        }
+    }
+
+    /**
+     * Hands the last frame from captureScreenShot() to the sink, and frees
+     * the read back buffers.
+     */
+    public void flushScreenShots(FrameSink sink) {
+        if (frameReadback == null) {
+            return;
+        }
+        GLAutoDrawable glad = sceneWindow.getGLAutoDrawable();
+        glad.getContext().makeCurrent();
+        try {
+            frameReadback.flush(glad.getGL().getGL3(), sink);
+        } finally {
+            frameReadback.dispose(glad.getGL().getGL3());
+            frameReadback = null;
+            glad.getContext().release();
+        }
+    }
+
     public void addMeshActor(MeshActor meshActor) {
         getNeuronMPRenderer().addMeshActor(meshActor);
     }
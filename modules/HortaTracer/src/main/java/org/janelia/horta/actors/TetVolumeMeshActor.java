@@ -227,6 +227,24 @@ implements SortableBlockActor, SortableBlockActorSource
         return cachedResolution;
     }
 
+    /**
+     * Bytes of texture data in all mipmap levels, held in RAM and, once
+     * displayed, on the GPU.
+     */
+    public long getTextureByteCount() {
+        return ktxData.getMipmapByteCount();
+    }
+
+    /**
+     * Returns this block's texture buffers to the buffer pool, after the
+     * block has been disposed for good. Kept apart from dispose(), which may
+     * be followed by init() when the GL context is recreated, and then
+     * needs the texture data again.
+     */
+    public void releaseTextureData() {
+        ktxData.release();
+    }
+
     private static class TetVolumeMeshGeometry extends MeshGeometry {
 
         TetVolumeMeshGeometry(KtxData ktxData)
@@ -3,18 +3,22 @@ package org.janelia.horta.blocks;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.prefs.PreferenceChangeEvent;
 import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
 
 import org.janelia.console.viewerapi.ComposableObservable;
 import org.janelia.console.viewerapi.ObservableInterface;
+import org.janelia.geometry3d.ConstVector3;
 import org.janelia.horta.options.TileLoadingPanel;
 import org.netbeans.api.progress.ProgressHandle;
 import org.netbeans.api.progress.ProgressHandleFactory;
@@ -26,6 +30,11 @@ import org.slf4j.LoggerFactory;
 /**
  * Generic version of HortaVolumeCache, for use with newer Ktx block loading
  *
+ * Resident tiles are held within RAM and GPU byte budgets, set in the tile
+ * loading options; tiles no longer desired are evicted farthest from the
+ * focus first, and handed back through popObsoleteTiles() for disposal.
+ * Every resident tile is drawn each frame, so there is no recency to go by.
+ *
  * @author brunsc
  * @param <TILE_KEY> - tile key type
  * @param <TILE_DATA> - tile data type
@@ -39,10 +48,18 @@ public abstract class BasicTileCache<TILE_KEY, TILE_DATA> {
     private final Map<TILE_KEY, RequestProcessor.Task> queuedTiles = new ConcurrentHashMap<>();
     private final Map<TILE_KEY, RequestProcessor.Task> loadingTiles = new ConcurrentHashMap<>();
 
-    private final Set<TILE_KEY> nearVolumeMetadata = new HashSet<>();
+    // Tiles currently wanted for display; replaced, not grown, on each update
+    private volatile Set<TILE_KEY> desiredTiles = Collections.emptySet();
+    private volatile ConstVector3 focus;
 
     final Map<TILE_KEY, TILE_DATA> nearVolumeInRam = new ConcurrentHashMap<>();
-    final Map<TILE_KEY, TILE_DATA> obsoleteTiles = new ConcurrentHashMap<>();
+    // A list, not a map: the same key can be retired again before the display thread disposes it
+    final Queue<TILE_DATA> obsoleteTiles = new ConcurrentLinkedQueue<>();
+
+    private final TileResidency<TILE_KEY> residency = new TileResidency<>();
+    private final TileCacheStats stats = new TileCacheStats(getClass().getSimpleName(), residency);
+    private volatile long ramBudgetBytes;
+    private volatile long gpuBudgetBytes;
 
     // To enable/disable loading
     BlockChooser blockStrategy;
@@ -56,6 +73,8 @@ public abstract class BasicTileCache<TILE_KEY, TILE_DATA> {
 
         String concurrentLoadsStr = pref.get(TileLoadingPanel.PREFERENCE_CONCURRENT_LOADS, TileLoadingPanel.PREFERENCE_CONCURRENT_LOADS_DEFAULT);
         setConcurrentLoads(concurrentLoadsStr);
+        ramBudgetBytes = parseBudget(pref.get(TileLoadingPanel.PREFERENCE_TILE_RAM_BUDGET_MB, TileLoadingPanel.PREFERENCE_TILE_RAM_BUDGET_MB_DEFAULT));
+        gpuBudgetBytes = parseBudget(pref.get(TileLoadingPanel.PREFERENCE_TILE_GPU_BUDGET_MB, TileLoadingPanel.PREFERENCE_TILE_GPU_BUDGET_MB_DEFAULT));
 
         pref.addPreferenceChangeListener(new PreferenceChangeListener() {
             @Override
@@ -63,6 +82,14 @@ public abstract class BasicTileCache<TILE_KEY, TILE_DATA> {
                 if (evt.getKey().equals(TileLoadingPanel.PREFERENCE_CONCURRENT_LOADS)) {
                     setConcurrentLoads(evt.getNewValue());
                 }
+                else if (evt.getKey().equals(TileLoadingPanel.PREFERENCE_TILE_RAM_BUDGET_MB)) {
+                    ramBudgetBytes = parseBudget(evt.getNewValue());
+                    evictOverBudget();
+                }
+                else if (evt.getKey().equals(TileLoadingPanel.PREFERENCE_TILE_GPU_BUDGET_MB)) {
+                    gpuBudgetBytes = parseBudget(evt.getNewValue());
+                    evictOverBudget();
+                }
             }
         });
 
@@ -70,55 +97,84 @@ public abstract class BasicTileCache<TILE_KEY, TILE_DATA> {
 
     abstract LoadRunner<TILE_KEY, TILE_DATA> getLoadRunner();
 
+    /**
+     * Bytes of host memory held by a loaded tile.
+     */
+    abstract long getRamBytes(TILE_DATA tile);
+
+    /**
+     * Bytes of graphics memory a tile occupies once displayed.
+     */
+    abstract long getGpuBytes(TILE_DATA tile);
+
     public int getBlockCount() {
-        return nearVolumeMetadata.size();
+        return desiredTiles.size();
+    }
+
+    public TileCacheStats getStats() {
+        return stats;
     }
 
     public synchronized void addDesiredTile(TILE_KEY key) {
-        if (nearVolumeMetadata.contains(key)) {
+        if (desiredTiles.contains(key)) {
             return; // already queued
         }
-        nearVolumeMetadata.add(key);
+        Set<TILE_KEY> updated = new HashSet<>(desiredTiles);
+        updated.add(key);
+        desiredTiles = updated;
         if (nearVolumeInRam.containsKey(key)) {
+            stats.addHit();
             return; // already loaded
         }
-        queueLoad(key, getLoadRunner());
+        if (queueLoad(key, getLoadRunner())) {
+            stats.addMiss();
+        }
     }
 
-    public synchronized void updateDesiredTiles(List<TILE_KEY> desiredTiles) {
+    /**
+     * Replaces the desired set. Tiles are listed in order of decreasing
+     * importance, so the first one stands in for the focus when ordering
+     * evictions.
+     */
+    public synchronized void updateDesiredTiles(List<TILE_KEY> desiredTileList) {
+        Set<TILE_KEY> desired = new HashSet<>(desiredTileList);
+        desiredTiles = desired;
+        if (!desiredTileList.isEmpty() && desiredTileList.get(0) instanceof BlockTileKey) {
+            focus = ((BlockTileKey) desiredTileList.get(0)).getCentroid();
+        }
         List<TILE_KEY> newTiles = new ArrayList<>();
-        for (TILE_KEY key : desiredTiles) {
-            if (!nearVolumeMetadata.contains(key)) {
-                nearVolumeMetadata.add(key);
+        for (TILE_KEY key : desiredTileList) {
+            if (nearVolumeInRam.containsKey(key)) {
+                stats.addHit();
+                continue; // already loaded
             }
-
             if (queuedTiles.containsKey(key)) {
                 continue; // already queued
             }
             if (loadingTiles.containsKey(key)) {
                 continue; // already loading
             }
-            if (nearVolumeInRam.containsKey(key)) {
-                continue; // already loaded
-            }
             newTiles.add(key);
         }
 
-        removeIfNotDesired (desiredTiles, queuedTiles);
-        removeIfNotDesired (desiredTiles, loadingTiles);
+        removeIfNotDesired (desired, queuedTiles);
+        removeIfNotDesired (desired, loadingTiles);
 
         for (TILE_KEY key : newTiles) {
-            queueLoad(key, getLoadRunner());
+            if (queueLoad(key, getLoadRunner())) {
+                stats.addMiss();
+            }
         }
+        evictOverBudget();
     }
 
-    private void removeIfNotDesired (List<TILE_KEY> desiredTiles, Map<TILE_KEY, RequestProcessor.Task> tileSet) {
+    private void removeIfNotDesired (Set<TILE_KEY> desired, Map<TILE_KEY, RequestProcessor.Task> tileSet) {
         Iterator<Map.Entry<TILE_KEY, RequestProcessor.Task>> mapIter = tileSet.entrySet().iterator();
         while (mapIter.hasNext()) {
             Map.Entry<TILE_KEY, RequestProcessor.Task> entry = mapIter.next();
             TILE_KEY key = entry.getKey();
-            if (!desiredTiles.contains(key)) {
-                RequestProcessor.Task task = loadingTiles.get(key);
+            if (!desired.contains(key)) {
+                RequestProcessor.Task task = entry.getValue();
                 if (task != null) {
                     task.cancel();
                 }
@@ -127,21 +183,62 @@ public abstract class BasicTileCache<TILE_KEY, TILE_DATA> {
         }
     }
 
+    /**
+     * Moves a tile from the resident set to the obsolete queue, from which
+     * the display thread disposes it.
+     */
+    private void retireTile(TILE_KEY key) {
+        residency.remove(key);
+        TILE_DATA tile = nearVolumeInRam.remove(key);
+        if (tile != null) {
+            obsoleteTiles.add(tile);
+        }
+    }
+
+    private void evictOverBudget() {
+        final ConstVector3 currentFocus = focus;
+        List<TILE_KEY> evicted = residency.evict(desiredTiles, ramBudgetBytes, gpuBudgetBytes, key -> {
+            if (currentFocus == null || !(key instanceof BlockTileKey)) {
+                return 0.0;
+            }
+            return ((BlockTileKey) key).getCentroid().distance(currentFocus);
+        });
+        for (TILE_KEY key : evicted) {
+            retireTile(key);
+        }
+        if (!evicted.isEmpty()) {
+            stats.addEvictions(evicted.size());
+            log.debug("Evicted {} tiles over budget ({} bytes RAM, {} bytes GPU resident)",
+                    evicted.size(), residency.getRamBytes(), residency.getGpuBytes());
+        }
+    }
+
+    private static long parseBudget(String megabytes) {
+        try {
+            return Long.parseLong(megabytes.trim()) * 1024L * 1024L;
+        } catch (NumberFormatException e) {
+            return 0; // unlimited
+        }
+    }
+
     public ObservableInterface getDisplayChangeObservable() {
         return displayChangeObservable;
     }
 
     public Collection<TILE_DATA> popObsoleteTiles() {
-        Collection<TILE_DATA> result = new ArrayList<>(obsoleteTiles.values());
-        if (!result.isEmpty()) {
-            obsoleteTiles.clear();
+        Collection<TILE_DATA> result = new ArrayList<>();
+        TILE_DATA tile;
+        while ((tile = obsoleteTiles.poll()) != null) {
+            result.add(tile);
         }
         return result;
     }
 
     public void clearAllTiles() {
-        obsoleteTiles.clear();
+        // Keep the cleared tiles in the obsolete queue, so their GPU resources still get disposed
+        obsoleteTiles.addAll(nearVolumeInRam.values());
         nearVolumeInRam.clear();
+        residency.clear();
     }
 
     private synchronized boolean queueLoad(final TILE_KEY key, final LoadRunner<TILE_KEY, TILE_DATA> loadRunner) {
@@ -170,7 +267,7 @@ public abstract class BasicTileCache<TILE_KEY, TILE_DATA> {
 
                 try {
                     // Check whether this tile is still relevant
-                    if (!nearVolumeMetadata.contains(key)) {
+                    if (!desiredTiles.contains(key)) {
                         return;
                     }
 
@@ -180,24 +277,30 @@ public abstract class BasicTileCache<TILE_KEY, TILE_DATA> {
 
                     log.debug("Tile cache load tile data for {}", key);
 
+                    long loadStart = System.nanoTime();
                     TILE_DATA tileTexture = loadRunner.loadTile(key);
+                    stats.addLoad(System.nanoTime() - loadStart);
 
                     if (tileTexture == null) {
                         log.info("Tile loaded was null {}", key.toString());
                         return;
                     }
 
-                    if (!nearVolumeMetadata.contains(key)) {
+                    if (!desiredTiles.contains(key)) {
                         log.info("Tile loaded was no longer needed {}", key.toString());
+                        obsoleteTiles.add(tileTexture);
                         return; // no longer needed
                     }
 
                     if (nearVolumeInRam.containsKey(key)) {
                         log.info("Tile loaded was already loaded {}", key.toString());
+                        obsoleteTiles.add(tileTexture);
                         return; // already loaded by another thread?
                     }
 
+                    residency.add(key, getRamBytes(tileTexture), getGpuBytes(tileTexture));
                     nearVolumeInRam.put(key, tileTexture);
+                    evictOverBudget();
                     displayChangeObservable.setChanged();
                     displayChangeObservable.notifyObservers();
                 } catch (IOException ex) {
@@ -207,10 +310,10 @@ public abstract class BasicTileCache<TILE_KEY, TILE_DATA> {
                 } finally {
                     loadingTiles.remove(key);
                     // figure out if there are tiles we need to remove after successful load of a tile
-                    Map<TILE_KEY, TILE_DATA> obsoleteTiles = blockStrategy.chooseObsoleteTiles(nearVolumeInRam, queuedTiles, (BlockTileKey)key);
-                    if (obsoleteTiles != null) {
-                        for (TILE_KEY key : obsoleteTiles.keySet()) {
-                            nearVolumeInRam.remove(key);
+                    Map<TILE_KEY, TILE_DATA> chosenObsoleteTiles = blockStrategy.chooseObsoleteTiles(nearVolumeInRam, queuedTiles, (BlockTileKey)key);
+                    if (chosenObsoleteTiles != null) {
+                        for (TILE_KEY obsoleteKey : chosenObsoleteTiles.keySet()) {
+                            retireTile(obsoleteKey);
                         }
                     }
                     progress.finish();
@@ -236,27 +339,21 @@ public abstract class BasicTileCache<TILE_KEY, TILE_DATA> {
     }
 
     public boolean canDisplay() {
-        if (nearVolumeInRam.isEmpty()) {
-            return false;
-        }
-        if (nearVolumeMetadata.isEmpty()) {
-            return false;
-        }
-        for (TILE_KEY key : nearVolumeMetadata) {
-            if (nearVolumeInRam.containsKey(key)) {
-                return true;
-            }
-        }
-        return false;
+        return !nearVolumeInRam.isEmpty();
     }
 
+    /**
+     * All resident tiles. Called once per frame, when they are all drawn;
+     * their textures count against the GPU budget from then on.
+     */
     public Collection<TILE_DATA> getDisplayedActors() {
+        List<TILE_KEY> keys = new ArrayList<>();
         List<TILE_DATA> result = new ArrayList<>();
-        for (TILE_KEY key : nearVolumeMetadata) {
-            if (nearVolumeInRam.containsKey(key)) {
-                result.add(nearVolumeInRam.get(key));
-            }
+        for (Map.Entry<TILE_KEY, TILE_DATA> entry : nearVolumeInRam.entrySet()) {
+            keys.add(entry.getKey());
+            result.add(entry.getValue());
         }
+        residency.markDisplayed(keys);
         return result;
     }
 
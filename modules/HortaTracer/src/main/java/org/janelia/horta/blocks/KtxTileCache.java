@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.Map;
 import javax.media.opengl.GL3;
 import org.janelia.horta.actors.SortableBlockActor;
+import org.janelia.horta.actors.TetVolumeMeshActor;
 
 /**
  *
@@ -34,10 +35,24 @@ public class KtxTileCache extends BasicTileCache<KtxOctreeBlockTileKey, Sortable
         };
     }
 
+    @Override
+    long getRamBytes(SortableBlockActor tile) {
+        if (tile instanceof TetVolumeMeshActor) {
+            return ((TetVolumeMeshActor) tile).getTextureByteCount();
+        }
+        return 0;
+    }
+
+    @Override
+    long getGpuBytes(SortableBlockActor tile) {
+        // The whole mipmap chain is uploaded as one texture
+        return getRamBytes(tile);
+    }
+
     public void disposeObsoleteTiles(GL3 gl) {
         Collection<SortableBlockActor> obs = popObsoleteTiles();
         for (SortableBlockActor actor : obs) {
-            actor.dispose(gl);
+            discardActor(gl, actor);
         }
     }
 
@@ -47,8 +62,15 @@ public class KtxTileCache extends BasicTileCache<KtxOctreeBlockTileKey, Sortable
 
     private void disposeActorGroup(GL3 gl, Map<KtxOctreeBlockTileKey, SortableBlockActor> group) {
         for (SortableBlockActor actor : group.values()) {
-            actor.dispose(gl);
+            discardActor(gl, actor);
         }
         group.clear();
     }
+
+    private void discardActor(GL3 gl, SortableBlockActor actor) {
+        actor.dispose(gl);
+        if (actor instanceof TetVolumeMeshActor) {
+            ((TetVolumeMeshActor) actor).releaseTextureData();
+        }
+    }
 }
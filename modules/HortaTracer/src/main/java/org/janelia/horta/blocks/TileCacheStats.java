@@ -0,0 +1,103 @@
+package org.janelia.horta.blocks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running statistics of one volume tile cache: resident bytes, how often a
+ * desired tile was already in memory, and how long tile loads take.
+ *
+ * Live instances can be enumerated with getAll(), for display in the
+ * options panel.
+ */
+public class TileCacheStats {
+
+    private static final Map<TileCacheStats, Boolean> LIVE_STATS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final String name;
+    private final TileResidency<?> residency;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    TileCacheStats(String name, TileResidency<?> residency) {
+        this.name = name;
+        this.residency = residency;
+        LIVE_STATS.put(this, Boolean.TRUE);
+    }
+
+    public static List<TileCacheStats> getAll() {
+        synchronized (LIVE_STATS) {
+            return new ArrayList<>(LIVE_STATS.keySet());
+        }
+    }
+
+    void addHit() {
+        hits.incrementAndGet();
+    }
+
+    void addMiss() {
+        misses.incrementAndGet();
+    }
+
+    void addLoad(long nanos) {
+        loads.incrementAndGet();
+        loadNanos.addAndGet(nanos);
+    }
+
+    void addEvictions(int count) {
+        evictions.addAndGet(count);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getResidentTileCount() {
+        return residency.size();
+    }
+
+    public long getResidentRamBytes() {
+        return residency.getRamBytes();
+    }
+
+    public long getResidentGpuBytes() {
+        return residency.getGpuBytes();
+    }
+
+    /**
+     * Fraction of tile requests served from memory; requests for tiles
+     * already queued or loading count as neither hits nor misses.
+     */
+    public double getHitRate() {
+        long requests = hits.get() + misses.get();
+        return requests == 0 ? 0.0 : hits.get() / (double) requests;
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    public double getMeanLoadMs() {
+        long count = loads.get();
+        return count == 0 ? 0.0 : loadNanos.get() / 1e6 / count;
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d tiles, RAM %.1f MB, GPU %.1f MB, hit rate %.1f%%, %d loads averaging %.1f ms, %d evictions",
+                name, getResidentTileCount(), getResidentRamBytes() / 1048576.0, getResidentGpuBytes() / 1048576.0,
+                100.0 * getHitRate(), getLoadCount(), getMeanLoadMs(), getEvictionCount());
+    }
+
+}
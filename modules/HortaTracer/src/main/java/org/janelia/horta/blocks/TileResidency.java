@@ -0,0 +1,133 @@
+package org.janelia.horta.blocks;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Byte accounting and eviction order for the tiles held by a BasicTileCache.
+ *
+ * Each resident tile has a RAM size, and a GPU size that only counts once the
+ * tile has been displayed, since that is when its texture gets uploaded.
+ * When either budget is exceeded, tiles outside the desired set are evicted,
+ * farthest from the focus first, breaking ties in favor of the newest tiles.
+ * Desired tiles are never evicted, as that would only queue them for loading
+ * again; the block chooser keeps that set small.
+ *
+ * @param <K> tile key type
+ */
+class TileResidency<K> {
+
+    private static class Entry {
+        final long ramBytes;
+        final long gpuBytes;
+        boolean onGpu;
+
+        Entry(long ramBytes, long gpuBytes) {
+            this.ramBytes = ramBytes;
+            this.gpuBytes = gpuBytes;
+        }
+    }
+
+    // In the order tiles were added
+    private final Map<K, Entry> entries = new LinkedHashMap<>();
+    private long ramBytes = 0;
+    private long gpuBytes = 0;
+
+    synchronized void add(K key, long tileRamBytes, long tileGpuBytes) {
+        remove(key);
+        entries.put(key, new Entry(tileRamBytes, tileGpuBytes));
+        ramBytes += tileRamBytes;
+    }
+
+    synchronized void remove(K key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        ramBytes -= entry.ramBytes;
+        if (entry.onGpu) {
+            gpuBytes -= entry.gpuBytes;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        ramBytes = 0;
+        gpuBytes = 0;
+    }
+
+    /**
+     * Marks tiles as displayed, so their textures count against the GPU
+     * budget from now on.
+     */
+    synchronized void markDisplayed(Iterable<K> displayedKeys) {
+        for (K key : displayedKeys) {
+            Entry entry = entries.get(key);
+            if (entry != null && !entry.onGpu) {
+                entry.onGpu = true;
+                gpuBytes += entry.gpuBytes;
+            }
+        }
+    }
+
+    synchronized boolean contains(K key) {
+        return entries.containsKey(key);
+    }
+
+    synchronized long getRamBytes() {
+        return ramBytes;
+    }
+
+    synchronized long getGpuBytes() {
+        return gpuBytes;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Chooses tiles to evict so that resident bytes fall within both budgets,
+     * as far as undesired tiles allow, and stops tracking them. A budget of
+     * zero or less is unlimited.
+     *
+     * @param desired tiles currently wanted for display
+     * @param distance distance of a tile from the focus
+     * @return evicted keys, in eviction order
+     */
+    synchronized List<K> evict(Set<K> desired, long ramBudget, long gpuBudget, ToDoubleFunction<K> distance) {
+        List<K> result = new ArrayList<>();
+        if (withinBudget(ramBudget, gpuBudget)) {
+            return result;
+        }
+        List<K> candidates = new ArrayList<>();
+        Map<K, Double> distances = new HashMap<>();
+        for (K key : entries.keySet()) {
+            if (!desired.contains(key)) {
+                candidates.add(key);
+                distances.put(key, distance.applyAsDouble(key));
+            }
+        }
+        // stable, so equally distant tiles go oldest first
+        candidates.sort(Comparator.comparing((K key) -> -distances.get(key)));
+        for (K key : candidates) {
+            if (withinBudget(ramBudget, gpuBudget)) {
+                break;
+            }
+            remove(key);
+            result.add(key);
+        }
+        return result;
+    }
+
+    private boolean withinBudget(long ramBudget, long gpuBudget) {
+        return (ramBudget <= 0 || ramBytes <= ramBudget) && (gpuBudget <= 0 || gpuBytes <= gpuBudget);
+    }
+
+}
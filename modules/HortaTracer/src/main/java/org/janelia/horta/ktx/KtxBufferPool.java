@@ -0,0 +1,126 @@
+package org.janelia.horta.ktx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Size-classed pool of direct buffers for KTX mipmap data.
+ *
+ * Buffers have power-of-two capacities, with the limit set to the requested
+ * size, so consumers must use limit() or remaining() rather than capacity().
+ * The pool holds no reference to buffers in use: one that is never released
+ * is simply garbage collected. release() ignores buffers that cannot have
+ * come from the pool, such as read-only memory-mapped mipmaps, and double
+ * releases. Idle buffers are kept up to a total byte limit, beyond which
+ * released buffers are left to the garbage collector.
+ */
+public class KtxBufferPool {
+
+    private static final int MIN_CLASS_BITS = 12; // 4 kB
+    private static final long DEFAULT_IDLE_BYTES = 512L * 1024 * 1024;
+
+    private static final KtxBufferPool INSTANCE = new KtxBufferPool(DEFAULT_IDLE_BYTES);
+
+    private final long maxIdleBytes;
+    private final Deque<ByteBuffer>[] idleBySizeClass;
+    private final Set<ByteBuffer> idle = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long idleBytes = 0;
+    private long allocatedBytes = 0;
+    private long allocationCount = 0;
+    private long reuseCount = 0;
+
+    public static KtxBufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    @SuppressWarnings("unchecked")
+    KtxBufferPool(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+        this.idleBySizeClass = new Deque[32];
+        for (int i = 0; i < idleBySizeClass.length; ++i) {
+            idleBySizeClass[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @return a direct buffer with position zero and limit byteCount; its
+     * contents are undefined
+     */
+    public synchronized ByteBuffer acquire(int byteCount) {
+        int sizeClass = sizeClass(byteCount);
+        ByteBuffer buffer = idleBySizeClass[sizeClass].pollFirst();
+        if (buffer != null) {
+            idle.remove(buffer);
+            idleBytes -= buffer.capacity();
+            reuseCount++;
+        } else if (sizeClass >= 31) {
+            // Too large to round up; allocate exactly, and never pool it
+            buffer = ByteBuffer.allocateDirect(byteCount);
+            allocatedBytes += byteCount;
+            allocationCount++;
+        } else {
+            buffer = ByteBuffer.allocateDirect(1 << sizeClass);
+            allocatedBytes += buffer.capacity();
+            allocationCount++;
+        }
+        buffer.clear();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.limit(byteCount);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from acquire() to the pool. The caller must
+     * not use the buffer afterwards.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.isReadOnly()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_CLASS_BITS)) {
+            return;
+        }
+        if (idle.contains(buffer)) {
+            return; // already released
+        }
+        if (idleBytes + capacity > maxIdleBytes) {
+            return;
+        }
+        idleBySizeClass[sizeClass(capacity)].addFirst(buffer);
+        idle.add(buffer);
+        idleBytes += capacity;
+    }
+
+    /**
+     * Total bytes of direct memory allocated by this pool so far.
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    public synchronized long getReuseCount() {
+        return reuseCount;
+    }
+
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    private static int sizeClass(int byteCount) {
+        if (byteCount <= (1 << MIN_CLASS_BITS)) {
+            return MIN_CLASS_BITS;
+        }
+        return 32 - Integer.numberOfLeadingZeros(byteCount - 1);
+    }
+
+}
@@ -3,6 +3,13 @@ package org.janelia.horta.ktx;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,6 +17,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * KTX texture data: the header, and one direct buffer per mipmap level.
+ *
+ * Mipmaps are read straight into direct buffers from KtxBufferPool. When the
+ * data comes from a local file, the file is memory mapped instead and each
+ * mipmap is a read-only slice of the mapping, with no copy at all. Call
+ * release() once the data will not be used again, to return pooled buffers.
  *
  * @author brunsc
  */
@@ -20,64 +33,121 @@ public class KtxData {
     public final KtxHeader header = new KtxHeader();
     public final List<ByteBuffer> mipmaps = new ArrayList<>();
 
-    private final byte[] unused = new byte[4]; // for bulk reading of unused padding bytes
     private final ByteBuffer sizeBuf = ByteBuffer.allocate(4); // to hold binary representation of image size
+    private final ByteBuffer paddingBuf = ByteBuffer.allocate(3);
 
     public void loadStream(InputStream stream) throws IOException, InterruptedException {
         if (stream != null) {
-            try {
-                header.loadStream(stream);
-            } catch (IOException e) {
+            // For a plain FileInputStream this is the stream's own FileChannel
+            loadChannel(Channels.newChannel(stream));
+        }
+    }
+
+    public void loadFile(Path path) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            loadChannel(channel);
+        }
+    }
+
+    public void loadChannel(ReadableByteChannel channel) throws IOException, InterruptedException {
+        try {
+            header.loadChannel(channel);
+        } catch (ClosedByInterruptException e) {
+            throw new InterruptedException("Interrupted while loading the KTX header");
+        } catch (IOException e) {
+            if (Thread.currentThread().isInterrupted()) {
                 throw new InterruptedException("Interrupted while loading the KTX header");
             }
-            sizeBuf.order(header.byteOrder);
-            mipmaps.clear();
+            throw e;
+        }
+        sizeBuf.order(header.byteOrder);
+        release();
+        if (channel instanceof FileChannel) {
+            mapMipmaps((FileChannel) channel);
+        } else {
             for (int m = 0; m < header.numberOfMipmapLevels; ++m) {
-                mipmaps.add(loadOneMipmap(stream, m));
+                mipmaps.add(loadOneMipmap(channel, m));
             }
         }
     }
 
-    private ByteBuffer loadOneMipmap(InputStream stream, int mipmapLevel) throws IOException, InterruptedException {
+    /**
+     * Returns pooled mipmap buffers to KtxBufferPool, and forgets all mipmaps.
+     */
+    public void release() {
+        for (ByteBuffer mipmap : mipmaps) {
+            KtxBufferPool.getInstance().release(mipmap);
+        }
+        mipmaps.clear();
+    }
+
+    /**
+     * Total bytes of mipmap data.
+     */
+    public long getMipmapByteCount() {
+        long result = 0;
+        for (ByteBuffer mipmap : mipmaps) {
+            result += mipmap.limit();
+        }
+        return result;
+    }
+
+    private void mapMipmaps(FileChannel channel) throws IOException {
+        long start = channel.position();
+        MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, start, channel.size() - start);
+        mapping.order(header.byteOrder);
+        for (int m = 0; m < header.numberOfMipmapLevels; ++m) {
+            if (mapping.remaining() < 4) {
+                throw new IOException("Error reading size of mipmap level " + (m + 1));
+            }
+            int imageSize = (int) ((long) mapping.getInt() & 0xffffffffL);
+            if (imageSize < 1 || imageSize > mapping.remaining()) {
+                throw new IOException("Error reading bytes for mipmap level " + (m + 1));
+            }
+            ByteBuffer mipmap = mapping.slice();
+            mipmap.limit(imageSize);
+            mipmaps.add(mipmap);
+            int padding = 3 - ((imageSize + 3) % 4);
+            mapping.position(Math.min(mapping.limit(), mapping.position() + imageSize + padding));
+        }
+        channel.position(start + mapping.position());
+        LOG.debug("Mapped {} mipmap levels from file, {} bytes", mipmaps.size(), getMipmapByteCount());
+    }
+
+    private ByteBuffer loadOneMipmap(ReadableByteChannel channel, int mipmapLevel) throws IOException, InterruptedException {
         int imageSize;
-        int bytesRead;
-        byte[] b;
         try {
-            stream.read(sizeBuf.array());
-            sizeBuf.rewind();
+            sizeBuf.clear();
+            KtxHeader.readFully(channel, sizeBuf);
             imageSize = (int) ((long) sizeBuf.getInt() & 0xffffffffL);
-            // TODO: figure out how to stream straight into the direct buffer
-            // For now, copy into the direct buffer
-            b = new byte[imageSize];
-            bytesRead = stream.read(b, 0, imageSize);
-        } catch (Exception e) {
-            // this exception most likely occurred because of an interruption
+        } catch (ClosedByInterruptException e) {
             throw new InterruptedException("Interrupted the loading of mipmap level " + (mipmapLevel + 1));
+        } catch (IOException e) {
+            throw new IOException("Error reading size of mipmap level " + (mipmapLevel + 1), e);
         }
-        if (bytesRead < 1) {
+        if (imageSize < 1) {
             throw new IOException("Error reading bytes for mipmap level " + (mipmapLevel + 1));
         }
-        while (bytesRead < imageSize) {
-            int moreBytes = stream.read(b, bytesRead, imageSize - bytesRead);
-            if (moreBytes < 1) {
-                throw new IOException("Error reading mipmap number " + mipmapLevel);
+        // Read straight into a DIRECT buffer for later efficient slurping into OpenGL
+        ByteBuffer mipmap = KtxBufferPool.getInstance().acquire(imageSize);
+        try {
+            KtxHeader.readFully(channel, mipmap);
+            int padding = 3 - ((imageSize + 3) % 4);
+            if (padding > 0) {
+                paddingBuf.clear();
+                paddingBuf.limit(padding);
+                KtxHeader.readFully(channel, paddingBuf);
             }
-            bytesRead += moreBytes;
-        }
-        if (bytesRead != imageSize) {
-            throw new IOException("Error reading mipmap number " + mipmapLevel);
-        }
-        // Use a DIRECT buffer for later efficient slurping into OpenGL
-        final boolean useDirect = true;
-        ByteBuffer mipmap;
-        if (useDirect) {
-            mipmap = ByteBuffer.allocateDirect(imageSize);
-            mipmap.put(b);
-        } else {
-            mipmap = ByteBuffer.wrap(b);
+        } catch (ClosedByInterruptException e) {
+            KtxBufferPool.getInstance().release(mipmap);
+            throw new InterruptedException("Interrupted the loading of mipmap level " + (mipmapLevel + 1));
+        } catch (IOException e) {
+            KtxBufferPool.getInstance().release(mipmap);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("Interrupted the loading of mipmap level " + (mipmapLevel + 1));
+            }
+            throw new IOException("Error reading mipmap number " + mipmapLevel, e);
         }
-        int padding = 3 - ((imageSize + 3) % 4);
-        stream.read(unused, 0, padding);
         return mipmap;
     }
 
@@ -1,9 +1,12 @@
 package org.janelia.horta.ktx;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -44,16 +47,26 @@ public class KtxHeader {
     public Map<String, String> keyValueMetadata = new LinkedHashMap<>(); // must preserve key order!
     
     public void loadStream(InputStream stream) throws IOException {
+        // The channel adapter reads no further than asked, so the stream is
+        // left positioned at the first mipmap
+        loadChannel(Channels.newChannel(stream));
+    }
+
+    public void loadChannel(ReadableByteChannel channel) throws IOException {
         // https://www.khronos.org/opengles/sdk/tools/KTX/file_format_spec/
+        ByteBuffer prefix = ByteBuffer.allocate(16);
+        try {
+            readFully(channel, prefix);
+        } catch (EOFException e) {
+            throw new IOException("Could not read KTX header identifier", e);
+        }
         byte[] identifier = new byte[12];
-        int readCount = stream.read(identifier, 0, 12);
-        if (readCount != 12)
-            throw new IOException("Could not read KTX header identifier");
+        prefix.get(identifier);
         if (! Arrays.equals(identifier, IDENTIFIER))
             throw new IOException("KTX header identifier mismatch");
         
         byte[] endian = new byte[4];
-        stream.read(endian, 0, 4);
+        prefix.get(endian);
         if (Arrays.equals(endian, LITTLE_ENDIAN))
             byteOrder = ByteOrder.LITTLE_ENDIAN;
         else if (Arrays.equals(endian, BIG_ENDIAN))
@@ -65,9 +78,10 @@ public class KtxHeader {
         // Read a sequence of unsigned 32 bit ints
         int expected_read_size = 4 * 12; // twelve ints, to be exact
         ByteBuffer b = ByteBuffer.allocate(expected_read_size);
-        int read_size = stream.read(b.array());
-        if (read_size != expected_read_size) {
-            throw new IOException("Error reading KTX integer parameters from stream");
+        try {
+            readFully(channel, b);
+        } catch (EOFException e) {
+            throw new IOException("Error reading KTX integer parameters from stream", e);
         }
         b.order(byteOrder);
         b.rewind();
@@ -85,9 +99,10 @@ public class KtxHeader {
         
         int bytes_of_key_value_data = (int)((long)b.getInt() & 0xffffffffL); // unsigned so &0xffffffffL
         ByteBuffer kv = ByteBuffer.allocate(bytes_of_key_value_data);
-        read_size = stream.read(kv.array());
-        if (read_size != bytes_of_key_value_data) {
-            throw new IOException("Error reading KTX key-value metadata from stream");
+        try {
+            readFully(channel, kv);
+        } catch (EOFException e) {
+            throw new IOException("Error reading KTX key-value metadata from stream", e);
         }
         kv.order(byteOrder);
         kv.rewind();
@@ -106,5 +121,17 @@ public class KtxHeader {
             keyValueMetadata.put(key, value);
         }
     }
+
+    /**
+     * Fills the remainder of a buffer from a channel, then flips it for reading.
+     */
+    static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of KTX data");
+            }
+        }
+        buffer.flip();
+    }
     
 }
@@ -1,8 +1,8 @@
 package org.janelia.horta.loader;
 
 import org.janelia.console.viewerapi.model.ImageColorModel;
+import org.janelia.geometry3d.Box3;
 import org.janelia.geometry3d.PerspectiveCamera;
-import org.janelia.geometry3d.Vector3;
 import org.janelia.gltools.material.VolumeMipMaterial;
 import org.janelia.gltools.texture.Texture3d;
 import org.janelia.horta.BrainTileInfo;
@@ -12,6 +12,7 @@ import org.janelia.horta.volume.BrickActor;
 import org.janelia.horta.volume.BrickInfo;
 import org.janelia.horta.volume.BrickInfoSet;
 import org.janelia.horta.volume.StaticVolumeBrickSource;
+import org.janelia.horta.volume.VoxelIndex;
 import org.netbeans.api.progress.ProgressHandle;
 import org.netbeans.api.progress.ProgressHandleFactory;
 import org.openide.util.Exceptions;
@@ -21,76 +22,57 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.swing.*;
-import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.prefs.PreferenceChangeEvent;
 import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
 
 /**
- * Keeps in memory a configurable number of nearby volume tiles.
+ * Keeps in memory the volume tiles nearest the focus, within RAM and GPU
+ * byte budgets set in the tile loading options.
  * Manages transfer of volume imagery:
- *   A) from disk/network, 
- *   B) to RAM, 
+ *   A) from disk/network,
+ *   B) to RAM,
  *   C) and thence to GPU video memory
- * 
+ *
+ * Which tiles go where is decided by a RawTileResidency; this class carries
+ * out its decisions.
+ *
  * TODO: Trim tiles to non-overlapping subvolumes before processing.
- * 
+ *
  * @author brunsc
  */
 public class HortaVolumeCache {
     private static final Logger LOG = LoggerFactory.getLogger(HortaVolumeCache.class);
 
-    private int ramTileCount = 3; // Three is better than two for tile availability
-    private int gpuTileCount = 1;
+    // Tiles near the focus considered for residency, beyond those that fit in the RAM budget
+    private static final int EXTRA_CANDIDATE_COUNT = 6;
+    private static final int MAX_CANDIDATE_COUNT = 64;
+
     private final PerspectiveCamera camera;
     private StaticVolumeBrickSource source = null;
 
-    // Lightweight metadata
-    private final Collection<BrickInfo> nearVolumeMetadata = new ConcurrentSkipListSet<>((t1, t2) -> {
-        // dummmy comparator that simply looks at the X coordinate of the centroid
-        Vector3 c1 = t1.getBoundingBox().getCentroid();
-        Vector3 c2 = t2.getBoundingBox().getCentroid();
-        if (c1.getX() < c2.getX()) {
-            return -1;
-        } else if (c1.getX() > c2.getX()) {
-            return 1;
-        } else {
-            return 0;
-        }
-    });
+    private final RawTileResidency<BrickInfo> residency;
 
     // Large in-memory cache
     private final Map<BrickInfo, Texture3d> nearVolumeInRam = new ConcurrentHashMap<>();
 
-    private final Map<BrickInfo, RequestProcessor.Task> queuedTiles = new ConcurrentHashMap<>();
-    private final Map<BrickInfo, RequestProcessor.Task> loadingTiles = new ConcurrentHashMap<>();
+    // Queued and running loads; guarded by residency
+    private final Map<BrickInfo, RequestProcessor.Task> loadTasks = new HashMap<>();
 
     // Fewer on GPU cache
     private final Map<BrickInfo, BrickActor> actualDisplayTiles = new ConcurrentHashMap<>();
-    private final Collection<BrickInfo> desiredDisplayTiles = new ConcurrentSkipListSet<>((t1, t2) -> {
-        // dummmy comparator that simply looks at the X coordinate of the centroid
-        Vector3 c1 = t1.getBoundingBox().getCentroid();
-        Vector3 c2 = t2.getBoundingBox().getCentroid();
-        if (c1.getX() < c2.getX()) {
-            return -1;
-        } else if (c1.getX() > c2.getX()) {
-            return 1;
-        } else {
-            return 0;
-        }
-    });
-    
+
     // To enable/disable loading
     private boolean doUpdateCache = true;
-    
+
     // Cache camera data for early termination
     private float cachedFocusX = Float.NaN;
     private float cachedFocusY = Float.NaN;
     private float cachedFocusZ = Float.NaN;
     private float cachedZoom = Float.NaN;
+    private float[] cachedViewMatrix = null;
 
     private RequestProcessor loadProcessor;
     private final ImageColorModel imageColorModel;
@@ -98,7 +80,7 @@ public class HortaVolumeCache {
     private final Collection<TileDisplayObserver> observers = new java.util.concurrent.ConcurrentLinkedQueue<>();
     private int currentColorChannel;
 
-    public HortaVolumeCache(final PerspectiveCamera camera, 
+    public HortaVolumeCache(final PerspectiveCamera camera,
                             final ImageColorModel imageColorModel,
                             final VolumeMipMaterial.VolumeState volumeState,
                             int currentColorChannel)
@@ -115,16 +97,20 @@ public class HortaVolumeCache {
         String concurrentLoadsStr = pref.get(TileLoadingPanel.PREFERENCE_CONCURRENT_LOADS, TileLoadingPanel.PREFERENCE_CONCURRENT_LOADS_DEFAULT);
         setConcurrentLoads(concurrentLoadsStr);
 
-        String ramTileCountStr = pref.get(TileLoadingPanel.PREFERENCE_RAM_TILE_COUNT, TileLoadingPanel.PREFERENCE_RAM_TILE_COUNT_DEFAULT);
-        setRamTileCount(ramTileCountStr);
+        residency = new RawTileResidency<>(new BrickGeometry(),
+                parseBudget(pref.get(TileLoadingPanel.PREFERENCE_RAW_TILE_RAM_BUDGET_MB, TileLoadingPanel.PREFERENCE_RAW_TILE_RAM_BUDGET_MB_DEFAULT)),
+                parseBudget(pref.get(TileLoadingPanel.PREFERENCE_RAW_TILE_GPU_BUDGET_MB, TileLoadingPanel.PREFERENCE_RAW_TILE_GPU_BUDGET_MB_DEFAULT)));
 
         pref.addPreferenceChangeListener(new PreferenceChangeListener() {
             public void preferenceChange(PreferenceChangeEvent evt) {
                 if (evt.getKey().equals(TileLoadingPanel.PREFERENCE_CONCURRENT_LOADS)) {
                     setConcurrentLoads(evt.getNewValue());
                 }
-                else if (evt.getKey().equals(TileLoadingPanel.PREFERENCE_RAM_TILE_COUNT)) {
-                    setRamTileCount(evt.getNewValue());
+                else if (evt.getKey().equals(TileLoadingPanel.PREFERENCE_RAW_TILE_RAM_BUDGET_MB)) {
+                    setRamBudgetBytes(parseBudget(evt.getNewValue()));
+                }
+                else if (evt.getKey().equals(TileLoadingPanel.PREFERENCE_RAW_TILE_GPU_BUDGET_MB)) {
+                    setGpuBudgetBytes(parseBudget(evt.getNewValue()));
                 }
             }
         });
@@ -139,19 +125,22 @@ public class HortaVolumeCache {
         loadProcessor = new RequestProcessor("VolumeTileLoad", loadThreads, true);
     }
 
-    private void setRamTileCount(String preferenceValue) {
-        this.ramTileCount = Integer.parseInt(preferenceValue);
-        LOG.info("Configuring ramTileCount={}", ramTileCount);
+    private static long parseBudget(String megabytes) {
+        try {
+            return Long.parseLong(megabytes.trim()) * 1024L * 1024L;
+        } catch (NumberFormatException e) {
+            return 0; // unlimited
+        }
     }
 
-    public void registerLoneDisplayedTile(BrickActor actor) 
+    public void registerLoneDisplayedTile(BrickActor actor)
     {
         if (actualDisplayTiles.containsKey(actor.getBrainTile()))
             return;
         Texture3d texture = ((VolumeMipMaterial)actor.getMaterial()).getTexture();
-        synchronized(actualDisplayTiles) {
-            nearVolumeMetadata.clear();
-            nearVolumeMetadata.add(actor.getBrainTile());
+        synchronized(residency) {
+            cancelAllLoads();
+            residency.registerDisplayedTile(actor.getBrainTile());
             nearVolumeInRam.clear();
             nearVolumeInRam.put(actor.getBrainTile(), texture);
             actualDisplayTiles.clear();
@@ -160,11 +149,15 @@ public class HortaVolumeCache {
     }
 
     public void clearAllTiles() {
-        nearVolumeMetadata.clear();
-        nearVolumeInRam.clear();
-        actualDisplayTiles.clear();
+        synchronized(residency) {
+            cancelAllLoads();
+            residency.clear();
+            nearVolumeInRam.clear();
+            actualDisplayTiles.clear();
+            cachedViewMatrix = null;
+        }
     }
-    
+
     public boolean isUpdateCache() {
         return doUpdateCache;
     }
@@ -174,20 +167,35 @@ public class HortaVolumeCache {
             return; // no change
         this.doUpdateCache = doUpdateCache;
         if (this.doUpdateCache) {
+            cachedViewMatrix = null; // loads may have been skipped
             updateLocation(); // Begin any pending loads
         }
     }
-    
+
     public void toggleUpdateCache() {
         setUpdateCache(! isUpdateCache());
     }
-    
-    public int getRamTileCount() {
-        return ramTileCount;
+
+    public long getRamBudgetBytes() {
+        return residency.getRamBudgetBytes();
+    }
+
+    public void setRamBudgetBytes(long ramBudgetBytes) {
+        LOG.info("Configuring raw tile RAM budget={} bytes", ramBudgetBytes);
+        residency.setBudgets(ramBudgetBytes, residency.getGpuBudgetBytes());
+        cachedViewMatrix = null;
+        updateLocation();
+    }
+
+    public long getGpuBudgetBytes() {
+        return residency.getGpuBudgetBytes();
     }
 
-    public void setRamTileCount(int ramTileCount) {
-        this.ramTileCount = ramTileCount;
+    public void setGpuBudgetBytes(long gpuBudgetBytes) {
+        LOG.info("Configuring raw tile GPU budget={} bytes", gpuBudgetBytes);
+        residency.setBudgets(residency.getRamBudgetBytes(), gpuBudgetBytes);
+        cachedViewMatrix = null;
+        updateLocation();
     }
 
     public StaticVolumeBrickSource getSource() {
@@ -198,34 +206,28 @@ public class HortaVolumeCache {
         this.source = source;
     }
 
-    public int getGpuTileCount() {
-        return gpuTileCount;
-    }
-
-    public void setGpuTileCount(int videoTileCount) {
-        this.gpuTileCount = videoTileCount;
-    }
-    
     private void updateLocation() {
         updateLocation(camera);
     }
-    
+
     private void updateLocation(PerspectiveCamera cam) {
         float[] focusXyz = cam.getVantage().getFocus();
         float zoom = cam.getVantage().getSceneUnitsPerViewportHeight();
         updateLocation(focusXyz, zoom);
     }
-    
+
     private void updateLocation(float[] xyz, float zoom)
     {
         if (! doUpdateCache)
             return;
 
         // Cache previous location for early termination
+        float[] viewMatrix = camera.getViewMatrix().asArray();
         if (xyz[0] == cachedFocusX
                 && xyz[1] == cachedFocusY
                 && xyz[2] == cachedFocusZ
-                && zoom == cachedZoom) 
+                && zoom == cachedZoom
+                && Arrays.equals(viewMatrix, cachedViewMatrix))
         {
             return; // no important change to camera
         }
@@ -233,224 +235,191 @@ public class HortaVolumeCache {
         cachedFocusY = xyz[1];
         cachedFocusZ = xyz[2];
         cachedZoom = zoom;
+        cachedViewMatrix = viewMatrix.clone();
 
         if (source == null) {
             return;
         }
-        
+
         // Find the metadata for the closest volume tiles
         BrickInfoSet allBricks = NeuronTraceLoader.getBricksForCameraResolution(source, camera);
-        Collection<BrickInfo> closestBricks = allBricks.getClosestBricks(xyz, ramTileCount);
-        Collection<BrickInfo> veryClosestBricks = allBricks.getClosestBricks(xyz, gpuTileCount);
-
-        synchronized(desiredDisplayTiles) {
-            desiredDisplayTiles.clear();
-            desiredDisplayTiles.addAll(veryClosestBricks);
+        Collection<BrickInfo> candidates = allBricks.getClosestBricks(xyz, getCandidateCount(allBricks, xyz));
+        if (candidates == null) {
+            return;
         }
+        final ViewFrustum frustum = ViewFrustum.fromCamera(camera);
+        final BrickGeometry geometry = new BrickGeometry();
 
-        // Compare to cached list of tile metadata
-        // Create list of new and obsolete tiles
-        Collection<BrickInfo> obsoleteBricks = new ArrayList<>();
-        Collection<BrickInfo> newBricks = new ArrayList<>();
-        for (BrickInfo brickInfo : nearVolumeMetadata) {
-            if (closestBricks.contains(brickInfo)) 
-                continue;
-            obsoleteBricks.add(brickInfo);
+        synchronized(residency) {
+            applyEvents(residency.update(xyz, candidates,
+                    brick -> frustum.intersectsBox(geometry.getMin(brick), geometry.getMax(brick))));
         }
-        for (BrickInfo brickInfo : closestBricks) {
-            if (nearVolumeMetadata.contains(brickInfo))
-                continue;
-            newBricks.add(brickInfo);
+    }
+
+    // Enough nearby tiles to fill the RAM budget, and a few more to choose from
+    private int getCandidateCount(BrickInfoSet allBricks, float[] xyz) {
+        int count = MAX_CANDIDATE_COUNT;
+        long ramBudget = residency.getRamBudgetBytes();
+        Collection<BrickInfo> nearest = allBricks.getClosestBricks(xyz, 1);
+        if (ramBudget > 0 && nearest != null && !nearest.isEmpty()) {
+            long tileBytes = Math.max(BrickGeometry.getByteCount(nearest.iterator().next()), 1);
+            count = (int) Math.min(ramBudget / tileBytes + EXTRA_CANDIDATE_COUNT, MAX_CANDIDATE_COUNT);
         }
-        
-        // Update local cache
-        nearVolumeMetadata.removeAll(obsoleteBricks);
-        nearVolumeMetadata.addAll(newBricks);
-        // but don't update new tiles in ram until they are loaded
-
-        // Upload closest tiles to GPU, if already loaded in RAM
-        for (BrickInfo brick : desiredDisplayTiles) { // These are the tiles we want do display right now.
-            BrainTileInfo tile = (BrainTileInfo)brick;
-            if (actualDisplayTiles.containsKey(brick)) {// Is it already displayed?
-                LOG.debug("Already displaying: "+tile.getTileRelativePath());
-                continue; // already loaded
-            }
-            if (nearVolumeInRam.containsKey(brick)) { // Is the texture ready?
-                LOG.debug("Already in RAM: "+tile.getTileRelativePath());
-                uploadToGpu((BrainTileInfo)brick); // then display it!
+        return Math.min(count, allBricks.size());
+    }
+
+    /**
+     * Carries out residency decisions. Called with the residency lock held,
+     * so that decisions are carried out in the order they were made.
+     */
+    private void applyEvents(List<RawTileResidency.Event<BrickInfo>> events) {
+        BrickActor uploaded = null;
+        boolean hidden = false;
+        for (RawTileResidency.Event<BrickInfo> event : events) {
+            BrainTileInfo tile = (BrainTileInfo) event.tile;
+            LOG.debug("{} {}", event.action, tile.getTileRelativePath());
+            switch (event.action) {
+                case LOAD:
+                    queueLoad(tile, Thread.NORM_PRIORITY);
+                    break;
+                case PRELOAD:
+                case PREFETCH:
+                    queueLoad(tile, Thread.MIN_PRIORITY);
+                    break;
+                case CANCEL:
+                    RequestProcessor.Task task = loadTasks.remove(tile);
+                    if (task != null) {
+                        LOG.info("Cancelling load for {}", tile.getTileRelativePath());
+                        task.cancel();
+                    }
+                    break;
+                case UPLOAD:
+                    BrickActor actor = uploadToGpu(tile);
+                    if (actor != null) {
+                        uploaded = actor;
+                        fireUpdateInEDT(actor);
+                    }
+                    break;
+                case HIDE:
+                    actualDisplayTiles.remove(tile);
+                    hidden = true;
+                    break;
+                case EVICT:
+                    LOG.info("Removing from RAM: {}", tile.getTileRelativePath());
+                    nearVolumeInRam.remove(tile);
+                    break;
+                case DISCARD:
+                    LOG.info("Load was no longer needed for: {}", tile.getTileRelativePath());
+                    break;
             }
         }
-        
-        // Begin loading the new tiles asynchronously to RAM
-        // ...starting with the ones we want to display right now
-        for (BrickInfo brick : desiredDisplayTiles) {
-            BrainTileInfo tile = (BrainTileInfo)brick;
-            if (actualDisplayTiles.containsKey(brick)) {// Is it already displayed?
-                continue; // already displayed
+        if (hidden && uploaded == null) {
+            // Observers drop hidden tiles when told about any displayed one
+            Iterator<BrickActor> displayed = actualDisplayTiles.values().iterator();
+            if (displayed.hasNext()) {
+                fireUpdateInEDT(displayed.next());
             }
-            if (nearVolumeInRam.containsKey(brick)) { // Is the texture already loaded in RAM?
-                continue; // already loaded
-            }
-            LOG.debug("Queueing brick with norm priority: "+tile.getTileRelativePath());
-            queueLoad(tile, Thread.NORM_PRIORITY);
         }
-        for (BrickInfo brick : newBricks) {
-            BrainTileInfo tile = (BrainTileInfo)brick;
-            LOG.debug("Queueing brick with min priority: "+tile.getTileRelativePath());
-            queueLoad(tile, Thread.MIN_PRIORITY); // Don't worry; duplicates will be skipped
+        if (!events.isEmpty()) {
+            LOG.debug("Raw tiles resident: {} MB RAM, {} MB GPU",
+                    residency.getRamBytes() / 1048576, residency.getGpuBytes() / 1048576);
         }
+    }
 
-        // Begin deleting the old tiles        
-        for (BrickInfo brick : obsoleteBricks) {
-            BrainTileInfo tile = (BrainTileInfo)brick;
-            LOG.info("Removing from RAM: "+tile.getTileRelativePath());
-            nearVolumeInRam.remove(brick);
+    private void cancelAllLoads() {
+        for (RequestProcessor.Task task : loadTasks.values()) {
+            task.cancel();
         }
+        loadTasks.clear();
     }
-    
-    private void queueLoad(final BrainTileInfo tile, int priority) 
+
+    private void queueLoad(final BrainTileInfo tile, int priority)
     {
-        if (! doUpdateCache)
-            return;
+        TileLoad load = new TileLoad(tile);
+        RequestProcessor.Task task = loadProcessor.create(load);
+        load.task = task;
+        loadTasks.put(tile, task);
+        LOG.info("Queueing brick {} with priority {} (loads={})", tile.getTileRelativePath(), priority, loadTasks.size());
+        task.setPriority(priority);
+        task.schedule(0);
+    }
 
-        if (loadingTiles.containsKey(tile))
-            return; // already loading
+    private class TileLoad implements Runnable {
+        private final BrainTileInfo tile;
+        private RequestProcessor.Task task;
 
-        Runnable loadTask = new Runnable() {
-            @Override
-            public void run() {
+        TileLoad(BrainTileInfo tile) {
+            this.tile = tile;
+        }
 
-                LOG.info("Beginning load for {}", tile.getTileRelativePath());
+        @Override
+        public void run() {
+            LOG.info("Beginning load for {}", tile.getTileRelativePath());
 
+            Texture3d tileTexture = null;
+            ProgressHandle progress = ProgressHandleFactory.createHandle("Loading Tile " + tile.getTileRelativePath() + " ...");
+            try {
                 if (Thread.currentThread().isInterrupted()) {
                     LOG.info("loadTask was interrupted before it began");
-                    queuedTiles.remove(tile);
                     return;
                 }
-
-                // Move from "queued" to "loading" state
-                synchronized(queuedTiles) {
-                    RequestProcessor.Task task = queuedTiles.get(tile);
-                    if (task==null) {
-                        LOG.warn("Tile has no task: "+tile.getTileRelativePath());
-                        return;
-                    }
-                    loadingTiles.put(tile, task);
-                    queuedTiles.remove(tile);
+                if (!isCurrent() || !doUpdateCache) {
+                    return;
                 }
 
-                ProgressHandle progress = ProgressHandleFactory.createHandle("Loading Tile " + tile.getTileRelativePath() + " ...");
-
-                try {
-                    // should we throttle to slow down loading of too many tiles if user is moving a lot?
-                    if (! nearVolumeMetadata.contains(tile)) {
-                        return;
-                    }
-
-                    if (!doUpdateCache) {
-                        return;
-                    }
-
-                    progress.start();
-                    progress.setDisplayName("Loading Tile " + tile.getTileRelativePath() + " ...");
-                    progress.switchToIndeterminate();
-                    Texture3d tileTexture = tile.loadBrick(10, currentColorChannel, source.getFileType().getExtension());
-                    if (tileTexture != null) {
-                        if (nearVolumeMetadata.contains(tile)) { // Make sure this tile is still desired after loading
-                            nearVolumeInRam.put(tile, tileTexture);
-                            // Trigger GPU upload, if appropriate
-                            if (desiredDisplayTiles.contains(tile)) {
-                                // Trigger GPU upload
-                                uploadToGpu(tile);
-                            }
-                        }
-                    }
-                    else {
-                        LOG.info("Load was interrupted for: {}", tile.getTileRelativePath());
-                    }
-                } catch (Exception ex) {
-                    Exceptions.printStackTrace(ex);
+                progress.start();
+                progress.setDisplayName("Loading Tile " + tile.getTileRelativePath() + " ...");
+                progress.switchToIndeterminate();
+                tileTexture = tile.loadBrick(10, currentColorChannel, source.getFileType().getExtension());
+                if (tileTexture == null) {
+                    LOG.info("Load was interrupted for: {}", tile.getTileRelativePath());
                 }
-                finally {
-                    loadingTiles.remove(tile);
-                    progress.finish();
-                }
-            };
-        };
-        // Submit load task asynchronously
-        int start_lag = 0; // milliseconds
-        if (priority < Thread.NORM_PRIORITY) {
-            start_lag = 0;
+            } catch (Exception ex) {
+                Exceptions.printStackTrace(ex);
+            }
+            finally {
+                finishLoad(tileTexture);
+                progress.finish();
+            }
         }
 
-        synchronized (queuedTiles) {
-            if (priority == Thread.NORM_PRIORITY) {
-                LOG.debug("Cancelling all current tasks to make room for {}", tile.getTileRelativePath());
-                // Cancel all current tasks so that this one can execute with haste
-                if (expediteTileLoad(queuedTiles, tile)) return;
-                if (expediteTileLoad(loadingTiles, tile)) return;
+        private boolean isCurrent() {
+            synchronized(residency) {
+                return loadTasks.get(tile) == task;
             }
-            LOG.info("Queueing brick {} with priority {} (queued={}, loading={})", tile.getTileRelativePath(),priority, queuedTiles.size(), loadingTiles.size());
-            queuedTiles.put(tile, loadProcessor.post(loadTask, start_lag, priority));
         }
-    }
 
-    private boolean expediteTileLoad(Map<BrickInfo, RequestProcessor.Task> taskMap, BrainTileInfo wantedTile) {
-        // Walk the map and abort if the given wanted tile is already there. Cancel any other tasks that may be in its way.
-        for(Iterator<Map.Entry<BrickInfo, RequestProcessor.Task>> iterator = taskMap.entrySet().iterator(); iterator.hasNext(); ) {
-            Map.Entry<BrickInfo, RequestProcessor.Task> entry = iterator.next();
-            BrainTileInfo tileToCancel = (BrainTileInfo)entry.getKey();
-            RequestProcessor.Task task = entry.getValue();
-            if (tileToCancel.equals(wantedTile) && task.getPriority()==Thread.NORM_PRIORITY) {
-                // The tile we want is already loading at the correct priority
-                LOG.debug("Tile is already in flight: {}", tileToCancel.getTileRelativePath());
-                return true;
+        private void finishLoad(Texture3d tileTexture) {
+            synchronized(residency) {
+                if (loadTasks.get(tile) != task) {
+                    return; // cancelled, or superseded by a newer load
+                }
+                loadTasks.remove(tile);
+                if (tileTexture == null) {
+                    residency.tileLoadFailed(tile);
+                    return;
+                }
+                List<RawTileResidency.Event<BrickInfo>> events = residency.tileLoaded(tile);
+                if (!events.contains(new RawTileResidency.Event<BrickInfo>(RawTileResidency.Action.DISCARD, tile))) {
+                    nearVolumeInRam.put(tile, tileTexture);
+                }
+                applyEvents(events);
             }
-            LOG.info("Cancelling load for {} (priority {})", tileToCancel.getTileRelativePath(), task.getPriority());
-            task.cancel();
-            iterator.remove();
         }
-        return false;
     }
 
-    private void uploadToGpu(BrainTileInfo brick) {
-        if (! doUpdateCache)
-            return;
-        if (actualDisplayTiles.containsKey(brick))
-            return; // already displayed
-        if (! desiredDisplayTiles.contains(brick))
-            return; // not needed
-        
+    private BrickActor uploadToGpu(BrainTileInfo brick) {
         Texture3d texture3d = nearVolumeInRam.get(brick);
         if (texture3d == null) {
             LOG.error("Volume should be loaded but isn't: "+brick.getTileRelativePath());
-            return; // Sorry, that volume is not loaded FIXME: error handling here
+            return null; // Sorry, that volume is not loaded FIXME: error handling here
         }
 
         LOG.info("Loading to GPU: "+brick.getTileRelativePath());
 
         final BrickActor actor = new BrickActor(brick, texture3d, imageColorModel, volumeState);
         actualDisplayTiles.put(brick, actor);
-        
-        // Hide obsolete displayed tiles
-        int hideCount = actualDisplayTiles.size() - desiredDisplayTiles.size() + 1;
-        if (hideCount > 0) {
-            // Using iterator to avoid ConcurrentModificationException
-            Iterator<Map.Entry<BrickInfo, BrickActor>> iter = actualDisplayTiles.entrySet().iterator();
-            while(iter.hasNext()) {
-                Map.Entry<BrickInfo, BrickActor> entry = iter.next();
-                BrainTileInfo tile = (BrainTileInfo)entry.getKey();
-                if (! desiredDisplayTiles.contains(tile)) {
-                    iter.remove();
-                    // System.out.println("I should be UNdisplaying tile " + tile.getTileRelativePath() + " now");
-                    hideCount --;
-                    if (hideCount <= 0)
-                        break;
-                }
-            }
-        }
-        
-        fireUpdateInEDT(actor);
+        return actor;
     }
 
     public void addObserver(TileDisplayObserver observer) {
@@ -471,6 +440,40 @@ public class HortaVolumeCache {
         this.currentColorChannel = colorChannel;
     }
 
+    /**
+     * Bounds and sizes of raw tiles. A loaded tile holds one color channel,
+     * plus its mipmap pyramid, both in RAM and on the GPU.
+     */
+    private static class BrickGeometry implements RawTileResidency.TileGeometry<BrickInfo> {
+        static long getByteCount(BrickInfo brick) {
+            VoxelIndex dims = brick.getRasterDimensions();
+            long bytes = (long) dims.getX() * dims.getY() * dims.getZ() * brick.getBytesPerIntensity();
+            return bytes + bytes / 7;
+        }
+
+        @Override
+        public float[] getMin(BrickInfo brick) {
+            Box3 box = brick.getBoundingBox();
+            return new float[] {box.min.getX(), box.min.getY(), box.min.getZ()};
+        }
+
+        @Override
+        public float[] getMax(BrickInfo brick) {
+            Box3 box = brick.getBoundingBox();
+            return new float[] {box.max.getX(), box.max.getY(), box.max.getZ()};
+        }
+
+        @Override
+        public long getRamBytes(BrickInfo brick) {
+            return getByteCount(brick);
+        }
+
+        @Override
+        public long getGpuBytes(BrickInfo brick) {
+            return getByteCount(brick);
+        }
+    }
+
     private class CameraObserver implements Observer
     {
         @Override
@@ -478,7 +481,7 @@ public class HortaVolumeCache {
             updateLocation();
         }
     }
-    
+
     public interface TileDisplayObserver {
         void update(BrickActor newTile, Collection<? extends BrickInfo> allTiles);
     }
@@ -493,4 +496,4 @@ public class HortaVolumeCache {
             }
         });
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,489 @@
+package org.janelia.horta.loader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Decides which raw volume tiles HortaVolumeCache holds in RAM and displays
+ * on the GPU, within byte budgets.
+ *
+ * Candidate tiles are ranked by true 3D distance from the focus to each tile's
+ * bounding box, then to its centroid; tiles outside the view frustum rank as
+ * if they were farther away. The best ranked tiles are displayed, as many as
+ * fit in the GPU budget, and the following ones are kept in RAM, as many as
+ * fit in the RAM budget; at least one tile is always displayed. While the
+ * focus moves, the tile it is heading into is promoted to load right after
+ * the displayed tiles.
+ *
+ * Nothing here touches textures or GL: every decision is returned as a list
+ * of events, which the caller must carry out in order. Residency is tracked
+ * on the assumption that it does.
+ *
+ * @param <K> tile key type
+ */
+class RawTileResidency<K> {
+
+    /**
+     * Bounds and sizes of a tile
+     */
+    interface TileGeometry<K> {
+        float[] getMin(K tile);
+        float[] getMax(K tile);
+        long getRamBytes(K tile);
+        long getGpuBytes(K tile);
+    }
+
+    enum Action {
+        LOAD,     // load into RAM, to display as soon as it arrives
+        PRELOAD,  // load into RAM, near enough to keep
+        PREFETCH, // load into RAM, ahead of the moving focus
+        CANCEL,   // abandon a queued or running load
+        UPLOAD,   // display a tile that is already in RAM
+        HIDE,     // stop displaying a tile, releasing its GPU memory
+        EVICT,    // drop a tile from RAM
+        DISCARD   // drop a freshly loaded tile that is no longer wanted
+    }
+
+    static final class Event<K> {
+        final Action action;
+        final K tile;
+
+        Event(Action action, K tile) {
+            this.action = action;
+            this.tile = tile;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Event)) {
+                return false;
+            }
+            Event<?> other = (Event<?>) o;
+            return action == other.action && Objects.equals(tile, other.tile);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * action.hashCode() + Objects.hashCode(tile);
+        }
+
+        @Override
+        public String toString() {
+            return action + " " + tile;
+        }
+    }
+
+    // An out of view tile ranks with its distance from the focus multiplied by this
+    static final double OUT_OF_VIEW_WEIGHT = 3.0;
+
+    private final TileGeometry<K> geometry;
+    private long ramBudgetBytes;
+    private long gpuBudgetBytes;
+
+    // Latest plan, from update()
+    private List<K> ranked = Collections.emptyList();
+    private Set<K> displayTiles = Collections.emptySet();
+    private Set<K> ramTiles = Collections.emptySet();
+    private K prefetchTile = null;
+    private float[] previousFocus = null;
+    private double[] motion = null; // latest focus movement
+
+    // Actual state, assuming every event has been carried out
+    private final Map<K, Long> inRam = new LinkedHashMap<>();
+    private final Map<K, Long> onGpu = new LinkedHashMap<>();
+    private final Set<K> loading = new LinkedHashSet<>();
+    private long ramBytes = 0;
+    private long gpuBytes = 0;
+
+    /**
+     * Budgets of zero or less are unlimited.
+     */
+    RawTileResidency(TileGeometry<K> geometry, long ramBudgetBytes, long gpuBudgetBytes) {
+        this.geometry = geometry;
+        this.ramBudgetBytes = ramBudgetBytes;
+        this.gpuBudgetBytes = gpuBudgetBytes;
+    }
+
+    /**
+     * Takes effect at the next update().
+     */
+    synchronized void setBudgets(long ramBudgetBytes, long gpuBudgetBytes) {
+        this.ramBudgetBytes = ramBudgetBytes;
+        this.gpuBudgetBytes = gpuBudgetBytes;
+    }
+
+    synchronized long getRamBudgetBytes() {
+        return ramBudgetBytes;
+    }
+
+    synchronized long getGpuBudgetBytes() {
+        return gpuBudgetBytes;
+    }
+
+    /**
+     * Re-plans residency around a new focus.
+     *
+     * @param candidates tiles near the focus, at the current resolution
+     * @param inView whether a tile intersects the view frustum
+     */
+    synchronized List<Event<K>> update(float[] focus, Collection<K> candidates, Predicate<K> inView) {
+        List<Ranked<K>> scores = new ArrayList<>(candidates.size());
+        for (K tile : new LinkedHashSet<>(candidates)) {
+            double boxDistance = distanceToBox(focus, geometry.getMin(tile), geometry.getMax(tile));
+            if (!inView.test(tile)) {
+                boxDistance *= OUT_OF_VIEW_WEIGHT;
+            }
+            scores.add(new Ranked<>(tile, boxDistance, distanceToCentroid(focus, tile)));
+        }
+        // stable, so equally ranked tiles keep their candidate order
+        scores.sort((a, b) -> a.boxDistance != b.boxDistance
+                ? Double.compare(a.boxDistance, b.boxDistance)
+                : Double.compare(a.centroidDistance, b.centroidDistance));
+        List<K> order = new ArrayList<>(scores.size());
+        for (Ranked<K> score : scores) {
+            order.add(score.tile);
+        }
+
+        Set<K> display = new LinkedHashSet<>();
+        long displayBytes = 0;
+        for (K tile : order) {
+            long bytes = geometry.getGpuBytes(tile);
+            if (!display.isEmpty() && gpuBudgetBytes > 0 && displayBytes + bytes > gpuBudgetBytes) {
+                break;
+            }
+            display.add(tile);
+            displayBytes += bytes;
+        }
+
+        if (previousFocus != null && !Arrays.equals(focus, previousFocus)) {
+            motion = new double[3];
+            for (int i = 0; i < 3; ++i) {
+                motion[i] = focus[i] - previousFocus[i];
+            }
+        }
+        previousFocus = focus.clone();
+        prefetchTile = chooseNextTile(focus, order, display);
+        if (prefetchTile != null) {
+            order.remove(prefetchTile);
+            order.add(display.size(), prefetchTile);
+        }
+
+        Set<K> ram = new LinkedHashSet<>(display);
+        long keepBytes = 0;
+        for (K tile : display) {
+            keepBytes += geometry.getRamBytes(tile);
+        }
+        for (K tile : order.subList(display.size(), order.size())) {
+            long bytes = geometry.getRamBytes(tile);
+            if (ramBudgetBytes > 0 && keepBytes + bytes > ramBudgetBytes) {
+                break;
+            }
+            ram.add(tile);
+            keepBytes += bytes;
+        }
+        if (prefetchTile != null && !ram.contains(prefetchTile)) {
+            prefetchTile = null; // no room
+        }
+
+        ranked = order;
+        displayTiles = display;
+        ramTiles = ram;
+
+        List<Event<K>> events = new ArrayList<>();
+        for (K tile : new ArrayList<>(loading)) {
+            if (!ramTiles.contains(tile)) {
+                loading.remove(tile);
+                events.add(new Event<>(Action.CANCEL, tile));
+            }
+        }
+        balance(events);
+        return events;
+    }
+
+    /**
+     * Records a finished load. A tile that is no longer wanted, or that is
+     * already in RAM, comes back as a DISCARD event.
+     */
+    synchronized List<Event<K>> tileLoaded(K tile) {
+        List<Event<K>> events = new ArrayList<>();
+        boolean expected = loading.remove(tile);
+        if (!expected || !ramTiles.contains(tile) || inRam.containsKey(tile)) {
+            events.add(new Event<>(Action.DISCARD, tile));
+            return events;
+        }
+        long bytes = geometry.getRamBytes(tile);
+        inRam.put(tile, bytes);
+        ramBytes += bytes;
+        balance(events);
+        return events;
+    }
+
+    /**
+     * Records a failed or interrupted load; the tile is requested again at
+     * the next update().
+     */
+    synchronized void tileLoadFailed(K tile) {
+        loading.remove(tile);
+    }
+
+    /**
+     * Replaces all residency with a single tile, already loaded and displayed.
+     */
+    synchronized void registerDisplayedTile(K tile) {
+        clear();
+        ranked = Collections.singletonList(tile);
+        displayTiles = Collections.singleton(tile);
+        ramTiles = Collections.singleton(tile);
+        long bytes = geometry.getRamBytes(tile);
+        inRam.put(tile, bytes);
+        ramBytes = bytes;
+        bytes = geometry.getGpuBytes(tile);
+        onGpu.put(tile, bytes);
+        gpuBytes = bytes;
+    }
+
+    synchronized void clear() {
+        ranked = Collections.emptyList();
+        displayTiles = Collections.emptySet();
+        ramTiles = Collections.emptySet();
+        prefetchTile = null;
+        previousFocus = null;
+        motion = null;
+        inRam.clear();
+        onGpu.clear();
+        loading.clear();
+        ramBytes = 0;
+        gpuBytes = 0;
+    }
+
+    /**
+     * Brings the actual state towards the plan: uploads and hides displayed
+     * tiles, evicts unwanted ones, and requests missing ones. A displayed
+     * tile is only hidden once its replacements are displayed, unless the GPU
+     * budget needs the room sooner. Lower priority loads wait until no
+     * displayed tile is loading, and are cancelled when one starts, since
+     * they would only hold it up.
+     */
+    private void balance(List<Event<K>> events) {
+        for (K tile : displayTiles) {
+            if (!inRam.containsKey(tile) || onGpu.containsKey(tile)) {
+                continue;
+            }
+            long bytes = geometry.getGpuBytes(tile);
+            while (gpuBudgetBytes > 0 && gpuBytes + bytes > gpuBudgetBytes) {
+                K victim = worstUndisplayed();
+                if (victim == null) {
+                    break;
+                }
+                hide(victim, events);
+            }
+            onGpu.put(tile, bytes);
+            gpuBytes += bytes;
+            events.add(new Event<>(Action.UPLOAD, tile));
+        }
+        if (onGpu.keySet().containsAll(displayTiles)) {
+            for (K tile : new ArrayList<>(onGpu.keySet())) {
+                if (!displayTiles.contains(tile)) {
+                    hide(tile, events);
+                }
+            }
+        }
+
+        for (K tile : new ArrayList<>(inRam.keySet())) {
+            if (!ramTiles.contains(tile) && !onGpu.containsKey(tile)) {
+                evict(tile, events);
+            }
+        }
+
+        boolean displayLoading = false;
+        for (K tile : displayTiles) {
+            if (inRam.containsKey(tile)) {
+                continue;
+            }
+            displayLoading = true;
+            if (loading.add(tile)) {
+                for (K other : new ArrayList<>(loading)) {
+                    if (!displayTiles.contains(other)) {
+                        loading.remove(other);
+                        events.add(new Event<>(Action.CANCEL, other));
+                    }
+                }
+                events.add(new Event<>(Action.LOAD, tile));
+            }
+        }
+        if (displayLoading) {
+            return;
+        }
+        for (K tile : ranked) {
+            if (!ramTiles.contains(tile) || inRam.containsKey(tile) || !loading.add(tile)) {
+                continue;
+            }
+            events.add(new Event<>(tile.equals(prefetchTile) ? Action.PREFETCH : Action.PRELOAD, tile));
+        }
+    }
+
+    private void hide(K tile, List<Event<K>> events) {
+        gpuBytes -= onGpu.remove(tile);
+        events.add(new Event<>(Action.HIDE, tile));
+        if (!ramTiles.contains(tile)) {
+            evict(tile, events);
+        }
+    }
+
+    private void evict(K tile, List<Event<K>> events) {
+        ramBytes -= inRam.remove(tile);
+        events.add(new Event<>(Action.EVICT, tile));
+    }
+
+    // The displayed tile that is no longer wanted and ranks lowest
+    private K worstUndisplayed() {
+        K worst = null;
+        int worstRank = -1;
+        for (K tile : onGpu.keySet()) {
+            if (displayTiles.contains(tile)) {
+                continue;
+            }
+            int rank = ranked.indexOf(tile);
+            if (rank < 0) {
+                return tile; // no longer even a candidate
+            }
+            if (rank > worstRank) {
+                worst = tile;
+                worstRank = rank;
+            }
+        }
+        return worst;
+    }
+
+    /**
+     * The tile the focus will enter next, following its latest movement: of the
+     * tiles not displayed, the one the ray from the focus enters first, and
+     * of those the focus is already inside, the one reaching farthest ahead.
+     */
+    private K chooseNextTile(float[] focus, List<K> order, Set<K> display) {
+        if (motion == null) {
+            return null; // not moved yet
+        }
+        K result = null;
+        double bestEntry = Double.POSITIVE_INFINITY;
+        double bestExit = Double.NEGATIVE_INFINITY;
+        for (K tile : order) {
+            if (display.contains(tile)) {
+                continue;
+            }
+            double[] hit = intersectRay(focus, motion, geometry.getMin(tile), geometry.getMax(tile));
+            if (hit == null) {
+                continue;
+            }
+            double entry = Math.max(hit[0], 0);
+            if (entry < bestEntry || (entry == bestEntry && hit[1] > bestExit)) {
+                result = tile;
+                bestEntry = entry;
+                bestExit = hit[1];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return entry and exit ray parameters, or null if the ray misses the
+     * box or only meets it behind the origin
+     */
+    static double[] intersectRay(float[] origin, double[] direction, float[] min, float[] max) {
+        double entry = Double.NEGATIVE_INFINITY;
+        double exit = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < 3; ++i) {
+            if (direction[i] == 0) {
+                if (origin[i] < min[i] || origin[i] > max[i]) {
+                    return null;
+                }
+                continue;
+            }
+            double t1 = (min[i] - origin[i]) / direction[i];
+            double t2 = (max[i] - origin[i]) / direction[i];
+            entry = Math.max(entry, Math.min(t1, t2));
+            exit = Math.min(exit, Math.max(t1, t2));
+        }
+        if (exit < Math.max(entry, 0)) {
+            return null;
+        }
+        return new double[] {entry, exit};
+    }
+
+    /**
+     * Distance from a point to the nearest point of a box; zero inside it.
+     */
+    static double distanceToBox(float[] xyz, float[] min, float[] max) {
+        double sum = 0;
+        for (int i = 0; i < 3; ++i) {
+            double d = Math.max(Math.max(min[i] - xyz[i], xyz[i] - max[i]), 0);
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private double distanceToCentroid(float[] xyz, K tile) {
+        float[] min = geometry.getMin(tile);
+        float[] max = geometry.getMax(tile);
+        double sum = 0;
+        for (int i = 0; i < 3; ++i) {
+            double d = 0.5 * (min[i] + max[i]) - xyz[i];
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private static class Ranked<K> {
+        final K tile;
+        final double boxDistance;
+        final double centroidDistance;
+
+        Ranked(K tile, double boxDistance, double centroidDistance) {
+            this.tile = tile;
+            this.boxDistance = boxDistance;
+            this.centroidDistance = centroidDistance;
+        }
+    }
+
+    synchronized Set<K> getDisplayTiles() {
+        return new LinkedHashSet<>(displayTiles);
+    }
+
+    synchronized Set<K> getRamTiles() {
+        return new LinkedHashSet<>(ramTiles);
+    }
+
+    synchronized K getPrefetchTile() {
+        return prefetchTile;
+    }
+
+    synchronized boolean isInRam(K tile) {
+        return inRam.containsKey(tile);
+    }
+
+    synchronized boolean isOnGpu(K tile) {
+        return onGpu.containsKey(tile);
+    }
+
+    synchronized boolean isLoading(K tile) {
+        return loading.contains(tile);
+    }
+
+    synchronized long getRamBytes() {
+        return ramBytes;
+    }
+
+    synchronized long getGpuBytes() {
+        return gpuBytes;
+    }
+
+}
@@ -0,0 +1,61 @@
+package org.janelia.horta.loader;
+
+import org.janelia.geometry3d.Matrix4;
+import org.janelia.geometry3d.PerspectiveCamera;
+import org.janelia.geometry3d.Vector3;
+import org.janelia.geometry3d.Vector4;
+
+/**
+ * Side planes of a perspective camera's view, for deciding which volume
+ * tiles can be seen. Near and far clipping are ignored: Horta moves its
+ * view slab far more often than it moves the camera.
+ */
+class ViewFrustum {
+
+    private final Matrix4 viewMatrix;
+    private final float tanHalfFovY;
+    private final float tanHalfFovX;
+    private final float radiusScale;
+
+    /**
+     * @param viewMatrix world to camera transform; the camera looks down -Z
+     * @param radiusScale largest scale factor within the view matrix
+     */
+    ViewFrustum(Matrix4 viewMatrix, float fovYRadians, float aspect, float radiusScale) {
+        this.viewMatrix = new Matrix4(viewMatrix);
+        this.tanHalfFovY = (float) Math.tan(0.5 * fovYRadians);
+        this.tanHalfFovX = tanHalfFovY * aspect;
+        this.radiusScale = radiusScale;
+    }
+
+    static ViewFrustum fromCamera(PerspectiveCamera camera) {
+        Vector3 scale = camera.getVantage().getWorldScaleHack();
+        float maxScale = Math.max(Math.abs(scale.getX()), Math.max(Math.abs(scale.getY()), Math.abs(scale.getZ())));
+        return new ViewFrustum(camera.getViewMatrix(), camera.getFovRadians(),
+                camera.getViewport().getAspect(), maxScale);
+    }
+
+    /**
+     * Whether the bounding sphere of a box is at least partly in view.
+     */
+    boolean intersectsBox(float[] min, float[] max) {
+        float dx = max[0] - min[0];
+        float dy = max[1] - min[1];
+        float dz = max[2] - min[2];
+        double radius = 0.5 * Math.sqrt(dx * dx + dy * dy + dz * dz) * radiusScale;
+        Vector4 center = viewMatrix.multiply(new Vector4(
+                0.5f * (min[0] + max[0]), 0.5f * (min[1] + max[1]), 0.5f * (min[2] + max[2]), 1));
+        double depth = -center.get(2);
+        if (depth + radius < 0) {
+            return false; // behind the camera
+        }
+        return insideSlopedPlanes(center.get(0), depth, tanHalfFovX, radius)
+                && insideSlopedPlanes(center.get(1), depth, tanHalfFovY, radius);
+    }
+
+    // Signed distance from the planes |offset| = slope * depth, within radius
+    private static boolean insideSlopedPlanes(double offset, double depth, double slope, double radius) {
+        return Math.abs(offset) - slope * depth <= radius * Math.sqrt(1 + slope * slope);
+    }
+
+}
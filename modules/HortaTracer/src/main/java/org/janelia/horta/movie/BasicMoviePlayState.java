@@ -115,6 +115,19 @@ public class BasicMoviePlayState implements MoviePlayState
         BufferedImage result = movieSource.getRenderedFrame(state);
         return result;
     }
+
+    // Must be run in GUI thread
+    @Override
+    public void captureCurrentFrame(FrameSink sink) {
+        ViewerState state = timeline.viewerStateForTime((float)currentFrameTimeInVideo, doLoop);
+        movieSource.captureRenderedFrame(state, sink);
+    }
+
+    // Must be run in GUI thread
+    @Override
+    public void flushFrames(FrameSink sink) {
+        movieSource.flushFrames(sink);
+    }
     
     class NextFrameThread extends Thread implements Runnable
     {
@@ -0,0 +1,289 @@
+package org.janelia.horta.movie;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes movie frames to numbered image files, on a pool of encoder threads.
+ * <p>
+ * Frames are captured into a bounded ring of pooled buffers; capture only
+ * waits when every buffer holds a frame still waiting to be encoded, and a
+ * buffer goes back to the ring as soon as its frame is written. Frames are
+ * numbered in the order they are submitted, so file N always holds the N-th
+ * frame, whichever encoder finishes first. The first failure stops the
+ * export, and is rethrown by finish().
+ */
+public class FrameExportPipeline implements FrameSink
+{
+    private static final Logger LOG = LoggerFactory.getLogger(FrameExportPipeline.class);
+
+    /**
+     * Throughput and queueing of an export
+     */
+    public static class Stats {
+        public int frameCount;
+        public double seconds;
+        public double encodeBusySeconds;
+        public int maxQueueDepth;
+        public double meanQueueDepth;
+        public int bufferCount;
+
+        public double getFramesPerSecond() {
+            return seconds > 0 ? frameCount / seconds : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d frames in %.1f s (%.1f frames/s, %.1f s encoding); "
+                    + "queue depth max %d, mean %.1f, of %d buffers",
+                    frameCount, seconds, getFramesPerSecond(), encodeBusySeconds,
+                    maxQueueDepth, meanQueueDepth, bufferCount);
+        }
+    }
+
+    // one writer per encoder thread; writers are not thread safe
+    private static class Encoder {
+        final ImageWriter writer;
+        final ImageWriteParam param;
+
+        Encoder(FrameFormat format) {
+            writer = format.createWriter();
+            param = format.createWriteParam(writer);
+        }
+    }
+
+    private final File folder;
+    private final String baseName;
+    private final FrameFormat format;
+    private final int ringSize;
+    private final ExecutorService encoders;
+    private final List<Encoder> allEncoders = new ArrayList<>();
+    private final ThreadLocal<Encoder> encoder;
+    private final BlockingQueue<BufferedImage> freeBuffers;
+    private int allocatedBuffers = 0; // guarded by freeBuffers
+
+    // submitted frames are counted on the capture thread
+    private int submittedFrames = 0;
+    private long startNanos = 0;
+    private long queueDepthSum = 0;
+    private int maxQueueDepth = 0;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private final BitSet writtenFrames = new BitSet();
+    private volatile int framesWrittenInOrder = 0;
+    private final LongAdder encodeNanos = new LongAdder();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param ringSize most frames captured but not yet written
+     * @param encoderThreads frames encoded at once
+     */
+    public FrameExportPipeline(File folder, String baseName, FrameFormat format, int ringSize, int encoderThreads)
+    {
+        this.folder = folder;
+        this.baseName = baseName;
+        this.format = format;
+        this.ringSize = Math.max(ringSize, 1);
+        this.freeBuffers = new ArrayBlockingQueue<>(this.ringSize);
+        this.encoders = Executors.newFixedThreadPool(Math.max(encoderThreads, 1), new ThreadFactoryBuilder()
+                .setNameFormat("FrameEncoder-%d")
+                .setDaemon(true)
+                .build());
+        this.encoder = ThreadLocal.withInitial(() -> {
+            Encoder result = new Encoder(format);
+            synchronized (allEncoders) {
+                allEncoders.add(result);
+            }
+            return result;
+        });
+    }
+
+    public static File fileForFrame(File folder, String baseName, FrameFormat format, int frameNumber)
+    {
+        String imageName = baseName + "_" + String.format("%05d", frameNumber) + "." + format.getExtension();
+        return new File(folder, imageName);
+    }
+
+    @Override
+    public BufferedImage acquireFrameBuffer(int width, int height)
+    {
+        checkRunning();
+        BufferedImage buffer = freeBuffers.poll();
+        if (buffer == null) {
+            synchronized (freeBuffers) {
+                if (allocatedBuffers < ringSize) {
+                    allocatedBuffers++;
+                    return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                }
+            }
+            try {
+                while (buffer == null) {
+                    buffer = freeBuffers.poll(100, TimeUnit.MILLISECONDS);
+                    checkRunning();
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Frame export was interrupted");
+            }
+        }
+        if (buffer.getWidth() != width || buffer.getHeight() != height) {
+            // the view was resized during the export
+            buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        return buffer;
+    }
+
+    @Override
+    public void submitFrame(final BufferedImage frame)
+    {
+        checkRunning();
+        if (submittedFrames == 0)
+            startNanos = System.nanoTime();
+        final int frameNumber = ++submittedFrames;
+        int depth = queueDepth.incrementAndGet();
+        maxQueueDepth = Math.max(maxQueueDepth, depth);
+        queueDepthSum += depth;
+        encoders.execute(() -> encode(frameNumber, frame));
+    }
+
+    private void encode(int frameNumber, BufferedImage frame)
+    {
+        try {
+            if (failure.get() == null && ! cancelled) {
+                long t = System.nanoTime();
+                Encoder e = encoder.get();
+                File file = fileForFrame(folder, baseName, format, frameNumber);
+                // unlike ImageIO.createImageOutputStream(), this truncates an existing file
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1 << 16);
+                        ImageOutputStream imageOut = new MemoryCacheImageOutputStream(out)) {
+                    e.writer.setOutput(imageOut);
+                    e.writer.write(null, new IIOImage(frame, null, null), e.param);
+                }
+                finally {
+                    e.writer.setOutput(null);
+                }
+                encodeNanos.add(System.nanoTime() - t);
+                synchronized (writtenFrames) {
+                    writtenFrames.set(frameNumber);
+                    framesWrittenInOrder = writtenFrames.nextClearBit(1) - 1;
+                }
+            }
+        }
+        catch (Throwable ex) {
+            failure.compareAndSet(null, ex);
+        }
+        finally {
+            queueDepth.decrementAndGet();
+            freeBuffers.offer(frame);
+        }
+    }
+
+    private void checkRunning()
+    {
+        if (cancelled)
+            throw new CancellationException("Frame export was cancelled");
+        if (failure.get() != null)
+            throw new CancellationException("Frame export failed");
+    }
+
+    /**
+     * Frames written so far, counting only those with every earlier frame
+     * written too
+     */
+    public int getFramesWritten() {
+        return framesWrittenInOrder;
+    }
+
+    public int getFramesSubmitted() {
+        return submittedFrames;
+    }
+
+    /**
+     * Frames captured but not yet written
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public boolean isFailed() {
+        return failure.get() != null;
+    }
+
+    /**
+     * Stops encoding; frames not yet written are dropped. finish() still
+     * waits for frames being written.
+     */
+    public void cancel() {
+        cancelled = true;
+        encoders.shutdown();
+    }
+
+    /**
+     * Waits for every submitted frame to be written, and shuts down the
+     * encoders.
+     *
+     * @throws IOException the first failure to write a frame
+     */
+    public Stats finish() throws IOException, InterruptedException
+    {
+        encoders.shutdown();
+        try {
+            encoders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        finally {
+            synchronized (allEncoders) {
+                for (Encoder e : allEncoders)
+                    e.writer.dispose();
+                allEncoders.clear();
+            }
+        }
+
+        Stats stats = new Stats();
+        stats.frameCount = framesWrittenInOrder;
+        stats.seconds = submittedFrames > 0 ? (System.nanoTime() - startNanos) / 1e9 : 0;
+        stats.encodeBusySeconds = encodeNanos.sum() / 1e9;
+        stats.maxQueueDepth = maxQueueDepth;
+        stats.meanQueueDepth = submittedFrames > 0 ? queueDepthSum / (double) submittedFrames : 0;
+        synchronized (freeBuffers) {
+            stats.bufferCount = allocatedBuffers;
+        }
+
+        Throwable t = failure.get();
+        if (t != null) {
+            LOG.error("Frame export failed after {} of {} frames", framesWrittenInOrder, submittedFrames, t);
+            Throwables.throwIfInstanceOf(t, IOException.class);
+            Throwables.throwIfUnchecked(t);
+            throw new IOException(t);
+        }
+        LOG.info("Frame export {}", stats);
+        return stats;
+    }
+}
@@ -0,0 +1,72 @@
+package org.janelia.horta.movie;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+
+/**
+ * Image file formats for saved movie frames
+ */
+public enum FrameFormat
+{
+    JPEG("JPEG", "jpeg", "jpg"),
+    PNG("PNG (lossless)", "png", "png"),
+    TIFF("TIFF (lossless)", "tiff", "tif");
+
+    private final String label;
+    private final String formatName;
+    private final String extension;
+
+    FrameFormat(String label, String formatName, String extension) {
+        this.label = label;
+        this.formatName = formatName;
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * TIFF needs a writer plugin, which not every Java runtime has
+     */
+    public boolean isAvailable() {
+        return ImageIO.getImageWritersByFormatName(formatName).hasNext();
+    }
+
+    public static FrameFormat[] availableFormats() {
+        return Arrays.stream(values())
+                .filter(FrameFormat::isAvailable)
+                .toArray(FrameFormat[]::new);
+    }
+
+    ImageWriter createWriter() {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+        if (! writers.hasNext())
+            throw new IllegalStateException("No image writer for " + formatName);
+        return writers.next();
+    }
+
+    ImageWriteParam createWriteParam(ImageWriter writer) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (this == JPEG) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.95f); // use rather high quality
+        }
+        else if (this == TIFF && param.canWriteCompressed()) {
+            // lossless, and much smaller than raw
+            if (Arrays.asList(param.getCompressionTypes()).contains("LZW")) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionType("LZW");
+            }
+        }
+        return param;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
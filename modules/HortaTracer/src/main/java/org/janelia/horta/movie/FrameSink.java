@@ -0,0 +1,37 @@
+package org.janelia.horta.movie;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * Receives captured movie frames, in the order they were rendered
+ */
+public interface FrameSink
+{
+    /**
+     * A TYPE_INT_RGB image to capture the next frame into; may block until
+     * an earlier frame has been written out.
+     */
+    BufferedImage acquireFrameBuffer(int width, int height);
+
+    /**
+     * Hands over a buffer from acquireFrameBuffer(), filled with the next
+     * frame.
+     */
+    void submitFrame(BufferedImage frame);
+
+    /**
+     * Copies an already rendered image into the next frame, dropping the
+     * last row and column if need be, since FFMpeg h264 requires even
+     * image dimensions.
+     */
+    default void submitImage(BufferedImage image) {
+        int w = image.getWidth() & ~1;
+        int h = image.getHeight() & ~1;
+        BufferedImage frame = acquireFrameBuffer(w, h);
+        Graphics2D g = frame.createGraphics();
+        g.drawImage(image.getSubimage(0, 0, w, h), 0, 0, null);
+        g.dispose();
+        submitFrame(frame);
+    }
+}
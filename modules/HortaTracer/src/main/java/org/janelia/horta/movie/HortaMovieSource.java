@@ -96,6 +96,21 @@ public class HortaMovieSource implements MovieSource
         return horta.getScreenShot();
     }
 
+    @Override
+    public void captureRenderedFrame(ViewerState state, FrameSink sink)
+    {
+        setViewerState(state);
+        horta.redrawImmediately();
+        // read back without stalling; the frame reaches the sink a frame later
+        horta.captureScreenShot(sink);
+    }
+
+    @Override
+    public void flushFrames(FrameSink sink)
+    {
+        horta.flushScreenShots(sink);
+    }
+
     @Override
     public BufferedImage getRenderedFrame(ViewerState state, int imageWidth, int imageHeight) {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
@@ -9,6 +9,8 @@ import java.awt.image.BufferedImage;
 public interface MoviePlayState
 {
     BufferedImage getCurrentFrameImageNow(); // must be called from GUI thread
+    void captureCurrentFrame(FrameSink sink); // must be called from GUI thread
+    void flushFrames(FrameSink sink); // must be called from GUI thread
     float getFramesPerSecond();
     void setFramesPerSecond(float fps);
     float getTotalDuration();
@@ -11,4 +11,24 @@ public interface MovieRenderer
     BufferedImage getRenderedFrame(ViewerState state);
     BufferedImage getRenderedFrame(ViewerState state, int imageWidth, int imageHeight);
     boolean supportsCustomSize();
+
+    /**
+     * Renders the state for a movie being saved, and passes the image to the
+     * sink, though not necessarily before returning: a renderer may read
+     * frames back asynchronously, handing each one over during a later call
+     * or in flushFrames(). Either way the sink gets the frames in the order
+     * they were rendered. Must be called from the GUI thread.
+     */
+    default void captureRenderedFrame(ViewerState state, FrameSink sink) {
+        BufferedImage image = getRenderedFrame(state);
+        if (image != null)
+            sink.submitImage(image);
+    }
+
+    /**
+     * Hands any frames still being read back to the sink. Must be called
+     * from the GUI thread.
+     */
+    default void flushFrames(FrameSink sink) {
+    }
 }
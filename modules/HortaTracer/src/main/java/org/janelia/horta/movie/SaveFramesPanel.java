@@ -2,13 +2,9 @@ package org.janelia.horta.movie;
 
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.BorderFactory;
@@ -73,6 +69,7 @@ public class SaveFramesPanel extends JPanel
     final JTextField outFolderField = new JTextField();
     final JTextField movieNameField = new JTextField("mymovie");
     final JComboBox<Float> fpsBox = new JComboBox<>(new Float[] {24.0f, 30.0f, 60.0f});
+    final JComboBox<FrameFormat> formatBox = new JComboBox<>(FrameFormat.availableFormats());
     final JProgressBar progressBar = new JProgressBar(JProgressBar.HORIZONTAL, 0, 100);
     
     private void buildGui() 
@@ -131,7 +128,18 @@ public class SaveFramesPanel extends JPanel
         frameRatePanel.add(Box.createHorizontalGlue());
         add(frameRatePanel);
         
+        // Frame image format combo box
+        JPanel formatPanel = new JPanel();
+        formatPanel.setBorder(BorderFactory.createTitledBorder("Frame Image Format"));
+        formatPanel.setLayout(new BoxLayout(formatPanel, BoxLayout.LINE_AXIS));
+        formatBox.setMaximumSize(formatBox.getPreferredSize());
+        formatPanel.add(formatBox);
+        formatPanel.add(Box.createHorizontalGlue());
+        add(formatPanel);
+        
         // progress bar
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
         add(progressBar);        
         
         add(Box.createVerticalGlue());
@@ -162,17 +170,9 @@ public class SaveFramesPanel extends JPanel
         return true;
     }
     
-    // e.g. "/Users/"
-    private File fileForFrameImage(File folder, String baseName, int frameNumber) 
+    private boolean sanityCheckFrameName(File folder, String baseName, FrameFormat format) 
     {
-        String imageName = baseName + "_" + String.format("%05d", frameNumber) + ".jpg";
-        File result = new File(folder, imageName);
-        return result;
-    }
-    
-    private boolean sanityCheckFrameName(File folder, String baseName) 
-    {
-        File firstFrameImage = fileForFrameImage(folder, baseName, 1);
+        File firstFrameImage = FrameExportPipeline.fileForFrame(folder, baseName, format, 1);
         if (firstFrameImage.exists()) {
             int result = JOptionPane.showConfirmDialog(this,
                     "Overwrite existing image: '" + firstFrameImage.getAbsolutePath() + "'?",
@@ -185,14 +185,20 @@ public class SaveFramesPanel extends JPanel
     }
     
     private void updateProgressBar(final int percent) {
+        updateProgressBar(percent, "");
+    }
+    
+    private void updateProgressBar(final int percent, final String status) {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
                 progressBar.setValue( percent );
+                progressBar.setString( status );
         }});                           
     }
     
-    private void reportSuccess(final File frameFolder, final String baseFileName, final float frameRate) 
+    private void reportSuccess(final File frameFolder, final String baseFileName, final FrameFormat format,
+            final float frameRate, final FrameExportPipeline.Stats stats) 
     {
         final JComponent parent = this;
         // Report successful completion, in the GUI thread
@@ -201,6 +207,7 @@ public class SaveFramesPanel extends JPanel
             public void run() {                        
                 // Assuming all went well...
                 progressBar.setValue(100);
+                progressBar.setString("");
 
                 // Use a JTextPane so the user can select the text with a mouse
                 JTextPane message = new JTextPane();
@@ -211,9 +218,11 @@ public class SaveFramesPanel extends JPanel
                 message.setText(""
                         + "<html>Finished saving frame images"
                         + "<br>in folder &quot;" + frameFolder + "&quot;"
+                        + String.format("<br>(%d frames at %.1f frames per second)",
+                                stats.frameCount, stats.getFramesPerSecond())
                         + "<br>To create a movie file, run ffmpeg from the command line:"
                         + "<br><br> <b>ffmpeg" // program name
-                        + " -i " + baseFileName + "_%5d.jpg" // input image file name pattern
+                        + " -i " + baseFileName + "_%05d." + format.getExtension() // input image file name pattern
                         + " -r " + frameRate // input frame rate
                         + " -b:v 5M" // use a decent bit rate
                         // + " -y" // always say "yes" to overwriting files
@@ -228,6 +237,7 @@ public class SaveFramesPanel extends JPanel
                         "Finished saving frame images",
                         JOptionPane.INFORMATION_MESSAGE);
                 progressBar.setValue(0);
+                progressBar.setString("");
             }
         });      
     }
@@ -246,6 +256,7 @@ public class SaveFramesPanel extends JPanel
                         JOptionPane.WARNING_MESSAGE
                         );
                 progressBar.setValue(0);
+                progressBar.setString("");
             }
         });      
     }
@@ -264,44 +275,22 @@ public class SaveFramesPanel extends JPanel
                         JOptionPane.ERROR_MESSAGE
                         );
                 progressBar.setValue(0);
+                progressBar.setString("");
             }
         });      
     }
     
-    private BufferedImage currentImage;
-    private BufferedImage getFrame(final MoviePlayState playState) 
-            throws InterruptedException, InvocationTargetException 
-    {
-        SwingUtilities.invokeAndWait(new Runnable() {
-            @Override
-            public void run() {
-                currentImage = playState.getCurrentFrameImageNow();
-            }
-        });
-        
-        // FFMpeg h264 requires that image width be even
-        int w = currentImage.getWidth();
-        int h = currentImage.getHeight();
-        // ensure width and height are even
-        if (w % 2 == 1)
-            w -= 1;
-        if (h % 2 == 1)
-            h -= 1;
-        currentImage = currentImage.getSubimage(0, 0, w, h);
-        
-        return currentImage;
-    }
-    
     private void saveFrameImages(final MoviePlayState playState) 
     {
         final File frameFolder = new File(outFolderField.getText());
         final String baseFileName = movieNameField.getText();
         final float frameRate = fpsBox.getItemAt(fpsBox.getSelectedIndex());
+        final FrameFormat format = formatBox.getItemAt(formatBox.getSelectedIndex());
         
         if (! sanityCheckOutputFolder(frameFolder))
             return;
 
-        if (! sanityCheckFrameName(frameFolder, baseFileName))
+        if (! sanityCheckFrameName(frameFolder, baseFileName, format))
             return;
         // logger.info("Hey! I should save frames here...");
         
@@ -318,51 +307,77 @@ public class SaveFramesPanel extends JPanel
                             // smidgen added to round up to one from zero for zero-duration, single-frame movies
                             + 0.2/frameRate)); 
                     
-                    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
-                    ImageWriteParam param = writer.getDefaultWriteParam();
-                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                    // float oldQuality = param.getCompressionQuality(); // default seems to be 0.75
-                    param.setCompressionQuality(0.95f); // use rather high quality
+                    // Frames are captured into a small ring of buffers, and
+                    // encoded and written on all cores while the next ones render
+                    int encoderThreads = Runtime.getRuntime().availableProcessors();
+                    final FrameExportPipeline pipeline = new FrameExportPipeline(
+                            frameFolder, baseFileName, format, 2 * encoderThreads + 2, encoderThreads);
+                    long startNanos = System.nanoTime();
                     
-                    for (int f = 0; f < frameCount; ++f) {
+                    for (int f = 0; f < frameCount && ! pipeline.isFailed(); ++f) {
                         float progressRatio = 0;
                         if (f > 0) // avoid divide by zero
                             progressRatio = f / (float)(frameCount - 1);
                         float frameInstant = movieDuration * progressRatio;
-                        final File imageFile = fileForFrameImage(frameFolder, baseFileName, f+1);
                         
                         playState.skipToTime(frameInstant);
                         
                         try {
                             // Collect and save the frames
-                            BufferedImage frameImage = getFrame(playState);
-                            if (frameImage != null) {
-                                try {
-                                    writer.setOutput(ImageIO.createImageOutputStream(imageFile));
-                                    writer.write(frameImage);
-                                    // ImageIO.write(frameImage, "JPG", imageFile);
-                                } catch (IOException ex) {
-                                    reportError(ex.getMessage());
-                                    return;
+                            SwingUtilities.invokeAndWait(new Runnable() {
+                                @Override
+                                public void run() {
+                                    playState.captureCurrentFrame(pipeline);
                                 }
-                            }
+                            });
                         } catch (InterruptedException ex) {
+                            pipeline.cancel();
                             updateProgressBar(0);
                             reportCancel();
                             return;
                         } catch (InvocationTargetException ex) {
-                            logger.error("Error playing frames", ex);
+                            if (! pipeline.isFailed())
+                                logger.error("Error playing frames", ex);
                         }
                         
                         // TODO: check for "Cancel" operation
                         
-                        updateProgressBar(Math.round(100 * progressRatio));                
+                        int written = pipeline.getFramesWritten();
+                        double seconds = (System.nanoTime() - startNanos) / 1e9;
+                        updateProgressBar(Math.round(100f * written / frameCount), String.format(
+                                "%d of %d frames, %.1f frames/s, %d queued",
+                                written, frameCount, written / seconds, pipeline.getQueueDepth()));
+                    }
+                    
+                    FrameExportPipeline.Stats stats;
+                    try {
+                        SwingUtilities.invokeAndWait(new Runnable() {
+                            @Override
+                            public void run() {
+                                playState.flushFrames(pipeline);
+                            }
+                        });
+                    } catch (InterruptedException ex) {
+                        pipeline.cancel();
+                    } catch (InvocationTargetException ex) {
+                        if (! pipeline.isFailed())
+                            logger.error("Error saving last frame", ex);
+                    }
+                    try {
+                        stats = pipeline.finish();
+                    } catch (IOException ex) {
+                        reportError(ex.getMessage());
+                        return;
+                    } catch (InterruptedException ex) {
+                        updateProgressBar(0);
+                        reportCancel();
+                        return;
                     }
                     
                     // TODO: post run sanity checks
                     
                     // Report successful completion, in the GUI thread
-                    reportSuccess(frameFolder, baseFileName, frameRate);
+                    reportSuccess(frameFolder, baseFileName, format, frameRate, stats);
                 }
         };
 
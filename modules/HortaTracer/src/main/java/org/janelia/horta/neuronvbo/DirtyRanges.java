@@ -0,0 +1,40 @@
+package org.janelia.horta.neuronvbo;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Sorted, merged ranges of slots waiting to be uploaded
+ */
+class DirtyRanges
+{
+    private final NavigableMap<Integer, Integer> ranges = new TreeMap<>(); // start -> end
+
+    void add(int start, int end) {
+        if (end <= start)
+            return;
+        Map.Entry<Integer, Integer> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Integer, Integer> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    void clear() {
+        ranges.clear();
+    }
+
+    // start -> end, in slot order
+    NavigableMap<Integer, Integer> getRanges() {
+        return Collections.unmodifiableNavigableMap(ranges);
+    }
+}
@@ -4,15 +4,15 @@ import com.jogamp.common.nio.Buffers;
 import java.awt.Color;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Set;
+import java.util.TreeMap;
 import javax.media.opengl.GL3;
 import org.janelia.console.viewerapi.GenericObservable;
 import org.janelia.console.viewerapi.model.NeuronEdge;
@@ -29,6 +29,14 @@ import org.slf4j.LoggerFactory;
 /**
  * Holds one OpenGL vertex buffer object for rendering groups of neuron models.
  * Multiple NeuronVbos may be held in a NeuronVboPool
+ * <p>
+ * Each neuron owns a block of vertex slots and a block of edge slots in the
+ * buffers. An edited neuron is re-encoded into its own block, and only that
+ * block is uploaded, as long as it still fits. Otherwise the neuron moves to
+ * a free block, and the whole buffer is only repacked when no block is big
+ * enough. Unused vertex slots are invisible, and unused edge slots point at
+ * the invisible vertex zero, so the shaders skip both.
+ *
  * @author brunsc
  * 
  * TODO: Perform full clear when workspace changes
@@ -40,48 +48,66 @@ public class NeuronVbo implements Iterable<NeuronModel>
     // Be sure to synchronize these constants with the actual shader vertex attribute (in) layout
     private final static int XYZR_ATTRIB = 1;
     private final static int RGBV_ATTRIB = 2;
+    private final static int COLOR_OFFSET = 4; // red color begins at 5th value
+    private final static int VISIBILITY_OFFSET = 7; // visibility is the 8th attribute value
     private final static float REVIEWED_GRAY_COLOR = 200;
+    // Vertex zero is never visible; unused edge slots point at it
+    private final static int NULL_VERTEX = 0;
+    // Repack once this many slots are free, and more are free than used
+    private final static int MIN_COMPACTION_SLOTS = 4096;
 
     private final Set<NeuronModel> neurons = new HashSet<>();
+    private final float neuronHeadroom; // spare slots given to each neuron, as a fraction of its size
     private int vboVertices = 0;
     private int vboEdgeIndices = 0;
-    private int edgeCount = 0;
     private int vertexCount = 0;
     
     private boolean buffersNeedRebuild = false; // non-gl population of buffer data
     private boolean buffersNeedAllocation = false; // allocate and upload gl buffers
-    private boolean buffersNeedUpdate = false; // replace contents of existing gl buffers
+    private boolean buffersNeedUpdate = false; // replace changed ranges of existing gl buffers
     
     private IntBuffer edgeBuffer;
     private FloatBuffer vertexBuffer;
+    private final SlotAllocator vertexSlots = new SlotAllocator();
+    private final SlotAllocator edgeSlots = new SlotAllocator();
+    private final DirtyRanges dirtyVertices = new DirtyRanges();
+    private final DirtyRanges dirtyEdges = new DirtyRanges();
     
     // Cached indices
-    private final Map<NeuronModel, Integer> neuronOffsets = new HashMap<>(); // for surgically updating buffers
-    private final Map<NeuronModel, Integer> neuronVertexCounts = new HashMap<>(); // for sanity checking
-    private final Map<NeuronModel, Integer> neuronEdgeCounts = new HashMap<>(); // for sanity checking
+    private final Map<NeuronModel, NeuronBlock> neuronBlocks = new HashMap<>(); // for surgically updating buffers
     private final Map<NeuronModel, NeuronObserver> neuronObservers = new HashMap<>();
+    private final Set<NeuronModel> dirtyNeurons = new HashSet<>(); // need re-encoding
+    private final Set<NeuronModel> editedNeurons = new HashSet<>(); // geometry edits, for the pool
+
+    private int fullRebuildCount = 0;
+    private int subRangeUpdateCount = 0;
     
     private final Logger log = LoggerFactory.getLogger(this.getClass());
     
-    int getNeuronCount() {
+    /**
+     * @param neuronHeadroom spare room to leave for each neuron to grow in
+     * place, as a fraction of its size. Zero packs neurons tightly.
+     */
+    NeuronVbo(float neuronHeadroom) {
+        this.neuronHeadroom = neuronHeadroom;
+    }
+
+    synchronized int getNeuronCount() {
         return neurons.size();
     }
     
-    public void clear() {
+    public synchronized void clear() {
         // first disconnect all signals
         for (NeuronModel neuron : this) {
             disconnectSignals(neuron);
         }
-        if (edgeCount > 0)
-            buffersNeedRebuild = true;
-        if (vertexCount > 0)
+        if (vertexBuffer != null)
             buffersNeedRebuild = true;
         neurons.clear();
-        neuronOffsets.clear();
-        neuronEdgeCounts.clear();
-        neuronVertexCounts.clear();
+        neuronBlocks.clear();
         neuronObservers.clear();
-        edgeCount = 0;
+        dirtyNeurons.clear();
+        editedNeurons.clear();
         vertexCount = 0;
     }
     
@@ -92,13 +118,13 @@ public class NeuronVbo implements Iterable<NeuronModel>
     }
     
     private void disconnectSignals(NeuronModel neuron) {
-        NeuronObserver observer = neuronObservers.get(neuron);
+        NeuronObserver observer = neuronObservers.remove(neuron);
         if (observer == null)
             return;
         observer.disconnectSignals();
     }
     
-    void init(GL3 gl)
+    synchronized void init(GL3 gl)
     {
         if (vboEdgeIndices > 0)
             return; // already initialized
@@ -107,14 +133,16 @@ public class NeuronVbo implements Iterable<NeuronModel>
         gl.glGenBuffers(2, vbos);
         vboVertices = vbos.get(0);
         vboEdgeIndices = vbos.get(1);
+        if (vertexBuffer != null)
+            buffersNeedAllocation = true; // new, empty gl buffers
     }
     
     // Make sure the cone shader is loaded before calling this method
     synchronized void displayEdges(GL3 gl) 
     {
         init(gl);
-        if (buffersNeedRebuild)
-            rebuildBuffers();
+        refreshBuffers();
+        int edgeCount = edgeSlots.getEnd();
         if (edgeCount < 1) 
             return;
         setUpVbo(gl);
@@ -126,17 +154,16 @@ public class NeuronVbo implements Iterable<NeuronModel>
     synchronized void displayNodes(GL3 gl) 
     {
         init(gl);
-        if (buffersNeedRebuild)
-            rebuildBuffers();
-        if (vertexCount < 1) 
+        refreshBuffers();
+        int drawnVertexCount = vertexSlots.getEnd();
+        if (drawnVertexCount <= NULL_VERTEX + 1)
             return;
         setUpVbo(gl);
-        gl.glDrawArrays(GL3.GL_POINTS, 0, vertexCount);
+        gl.glDrawArrays(GL3.GL_POINTS, 0, drawnVertexCount);
     }
     
     private void setUpVbo(GL3 gl) {
-        if (buffersNeedRebuild)
-            rebuildBuffers();
+        refreshBuffers();
         if (buffersNeedAllocation)
             allocateBuffers(gl);
         if (buffersNeedUpdate)
@@ -164,7 +191,7 @@ public class NeuronVbo implements Iterable<NeuronModel>
     
     synchronized void dispose(GL3 gl) 
     {
-        if (vertexCount > 0)
+        if (vertexBuffer != null)
             buffersNeedAllocation = true;
         if (vboVertices == 0)
             return; // never allocated
@@ -174,222 +201,299 @@ public class NeuronVbo implements Iterable<NeuronModel>
         vboEdgeIndices = 0;
     }
     
+    // Queue a neuron to be re-encoded into its own block before the next draw
+    private synchronized void markNeuronDirty(NeuronModel neuron, boolean geometryChanged) {
+        if (! neurons.contains(neuron))
+            return;
+        dirtyNeurons.add(neuron);
+        if (geometryChanged)
+            editedNeurons.add(neuron);
+    }
+
+    // Returns true if the neuron's block no longer matches its size
+    private boolean sizeChanged(NeuronModel neuron, NeuronBlock block) {
+        return (block.vertexCount != neuron.getVertexes().size())
+                || (block.neuronEdgeCount != neuron.getEdges().size());
+    }
+
     // lightweight update of just the color field
-    private boolean updateNeuronColor(NeuronModel neuron) 
+    private synchronized boolean updateNeuronColor(NeuronModel neuron)
     {
-        if (buffersNeedRebuild)
+        if (buffersNeedRebuild || dirtyNeurons.contains(neuron))
+            return false; // we are going to redo this neuron anyway
+        NeuronBlock block = neuronBlocks.get(neuron);
+        if (block == null)
             return false;
-        int sv = neuron.getVertexes().size();
-        int se = neuron.getEdges().size();
-        float rgb[] = {0,0,0,1};
-        neuron.getColor().getRGBComponents(rgb);
-        boolean bChanged = false; // nothing has changed yet
-        
+
         // check for whether the neuron is under review
-        if (neuron.getReviewMode()) {
-            buffersNeedRebuild = true;
-            return false;
+        if (neuron.getReviewMode() || sizeChanged(neuron, block)) {
+            markNeuronDirty(neuron, false);
+            return true;
         }
-        
-        // sanity check
-        // Do we already have most of the information for this neuron tabulated?
-        if ( neuronOffsets.containsKey(neuron)
-                && (neuronVertexCounts.get(neuron) == sv)
-                && (neuronEdgeCounts.get(neuron) == se)) 
+        if (block.vertexCount < 1)
+            return false;
+
+        float rgb[] = {0,0,0,1};
+        neuron.getColor().getRGBComponents(rgb);
+        // Has the color actually changed?
+        int offset = block.vertexOffset * FLOATS_PER_VERTEX + COLOR_OFFSET;
+        if ( (vertexBuffer.get(offset+0) == rgb[0])
+                && (vertexBuffer.get(offset+1) == rgb[1])
+                && (vertexBuffer.get(offset+2) == rgb[2]) )
         {
-            // Has the color actually changed?
-            final int COLOR_OFFSET = 4; // red color begins at 5th value
-            int offset = neuronOffsets.get(neuron) * FLOATS_PER_VERTEX + COLOR_OFFSET;
-            int max_offset = offset + (sv-1) * FLOATS_PER_VERTEX + 2;
-            if (max_offset >= vertexBuffer.limit()) {
-                // Hmm. The actual buffer is no longer big enough to hold this neuron.
-                log.info("vertex buffer object is too small. rebuild queued (after updateNeuronColor())");
-                buffersNeedRebuild = true;
-                return true;
-            }
-            try {
-                if ( (vertexBuffer.get(offset+0) == rgb[0])
-                        && (vertexBuffer.get(offset+1) == rgb[1])
-                        && (vertexBuffer.get(offset+2) == rgb[2]) )
-                {
-                    return bChanged; // color has not changed
-                }
-                log.trace("old neuron color was [{},{},{}]",
-                        vertexBuffer.get(offset+0), 
-                        vertexBuffer.get(offset+1), 
-                        vertexBuffer.get(offset+2));
-                log.trace("new neuron color = [{},{},{}]", rgb[0], rgb[1], rgb[2]);
-                for (int v = 0; v < sv; ++v) {
-                    int index = offset + v * FLOATS_PER_VERTEX;
-                    for (int r = 0; r < 3; ++r) {
-                        vertexBuffer.put(index + r, rgb[r]);
-                        // assert(vertexBuffer.get(index + r) == rgb[r]);
-                    }
-                }
-                buffersNeedUpdate = true;
-                bChanged = true;
-            } catch (IndexOutOfBoundsException exc) {
-                log.info("stale vertex buffer object accessed with bogus index {}. Queueing rebuild.", offset);
-                buffersNeedRebuild = true;
-                return true;
-            }
+            return false; // color has not changed
         }
-        else {
-            buffersNeedRebuild = true;
-            bChanged = true;
+        log.trace("old neuron color was [{},{},{}]",
+                vertexBuffer.get(offset+0),
+                vertexBuffer.get(offset+1),
+                vertexBuffer.get(offset+2));
+        log.trace("new neuron color = [{},{},{}]", rgb[0], rgb[1], rgb[2]);
+        for (int v = 0; v < block.vertexCount; ++v) {
+            int index = offset + v * FLOATS_PER_VERTEX;
+            for (int r = 0; r < 3; ++r) {
+                vertexBuffer.put(index + r, rgb[r]);
+            }
         }
-        return bChanged;
+        dirtyVertices.add(block.vertexOffset, block.vertexOffset + block.vertexCount);
+        buffersNeedUpdate = true;
+        return true;
     }
     
     // lightweight update of just the visibility field
     // returns true if the buffer state actually changed
-    private boolean updateNeuronVisibility(NeuronModel neuron) 
+    private synchronized boolean updateNeuronVisibility(NeuronModel neuron)
     {
+        if (buffersNeedRebuild || dirtyNeurons.contains(neuron))
+            return false; // we are going to redo this neuron anyway, so skip the surgical update
+        NeuronBlock block = neuronBlocks.get(neuron);
+        if (block == null)
+            return false;
+        if (sizeChanged(neuron, block)) {
+            markNeuronDirty(neuron, false);
+            return true;
+        }
+        if (block.vertexCount < 1)
+            return false;
+
+        float visFloat = neuron.isVisible() ? 1.0f : 0.0f;
+        // Has the visibility actually changed?
+        int offset = block.vertexOffset * FLOATS_PER_VERTEX + VISIBILITY_OFFSET;
+        if (vertexBuffer.get(offset) == visFloat)
+            return false;
+        for (int v = 0; v < block.vertexCount; ++v) {
+            vertexBuffer.put(offset + v * FLOATS_PER_VERTEX, visFloat);
+        }
+        dirtyVertices.add(block.vertexOffset, block.vertexOffset + block.vertexCount);
+        buffersNeedUpdate = true;
+        return true;
+    }
+
+    // Number of slots to reserve for a neuron of the given size
+    private int withHeadroom(int count) {
+        if (neuronHeadroom <= 0)
+            return count;
+        return count + (int) (count * neuronHeadroom) + 8;
+    }
+
+    // Brings the buffers up to date with the neurons, touching as little as
+    // possible. Only fills the buffers in memory; the next draw uploads them.
+    synchronized void refreshBuffers()
+    {
+        if ( (vertexBuffer == null) && ! neurons.isEmpty() )
+            buffersNeedRebuild = true;
+        if (! buffersNeedRebuild && ! dirtyNeurons.isEmpty()) {
+            for (NeuronModel neuron : dirtyNeurons) {
+                if (! placeNeuron(neuron)) {
+                    log.info("No room for neuron '{}' in vbo. Rebuild queued", neuron.getName());
+                    buffersNeedRebuild = true;
+                    break;
+                }
+            }
+            dirtyNeurons.clear();
+        }
+        int freeSlots = vertexSlots.getFreeCount();
+        if ( (freeSlots > MIN_COMPACTION_SLOTS) && (freeSlots > vertexCount) )
+            buffersNeedRebuild = true;
         if (buffersNeedRebuild)
-            return false; // we are going to redo everything anyway, so skip the surgical update
+            rebuildBuffers();
+    }
+
+    // Re-encodes one neuron, in its own block if it still fits, or else in
+    // a new block. Returns false if there is no block big enough.
+    private boolean placeNeuron(NeuronModel neuron)
+    {
+        NeuronBlock block = neuronBlocks.get(neuron);
+        if (block == null)
+            return true; // removed
+        if ( (block.vertexCapacity == 0) && (block.edgeCapacity == 0) ) {
+            // never placed; its vertex count was only an estimate
+            vertexCount -= block.vertexCount;
+            block.vertexCount = 0;
+        }
         int sv = neuron.getVertexes().size();
         int se = neuron.getEdges().size();
-        boolean bIsVisible = neuron.isVisible();
-        float visFloat = bIsVisible ? 1.0f : 0.0f;
-        boolean bChanged = false;
-        // log.info("Updating neuron visibility to '{}'", bIsVisible);
-
-        // sanity check
-        // Do we already have most of the information for this neuron tabulated?
-        if ( neuronOffsets.containsKey(neuron)
-                && (neuronVertexCounts.get(neuron) == sv)
-                && (neuronEdgeCounts.get(neuron) == se) ) 
-        {
-            // Has the visibility actually changed?
-            final int VISIBILITY_OFFSET = 7; // visibility is the 8th attribute value
-            int offset = neuronOffsets.get(neuron) * FLOATS_PER_VERTEX + VISIBILITY_OFFSET;
-            int max_offset = offset + (sv-1) * FLOATS_PER_VERTEX;
-            if (max_offset >= vertexBuffer.limit()) {
-                log.info("vertex buffer object is too small. rebuild queued (after updateNeuronVisibility())");
-                // Hmm. The actual buffer is no longer big enough to hold this neuron.
-                buffersNeedRebuild = true;
-                return true;
+        if ( (sv > block.vertexCapacity) || (se > block.edgeCapacity) ) {
+            int vertexCapacity = withHeadroom(sv);
+            int edgeCapacity = withHeadroom(se);
+            int vertexOffset = vertexSlots.allocate(vertexCapacity);
+            if (vertexOffset < 0)
+                return false;
+            int edgeOffset = edgeSlots.allocate(edgeCapacity);
+            if (edgeOffset < 0) {
+                vertexSlots.release(vertexOffset, vertexCapacity);
+                return false;
             }
-            try {
-                if (vertexBuffer.get(offset) != visFloat) { // visibility actually changed
-                    for (int v = 0; v < sv; ++v) {
-                        int index = offset + v * FLOATS_PER_VERTEX;
-                        vertexBuffer.put(index, visFloat);
-                    }
-                    buffersNeedUpdate = true;
-                    bChanged = true;
-                }
-            } catch (IndexOutOfBoundsException exc) {
-                log.info("stale vertex buffer object accessed with bogus index {}. Queueing rebuild.", offset);
-                buffersNeedRebuild = true;
-                return true;
+            releaseBlock(block);
+            block = new NeuronBlock(vertexOffset, vertexCapacity, edgeOffset, edgeCapacity);
+            neuronBlocks.put(neuron, block);
+        }
+        encodeNeuron(neuron, block);
+        subRangeUpdateCount += 1;
+        return true;
+    }
+    
+    // Hides a block's contents and returns its slots to the free lists
+    private void releaseBlock(NeuronBlock block)
+    {
+        if ( (vertexBuffer != null) && ((block.vertexCapacity > 0) || (block.edgeCapacity > 0)) ) {
+            for (int v = 0; v < block.vertexCount; ++v) {
+                vertexBuffer.put((block.vertexOffset + v) * FLOATS_PER_VERTEX + VISIBILITY_OFFSET, 0);
             }
+            dirtyVertices.add(block.vertexOffset, block.vertexOffset + block.vertexCount);
+            for (int e = 0; e < 2 * block.edgeCount; ++e) {
+                edgeBuffer.put(2 * block.edgeOffset + e, NULL_VERTEX);
+            }
+            dirtyEdges.add(block.edgeOffset, block.edgeOffset + block.edgeCount);
+            buffersNeedUpdate = true;
         }
-        else {
-            buffersNeedRebuild = true;
-            bChanged = true; // something changed...
+        vertexSlots.release(block.vertexOffset, block.vertexCapacity);
+        edgeSlots.release(block.edgeOffset, block.edgeCapacity);
+        vertexCount -= block.vertexCount;
+        block.vertexCount = 0;
+        block.edgeCount = 0;
+    }
+
+    // Writes a neuron's vertices and edges into its block, and hides
+    // whatever the block held beyond them
+    private void encodeNeuron(NeuronModel neuron, NeuronBlock block)
+    {
+        float rgb[] = {0,0,0};
+        float visibility = neuron.isVisible() ? 1 : 0;
+        Color color = neuron.getColor();
+        color.getColorComponents(rgb);
+        Map<NeuronVertex, Integer> vertexIndices = new HashMap<>();
+        int index = block.vertexOffset;
+        int vertexEnd = block.vertexOffset + block.vertexCapacity;
+        for (NeuronVertex vertex : neuron.getVertexes()) {
+            if (index == vertexEnd)
+                break; // neuron grew meanwhile; it will be marked dirty again
+            vertexIndices.put(vertex, index);
+            // X, Y, Z, radius, r, g, b, visibility
+            float[] xyz = vertex.getLocation();
+            float radius = vertex.getRadius();
+            if (neuron.isUserToggleRadius()) {
+                radius = 0.3f;
+            }
+            int at = index * FLOATS_PER_VERTEX;
+            vertexBuffer.put(at, xyz[0]); // X
+            vertexBuffer.put(at + 1, xyz[1]); // Y
+            vertexBuffer.put(at + 2, xyz[2]); // Z
+            vertexBuffer.put(at + 3, radius); // radius
+            if (neuron.getReviewMode() && neuron.isReviewedVertex(vertex)) {
+                vertexBuffer.put(at + 4, REVIEWED_GRAY_COLOR); // red
+                vertexBuffer.put(at + 5, REVIEWED_GRAY_COLOR); // green
+                vertexBuffer.put(at + 6, REVIEWED_GRAY_COLOR); // blue
+            } else {
+                vertexBuffer.put(at + 4, rgb[0]); // red
+                vertexBuffer.put(at + 5, rgb[1]); // green
+                vertexBuffer.put(at + 6, rgb[2]); // blue
+            }
+            vertexBuffer.put(at + 7, visibility); // visibility
+            index += 1;
+        }
+        int newVertexCount = index - block.vertexOffset;
+        for (int v = newVertexCount; v < block.vertexCount; ++v) {
+            vertexBuffer.put((block.vertexOffset + v) * FLOATS_PER_VERTEX + VISIBILITY_OFFSET, 0);
+        }
+        dirtyVertices.add(block.vertexOffset,
+                block.vertexOffset + Math.max(newVertexCount, block.vertexCount));
+        vertexCount += newVertexCount - block.vertexCount;
+        block.vertexCount = newVertexCount;
+
+        int edgeIndex = 2 * block.edgeOffset;
+        int edgeEnd = 2 * (block.edgeOffset + block.edgeCapacity);
+        int neuronEdgeCount = 0;
+        for (NeuronEdge edge : neuron.getEdges()) {
+            neuronEdgeCount += 1;
+            Iterator<NeuronVertex> eit = edge.iterator();
+            NeuronVertex v1 = eit.next();
+            NeuronVertex v2 = eit.next();
+            Integer i1 = vertexIndices.get(v1);
+            Integer i2 = vertexIndices.get(v2);
+            if ( (i1 == null) || (i2 == null) ) {
+                log.error("Found neuron edge with unknown vertices {} and {} in neuron '{}'", v1, v2, neuron.getName());
+                continue;
+            }
+            if (edgeIndex == edgeEnd)
+                break;
+            edgeBuffer.put(edgeIndex++, i1);
+            edgeBuffer.put(edgeIndex++, i2);
+        }
+        int newEdgeCount = edgeIndex / 2 - block.edgeOffset;
+        for (int e = 2 * newEdgeCount; e < 2 * block.edgeCount; ++e) {
+            edgeBuffer.put(2 * block.edgeOffset + e, NULL_VERTEX);
         }
-        return bChanged;
+        dirtyEdges.add(block.edgeOffset,
+                block.edgeOffset + Math.max(newEdgeCount, block.edgeCount));
+        block.edgeCount = newEdgeCount;
+        block.neuronEdgeCount = neuronEdgeCount;
+        buffersNeedUpdate = true;
     }
-    
+
+    // Repacks every neuron into freshly allocated buffers
     private void rebuildBuffers()
     {
         log.info("Rebuilding neuron vbo data");
         // count the primitives
-        List<Float> vertexAttributes = new ArrayList<>();
-        List<Integer> edgeIndexes = new ArrayList<>();
-        vertexCount = 0;
-        edgeCount = 0;
-        float rgb[] = {0,0,0};
-        neuronOffsets.clear();
-        neuronVertexCounts.clear();
-        neuronEdgeCounts.clear();
+        int vertexSlotCount = NULL_VERTEX + 1;
+        int edgeSlotCount = 0;
         for (NeuronModel neuron : neurons) {
-            // if (! neuron.isVisible()) continue;
-            neuronOffsets.put(neuron, vertexCount);
-            neuronVertexCounts.put(neuron, neuron.getVertexes().size());
-            neuronEdgeCounts.put(neuron, neuron.getEdges().size());
-            float visibility = neuron.isVisible() ? 1 : 0;
-            Color color = neuron.getColor();
-            color.getColorComponents(rgb);
-            Map<NeuronVertex, Integer> vertexIndices = new HashMap<>();
-            for (NeuronVertex vertex : neuron.getVertexes()) {
-                int index = vertexCount;
-                vertexIndices.put(vertex, index);
-                // X, Y, Z, radius, r, g, b, visibility
-                float[] xyz = vertex.getLocation();
-                vertexAttributes.add(xyz[0]); // X
-                vertexAttributes.add(xyz[1]); // Y
-                vertexAttributes.add(xyz[2]); // Z
-                float radius = vertex.getRadius();
-                if (neuron.isUserToggleRadius()) {
-                    radius = 0.3f;
-                }
-                vertexAttributes.add(radius); // radius
-                if (neuron.getReviewMode() && neuron.isReviewedVertex(vertex)) {
-                    vertexAttributes.add(REVIEWED_GRAY_COLOR); // red
-                    vertexAttributes.add(REVIEWED_GRAY_COLOR); // green
-                    vertexAttributes.add(REVIEWED_GRAY_COLOR); // blue
-                } else {
-                    vertexAttributes.add(rgb[0]); // red
-                    vertexAttributes.add(rgb[1]); // green
-                    vertexAttributes.add(rgb[2]); // blue
-                }
-                vertexAttributes.add(visibility); // visibility
-                vertexCount += 1;
-            }
-            for (NeuronEdge edge : neuron.getEdges()) {
-                Iterator<NeuronVertex> eit = edge.iterator();
-                NeuronVertex v1 = eit.next();
-                NeuronVertex v2 = eit.next();
-                Integer i1 = vertexIndices.get(v1);
-                Integer i2 = vertexIndices.get(v2);
-                if ( (i1 == null) || (i2 == null) ) {
-                    log.error("Found neuron edge with unknown vertices {} and {} in neuron '{}'", v1, v2, neuron.getName());
-                    continue;
-                }
-                edgeIndexes.add(i1);
-                edgeIndexes.add(i2);
-                edgeCount += 1;
-            }
+            vertexSlotCount += withHeadroom(neuron.getVertexes().size());
+            edgeSlotCount += withHeadroom(neuron.getEdges().size());
         }
-        
-        // allocate storage
-        vertexBuffer = Buffers.newDirectFloatBuffer(vertexCount * FLOATS_PER_VERTEX);        
-        vertexBuffer.rewind();
-        for (float f : vertexAttributes) {
-            vertexBuffer.put(f);
+        // leave room for a few more neurons to arrive without a rebuild
+        vertexSlotCount += vertexSlotCount / 8 + 64;
+        edgeSlotCount += edgeSlotCount / 8 + 64;
+
+        // allocate storage; zeros are invisible vertices and null edges
+        vertexBuffer = Buffers.newDirectFloatBuffer(vertexSlotCount * FLOATS_PER_VERTEX);
+        edgeBuffer = Buffers.newDirectIntBuffer(edgeSlotCount * 2);
+        vertexSlots.reset(NULL_VERTEX + 1, vertexSlotCount);
+        edgeSlots.reset(0, edgeSlotCount);
+        vertexCount = 0;
+        neuronBlocks.clear();
+        for (NeuronModel neuron : neurons) {
+            int vertexCapacity = withHeadroom(neuron.getVertexes().size());
+            int edgeCapacity = withHeadroom(neuron.getEdges().size());
+            NeuronBlock block = new NeuronBlock(
+                    vertexSlots.allocate(vertexCapacity), vertexCapacity,
+                    edgeSlots.allocate(edgeCapacity), edgeCapacity);
+            neuronBlocks.put(neuron, block);
+            encodeNeuron(neuron, block);
         }
-        vertexBuffer.flip();
+        dirtyNeurons.clear();
+        dirtyVertices.clear();
+        dirtyEdges.clear();
         
-        edgeBuffer = Buffers.newDirectIntBuffer(edgeCount * 2);
-        edgeBuffer.rewind();
-        for (int i : edgeIndexes) {
-            edgeBuffer.put(i);
-        }
-        edgeBuffer.flip();
-
+        fullRebuildCount += 1;
         buffersNeedRebuild = false;
         buffersNeedAllocation = true;
-
-        final boolean debugVboContents = false;
-        if (debugVboContents) {
-            log.info("Vertex buffer contents:");
-            for (int i = 0; i < vertexBuffer.capacity(); ++i) {
-                log.info(" vertex {} : {}", i, vertexBuffer.get(i));            
-            }
-            log.info("Edge buffer contents:");
-            for (int i = 0; i < edgeBuffer.capacity(); ++i) {
-                log.info(" edge {} : {}", i, edgeBuffer.get(i));            
-            }
-        }        
+        buffersNeedUpdate = false;
     }
 
     private void allocateBuffers(GL3 gl)
     {
         log.info("Uploading neuron vbo data");
-        if (buffersNeedRebuild)
-            rebuildBuffers();
         vertexBuffer.rewind();
         gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vboVertices);
         gl.glBufferData(GL3.GL_ARRAY_BUFFER, 
@@ -404,36 +508,44 @@ public class NeuronVbo implements Iterable<NeuronModel>
                 edgeBuffer,
                 GL3.GL_STATIC_DRAW);
 
+        dirtyVertices.clear();
+        dirtyEdges.clear();
         buffersNeedAllocation = false;
         buffersNeedUpdate = false;
     }
     
-    // Reloads the entire buffer
-    // TODO: Incrementally update one neuron at a time.
+    // Uploads just the ranges that changed since the last upload
     private void updateBuffers(GL3 gl)
     {
-        // log.info("Updating neuron vbo data");
-        if (buffersNeedRebuild)
-            rebuildBuffers();
-        vertexBuffer.rewind();
         gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vboVertices);
-        gl.glBufferSubData(
-                GL3.GL_ARRAY_BUFFER, 
-                0,
-                vertexBuffer.capacity() * Buffers.SIZEOF_FLOAT,
-                vertexBuffer);
-        edgeBuffer.rewind();
+        for (Map.Entry<Integer, Integer> range : dirtyVertices.getRanges().entrySet()) {
+            FloatBuffer data = vertexBuffer.duplicate();
+            data.limit(range.getValue() * FLOATS_PER_VERTEX);
+            data.position(range.getKey() * FLOATS_PER_VERTEX);
+            gl.glBufferSubData(
+                    GL3.GL_ARRAY_BUFFER,
+                    (long) data.position() * Buffers.SIZEOF_FLOAT,
+                    (long) data.remaining() * Buffers.SIZEOF_FLOAT,
+                    data);
+        }
         gl.glBindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, vboEdgeIndices);        
-        gl.glBufferSubData(
-                GL3.GL_ELEMENT_ARRAY_BUFFER,
-                0, 
-                edgeBuffer.capacity() * Buffers.SIZEOF_INT,
-                edgeBuffer);
+        for (Map.Entry<Integer, Integer> range : dirtyEdges.getRanges().entrySet()) {
+            IntBuffer data = edgeBuffer.duplicate();
+            data.limit(range.getValue() * 2);
+            data.position(range.getKey() * 2);
+            gl.glBufferSubData(
+                    GL3.GL_ELEMENT_ARRAY_BUFFER,
+                    (long) data.position() * Buffers.SIZEOF_INT,
+                    (long) data.remaining() * Buffers.SIZEOF_INT,
+                    data);
+        }
 
+        dirtyVertices.clear();
+        dirtyEdges.clear();
         buffersNeedUpdate = false;
     }
 
-    boolean add(final NeuronModel neuron) 
+    synchronized boolean add(final NeuronModel neuron)
     {
         if (neuron == null)
             return false;
@@ -442,8 +554,15 @@ public class NeuronVbo implements Iterable<NeuronModel>
         if (! neurons.add(neuron))
             return false;
 
-        vertexCount += neuron.getVertexes().size();
-        buffersNeedRebuild = true;
+        // An empty block, which will be replaced before the next draw. Count
+        // the vertices now, so the pool can keep its vbos balanced, and the
+        // edges, so that checkForChanges() does not take it for an edit.
+        NeuronBlock block = new NeuronBlock(0, 0, 0, 0);
+        block.vertexCount = neuron.getVertexes().size();
+        block.neuronEdgeCount = neuron.getEdges().size();
+        vertexCount += block.vertexCount;
+        neuronBlocks.put(neuron, block);
+        dirtyNeurons.add(neuron);
 
         connectSignals(neuron);
         
@@ -455,44 +574,118 @@ public class NeuronVbo implements Iterable<NeuronModel>
         return neurons.iterator();
     }
 
-    boolean isEmpty() {
+    synchronized boolean isEmpty() {
         return neurons.isEmpty();
     }
 
-    int getVertexCount() {
+    synchronized int getVertexCount() {
         return vertexCount;
     }
 
-    boolean contains(NeuronModel neuron) {
+    synchronized boolean contains(NeuronModel neuron) {
         return neurons.contains(neuron);
     }
 
-    boolean remove(NeuronModel neuron) {
+    synchronized boolean remove(NeuronModel neuron) {
         if (! neurons.remove(neuron))
             return false;
         disconnectSignals(neuron);
-        buffersNeedRebuild = true;
+        dirtyNeurons.remove(neuron);
+        editedNeurons.remove(neuron);
+        releaseBlock(neuronBlocks.remove(neuron));
         return true;
     }
 
-    void checkForChanges() 
+    /**
+     * Returns the neurons whose geometry was edited since the last call.
+     */
+    synchronized Set<NeuronModel> takeEditedNeurons() {
+        if (editedNeurons.isEmpty())
+            return Collections.emptySet();
+        Set<NeuronModel> result = new HashSet<>(editedNeurons);
+        editedNeurons.clear();
+        return result;
+    }
+
+    synchronized int getFullRebuildCount() {
+        return fullRebuildCount;
+    }
+
+    synchronized int getSubRangeUpdateCount() {
+        return subRangeUpdateCount;
+    }
+
+    // First vertex slot of a neuron's block, or -1 if it holds no such neuron
+    synchronized int getVertexOffset(NeuronModel neuron) {
+        NeuronBlock block = neuronBlocks.get(neuron);
+        return block == null ? -1 : block.vertexOffset;
+    }
+
+    // First edge slot of a neuron's block, or -1 if it holds no such neuron
+    synchronized int getEdgeOffset(NeuronModel neuron) {
+        NeuronBlock block = neuronBlocks.get(neuron);
+        return block == null ? -1 : block.edgeOffset;
+    }
+
+    synchronized FloatBuffer getVertexData() {
+        return vertexBuffer == null ? null : vertexBuffer.asReadOnlyBuffer();
+    }
+
+    synchronized IntBuffer getEdgeData() {
+        return edgeBuffer == null ? null : edgeBuffer.asReadOnlyBuffer();
+    }
+
+    // Vertex slot ranges waiting to be uploaded, start -> end
+    synchronized Map<Integer, Integer> getDirtyVertexRanges() {
+        return new TreeMap<>(dirtyVertices.getRanges());
+    }
+
+    // Edge slot ranges waiting to be uploaded, start -> end
+    synchronized Map<Integer, Integer> getDirtyEdgeRanges() {
+        return new TreeMap<>(dirtyEdges.getRanges());
+    }
+
+    // Number of vertex slots drawn, including unused ones
+    synchronized int getDrawnVertexCount() {
+        return vertexSlots.getEnd();
+    }
+
+    synchronized void checkForChanges()
     {
         // log.info("check for changes");
         if (buffersNeedRebuild)
             return; // no need to check counts, if we will be rebuilding anyway
         for (NeuronModel neuron : this) {
-            if ( (neuron.getVertexes().size() != neuronVertexCounts.get(neuron)) 
-                    || (neuron.getEdges().size() != neuronEdgeCounts.get(neuron)))
-            {
-                buffersNeedRebuild = true;
-                return;
+            NeuronBlock block = neuronBlocks.get(neuron);
+            if (sizeChanged(neuron, block)) {
+                markNeuronDirty(neuron, true);
+                continue;
             }
             // Check for visibility and color changes, in case of bulk update
             updateNeuronVisibility(neuron);
             updateNeuronColor(neuron);
         }
     }
-    
+
+    // Where one neuron lives in the buffers, in vertex and edge units
+    private static class NeuronBlock
+    {
+        final int vertexOffset;
+        final int vertexCapacity;
+        final int edgeOffset;
+        final int edgeCapacity;
+        int vertexCount = 0;
+        int edgeCount = 0; // edges written, which skips any bad edges
+        int neuronEdgeCount = 0; // edges in the neuron, for sanity checking
+
+        NeuronBlock(int vertexOffset, int vertexCapacity, int edgeOffset, int edgeCapacity) {
+            this.vertexOffset = vertexOffset;
+            this.vertexCapacity = vertexCapacity;
+            this.edgeOffset = edgeOffset;
+            this.edgeCapacity = edgeCapacity;
+        }
+    }
+
     private class NeuronObserver
     {
         private final NeuronModel neuron;
@@ -515,11 +708,11 @@ public class NeuronVbo implements Iterable<NeuronModel>
             }
         };
         
-        // Full update after adding a vertex: the total number of vertices changed
+        // Re-encode this neuron after adding a vertex: its number of vertices changed
         private final NeuronVertexCreationObserver vertexCreationObserver = new NeuronVertexCreationObserver() {
             @Override
             public void update(GenericObservable<VertexWithNeuron> object, VertexWithNeuron data) {
-                buffersNeedRebuild = true;
+                markNeuronDirty(neuron, true);
             }
         };
         
@@ -528,7 +721,7 @@ public class NeuronVbo implements Iterable<NeuronModel>
             @Override
             public void update(Observable o, Object arg)
             {
-                buffersNeedRebuild = true;
+                markNeuronDirty(neuron, true);
             }            
         };
         
@@ -536,16 +729,15 @@ public class NeuronVbo implements Iterable<NeuronModel>
             @Override
             public void update(GenericObservable<VertexWithNeuron> o, VertexWithNeuron arg)
             {
-                // TODO: Surgical update -- while you are at it, you should probably investigate and
-                // refactor usages of "geometryChangeObservable".
-                buffersNeedRebuild = true;
+                // TODO: investigate and refactor usages of "geometryChangeObservable".
+                markNeuronDirty(neuron, true);
             }
         };
         
         private final NeuronVertexDeletionObserver vertexDeletionObserver = new NeuronVertexDeletionObserver() {
             @Override
             public void update(GenericObservable<VertexCollectionWithNeuron> object, VertexCollectionWithNeuron data) {
-                buffersNeedRebuild = true;
+                markNeuronDirty(neuron, true);
             }
         };
         
@@ -0,0 +1,158 @@
+package org.janelia.horta.neuronvbo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import org.janelia.console.viewerapi.model.NeuronModel;
+
+/**
+ * Which of a NeuronVboPool's vbos each neuron lives in.
+ * <p>
+ * Neurons start out in large, tightly packed "cold" vbos. A neuron whose
+ * geometry gets edited moves to one of a few small "hot" vbos, which leave
+ * each neuron room to grow, so that tracing touches little buffer memory.
+ * The least recently edited hot neurons go back to the cold vbos.
+ */
+class NeuronVboLayout {
+
+    private final List<NeuronVbo> coldVbos = new ArrayList<>();
+    private final List<NeuronVbo> hotVbos = new ArrayList<>();
+    private final List<NeuronVbo> vbos = new ArrayList<>();
+    private final Map<NeuronModel, NeuronVbo> neuronVbos = new HashMap<>();
+    private final int maxHotNeurons;
+    // Neurons in the hot vbos, least recently edited first
+    private final LinkedHashSet<NeuronModel> hotNeurons = new LinkedHashSet<>();
+    private int migrationCount = 0;
+
+    /**
+     * @param hotNeuronHeadroom room for hot neurons to grow in place, as a
+     * fraction of their size
+     */
+    NeuronVboLayout(int coldVboCount, int hotVboCount, int maxHotNeurons, float hotNeuronHeadroom) {
+        for (int i = 0; i < coldVboCount; ++i) {
+            coldVbos.add(new NeuronVbo(0));
+        }
+        for (int i = 0; i < hotVboCount; ++i) {
+            hotVbos.add(new NeuronVbo(hotNeuronHeadroom));
+        }
+        vbos.addAll(coldVbos);
+        vbos.addAll(hotVbos);
+        this.maxHotNeurons = maxHotNeurons;
+    }
+
+    /**
+     * All the vbos, cold ones first.
+     */
+    List<NeuronVbo> getVbos() {
+        return Collections.unmodifiableList(vbos);
+    }
+
+    // The vbo with the fewest vertices, to keep the vbos balanced
+    private static NeuronVbo emptiestVbo(List<NeuronVbo> candidates) {
+        NeuronVbo result = null;
+        for (NeuronVbo vbo : candidates) {
+            if (result == null || vbo.getVertexCount() < result.getVertexCount()) {
+                result = vbo;
+            }
+        }
+        return result;
+    }
+
+    private void moveNeuron(NeuronModel neuron, NeuronVbo target) {
+        NeuronVbo source = neuronVbos.get(neuron);
+        source.remove(neuron);
+        target.add(neuron);
+        neuronVbos.put(neuron, target);
+        migrationCount += 1;
+    }
+
+    /**
+     * Moves recently edited neurons into the hot vbos, and the least
+     * recently edited hot neurons back out, so edits touch small buffers.
+     */
+    synchronized void rebalance() {
+        for (NeuronVbo vbo : vbos) {
+            for (NeuronModel neuron : vbo.takeEditedNeurons()) {
+                if (neuronVbos.get(neuron) != vbo) {
+                    continue; // removed meanwhile
+                }
+                if (hotNeurons.remove(neuron)) {
+                    hotNeurons.add(neuron); // now the most recently edited
+                    continue;
+                }
+                if (hotNeurons.size() >= maxHotNeurons) {
+                    NeuronModel coldest = hotNeurons.iterator().next();
+                    hotNeurons.remove(coldest);
+                    moveNeuron(coldest, emptiestVbo(coldVbos));
+                }
+                moveNeuron(neuron, emptiestVbo(hotVbos));
+                hotNeurons.add(neuron);
+            }
+        }
+    }
+
+    /**
+     * Adds a neuron to the emptiest cold vbo.
+     *
+     * @return the vbo it went to, or null if it was already here
+     */
+    synchronized NeuronVbo add(NeuronModel neuron) {
+        if (neuronVbos.containsKey(neuron)) {
+            return null;
+        }
+        // To keep the vbos balanced, always insert into the emptiest vbo
+        NeuronVbo emptiestVbo = emptiestVbo(coldVbos);
+        emptiestVbo.add(neuron);
+        neuronVbos.put(neuron, emptiestVbo);
+        return emptiestVbo;
+    }
+
+    synchronized boolean remove(NeuronModel neuron) {
+        NeuronVbo vbo = neuronVbos.remove(neuron);
+        if (vbo == null) {
+            return false;
+        }
+        hotNeurons.remove(neuron);
+        return vbo.remove(neuron);
+    }
+
+    synchronized boolean isEmpty() {
+        return neuronVbos.isEmpty();
+    }
+
+    synchronized void clear() {
+        for (NeuronVbo vbo : vbos) {
+            vbo.clear();
+        }
+        neuronVbos.clear();
+        hotNeurons.clear();
+    }
+
+    synchronized boolean contains(NeuronModel neuron) {
+        return neuronVbos.containsKey(neuron);
+    }
+
+    /**
+     * @return the vbo holding the neuron, or null
+     */
+    synchronized NeuronVbo getVbo(NeuronModel neuron) {
+        return neuronVbos.get(neuron);
+    }
+
+    synchronized boolean isHot(NeuronModel neuron) {
+        return hotNeurons.contains(neuron);
+    }
+
+    // A snapshot, so callers may add and remove neurons meanwhile
+    synchronized List<NeuronModel> getNeurons() {
+        return new ArrayList<>(neuronVbos.keySet());
+    }
+
+    synchronized int getMigrationCount() {
+        return migrationCount;
+    }
+
+}
@@ -1,14 +1,8 @@
 package org.janelia.horta.neuronvbo;
 
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.Deque;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.NavigableMap;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import javax.media.opengl.GL3;
 import org.janelia.console.viewerapi.model.NeuronModel;
 import org.janelia.geometry3d.AbstractCamera;
@@ -25,6 +19,9 @@ import org.slf4j.LoggerFactory;
  * NeuronVboPool distributes all the neurons among a finite set of vertex buffer
  * objects. Instead of using a separate vbo for each neuron, like we were doing
  * before.
+ * <p>
+ * Edited neurons live in a few small "hot" vbos, and the rest in large,
+ * tightly packed "cold" ones; see NeuronVboLayout.
  *
  * @author brunsc
  */
@@ -35,16 +32,16 @@ public class NeuronVboPool implements Iterable<NeuronModel> {
     //  b) edit update speed (more vbos means fewer neurons per vbo, means faster edit-to-display time)
     // Weird: POOL_SIZE=30 animates much faster than POOL_SIZE=5 with about 120 neurons / 300,000 vertices
     // (smaller blocks for the win...)
-    private final static int POOL_SIZE = 30;
+    // Now that edits only re-upload the edited neuron, and edited neurons
+    // live in the hot vbos, the cold vbos can be fewer and larger.
+    private final static int COLD_POOL_SIZE = 10;
+    private final static int HOT_POOL_SIZE = 3;
+    private final static int MAX_HOT_NEURONS = 24;
+    private final static float HOT_NEURON_HEADROOM = 0.5f; // room to grow in place, as a fraction of neuron size
 
-    // Maintain vbos in a structure sorted by how much stuff is in each one.
-    private final NavigableMap<Integer, Deque<NeuronVbo>> vbos = new TreeMap<>();
-    // private final List<NeuronVbo> vbos;
-    // private int nextVbo = 0;
+    private final NeuronVboLayout layout = new NeuronVboLayout(
+            COLD_POOL_SIZE, HOT_POOL_SIZE, MAX_HOT_NEURONS, HOT_NEURON_HEADROOM);
 
-    // private Set<NeuronModel> dirtyNeurons; // Track incremental updates
-    // private Map<NeuronModel, NeuronVbo> neuronVbos;
-    // TODO: increase after initial debugging
     // Shaders...
     // Be sure to synchronize these constants with the actual shader source uniform layout
     private final ShaderProgram conesShader = new ConesShader();
@@ -64,10 +61,6 @@ public class NeuronVboPool implements Iterable<NeuronModel> {
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
     public NeuronVboPool() {
-        for (int i = 0; i < POOL_SIZE; ++i) {
-            insertVbo(new NeuronVbo());
-        }
-
         lightProbeTexture = new Texture2d();
         try {
             lightProbeTexture.loadFromPpm(getClass().getResourceAsStream(
@@ -78,32 +71,6 @@ public class NeuronVboPool implements Iterable<NeuronModel> {
         }
     }
 
-    synchronized private void insertVbo(NeuronVbo vbo) {
-        Integer vboSize = vboSize(vbo);
-        if (!vbos.containsKey(vboSize)) {
-            vbos.put(vboSize, new ConcurrentLinkedDeque<NeuronVbo>());
-        }
-        Collection<NeuronVbo> subList = vbos.get(vboSize);
-        subList.add(vbo);
-    }
-
-    // Method vboSize is used to determine whether one vbo has more stuff in
-    // it than another
-    private static Integer vboSize(NeuronVbo vbo) {
-        return vbo.getVertexCount();
-    }
-
-    synchronized private NeuronVbo popEmptiestVbo() {
-        Map.Entry<Integer, Deque<NeuronVbo>> entry = vbos.firstEntry();
-        Integer vboSize = entry.getKey();
-        Deque<NeuronVbo> vboDeque = entry.getValue();
-        NeuronVbo vbo = vboDeque.removeFirst();
-        if (vboDeque.isEmpty()) {
-            vbos.remove(vboSize); // That was the last of its kind
-        }
-        return vbo;
-    }
-
     public float getRadiusOffset() {
         return radiusOffset;
     }
@@ -140,6 +107,7 @@ public class NeuronVboPool implements Iterable<NeuronModel> {
             camera.getViewport().getWidthPixels(),
             camera.getViewport().getHeightPixels()
         };
+        layout.rebalance();
         lightProbeTexture.bind(gl, 0);
 
         float micrometersPerPixel
@@ -152,20 +120,20 @@ public class NeuronVboPool implements Iterable<NeuronModel> {
         // the radii of the adjacent nodes.
         conesShader.load(gl);
         setUniforms(gl, modelViewMatrix, projectionMatrix, screenSize);
-        for (NeuronVbo vbo : new VboIterable()) {
+        for (NeuronVbo vbo : layout.getVbos()) {
             vbo.displayEdges(gl);
         }
 
         // TODO: Second pass: repeat display loop for spheres/nodes
         spheresShader.load(gl);
         setUniforms(gl, modelViewMatrix, projectionMatrix, screenSize);
-        for (NeuronVbo vbo : new VboIterable()) {
+        for (NeuronVbo vbo : layout.getVbos()) {
             vbo.displayNodes(gl);
         }
     }
 
     void dispose(GL3 gl) {
-        for (NeuronVbo vbo : new VboIterable()) {
+        for (NeuronVbo vbo : layout.getVbos()) {
             vbo.dispose(gl);
         }
         lightProbeTexture.dispose(gl);
@@ -177,85 +145,84 @@ public class NeuronVboPool implements Iterable<NeuronModel> {
         conesShader.init(gl);
         spheresShader.init(gl);
         lightProbeTexture.init(gl);
-        for (NeuronVbo vbo : new VboIterable()) {
+        for (NeuronVbo vbo : layout.getVbos()) {
             vbo.init(gl);
         }
     }
 
-    synchronized void add(NeuronModel neuron) {
-        // To keep the vbos balanced, always insert into the emptiest vbo
-        NeuronVbo emptiestVbo = popEmptiestVbo();
+    void add(NeuronModel neuron) {
+        NeuronVbo vbo = layout.add(neuron);
         final boolean doLogStats = false;
-        if (doLogStats) {
-            log.info("Emptiest vbo ({}) contains {} neurons and {} vertices",
-                    emptiestVbo.toString(),
-                    emptiestVbo.getNeuronCount(),
-                    emptiestVbo.getVertexCount());
-        }
-        emptiestVbo.add(neuron);
-        if (doLogStats) {
+        if (doLogStats && (vbo != null)) {
             log.info("Emptiest vbo ({}) now contains {} neurons and {} vertices after insersion",
-                    emptiestVbo.toString(),
-                    emptiestVbo.getNeuronCount(),
-                    emptiestVbo.getVertexCount());
+                    vbo.toString(),
+                    vbo.getNeuronCount(),
+                    vbo.getVertexCount());
         }
-        insertVbo(emptiestVbo); // Reinsert into its new sorted location
     }
 
-    synchronized boolean remove(NeuronModel neuron) {
-        for (NeuronVbo vbo : new VboIterable()) {
-            if (vbo.remove(neuron)) {
-                return true;
-            }
-        }
-        return false;
+    boolean remove(NeuronModel neuron) {
+        return layout.remove(neuron);
     }
 
     boolean isEmpty() {
-        for (NeuronVbo vbo : new VboIterable()) {
-            if (!vbo.isEmpty()) {
-                return false;
-            }
-        }
-        return true;
+        return layout.isEmpty();
     }
 
-    synchronized public void clear() {
-        for (Iterator<NeuronVbo> it = new VboIterator(); it.hasNext();) {
-            NeuronVbo vbo = it.next();
-            vbo.clear();
-        }
+    public void clear() {
+        layout.clear();
     }
 
     boolean contains(NeuronModel neuron) {
-        for (Iterator<NeuronVbo> it = new VboIterator(); it.hasNext();) {
-            NeuronVbo vbo = it.next();
-            if (vbo.contains(neuron)) {
-                return true;
-            }
-        }
-        return false;
+        return layout.contains(neuron);
     }
 
+    // Iterates over a snapshot, so callers may add and remove neurons meanwhile
     @Override
     public Iterator<NeuronModel> iterator() {
-        return new NeuronIterator();
+        return Collections.unmodifiableList(layout.getNeurons()).iterator();
     }
 
     void checkForChanges() {
-        for (Iterator<NeuronVbo> it = new VboIterator(); it.hasNext();) {
-            NeuronVbo vbo = it.next();
+        for (NeuronVbo vbo : layout.getVbos()) {
             vbo.checkForChanges();
         }
     }
 
     void checkForChanges(NeuronModel neuron) {
-        for (Iterator<NeuronVbo> it = new VboIterator(); it.hasNext();) {
-            NeuronVbo vbo = it.next();
-            if (vbo.contains(neuron)) {
-                vbo.checkForChanges();
-            }
+        NeuronVbo vbo = layout.getVbo(neuron);
+        if (vbo != null) {
+            vbo.checkForChanges();
+        }
+    }
+
+    /**
+     * Number of times a vbo re-encoded and uploaded all of its neurons.
+     */
+    public int getFullRebuildCount() {
+        int result = 0;
+        for (NeuronVbo vbo : layout.getVbos()) {
+            result += vbo.getFullRebuildCount();
+        }
+        return result;
+    }
+
+    /**
+     * Number of times a single neuron was re-encoded and uploaded on its own.
+     */
+    public int getSubRangeUpdateCount() {
+        int result = 0;
+        for (NeuronVbo vbo : layout.getVbos()) {
+            result += vbo.getSubRangeUpdateCount();
         }
+        return result;
+    }
+
+    /**
+     * Number of times a neuron moved between the hot and cold vbos.
+     */
+    public int getMigrationCount() {
+        return layout.getMigrationCount();
     }
 
     private static class ConesShader extends BasicShaderProgram {
@@ -323,94 +290,4 @@ public class NeuronVboPool implements Iterable<NeuronModel> {
             }
         }
     }
-
-    private class VboIterable implements Iterable<NeuronVbo> {
-
-        @Override
-        public Iterator<NeuronVbo> iterator() {
-            return new VboIterator();
-        }
-    }
-
-    private class VboIterator implements Iterator<NeuronVbo> {
-
-        private final Collection<NeuronVbo> EMPTY_LIST = Collections.<NeuronVbo>emptyList();
-
-        private final Iterator<Integer> sizeIterator;
-        private Iterator<NeuronVbo> vboIterator = EMPTY_LIST.iterator();
-
-        public VboIterator() {
-            sizeIterator = vbos.keySet().iterator();
-            if (sizeIterator.hasNext()) {
-                Integer currentSize = sizeIterator.next();
-                vboIterator = vbos.get(currentSize).iterator();
-            }
-        }
-
-        private void advanceToNextVbo() {
-            // Advance to next actual neuron
-            while (sizeIterator.hasNext() && (!vboIterator.hasNext())) {
-                Integer currentSize = sizeIterator.next();
-                vboIterator = vbos.get(currentSize).iterator();
-            }
-        }
-
-        @Override
-        public boolean hasNext() {
-            advanceToNextVbo();
-            return vboIterator.hasNext();
-        }
-
-        @Override
-        public NeuronVbo next() {
-            advanceToNextVbo();
-            return vboIterator.next();
-        }
-
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
-        }
-    }
-
-    private class NeuronIterator implements Iterator<NeuronModel> {
-
-        private final Collection<NeuronModel> EMPTY_LIST = Collections.<NeuronModel>emptyList();
-
-        private final Iterator<NeuronVbo> vboIterator;
-        private Iterator<NeuronModel> neuronIterator = EMPTY_LIST.iterator(); // iterator for one vbo
-
-        public NeuronIterator() {
-            vboIterator = new VboIterator();
-            if (vboIterator.hasNext()) {
-                NeuronVbo currentVbo = vboIterator.next();
-                neuronIterator = currentVbo.iterator();
-            }
-        }
-
-        private void advanceToNextNeuron() {
-            // Advance to next actual neuron
-            while (vboIterator.hasNext() && (!neuronIterator.hasNext())) {
-                NeuronVbo currentVbo = vboIterator.next();
-                neuronIterator = currentVbo.iterator();
-            }
-        }
-
-        @Override
-        public boolean hasNext() {
-            advanceToNextNeuron();
-            return neuronIterator.hasNext();
-        }
-
-        @Override
-        public NeuronModel next() {
-            advanceToNextNeuron();
-            return neuronIterator.next();
-        }
-
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
-        }
-    }
 }
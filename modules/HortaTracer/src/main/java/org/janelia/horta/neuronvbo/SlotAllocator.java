@@ -0,0 +1,81 @@
+package org.janelia.horta.neuronvbo;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * First fit allocation of slot ranges, below a fixed capacity. NeuronVbo
+ * uses one for its vertex slots and one for its edge slots.
+ */
+class SlotAllocator
+{
+    private final NavigableMap<Integer, Integer> free = new TreeMap<>(); // start -> length
+    private int start = 0;
+    private int end = 0; // one past the last slot in use
+    private int capacity = 0;
+    private int freeCount = 0; // free slots below end
+
+    void reset(int start, int capacity) {
+        free.clear();
+        this.start = start;
+        this.end = start;
+        this.capacity = capacity;
+        freeCount = 0;
+    }
+
+    // Returns the first slot of the range, or -1 if there is no room
+    int allocate(int length) {
+        if (length == 0)
+            return start;
+        for (Map.Entry<Integer, Integer> hole : free.entrySet()) {
+            int holeStart = hole.getKey();
+            int holeLength = hole.getValue();
+            if (holeLength >= length) {
+                free.remove(holeStart);
+                if (holeLength > length)
+                    free.put(holeStart + length, holeLength - length);
+                freeCount -= length;
+                return holeStart;
+            }
+        }
+        if (end + length > capacity)
+            return -1;
+        int result = end;
+        end += length;
+        return result;
+    }
+
+    void release(int offset, int length) {
+        if (length == 0)
+            return;
+        Map.Entry<Integer, Integer> before = free.lowerEntry(offset);
+        if (before != null && before.getKey() + before.getValue() == offset) {
+            free.remove(before.getKey());
+            offset = before.getKey();
+            length += before.getValue();
+            freeCount -= before.getValue();
+        }
+        Integer after = free.get(offset + length);
+        if (after != null) {
+            free.remove(offset + length);
+            length += after;
+            freeCount -= after;
+        }
+        if (offset + length == end) {
+            end = offset; // give the tail back
+        }
+        else {
+            free.put(offset, length);
+            freeCount += length;
+        }
+    }
+
+    int getEnd() {
+        return end;
+    }
+
+    int getFreeCount() {
+        return freeCount;
+    }
+}
@@ -8,10 +8,12 @@ import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 
 import net.miginfocom.swing.MigLayout;
+import org.janelia.horta.blocks.TileCacheStats;
 import org.openide.util.NbPreferences;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,8 +25,18 @@ public class TileLoadingPanel extends javax.swing.JPanel {
     public static final String PREFERENCE_CONCURRENT_LOADS = "ConcurrentLoads";
     public static final String PREFERENCE_CONCURRENT_LOADS_DEFAULT = "1";
 
-    public static final String PREFERENCE_RAM_TILE_COUNT = "RamTileCount";
-    public static final String PREFERENCE_RAM_TILE_COUNT_DEFAULT = "3";
+    // Raw tiles are several hundred MB each; these defaults hold about three in RAM and one on the GPU
+    public static final String PREFERENCE_RAW_TILE_RAM_BUDGET_MB = "RawTileRamBudgetMB";
+    public static final String PREFERENCE_RAW_TILE_RAM_BUDGET_MB_DEFAULT = "2400";
+
+    public static final String PREFERENCE_RAW_TILE_GPU_BUDGET_MB = "RawTileGpuBudgetMB";
+    public static final String PREFERENCE_RAW_TILE_GPU_BUDGET_MB_DEFAULT = "800";
+
+    public static final String PREFERENCE_TILE_RAM_BUDGET_MB = "TileRamBudgetMB";
+    public static final String PREFERENCE_TILE_RAM_BUDGET_MB_DEFAULT = "2048";
+
+    public static final String PREFERENCE_TILE_GPU_BUDGET_MB = "TileGpuBudgetMB";
+    public static final String PREFERENCE_TILE_GPU_BUDGET_MB_DEFAULT = "1024";
 
     public static final String PREFERENCE_ANNOTATIONS_CLICK_MODE = "AnnotationClickMode";
     public static final String CLICK_MODE_SHIFT_LEFT_CLICK = "shift-left-click";
@@ -33,7 +45,12 @@ public class TileLoadingPanel extends javax.swing.JPanel {
 
     private final TileLoadingOptionsPanelController controller;
     private final JTextField concurrentLoadsField;
-    private final JTextField ramTileCountField;
+    private final JTextField rawRamBudgetField;
+    private final JTextField rawGpuBudgetField;
+    private final JTextField ramBudgetField;
+    private final JTextField gpuBudgetField;
+    private final JLabel cacheStatsLabel;
+    private final Timer cacheStatsTimer;
     private JComboBox<String> clickModeCombo;
 
     DocumentListener listener = new DocumentListener() {
@@ -66,12 +83,33 @@ public class TileLoadingPanel extends javax.swing.JPanel {
         attrPanel.add(titleLabel,"gap para");
         attrPanel.add(concurrentLoadsField,"gap para, width 100:400:600, growx");
 
-        this.ramTileCountField = new JTextField(10);
-        ramTileCountField.getDocument().addDocumentListener(listener);
-        titleLabel = new JLabel("Number of tiles to cache in RAM: ");
-        titleLabel.setLabelFor(ramTileCountField);
+        this.rawRamBudgetField = new JTextField(10);
+        rawRamBudgetField.getDocument().addDocumentListener(listener);
+        titleLabel = new JLabel("Raw tile RAM budget (MB): ");
+        titleLabel.setLabelFor(rawRamBudgetField);
+        attrPanel.add(titleLabel,"gap para");
+        attrPanel.add(rawRamBudgetField,"gap para, width 100:400:600, growx");
+
+        this.rawGpuBudgetField = new JTextField(10);
+        rawGpuBudgetField.getDocument().addDocumentListener(listener);
+        titleLabel = new JLabel("Raw tile GPU budget (MB): ");
+        titleLabel.setLabelFor(rawGpuBudgetField);
+        attrPanel.add(titleLabel,"gap para");
+        attrPanel.add(rawGpuBudgetField,"gap para, width 100:400:600, growx");
+
+        this.ramBudgetField = new JTextField(10);
+        ramBudgetField.getDocument().addDocumentListener(listener);
+        titleLabel = new JLabel("Volume block RAM budget (MB): ");
+        titleLabel.setLabelFor(ramBudgetField);
+        attrPanel.add(titleLabel,"gap para");
+        attrPanel.add(ramBudgetField,"gap para, width 100:400:600, growx");
+
+        this.gpuBudgetField = new JTextField(10);
+        gpuBudgetField.getDocument().addDocumentListener(listener);
+        titleLabel = new JLabel("Volume block GPU budget (MB): ");
+        titleLabel.setLabelFor(gpuBudgetField);
         attrPanel.add(titleLabel,"gap para");
-        attrPanel.add(ramTileCountField,"gap para, width 100:400:600, growx");
+        attrPanel.add(gpuBudgetField,"gap para, width 100:400:600, growx");
 
         String [] modeStrings = {CLICK_MODE_LEFT_CLICK, CLICK_MODE_SHIFT_LEFT_CLICK};
         this.clickModeCombo = new JComboBox<>(modeStrings);
@@ -88,9 +126,52 @@ public class TileLoadingPanel extends javax.swing.JPanel {
         attrPanel.add(clickModeLabel, "gap para");
         attrPanel.add(clickModeCombo, "gap para");
 
+        this.cacheStatsLabel = new JLabel();
+        JLabel cacheStatsTitle = new JLabel("Volume block cache: ");
+        cacheStatsTitle.setLabelFor(cacheStatsLabel);
+        attrPanel.add(cacheStatsTitle, "gap para, aligny top");
+        attrPanel.add(cacheStatsLabel, "gap para, growx");
+
+        // Refresh the cache statistics while the panel is showing
+        this.cacheStatsTimer = new Timer(1000, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                updateCacheStats();
+            }
+        });
+
         add(attrPanel, BorderLayout.CENTER);
     }
 
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        updateCacheStats();
+        cacheStatsTimer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        cacheStatsTimer.stop();
+        super.removeNotify();
+    }
+
+    private void updateCacheStats() {
+        StringBuilder text = new StringBuilder("<html>");
+        for (TileCacheStats stats : TileCacheStats.getAll()) {
+            text.append(String.format("%s<br>resident: %d blocks, %.1f MB RAM, %.1f MB GPU<br>"
+                    + "hit rate: %.1f%%, mean load: %.1f ms over %d loads, evictions: %d<br>",
+                    stats.getName(), stats.getResidentTileCount(),
+                    stats.getResidentRamBytes() / 1048576.0, stats.getResidentGpuBytes() / 1048576.0,
+                    100.0 * stats.getHitRate(), stats.getMeanLoadMs(), stats.getLoadCount(),
+                    stats.getEvictionCount()));
+        }
+        if (text.length() == "<html>".length()) {
+            text.append("no blocks loaded");
+        }
+        cacheStatsLabel.setText(text.append("</html>").toString());
+    }
+
     /**
      * This method is called from within the constructor to
      * initialize the form.
@@ -105,20 +186,29 @@ public class TileLoadingPanel extends javax.swing.JPanel {
 
     void load() {
         concurrentLoadsField.setText(NbPreferences.forModule(TileLoadingPanel.class).get(PREFERENCE_CONCURRENT_LOADS, PREFERENCE_CONCURRENT_LOADS_DEFAULT));
-        ramTileCountField.setText(NbPreferences.forModule(TileLoadingPanel.class).get(PREFERENCE_RAM_TILE_COUNT, PREFERENCE_RAM_TILE_COUNT_DEFAULT));
+        rawRamBudgetField.setText(NbPreferences.forModule(TileLoadingPanel.class).get(PREFERENCE_RAW_TILE_RAM_BUDGET_MB, PREFERENCE_RAW_TILE_RAM_BUDGET_MB_DEFAULT));
+        rawGpuBudgetField.setText(NbPreferences.forModule(TileLoadingPanel.class).get(PREFERENCE_RAW_TILE_GPU_BUDGET_MB, PREFERENCE_RAW_TILE_GPU_BUDGET_MB_DEFAULT));
+        ramBudgetField.setText(NbPreferences.forModule(TileLoadingPanel.class).get(PREFERENCE_TILE_RAM_BUDGET_MB, PREFERENCE_TILE_RAM_BUDGET_MB_DEFAULT));
+        gpuBudgetField.setText(NbPreferences.forModule(TileLoadingPanel.class).get(PREFERENCE_TILE_GPU_BUDGET_MB, PREFERENCE_TILE_GPU_BUDGET_MB_DEFAULT));
         clickModeCombo.setSelectedItem(NbPreferences.forModule(TileLoadingPanel.class).get(PREFERENCE_ANNOTATIONS_CLICK_MODE, PREFERENCE_ANNOTATIONS_CLICK_MODE_DEFAULT));
     }
 
     void store() {
         NbPreferences.forModule(TileLoadingPanel.class).put(PREFERENCE_CONCURRENT_LOADS, concurrentLoadsField.getText());
-        NbPreferences.forModule(TileLoadingPanel.class).put(PREFERENCE_RAM_TILE_COUNT, ramTileCountField.getText());
+        NbPreferences.forModule(TileLoadingPanel.class).put(PREFERENCE_RAW_TILE_RAM_BUDGET_MB, rawRamBudgetField.getText());
+        NbPreferences.forModule(TileLoadingPanel.class).put(PREFERENCE_RAW_TILE_GPU_BUDGET_MB, rawGpuBudgetField.getText());
+        NbPreferences.forModule(TileLoadingPanel.class).put(PREFERENCE_TILE_RAM_BUDGET_MB, ramBudgetField.getText());
+        NbPreferences.forModule(TileLoadingPanel.class).put(PREFERENCE_TILE_GPU_BUDGET_MB, gpuBudgetField.getText());
         NbPreferences.forModule(TileLoadingPanel.class).put(PREFERENCE_ANNOTATIONS_CLICK_MODE, (String) clickModeCombo.getSelectedItem());
     }
 
     boolean valid() {
         try {
             Integer.parseInt(concurrentLoadsField.getText());
-            Integer.parseInt(ramTileCountField.getText());
+            Long.parseLong(rawRamBudgetField.getText());
+            Long.parseLong(rawGpuBudgetField.getText());
+            Long.parseLong(ramBudgetField.getText());
+            Long.parseLong(gpuBudgetField.getText());
             // click mode drop-down is always valid
         }
         catch (NumberFormatException e) {
@@ -0,0 +1,126 @@
+package org.janelia.horta.render;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import javax.media.opengl.GL3;
+import org.janelia.horta.movie.FrameSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads rendered frames back from the GPU through a pair of pixel pack
+ * buffers. A plain glReadPixels into client memory waits for the frame to
+ * finish rendering and then for the copy; here reading a frame only queues
+ * the copy, and its pixels are collected once the next frame has been
+ * queued, by which time the copy has normally long finished. Frames reach
+ * the sink in the order they were captured, one capture behind; flush()
+ * hands over the last one.
+ */
+public class FrameReadback
+{
+    private static final Logger LOG = LoggerFactory.getLogger(FrameReadback.class);
+
+    private final int[] pbos = {0, 0};
+    private final int[] byteCounts = {0, 0};
+    private final int[] widths = {0, 0};
+    private final int[] heights = {0, 0};
+    private final boolean[] pending = {false, false};
+    private int next = 0;
+
+    /**
+     * Queues a copy of part of the current read buffer, and hands the
+     * previously captured frame, if any, to the sink.
+     */
+    public void captureFrame(GL3 gl, int x, int y, int width, int height, FrameSink sink)
+    {
+        int slot = next;
+        next = 1 - next;
+        if (pending[slot])
+            collect(gl, slot, sink); // only if the previous capture was never collected
+        startRead(gl, slot, x, y, width, height);
+        if (pending[next])
+            collect(gl, next, sink);
+    }
+
+    /**
+     * Hands any frame still being read back to the sink.
+     */
+    public void flush(GL3 gl, FrameSink sink)
+    {
+        // the older of two pending frames is the one that will be written to next
+        for (int i = 0; i < 2; ++i) {
+            int slot = (next + i) % 2;
+            if (pending[slot])
+                collect(gl, slot, sink);
+        }
+    }
+
+    public void dispose(GL3 gl)
+    {
+        for (int i = 0; i < 2; ++i) {
+            if (pbos[i] != 0)
+                gl.glDeleteBuffers(1, pbos, i);
+            pbos[i] = 0;
+            byteCounts[i] = 0;
+            pending[i] = false;
+        }
+    }
+
+    private void startRead(GL3 gl, int slot, int x, int y, int width, int height)
+    {
+        int byteCount = 4 * width * height;
+        if (pbos[slot] == 0)
+            gl.glGenBuffers(1, pbos, slot);
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, pbos[slot]);
+        if (byteCounts[slot] != byteCount) {
+            gl.glBufferData(GL3.GL_PIXEL_PACK_BUFFER, byteCount, null, GL3.GL_STREAM_READ);
+            byteCounts[slot] = byteCount;
+        }
+        gl.glPixelStorei(GL3.GL_PACK_ALIGNMENT, 4);
+        // BGRA as reversed 8-bit ints is the layout of TYPE_INT_RGB pixels
+        gl.glReadPixels(x, y, width, height, GL3.GL_BGRA, GL3.GL_UNSIGNED_INT_8_8_8_8_REV, 0);
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+        widths[slot] = width;
+        heights[slot] = height;
+        pending[slot] = true;
+    }
+
+    private void collect(GL3 gl, int slot, FrameSink sink)
+    {
+        pending[slot] = false;
+        int width = widths[slot];
+        int height = heights[slot];
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, pbos[slot]);
+        BufferedImage frame;
+        try {
+            ByteBuffer mapped = gl.glMapBufferRange(GL3.GL_PIXEL_PACK_BUFFER, 0, byteCounts[slot], GL3.GL_MAP_READ_BIT);
+            if (mapped == null) {
+                // eg the context was lost; there is nothing to unmap
+                LOG.warn("Could not map the read back buffer; skipping a {}x{} frame", width, height);
+                return;
+            }
+            try {
+                // only once the pixels are there, so a skipped frame takes no
+                //  buffer from the sink; the sink may wait for a free one
+                frame = sink.acquireFrameBuffer(width, height);
+                int[] target = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+                IntBuffer pixels = mapped.order(ByteOrder.nativeOrder()).asIntBuffer();
+                // GL rows run bottom to top
+                for (int row = 0; row < height; ++row) {
+                    pixels.position((height - 1 - row) * width);
+                    pixels.get(target, row * width, width);
+                }
+            }
+            finally {
+                gl.glUnmapBuffer(GL3.GL_PIXEL_PACK_BUFFER);
+            }
+        }
+        finally {
+            gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+        }
+        sink.submitFrame(frame);
+    }
+}
@@ -14,4 +14,16 @@ public class VoxelIndex {
     public VoxelIndex(int[] xyz) {
         data = xyz;
     }
+
+    public int getX() {
+        return data[0];
+    }
+
+    public int getY() {
+        return data[1];
+    }
+
+    public int getZ() {
+        return data[2];
+    }
 }
@@ -0,0 +1,118 @@
+package org.janelia.horta.blocks;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestTileResidency {
+
+    private static final long MB = 1024L * 1024L;
+
+    // Tiles of 100 MB, each a given distance from the focus
+    private static class Tiles {
+        final TileResidency<String> residency = new TileResidency<>();
+        final Map<String, Double> distances = new HashMap<>();
+        final ToDoubleFunction<String> distance = distances::get;
+
+        Tiles add(String key, double distanceFromFocus) {
+            residency.add(key, 100 * MB, 100 * MB);
+            distances.put(key, distanceFromFocus);
+            return this;
+        }
+    }
+
+    private static Set<String> set(String... keys) {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testRamBudgetEvictsFarthestUndesiredFirst() {
+        Tiles tiles = new Tiles()
+                .add("near", 1.0)
+                .add("far", 5.0)
+                .add("farthest", 9.0)
+                .add("middle", 3.0)
+                .add("focus", 0.0);
+        assertEquals(500 * MB, tiles.residency.getRamBytes());
+        // The farthest tile is still wanted, so it stays
+        Set<String> desired = set("focus", "farthest");
+        assertEquals(Arrays.asList("far", "middle"),
+                tiles.residency.evict(desired, 300 * MB, 0, tiles.distance));
+        assertEquals(300 * MB, tiles.residency.getRamBytes());
+        assertEquals(3, tiles.residency.size());
+        assertTrue(tiles.residency.contains("near"));
+        assertFalse(tiles.residency.contains("far"));
+        // Within budget, nothing more goes
+        assertTrue(tiles.residency.evict(desired, 300 * MB, 0, tiles.distance).isEmpty());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testDesiredTilesAreNeverEvicted() {
+        Tiles tiles = new Tiles().add("a", 1.0).add("b", 2.0).add("c", 3.0);
+        assertEquals(Collections.singletonList("c"),
+                tiles.residency.evict(set("a", "b"), 50 * MB, 0, tiles.distance));
+        // Still over budget, as far as undesired tiles allow
+        assertEquals(200 * MB, tiles.residency.getRamBytes());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testGpuBytesCountOnceDisplayed() {
+        Tiles tiles = new Tiles().add("a", 1.0).add("b", 2.0).add("c", 3.0);
+        assertEquals(0, tiles.residency.getGpuBytes());
+        // Nothing is on the GPU yet, so nothing is over the GPU budget
+        assertTrue(tiles.residency.evict(set(), 0, 150 * MB, tiles.distance).isEmpty());
+
+        tiles.residency.markDisplayed(Arrays.asList("a", "c", "unknown"));
+        tiles.residency.markDisplayed(Arrays.asList("a", "c"));
+        assertEquals(200 * MB, tiles.residency.getGpuBytes());
+        // The farthest tile goes first, even though it is not on the GPU
+        assertEquals(Arrays.asList("c"), tiles.residency.evict(set(), 0, 150 * MB, tiles.distance));
+        assertEquals(100 * MB, tiles.residency.getGpuBytes());
+        assertEquals(200 * MB, tiles.residency.getRamBytes());
+
+        // Removing a tile that was never displayed leaves the GPU bytes alone
+        tiles.residency.remove("b");
+        assertEquals(100 * MB, tiles.residency.getGpuBytes());
+        tiles.residency.remove("a");
+        assertEquals(0, tiles.residency.getGpuBytes());
+        assertEquals(0, tiles.residency.getRamBytes());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testEquallyDistantTilesGoOldestFirst() {
+        Tiles tiles = new Tiles().add("first", 2.0).add("second", 2.0).add("third", 2.0);
+        assertEquals(Arrays.asList("first", "second"),
+                tiles.residency.evict(set(), 100 * MB, 0, tiles.distance));
+        // Adding a tile again replaces it, as the newest
+        tiles.add("fourth", 2.0).add("third", 2.0);
+        assertEquals(200 * MB, tiles.residency.getRamBytes());
+        assertEquals(Arrays.asList("fourth"), tiles.residency.evict(set(), 100 * MB, 0, tiles.distance));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testZeroBudgetIsUnlimited() {
+        Tiles tiles = new Tiles().add("a", 1.0).add("b", 2.0);
+        tiles.residency.markDisplayed(Arrays.asList("a", "b"));
+        assertTrue(tiles.residency.evict(set(), 0, -1, tiles.distance).isEmpty());
+        tiles.residency.clear();
+        assertEquals(0, tiles.residency.size());
+        assertEquals(0, tiles.residency.getRamBytes());
+        assertEquals(0, tiles.residency.getGpuBytes());
+    }
+
+}
@@ -0,0 +1,191 @@
+package org.janelia.horta.ktx;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestKtxData {
+
+    // Little endian KTX file with one key/value pair and an odd-sized mipmap chain
+    private static byte[] createKtx(int width, int height, int depth, int levels) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] {(byte) 0xAB, 0x4B, 0x54, 0x58, 0x20, 0x31, 0x31, (byte) 0xBB, 0x0D, 0x0A, 0x1A, 0x0A});
+        out.write(new byte[] {1, 2, 3, 4});
+        byte[] keyValue = "multiscale_level_id\0003".getBytes(StandardCharsets.US_ASCII);
+        int keyValuePadding = 3 - ((keyValue.length + 3) % 4);
+        ByteBuffer ints = ByteBuffer.allocate(4 * 12).order(ByteOrder.LITTLE_ENDIAN);
+        ints.putInt(0x1401).putInt(1).putInt(0x1903).putInt(0x8229).putInt(0x1903)
+                .putInt(width).putInt(height).putInt(depth).putInt(0).putInt(1).putInt(levels)
+                .putInt(4 + keyValue.length + keyValuePadding);
+        out.write(ints.array());
+        out.write(littleEndianInt(keyValue.length));
+        out.write(keyValue);
+        out.write(new byte[keyValuePadding]);
+        for (int m = 0; m < levels; ++m) {
+            int size = Math.max(1, width >> m) * Math.max(1, height >> m) * Math.max(1, depth >> m);
+            out.write(littleEndianInt(size));
+            for (int i = 0; i < size; ++i) {
+                out.write(expectedByte(m, i));
+            }
+            out.write(new byte[3 - ((size + 3) % 4)]);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] littleEndianInt(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    private static int expectedByte(int level, int index) {
+        return (index * 31 + level * 7) & 0xff;
+    }
+
+    private static void assertMipmaps(KtxData data, int width, int height, int depth, int levels) {
+        assertEquals(width, data.header.pixelWidth);
+        assertEquals(levels, data.header.numberOfMipmapLevels);
+        assertEquals("3", data.header.keyValueMetadata.get("multiscale_level_id"));
+        assertEquals(levels, data.mipmaps.size());
+        for (int m = 0; m < levels; ++m) {
+            ByteBuffer mipmap = data.mipmaps.get(m);
+            int size = Math.max(1, width >> m) * Math.max(1, height >> m) * Math.max(1, depth >> m);
+            assertTrue(mipmap.isDirect());
+            mipmap.rewind();
+            assertEquals(size, mipmap.remaining());
+            for (int i = 0; i < size; ++i) {
+                assertEquals(expectedByte(m, i), mipmap.get(i) & 0xff);
+            }
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testStreamIntoPooledBuffers() throws Exception {
+        byte[] ktx = createKtx(17, 9, 5, 5);
+        KtxData data = new KtxData();
+        data.loadStream(new ByteArrayInputStream(ktx));
+        assertMipmaps(data, 17, 9, 5, 5);
+        assertEquals(17 * 9 * 5 + 8 * 4 * 2 + 4 * 2 + 2 + 1, data.getMipmapByteCount());
+
+        // Released buffers are reused by the next load
+        KtxBufferPool pool = KtxBufferPool.getInstance();
+        data.release();
+        assertTrue(data.mipmaps.isEmpty());
+        long allocated = pool.getAllocatedBytes();
+        long reused = pool.getReuseCount();
+        KtxData again = new KtxData();
+        again.loadStream(new ByteArrayInputStream(ktx));
+        assertMipmaps(again, 17, 9, 5, 5);
+        assertEquals(allocated, pool.getAllocatedBytes());
+        assertEquals(reused + 5, pool.getReuseCount());
+        again.release();
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testTruncatedStreamFails() throws Exception {
+        byte[] ktx = createKtx(16, 16, 16, 3);
+        byte[] truncated = new byte[ktx.length - 100];
+        System.arraycopy(ktx, 0, truncated, 0, truncated.length);
+        try {
+            new KtxData().loadStream(new ByteArrayInputStream(truncated));
+            fail("expected an IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testLocalFileIsMapped() throws Exception {
+        Path file = Files.createTempFile("block", ".ktx");
+        try {
+            Files.write(file, createKtx(32, 16, 8, 6));
+            KtxData data = new KtxData();
+            data.loadFile(file);
+            assertMipmaps(data, 32, 16, 8, 6);
+            for (ByteBuffer mipmap : data.mipmaps) {
+                assertTrue(mipmap.isReadOnly());
+            }
+            long idle = KtxBufferPool.getInstance().getIdleBytes();
+            data.release(); // mapped slices never enter the pool
+            assertEquals(idle, KtxBufferPool.getInstance().getIdleBytes());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testPoolIgnoresForeignAndRepeatedReleases() {
+        KtxBufferPool pool = new KtxBufferPool(1 << 20);
+        ByteBuffer buffer = pool.acquire(5000);
+        assertEquals(5000, buffer.limit());
+        assertEquals(8192, buffer.capacity());
+        pool.release(buffer);
+        pool.release(buffer);
+        assertEquals(8192, pool.getIdleBytes());
+        pool.release(ByteBuffer.allocate(4096));
+        pool.release(ByteBuffer.allocateDirect(3000));
+        assertEquals(8192, pool.getIdleBytes());
+        assertSame(buffer, pool.acquire(6000));
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    /**
+     * Load throughput and allocation per block, from a stream and from a
+     * memory mapped file.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkBlockLoad() throws Exception {
+        byte[] ktx = createKtx(256, 256, 128, 9);
+        Path file = Files.createTempFile("block", ".ktx");
+        try {
+            Files.write(file, ktx);
+            for (boolean mapped : new boolean[] {false, true}) {
+                int blocks = 40;
+                KtxBufferPool pool = KtxBufferPool.getInstance();
+                long directBefore = pool.getAllocatedBytes();
+                long heapBefore = threadAllocatedBytes();
+                long t0 = System.nanoTime();
+                for (int b = 0; b < blocks; ++b) {
+                    KtxData data = new KtxData();
+                    if (mapped) {
+                        data.loadFile(file);
+                    } else {
+                        data.loadStream(new ByteArrayInputStream(ktx));
+                    }
+                    data.release();
+                }
+                double seconds = (System.nanoTime() - t0) / 1e9;
+                System.out.println(String.format("KtxData %s: %.0f MB/s, %.1f kB heap and %.1f kB direct allocated per block",
+                        mapped ? "mapped file" : "stream",
+                        blocks * (double) ktx.length / 1048576.0 / seconds,
+                        (threadAllocatedBytes() - heapBefore) / 1024.0 / blocks,
+                        (pool.getAllocatedBytes() - directBefore) / 1024.0 / blocks));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static long threadAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,251 @@
+package org.janelia.horta.loader;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.janelia.geometry3d.Matrix4;
+import org.janelia.horta.loader.RawTileResidency.Action;
+import org.janelia.horta.loader.RawTileResidency.Event;
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestRawTileResidency {
+
+    private static final long MB = 1024L * 1024L;
+
+    // Unit cubes with their minimum corner at integer coordinates, each 100 MB
+    private static class Tiles implements RawTileResidency.TileGeometry<String> {
+        final Map<String, float[]> origins = new HashMap<>();
+
+        String add(float x, float y, float z) {
+            String name = String.format("%.0f,%.0f,%.0f", x, y, z);
+            origins.put(name, new float[] {x, y, z});
+            return name;
+        }
+
+        @Override
+        public float[] getMin(String tile) {
+            return origins.get(tile).clone();
+        }
+
+        @Override
+        public float[] getMax(String tile) {
+            float[] o = origins.get(tile);
+            return new float[] {o[0] + 1, o[1] + 1, o[2] + 1};
+        }
+
+        @Override
+        public long getRamBytes(String tile) {
+            return 100 * MB;
+        }
+
+        @Override
+        public long getGpuBytes(String tile) {
+            return 100 * MB;
+        }
+    }
+
+    private static final Predicate<String> ALL_IN_VIEW = tile -> true;
+
+    private static List<String> tilesFor(List<Event<String>> events, Action action) {
+        List<String> result = new ArrayList<>();
+        for (Event<String> event : events) {
+            if (event.action == action) {
+                result.add(event.tile);
+            }
+        }
+        return result;
+    }
+
+    // Loads every requested tile, in order, until nothing more is asked for
+    private static List<Event<String>> loadAll(RawTileResidency<String> residency, List<Event<String>> events) {
+        List<Event<String>> all = new ArrayList<>(events);
+        List<Event<String>> pending = new ArrayList<>(events);
+        while (!pending.isEmpty()) {
+            Event<String> event = pending.remove(0);
+            if (event.action == Action.LOAD || event.action == Action.PRELOAD || event.action == Action.PREFETCH) {
+                List<Event<String>> more = residency.tileLoaded(event.tile);
+                all.addAll(more);
+                pending.addAll(more);
+            }
+        }
+        return all;
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testTilesAtSameXAreRankedIn3d() {
+        Tiles tiles = new Tiles();
+        String far = tiles.add(0, 5, 5);
+        String near = tiles.add(0, 0, 0);
+        String middle = tiles.add(0, 2, 0);
+        RawTileResidency<String> residency = new RawTileResidency<>(tiles, 300 * MB, 100 * MB);
+        List<Event<String>> events = residency.update(new float[] {0.5f, 0.5f, 0.5f},
+                Arrays.asList(far, middle, near), ALL_IN_VIEW);
+        assertEquals(Collections.singletonList(new Event<>(Action.LOAD, near)), events);
+        events = residency.tileLoaded(near);
+        assertEquals(Arrays.asList(
+                new Event<>(Action.UPLOAD, near),
+                new Event<>(Action.PRELOAD, middle),
+                new Event<>(Action.PRELOAD, far)), events);
+        residency.tileLoaded(middle);
+        residency.tileLoaded(far);
+        assertEquals(3, residency.getRamTiles().size());
+        assertEquals(300 * MB, residency.getRamBytes());
+        assertEquals(100 * MB, residency.getGpuBytes());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testBudgetsLimitResidentBytes() {
+        Tiles tiles = new Tiles();
+        List<String> row = new ArrayList<>();
+        for (int x = 0; x < 10; ++x) {
+            row.add(tiles.add(x, 0, 0));
+        }
+        RawTileResidency<String> residency = new RawTileResidency<>(tiles, 450 * MB, 250 * MB);
+        List<Event<String>> events = loadAll(residency,
+                residency.update(new float[] {0.5f, 0.5f, 0.5f}, row, ALL_IN_VIEW));
+        assertEquals(Arrays.asList(row.get(0), row.get(1)), tilesFor(events, Action.UPLOAD));
+        assertEquals(Arrays.asList(row.get(0), row.get(1), row.get(2), row.get(3)), new ArrayList<>(residency.getRamTiles()));
+        assertEquals(400 * MB, residency.getRamBytes());
+        assertEquals(200 * MB, residency.getGpuBytes());
+
+        // The nearest tile is displayed even when it alone is over budget
+        residency.setBudgets(50 * MB, 50 * MB);
+        events = residency.update(new float[] {0.6f, 0.5f, 0.5f}, row, ALL_IN_VIEW);
+        assertEquals(Arrays.asList(row.get(1)), tilesFor(events, Action.HIDE));
+        assertEquals(Arrays.asList(row.get(1), row.get(2), row.get(3)), tilesFor(events, Action.EVICT));
+        assertEquals(100 * MB, residency.getRamBytes());
+        assertEquals(100 * MB, residency.getGpuBytes());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testDisplayedTileStaysUntilReplaced() {
+        Tiles tiles = new Tiles();
+        String a = tiles.add(0, 0, 0);
+        String b = tiles.add(5, 0, 0);
+        List<String> both = Arrays.asList(a, b);
+        RawTileResidency<String> residency = new RawTileResidency<>(tiles, 100 * MB, 100 * MB);
+        loadAll(residency, residency.update(new float[] {0.5f, 0.5f, 0.5f}, both, ALL_IN_VIEW));
+        assertTrue(residency.isOnGpu(a));
+
+        // Move to b; a remains displayed while b loads
+        List<Event<String>> events = residency.update(new float[] {5.5f, 0.5f, 0.5f}, both, ALL_IN_VIEW);
+        assertEquals(Collections.singletonList(new Event<>(Action.LOAD, b)), events);
+        assertTrue(residency.isOnGpu(a));
+
+        // Once b is loaded, the GPU budget makes room for it by hiding a first
+        events = residency.tileLoaded(b);
+        assertEquals(Arrays.asList(
+                new Event<>(Action.HIDE, a),
+                new Event<>(Action.EVICT, a),
+                new Event<>(Action.UPLOAD, b)), events);
+        assertFalse(residency.isInRam(a));
+        assertEquals(100 * MB, residency.getGpuBytes());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testDisplayLoadCancelsPreloads() {
+        Tiles tiles = new Tiles();
+        List<String> row = new ArrayList<>();
+        for (int x = 0; x < 6; ++x) {
+            row.add(tiles.add(3 * x, 0, 0));
+        }
+        RawTileResidency<String> residency = new RawTileResidency<>(tiles, 300 * MB, 100 * MB);
+        List<Event<String>> events = residency.update(new float[] {0.5f, 0.5f, 0.5f}, row, ALL_IN_VIEW);
+        residency.tileLoaded(row.get(0));
+        assertTrue(residency.isLoading(row.get(1)));
+        assertTrue(residency.isLoading(row.get(2)));
+
+        // Jump to the far end, where nothing is loaded
+        events = residency.update(new float[] {15.5f, 0.5f, 0.5f}, row, ALL_IN_VIEW);
+        assertEquals(Arrays.asList(row.get(1), row.get(2)), tilesFor(events, Action.CANCEL));
+        assertEquals(Collections.singletonList(row.get(5)), tilesFor(events, Action.LOAD));
+        assertTrue(tilesFor(events, Action.PRELOAD).isEmpty());
+        assertTrue(tilesFor(events, Action.PREFETCH).isEmpty());
+
+        // A cancelled load that still finishes is discarded
+        assertEquals(Collections.singletonList(new Event<>(Action.DISCARD, row.get(1))),
+                residency.tileLoaded(row.get(1)));
+        assertFalse(residency.isInRam(row.get(1)));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testPrefetchAheadOfMovingFocus() {
+        Tiles tiles = new Tiles();
+        String center = tiles.add(0, 0, 0);
+        String ahead = tiles.add(1.5f, 0, 0);
+        String behind = tiles.add(-1.2f, 0, 0);
+        List<String> all = Arrays.asList(center, ahead, behind);
+        RawTileResidency<String> residency = new RawTileResidency<>(tiles, 200 * MB, 100 * MB);
+        List<Event<String>> events = loadAll(residency,
+                residency.update(new float[] {0.4f, 0.5f, 0.5f}, all, ALL_IN_VIEW));
+        // Standing still, the nearer tile behind is preloaded
+        assertEquals(Collections.singletonList(behind), tilesFor(events, Action.PRELOAD));
+        assertNull(residency.getPrefetchTile());
+
+        // Moving in +x, the tile ahead replaces it
+        events = residency.update(new float[] {0.45f, 0.5f, 0.5f}, all, ALL_IN_VIEW);
+        assertEquals(ahead, residency.getPrefetchTile());
+        assertEquals(Collections.singletonList(behind), tilesFor(events, Action.EVICT));
+        assertEquals(Collections.singletonList(ahead), tilesFor(events, Action.PREFETCH));
+
+        // Turning the camera without moving the focus keeps the prediction
+        events = residency.update(new float[] {0.45f, 0.5f, 0.5f}, all, ALL_IN_VIEW);
+        assertEquals(ahead, residency.getPrefetchTile());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testOutOfViewTilesRankLower() {
+        Tiles tiles = new Tiles();
+        String center = tiles.add(0, 0, 0);
+        String left = tiles.add(-2, 0, 0);
+        String right = tiles.add(2.5f, 0, 0);
+        RawTileResidency<String> residency = new RawTileResidency<>(tiles, 200 * MB, 100 * MB);
+        List<Event<String>> events = loadAll(residency, residency.update(new float[] {0.5f, 0.5f, 0.5f},
+                Arrays.asList(center, left, right), tile -> !tile.equals(left)));
+        // left is nearer, but out of view
+        assertEquals(Collections.singletonList(right), tilesFor(events, Action.PRELOAD));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testRayIntersection() {
+        float[] min = {1, -1, -1};
+        float[] max = {2, 1, 1};
+        double[] hit = RawTileResidency.intersectRay(new float[] {0, 0, 0}, new double[] {1, 0, 0}, min, max);
+        assertEquals(1.0, hit[0], 1e-9);
+        assertEquals(2.0, hit[1], 1e-9);
+        assertNull(RawTileResidency.intersectRay(new float[] {0, 0, 0}, new double[] {-1, 0, 0}, min, max));
+        assertNull(RawTileResidency.intersectRay(new float[] {0, 5, 0}, new double[] {1, 0, 0}, min, max));
+        assertEquals(0.0, RawTileResidency.distanceToBox(new float[] {1.5f, 0, 0}, min, max), 1e-9);
+        assertEquals(5.0, RawTileResidency.distanceToBox(new float[] {-2, -5, 0}, min, max), 1e-6);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testViewFrustum() {
+        // Camera at the origin looking down -Z, 90 degree field of view
+        ViewFrustum frustum = new ViewFrustum(new Matrix4(), (float) (Math.PI / 2), 1.0f, 1.0f);
+        assertTrue(frustum.intersectsBox(new float[] {-1, -1, -11}, new float[] {1, 1, -9}));
+        assertFalse(frustum.intersectsBox(new float[] {-1, -1, 9}, new float[] {1, 1, 11}));
+        assertFalse(frustum.intersectsBox(new float[] {20, -1, -11}, new float[] {22, 1, -9}));
+        // Partly in view
+        assertTrue(frustum.intersectsBox(new float[] {9, -1, -11}, new float[] {12, 1, -9}));
+    }
+
+}
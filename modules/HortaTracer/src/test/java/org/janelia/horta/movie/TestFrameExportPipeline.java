@@ -0,0 +1,190 @@
+package org.janelia.horta.movie;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CancellationException;
+import java.util.stream.Stream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestFrameExportPipeline {
+
+    // Every pixel of frame n has the same color, derived from n
+    private static int frameColor(int frameNumber) {
+        return ((frameNumber * 37) & 0xff) << 16 | ((frameNumber * 11) & 0xff) << 8 | (frameNumber & 0xff);
+    }
+
+    private static void fillFrame(BufferedImage frame, int frameNumber) {
+        int[] pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, frameColor(frameNumber));
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testFramesAreWrittenInSubmitOrder() throws Exception {
+        Path folder = Files.createTempDirectory("frames");
+        try {
+            FrameExportPipeline pipeline = new FrameExportPipeline(folder.toFile(), "movie", FrameFormat.PNG, 3, 4);
+            int frameCount = 40;
+            for (int f = 1; f <= frameCount; ++f) {
+                BufferedImage frame = pipeline.acquireFrameBuffer(16, 8);
+                fillFrame(frame, f);
+                pipeline.submitFrame(frame);
+            }
+            FrameExportPipeline.Stats stats = pipeline.finish();
+            assertEquals(frameCount, stats.frameCount);
+            assertEquals(frameCount, pipeline.getFramesWritten());
+            assertTrue(stats.bufferCount <= 3);
+            assertTrue(stats.maxQueueDepth <= 3);
+            for (int f = 1; f <= frameCount; ++f) {
+                File file = FrameExportPipeline.fileForFrame(folder.toFile(), "movie", FrameFormat.PNG, f);
+                BufferedImage image = ImageIO.read(file);
+                assertEquals(16, image.getWidth());
+                assertEquals(8, image.getHeight());
+                assertEquals(frameColor(f), image.getRGB(5, 3) & 0xffffff);
+            }
+        }
+        finally {
+            deleteFolder(folder);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testEveryAvailableFormat() throws Exception {
+        Path folder = Files.createTempDirectory("frames");
+        try {
+            for (FrameFormat format : FrameFormat.availableFormats()) {
+                FrameExportPipeline pipeline = new FrameExportPipeline(folder.toFile(), "movie", format, 2, 2);
+                for (int f = 1; f <= 3; ++f) {
+                    BufferedImage frame = pipeline.acquireFrameBuffer(32, 32);
+                    fillFrame(frame, f);
+                    pipeline.submitFrame(frame);
+                }
+                assertEquals(3, pipeline.finish().frameCount);
+                File file = FrameExportPipeline.fileForFrame(folder.toFile(), "movie", format, 3);
+                assertTrue(file.getName(), file.getName().endsWith("_00003." + format.getExtension()));
+                assertTrue(file.length() > 0);
+            }
+        }
+        finally {
+            deleteFolder(folder);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testSubmitImageCropsToEvenSize() throws Exception {
+        Path folder = Files.createTempDirectory("frames");
+        try {
+            FrameExportPipeline pipeline = new FrameExportPipeline(folder.toFile(), "movie", FrameFormat.PNG, 2, 1);
+            BufferedImage image = new BufferedImage(17, 9, BufferedImage.TYPE_INT_ARGB);
+            image.setRGB(15, 7, 0xff123456);
+            pipeline.submitImage(image);
+            pipeline.finish();
+            BufferedImage written = ImageIO.read(
+                    FrameExportPipeline.fileForFrame(folder.toFile(), "movie", FrameFormat.PNG, 1));
+            assertEquals(16, written.getWidth());
+            assertEquals(8, written.getHeight());
+            assertEquals(0x123456, written.getRGB(15, 7) & 0xffffff);
+        }
+        finally {
+            deleteFolder(folder);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testWriteFailureStopsExport() throws Exception {
+        Path folder = Files.createTempDirectory("frames");
+        try {
+            File missing = new File(folder.toFile(), "missing");
+            FrameExportPipeline pipeline = new FrameExportPipeline(missing, "movie", FrameFormat.PNG, 2, 1);
+            boolean stopped = false;
+            for (int f = 1; f <= 1000 && ! stopped; ++f) {
+                try {
+                    BufferedImage frame = pipeline.acquireFrameBuffer(8, 8);
+                    pipeline.submitFrame(frame);
+                }
+                catch (CancellationException ex) {
+                    stopped = true;
+                }
+            }
+            assertTrue(stopped || pipeline.isFailed());
+            try {
+                pipeline.finish();
+                fail("finish() should rethrow the write failure");
+            }
+            catch (IOException ex) {
+                // expected
+            }
+        }
+        finally {
+            deleteFolder(folder);
+        }
+    }
+
+    // Compares the old single threaded export loop with the pipeline, on synthetic HD frames
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkFrameExport() throws Exception {
+        int frameCount = 60;
+        int width = 1920;
+        int height = 1080;
+        BufferedImage rendered = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                rendered.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8 | ((x ^ y) & 0xff));
+            }
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (FrameFormat format : new FrameFormat[] {FrameFormat.JPEG, FrameFormat.PNG}) {
+            Path folder = Files.createTempDirectory("frames");
+            try {
+                long t0 = System.nanoTime();
+                ImageWriter writer = format.createWriter();
+                for (int f = 1; f <= frameCount; ++f) {
+                    File file = FrameExportPipeline.fileForFrame(folder.toFile(), "serial", format, f);
+                    try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+                        writer.setOutput(out);
+                        writer.write(null, new IIOImage(rendered, null, null), format.createWriteParam(writer));
+                    }
+                }
+                writer.dispose();
+                double serialSeconds = (System.nanoTime() - t0) / 1e9;
+
+                FrameExportPipeline pipeline = new FrameExportPipeline(
+                        folder.toFile(), "pipelined", format, 2 * threads + 2, threads);
+                for (int f = 1; f <= frameCount; ++f) {
+                    pipeline.submitImage(rendered);
+                }
+                FrameExportPipeline.Stats stats = pipeline.finish();
+                System.out.println(String.format("%s: serial %.1f frames/s; pipelined %s",
+                        format.getExtension(), frameCount / serialSeconds, stats));
+            }
+            finally {
+                deleteFolder(folder);
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package org.janelia.horta.neuronvbo;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.janelia.console.viewerapi.model.NeuronVertex;
+import org.janelia.console.viewerapi.model.VertexWithNeuron;
+import org.janelia.horta.nodes.BasicNeuronModel;
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests the buffer layout of {@link NeuronVbo}, without uploading it.
+ */
+public class TestNeuronVbo {
+
+    private static final int FLOATS_PER_VERTEX = 8;
+
+    // A chain of vertices along x, one micrometer apart
+    static BasicNeuronModel neuron(String name, int vertexCount) {
+        BasicNeuronModel neuron = new BasicNeuronModel(name, null);
+        neuron.setColor(Color.RED);
+        NeuronVertex parent = null;
+        for (int i = 0; i < vertexCount; ++i) {
+            parent = neuron.appendVertex(parent, new float[] {i, 0, 0}, 1.0f);
+        }
+        return neuron;
+    }
+
+    static NeuronVertex grow(BasicNeuronModel neuron, int vertexCount) {
+        NeuronVertex parent = null;
+        for (NeuronVertex vertex : neuron.getVertexes()) {
+            parent = vertex;
+        }
+        for (int i = 0; i < vertexCount; ++i) {
+            parent = neuron.appendVertex(parent, new float[] {0, 1, 0}, 1.0f);
+        }
+        return parent;
+    }
+
+    private static float[] vertex(NeuronVbo vbo, int slot) {
+        FloatBuffer data = vbo.getVertexData();
+        float[] result = new float[FLOATS_PER_VERTEX];
+        data.position(slot * FLOATS_PER_VERTEX);
+        data.get(result);
+        return result;
+    }
+
+    private static boolean visible(NeuronVbo vbo, int slot) {
+        return vertex(vbo, slot)[7] != 0;
+    }
+
+    // Each edge as the set of its two vertex slots
+    private static Set<Set<Integer>> edges(NeuronVbo vbo, int edgeOffset, int edgeCount) {
+        IntBuffer data = vbo.getEdgeData();
+        Set<Set<Integer>> result = new HashSet<>();
+        for (int e = edgeOffset; e < edgeOffset + edgeCount; ++e) {
+            result.add(new HashSet<>(Arrays.asList(data.get(2 * e), data.get(2 * e + 1))));
+        }
+        return result;
+    }
+
+    private static Set<Set<Integer>> chain(int vertexOffset, int vertexCount) {
+        Set<Set<Integer>> result = new HashSet<>();
+        for (int v = vertexOffset + 1; v < vertexOffset + vertexCount; ++v) {
+            result.add(new HashSet<>(Arrays.asList(v - 1, v)));
+        }
+        return result;
+    }
+
+    private static Map<Integer, Integer> range(int start, int end) {
+        return Collections.singletonMap(start, end);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testSlotAllocatorFirstFitAndMerge() {
+        SlotAllocator slots = new SlotAllocator();
+        slots.reset(1, 100);
+        assertEquals(1, slots.allocate(10));
+        assertEquals(11, slots.allocate(20));
+        assertEquals(31, slots.allocate(5));
+        assertEquals(36, slots.getEnd());
+
+        slots.release(1, 10);
+        assertEquals(10, slots.getFreeCount());
+        // The first hole that fits, split
+        assertEquals(1, slots.allocate(4));
+        assertEquals(6, slots.getFreeCount());
+        // Merges with the hole before it
+        slots.release(11, 20);
+        assertEquals(26, slots.getFreeCount());
+        assertEquals(5, slots.allocate(26));
+        slots.release(5, 26);
+        // Merges with the hole before it, and goes back to the tail
+        slots.release(31, 5);
+        assertEquals(0, slots.getFreeCount());
+        assertEquals(5, slots.getEnd());
+
+        assertEquals(-1, slots.allocate(96));
+        assertEquals(5, slots.allocate(95));
+        assertEquals(1, slots.allocate(0));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testDirtyRangesMerge() {
+        DirtyRanges ranges = new DirtyRanges();
+        ranges.add(10, 20);
+        ranges.add(30, 40);
+        ranges.add(5, 5);
+        // Touching ranges merge
+        ranges.add(20, 25);
+        Map<Integer, Integer> expected = new TreeMap<>();
+        expected.put(10, 25);
+        expected.put(30, 40);
+        assertEquals(expected, ranges.getRanges());
+        // A range bridging two merges all three
+        ranges.add(24, 31);
+        assertEquals(range(10, 40), ranges.getRanges());
+        ranges.add(0, 1);
+        ranges.add(50, 60);
+        assertEquals(3, ranges.getRanges().size());
+        ranges.add(0, 100);
+        assertEquals(range(0, 100), ranges.getRanges());
+        ranges.clear();
+        assertTrue(ranges.getRanges().isEmpty());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testEncodeNeuron() {
+        NeuronVbo vbo = new NeuronVbo(0);
+        BasicNeuronModel neuron = neuron("a", 3);
+        assertTrue(vbo.add(neuron));
+        assertFalse(vbo.add(neuron));
+        assertEquals(3, vbo.getVertexCount());
+        vbo.refreshBuffers();
+        assertEquals(1, vbo.getFullRebuildCount());
+
+        // Slot zero is the invisible null vertex
+        assertFalse(visible(vbo, 0));
+        int offset = vbo.getVertexOffset(neuron);
+        assertEquals(1, offset);
+        assertEquals(4, vbo.getDrawnVertexCount());
+        float[] red = {0, 0, 0};
+        Color.RED.getColorComponents(red);
+        for (int v = 0; v < 3; ++v) {
+            assertArrayEquals(new float[] {v, 0, 0, 1, red[0], red[1], red[2], 1},
+                    vertex(vbo, offset + v), 0);
+        }
+        assertEquals(chain(offset, 3), edges(vbo, vbo.getEdgeOffset(neuron), 2));
+
+        // Visibility and color go straight into the block
+        neuron.setVisible(false);
+        neuron.setColor(Color.GREEN);
+        vbo.checkForChanges();
+        for (int v = 0; v < 3; ++v) {
+            assertFalse(visible(vbo, offset + v));
+            assertEquals(1.0f, vertex(vbo, offset + v)[5], 0);
+        }
+        assertEquals(range(1, 4), vbo.getDirtyVertexRanges());
+        assertEquals(0, vbo.getSubRangeUpdateCount());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testEditInPlaceUploadsOnlyItsBlock() {
+        NeuronVbo vbo = new NeuronVbo(0);
+        BasicNeuronModel a = neuron("a", 3);
+        BasicNeuronModel b = neuron("b", 4);
+        vbo.add(a);
+        vbo.add(b);
+        vbo.refreshBuffers();
+        assertTrue(vbo.getDirtyVertexRanges().isEmpty());
+        int offsetA = vbo.getVertexOffset(a);
+        int offsetB = vbo.getVertexOffset(b);
+
+        // Moving a vertex keeps the neuron's size
+        NeuronVertex moved = b.getVertexes().iterator().next();
+        moved.setLocation(7, 8, 9);
+        b.getVertexUpdatedObservable().setChanged();
+        b.getVertexUpdatedObservable().notifyObservers(new VertexWithNeuron(moved, b));
+        vbo.refreshBuffers();
+
+        assertEquals(1, vbo.getFullRebuildCount());
+        assertEquals(1, vbo.getSubRangeUpdateCount());
+        assertEquals(offsetA, vbo.getVertexOffset(a));
+        assertEquals(offsetB, vbo.getVertexOffset(b));
+        assertEquals(7.0f, vertex(vbo, offsetB)[0], 0);
+        assertEquals(9.0f, vertex(vbo, offsetB)[2], 0);
+        assertEquals(range(offsetB, offsetB + 4), vbo.getDirtyVertexRanges());
+        int edgeOffsetB = vbo.getEdgeOffset(b);
+        assertEquals(range(edgeOffsetB, edgeOffsetB + 3), vbo.getDirtyEdgeRanges());
+        assertEquals(chain(offsetB, 4), edges(vbo, edgeOffsetB, 3));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testGrownNeuronMovesToFreeSlots() {
+        NeuronVbo vbo = new NeuronVbo(0);
+        BasicNeuronModel a = neuron("a", 3);
+        BasicNeuronModel b = neuron("b", 3);
+        vbo.add(a);
+        vbo.add(b);
+        vbo.refreshBuffers();
+        int oldOffset = vbo.getVertexOffset(a);
+        int oldEdgeOffset = vbo.getEdgeOffset(a);
+        assertEquals(7, vbo.getDrawnVertexCount());
+
+        // Tightly packed, so one more vertex does not fit in place
+        grow(a, 1);
+        vbo.checkForChanges();
+        vbo.refreshBuffers();
+        assertEquals(1, vbo.getFullRebuildCount());
+        assertEquals(1, vbo.getSubRangeUpdateCount());
+        int newOffset = vbo.getVertexOffset(a);
+        assertEquals(7, newOffset);
+        assertEquals(11, vbo.getDrawnVertexCount());
+        assertEquals(7, vbo.getVertexCount());
+        for (int v = 0; v < 4; ++v) {
+            assertTrue(visible(vbo, newOffset + v));
+        }
+        assertEquals(chain(newOffset, 4), edges(vbo, vbo.getEdgeOffset(a), 3));
+
+        // The old block is hidden, with its edges pointing at the null vertex
+        for (int v = 0; v < 3; ++v) {
+            assertFalse(visible(vbo, oldOffset + v));
+        }
+        assertEquals(Collections.singleton(Collections.singleton(0)), edges(vbo, oldEdgeOffset, 2));
+        assertTrue(vbo.getDirtyVertexRanges().containsKey(oldOffset));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testReleasedSlotsAreReused() {
+        NeuronVbo vbo = new NeuronVbo(0);
+        BasicNeuronModel a = neuron("a", 5);
+        BasicNeuronModel b = neuron("b", 3);
+        vbo.add(a);
+        vbo.add(b);
+        vbo.refreshBuffers();
+        int offsetA = vbo.getVertexOffset(a);
+        int edgeOffsetA = vbo.getEdgeOffset(a);
+
+        assertTrue(vbo.remove(a));
+        assertFalse(vbo.remove(a));
+        assertEquals(-1, vbo.getVertexOffset(a));
+        assertEquals(3, vbo.getVertexCount());
+        for (int v = 0; v < 5; ++v) {
+            assertFalse(visible(vbo, offsetA + v));
+        }
+        assertEquals(Collections.singleton(Collections.singleton(0)), edges(vbo, edgeOffsetA, 4));
+
+        // A smaller neuron takes the first free slots, where the removed one was
+        BasicNeuronModel c = neuron("c", 4);
+        vbo.add(c);
+        vbo.refreshBuffers();
+        assertEquals(1, vbo.getFullRebuildCount());
+        assertEquals(offsetA, vbo.getVertexOffset(c));
+        assertEquals(edgeOffsetA, vbo.getEdgeOffset(c));
+        for (int v = 0; v < 4; ++v) {
+            assertTrue(visible(vbo, offsetA + v));
+        }
+        assertFalse(visible(vbo, offsetA + 4));
+        assertEquals(chain(offsetA, 4), edges(vbo, edgeOffsetA, 3));
+        assertEquals(7, vbo.getVertexCount());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testHeadroomGrowsInPlace() {
+        NeuronVbo vbo = new NeuronVbo(0.5f);
+        BasicNeuronModel neuron = neuron("a", 4);
+        vbo.add(neuron);
+        vbo.refreshBuffers();
+        int offset = vbo.getVertexOffset(neuron);
+
+        grow(neuron, 2);
+        vbo.checkForChanges();
+        vbo.refreshBuffers();
+        assertEquals(offset, vbo.getVertexOffset(neuron));
+        assertEquals(1, vbo.getFullRebuildCount());
+        assertEquals(1, vbo.getSubRangeUpdateCount());
+        assertEquals(6, vbo.getVertexCount());
+        for (int v = 0; v < 6; ++v) {
+            assertTrue(visible(vbo, offset + v));
+        }
+        assertEquals(range(offset, offset + 6), vbo.getDirtyVertexRanges());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testRebuildWhenNothingFits() {
+        NeuronVbo vbo = new NeuronVbo(0);
+        BasicNeuronModel neuron = neuron("a", 3);
+        vbo.add(neuron);
+        vbo.refreshBuffers();
+        int capacity = vbo.getVertexData().capacity() / FLOATS_PER_VERTEX;
+
+        grow(neuron, capacity);
+        vbo.checkForChanges();
+        vbo.refreshBuffers();
+        assertEquals(2, vbo.getFullRebuildCount());
+        assertEquals(1, vbo.getVertexOffset(neuron));
+        assertEquals(capacity + 3, vbo.getVertexCount());
+        assertTrue(vbo.getVertexData().capacity() / FLOATS_PER_VERTEX > capacity + 3);
+        for (int v = 0; v < capacity + 3; ++v) {
+            assertTrue(visible(vbo, 1 + v));
+        }
+        // A rebuild uploads whole buffers, not ranges
+        assertTrue(vbo.getDirtyVertexRanges().isEmpty());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testEditedNeuronsAreReportedOnce() {
+        NeuronVbo vbo = new NeuronVbo(0);
+        BasicNeuronModel a = neuron("a", 3);
+        BasicNeuronModel b = neuron("b", 3);
+        vbo.add(a);
+        vbo.add(b);
+        // Neither is drawn yet, but neither is edited
+        vbo.checkForChanges();
+        assertTrue(vbo.takeEditedNeurons().isEmpty());
+        vbo.refreshBuffers();
+
+        // Color changes are not geometry edits
+        a.setColor(Color.BLUE);
+        grow(b, 1);
+        vbo.checkForChanges();
+        assertEquals(Collections.singleton(b), vbo.takeEditedNeurons());
+        assertTrue(vbo.takeEditedNeurons().isEmpty());
+    }
+
+}
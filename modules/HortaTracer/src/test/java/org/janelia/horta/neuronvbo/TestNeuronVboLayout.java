@@ -0,0 +1,123 @@
+package org.janelia.horta.neuronvbo;
+
+import static org.junit.Assert.*;
+
+import org.janelia.horta.nodes.BasicNeuronModel;
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestNeuronVboLayout {
+
+    // Two cold vbos, one hot vbo holding at most two neurons
+    private final NeuronVboLayout layout = new NeuronVboLayout(2, 1, 2, 0.5f);
+
+    private NeuronVbo hotVbo() {
+        return layout.getVbos().get(2);
+    }
+
+    private boolean isCold(NeuronVbo vbo) {
+        return layout.getVbos().indexOf(vbo) < 2;
+    }
+
+    // Adds a vertex and lets the neuron's vbo notice
+    private void edit(BasicNeuronModel neuron) {
+        TestNeuronVbo.grow(neuron, 1);
+        layout.getVbo(neuron).checkForChanges();
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testNewNeuronsGoToEmptiestColdVbo() {
+        BasicNeuronModel big = TestNeuronVbo.neuron("big", 100);
+        BasicNeuronModel small1 = TestNeuronVbo.neuron("small1", 2);
+        BasicNeuronModel small2 = TestNeuronVbo.neuron("small2", 2);
+        NeuronVbo bigVbo = layout.add(big);
+        assertNull(layout.add(big));
+        NeuronVbo smallVbo = layout.add(small1);
+        assertNotSame(bigVbo, smallVbo);
+        assertSame(smallVbo, layout.add(small2));
+        assertTrue(isCold(bigVbo));
+        assertTrue(isCold(smallVbo));
+        assertEquals(3, layout.getNeurons().size());
+        assertEquals(0, hotVbo().getNeuronCount());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testEditedNeuronsMigrateHotAndBack() {
+        BasicNeuronModel a = TestNeuronVbo.neuron("a", 3);
+        BasicNeuronModel b = TestNeuronVbo.neuron("b", 3);
+        BasicNeuronModel c = TestNeuronVbo.neuron("c", 3);
+        layout.add(a);
+        layout.add(b);
+        layout.add(c);
+
+        NeuronVbo coldVbo = layout.getVbo(a);
+        edit(a);
+        layout.rebalance();
+        assertTrue(layout.isHot(a));
+        assertSame(hotVbo(), layout.getVbo(a));
+        assertTrue(hotVbo().contains(a));
+        assertFalse(coldVbo.contains(a));
+        assertEquals(1, layout.getMigrationCount());
+
+        edit(b);
+        layout.rebalance();
+        // Editing a hot neuron again keeps it there, as the most recently edited
+        edit(a);
+        layout.rebalance();
+        assertEquals(2, layout.getMigrationCount());
+        assertEquals(2, hotVbo().getNeuronCount());
+
+        // The hot vbo is full, so the least recently edited neuron goes back
+        edit(c);
+        layout.rebalance();
+        assertEquals(4, layout.getMigrationCount());
+        assertTrue(layout.isHot(c));
+        assertTrue(layout.isHot(a));
+        assertFalse(layout.isHot(b));
+        assertTrue(isCold(layout.getVbo(b)));
+        assertTrue(layout.getVbo(b).contains(b));
+        assertFalse(hotVbo().contains(b));
+
+        // Nothing edited, nothing moves
+        layout.rebalance();
+        assertEquals(4, layout.getMigrationCount());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testRemovedNeuronsLeaveTheirVbo() {
+        BasicNeuronModel a = TestNeuronVbo.neuron("a", 3);
+        BasicNeuronModel b = TestNeuronVbo.neuron("b", 3);
+        layout.add(a);
+        layout.add(b);
+        edit(a);
+        layout.rebalance();
+
+        assertTrue(layout.remove(a));
+        assertFalse(layout.remove(a));
+        assertFalse(layout.isHot(a));
+        assertFalse(layout.contains(a));
+        assertFalse(hotVbo().contains(a));
+
+        // A neuron removed after its edit, but before rebalancing, stays out
+        edit(b);
+        layout.remove(b);
+        layout.rebalance();
+        assertFalse(layout.contains(b));
+        assertEquals(0, hotVbo().getNeuronCount());
+        assertEquals(1, layout.getMigrationCount());
+        assertTrue(layout.isEmpty());
+
+        layout.add(a);
+        layout.add(b);
+        layout.clear();
+        assertTrue(layout.isEmpty());
+        for (NeuronVbo vbo : layout.getVbos()) {
+            assertTrue(vbo.isEmpty());
+        }
+    }
+
+}
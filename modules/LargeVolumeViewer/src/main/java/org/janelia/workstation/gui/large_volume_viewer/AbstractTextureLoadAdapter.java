@@ -29,6 +29,9 @@ public abstract class AbstractTextureLoadAdapter {
 		this.tileFormat = tileFormat;
 	}
 
+	/**
+	 * The caller owns the result, and releases its memory when done with it.
+	 */
 	public abstract TextureData2d loadToRam(TileIndex tileIndex)
 		throws TileLoadError, MissingTileException;
 
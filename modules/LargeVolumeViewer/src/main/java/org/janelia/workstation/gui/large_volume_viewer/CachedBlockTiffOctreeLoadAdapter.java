@@ -1,21 +1,19 @@
 package org.janelia.workstation.gui.large_volume_viewer;
 
 import java.util.Collection;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.LoadingCache;
 
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.janelia.workstation.geom.CoordinateAxis;
 import org.janelia.workstation.geom.Vec3;
 import org.janelia.workstation.core.util.ConsoleProperties;
 import org.slf4j.Logger;
@@ -24,19 +22,26 @@ import org.slf4j.LoggerFactory;
 public class CachedBlockTiffOctreeLoadAdapter extends BlockTiffOctreeLoadAdapter {
 
     private static final int MAX_CACHE_SIZE = ConsoleProperties.getInt("console.lvv.tileCacheSize", 300);
+    private static final long PREFETCH_BYTE_BUDGET = ConsoleProperties.getLong("console.LVV.prefetch.byteBudget", 256L * 1024L * 1024L);
+    private static final long PREFETCH_LOOKAHEAD_MS = ConsoleProperties.getLong("console.LVV.prefetch.lookaheadMs", 500);
+    private static final int PREFETCH_THREADS = ConsoleProperties.getInt("console.LVV.prefetch.threads", 4);
     private final static Logger LOG = LoggerFactory.getLogger(CachedBlockTiffOctreeLoadAdapter.class);
 
-    private final ScheduledThreadPoolExecutor tileLoadThreadPool;
+    private final TileLoadScheduler tileLoadScheduler;
     private final LoadingCache<TileIndex, Optional<TextureData2d>> tileCache;
 
     private final TextureData2dCacheLoader tileCacheLoader;
     private final BlockTiffOctreeLoadAdapter tileLoader;
+    private final MotionAwarePrefetchPlanner prefetchPlanner;
     // holds the coord of the loading tiles relative to the current focus
     // this is only for display purposes
-    private final Map<TileIndex, int[]> tileCachingMap;
+    private volatile Map<TileIndex, int[]> tileCachingMap;
 
-    private Double zoom;
-    private Vec3 focus;
+    // Prefetched tiles that have not been asked for yet, for measuring prefetch accuracy
+    private final Set<TileIndex> unusedPrefetchedTiles = ConcurrentHashMap.newKeySet();
+    private final AtomicLong prefetchedTileCount = new AtomicLong();
+    private final AtomicLong usedPrefetchedTileCount = new AtomicLong();
+    private final AtomicLong evictedUnusedTileCount = new AtomicLong();
 
     CachedBlockTiffOctreeLoadAdapter(BlockTiffOctreeLoadAdapter tileLoader) {
         super(tileLoader.getTileFormat(), tileLoader.getVolumeBaseURI());
@@ -44,9 +49,18 @@ public class CachedBlockTiffOctreeLoadAdapter extends BlockTiffOctreeLoadAdapter
         this.tileCacheLoader = new TextureData2dCacheLoader(tileLoader);
         this.tileCache = CacheBuilder.newBuilder()
                 .maximumSize(MAX_CACHE_SIZE)
+                .<TileIndex, Optional<TextureData2d>>removalListener(notification -> {
+                    if (unusedPrefetchedTiles.remove(notification.getKey())) {
+                        evictedUnusedTileCount.incrementAndGet();
+                    }
+                    // Tiles handed out from the cache hold their own reference to the pixels
+                    notification.getValue().ifPresent(TextureData2d::releaseMemory);
+                })
                 .build(tileCacheLoader);
-        this.tileCachingMap = new LinkedHashMap<>();
-        this.tileLoadThreadPool = new ScheduledThreadPoolExecutor(4);
+        this.tileCachingMap = new ConcurrentHashMap<>();
+        this.prefetchPlanner = new MotionAwarePrefetchPlanner(tileLoader.getTileFormat(), PREFETCH_LOOKAHEAD_MS);
+        // Never interrupt a load: the display thread may be waiting on the same cache entry
+        this.tileLoadScheduler = new TileLoadScheduler("TileStackPrefetch", PREFETCH_THREADS, false);
     }
 
     @Override
@@ -59,8 +73,22 @@ public class CachedBlockTiffOctreeLoadAdapter extends BlockTiffOctreeLoadAdapter
             throws TileLoadError, MissingTileException  {
         LOG.debug("loadToRam: {}", tileIndex);
         if (isEnabled()) {
-            return tileCache.getUnchecked(tileIndex)
-                    .orElseThrow(() -> new MissingTileException("Tile " + tileIndex + "does not exist"));
+            if (unusedPrefetchedTiles.remove(tileIndex)) {
+                usedPrefetchedTileCount.incrementAndGet();
+            }
+            // The cache keeps its own copy, so callers may release what they get
+            for (int attempt = 0; attempt < 3; attempt++) {
+                Optional<TextureData2d> tile = tileCache.getUnchecked(tileIndex);
+                TextureData2d texture = tile
+                        .orElseThrow(() -> new MissingTileException("Tile " + tileIndex + "does not exist"))
+                        .retain();
+                if (texture != null) {
+                    return texture;
+                }
+                // Evicted and released while we looked it up
+                tileCache.asMap().remove(tileIndex, tile);
+            }
+            return tileLoader.loadToRam(tileIndex);
         } else {
             Stopwatch stopwatch = Stopwatch.createStarted();
             TextureData2d texture = tileLoader.loadToRam(tileIndex);
@@ -78,84 +106,80 @@ public class CachedBlockTiffOctreeLoadAdapter extends BlockTiffOctreeLoadAdapter
     }
 
     void setZoom(Double zoom) {
-        this.zoom = zoom;
+        if (zoom == null) {
+            return;
+        }
+        prefetchPlanner.setZoom(zoom, System.currentTimeMillis());
         if (isEnabled()) {
             updateFocusTileIndex();            
         }
     }
 
     void setFocus(Vec3 focus) {
-        this.focus = focus;
+        if (focus == null) {
+            return;
+        }
+        prefetchPlanner.setFocus(focus, System.currentTimeMillis());
         if (isEnabled()) {
             updateFocusTileIndex();
         }
     }
 
     private void updateFocusTileIndex() {
-        if (zoom != null && focus != null) {
-            // Update focus tile/stack
-            int zoomLevel = tileLoader.getTileFormat().zoomLevelForCameraZoom(zoom);
-            TileIndex xyzFocusTileIndex = tileLoader.getTileFormat().tileIndexForXyz(focus, zoomLevel, CoordinateAxis.Z);
-            // Must add zoomOutFactor back in for Z to "correct" result from this method
-            TileIndex focusTileIndex = new TileIndex(
-                    xyzFocusTileIndex.getX(),
-                    xyzFocusTileIndex.getY(),
-                    ((int) (xyzFocusTileIndex.getZ() * Math.pow(2, zoomLevel))),
-                    zoomLevel, 
-                    tileLoader.getTileFormat().getZoomLevelCount() - 1,
-                    tileLoader.getTileFormat().getIndexStyle(),
-                    CoordinateAxis.Z
-            );
-            tileLoadThreadPool.getQueue().clear();
-            tileCache.getUnchecked(focusTileIndex);
-            tileCachingMap.clear();
-            Stream.of(
-                    generateOffsets(0, 0, 0), // focus tile
-                    // immediate neighboring tiles
-                    generateOffsets(-1, 1, 0), // same level
-                    generateOffsets(-1, 1, 1), // 1 level down
-                    generateOffsets(-1, 1, -1), // 1 level up
-                    // outer tiles
-                    generateOffsets(-2, 2, 0), // same level
-                    generateOffsets(-2, 2, 1), // 1 level down
-                    generateOffsets(-2, 2, -1)) // 1 level up
-                    .flatMap(offsets -> offsets)
-                    .map(offsets -> ImmutablePair.of(translateTile(focusTileIndex, offsets[0], offsets[1], offsets[2]), offsets))
-                    .forEach(tileWithOffsets -> {
-                        TileIndex ti = tileWithOffsets.getLeft();
-                        int[] offsets = tileWithOffsets.getRight();
-                        tileCachingMap.put(ti, offsets);
-                        submitCacheTileRequest(ti);
-                    });    
+        if (!prefetchPlanner.isReady()) {
+            return;
         }
+        List<MotionAwarePrefetchPlanner.PlannedTile> plannedTiles = prefetchPlanner.plan(getPrefetchTileBudget());
+        if (plannedTiles.isEmpty()) {
+            return;
+        }
+        // Tiles still wanted keep their place in the queue; the rest are dropped
+        tileLoadScheduler.beginGeneration();
+        Map<TileIndex, int[]> cachingMap = new ConcurrentHashMap<>();
+        boolean focusTile = true;
+        for (MotionAwarePrefetchPlanner.PlannedTile plannedTile : plannedTiles) {
+            TileIndex tileIndex = plannedTile.getTileIndex();
+            if (plannedTile.getFocusOffsets() != null) {
+                cachingMap.put(tileIndex, plannedTile.getFocusOffsets());
+            }
+            TileLoadScheduler.Category category = focusTile
+                    ? TileLoadScheduler.Category.DISPLAYED
+                    : TileLoadScheduler.Category.PREFETCHED;
+            focusTile = false;
+            if (tileCache.getIfPresent(tileIndex) != null) {
+                continue;
+            }
+            if (!tileLoadScheduler.reschedule(tileIndex, category, plannedTile.getScore())) {
+                tileLoadScheduler.schedule(tileIndex, category, plannedTile.getScore(), () -> prefetchTile(tileIndex), null);
+            }
+        }
+        tileLoadScheduler.cancelObsolete();
+        tileCachingMap = cachingMap;
+        LOG.debug("Prefetch planned {} tiles; {}; {}", plannedTiles.size(), getPrefetchStatsSummary(), tileLoadScheduler.getMetricsSummary());
     }
 
-    private void submitCacheTileRequest(TileIndex tileIndex) {
-       tileLoadThreadPool.schedule(() -> tileCache.getUnchecked(tileIndex), 100, TimeUnit.MILLISECONDS);
-    }
-
-    private Stream<int[]> generateOffsets(int from, int to, int zOffset) {
-        return IntStream.rangeClosed(from, to)
-                .boxed()
-                .flatMap(yOffset -> IntStream.rangeClosed(from, to).mapToObj(xOffset -> new int[]{xOffset, yOffset, zOffset}));
+    private void prefetchTile(TileIndex tileIndex) {
+        if (tileCache.getIfPresent(tileIndex) != null) {
+            return; // displayed or prefetched while we waited in the queue
+        }
+        Optional<TextureData2d> tile = tileCache.getUnchecked(tileIndex);
+        if (tile.isPresent()) {
+            prefetchedTileCount.incrementAndGet();
+            unusedPrefetchedTiles.add(tileIndex);
+        }
     }
 
-    private TileIndex translateTile(TileIndex tile, int xOffset, int yOffset, int zOffset) {
-        int zIncrement=zOffset * tileLoader.getTileFormat().getTileSize()[2]*(int)(Math.pow(2, tile.getZoom()));
-        int zPosition=tile.getZ()+zIncrement;
-        return new TileIndex(
-                tile.getX() + xOffset,
-                tile.getY() + yOffset,
-                zPosition,
-                tile.getZoom(),
-                tile.getMaxZoom(),
-                tile.getIndexStyle(),
-                tile.getSliceAxis()
-        );
+    // Number of tiles that fit in the prefetch byte budget, leaving room in the cache for displayed tiles
+    private int getPrefetchTileBudget() {
+        long tileBytes = (long) getSliceSize() * Math.max(1, getTileFormat().getChannelCount());
+        long budgetTiles = tileBytes > 0 ? PREFETCH_BYTE_BUDGET / tileBytes : MAX_CACHE_SIZE;
+        return (int) Math.max(1, Math.min(budgetTiles, MAX_CACHE_SIZE / 2));
     }
 
     Collection<int[]> getCachingMap() {
         return tileCachingMap.entrySet().stream()
+                // the status panel shows 7x7 tiles on 3 levels
+                .filter(entry -> Math.abs(entry.getValue()[0]) <= 3 && Math.abs(entry.getValue()[1]) <= 3 && Math.abs(entry.getValue()[2]) <= 1)
                 .map(entry -> {
                     int[] offsets = entry.getValue();
                     TileIndex tileKey = entry.getKey();
@@ -172,5 +196,16 @@ public class CachedBlockTiffOctreeLoadAdapter extends BlockTiffOctreeLoadAdapter
                 })
                 .collect(Collectors.toList());
     }
+
+    /**
+     * How many prefetched tiles were later displayed, for tuning the
+     * prefetch budget and lookahead.
+     */
+    String getPrefetchStatsSummary() {
+        long prefetched = prefetchedTileCount.get();
+        long used = usedPrefetchedTileCount.get();
+        return String.format("prefetched=%d displayed=%d (%.0f%%) evictedUnused=%d",
+                prefetched, used, prefetched == 0 ? 0.0 : 100.0 * used / prefetched, evictedUnusedTileCount.get());
+    }
     
 }
@@ -1,6 +1,8 @@
 package org.janelia.workstation.gui.large_volume_viewer;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.concurrent.Executors;
@@ -17,6 +19,8 @@ import org.janelia.rendering.RenderedVolumeMetadata;
 import org.janelia.rendering.TileInfo;
 import org.janelia.rendering.TileKey;
 import org.janelia.workstation.core.api.LocalCacheMgr;
+import org.janelia.workstation.core.util.ConsoleProperties;
+import org.janelia.workstation.geom.CoordinateAxis;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +37,9 @@ import org.slf4j.LoggerFactory;
 public class FileBasedBlockTiffOctreeLoadAdapter extends BlockTiffOctreeLoadAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(FileBasedBlockTiffOctreeLoadAdapter.class);
 
+    // Read Z tiles straight from memory-mapped TIFF stacks into texture buffers
+    private static final boolean USE_MAPPED_TIFF = ConsoleProperties.getBoolean("console.LVV.mappedTiffTiles", true);
+
     // Metadata: file location required for local system as mount point.
     private final Path baseFolder;
     private final RenderedVolumeLoader renderedVolumeLoader;
@@ -69,6 +76,16 @@ public class FileBasedBlockTiffOctreeLoadAdapter extends BlockTiffOctreeLoadAdap
                 tileInfo.getSliceAxis(),
                 tileInfo);
         LOG.debug("Load tile {} using key {} -> {}", tileIndex, tileKey, renderedVolumeMetadata.getRelativeTilePath(tileKey));
+        if (USE_MAPPED_TIFF && tileIndex.getSliceAxis() == CoordinateAxis.Z) {
+            try {
+                TextureData2d textureData = loadMappedTile(tileIndex, tileKey, tileInfo);
+                if (textureData != null) {
+                    return textureData;
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOG.debug("Could not map tile {}; using the rendered volume loader instead", tileIndex, ex);
+            }
+        }
         try {
             byte[] textureBytes = renderedVolumeLoader.loadSlice(renderedVolumeLocation, renderedVolumeMetadata, tileKey)
                     .getContent();
@@ -79,6 +96,31 @@ public class FileBasedBlockTiffOctreeLoadAdapter extends BlockTiffOctreeLoadAdap
         }
     }
 
+    /**
+     * Copies a Z tile from the memory-mapped channel stacks of its octree
+     * block directly into a pooled texture buffer, skipping the intermediate
+     * byte arrays of the rendered volume loader.
+     *
+     * @return null if the block is not laid out as expected
+     */
+    private TextureData2d loadMappedTile(TileIndex tileIndex, TileKey tileKey, TileInfo tileInfo) throws IOException {
+        Object relativeTilePath = renderedVolumeMetadata.getRelativeTilePath(tileKey);
+        if (relativeTilePath == null) {
+            return null;
+        }
+        Path blockFolder = baseFolder.resolve(relativeTilePath.toString());
+        int channelCount = tileInfo.getChannelCount();
+        MappedTiffStack[] channelStacks = new MappedTiffStack[channelCount];
+        for (int c = 0; c < channelCount; ++c) {
+            Path channelPath = blockFolder.resolve("default." + c + ".tif");
+            if (!Files.isRegularFile(channelPath)) {
+                return null;
+            }
+            channelStacks[c] = MappedTiffStack.open(channelPath);
+        }
+        return MappedTiffStack.loadBlockTile(channelStacks, tileIndex.getZ(), tileIndex.getZoom(), tileInfo.isSrgb());
+    }
+
     private TileInfo getTileInfo(TileIndex tileIndex) {
         switch (tileIndex.getSliceAxis()) {
             case X:
@@ -185,7 +185,15 @@ public class LargeVolumeViewViewer extends JPanel {
                         } else if (initialObject instanceof TmSample) {
                             annotationModel.loadSample((TmSample) initialObject);
                         } else if (initialObject instanceof TmWorkspace) {
-                            annotationModel.loadWorkspace((TmWorkspace) initialObject);
+                            AtomicBoolean determinate = new AtomicBoolean();
+                            annotationModel.loadWorkspace((TmWorkspace) initialObject, initialViewFocus,
+                                    (batch, loadedCount, totalCount) -> {
+                                        if (determinate.compareAndSet(false, true)) {
+                                            progress2.switchToDeterminate((int) totalCount);
+                                        }
+                                        progress2.progress("Loaded " + loadedCount + " of " + totalCount + " neurons",
+                                                (int) Math.min(loadedCount, totalCount));
+                                    });
                         }
                     }
 
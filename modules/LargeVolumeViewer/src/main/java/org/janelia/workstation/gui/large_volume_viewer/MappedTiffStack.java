@@ -0,0 +1,335 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only, memory-mapped view of an uncompressed, single-sample-per-pixel
+ * TIFF stack, such as one channel of an octree block ("default.0.tif").
+ *
+ * Pages are never decoded into intermediate arrays: copyPageInto() moves
+ * pixels straight from the mapped file into a destination texture buffer,
+ * interleaving channels and padding the width as it goes.
+ *
+ * Anything this class does not understand (compression, BigTIFF, planar
+ * or multi-sample images) is reported with UnsupportedTiffException, so
+ * callers can fall back to the general purpose decoder.
+ */
+public class MappedTiffStack {
+
+    public static class UnsupportedTiffException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedTiffException(String message) {
+            super(message);
+        }
+    }
+
+    // TIFF tags we care about
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_STRIP_OFFSETS = 273;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_ROWS_PER_STRIP = 278;
+    private static final int TAG_STRIP_BYTE_COUNTS = 279;
+    private static final int TAG_PLANAR_CONFIGURATION = 284;
+
+    // TIFF field types
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private static class Page {
+        private int width;
+        private int height;
+        private int bitsPerSample = 1;
+        private int rowsPerStrip = Integer.MAX_VALUE;
+        private long[] stripOffsets;
+    }
+
+    // Recently opened stacks; neighbouring tiles usually come from the same block
+    private static final int MAX_OPEN_STACKS = 64;
+    private static final Map<Path, MappedTiffStack> OPEN_STACKS = new LinkedHashMap<Path, MappedTiffStack>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, MappedTiffStack> eldest) {
+            return size() > MAX_OPEN_STACKS;
+        }
+    };
+
+    /**
+     * Returns a mapped stack for path, reusing a recently opened one if possible.
+     */
+    public static MappedTiffStack open(Path path) throws IOException {
+        synchronized (OPEN_STACKS) {
+            MappedTiffStack stack = OPEN_STACKS.get(path);
+            if (stack != null) {
+                return stack;
+            }
+        }
+        // Parse outside the lock; at worst two threads map the same file once
+        MappedTiffStack stack = new MappedTiffStack(path);
+        synchronized (OPEN_STACKS) {
+            OPEN_STACKS.put(path, stack);
+        }
+        return stack;
+    }
+
+    private final Path path;
+    private final MappedByteBuffer mapped;
+    private final List<Page> pages = new ArrayList<>();
+
+    public MappedTiffStack(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new UnsupportedTiffException("TIFF too large to map: " + path);
+            }
+            // The mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        parseHeader();
+    }
+
+    private void parseHeader() throws IOException {
+        if (mapped.limit() < 8) {
+            throw new UnsupportedTiffException("Truncated TIFF " + path);
+        }
+        int byteOrderMark = mapped.getShort(0) & 0xffff;
+        if (byteOrderMark == 0x4949) {
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrderMark == 0x4d4d) {
+            mapped.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            throw new UnsupportedTiffException("Not a TIFF file " + path);
+        }
+        if ((mapped.getShort(2) & 0xffff) != 42) {
+            throw new UnsupportedTiffException("Not a classic TIFF file (BigTIFF?) " + path);
+        }
+        long ifdOffset = mapped.getInt(4) & 0xffffffffL;
+        while (ifdOffset != 0) {
+            if (ifdOffset + 2 > mapped.limit()) {
+                throw new UnsupportedTiffException("Bad IFD offset in " + path);
+            }
+            pages.add(parsePage((int) ifdOffset));
+            int entryCount = mapped.getShort((int) ifdOffset) & 0xffff;
+            ifdOffset = mapped.getInt((int) ifdOffset + 2 + 12 * entryCount) & 0xffffffffL;
+        }
+    }
+
+    private Page parsePage(int ifdOffset) throws IOException {
+        Page page = new Page();
+        long[] stripByteCounts = null;
+        int entryCount = mapped.getShort(ifdOffset) & 0xffff;
+        for (int e = 0; e < entryCount; ++e) {
+            int entry = ifdOffset + 2 + 12 * e;
+            int tag = mapped.getShort(entry) & 0xffff;
+            switch (tag) {
+                case TAG_IMAGE_WIDTH:
+                    page.width = (int) readValues(entry)[0];
+                    break;
+                case TAG_IMAGE_LENGTH:
+                    page.height = (int) readValues(entry)[0];
+                    break;
+                case TAG_BITS_PER_SAMPLE:
+                    page.bitsPerSample = (int) readValues(entry)[0];
+                    break;
+                case TAG_COMPRESSION:
+                    if (readValues(entry)[0] != 1) {
+                        throw new UnsupportedTiffException("Compressed TIFF " + path);
+                    }
+                    break;
+                case TAG_SAMPLES_PER_PIXEL:
+                    if (readValues(entry)[0] != 1) {
+                        throw new UnsupportedTiffException("Multi-sample TIFF " + path);
+                    }
+                    break;
+                case TAG_PLANAR_CONFIGURATION:
+                    if (readValues(entry)[0] != 1) {
+                        throw new UnsupportedTiffException("Planar TIFF " + path);
+                    }
+                    break;
+                case TAG_ROWS_PER_STRIP:
+                    page.rowsPerStrip = (int) Math.min(Integer.MAX_VALUE, readValues(entry)[0]);
+                    break;
+                case TAG_STRIP_OFFSETS:
+                    page.stripOffsets = readValues(entry);
+                    break;
+                case TAG_STRIP_BYTE_COUNTS:
+                    stripByteCounts = readValues(entry);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (page.bitsPerSample != 8 && page.bitsPerSample != 16) {
+            throw new UnsupportedTiffException("Unsupported bit depth " + page.bitsPerSample + " in " + path);
+        }
+        if (page.stripOffsets == null || page.width < 1 || page.height < 1) {
+            throw new UnsupportedTiffException("Incomplete TIFF directory in " + path);
+        }
+        // Make sure every strip lies inside the file, so copies can't run off the end
+        long rowBytes = (long) page.width * page.bitsPerSample / 8;
+        for (int s = 0; s < page.stripOffsets.length; ++s) {
+            long rows = Math.min(page.rowsPerStrip, page.height - (long) s * page.rowsPerStrip);
+            long stripBytes = stripByteCounts != null && s < stripByteCounts.length
+                    ? stripByteCounts[s]
+                    : rows * rowBytes;
+            if (stripBytes < rows * rowBytes || page.stripOffsets[s] + rows * rowBytes > mapped.limit()) {
+                throw new UnsupportedTiffException("Strip " + s + " out of bounds in " + path);
+            }
+        }
+        return page;
+    }
+
+    private long[] readValues(int entry) throws UnsupportedTiffException {
+        int type = mapped.getShort(entry + 2) & 0xffff;
+        long count = mapped.getInt(entry + 4) & 0xffffffffL;
+        int size;
+        if (type == TYPE_SHORT) {
+            size = 2;
+        } else if (type == TYPE_LONG) {
+            size = 4;
+        } else {
+            throw new UnsupportedTiffException("Unexpected TIFF field type " + type + " in " + path);
+        }
+        int valueOffset = (count * size <= 4) ? entry + 8 : mapped.getInt(entry + 8);
+        if (valueOffset < 0 || valueOffset + count * size > mapped.limit()) {
+            throw new UnsupportedTiffException("Bad TIFF field offset in " + path);
+        }
+        long[] result = new long[(int) count];
+        for (int i = 0; i < count; ++i) {
+            result[i] = (size == 2)
+                    ? mapped.getShort(valueOffset + 2 * i) & 0xffff
+                    : mapped.getInt(valueOffset + 4 * i) & 0xffffffffL;
+        }
+        return result;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    public int getWidth(int pageNumber) {
+        return pages.get(pageNumber).width;
+    }
+
+    public int getHeight(int pageNumber) {
+        return pages.get(pageNumber).height;
+    }
+
+    public int getBitDepth(int pageNumber) {
+        return pages.get(pageNumber).bitsPerSample;
+    }
+
+    /**
+     * Copies one page, as channel number "channel" of "channelCount", into a
+     * pixel-interleaved, native-order texture buffer with rows of
+     * "paddedWidth" pixels. Pixels past the page width repeat the last
+     * pixel of the row, like TextureData2d.loadRenderedImage().
+     *
+     * @return number of bytes written
+     */
+    public long copyPageInto(int pageNumber, ByteBuffer destination, int paddedWidth, int channel, int channelCount) {
+        Page page = pages.get(pageNumber);
+        int bytesPerSample = page.bitsPerSample / 8;
+        int rowBytes = page.width * bytesPerSample;
+        int pixelBytes = bytesPerSample * channelCount;
+        int destRowBytes = paddedWidth * pixelBytes;
+        boolean sameByteOrder = (bytesPerSample == 1) || (mapped.order() == destination.order());
+        // Fast path: one channel in matching byte order is a straight row copy
+        boolean bulkCopy = (channelCount == 1) && sameByteOrder;
+        ByteBuffer source = mapped.duplicate().order(mapped.order());
+        ByteBuffer target = destination.duplicate().order(destination.order());
+        for (int y = 0; y < page.height; ++y) {
+            int strip = y / page.rowsPerStrip;
+            int sourceRow = (int) page.stripOffsets[strip] + (y % page.rowsPerStrip) * rowBytes;
+            int destRow = y * destRowBytes + channel * bytesPerSample;
+            if (bulkCopy) {
+                source.limit(sourceRow + rowBytes).position(sourceRow);
+                target.position(destRow);
+                target.put(source);
+            } else if (bytesPerSample == 2) {
+                for (int x = 0; x < page.width; ++x) {
+                    target.putShort(destRow + x * pixelBytes, source.getShort(sourceRow + 2 * x));
+                }
+            } else {
+                for (int x = 0; x < page.width; ++x) {
+                    target.put(destRow + x * pixelBytes, source.get(sourceRow + x));
+                }
+            }
+            // Pad ragged right edge with the last used pixel
+            int lastPixel = destRow + (page.width - 1) * pixelBytes;
+            for (int x = page.width; x < paddedWidth; ++x) {
+                int pad = destRow + x * pixelBytes;
+                for (int b = 0; b < bytesPerSample; ++b) {
+                    target.put(pad + b, target.get(lastPixel + b));
+                }
+            }
+        }
+        return (long) page.height * paddedWidth * bytesPerSample;
+    }
+
+    /**
+     * Page of an octree block stack holding a Z tile. Tile z is a slice
+     * index at full resolution; each block holds pageCount slices of its
+     * zoom level, which is 2^zoom full resolution slices apart.
+     */
+    static int blockPage(int z, int zoom, int pageCount) {
+        return (z >> zoom) % pageCount;
+    }
+
+    /**
+     * Copies a Z tile from the channel stacks of one octree block into a
+     * pooled texture buffer.
+     *
+     * @return null if the stacks do not agree on their page layout
+     */
+    static TextureData2d loadBlockTile(MappedTiffStack[] channelStacks, int z, int zoom, boolean srgb) {
+        int channelCount = channelStacks.length;
+        int pageCount = channelStacks[0].getPageCount();
+        int page = blockPage(z, zoom, pageCount);
+        int usedWidth = channelStacks[0].getWidth(page);
+        int height = channelStacks[0].getHeight(page);
+        int bitDepth = channelStacks[0].getBitDepth(page);
+        for (MappedTiffStack stack : channelStacks) {
+            if (stack.getPageCount() != pageCount
+                    || stack.getWidth(page) != usedWidth
+                    || stack.getHeight(page) != height
+                    || stack.getBitDepth(page) != bitDepth) {
+                return null;
+            }
+        }
+        // Same row padding as TextureData2d.loadRenderedImage()
+        int width = usedWidth;
+        if ((width % 8) != 0) {
+            width += 8 - (width % 8);
+        }
+        int byteCount = width * height * channelCount * bitDepth / 8;
+        ByteBuffer pixels = TileBufferPool.getInstance().acquire(byteCount);
+        try {
+            for (int c = 0; c < channelCount; ++c) {
+                channelStacks[c].copyPageInto(page, pixels, width, c, channelCount);
+            }
+        } catch (RuntimeException ex) {
+            TileBufferPool.getInstance().release(pixels);
+            throw ex;
+        }
+        pixels.position(0).limit(byteCount);
+        return new TextureData2d(pixels, width, usedWidth, height, bitDepth, channelCount, srgb);
+    }
+
+}
@@ -0,0 +1,277 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.janelia.workstation.geom.CoordinateAxis;
+import org.janelia.workstation.geom.Vec3;
+
+/**
+ * Decides which Z tiles to prefetch around the camera focus.
+ *
+ * The planner keeps a short history of focus and zoom samples, estimates
+ * how fast the focus is moving and whether the user is zooming, and
+ * extrapolates where the view will be a little while from now. Tiles
+ * around the current focus and along the predicted path are ranked, so
+ * tiles ahead of the motion come before tiles behind it, and the adjacent
+ * zoom level is included while the user is zooming toward it. While
+ * stepping through Z, the next few slices in the stepping direction are
+ * fetched first. The plan is cut off at a byte budget.
+ *
+ * This class does no loading itself, and keeps no threads, so it can be
+ * exercised without a volume.
+ */
+class MotionAwarePrefetchPlanner {
+
+    // Samples older than this do not count toward the velocity estimate
+    private static final long HISTORY_WINDOW_MS = 1000;
+    private static final int MAX_HISTORY = 8;
+    // Number of points sampled along the predicted path, after the current focus
+    private static final int PATH_STEPS = 3;
+    // Neighbourhood searched around every path point, in tiles
+    private static final int XY_RADIUS = 2;
+    private static final int Z_RADIUS = 1;
+    // Score penalties; lower scores are fetched first
+    private static final double Z_WEIGHT = 1.0;
+    private static final double PATH_STEP_WEIGHT = 0.25;
+    private static final double ZOOM_WEIGHT = 1.5;
+    // Change in log2(camera zoom) per second that counts as zooming
+    private static final double MIN_ZOOM_RATE = 0.25;
+    // Slices fetched ahead of the focus while stepping through Z
+    private static final int MAX_SLICES_AHEAD = 16;
+    private static final double SLICE_STEP_WEIGHT = 0.1;
+
+    static class PlannedTile {
+        private final TileIndex tileIndex;
+        private final int[] focusOffsets; // x/y/z tile offsets relative to the focus tile
+        private final double score;
+
+        PlannedTile(TileIndex tileIndex, int[] focusOffsets, double score) {
+            this.tileIndex = tileIndex;
+            this.focusOffsets = focusOffsets;
+            this.score = score;
+        }
+
+        TileIndex getTileIndex() {
+            return tileIndex;
+        }
+
+        int[] getFocusOffsets() {
+            return focusOffsets;
+        }
+
+        double getScore() {
+            return score;
+        }
+    }
+
+    private static class Sample {
+        private final long timeMs;
+        private final Vec3 focus;
+        private final double log2Zoom;
+
+        Sample(long timeMs, Vec3 focus, double log2Zoom) {
+            this.timeMs = timeMs;
+            this.focus = focus;
+            this.log2Zoom = log2Zoom;
+        }
+    }
+
+    private final TileFormat tileFormat;
+    private final long lookaheadMs;
+    private final Deque<Sample> history = new ArrayDeque<>();
+    private Vec3 focus;
+    private Double zoom;
+
+    MotionAwarePrefetchPlanner(TileFormat tileFormat, long lookaheadMs) {
+        this.tileFormat = tileFormat;
+        this.lookaheadMs = lookaheadMs;
+    }
+
+    synchronized void setFocus(Vec3 focus, long timeMs) {
+        this.focus = focus;
+        addSample(timeMs);
+    }
+
+    synchronized void setZoom(double zoom, long timeMs) {
+        this.zoom = zoom;
+        addSample(timeMs);
+    }
+
+    synchronized boolean isReady() {
+        return focus != null && zoom != null;
+    }
+
+    private void addSample(long timeMs) {
+        if (focus == null || zoom == null || zoom <= 0) {
+            return;
+        }
+        history.addLast(new Sample(timeMs, focus, Math.log(zoom) / Math.log(2.0)));
+        while (history.size() > MAX_HISTORY
+                || (history.size() > 1 && timeMs - history.peekFirst().timeMs > HISTORY_WINDOW_MS)) {
+            history.removeFirst();
+        }
+    }
+
+    /**
+     * Focus velocity, in scene units per millisecond, over the recent history.
+     */
+    synchronized Vec3 getFocusVelocity() {
+        if (history.size() < 2) {
+            return new Vec3(0, 0, 0);
+        }
+        Sample first = history.peekFirst();
+        Sample last = history.peekLast();
+        long dt = last.timeMs - first.timeMs;
+        if (dt <= 0) {
+            return new Vec3(0, 0, 0);
+        }
+        return last.focus.minus(first.focus).times(1.0 / dt);
+    }
+
+    /**
+     * Zoom velocity, in log2(camera zoom) units per second; positive when
+     * zooming in toward finer resolution.
+     */
+    synchronized double getZoomRate() {
+        if (history.size() < 2) {
+            return 0;
+        }
+        Sample first = history.peekFirst();
+        Sample last = history.peekLast();
+        long dt = last.timeMs - first.timeMs;
+        if (dt <= 0) {
+            return 0;
+        }
+        return (last.log2Zoom - first.log2Zoom) * 1000.0 / dt;
+    }
+
+    /**
+     * The Z tile that contains the current focus, with Z in full
+     * resolution slices, like all tiles in the plan.
+     */
+    synchronized TileIndex getFocusTileIndex() {
+        if (!isReady()) {
+            return null;
+        }
+        return zTileIndex(focus, tileFormat.zoomLevelForCameraZoom(zoom));
+    }
+
+    /**
+     * Tiles to prefetch, best first, with the focus tile always first.
+     *
+     * @param maxTiles tile budget, e.g. the byte budget divided by the tile size
+     */
+    synchronized List<PlannedTile> plan(int maxTiles) {
+        if (!isReady() || maxTiles < 1) {
+            return Collections.emptyList();
+        }
+        int zoomLevel = tileFormat.zoomLevelForCameraZoom(zoom);
+        TileIndex focusTile = zTileIndex(focus, zoomLevel);
+        Vec3 velocity = getFocusVelocity();
+        Map<TileIndex, PlannedTile> candidates = new HashMap<>();
+        // Current focus is step 0; later steps extrapolate along the motion vector
+        for (int step = 0; step <= PATH_STEPS; ++step) {
+            Vec3 pathPoint = focus.plus(velocity.times(lookaheadMs * step / (double) PATH_STEPS));
+            double stepPenalty = step * PATH_STEP_WEIGHT;
+            addNeighbourhood(candidates, focusTile, zTileIndex(pathPoint, zoomLevel), stepPenalty);
+            if (step == 0 && velocity.normSqr() == 0) {
+                break; // not moving; no point repeating the same neighbourhood
+            }
+        }
+        // While stepping through Z, the next slices matter more than distant tiles
+        double sliceThickness = tileFormat.getVoxelMicrometers()[2] * (1 << zoomLevel);
+        int slicesAhead = (int) Math.ceil(Math.abs(velocity.getZ()) * lookaheadMs / sliceThickness);
+        if (slicesAhead > 0) {
+            int sliceStep = (velocity.getZ() > 0 ? 1 : -1) << zoomLevel;
+            for (int i = 1; i <= Math.min(slicesAhead, MAX_SLICES_AHEAD); ++i) {
+                int z = focusTile.getZ() + i * sliceStep;
+                if (z < 0) {
+                    break;
+                }
+                addTile(candidates, focusTile, new TileIndex(
+                        focusTile.getX(), focusTile.getY(), z,
+                        zoomLevel, focusTile.getMaxZoom(), focusTile.getIndexStyle(), CoordinateAxis.Z),
+                        i * SLICE_STEP_WEIGHT);
+            }
+        }
+        // While zooming, also fetch the level we are zooming toward
+        double zoomRate = getZoomRate();
+        int nextZoomLevel = zoomLevel;
+        if (zoomRate > MIN_ZOOM_RATE) {
+            nextZoomLevel = zoomLevel - 1; // zooming in -> finer tiles
+        } else if (zoomRate < -MIN_ZOOM_RATE) {
+            nextZoomLevel = zoomLevel + 1; // zooming out -> coarser tiles
+        }
+        if (nextZoomLevel != zoomLevel && nextZoomLevel >= 0 && nextZoomLevel < tileFormat.getZoomLevelCount()) {
+            Vec3 predictedFocus = focus.plus(velocity.times(lookaheadMs));
+            addNeighbourhood(candidates, null, zTileIndex(predictedFocus, nextZoomLevel), ZOOM_WEIGHT);
+        }
+        List<PlannedTile> result = new ArrayList<>(candidates.values());
+        result.sort((a, b) -> Double.compare(a.score, b.score));
+        return result.size() > maxTiles ? new ArrayList<>(result.subList(0, maxTiles)) : result;
+    }
+
+    // Scores the tiles around center, keeping the best score seen for each tile
+    private void addNeighbourhood(Map<TileIndex, PlannedTile> candidates, TileIndex focusTile, TileIndex center, double penalty) {
+        int tileDepth = tileFormat.getTileSize()[2] << center.getZoom();
+        for (int dz = -Z_RADIUS; dz <= Z_RADIUS; ++dz) {
+            int z = center.getZ() + dz * tileDepth;
+            if (z < 0) {
+                continue;
+            }
+            for (int dy = -XY_RADIUS; dy <= XY_RADIUS; ++dy) {
+                for (int dx = -XY_RADIUS; dx <= XY_RADIUS; ++dx) {
+                    TileIndex tile = new TileIndex(
+                            center.getX() + dx,
+                            center.getY() + dy,
+                            z,
+                            center.getZoom(),
+                            center.getMaxZoom(),
+                            center.getIndexStyle(),
+                            CoordinateAxis.Z);
+                    double score = penalty + Math.max(Math.abs(dx), Math.abs(dy)) + Z_WEIGHT * Math.abs(dz);
+                    addTile(candidates, focusTile, tile, score);
+                }
+            }
+        }
+    }
+
+    private void addTile(Map<TileIndex, PlannedTile> candidates, TileIndex focusTile, TileIndex tile, double score) {
+        PlannedTile previous = candidates.get(tile);
+        if (previous != null && previous.score <= score) {
+            return;
+        }
+        // Offsets are only meaningful for whole tile steps at the focus zoom level
+        int[] offsets = null;
+        int tileDepth = tileFormat.getTileSize()[2] << tile.getZoom();
+        if (focusTile != null && tile.getZoom() == focusTile.getZoom()
+                && (tile.getZ() - focusTile.getZ()) % tileDepth == 0) {
+            offsets = new int[] {
+                tile.getX() - focusTile.getX(),
+                tile.getY() - focusTile.getY(),
+                (tile.getZ() - focusTile.getZ()) / tileDepth
+            };
+        }
+        candidates.put(tile, new PlannedTile(tile, offsets, score));
+    }
+
+    private TileIndex zTileIndex(Vec3 xyz, int zoomLevel) {
+        TileIndex xyzTileIndex = tileFormat.tileIndexForXyz(xyz, zoomLevel, CoordinateAxis.Z);
+        // Must add zoomOutFactor back in for Z to "correct" result from tileIndexForXyz
+        return new TileIndex(
+                xyzTileIndex.getX(),
+                xyzTileIndex.getY(),
+                xyzTileIndex.getZ() << zoomLevel,
+                zoomLevel,
+                tileFormat.getZoomLevelCount() - 1,
+                tileFormat.getIndexStyle(),
+                CoordinateAxis.Z);
+    }
+
+}
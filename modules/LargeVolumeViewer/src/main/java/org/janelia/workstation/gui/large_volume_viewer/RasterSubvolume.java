@@ -0,0 +1,178 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.janelia.workstation.octree.ZoomedVoxelIndex;
+import org.janelia.workstation.raster.VoxelIndex;
+import org.janelia.workstation.tracing.VoxelPosition;
+
+/**
+ * Lazily evaluated view of a box of voxels. Nothing is fetched up front;
+ * each read looks up the tile holding the voxel, through the texture cache
+ * and the service's recently loaded tiles, and reads the tile's pixels in
+ * place. Suits consumers that touch only a sparse subset of a box, where
+ * assembling a dense Subvolume would load and copy many unused tiles.
+ *
+ * The view holds on to the tile it read last, so call release() when done.
+ * Not thread safe; give each thread its own view.
+ */
+public class RasterSubvolume {
+
+    private final SubvolumeService service;
+    private final ZoomedVoxelIndex origin;
+    private final VoxelIndex extent;
+    private final int bytesPerIntensity;
+    private final int channelCount;
+
+    private final Set<TileIndex> missingTiles = new HashSet<>();
+    private final Set<TileIndex> visitedTiles = new HashSet<>();
+    private final boolean[] fromCache = {false};
+    private TileIndex currentTileIndex;
+    private TextureData2d currentTile;
+    private ZoomedVoxelIndex currentTileOrigin;
+    private int cachedTileCount;
+    private int loadedTileCount;
+
+    RasterSubvolume(SubvolumeService service, ZoomedVoxelIndex origin, ZoomedVoxelIndex farCorner) {
+        this.service = service;
+        this.origin = origin;
+        this.extent = new VoxelIndex(
+                farCorner.getX() - origin.getX() + 1,
+                farCorner.getY() - origin.getY() + 1,
+                farCorner.getZ() - origin.getZ() + 1);
+        TileFormat tileFormat = service.getTileFormat();
+        this.bytesPerIntensity = tileFormat.getBitDepth() / 8;
+        this.channelCount = tileFormat.getChannelCount();
+    }
+
+    public ZoomedVoxelIndex getOrigin() {
+        return origin;
+    }
+
+    public VoxelIndex getExtent() {
+        return extent;
+    }
+
+    public int getBytesPerIntensity() {
+        return bytesPerIntensity;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * Number of distinct tiles read that were already in memory.
+     */
+    public int getCachedTileCount() {
+        return cachedTileCount;
+    }
+
+    /**
+     * Number of tiles that had to be loaded to answer reads.
+     */
+    public int getLoadedTileCount() {
+        return loadedTileCount;
+    }
+
+    public int getIntensityGlobal(VoxelPosition p, int channelIndex) {
+        return getIntensityGlobal(p.getX(), p.getY(), p.getZ(), channelIndex);
+    }
+
+    public int getIntensityGlobal(ZoomedVoxelIndex v, int channelIndex) {
+        return getIntensityGlobal(v.getX(), v.getY(), v.getZ(), channelIndex);
+    }
+
+    /**
+     * Intensity at a voxel in global coordinates; zero outside the box, or
+     * where the volume has no data.
+     */
+    public int getIntensityGlobal(int x, int y, int z, int channelIndex) {
+        if (x < origin.getX() || y < origin.getY() || z < origin.getZ()
+                || x >= origin.getX() + extent.getX()
+                || y >= origin.getY() + extent.getY()
+                || z >= origin.getZ() + extent.getZ()
+                || x < 0 || y < 0 || z < 0) {
+            return 0;
+        }
+        if (!selectTile(x, y, z)) {
+            return 0;
+        }
+        int tileX = x - currentTileOrigin.getX();
+        int tileY = y - currentTileOrigin.getY();
+        if (tileX >= currentTile.getUsedWidth() || tileY < 0 || tileY >= currentTile.getHeight()) {
+            return 0;
+        }
+        int offset = (tileY * currentTile.getWidth() + tileX) * channelCount + channelIndex;
+        ByteBuffer pixels = currentTile.getPixels();
+        if (pixels == null) {
+            return 0;
+        }
+        if (bytesPerIntensity == 2) {
+            return pixels.getShort(offset * 2) & 0xffff;
+        } else {
+            return pixels.get(offset) & 0xff;
+        }
+    }
+
+    public int getIntensityLocal(VoxelIndex v, int channelIndex) {
+        return getIntensityGlobal(
+                v.getX() + origin.getX(),
+                v.getY() + origin.getY(),
+                v.getZ() + origin.getZ(),
+                channelIndex);
+    }
+
+    /**
+     * Assembles the whole box into a dense Subvolume, for consumers that do
+     * need every voxel after all.
+     */
+    public Subvolume materialize() {
+        ZoomedVoxelIndex farCorner = new ZoomedVoxelIndex(origin.getZoomLevel(),
+                origin.getX() + extent.getX() - 1,
+                origin.getY() + extent.getY() - 1,
+                origin.getZ() + extent.getZ() - 1);
+        return service.fetch(origin, farCorner);
+    }
+
+    /**
+     * Lets go of the tile held by the last read. The view can still be
+     * read afterwards, but has to look tiles up again.
+     */
+    public void release() {
+        currentTileIndex = null;
+        if (currentTile != null) {
+            currentTile.releaseMemory();
+            currentTile = null;
+        }
+    }
+
+    private boolean selectTile(int x, int y, int z) {
+        TileIndex tileIndex = service.tileIndexFor(origin.getZoomLevel(), x, y, z);
+        if (tileIndex.equals(currentTileIndex)) {
+            return currentTile != null;
+        }
+        release();
+        currentTileIndex = tileIndex;
+        if (missingTiles.contains(tileIndex)) {
+            return false;
+        }
+        currentTile = service.getTile(tileIndex, fromCache);
+        if (currentTile == null) {
+            missingTiles.add(tileIndex);
+            return false;
+        }
+        if (visitedTiles.add(tileIndex)) {
+            if (fromCache[0]) {
+                cachedTileCount++;
+            } else {
+                loadedTileCount++;
+            }
+        }
+        currentTileOrigin = service.tileOrigin(tileIndex, origin.getZoomLevel());
+        return true;
+    }
+
+}
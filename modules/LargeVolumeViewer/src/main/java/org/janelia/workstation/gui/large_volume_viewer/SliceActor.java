@@ -54,9 +54,8 @@ public class SliceActor implements GLActor {
             TextureCache tc = viewTileManager.getTextureCache();
             if (tc != null) {
                 int[] txIds = tc.popObsoleteTextureIds();
-                int historySize = tc.getHistoryCache().size();
-                int futureSize = tc.getFutureCache().size();
                 if (txIds.length > 0) {
+                    LOG.debug("Texture cache {}", tc.getStatsSummary());
                     long startTime = System.nanoTime();
                     gl.glDeleteTextures(txIds.length, txIds, 0);
                     long endTime = System.nanoTime();
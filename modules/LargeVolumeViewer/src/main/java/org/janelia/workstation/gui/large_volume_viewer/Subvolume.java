@@ -21,10 +21,9 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
-import org.janelia.it.jacs.model.util.ThreadUtils;
 import org.janelia.workstation.geom.CoordinateAxis;
 import org.janelia.workstation.geom.Vec3;
 import org.janelia.workstation.octree.ZoomLevel;
@@ -38,7 +37,6 @@ import org.slf4j.LoggerFactory;
 
 public class Subvolume {
 
-    private static final int N_THREADS = 20;
     private static final String PROGRESS_REPORT_FORMAT = "%d of %d to go...";
 
     private IndeterminateNoteProgressMonitor progressMonitor;
@@ -52,9 +50,31 @@ public class Subvolume {
     private int channelCount = 1;
     private int totalTiles = 0;
     private int remainingTiles = 0;
+    private final AtomicInteger cachedTileCount = new AtomicInteger();
+    private final AtomicInteger loadedTileCount = new AtomicInteger();
 
     private static final Logger logger = LoggerFactory.getLogger(Subvolume.class);
 
+    /**
+     * Wraps an already allocated raster; used by SubvolumeService, which
+     * fills it in.
+     */
+    Subvolume(ZoomedVoxelIndex origin,
+              VoxelIndex extent,
+              ByteBuffer raster,
+              int bytesPerIntensity,
+              int channelCount) {
+        this.origin = origin;
+        this.extent = extent;
+        this.bytesPerIntensity = bytesPerIntensity;
+        this.channelCount = channelCount;
+        this.bytes = raster;
+        bytes.order(ByteOrder.nativeOrder());
+        if (bytesPerIntensity == 2) {
+            shorts = bytes.asShortBuffer();
+        }
+    }
+
     /**
      * You probably want to run this constructor in a worker thread, because it
      * can take a while to load its raster data over the network.
@@ -309,6 +329,29 @@ public class Subvolume {
                 channelIndex);
     }
 
+    /**
+     * Number of tiles that were copied from the texture cache, rather than
+     * loaded for this subvolume.
+     */
+    public int getCachedTileCount() {
+        return cachedTileCount.get();
+    }
+
+    /**
+     * Number of tiles that had to be loaded for this subvolume.
+     */
+    public int getLoadedTileCount() {
+        return loadedTileCount.get();
+    }
+
+    void countTile(boolean fromCache) {
+        if (fromCache) {
+            cachedTileCount.incrementAndGet();
+        } else {
+            loadedTileCount.incrementAndGet();
+        }
+    }
+
     public ZoomedVoxelIndex getOrigin() {
         return origin;
     }
@@ -365,11 +408,8 @@ public class Subvolume {
     }
 
     private void multiThreadedFetch(Set<TileIndex> neededTiles, final TextureCache textureCache, final AbstractTextureLoadAdapter loadAdapter, final TileFormat tileFormat, final ZoomLevel zoom, final ZoomedVoxelIndex farCorner) {
-        ExecutorService executorService = ThreadUtils.establishExecutor(
-                N_THREADS,
-                new ThreadFactoryBuilder()
-                        .setNameFormat("SubvolumeFetch-%03d")
-                        .build());
+        // Fetches share one bounded pool, rather than each starting its own threads
+        ExecutorService executorService = SubvolumeService.getFetchExecutor();
         List<Future<Boolean>> followUps = new ArrayList<>();
         totalTiles = neededTiles.size();
         remainingTiles = neededTiles.size();
@@ -385,23 +425,23 @@ public class Subvolume {
             };
             followUps.add(executorService.submit(fetchTask));
         }
-        executorService.shutdown();
 
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
         try {
-            executorService.awaitTermination(5, TimeUnit.MINUTES);
             for (Future<Boolean> result : followUps) {
                 logger.debug("DEBUG: checking a follow-up.");
                 boolean failureOnResult = false;
                 try {
-                    if (result == null || !result.get()) {
+                    if (result == null || !result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
                         failureOnResult = true;
                     }
-                } catch (ExecutionException | RuntimeException rte) {
+                } catch (ExecutionException | TimeoutException | RuntimeException rte) {
                     logger.error(
                             "Exception during subvolume fetch.  Request {}..{}.  Exception report follows.",
                             origin, extent
                     );
                     rte.printStackTrace();
+                    result.cancel(true);
                     failureOnResult = true;
                 }
                 if (failureOnResult) {
@@ -412,6 +452,9 @@ public class Subvolume {
             if (progressMonitor != null) {
                 progressMonitor.close();
             }
+            for (Future<Boolean> result : followUps) {
+                result.cancel(true);
+            }
             logger.error(
                     "Failure awaiting completion of fetch threads for request {}..{}.  Exception report follows.",
                     origin, extent
@@ -428,15 +471,23 @@ public class Subvolume {
                 remainingTiles--;
                 return false;
             }
-            TextureData2dGL tileData = null;
+            TextureData2d tileData = null;
             // First try to get image from cache...
-            if ((textureCache != null) && (textureCache.containsKey(tileIx))) {
+            if (textureCache != null) {
                 TileTexture tt = textureCache.get(tileIx);
-                tileData = tt.getTextureData();
+                if (tt != null) {
+                    tileData = tt.retainTextureData();
+                }
+            }
+            if (tileData != null) {
+                cachedTileCount.incrementAndGet();
             }
             // ... if that fails, load the data right now.
             if (tileData == null) {
-                tileData = new TextureData2dGL(loadAdapter.loadToRam(tileIx));
+                tileData = loadAdapter.loadToRam(tileIx);
+                if (tileData != null) {
+                    loadedTileCount.incrementAndGet();
+                }
             }
             if (tileData == null) {
                 logger.info("Found no tile data for " + tileIx);
@@ -518,6 +569,9 @@ public class Subvolume {
                 int remaining = Math.max(0, remainingTiles);
                 reportProgress(remaining, totalTiles);
             }
+            if (tileData != null) {
+                tileData.releaseMemory(); // give pooled pixels back
+            }
 
         } catch (AbstractTextureLoadAdapter.TileLoadError | AbstractTextureLoadAdapter.MissingTileException e) {
             // TODO Auto-generated catch block
@@ -63,7 +63,19 @@ public class SubvolumeProvider {
     }
 
     public Subvolume getSubvolume(ZoomedVoxelIndex zv1, ZoomedVoxelIndex zv2) {
-        return new Subvolume(zv1, zv2, volumeImage, tileServer.getTextureCache(), null);
+        return getSubvolumeService().fetch(zv1, zv2);
+    }
+
+    /**
+     * like getSubvolume(), but only loads tiles as voxels are read; for
+     * callers that look at a few voxels in a larger box
+     */
+    public RasterSubvolume getRasterSubvolume(ZoomedVoxelIndex zv1, ZoomedVoxelIndex zv2) {
+        return getSubvolumeService().createView(zv1, zv2);
+    }
+
+    private SubvolumeService getSubvolumeService() {
+        return SubvolumeService.forVolume(volumeImage, tileServer.getTextureCache());
     }
     
     public static double findLowerBound( double centerCoord, int desiredDimension ) {
@@ -0,0 +1,414 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.janelia.workstation.core.util.ConsoleProperties;
+import org.janelia.workstation.geom.CoordinateAxis;
+import org.janelia.workstation.octree.ZoomLevel;
+import org.janelia.workstation.octree.ZoomedVoxelIndex;
+import org.janelia.workstation.raster.VoxelIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Assembles subvolumes from tiles, for the tracers, the point refiner and
+ * the 3D snapshot.
+ *
+ * There is one service per volume image. All services share one bounded
+ * fetch executor, rather than spinning up a thread pool per subvolume.
+ * Tiles are taken from the viewer's TextureCache when resident, then from a
+ * small cache of tiles this service loaded recently, and only then from the
+ * load adapter, so overlapping requests do not load the same tiles again.
+ * Pixels are copied a scan line at a time straight into a pooled direct
+ * raster.
+ *
+ * Subvolumes can be grown by a margin, which copies the existing interior
+ * and fetches only the new shell, and can be viewed lazily through a
+ * RasterSubvolume, which only loads the tiles that are actually read.
+ */
+public class SubvolumeService {
+
+    private static final Logger log = LoggerFactory.getLogger(SubvolumeService.class);
+
+    private static final int FETCH_THREADS = ConsoleProperties.getInt("console.LVV.subvolume.fetchThreads", 8);
+    private static final long RECENT_TILE_BYTES = ConsoleProperties.getLong("console.LVV.subvolume.recentTileBytes", 128L * 1024 * 1024);
+    private static final long FETCH_TIMEOUT_MINUTES = 5;
+
+    private static final ExecutorService FETCH_EXECUTOR = Executors.newFixedThreadPool(FETCH_THREADS,
+            new ThreadFactoryBuilder()
+                    .setNameFormat("SubvolumeFetch-%03d")
+                    .setDaemon(true)
+                    .build());
+
+    private static final Map<SharedVolumeImage, SubvolumeService> SERVICES = new WeakHashMap<>();
+
+    /**
+     * The service for a volume image; the texture cache may be null.
+     */
+    public static SubvolumeService forVolume(SharedVolumeImage wholeImage, TextureCache textureCache) {
+        synchronized (SERVICES) {
+            SubvolumeService service = SERVICES.get(wholeImage);
+            if (service == null || service.textureCache != textureCache) {
+                service = new SubvolumeService(wholeImage, textureCache);
+                SERVICES.put(wholeImage, service);
+            }
+            return service;
+        }
+    }
+
+    static ExecutorService getFetchExecutor() {
+        return FETCH_EXECUTOR;
+    }
+
+    private final Supplier<AbstractTextureLoadAdapter> loadAdapterSupplier;
+    private final TextureCache textureCache;
+    // Tiles this service loaded itself; keyed per load adapter, which changes when a new volume is opened
+    private final Cache<TileIndex, TextureData2d> recentTiles;
+    private AbstractTextureLoadAdapter recentTilesAdapter;
+
+    SubvolumeService(SharedVolumeImage wholeImage, TextureCache textureCache) {
+        this(volumeLoadAdapter(new WeakReference<>(wholeImage)), textureCache);
+    }
+
+    SubvolumeService(Supplier<AbstractTextureLoadAdapter> loadAdapterSupplier, TextureCache textureCache) {
+        this.loadAdapterSupplier = loadAdapterSupplier;
+        this.textureCache = textureCache;
+        this.recentTiles = CacheBuilder.newBuilder()
+                .maximumWeight(RECENT_TILE_BYTES)
+                .weigher(new Weigher<TileIndex, TextureData2d>() {
+                    @Override
+                    public int weigh(TileIndex key, TextureData2d value) {
+                        return (int) Math.min(Integer.MAX_VALUE, value.getPixelByteCount());
+                    }
+                })
+                .removalListener((RemovalListener<TileIndex, TextureData2d>) notification -> {
+                    // drops only this cache's claim; readers hold their own
+                    notification.getValue().releaseMemory();
+                })
+                .build();
+    }
+
+    /**
+     * Loads the box between two corners, inclusive, into a new subvolume.
+     * Run this in a worker thread.
+     */
+    public Subvolume fetch(ZoomedVoxelIndex corner1, ZoomedVoxelIndex corner2) {
+        assert corner1.getZoomLevel().equals(corner2.getZoomLevel());
+        ZoomedVoxelIndex origin = minCorner(corner1, corner2);
+        ZoomedVoxelIndex farCorner = maxCorner(corner1, corner2);
+        Subvolume result = allocate(origin, farCorner);
+        fill(result, origin, farCorner, null);
+        return result;
+    }
+
+    /**
+     * A new subvolume extending an existing one by margin voxels on every
+     * side. The interior is copied from the existing subvolume; only tiles
+     * that reach into the new shell are read.
+     */
+    public Subvolume grow(Subvolume existing, int margin) {
+        ZoomedVoxelIndex oldOrigin = existing.getOrigin();
+        VoxelIndex oldExtent = existing.getExtent();
+        ZoomedVoxelIndex origin = new ZoomedVoxelIndex(oldOrigin.getZoomLevel(),
+                oldOrigin.getX() - margin, oldOrigin.getY() - margin, oldOrigin.getZ() - margin);
+        ZoomedVoxelIndex farCorner = new ZoomedVoxelIndex(oldOrigin.getZoomLevel(),
+                oldOrigin.getX() + oldExtent.getX() - 1 + margin,
+                oldOrigin.getY() + oldExtent.getY() - 1 + margin,
+                oldOrigin.getZ() + oldExtent.getZ() - 1 + margin);
+        Subvolume result = allocate(origin, farCorner);
+        // Copy the interior, one scan line at a time
+        int pixelBytes = existing.getChannelCount() * existing.getBytesPerIntensity();
+        int srcLineBytes = oldExtent.getX() * pixelBytes;
+        ByteBuffer src = existing.getByteBuffer().duplicate();
+        ByteBuffer dst = result.getByteBuffer().duplicate();
+        VoxelIndex extent = result.getExtent();
+        for (int z = 0; z < oldExtent.getZ(); ++z) {
+            for (int y = 0; y < oldExtent.getY(); ++y) {
+                int srcOffset = (z * oldExtent.getY() + y) * srcLineBytes;
+                int dstOffset = (((z + margin) * extent.getY() + y + margin) * extent.getX() + margin) * pixelBytes;
+                src.limit(srcOffset + srcLineBytes).position(srcOffset);
+                dst.position(dstOffset);
+                dst.put(src);
+            }
+        }
+        int[][] interior = {
+            {oldOrigin.getX(), oldOrigin.getY(), oldOrigin.getZ()},
+            {oldOrigin.getX() + oldExtent.getX() - 1, oldOrigin.getY() + oldExtent.getY() - 1, oldOrigin.getZ() + oldExtent.getZ() - 1}
+        };
+        fill(result, origin, farCorner, interior);
+        return result;
+    }
+
+    /**
+     * A view of the box between two corners, inclusive, that loads tiles
+     * only as voxels in them are read.
+     */
+    public RasterSubvolume createView(ZoomedVoxelIndex corner1, ZoomedVoxelIndex corner2) {
+        return new RasterSubvolume(this, minCorner(corner1, corner2), maxCorner(corner1, corner2));
+    }
+
+    /**
+     * Returns a subvolume raster to the buffer pool. The subvolume must not
+     * be used afterwards.
+     */
+    public void release(Subvolume subvolume) {
+        TileBufferPool.getInstance().release(subvolume.getByteBuffer());
+    }
+
+    TileFormat getTileFormat() {
+        return getLoadAdapter().getTileFormat();
+    }
+
+    private AbstractTextureLoadAdapter getLoadAdapter() {
+        return loadAdapterSupplier.get();
+    }
+
+    // weak, so the service map does not keep closed volumes alive
+    private static Supplier<AbstractTextureLoadAdapter> volumeLoadAdapter(final WeakReference<SharedVolumeImage> wholeImage) {
+        return () -> {
+            SharedVolumeImage image = wholeImage.get();
+            if (image == null) {
+                throw new IllegalStateException("Volume image has been closed");
+            }
+            return image.getLoadAdapter();
+        };
+    }
+
+    /**
+     * Pixels of one tile: resident in the texture cache, recently loaded by
+     * this service, or loaded now; null if the tile is missing. The caller
+     * owns the result, and releases its memory when done with it; eviction
+     * from either cache does not recycle pixels a caller still holds.
+     *
+     * @param fromCache set to whether the tile was already in memory
+     */
+    TextureData2d getTile(TileIndex tileIndex, boolean[] fromCache) {
+        if (textureCache != null) {
+            TileTexture texture = textureCache.get(tileIndex);
+            TextureData2d data = (texture == null) ? null : texture.retainTextureData();
+            if (data != null) {
+                fromCache[0] = true;
+                return data;
+            }
+        }
+        AbstractTextureLoadAdapter loadAdapter = getLoadAdapter();
+        synchronized (this) {
+            if (loadAdapter != recentTilesAdapter) {
+                recentTiles.invalidateAll();
+                recentTilesAdapter = loadAdapter;
+            }
+        }
+        TextureData2d recent = recentTiles.getIfPresent(tileIndex);
+        // null if it was evicted meanwhile
+        TextureData2d data = (recent == null) ? null : recent.retain();
+        if (data != null) {
+            fromCache[0] = true;
+            return data;
+        }
+        fromCache[0] = false;
+        try {
+            data = loadAdapter.loadToRam(tileIndex);
+        } catch (AbstractTextureLoadAdapter.MissingTileException e) {
+            return null;
+        } catch (AbstractTextureLoadAdapter.TileLoadError e) {
+            log.error("Failed to load tile {} for subvolume: {}", tileIndex, e.getMessage());
+            return null;
+        }
+        if (data == null) {
+            return null;
+        }
+        TextureData2d result = data.retain();
+        if (result != null) {
+            recentTiles.put(tileIndex, data);
+        }
+        return result;
+    }
+
+    /**
+     * Z tile containing a voxel.
+     */
+    TileIndex tileIndexFor(ZoomLevel zoom, int x, int y, int z) {
+        return getTileFormat().tileIndexForZoomedVoxelIndex(
+                new ZoomedVoxelIndex(zoom, x, y, z), CoordinateAxis.Z);
+    }
+
+    /**
+     * Voxel at the upper left corner of a Z tile.
+     */
+    ZoomedVoxelIndex tileOrigin(TileIndex tileIndex, ZoomLevel zoom) {
+        return getTileFormat().zoomedVoxelIndexForTileXyz(
+                new TileFormat.TileXyz(tileIndex.getX(), tileIndex.getY(), tileIndex.getZ()),
+                zoom, CoordinateAxis.Z);
+    }
+
+    private Subvolume allocate(ZoomedVoxelIndex origin, ZoomedVoxelIndex farCorner) {
+        TileFormat tileFormat = getTileFormat();
+        int bytesPerIntensity = tileFormat.getBitDepth() / 8;
+        int channelCount = tileFormat.getChannelCount();
+        VoxelIndex extent = new VoxelIndex(
+                farCorner.getX() - origin.getX() + 1,
+                farCorner.getY() - origin.getY() + 1,
+                farCorner.getZ() - origin.getZ() + 1);
+        int byteCount = bytesPerIntensity * channelCount * extent.getX() * extent.getY() * extent.getZ();
+        ByteBuffer raster = TileBufferPool.getInstance().acquire(byteCount);
+        // Pooled buffers are recycled; voxels without tile data must read as zero
+        while (raster.remaining() >= 8) {
+            raster.putLong(0L);
+        }
+        while (raster.hasRemaining()) {
+            raster.put((byte) 0);
+        }
+        raster.clear().limit(byteCount);
+        return new Subvolume(origin, extent, raster, bytesPerIntensity, channelCount);
+    }
+
+    // Copies every Z tile overlapping the box into the subvolume, skipping
+    //  tiles whose overlap lies entirely within the (optional) interior box
+    private void fill(final Subvolume subvolume, ZoomedVoxelIndex origin, ZoomedVoxelIndex farCorner, int[][] interior) {
+        ZoomLevel zoom = origin.getZoomLevel();
+        TileIndex corner1 = tileIndexFor(zoom, origin.getX(), origin.getY(), origin.getZ());
+        TileIndex corner2 = tileIndexFor(zoom, farCorner.getX(), farCorner.getY(), farCorner.getZ());
+        List<Future<?>> fetches = new ArrayList<>();
+        for (int z = Math.max(0, origin.getZ()); z <= farCorner.getZ(); ++z) {
+            for (int tx = Math.min(corner1.getX(), corner2.getX()); tx <= Math.max(corner1.getX(), corner2.getX()); ++tx) {
+                for (int ty = Math.min(corner1.getY(), corner2.getY()); ty <= Math.max(corner1.getY(), corner2.getY()); ++ty) {
+                    if (tx < 0 || ty < 0) {
+                        continue;
+                    }
+                    final TileIndex tileIndex = new TileIndex(tx, ty, z,
+                            corner1.getZoom(), corner1.getMaxZoom(), corner1.getIndexStyle(), CoordinateAxis.Z);
+                    final int[][] overlap = overlap(tileIndex, zoom, origin, farCorner);
+                    if (overlap == null || (interior != null && contains(interior, overlap))) {
+                        continue;
+                    }
+                    fetches.add(FETCH_EXECUTOR.submit(() -> copyTile(subvolume, tileIndex, overlap)));
+                }
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(FETCH_TIMEOUT_MINUTES);
+        for (Future<?> fetch : fetches) {
+            try {
+                fetch.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                log.error("Exception during subvolume fetch of {}..{}", origin, farCorner, e.getCause());
+            } catch (TimeoutException e) {
+                log.error("Timed out fetching subvolume {}..{}", origin, farCorner);
+                fetch.cancel(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<?> f : fetches) {
+                    f.cancel(true);
+                }
+                return;
+            }
+        }
+    }
+
+    // Global voxel bounds, inclusive, of the part of a tile inside the box;
+    //  null if the tile misses it
+    private int[][] overlap(TileIndex tileIndex, ZoomLevel zoom, ZoomedVoxelIndex origin, ZoomedVoxelIndex farCorner) {
+        ZoomedVoxelIndex tileOrigin = tileOrigin(tileIndex, zoom);
+        int[] tileSize = getTileFormat().getTileSize();
+        int[] min = {
+            Math.max(origin.getX(), tileOrigin.getX()),
+            Math.max(origin.getY(), tileOrigin.getY()),
+            tileIndex.getZ()
+        };
+        int[] max = {
+            Math.min(farCorner.getX(), tileOrigin.getX() + tileSize[0] - 1),
+            Math.min(farCorner.getY(), tileOrigin.getY() + tileSize[1] - 1),
+            tileIndex.getZ()
+        };
+        if (min[0] > max[0] || min[1] > max[1]) {
+            return null;
+        }
+        return new int[][] {min, max};
+    }
+
+    private static boolean contains(int[][] outer, int[][] inner) {
+        for (int a = 0; a < 3; ++a) {
+            if (inner[0][a] < outer[0][a] || inner[1][a] > outer[1][a]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void copyTile(Subvolume subvolume, TileIndex tileIndex, int[][] overlap) {
+        boolean[] fromCache = {false};
+        TextureData2d tile = getTile(tileIndex, fromCache);
+        if (tile == null) {
+            return;
+        }
+        try {
+            subvolume.countTile(fromCache[0]);
+            copyTile(subvolume, tileIndex, tile, overlap);
+        } finally {
+            tile.releaseMemory();
+        }
+    }
+
+    private void copyTile(Subvolume subvolume, TileIndex tileIndex, TextureData2d tile, int[][] overlap) {
+        ByteBuffer pixels = tile.getPixels();
+        if (pixels == null) {
+            return;
+        }
+        ZoomedVoxelIndex tileOrigin = tileOrigin(tileIndex, subvolume.getOrigin().getZoomLevel());
+        ZoomedVoxelIndex origin = subvolume.getOrigin();
+        VoxelIndex extent = subvolume.getExtent();
+        int pixelBytes = subvolume.getChannelCount() * subvolume.getBytesPerIntensity();
+        int tileLineBytes = pixelBytes * tile.getWidth();
+        int subvolumeLineBytes = pixelBytes * extent.getX();
+        // Tiles at the volume edge may be smaller than the nominal tile size
+        int endX = Math.min(overlap[1][0], tileOrigin.getX() + tile.getUsedWidth() - 1);
+        int endY = Math.min(overlap[1][1], tileOrigin.getY() + tile.getHeight() - 1);
+        int lineBytes = (endX - overlap[0][0] + 1) * pixelBytes;
+        if (lineBytes <= 0) {
+            return;
+        }
+        ByteBuffer src = pixels.duplicate();
+        ByteBuffer dst = subvolume.getByteBuffer().duplicate();
+        int dstZ = overlap[0][2] - origin.getZ();
+        for (int y = overlap[0][1]; y <= endY; ++y) {
+            int srcOffset = (y - tileOrigin.getY()) * tileLineBytes + (overlap[0][0] - tileOrigin.getX()) * pixelBytes;
+            int dstOffset = (dstZ * extent.getY() + (y - origin.getY())) * subvolumeLineBytes
+                    + (overlap[0][0] - origin.getX()) * pixelBytes;
+            if (srcOffset + lineBytes > src.capacity()) {
+                log.warn("Tile {} is smaller than its reported size", tileIndex);
+                return;
+            }
+            src.limit(srcOffset + lineBytes).position(srcOffset);
+            dst.position(dstOffset);
+            dst.put(src);
+        }
+    }
+
+    private static ZoomedVoxelIndex minCorner(ZoomedVoxelIndex a, ZoomedVoxelIndex b) {
+        return new ZoomedVoxelIndex(a.getZoomLevel(),
+                Math.min(a.getX(), b.getX()), Math.min(a.getY(), b.getY()), Math.min(a.getZ(), b.getZ()));
+    }
+
+    private static ZoomedVoxelIndex maxCorner(ZoomedVoxelIndex a, ZoomedVoxelIndex b) {
+        return new ZoomedVoxelIndex(a.getZoomLevel(),
+                Math.max(a.getX(), b.getX()), Math.max(a.getY(), b.getY()), Math.max(a.getZ(), b.getZ()));
+    }
+
+}
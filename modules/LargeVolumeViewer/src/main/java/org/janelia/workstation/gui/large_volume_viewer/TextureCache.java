@@ -1,11 +1,12 @@
 package org.janelia.workstation.gui.large_volume_viewer;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.janelia.workstation.core.util.ConsoleProperties;
 import org.janelia.workstation.gui.large_volume_viewer.controller.StatusUpdateListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,18 +14,26 @@ import org.slf4j.LoggerFactory;
 /*
  * Wrap texture cache so indices can be interpolated for either quadtrees
  * or octrees.
+ *
+ * Textures are held in three tiers, each with its own byte budget:
+ * displayed (history), prefetched (future) and lowest resolution (min-res).
  */
 public class TextureCache {
 
     private static final Logger LOG = LoggerFactory.getLogger(TextureCache.class);
 
-    private HistoryCache historyCache = new HistoryCache(2000); // textures that have been displayed, ordered by LRU
-    private HistoryCache futureCache = new HistoryCache(3000); // textures we predict will be displayed
-    private PersistentCache persistentCache = new PersistentCache(); // lowest resolution textures for everything
-    private Map<TileIndex, Long> queuedTextureTime = new HashMap<>();
-    private StatusUpdateListener queueDrainedListener;
+    private static final long MB = 1024L * 1024L;
+    private static final long DISPLAYED_BYTE_BUDGET = ConsoleProperties.getLong("console.LVV.textureCache.displayedBytes", 1024 * MB);
+    private static final long PREFETCHED_BYTE_BUDGET = ConsoleProperties.getLong("console.LVV.textureCache.prefetchedBytes", 1024 * MB);
+    private static final long MIN_RES_BYTE_BUDGET = ConsoleProperties.getLong("console.LVV.textureCache.minResBytes", 512 * MB);
 
-    public synchronized void add(TileTexture texture) {
+    private final TextureCacheTier historyCache = new TextureCacheTier("displayed", DISPLAYED_BYTE_BUDGET); // textures that have been displayed, ordered by LRU
+    private final TextureCacheTier futureCache = new TextureCacheTier("prefetched", PREFETCHED_BYTE_BUDGET); // textures we predict will be displayed
+    private final TextureCacheTier persistentCache = new TextureCacheTier("min-res", MIN_RES_BYTE_BUDGET); // lowest resolution textures for everything
+    private final Map<TileIndex, Long> queuedTextureTime = new ConcurrentHashMap<>();
+    private volatile StatusUpdateListener queueDrainedListener;
+
+    public void add(TileTexture texture) {
         TileIndex index = texture.getIndex();
         if (index.getZoom() == index.getMaxZoom()) {
             persistentCache.put(texture.getIndex(), texture);
@@ -33,7 +42,7 @@ public class TextureCache {
         }
     }
 
-    synchronized public void clear() {
+    public void clear() {
         futureCache.clear();
         historyCache.clear();
         persistentCache.clear();
@@ -46,14 +55,17 @@ public class TextureCache {
                 || futureCache.containsKey(index);
     }
 
-    synchronized TileTexture get(TileIndex index) {
-        if (persistentCache.containsKey(index)) {
+    TileTexture get(TileIndex index) {
+        // Lowest resolution tiles are by far the most common request, so look there first
+        TileTexture result = persistentCache.peek(index);
+        if (result != null) {
             return persistentCache.get(index);
-        } else if (historyCache.containsKey(index)) {
+        }
+        result = historyCache.peek(index);
+        if (result != null) {
             return historyCache.get(index);
-        } else {
-            return futureCache.get(index);
         }
+        return futureCache.get(index);
     }
 
     // Keep track of recently queued textures, to avoid redundant loads
@@ -65,13 +77,9 @@ public class TextureCache {
     }
 
     public boolean isLoadQueued(TileIndex index) {
-        if (!queuedTextureTime.containsKey(index)) {
-            return false;
-        }
         Long queuedTextureTimeForIndex = queuedTextureTime.get(index);
         if (queuedTextureTimeForIndex == null) {
-            LOG.warn("Queued Texture Time had no entry for index {}.  Setting queued time to 0.", index);
-            queuedTextureTimeForIndex = System.nanoTime();
+            return false;
         }
         long elapsed = System.nanoTime() - queuedTextureTimeForIndex;
         // Don't wait longer than ten seconds
@@ -88,18 +96,18 @@ public class TextureCache {
         if (isQueued) {
             queuedTextureTime.put(index, System.nanoTime());
         } else {
-            if (!queuedTextureTime.containsKey(index)) {
+            if (queuedTextureTime.remove(index) == null) {
                 return;
             }
-            queuedTextureTime.remove(index);
-            if (queuedTextureTime.isEmpty() && queueDrainedListener != null) {
-                queueDrainedListener.update();
+            StatusUpdateListener listener = queueDrainedListener;
+            if (queuedTextureTime.isEmpty() && listener != null) {
+                listener.update();
             }
         }
     }
 
     // Indicate that a particular texture has been viewed, rather than simply pre-fetched.
-    synchronized boolean markHistorical(TileTexture tile) {
+    boolean markHistorical(TileTexture tile) {
         if (tile == null) {
             return false;
         }
@@ -121,7 +129,14 @@ public class TextureCache {
         return futureCache.size() + historyCache.size() + persistentCache.size();
     }
 
-    public synchronized Collection<TileTexture> values() {
+    /**
+     * Total bytes of pixel data held across all tiers.
+     */
+    public long getResidentBytes() {
+        return futureCache.getResidentBytes() + historyCache.getResidentBytes() + persistentCache.getResidentBytes();
+    }
+
+    public Collection<TileTexture> values() {
         Set<TileTexture> result = new HashSet<>();
         result.addAll(historyCache.values());
         result.addAll(futureCache.values());
@@ -134,14 +149,18 @@ public class TextureCache {
      *
      * @return
      */
-    public HistoryCache getFutureCache() {
+    public TextureCacheTier getFutureCache() {
         return futureCache;
     }
 
-    public HistoryCache getHistoryCache() {
+    public TextureCacheTier getHistoryCache() {
         return historyCache;
     }
 
+    public TextureCacheTier getPersistentCache() {
+        return persistentCache;
+    }
+
     public int[] popObsoleteTextureIds() {
         Set<Integer> ids = historyCache.popObsoleteGlTextures();
         ids.addAll(persistentCache.popObsoleteGlTextures());
@@ -155,6 +174,13 @@ public class TextureCache {
         return result;
     }
 
+    /**
+     * One line per tier, with hit/miss/eviction counters.
+     */
+    public String getStatsSummary() {
+        return historyCache + "; " + futureCache + "; " + persistentCache;
+    }
+
     /**
      * @param queueDrainedListener the queueDrainedListener to set
      */
@@ -0,0 +1,264 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One level of the TextureCache, bounded by the number of pixel bytes it
+ * holds rather than by a tile count.
+ *
+ * Lookups go through a ConcurrentHashMap and never block. Each lookup stamps
+ * the entry with a logical access time; when the tier goes over budget the
+ * least recently used entries are evicted in one batch, down to a low-water
+ * mark, so we do not pay for glDeleteTextures on every insertion.
+ */
+public class TextureCacheTier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TextureCacheTier.class);
+
+    // Book-keeping cost charged for every entry, so that MISSING tiles without pixels still count
+    private static final long ENTRY_OVERHEAD_BYTES = 256;
+    // After eviction, the tier holds at most this fraction of its budget
+    private static final double LOW_WATER_FRACTION = 0.75;
+
+    private static class Entry {
+        private final TileTexture tile;
+        private final long byteSize;
+        private volatile long lastAccess;
+
+        Entry(TileTexture tile, long byteSize, long lastAccess) {
+            this.tile = tile;
+            this.byteSize = byteSize;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final String name;
+    private final Map<TileIndex, Entry> map = new ConcurrentHashMap<>();
+    private final AtomicLong accessClock = new AtomicLong();
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final Object evictionLock = new Object();
+    private volatile long byteBudget;
+
+    // Store deleted opengl texture ids, for deferred disposal.
+    private final Set<Integer> obsoleteGlTextures = ConcurrentHashMap.newKeySet();
+
+    // Counters, for tuning and display
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    public TextureCacheTier(String name, long byteBudget) {
+        this.name = name;
+        this.byteBudget = byteBudget;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * NOTE - get marks the retrieved item as most-recently-accessed, and
+     * counts as a hit or a miss.
+     */
+    public TileTexture get(TileIndex index) {
+        Entry entry = map.get(index);
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        entry.lastAccess = accessClock.incrementAndGet();
+        return entry.tile;
+    }
+
+    /**
+     * Like get(), but does not disturb the LRU order or the counters.
+     */
+    public TileTexture peek(TileIndex index) {
+        Entry entry = map.get(index);
+        return entry == null ? null : entry.tile;
+    }
+
+    public boolean containsKey(TileIndex index) {
+        return map.containsKey(index);
+    }
+
+    /**
+     * NOTE - put marks the value as most-recently-accessed, and may evict
+     * older entries to stay within the byte budget. A different tile already
+     * stored under the index is retired, as if it had been evicted.
+     */
+    public TileTexture put(TileIndex index, TileTexture tile) {
+        Entry entry = new Entry(tile, tile.getByteSize() + ENTRY_OVERHEAD_BYTES, accessClock.incrementAndGet());
+        Entry previous = map.put(index, entry);
+        residentBytes.addAndGet(entry.byteSize);
+        if (previous != null) {
+            residentBytes.addAndGet(-previous.byteSize);
+            if (previous.tile != tile) {
+                retire(previous.tile);
+            }
+        }
+        if (residentBytes.get() > byteBudget) {
+            evict();
+        }
+        return previous == null ? null : previous.tile;
+    }
+
+    /**
+     * Removes a tile without releasing its memory, e.g. when it moves to
+     * another tier.
+     */
+    public TileTexture remove(TileIndex index) {
+        Entry entry = map.remove(index);
+        if (entry == null) {
+            return null;
+        }
+        residentBytes.addAndGet(-entry.byteSize);
+        return entry.tile;
+    }
+
+    public void clear() {
+        synchronized (evictionLock) {
+            for (TileIndex index : new ArrayList<>(map.keySet())) {
+                Entry entry = map.remove(index);
+                if (entry != null) {
+                    residentBytes.addAndGet(-entry.byteSize);
+                    retire(entry.tile);
+                }
+            }
+        }
+    }
+
+    private void evict() {
+        synchronized (evictionLock) {
+            long budget = byteBudget;
+            if (residentBytes.get() <= budget) {
+                return; // another thread got here first
+            }
+            long target = (long) (LOW_WATER_FRACTION * budget);
+            List<Map.Entry<TileIndex, Entry>> entries = new ArrayList<>(map.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<TileIndex, Entry>>() {
+                @Override
+                public int compare(Map.Entry<TileIndex, Entry> a, Map.Entry<TileIndex, Entry> b) {
+                    return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+                }
+            });
+            int evicted = 0;
+            for (Map.Entry<TileIndex, Entry> e : entries) {
+                if (residentBytes.get() <= target) {
+                    break;
+                }
+                // Only evict the entry we sorted, not a newer replacement
+                if (map.remove(e.getKey(), e.getValue())) {
+                    Entry entry = e.getValue();
+                    residentBytes.addAndGet(-entry.byteSize);
+                    evictedBytes.addAndGet(entry.byteSize);
+                    retire(entry.tile);
+                    evicted++;
+                }
+            }
+            evictionCount.addAndGet(evicted);
+            LOG.debug("{} cache evicted {} tiles; {} of {} bytes resident", name, evicted, residentBytes.get(), budget);
+        }
+    }
+
+    // Remember the OpenGL texture id for later deletion, and drop the tile's share of its pixels;
+    //  they go back to the pool once no load adapter cache or subvolume reader holds them either
+    private void retire(TileTexture tile) {
+        if (tile == null) {
+            return;
+        }
+        PyramidTexture texture = tile.getTexture();
+        if (texture != null && texture.getTextureId() > 0) {
+            obsoleteGlTextures.add(texture.getTextureId());
+        }
+        tile.releaseMemory();
+    }
+
+    public Set<Integer> popObsoleteGlTextures() {
+        Set<Integer> result = new HashSet<>();
+        for (Integer id : obsoleteGlTextures) {
+            if (obsoleteGlTextures.remove(id)) {
+                result.add(id);
+            }
+        }
+        if (result.size() > 0) {
+            LOG.info("Popping obsolete {} textures.  Size {}.", name, result.size());
+        }
+        return result;
+    }
+
+    public void storeObsoleteTextureIds(int[] textureIds) {
+        for (int i : textureIds) {
+            obsoleteGlTextures.add(i);
+        }
+    }
+
+    public Collection<TileTexture> values() {
+        List<TileTexture> result = new ArrayList<>(map.size());
+        for (Entry entry : map.values()) {
+            result.add(entry.tile);
+        }
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    public void setByteBudget(long byteBudget) {
+        this.byteBudget = byteBudget;
+        if (residentBytes.get() > byteBudget) {
+            evict();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d tiles, %d/%d MB, hits=%d misses=%d evictions=%d",
+                name, size(), residentBytes.get() / (1024 * 1024), byteBudget / (1024 * 1024),
+                hitCount.get(), missCount.get(), evictionCount.get());
+    }
+
+}
@@ -7,6 +7,7 @@ import java.awt.image.RenderedImage;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by murphys on 5/13/2016.
@@ -20,6 +21,8 @@ public class TextureData2d {
     protected int height = 0;
     protected int border = 0;
     protected ByteBuffer pixels = null; // prefer direct buffer; array backed buffer works too
+    // Number of TextureData2d instances sharing pooled pixels; null unless pixels came from the TileBufferPool
+    protected AtomicInteger pixelOwners = null;
 
     // Derived properties
     protected boolean srgb; // vs. linear
@@ -105,11 +108,71 @@ public class TextureData2d {
         return;
     }
 
-    public void releaseMemory() {
+    /**
+     * Drops this instance's pixels. Pooled pixels go back to the
+     * TileBufferPool once every instance sharing them has released them.
+     */
+    public synchronized void releaseMemory() {
         width = height = usedWidth = 0;
+        if (pixelOwners != null && pixelOwners.decrementAndGet() == 0) {
+            TileBufferPool.getInstance().release(pixels);
+        }
+        pixelOwners = null;
         pixels = null;
     }
 
+    /**
+     * A new instance sharing these pixels, which the caller owns and must
+     * release; null if these pixels have already been released. Use this to
+     * hand out a tile that something else, such as a cache, still holds.
+     */
+    synchronized TextureData2d retain() {
+        if (pixels == null) {
+            return null;
+        }
+        TextureData2d result = new TextureData2d();
+        result.copyProperties(this);
+        result.pixels = pixels;
+        if (pixelOwners != null) {
+            pixelOwners.incrementAndGet();
+            result.pixelOwners = pixelOwners;
+        }
+        return result;
+    }
+
+    /**
+     * Moves the pixels, and the duty to release them, from another
+     * instance to this one. The other instance keeps a view of the pixels
+     * that it no longer owns.
+     */
+    protected void takePixels(TextureData2d other) {
+        synchronized (other) {
+            copyProperties(other);
+            pixels = other.pixels;
+            pixelOwners = other.pixelOwners;
+            other.pixelOwners = null;
+        }
+    }
+
+    private void copyProperties(TextureData2d other) {
+        mipmapLevel = other.mipmapLevel;
+        width = other.width;
+        usedWidth = other.usedWidth;
+        height = other.height;
+        border = other.border;
+        srgb = other.srgb;
+        bitDepth = other.bitDepth;
+        channelCount = other.channelCount;
+        textureCoordX = other.textureCoordX;
+    }
+
+    /**
+     * Number of bytes of pixel storage held by this texture.
+     */
+    public long getPixelByteCount() {
+        return pixels == null ? 0 : pixels.capacity();
+    }
+
     public void setBitDepth(int bitDepth) {
         this.bitDepth = bitDepth;
     }
@@ -124,8 +187,9 @@ public class TextureData2d {
         this.height = height;
     }
 
-    public void setPixels(ByteBuffer pixels) {
+    public synchronized void setPixels(ByteBuffer pixels) {
         this.pixels = pixels;
+        this.pixelOwners = null;
     }
 
     public void setChannelCount(int channelCount) {
@@ -292,7 +356,7 @@ public class TextureData2d {
     }
 
     public byte[] copyToByteArray() {
-        int byteBufferSize = (Integer.SIZE / 8) * 8 + (Float.SIZE / 8) + pixels.capacity();
+        int byteBufferSize = (Integer.SIZE / 8) * 8 + (Float.SIZE / 8) + pixels.limit();
         byte[] textureData2dArray=new byte[byteBufferSize];
         ByteBuffer byteBuffer = ByteBuffer.wrap(textureData2dArray);
         byteBuffer.putInt(mipmapLevel);
@@ -304,12 +368,32 @@ public class TextureData2d {
         byteBuffer.putInt(bitDepth);
         byteBuffer.putInt(channelCount);
         byteBuffer.putFloat(textureCoordX);
+        pixels.rewind();
         byteBuffer.put(pixels);
+        pixels.rewind();
         return textureData2dArray;
     }
 
     TextureData2d() {}
 
+    /**
+     * Takes ownership of a TileBufferPool buffer that already holds
+     * native-order pixels, laid out exactly as they will be passed to openGL.
+     * The buffer goes back to the pool when this instance, and every
+     * instance retained from it, has been released.
+     */
+    TextureData2d(ByteBuffer pooledPixels, int width, int usedWidth, int height, int bitDepth, int channelCount, boolean srgb) {
+        this.width = width;
+        this.usedWidth = usedWidth;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.channelCount = channelCount;
+        this.srgb = srgb;
+        this.textureCoordX = usedWidth / (float) width;
+        this.pixels = pooledPixels;
+        this.pixelOwners = new AtomicInteger(1);
+    }
+
     TextureData2d(byte[] bytes) {
         ByteBuffer byteBuffer=ByteBuffer.wrap(bytes);
         mipmapLevel=byteBuffer.getInt();
@@ -326,10 +410,11 @@ public class TextureData2d {
         bitDepth=byteBuffer.getInt();
         channelCount=byteBuffer.getInt();
         textureCoordX=byteBuffer.getFloat();
-        int remainingBytes=byteBuffer.remaining();
-        byte[] pixelArray=new byte[remainingBytes];
-        byteBuffer.get(pixelArray);
-        pixels=ByteBuffer.wrap(pixelArray);
+        // Keep pixels off-heap, in a recycled buffer
+        pixels=TileBufferPool.getInstance().acquire(byteBuffer.remaining());
+        pixels.put(byteBuffer);
+        pixels.flip();
+        pixelOwners=new AtomicInteger(1);
     }
 
 }
@@ -1,8 +1,8 @@
 package org.janelia.workstation.gui.large_volume_viewer;
 
-import java.util.LinkedHashSet;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.cache.CacheLoader;
 
@@ -20,7 +20,7 @@ public class TextureData2dCacheLoader extends CacheLoader<TileIndex, Optional<Te
 
     TextureData2dCacheLoader(BlockTiffOctreeLoadAdapter delegateTileLoader) {
         this.delegateTileLoader = delegateTileLoader;
-        this.currentlyLoadingTiles = new LinkedHashSet<>();
+        this.currentlyLoadingTiles = ConcurrentHashMap.newKeySet(); // loads run on several threads
     }
 
     @Override
@@ -27,16 +27,13 @@ implements TextureDataI
 	private boolean linearized = false; // whether srgb corrected to linear in hardware
 	private boolean swapBytes = false;
 
+	/**
+	 * Takes over the pixels of textureData2d, along with the duty to
+	 * release them.
+	 */
 	public TextureData2dGL(TextureData2d textureData2d) {
-		this.mipmapLevel=textureData2d.getMipmapLevel();
-		setWidth(textureData2d.getWidth());
-		setUsedWidth(textureData2d.getUsedWidth());
-		this.height=textureData2d.getHeight();
-		this.border=textureData2d.getBorder();
-		this.pixels=textureData2d.getPixels();
-		this.srgb=textureData2d.isSrgb();
-		this.bitDepth=textureData2d.getBitDepth();
-		this.channelCount=textureData2d.getChannelCount();
+		takePixels(textureData2d);
+		setUsedWidth(this.usedWidth);
 		updateTexImageParams();
 	}
 
@@ -47,7 +47,11 @@ public class TextureLoadWorker implements Runnable {
             // load texture
             boolean loadedSuccessfully = texture.loadImageToRam();
             LOG.debug("loadedSuccessfully={} loadStatus={}", loadedSuccessfully, texture.getLoadStatus());
-            if (loadedSuccessfully) {
+            if (Thread.currentThread().isInterrupted()) {
+                // Load was cancelled because the view moved on; don't cache a possibly partial result
+                LOG.debug("Discarding cancelled load of texture {}", index);
+                texture.releaseMemory();
+            } else if (loadedSuccessfully) {
                 textureCache.add(texture);
                 tileServer.textureLoaded(texture.getIndex());
             }
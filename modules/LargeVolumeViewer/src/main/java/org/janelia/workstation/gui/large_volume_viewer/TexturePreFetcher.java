@@ -1,15 +1,5 @@
 package org.janelia.workstation.gui.large_volume_viewer;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,83 +7,100 @@ class TexturePreFetcher {
 
     private static final Logger log = LoggerFactory.getLogger(TexturePreFetcher.class);
 
-    private final ThreadPoolExecutor textureLoadExecutor;
-    private final Map<Future<?>, TileIndex> futures = new HashMap<>();
+    private final TileLoadScheduler scheduler;
     private TextureCache textureCache; // holds texture
     private AbstractTextureLoadAdapter loadAdapter; // knows how to load textures
 
-    TexturePreFetcher(int coreThreadPoolSize, int maxThreadPoolSize) {
-        textureLoadExecutor = new ThreadPoolExecutor(
-                coreThreadPoolSize,
-                maxThreadPoolSize,
-                0, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>(),
-                new ThreadFactoryBuilder()
-                        .setNameFormat("TexturePreFetch-%03d")
-                        .setDaemon(true)
-                        .build()
-        );
+    TexturePreFetcher(String name, int threadCount) {
+        // Interrupting a load would close the file channel that MappedTiffStack shares between loads
+        scheduler = new TileLoadScheduler(name, threadCount, false);
     }
 
     /**
-     * Like loadTexture, but emits an update signal when complete.
+     * Queues a load for a tile the current view needs, ahead of every
+     * prefetched tile.
      *
      * Returns "true" if this tile would occupy desired space in the future
      * cache.
      */
-    synchronized boolean loadDisplayedTexture(TileIndex index, TileServer tileServer) {
+    boolean loadDisplayedTexture(TileIndex index, TileServer tileServer, double priority) {
+        return loadTexture(index, tileServer, TileLoadScheduler.Category.DISPLAYED, priority);
+    }
+
+    /**
+     * Queues a texture load at the given priority; lower priority values
+     * load sooner. If the texture is already queued, its priority is
+     * updated instead.
+     *
+     * Returns "true" if this tile would occupy desired space in the future
+     * cache.
+     */
+    synchronized boolean loadTexture(final TileIndex index, TileServer tileServer,
+            TileLoadScheduler.Category category, double priority) {
         if (textureCache == null) {
-            log.trace("loadDisplayedTexture - return because textureCache is null");
+            log.trace("loadTexture - return because textureCache is null");
             return false;
         }
         if (loadAdapter == null) {
-            log.trace("loadDisplayedTexture - return because loadAdapter is null");
+            log.trace("loadTexture - return because loadAdapter is null");
             return false;
         }
         if (textureCache.getFutureCache().containsKey(index)) {
-            log.trace("loadDisplayedTexture - already in future cache");
+            log.trace("loadTexture - already in future cache");
             textureCache.getFutureCache().get(index); // move cached texture to back of queue
             return true;
         }
         if (textureCache.containsKey(index)) {
-            log.trace("loadDisplayedTexture - already in current cache");
+            log.trace("loadTexture - already in current cache");
             return false; // we already have this one!
         }
+        if (scheduler.reschedule(index, category, priority)) {
+            log.trace("loadTexture - already queued; reprioritized");
+            return (index.getZoom() != index.getMaxZoom());
+        }
         if (textureCache.isLoadQueued(index)) {
-            log.trace("loadDisplayedTexture - already queued");
+            log.trace("loadTexture - already queued elsewhere");
             return false;
         }
         TileTexture texture = new TileTexture(index, loadAdapter);
         TextureLoadWorker textureLoadWorker = new TextureLoadWorker(texture, textureCache, tileServer);
         // TODO - handle MISSING textures vs. ERROR textures
-        Future<?> foo = textureLoadExecutor.submit(textureLoadWorker);
-        futures.put(foo, texture.getIndex());
+        final TextureCache cache = textureCache;
         textureCache.setLoadQueued(index, true);
+        scheduler.schedule(index, category, priority, textureLoadWorker, new Runnable() {
+            @Override
+            public void run() {
+                cache.setLoadQueued(index, false);
+            }
+        });
         // Lowest resolution textures are in the persistent cache, and thus
         // do not impact the future cache.
-        log.debug("loadDisplayedTexture - queued for download: {}", index);
+        log.debug("loadTexture - queued for download: {}", index);
         return (index.getZoom() != index.getMaxZoom());
     }
 
+    /**
+     * Call before re-requesting the textures for a changed view; loads that
+     * are not requested again before cancelObsolete() will be dropped.
+     */
+    synchronized void beginReprioritization() {
+        scheduler.beginGeneration();
+    }
+
+    /**
+     * Drops queued loads that were not requested since the last
+     * beginReprioritization(). Such loads in flight are left to finish.
+     */
+    synchronized void cancelObsolete() {
+        scheduler.cancelObsolete();
+    }
+
     synchronized void clear() {
-        if (textureCache == null) {
-            return;
-        }
-        BlockingQueue<Runnable> blockingQueue = textureLoadExecutor.getQueue();
-        if (blockingQueue == null) {
-            return;
-        }
-        //synchronize on it to prevent tasks from being polled
-        synchronized (blockingQueue) {
-            //clear the Queue
-            for (Runnable r : blockingQueue) {
-                if (futures.containsKey(r)) {
-                    textureCache.setLoadQueued(futures.get(r), false);
-                }
-            }
-            blockingQueue.clear();
-        }
-        futures.clear();
+        scheduler.cancelAll();
+    }
+
+    TileLoadScheduler getScheduler() {
+        return scheduler;
     }
 
     void setLoadAdapter(AbstractTextureLoadAdapter loadAdapter) {
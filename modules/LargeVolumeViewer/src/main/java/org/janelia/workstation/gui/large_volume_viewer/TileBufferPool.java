@@ -0,0 +1,148 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.workstation.core.util.ConsoleProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of native-order direct ByteBuffers holding tile pixel data, so
+ * texture bytes live off the java heap and are recycled rather than
+ * reallocated for every tile.
+ *
+ * Buffers are grouped into power-of-two size classes. A released buffer may
+ * be handed out again at once, so it must only be released by its last
+ * owner; TextureData2d counts the instances sharing a tile's pixels.
+ */
+public class TileBufferPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TileBufferPool.class);
+
+    private static final int MIN_SIZE_CLASS = 12; // 4 KB
+    private static final int MAX_SIZE_CLASS = 30; // 1 GB
+
+    private static final TileBufferPool INSTANCE = new TileBufferPool(
+            ConsoleProperties.getLong("console.LVV.textureCache.poolBytes", 256L * 1024 * 1024));
+
+    public static TileBufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private final Deque<ByteBuffer>[] freeLists = new Deque[MAX_SIZE_CLASS + 1];
+    private final long maxIdleBytes;
+    private long idleBytes = 0;
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+    private final AtomicLong allocationCount = new AtomicLong();
+
+    TileBufferPool(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Returns a cleared, native-order direct buffer whose limit is exactly
+     * byteCount. The capacity may be larger, up to the next size class.
+     */
+    public ByteBuffer acquire(int byteCount) {
+        int sizeClass = sizeClassFor(byteCount);
+        if (sizeClass > MAX_SIZE_CLASS) {
+            // Too big to pool; hand out an exact allocation
+            allocationCount.incrementAndGet();
+            allocatedBytes.addAndGet(byteCount);
+            return ByteBuffer.allocateDirect(byteCount).order(ByteOrder.nativeOrder());
+        }
+        ByteBuffer result;
+        synchronized (freeLists) {
+            result = freeLists[sizeClass].pollFirst();
+            if (result != null) {
+                idleBytes -= result.capacity();
+            }
+        }
+        if (result == null) {
+            allocationCount.incrementAndGet();
+            allocatedBytes.addAndGet(1L << sizeClass);
+            result = ByteBuffer.allocateDirect(1 << sizeClass);
+        } else {
+            reuseCount.incrementAndGet();
+        }
+        result.clear();
+        result.order(ByteOrder.nativeOrder());
+        result.limit(byteCount);
+        return result;
+    }
+
+    /**
+     * Hands a buffer previously returned by acquire() back to the pool.
+     * Buffers that did not come from this pool are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_SIZE_CLASS)) {
+            return; // not one of ours
+        }
+        synchronized (freeLists) {
+            if (idleBytes + capacity > maxIdleBytes) {
+                // Let the garbage collector have it
+                allocatedBytes.addAndGet(-capacity);
+                return;
+            }
+            freeLists[Integer.numberOfTrailingZeros(capacity)].addFirst(buffer);
+            idleBytes += capacity;
+        }
+    }
+
+    /**
+     * Drops all idle buffers, e.g. when a new sample is opened.
+     */
+    public void trim() {
+        synchronized (freeLists) {
+            for (Deque<ByteBuffer> freeList : freeLists) {
+                for (ByteBuffer buffer : freeList) {
+                    allocatedBytes.addAndGet(-buffer.capacity());
+                }
+                freeList.clear();
+            }
+            idleBytes = 0;
+        }
+        LOG.debug("Trimmed tile buffer pool; {} bytes still allocated", allocatedBytes.get());
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public long getIdleBytes() {
+        synchronized (freeLists) {
+            return idleBytes;
+        }
+    }
+
+    public long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+
+    private static int sizeClassFor(int byteCount) {
+        if (byteCount <= (1 << MIN_SIZE_CLASS)) {
+            return MIN_SIZE_CLASS;
+        }
+        return 32 - Integer.numberOfLeadingZeros(byteCount - 1);
+    }
+
+}
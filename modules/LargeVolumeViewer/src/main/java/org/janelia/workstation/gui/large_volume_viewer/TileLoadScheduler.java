@@ -0,0 +1,292 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tile loads in priority order rather than first-come first-served.
+ *
+ * Displayed tiles always go ahead of prefetched tiles; within a category,
+ * lower priority values (e.g. distance from the focus) go first, and ties
+ * keep submission order.
+ *
+ * Each view change opens a new "generation". Loads requested again during
+ * the new generation are re-prioritised in place; loads that were not
+ * requested again are cancelled by cancelObsolete(), including loads that
+ * are already running, whose threads get interrupted unless the scheduler
+ * was created with interruptObsolete false.
+ */
+class TileLoadScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TileLoadScheduler.class);
+
+    enum Category {
+        DISPLAYED, // needed for the current view; loads first
+        PREFETCHED // predicted to be needed soon
+    }
+
+    private final class LoadTask extends FutureTask<Void> implements Comparable<LoadTask> {
+        private final TileIndex index;
+        private final long sequence;
+        private final Runnable onCancel;
+        // Only modified while the task is out of the queue, so the heap stays valid
+        private Category category;
+        private double priority;
+        private volatile long generation;
+
+        LoadTask(TileIndex index, Category category, double priority, Runnable work, Runnable onCancel) {
+            super(work, null);
+            this.index = index;
+            this.category = category;
+            this.priority = priority;
+            this.generation = currentGeneration;
+            this.sequence = submissionCount.incrementAndGet();
+            this.onCancel = onCancel;
+        }
+
+        @Override
+        public void run() {
+            super.run();
+            if (isCancelled()) {
+                wastedLoadCount.incrementAndGet(); // we did (some of) the work for nothing
+            }
+        }
+
+        @Override
+        protected void done() {
+            tasks.remove(index, this);
+            if (isCancelled()) {
+                if (onCancel != null) {
+                    onCancel.run();
+                }
+                return;
+            }
+            completedLoadCount.incrementAndGet();
+            if (category == Category.DISPLAYED && generation == currentGeneration) {
+                recordFirstTile();
+            }
+        }
+
+        @Override
+        public int compareTo(LoadTask other) {
+            int result = category.compareTo(other.category);
+            if (result != 0) {
+                return result;
+            }
+            result = Double.compare(priority, other.priority);
+            if (result != 0) {
+                return result;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+    private final ThreadPoolExecutor executor;
+    private final boolean interruptObsolete;
+    private final Map<TileIndex, LoadTask> tasks = new ConcurrentHashMap<>();
+    private final AtomicLong submissionCount = new AtomicLong();
+    private volatile long currentGeneration = 0;
+
+    // Metrics
+    private final AtomicLong completedLoadCount = new AtomicLong();
+    private final AtomicLong cancelledQueuedCount = new AtomicLong();
+    private final AtomicLong cancelledRunningCount = new AtomicLong();
+    private final AtomicLong wastedLoadCount = new AtomicLong();
+    private volatile long viewChangeTime = System.nanoTime();
+    private volatile boolean awaitingFirstTile = false;
+    private volatile long lastTimeToFirstTileNanos = -1;
+    private final AtomicLong timeToFirstTileTotalNanos = new AtomicLong();
+    private final AtomicLong timeToFirstTileCount = new AtomicLong();
+
+    TileLoadScheduler(String name, int threadCount) {
+        this(name, threadCount, true);
+    }
+
+    /**
+     * @param interruptObsolete false if loads must not be interrupted, e.g.
+     * because other threads may be waiting on the same load
+     */
+    TileLoadScheduler(String name, int threadCount, boolean interruptObsolete) {
+        this.interruptObsolete = interruptObsolete;
+        executor = new ThreadPoolExecutor(
+                threadCount,
+                threadCount,
+                0, TimeUnit.SECONDS,
+                queue,
+                new ThreadFactoryBuilder()
+                        .setNameFormat(name + "-%03d")
+                        .setDaemon(true)
+                        .build()
+        );
+    }
+
+    /**
+     * Queues a load, or updates the category and priority of a load that is
+     * already queued for the same tile.
+     *
+     * @return true if a new load was queued
+     */
+    synchronized boolean schedule(TileIndex index, Category category, double priority, Runnable work, Runnable onCancel) {
+        if (reschedule(index, category, priority)) {
+            return false;
+        }
+        LoadTask task = new LoadTask(index, category, priority, work, onCancel);
+        tasks.put(index, task);
+        executor.execute(task);
+        return true;
+    }
+
+    /**
+     * Updates the priority of an already scheduled load, and marks it as
+     * wanted by the current generation.
+     *
+     * @return false if this tile is not scheduled
+     */
+    synchronized boolean reschedule(TileIndex index, Category category, double priority) {
+        LoadTask task = tasks.get(index);
+        if (task == null || task.isDone()) {
+            return false;
+        }
+        task.generation = currentGeneration;
+        if (queue.remove(task)) {
+            // Never lower the category of a tile someone is waiting to see
+            if (category.compareTo(task.category) < 0) {
+                task.category = category;
+                task.priority = priority;
+            } else if (category == task.category) {
+                task.priority = priority;
+            }
+            queue.add(task);
+        }
+        return true;
+    }
+
+    boolean isScheduled(TileIndex index) {
+        LoadTask task = tasks.get(index);
+        return task != null && !task.isDone();
+    }
+
+    /**
+     * Starts a new generation of requests, e.g. because the view moved.
+     */
+    synchronized void beginGeneration() {
+        currentGeneration++;
+        viewChangeTime = System.nanoTime();
+        awaitingFirstTile = true;
+    }
+
+    /**
+     * Cancels every load that was not requested during the current
+     * generation, interrupting those that are already running.
+     */
+    synchronized void cancelObsolete() {
+        cancel(false);
+    }
+
+    /**
+     * Cancels every load, queued or running.
+     */
+    synchronized void cancelAll() {
+        cancel(true);
+    }
+
+    private void cancel(boolean all) {
+        List<LoadTask> obsolete = new ArrayList<>();
+        for (LoadTask task : tasks.values()) {
+            if (all || task.generation != currentGeneration) {
+                obsolete.add(task);
+            }
+        }
+        int queuedCount = 0;
+        int runningCount = 0;
+        for (LoadTask task : obsolete) {
+            boolean wasQueued = queue.remove(task);
+            if (task.cancel(interruptObsolete)) {
+                if (wasQueued) {
+                    queuedCount++;
+                } else {
+                    runningCount++;
+                }
+            }
+        }
+        cancelledQueuedCount.addAndGet(queuedCount);
+        cancelledRunningCount.addAndGet(runningCount);
+        if (queuedCount + runningCount > 0) {
+            LOG.debug("Cancelled {} queued and {} running tile loads", queuedCount, runningCount);
+        }
+    }
+
+    private void recordFirstTile() {
+        if (!awaitingFirstTile) {
+            return;
+        }
+        awaitingFirstTile = false;
+        long elapsed = System.nanoTime() - viewChangeTime;
+        lastTimeToFirstTileNanos = elapsed;
+        timeToFirstTileTotalNanos.addAndGet(elapsed);
+        timeToFirstTileCount.incrementAndGet();
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    long getCompletedLoadCount() {
+        return completedLoadCount.get();
+    }
+
+    long getCancelledQueuedCount() {
+        return cancelledQueuedCount.get();
+    }
+
+    long getCancelledRunningCount() {
+        return cancelledRunningCount.get();
+    }
+
+    /**
+     * Loads that were running when they were cancelled; their I/O was
+     * wasted, at least in part.
+     */
+    long getWastedLoadCount() {
+        return wastedLoadCount.get();
+    }
+
+    /**
+     * Milliseconds from the most recent view change until the first
+     * displayed tile finished loading, or -1 if not yet measured.
+     */
+    double getLastTimeToFirstTileMs() {
+        long nanos = lastTimeToFirstTileNanos;
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+
+    double getMeanTimeToFirstTileMs() {
+        long count = timeToFirstTileCount.get();
+        return count == 0 ? -1 : timeToFirstTileTotalNanos.get() / 1e6 / count;
+    }
+
+    String getMetricsSummary() {
+        return String.format("queued=%d active=%d completed=%d cancelledQueued=%d cancelledRunning=%d wasted=%d firstTileMs=%.1f (mean %.1f)",
+                getQueueDepth(), getActiveCount(), getCompletedLoadCount(),
+                getCancelledQueuedCount(), getCancelledRunningCount(), getWastedLoadCount(),
+                getLastTimeToFirstTileMs(), getMeanTimeToFirstTileMs());
+    }
+
+}
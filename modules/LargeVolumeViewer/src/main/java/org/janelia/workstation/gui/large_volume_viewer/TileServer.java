@@ -42,9 +42,9 @@ public class TileServer implements ComponentListener, // so changes in viewer si
     private LoadStatus loadStatus = LoadStatus.UNINITIALIZED;
 
     // One thread pool to load minimal representation of volume
-    private final TexturePreFetcher minResPreFetcher; //!!!! = new TexturePreFetcher(MIN_RES_TILE_LOADER_CONCURRENCY, MIN_RES_TILE_LOADER_CONCURRENCY);
-    // One thread pool to load current and prefetch textures
-    private final TexturePreFetcher futurePreFetcher; //!!!! = new TexturePreFetcher(MIN_RES_TILE_LOADER_CONCURRENCY, HIGHER_RES_TILE_LOADER_CONCURRENCY);
+    private final TexturePreFetcher minResPreFetcher;
+    // One prioritized thread pool to load current and prefetch textures
+    private final TexturePreFetcher futurePreFetcher;
 
     // Refactoring 6/12/2013
     private SharedVolumeImage sharedVolumeImage;
@@ -61,8 +61,10 @@ public class TileServer implements ComponentListener, // so changes in viewer si
     private Set<TileIndex> currentDisplayTiles = new HashSet<>();
 
     public TileServer(SharedVolumeImage sharedVolumeImage) {
-        this.minResPreFetcher = new TexturePreFetcher(MIN_RES_TILE_LOADER_CONCURRENCY, MIN_RES_TILE_LOADER_CONCURRENCY);
-        this.futurePreFetcher = new TexturePreFetcher(MIN_RES_TILE_LOADER_CONCURRENCY, HIGHER_RES_TILE_LOADER_CONCURRENCY);
+        this.minResPreFetcher = new TexturePreFetcher("MinResTexturePreFetch", MIN_RES_TILE_LOADER_CONCURRENCY);
+        // Ten threads, as before: the old executor was created with 10 core and 15 maximum threads,
+        //  but its queue was unbounded, so it never started more than the 10 core threads
+        this.futurePreFetcher = new TexturePreFetcher("TexturePreFetch", MIN_RES_TILE_LOADER_CONCURRENCY);
 
         setSharedVolumeImage(sharedVolumeImage.setTileLoaderProvider(new BlockTiffOctreeTileLoaderProvider() {
             int concurrency = HIGHER_RES_TILE_LOADER_CONCURRENCY;
@@ -123,7 +125,7 @@ public class TileServer implements ComponentListener, // so changes in viewer si
             }
         }
         for (TileIndex i : tileGenerator) {
-            minResPreFetcher.loadDisplayedTexture(i, TileServer.this);
+            minResPreFetcher.loadDisplayedTexture(i, TileServer.this, 0.0);
         }
     }
 
@@ -256,10 +258,12 @@ public class TileServer implements ComponentListener, // so changes in viewer si
         }
         updateLoadStatus();
 
-        futurePreFetcher.clear();
+        // Re-request everything we want, in priority order; whatever is not
+        // requested again gets cancelled at the end.
+        futurePreFetcher.beginReprioritization();
 
         Set<TileIndex> cacheableTextures = new HashSet<TileIndex>();
-        int maxCacheable = (int) (0.90 * getTextureCache().getFutureCache().getMaxSize());
+        int maxCacheable = estimateMaxCacheableTiles();
 
         LOG.debug("rearrangeLoadQueue for {} ViewTileManagers", viewTileManagers.size());
         // First in line are current display tiles
@@ -272,7 +276,7 @@ public class TileServer implements ComponentListener, // so changes in viewer si
                 if (cacheableTextures.contains(ix)) {
                     continue; // already noted
                 }
-                if (futurePreFetcher.loadDisplayedTexture(ix, TileServer.this)) {
+                if (futurePreFetcher.loadDisplayedTexture(ix, TileServer.this, vtm.getLoadPriority(ix))) {
                     cacheableTextures.add(ix);
                 }
             }
@@ -329,7 +333,8 @@ public class TileServer implements ComponentListener, // so changes in viewer si
                         break;
                     }
 
-                    if (futurePreFetcher.loadDisplayedTexture(ix, TileServer.this)) {
+                    if (futurePreFetcher.loadTexture(ix, TileServer.this,
+                            TileLoadScheduler.Category.PREFETCHED, getLoadPriority(ix))) {
                         cacheableTextures.add(ix);
                     }
                 }
@@ -343,15 +348,47 @@ public class TileServer implements ComponentListener, // so changes in viewer si
                         break;
                     }
 
-                    if (futurePreFetcher.loadDisplayedTexture(ix, TileServer.this)) {
+                    if (futurePreFetcher.loadTexture(ix, TileServer.this,
+                            TileLoadScheduler.Category.PREFETCHED, getLoadPriority(ix))) {
                         cacheableTextures.add(ix);
                     }
                 }
             }
         }
+        futurePreFetcher.cancelObsolete();
+        LOG.debug("Tile load scheduler: {}", futurePreFetcher.getScheduler().getMetricsSummary());
         updateLoadStatus();
     }
 
+    // Best (lowest) load priority of a tile among the visible viewers
+    private double getLoadPriority(TileIndex index) {
+        double result = Double.MAX_VALUE;
+        for (ViewTileManager vtm : viewTileManagers) {
+            if (vtm.getTileConsumer().isShowing()) {
+                result = Math.min(result, vtm.getLoadPriority(index));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tile load scheduler for the current view and its prefetch, for
+     * queue depth, time-to-first-tile and wasted load metrics.
+     */
+    TileLoadScheduler getLoadScheduler() {
+        return futurePreFetcher.getScheduler();
+    }
+
+    // How many prefetched tiles fit in the future cache byte budget
+    private int estimateMaxCacheableTiles() {
+        TileFormat format = getLoadAdapter().getTileFormat();
+        int[] tileSize = format.getTileSize();
+        long tileBytes = (long) tileSize[0] * tileSize[1]
+                * format.getChannelCount() * Math.max(1, format.getBitDepth() / 8);
+        long budget = getTextureCache().getFutureCache().getByteBudget();
+        return (int) Math.min(Integer.MAX_VALUE, (long) (0.90 * budget / Math.max(1L, tileBytes)));
+    }
+
     void refreshCurrentTileSet() {
         LOG.trace("refreshCurrentTileSet");
         TileSet tiles = createLatestTiles();
@@ -52,4 +52,8 @@ public class TileStackCacheController extends BlockTiffOctreeLoadAdapter {
         return cachedTilesLoader.getCachingMap();
     }
 
+    public String getPrefetchStatsSummary() {
+        return cachedTilesLoader.getPrefetchStatsSummary();
+    }
+
 }
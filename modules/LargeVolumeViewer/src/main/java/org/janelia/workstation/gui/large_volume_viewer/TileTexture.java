@@ -26,7 +26,7 @@ public class TileTexture {
     private LoadStatus loadStatus = LoadStatus.UNINITIALIZED;
     private TileIndex index;
     // private URL url;
-    private TextureData2dGL textureData;
+    private volatile TextureData2dGL textureData;
     private PyramidTexture texture = null;
     private AbstractTextureLoadAdapter loadAdapter;
 
@@ -83,7 +83,15 @@ public class TileTexture {
         return true;
     }
 
-    public void releaseMemory() {
+    /**
+     * Number of bytes of pixel data this texture holds in RAM.
+     */
+    public long getByteSize() {
+        TextureData2dGL data = textureData;
+        return data == null ? 0 : data.getPixelByteCount();
+    }
+
+    public synchronized void releaseMemory() {
         if (textureData != null) {
             textureData.releaseMemory();
         }
@@ -133,8 +141,19 @@ public class TileTexture {
         return textureData;
     }
 
+    /**
+     * The pixels of this texture, for a reader that may outlive the texture's
+     * time in the cache; the caller must release the result. Null if the
+     * texture holds no pixels.
+     */
+    public TextureData2d retainTextureData() {
+        TextureData2dGL data = textureData;
+        return data == null ? null : data.retain();
+    }
+
     public void init(GL2 gl) {
-        if (textureData == null) {
+        TextureData2dGL data = textureData;
+        if (data == null) {
             return;
         }
         if (getLoadStatus().ordinal() < LoadStatus.RAM_LOADED.ordinal()) {
@@ -143,7 +162,13 @@ public class TileTexture {
         if (getLoadStatus().ordinal() >= LoadStatus.GL_LOADED.ordinal()) {
             return; // already initialized
         }		// TODO what if there is already a texture allocated...
-        texture = textureData.createTexture(gl);
+        // Releasing the data locks it too, so the pixels cannot go back to the pool mid-upload
+        synchronized (data) {
+            if (data.getPixels() == null) {
+                return; // evicted meanwhile
+            }
+            texture = data.createTexture(gl);
+        }
         setLoadStatus(LoadStatus.GL_LOADED);
         uploadTextureTime = System.nanoTime();
     }
@@ -31,6 +31,10 @@ public class ViewTileManager {
     @SuppressWarnings("unused")
     private static final Logger LOG = LoggerFactory.getLogger(ViewTileManager.class);
 
+    // Relative cost of one slice of depth, and of one zoom level, vs. one tile in-plane
+    private static final double LOAD_PRIORITY_DEPTH_WEIGHT = 2.0;
+    private static final double LOAD_PRIORITY_ZOOM_WEIGHT = 4.0;
+
     /**
      * @param loadStatusChangedListener the loadStatusChangedListener to set
      */
@@ -94,6 +98,9 @@ public class ViewTileManager {
     private final Set<TileIndex> neededTextures = new HashSet<>();
     private final Set<TileIndex> displayableTextures = new HashSet<>();
 
+    // Tile under the camera focus, at the zoom level on screen
+    private volatile TileIndex focusTileIndex;
+
     private TileConsumer tileConsumer;
     private TextureCache textureCache;
     private SharedVolumeImage volumeImage;
@@ -163,6 +170,7 @@ public class ViewTileManager {
             fD = bottomY - fD - 0.5; // bounding box extends 0.5 voxels past final slice
         }
         int relativeTileDepth = tileFormat.calcRelativeTileDepth(xyzFromWhd, fD, bb);
+        focusTileIndex = tileFormat.tileIndexForXyz(focus, zoom, sliceAxis);
 
         // 3) x and y tile index range
         ViewBoundingBox screenBounds = tileFormat.findViewBounds(
@@ -321,6 +329,38 @@ public class ViewTileManager {
         return result;
     }
 
+    /**
+     * Load ordering for a tile in this view; smaller values should load
+     * sooner. The value is the in-plane distance from the focus tile,
+     * measured in tiles at the zoom level on screen, plus penalties for
+     * distance in depth and for zoom levels finer than the one on screen.
+     * Coarser tiles get a bonus, because they are cheap and fill the view
+     * quickly.
+     */
+    double getLoadPriority(TileIndex index) {
+        TileIndex focus = focusTileIndex;
+        if (focus == null || focus.getSliceAxis() != index.getSliceAxis()) {
+            return Double.MAX_VALUE;
+        }
+        int depthAxis = index.getSliceAxis().index();
+        double scale = Math.pow(2.0, index.getZoom() - focus.getZoom());
+        double inPlane2 = 0.0;
+        for (int axis = 0; axis < 3; ++axis) {
+            if (axis == depthAxis) {
+                continue;
+            }
+            // compare tile centers
+            double d = (index.getCoordinate(axis) + 0.5) * scale - (focus.getCoordinate(axis) + 0.5);
+            inPlane2 += d * d;
+        }
+        // slice coordinates are in full resolution voxels
+        double depth = Math.abs(index.getCoordinate(depthAxis) - focus.getCoordinate(depthAxis))
+                / (double) focus.getDeltaSlice();
+        return Math.sqrt(inPlane2)
+                + LOAD_PRIORITY_DEPTH_WEIGHT * depth
+                + LOAD_PRIORITY_ZOOM_WEIGHT * (focus.getZoom() - index.getZoom());
+    }
+
     TileSet getLatestTiles() {
         return latestTiles;
     }
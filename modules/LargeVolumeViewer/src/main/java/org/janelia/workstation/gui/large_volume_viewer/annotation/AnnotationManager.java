@@ -5,6 +5,7 @@ import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
 import java.awt.event.ActionEvent;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.net.URL;
 import java.nio.file.Path;
 import java.util.*;
@@ -2123,20 +2124,34 @@ public class AnnotationManager implements UpdateAnchorListener, PathTraceListene
 
             @Override
             protected void doStuff() throws Exception {
-                int imported = 0;
-                int index = 0;
-                int total = swcFiles.size();
                 TmWorkspace workspace = annotationModel.getCurrentWorkspace();
+                List<File> existingFiles = new ArrayList<>();
+                List<File> missingFiles = new ArrayList<>();
                 for (File swcFile : swcFiles) {
-                    setStatus(swcFile.getName());
                     if (swcFile.exists()) {
-                        annotationModel.importBulkSWCData(swcFile, workspace);
-                        activityLog.logImportSWCFile(workspace.getId(), swcFile.getName());
-                        imported++;
+                        existingFiles.add(swcFile);
+                    } else {
+                        missingFiles.add(swcFile);
+                    }
+                }
+                // the files are read and converted in parallel
+                SWCImportResult result = annotationModel.importBulkSWCData(existingFiles, workspace, this);
+                for (File swcFile : missingFiles) {
+                    result.failed(swcFile, new FileNotFoundException(swcFile.getPath()));
+                }
+                // only files whose neuron was created and saved
+                for (File swcFile : result.getImportedFiles()) {
+                    activityLog.logImportSWCFile(workspace.getId(), swcFile.getName());
+                }
+                setStatus(result.getSummary());
+                if (!result.getFailedFiles().isEmpty()) {
+                    List<String> failedNames = new ArrayList<>();
+                    for (File swcFile : result.getFailedFiles().keySet()) {
+                        failedNames.add(swcFile.getName());
                     }
-                    setProgress(index++, total);
+                    throw new Exception(result.getSummary() + "; could not import " + String.join(", ", failedNames),
+                            result.getFailedFiles().values().iterator().next());
                 }
-                setStatus("Successfully imported "+imported+" files");
             }
 
             @Override
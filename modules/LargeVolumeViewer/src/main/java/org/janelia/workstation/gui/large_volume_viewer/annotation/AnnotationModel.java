@@ -8,10 +8,13 @@ import java.nio.file.Path;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -20,7 +23,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import javax.swing.SwingUtilities;
@@ -82,6 +84,7 @@ import org.janelia.workstation.gui.large_volume_viewer.controller.ViewStateListe
 import org.janelia.workstation.gui.large_volume_viewer.dialogs.NeuronGroupsDialog;
 import org.janelia.workstation.gui.large_volume_viewer.model_adapter.NeuronManager;
 import org.janelia.workstation.gui.large_volume_viewer.model_adapter.NeuronMessageConstants;
+import org.janelia.workstation.gui.large_volume_viewer.model_adapter.WorkspaceNeuronLoader;
 import org.janelia.workstation.gui.large_volume_viewer.neuron_api.NeuronSetAdapter;
 import org.janelia.workstation.gui.large_volume_viewer.neuron_api.NeuronVertexAdapter;
 import org.janelia.workstation.gui.large_volume_viewer.neuron_api.SpatialFilter;
@@ -316,6 +319,20 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
         tmDomainMgr.save(currentSample);
     }
 
+    // Sample micron coordinates to annotation (voxel) coordinates, if the sample has its matrix
+    private double[] micronToVoxel(Vec3 micronXyz) {
+        if (micronXyz == null || currentSample == null || currentSample.getMicronToVoxMatrix() == null) {
+            return null;
+        }
+        Matrix micronToVoxMatrix = MatrixUtilities.deserializeMatrix(currentSample.getMicronToVoxMatrix(), "micronToVoxMatrix");
+        Matrix voxLoc = micronToVoxMatrix.times(new Matrix(new double[][]{
+            {micronXyz.getX(),},
+            {micronXyz.getY(),},
+            {micronXyz.getZ(),},
+            {1.0,},}));
+        return new double[]{voxLoc.get(0, 0), voxLoc.get(1, 0), voxLoc.get(2, 0)};
+    }
+
     private Long getWsId() {
         if (currentWorkspace != null) {
             return currentWorkspace.getId();
@@ -364,6 +381,16 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
     }
     
     public synchronized void loadWorkspace(final TmWorkspace workspace) throws Exception {
+        loadWorkspace(workspace, null, null);
+    }
+
+    /**
+     * @param micronFocus neurons nearest this point are registered first, or
+     * null for no preference
+     * @param listener told of each batch of neurons as it is loaded, or null
+     */
+    public synchronized void loadWorkspace(final TmWorkspace workspace, Vec3 micronFocus,
+            WorkspaceNeuronLoader.Listener listener) throws Exception {
         if (workspace == null) {
             throw new IllegalArgumentException("Cannot load null workspace");
         }
@@ -373,21 +400,32 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
 
         // Neurons need to be loaded en masse from raw data from server.
         log.info("Loading neurons for workspace {}", workspace.getId());
-        neuronManager.loadWorkspaceNeurons(workspace);
-
-        // if workspace contains more system-owned fragments than a threshold , enable filter
+        // if workspace contains more system-owned fragments than a threshold , enable filter;
+        //  fragments are counted as the neurons arrive
         String systemNeuron = ConsoleProperties.getInstance().getProperty("console.LVVHorta.tracersgroup").trim();
-        applyFilter = false;
-        int nFragments = 0;
-        for (TmNeuronMetadata neuron: neuronManager.getNeurons()) {
-            if (neuron.getOwnerKey().equals(systemNeuron)) {
-                nFragments += 1;
-                if (nFragments >= NUMBER_FRAGMENTS_THRESHOLD) {
-                    applyFilter = true;
-                    break;
+        int[] nFragments = {0};
+        neuronManager.loadWorkspaceNeurons(workspace, micronToVoxel(micronFocus), (batch, loadedCount, totalCount) -> {
+            // draw each batch as it arrives; once the fragments are known to be
+            //  filtered, hold them back, as the views are rebuilt from the
+            //  filtered list when the load completes
+            List<TmNeuronMetadata> addList = new ArrayList<>(batch.size());
+            for (TmNeuronMetadata neuron: batch) {
+                if (systemNeuron.equals(neuron.getOwnerKey())) {
+                    nFragments[0] += 1;
+                    if (nFragments[0] >= NUMBER_FRAGMENTS_THRESHOLD) {
+                        continue;
+                    }
                 }
+                addList.add(neuron);
             }
-        }
+            if (!addList.isEmpty()) {
+                SwingUtilities.invokeLater(() -> fireBulkNeuronsChanged(addList, Collections.emptyList()));
+            }
+            if (listener != null) {
+                listener.neuronsLoaded(batch, loadedCount, totalCount);
+            }
+        });
+        applyFilter = nFragments[0] >= NUMBER_FRAGMENTS_THRESHOLD;
         log.info("Spatial Filtering applied: {}", applyFilter);
 
         // if spatial filter is applied, use it to filter neurons
@@ -2012,7 +2050,9 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
 
     /**
      * export the neurons in the input list into the given file, in swc format;
-     * all neurons (and all their neurites!) are crammed into a single file
+     * all neurons (and all their neurites!) are crammed into a single file;
+     * if there's more than one neuron, each also gets its own file, and those
+     * are converted and written in parallel
      */
     public void exportSWCData(File swcFile, int downsampleModulo, Collection<TmNeuronMetadata> neurons,
         boolean exportNotes, Progress progress) throws Exception {
@@ -2020,11 +2060,15 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
         log.info("Exporting {} neurons to SWC file {}",neurons.size(),swcFile);
         progress.setStatus("Creating headers");
 
-        // I need the neuron order to be deterministic:
-        List<TmNeuronMetadata> neuronList = new ArrayList<>(neurons);
-
+        // I need the neuron order to be deterministic; empty neurons aren't exported
+        List<TmNeuronMetadata> neuronList = new ArrayList<>();
         Map<Long,List<String>> neuronHeaders = new HashMap<>();
-        for (TmNeuronMetadata neuron: neuronList) {
+        for (TmNeuronMetadata neuron: neurons) {
+            if (neuron == null || neuron.getGeoAnnotationMap().isEmpty()) {
+                log.trace("Skipping empty neuron "+neuron);
+                continue;
+            }
+            neuronList.add(neuron);
             List<String> headers = neuronHeaders.get(neuron.getId());
             if (headers == null) {
                 headers = new ArrayList<>();
@@ -2033,7 +2077,7 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
             NeuronStyle style = getNeuronStyle(neuron);
             float[] color = style.getColorAsFloatArray();
             headers.add(String.format(COLOR_FORMAT, color[0], color[1], color[2]));
-            if (neuronList.size() > 1) {
+            if (neurons.size() > 1) {
                 // Allow user to pick name as name of file, if saving individual neuron.
                 // Do not save the internal name.
                 headers.add(String.format(NAME_FORMAT, neuron.getName()));
@@ -2042,63 +2086,47 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
         
         progress.setStatus("Exporting neuron files");
 
-        // get swcdata via converter, then write; conversion from TmNeurons is done
-        //  all at once so all neurons are off set from the same center of mass
-        // First write one file per neuron.
-        List<SWCData> swcDatas = swcDataConverter.fromTmNeuron(neuronList, neuronHeaders, downsampleModulo);
-        // there's one swc and one note file per neuron, plus aggregate; note how
-        //  we set progress; i only increments per neuron, but we show progress over
-        //  all files
-        int total = 1;
-        if (exportNotes) {
-            total = 2 * (swcDatas.size() + 1);
-        } else {
-            total = swcDatas.size() + 1;
-        }
-        if (swcDatas != null && !swcDatas.isEmpty()) {
-            int i = 0;
-            for (SWCData swcData: swcDatas) {
-                progress.setStatus("Exporting neuron file " + (i + 1));
-                if (swcDatas.size() == 1) {
-                    swcData.write(swcFile, -1);
-                }
-                else {
-                    swcData.write(swcFile, i);
-                }
-                progress.setProgress(2 * i, total);
-
+        // First write one file (and notes file) per neuron; all neurons are
+        //  offset from the same center of mass; the engine hands them back
+        //  in order as they finish
+        final double[] com = swcDataConverter.neuronCenterOfMass(neuronList);
+        final Long wsId = getWsId();
+        final int total = exportNotes ? 2 * (neuronList.size() + 1) : neuronList.size() + 1;
+        final int filesPerNeuron = exportNotes ? 2 : 1;
+        List<SWCData> swcDatas = new ArrayList<>();
+        SWCEngine.create().run(neuronList,
+            (i, neuron) -> {
+                SWCData swcData = swcDataConverter.fromTmNeuron(neuron, com, neuronHeaders.get(neuron.getId()),
+                    downsampleModulo);
+                swcData.write(swcFile, neuronList.size() == 1 ? -1 : i);
                 if (exportNotes) {
-                    progress.setStatus("Exporting notes file " + (i + 1));
-                    NoteExporter.exportNotes(swcData.getPath(), getWsId(), swcData.getNeuronCenter(),
-                        neuronList.get(i), swcDataConverter);
-                    progress.setProgress(2 * i + 1, total);
+                    NoteExporter.exportNotes(swcData.getPath(), wsId, swcData.getNeuronCenter(),
+                        neuron, swcDataConverter);
                 }
+                return swcData;
+            },
+            (i, swcData) -> {
+                swcDatas.add(swcData);
+                progress.setStatus("Exported neuron file " + (i + 1));
+                progress.setProgress(filesPerNeuron * (i + 1), total);
+            });
 
-                i++;
-                // for reasons that are not clear but may involve modification of the workspace
-                //  while a long export is happening (particularly now in the shared workspace era),
-                //  the number of items processed can occasionally exceed the total, causing an
-                //  error in the progress widget; adjust for that
-                if (2 * i + 1 >= total) {
-                    total = 2 * i + 1;
-                }
+        // Next write one file containing all neurons, if there are more than one;
+        //  the neurons are already converted and written, so their nodes are
+        //  renumbered into it rather than converted again
+        if (swcDatas.size() > 1) {
+            progress.setStatus("Exporting combined neuron file");
+            SWCData swcData = new SWCData(new ArrayList<>(), swcDataConverter.standardHeaders(com), com);
+            for (SWCData neuronData: swcDatas) {
+                swcData.addDataFrom(neuronData);
             }
-        }
-
-
-        // Next write one file containing all neurons, if there are more than one.
-        if (swcDatas != null  &&  swcDatas.size() > 1) {
-            SWCData swcData = swcDataConverter.fromAllTmNeuron(neuronList, downsampleModulo);
-            if (swcData != null) {
-                swcData.write(swcFile);
-                progress.setStatus("Exporting combined neuron file");
-                activityLog.logExportSWCFile(getCurrentWorkspace().getId(), swcFile.getName());
+            swcData.write(swcFile);
+            activityLog.logExportSWCFile(getCurrentWorkspace().getId(), swcFile.getName());
 
-                if (exportNotes) {
-                    progress.setStatus("Exporting combined notes file");
-                    NoteExporter.exportNotes(swcData.getPath(), getWsId(), swcData.getNeuronCenter(),
-                        neuronList, swcDataConverter);
-                }
+            if (exportNotes) {
+                progress.setStatus("Exporting combined notes file");
+                NoteExporter.exportNotes(swcData.getPath(), wsId, swcData.getNeuronCenter(),
+                    neuronList, swcDataConverter);
             }
         }
 
@@ -2179,7 +2207,116 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
         }
     }
 
-    public synchronized void importBulkSWCData(final File swcFile, TmWorkspace tmWorkspace) throws Exception {
+    public void importBulkSWCData(final File swcFile, TmWorkspace tmWorkspace) throws Exception {
+        importBulkSWCData(Collections.singletonList(swcFile), tmWorkspace, null);
+    }
+
+    /**
+     * import each swc file as a new neuron; files are read, validated and
+     * converted in parallel; neurons are created as the files come in, with
+     * up to a batch of creates waiting on the server at once, and are filled
+     * in and saved in the order of the files
+     *
+     * @param progress reports files imported so far, and stops the import
+     * once cancelled; or null
+     * @return the files imported, those that failed and why, and those not
+     * tried because the import was cancelled
+     */
+    public SWCImportResult importBulkSWCData(final List<File> swcFiles, TmWorkspace tmWorkspace, Progress progress) throws Exception {
+
+        log.info("Importing {} neurons from SWC files", swcFiles.size());
+
+        int batchSize = Math.max(ConsoleProperties.getInt("console.LVV.swcImport.createBatchSize", 100), 1);
+        SWCImportResult result = new SWCImportResult();
+        Deque<Map<String,Object>> created = new ArrayDeque<>();
+        boolean[] tried = new boolean[swcFiles.size()];
+        int[] finished = {0};
+        try {
+            SWCEngine.create().run(swcFiles,
+                (i, swcFile) -> {
+                    // a file that can't be read fails on its own, rather than
+                    //  stopping the import
+                    try {
+                        return prepareBulkSWCData(swcFile);
+                    } catch (Exception e) {
+                        Map<String,Object> parameters = new HashMap<>();
+                        parameters.put("file", swcFile);
+                        parameters.put("error", e);
+                        return parameters;
+                    }
+                },
+                (i, parameters) -> {
+                    tried[i] = true;
+                    Exception error = (Exception) parameters.get("error");
+                    if (error == null) {
+                        // Must create the neuron up front, because we need the id when adding the linked geometric annotations below.
+                        try {
+                            parameters.put("request", neuronManager.createTiledMicroscopeNeuron(
+                                    tmWorkspace, (String) parameters.get("name")));
+                        } catch (Exception e) {
+                            error = e;
+                        }
+                    }
+                    if (error != null) {
+                        File swcFile = (File) parameters.get("file");
+                        log.warn("Could not import SWC file {}", swcFile, error);
+                        result.failed(swcFile, error);
+                        reportSWCProgress(swcFile, progress, ++finished[0], swcFiles.size());
+                        return;
+                    }
+                    created.add(parameters);
+                    while (created.size() >= batchSize) {
+                        finishCreatedSWCData(created.poll(), result, progress, ++finished[0], swcFiles.size());
+                    }
+                },
+                // once cancelled, no more files are read
+                () -> progress != null && progress.isCancelled());
+        } finally {
+            // neurons already created are filled in even if a later file failed
+            while (!created.isEmpty()) {
+                finishCreatedSWCData(created.poll(), result, progress, ++finished[0], swcFiles.size());
+            }
+        }
+        for (int i = 0; i < swcFiles.size(); i++) {
+            if (!tried[i]) {
+                result.cancelled(swcFiles.get(i));
+            }
+        }
+        log.info("SWC import: {}", result.getSummary());
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finishCreatedSWCData(Map<String,Object> parameters, SWCImportResult result, Progress progress,
+            int finished, int total) {
+        CompletableFuture<TmNeuronMetadata> future = (CompletableFuture<TmNeuronMetadata>) parameters.get("request");
+        File swcFile = (File) parameters.get("file");
+        try {
+            TmNeuronMetadata updatedNeuron = future.get(5, TimeUnit.SECONDS);
+            parameters.put("neuron", updatedNeuron);
+            finishBulkSWCData(parameters);
+            result.imported(swcFile);
+        } catch (Exception error) {
+            future.cancel(false);
+            log.warn("Could not import SWC file {}", swcFile, error);
+            result.failed(swcFile, error);
+        }
+        reportSWCProgress(swcFile, progress, finished, total);
+    }
+
+    private void reportSWCProgress(File swcFile, Progress progress, int finished, int total) {
+        if (progress != null) {
+            progress.setStatus(swcFile.getName());
+            progress.setProgress(finished, total);
+        }
+    }
+
+    /**
+     * read and convert an swc file and its notes, if any, ready for
+     * finishBulkSWCData(); this is done off the model lock, and on several
+     * files at once
+     */
+    private Map<String,Object> prepareBulkSWCData(File swcFile) throws Exception {
 
         log.info("Importing neuron from SWC file {}",swcFile);
         
@@ -2190,8 +2327,6 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
                     swcFile.getName(), swcData.getInvalidReason()));
         }
 
-
-
         // create one neuron for the file; take name from the filename (strip extension)
         String neuronName = swcData.parseName();
         if (neuronName == null) {
@@ -2200,50 +2335,35 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
         if (neuronName.endsWith(SWCData.STD_SWC_EXTENSION)) {
             neuronName = neuronName.substring(0, neuronName.length() - SWCData.STD_SWC_EXTENSION.length());
         }
-        Consumer<Map<String,Object>> callback = this::finishBulkSWCData;
         Map<String,Object> parameters = new HashMap<String,Object>();
         parameters.put("swc", swcData);
         parameters.put("file", swcFile);
-        
-        // Must create the neuron up front, because we need the id when adding the linked geometric annotations below.
-        CompletableFuture<TmNeuronMetadata> future = neuronManager.createTiledMicroscopeNeuron(tmWorkspace, neuronName);
-        if (future==null)
-            return;
-        try {
-            TmNeuronMetadata updatedNeuron = future.get(5, TimeUnit.SECONDS);
-            parameters.put("neuron", updatedNeuron);
-            finishBulkSWCData(parameters);
-        } catch (Exception error) {
-            FrameworkAccess.handleException(error);
-        }
-    }
+        parameters.put("name", neuronName);
 
-    public synchronized void finishBulkSWCData(Map<String,Object> neuronData) {
-        TmNeuronMetadata neuron = (TmNeuronMetadata)neuronData.get("neuron");
-        if (neuron==null)
-            return;
+        // the neuron ID is filled in once the neuron exists
+        Map<Integer, Integer> nodeParentLinkage = new HashMap<>();
+        Map<Integer, TmGeoAnnotation> annotations = new HashMap<>();
+        addSWCAnnotations(swcData, null, nodeParentLinkage, annotations);
+        parameters.put("linkage", nodeParentLinkage);
+        parameters.put("annotations", annotations);
 
-        SWCData swcData = (SWCData)neuronData.get("swc");
-        if (swcData==null)
-            return;
+        File notesFile = findNotesFile(swcFile);
+        if (notesFile.exists()) {
+            parameters.put("notes", new SWCNoteMatcher(parseNotesFile(notesFile)));
+        }
+        return parameters;
+    }
 
-        File swcFile = (File)neuronData.get("file");
+    /**
+     * build an external, unblessed annotation for each node, with the node's
+     * index as its id
+     */
+    private void addSWCAnnotations(SWCData swcData, Long neuronId, Map<Integer, Integer> nodeParentLinkage,
+            Map<Integer, TmGeoAnnotation> annotations) {
         // note from CB, July 2013: Vaa3d can't handle large coordinates in swc files,
         //  so he added an OFFSET header and recentered on zero when exporting
         // therefore, if that header is present, respect it
         double[] externalOffset = swcData.parseOffset();
-        // Bulk update in play.
-        // and as long as we're doing brute force, we can update progress
-        //  granularly (if we have a worker); start with 5% increments (1/20)
-        int totalLength = swcData.getNodeList().size();
-        int updateFrequency = totalLength / 20;
-        if (updateFrequency == 0) {
-            updateFrequency = 1;
-        }
-
-        Map<Integer, Integer> nodeParentLinkage = new HashMap<>();
-
-        Map<Integer, TmGeoAnnotation> annotations = new HashMap<>();
         for (SWCNode node : swcData.getNodeList()) {
             // Internal points, as seen in annotations, are same as external
             // points in SWC: represented as voxels. --LLF
@@ -2257,7 +2377,7 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
             // Build an external, unblessed annotation.  Set the id to the index.
             Date now = new Date();
             TmGeoAnnotation unserializedAnnotation = new TmGeoAnnotation(
-                    new Long(node.getIndex()), null, neuron.getId(),
+                    new Long(node.getIndex()), null, neuronId,
                     internalPoint[0], internalPoint[1], internalPoint[2], node.getRadius(),
                     now, now
             );
@@ -2265,6 +2385,40 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
             annotations.put(node.getIndex(), unserializedAnnotation);
             nodeParentLinkage.put(node.getIndex(), node.getParentIndex());
         }
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized void finishBulkSWCData(Map<String,Object> neuronData) throws Exception {
+        TmNeuronMetadata neuron = (TmNeuronMetadata)neuronData.get("neuron");
+        if (neuron==null)
+            return;
+
+        SWCData swcData = (SWCData)neuronData.get("swc");
+        if (swcData==null)
+            return;
+
+        File swcFile = (File)neuronData.get("file");
+
+        // use the annotations from prepareBulkSWCData(), if it was called
+        Map<Integer, Integer> nodeParentLinkage = (Map<Integer, Integer>) neuronData.get("linkage");
+        Map<Integer, TmGeoAnnotation> annotations = (Map<Integer, TmGeoAnnotation>) neuronData.get("annotations");
+        SWCNoteMatcher notes = (SWCNoteMatcher) neuronData.get("notes");
+        if (annotations == null) {
+            nodeParentLinkage = new HashMap<>();
+            annotations = new HashMap<>();
+            addSWCAnnotations(swcData, neuron.getId(), nodeParentLinkage, annotations);
+
+            // check for corresponding notes file; if present, read and parse it
+            File notesFile = findNotesFile(swcFile);
+            if (notesFile.exists()) {
+                notes = new SWCNoteMatcher(parseNotesFile(notesFile));
+            }
+        }
+        else {
+            for (TmGeoAnnotation annotation : annotations.values()) {
+                annotation.setNeuronId(neuron.getId());
+            }
+        }
 
         // Fire off the bulk update.  The "un-serialized" or
         // db-unknown annotations could be swapped for "blessed" versions.
@@ -2282,35 +2436,29 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
             //  annotation IDs, not the placeholders that exist before the save
             neuronManager.saveNeuronData(neuron);
 
-            // check for corresponding notes file; if present, import notes
-            // find file; read and parse it
-            File notesFile = findNotesFile(swcFile);
-            if (notesFile.exists()) {
-                // read and parse
-                Map<Vec3, String> notes = parseNotesFile(notesFile);
-
+            // if there were notes, import them
+            if (notes != null) {
                 // add notes to neuron; get a fresh copy that has updated ann IDs
                 neuron = neuronManager.getNeuronById(neuron.getId());
                 if (notes.size() > 0) {
                     ObjectMapper mapper = new ObjectMapper();
 
-                    // unfortunately, the only way to associate the notes with the nodes
-                    //  is through a brute-force search; we need to associate the locations
-                    //  with the annotation ID, but those IDs are changed during the save,
-                    //  and we can't track the mapping; the spatial index is built later
-                    //  and asynchronously, so we don't have access to it now
-                    // later testing: added a few random notes to a neuron with 28k nodes;
-                    //  import took ~1s with or without notes
+                    // the only way to associate the notes with the nodes is by
+                    //  location; we need to associate the locations with the
+                    //  annotation ID, but those IDs are changed during the save,
+                    //  and we can't track the mapping; the notes are in their own
+                    //  small spatial index, since the neuron spatial index is
+                    //  built later and asynchronously; each note goes to the
+                    //  one node nearest to it
+                    List<TmGeoAnnotation> annotationList = new ArrayList<>();
                     for (TmGeoAnnotation root : neuron.getRootAnnotations()) {
-                        for (TmGeoAnnotation ann : neuron.getSubTreeList(root)) {
-                            Vec3 loc = new Vec3(ann.getX(), ann.getY(), ann.getZ());
-                            if (notes.containsKey(loc)) {
-                                // fortunately, we only need the simplest case seen in setNotes():
-                                ObjectNode node = mapper.createObjectNode();
-                                node.put("note", notes.get(loc));
-                                neuronManager.addStructuredTextAnnotation(neuron, ann.getId(), mapper.writeValueAsString(node));
-                            }
-                        }
+                        annotationList.addAll(neuron.getSubTreeList(root));
+                    }
+                    for (Map.Entry<Long, String> entry : notes.assign(annotationList).entrySet()) {
+                        // fortunately, we only need the simplest case seen in setNotes():
+                        ObjectNode node = mapper.createObjectNode();
+                        node.put("note", entry.getValue());
+                        neuronManager.addStructuredTextAnnotation(neuron, entry.getKey(), mapper.writeValueAsString(node));
                     }
                     // now save again, with the note data
                     neuronManager.saveNeuronData(neuron);
@@ -2326,7 +2474,8 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
 
             postWorkspaceUpdate(neuron);
         } catch (Exception e) {
-            log.info("Error saving neurons", e);
+            log.error("Error saving neurons", e);
+            throw e;
         }
     }
 
@@ -2346,6 +2495,7 @@ public class AnnotationModel implements DomainObjectSelectionSupport {
         }
         catch (IOException e) {
             e.printStackTrace();
+            return notes;
         }
         JsonNode offsetNode = rootNode.path("offset");
         JsonNode neuronsNode = rootNode.path("neurons");
@@ -335,6 +335,9 @@ public class LargeVolumeViewerTranslator implements TmGeoAnnotationModListener,
         logger.info("Spatial index is ready. Rebuilding anchor model.");
 
         if (workspace != null) {
+            // neurons drawn batch by batch during the load are redrawn here
+            //  from the complete list
+            fireClearAnchors();
 
             Map<TmNeuronMetadata, NeuronStyle> updateNeuronStyleMap = new HashMap<>();
             List<TmGeoAnnotation> addedAnchorList = new ArrayList<>();
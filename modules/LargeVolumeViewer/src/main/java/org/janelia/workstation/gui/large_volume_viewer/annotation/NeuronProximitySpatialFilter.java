@@ -48,8 +48,8 @@ public class NeuronProximitySpatialFilter implements NeuronSpatialFilter {
         String systemOwnerKey= ConsoleProperties.getInstance().getProperty("console.LVVHorta.tracersgroup").trim();
         userNeuronIds = new HashSet<>();
         List<TmNeuronMetadata> userNeurons = new ArrayList<>();
+        index.buildIndex(neuronList, null);
         for (TmNeuronMetadata neuron: neuronList) {
-            index.addToIndex(neuron);
             if (!neuron.getOwnerKey().equals(systemOwnerKey)) {
                 userNeurons.add(neuron);
             }
@@ -1,9 +1,11 @@
 package org.janelia.workstation.gui.large_volume_viewer.annotation;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -44,15 +46,17 @@ public class NeuronSelectionSpatialFilter implements NeuronSpatialFilter {
         userNeuronIds = new HashSet<>();
         String systemGroup = ConsoleProperties.getInstance()
                 .getProperty("console.LVVHorta.tracersgroup").trim();
-        int count = 0;
+        List<TmNeuronMetadata> systemFragments = new ArrayList<>();
+        Long workspaceId = null;
         for (TmNeuronMetadata neuron: neuronList) {
-            count++;
             if (!neuron.getOwnerKey().equals(systemGroup)) {
                 userNeuronIds.add(neuron.getId());
             } else {
-                index.addToIndex(neuron);
+                systemFragments.add(neuron);
+                workspaceId = neuron.getWorkspaceId();
             }
         }
+        index.buildIndex(systemFragments, workspaceId);
         log.info("Finished building spatial filter");
     }
 
@@ -1,7 +1,7 @@
 package org.janelia.workstation.gui.large_volume_viewer.annotation;
 
 import org.janelia.workstation.geom.Vec3;
-import org.janelia.workstation.gui.large_volume_viewer.Subvolume;
+import org.janelia.workstation.gui.large_volume_viewer.RasterSubvolume;
 import org.janelia.workstation.gui.large_volume_viewer.SubvolumeProvider;
 import org.janelia.workstation.octree.ZoomLevel;
 import org.janelia.workstation.octree.ZoomedVoxelIndex;
@@ -67,9 +67,8 @@ public class PointRefiner {
                 (int) Math.round(point.getZ())
         );
 
-        // I'm adding an x-y buffer for no particular reason; note the zmax+1
-        //  upper bound; the volume doesn't hold data at its upper limit 
-        //  (and returns zeroes there)
+        // I'm adding an x-y buffer for no particular reason; the view only
+        //  loads the tiles we actually read, so the buffer costs nothing
         int xc = roundedPoint.getX();
         int yc = roundedPoint.getY();
         int zmin = roundedPoint.getZ() - zRange;
@@ -80,7 +79,7 @@ public class PointRefiner {
         ZoomedVoxelIndex corner2 = new ZoomedVoxelIndex(
                 zoomLevel,
                 xc + 10, yc + 10, zmax + 1);
-        Subvolume volume = dataProvider.getSubvolume(corner1, corner2);
+        RasterSubvolume volume = dataProvider.getRasterSubvolume(corner1, corner2);
 
         long maxSqrIntensity = -1L;
         long currentIntensity;
@@ -88,20 +87,24 @@ public class PointRefiner {
         ZoomedVoxelIndex currentZVI;
         Integer zMaxInt = null;
         double[] sisArr=new double[zmax-zmin+1];
-        for (int z=zmin; z<=zmax; z++) {
-            sumIntensitySquared = 0;
-            currentZVI = new ZoomedVoxelIndex(zoomLevel, xc, yc, z);
-            for (int c=0; c<volume.getChannelCount(); c++) {
-                currentIntensity = volume.getIntensityGlobal(currentZVI, c);
-                // System.out.println("z: " + z + "; channel " + c + " intensity: " + volume.getIntensityGlobal(currentZVI, c));
-                sumIntensitySquared += currentIntensity * currentIntensity;
-            }
-            sisArr[z-zmin]=(double)sumIntensitySquared;
-            // System.out.println("z: " + z + "; sum sqr intensity: " + sumIntensitySquared);
-            if (sumIntensitySquared > maxSqrIntensity) {
-                zMaxInt = z;
-                maxSqrIntensity = sumIntensitySquared;
+        try {
+            for (int z=zmin; z<=zmax; z++) {
+                sumIntensitySquared = 0;
+                currentZVI = new ZoomedVoxelIndex(zoomLevel, xc, yc, z);
+                for (int c=0; c<volume.getChannelCount(); c++) {
+                    currentIntensity = volume.getIntensityGlobal(currentZVI, c);
+                    // System.out.println("z: " + z + "; channel " + c + " intensity: " + volume.getIntensityGlobal(currentZVI, c));
+                    sumIntensitySquared += currentIntensity * currentIntensity;
+                }
+                sisArr[z-zmin]=(double)sumIntensitySquared;
+                // System.out.println("z: " + z + "; sum sqr intensity: " + sumIntensitySquared);
+                if (sumIntensitySquared > maxSqrIntensity) {
+                    zMaxInt = z;
+                    maxSqrIntensity = sumIntensitySquared;
+                }
             }
+        } finally {
+            volume.release();
         }
 
         // this procedure is problematic for noise; if you don't have signal,
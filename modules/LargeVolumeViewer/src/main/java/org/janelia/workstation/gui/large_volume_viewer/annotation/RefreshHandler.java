@@ -10,6 +10,8 @@ import org.janelia.messaging.utils.MessagingUtils;
 import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
 import org.janelia.workstation.core.api.AccessManager;
 import org.janelia.workstation.core.util.ConsoleProperties;
+import org.janelia.workstation.gui.large_volume_viewer.model_adapter.NeuronDelta;
+import org.janelia.workstation.gui.large_volume_viewer.model_adapter.NeuronDeltaTracker;
 import org.janelia.workstation.gui.large_volume_viewer.model_adapter.NeuronMessageConstants;
 import org.janelia.workstation.gui.large_volume_viewer.top_component.LargeVolumeViewerTopComponent;
 import org.perf4j.StopWatch;
@@ -35,6 +37,7 @@ public class RefreshHandler implements MessageHandler {
     private static final String MESSAGESERVER_USERACCOUNT = ConsoleProperties.getInstance().getProperty("domain.msgserver.useraccount").trim();
     private static final String MESSAGESERVER_PASSWORD = ConsoleProperties.getInstance().getProperty("domain.msgserver.password").trim();
     private static final String MESSAGESERVER_REFRESHEXCHANGE = ConsoleProperties.getInstance().getProperty("domain.msgserver.exchange.refresh").trim();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
 
     private AnnotationModel annotationModel;
     private AsyncMessageConsumer msgReceiver;
@@ -104,22 +107,33 @@ public class RefreshHandler implements MessageHandler {
                 TmNeuronMetadata neuron = (TmNeuronMetadata) neuronData.get("neuron");
                 NeuronMessageConstants.MessageType action = (NeuronMessageConstants.MessageType) neuronData.get("action");
                 String user = (String) neuronData.get("user");
+                Long version = (Long) neuronData.get("version");
+                NeuronDelta delta = (NeuronDelta) neuronData.get("delta");
+                if (delta != null) {
+                    // only the latest update is kept, so any earlier deltas are lost and this one usually leaves a gap
+                    log.info("processing remote save delta: {}", delta);
+                    handleNeuronDelta(delta, user, (Long) neuronData.get("workspace"));
+                    continue;
+                }
                 // if not a neuron CRUD action, ignore
                 switch (action) {
                     case NEURON_CREATE:
                         log.info("processing remote create: {}", neuron.getName());
                         annotationModel.getNeuronManager().addNeuron(neuron);
+                        NeuronDeltaTracker.getInstance().resynced(neuron.getId(), version);
                         updateFilter(neuron, action);
                         annotationModel.fireBackgroundNeuronCreated(neuron);
                         break;
                     case NEURON_SAVE_NEURONDATA:
                         log.info("processing remote save: {},", neuron.getName());
                         annotationModel.getNeuronManager().addNeuron(neuron);
+                        NeuronDeltaTracker.getInstance().resynced(neuron.getId(), version);
                         updateFilter(neuron, action);
                         annotationModel.fireBackgroundNeuronChanged(neuron);
                         break;
                     case NEURON_DELETE:
                         log.info("processing remote delete: {},", neuron.getName());
+                        NeuronDeltaTracker.getInstance().forget(neuron.getId());
                         updateFilter(neuron, action);
                         annotationModel.fireBackgroundNeuronDeleted(neuron);
                         break;
@@ -137,14 +151,24 @@ public class RefreshHandler implements MessageHandler {
 
     private void addNeuronUpdate(Map<String, Object> msgHeaders, byte[] msgBody, NeuronMessageConstants.MessageType action, String user) {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            TmNeuronMetadata neuron = mapper.readValue(msgBody, TmNeuronMetadata.class);
-
-            // assume this has to do with neuron CRUD; otherwise ignore
             Map neuronData = new HashMap<>();
-            neuronData.put("neuron", neuron);
             neuronData.put("action", action);
             neuronData.put("user", user);
+            neuronData.put("version", MessagingUtils.getHeaderAsLong(msgHeaders, NeuronMessageConstants.Headers.NEURON_VERSION));
+            if (action == NeuronMessageConstants.MessageType.NEURON_SAVE_NEURONDATA && NeuronDeltaTracker.hasDeltaBody(msgHeaders)) {
+                NeuronDelta delta = NeuronDeltaTracker.readDelta(msgBody);
+                if (delta != null) {
+                    neuronData.put("delta", delta);
+                    neuronData.put("workspace", MessagingUtils.getHeaderAsLong(msgHeaders, NeuronMessageConstants.Headers.WORKSPACE));
+                    log.info("Adding neuron remote update: {}", delta);
+                    this.updatesMap.put(delta.getNeuronId(), neuronData);
+                }
+                return;
+            }
+            TmNeuronMetadata neuron = MAPPER.readValue(msgBody, TmNeuronMetadata.class);
+
+            // assume this has to do with neuron CRUD; otherwise ignore
+            neuronData.put("neuron", neuron);
             log.info("Adding neuron remote update: {}", neuron.getName());
             if (neuron != null && neuron.getId() != null) {
                 this.updatesMap.put(neuron.getId(), neuronData);
@@ -181,6 +205,12 @@ public class RefreshHandler implements MessageHandler {
 
             Long workspace = MessagingUtils.getHeaderAsLong(msgHeaders, NeuronMessageConstants.Headers.WORKSPACE);
 
+            // answered even while shared updates are suppressed, since other clients wait on it
+            if (action == NeuronMessageConstants.MessageType.REQUEST_NEURON_RESYNC) {
+                handleResyncRequest(msgHeaders);
+                return;
+            }
+
             // flag to suppress shared updates
             if (!receiveUpdates && !freezeUpdates && !user.equals(AccessManager.getSubjectKey())) {
                 if (workspace != null && annotationModel != null && annotationModel.getCurrentWorkspace() != null
@@ -199,10 +229,18 @@ public class RefreshHandler implements MessageHandler {
                 return;
             }
 
-            ObjectMapper mapper = new ObjectMapper();
-            TmNeuronMetadata neuron = mapper.readValue(msgBody, TmNeuronMetadata.class);
+            // a save's body may be a delta from the writer's previous save, instead of the whole neuron
+            boolean deltaBody = action == NeuronMessageConstants.MessageType.NEURON_SAVE_NEURONDATA
+                    && NeuronDeltaTracker.hasDeltaBody(msgHeaders);
+            NeuronDelta delta = deltaBody ? NeuronDeltaTracker.readDelta(msgBody) : null;
+            if (deltaBody && delta == null) {
+                return;
+            }
+            Long version = MessagingUtils.getHeaderAsLong(msgHeaders, NeuronMessageConstants.Headers.NEURON_VERSION);
+            TmNeuronMetadata neuron = deltaBody ? null : MAPPER.readValue(msgBody, TmNeuronMetadata.class);
+            Long neuronId = deltaBody ? delta.getNeuronId() : neuron.getId();
 
-            TmNeuronMetadata localNeuron = annotationModel.getNeuronManager().getNeuronById(neuron.getId());// decrease the sync level
+            TmNeuronMetadata localNeuron = annotationModel.getNeuronManager().getNeuronById(neuronId);// decrease the sync level
             if (localNeuron != null) {
                 localNeuron.decrementSyncLevel();
                 if (localNeuron.getSyncLevel() == 0) {
@@ -258,7 +296,11 @@ public class RefreshHandler implements MessageHandler {
                                     break;
                                 case NEURON_SAVE_NEURONDATA:
                                     if (!user.equals(AccessManager.getSubjectKey())) {
-                                        handleNeuronChanged(neuron);
+                                        if (delta != null) {
+                                            handleNeuronDelta(delta, user, workspace);
+                                        } else {
+                                            handleNeuronChanged(neuron, version);
+                                        }
                                     }
                                     break;
                                 case NEURON_DELETE:
@@ -297,10 +339,51 @@ public class RefreshHandler implements MessageHandler {
         }
     }
 
-    private void handleNeuronChanged(TmNeuronMetadata neuron) {
+    private void handleNeuronDelta(NeuronDelta delta, String writer, Long workspace) {
+        TmNeuronMetadata localNeuron = annotationModel.getNeuronManager().getNeuronById(delta.getNeuronId());
+        try {
+            if (NeuronDeltaTracker.getInstance().apply(delta, localNeuron)) {
+                log.info("remote processing change neuron {}: {}", localNeuron.getName(), delta);
+                annotationModel.fireBackgroundNeuronChanged(localNeuron);
+                return;
+            }
+        } catch (Exception e) {
+            log.error("Error applying neuron delta {}", delta, e);
+        }
+        // version gap, or the delta did not fit; the writer sends the full neuron on request
+        try {
+            log.info("Requesting full neuron {} from {}", delta.getNeuronId(), writer);
+            annotationModel.getNeuronManager().requestNeuronResync(workspace, delta.getNeuronId(), writer, delta.getVersion());
+        } catch (Exception e) {
+            logError("Error requesting neuron resync: " + e.getMessage());
+            log.error("Error requesting full neuron for delta {}", delta, e);
+        }
+    }
+
+    // Another client could not apply a delta this client sent, and wants the full neuron
+    private void handleResyncRequest(Map<String, Object> msgHeaders) {
+        String targetUser = MessagingUtils.getHeaderAsString(msgHeaders, NeuronMessageConstants.Headers.TARGET_USER);
+        Long failedVersion = MessagingUtils.getHeaderAsLong(msgHeaders, NeuronMessageConstants.Headers.NEURON_VERSION);
+        String neuronIds = MessagingUtils.getHeaderAsString(msgHeaders, NeuronMessageConstants.Headers.NEURONIDS);
+        if (!AccessManager.getSubjectKey().equals(targetUser) || failedVersion == null || neuronIds == null) {
+            return;
+        }
+        Long neuronId = Long.valueOf(neuronIds.replaceAll("[\\[\\]\\s]", ""));
+        SwingUtilities.invokeLater(() -> {
+            try {
+                annotationModel.getNeuronManager().resendNeuron(neuronId, failedVersion);
+            } catch (Exception e) {
+                logError("Error resending neuron: " + e.getMessage());
+                log.error("Error resending neuron {}", neuronId, e);
+            }
+        });
+    }
+
+    private void handleNeuronChanged(TmNeuronMetadata neuron, Long version) {
         try {
             log.info("remote processing change neuron " + neuron.getName());
             annotationModel.getNeuronManager().addNeuron(neuron);
+            NeuronDeltaTracker.getInstance().resynced(neuron.getId(), version);
             annotationModel.fireBackgroundNeuronChanged(neuron);
         } catch (Exception e) {
             logError("Error handling neuron change: " + e.getMessage());
@@ -311,6 +394,7 @@ public class RefreshHandler implements MessageHandler {
     private void handleNeuronDeleted(TmNeuronMetadata neuron) {
         try {
             log.info("remote processing delete neuron" + neuron.getName());
+            NeuronDeltaTracker.getInstance().forget(neuron.getId());
             updateFilter(neuron, NeuronMessageConstants.MessageType.NEURON_DELETE);
 			annotationModel.fireBackgroundNeuronDeleted(neuron);
         } catch (Exception e) {
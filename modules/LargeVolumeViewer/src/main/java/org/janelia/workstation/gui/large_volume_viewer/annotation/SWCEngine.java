@@ -0,0 +1,129 @@
+package org.janelia.workstation.gui.large_volume_viewer.annotation;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.janelia.workstation.core.util.ConsoleProperties;
+
+/**
+ * Converts many SWC files, or many neurons to SWC files, at once.
+ * <p>
+ * Each item is handed to a task on a fixed pool of threads, and the results
+ * are handed to a sink on the calling thread, in the order of the items. At
+ * most twice as many items as threads are in flight, so results wait for the
+ * sink in a short window rather than piling up. If a task or the sink fails,
+ * no more tasks are started, and the first failure is rethrown once those in
+ * flight have finished. Cancelling works the same way, except that nothing
+ * is thrown and the results of the tasks in flight are dropped.
+ */
+class SWCEngine {
+
+    /**
+     * Work done for one item; called from several threads at once, but never
+     * for the same item.
+     */
+    interface Task<T, R> {
+        R process(int index, T item) throws Exception;
+    }
+
+    /**
+     * Receives the results, in order, on the thread that called run().
+     */
+    interface Sink<R> {
+        void accept(int index, R result) throws Exception;
+    }
+
+    private final int threads;
+
+    SWCEngine(int threads) {
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * Threads for SWC import and export; one per core unless configured.
+     */
+    static SWCEngine create() {
+        return new SWCEngine(ConsoleProperties.getInt("console.LVV.swc.threads",
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    <T, R> void run(List<T> items, Task<T, R> task, Sink<R> sink) throws Exception {
+        run(items, task, sink, () -> false);
+    }
+
+    /**
+     * @param cancelled checked before each item is started, and before each
+     * result is handed to the sink
+     */
+    <T, R> void run(List<T> items, Task<T, R> task, Sink<R> sink, BooleanSupplier cancelled) throws Exception {
+        if (threads == 1 || items.size() <= 1) {
+            for (int i = 0; i < items.size() && !cancelled.getAsBoolean(); i++) {
+                R result = task.process(i, items.get(i));
+                if (cancelled.getAsBoolean()) {
+                    break;
+                }
+                sink.accept(i, result);
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, items.size()), new ThreadFactoryBuilder()
+                .setNameFormat("SWCEngine-%d")
+                .setDaemon(true)
+                .build());
+        Deque<Future<R>> inFlight = new ArrayDeque<>();
+        Throwable failure = null;
+        try {
+            int next = 0;
+            int done = 0;
+            boolean stopped = cancelled.getAsBoolean();
+            while (done < next || (!stopped && next < items.size())) {
+                while (!stopped && next < items.size() && inFlight.size() < 2 * threads) {
+                    final int index = next++;
+                    final T item = items.get(index);
+                    // tasks queued behind a cancel do no work
+                    inFlight.add(executor.submit(() -> cancelled.getAsBoolean() ? null : task.process(index, item)));
+                }
+                Future<R> future = inFlight.poll();
+                try {
+                    R result = Uninterruptibles.getUninterruptibly(future);
+                    stopped = stopped || cancelled.getAsBoolean();
+                    if (!stopped) {
+                        sink.accept(done, result);
+                    }
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    stopped = true;
+                } catch (Exception e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    stopped = true;
+                }
+                done++;
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        if (failure != null) {
+            Throwables.throwIfUnchecked(failure);
+            throw failure instanceof Exception ? (Exception) failure : new ExecutionException(failure);
+        }
+    }
+}
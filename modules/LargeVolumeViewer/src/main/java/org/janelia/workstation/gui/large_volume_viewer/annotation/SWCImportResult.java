@@ -0,0 +1,50 @@
+package org.janelia.workstation.gui.large_volume_viewer.annotation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What became of each file of an SWC import: imported once its neuron was
+ * created and saved, failed with the reason, or cancelled before it was tried
+ */
+public class SWCImportResult {
+    private final List<File> importedFiles = new ArrayList<>();
+    private final Map<File, Throwable> failedFiles = new LinkedHashMap<>();
+    private final List<File> cancelledFiles = new ArrayList<>();
+
+    public List<File> getImportedFiles() {
+        return importedFiles;
+    }
+    public Map<File, Throwable> getFailedFiles() {
+        return failedFiles;
+    }
+    public List<File> getCancelledFiles() {
+        return cancelledFiles;
+    }
+
+    void imported(File file) {
+        importedFiles.add(file);
+    }
+    void failed(File file, Throwable error) {
+        failedFiles.put(file, error);
+    }
+    void cancelled(File file) {
+        cancelledFiles.add(file);
+    }
+
+    /**
+     * eg "Imported 8 of 10 files; 1 failed, 1 cancelled"
+     */
+    public String getSummary() {
+        int total = importedFiles.size() + failedFiles.size() + cancelledFiles.size();
+        StringBuilder summary = new StringBuilder("Imported " + importedFiles.size() + " of " + total + " files");
+        if (!failedFiles.isEmpty() || !cancelledFiles.isEmpty()) {
+            summary.append("; ").append(failedFiles.size()).append(" failed, ")
+                    .append(cancelledFiles.size()).append(" cancelled");
+        }
+        return summary.toString();
+    }
+}
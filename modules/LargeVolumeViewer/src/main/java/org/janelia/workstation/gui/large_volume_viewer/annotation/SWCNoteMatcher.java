@@ -0,0 +1,165 @@
+package org.janelia.workstation.gui.large_volume_viewer.annotation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.janelia.model.domain.tiledMicroscope.TmGeoAnnotation;
+import org.janelia.workstation.geom.Vec3;
+
+/**
+ * Finds the note, read from the notes file next to an SWC file, that belongs
+ * at an annotation's location.
+ * <p>
+ * Notes and annotations are placed from the same external coordinates, so
+ * they normally agree exactly; a small tolerance covers the round trip
+ * through the server. The notes are kept in a hash grid with cells as large
+ * as the tolerance, so matching every annotation of a large neuron costs a
+ * few lookups each instead of a scan of the notes.
+ * <p>
+ * Within the tolerance, several annotations can be near one note; each note
+ * only goes to the annotation nearest to it, and each annotation gets at
+ * most one note.
+ */
+class SWCNoteMatcher {
+
+    // internal coordinates are rounded to whole voxels
+    static final double DEFAULT_TOLERANCE = 0.5;
+
+    // A note and an annotation near it
+    private static final class Pair {
+        final Note note;
+        final TmGeoAnnotation annotation;
+        final double distance;
+
+        Pair(Note note, TmGeoAnnotation annotation, double distance) {
+            this.note = note;
+            this.annotation = annotation;
+            this.distance = distance;
+        }
+    }
+
+    private interface NoteVisitor {
+        void visit(Note note, double distance);
+    }
+
+    private static final class Note {
+        final double x, y, z;
+        final String text;
+
+        Note(double x, double y, double z, String text) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.text = text;
+        }
+    }
+
+    private final double tolerance;
+    private final Map<Long, List<Note>> grid = new HashMap<>();
+    private final int size;
+
+    SWCNoteMatcher(Map<Vec3, String> notes) {
+        this(notes, DEFAULT_TOLERANCE);
+    }
+
+    SWCNoteMatcher(Map<Vec3, String> notes, double tolerance) {
+        this.tolerance = tolerance;
+        for (Map.Entry<Vec3, String> entry : notes.entrySet()) {
+            Vec3 loc = entry.getKey();
+            Note note = new Note(loc.getX(), loc.getY(), loc.getZ(), entry.getValue());
+            grid.computeIfAbsent(cellKey(cell(note.x), cell(note.y), cell(note.z)), k -> new ArrayList<>(1))
+                    .add(note);
+        }
+        this.size = notes.size();
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the text of the note closest to the location and within the
+     * tolerance, or null if there is none
+     */
+    String match(double x, double y, double z) {
+        Note[] closest = {null};
+        double[] closestDistance = {Double.MAX_VALUE};
+        visitNear(x, y, z, (note, distance) -> {
+            if (distance <= closestDistance[0]) {
+                closest[0] = note;
+                closestDistance[0] = distance;
+            }
+        });
+        return closest[0] == null ? null : closest[0].text;
+    }
+
+    /**
+     * Gives each note to the annotation nearest to it, nearest pairs first,
+     * so that no note goes to two annotations and no annotation gets two
+     * notes; ties go to the annotation that comes first.
+     *
+     * @return note text by annotation id
+     */
+    Map<Long, String> assign(Collection<TmGeoAnnotation> annotations) {
+        List<Pair> pairs = new ArrayList<>();
+        for (TmGeoAnnotation annotation : annotations) {
+            visitNear(annotation.getX(), annotation.getY(), annotation.getZ(),
+                    (note, distance) -> pairs.add(new Pair(note, annotation, distance)));
+        }
+        // stable, so equally distant pairs keep the order of the annotations
+        pairs.sort(Comparator.comparingDouble(pair -> pair.distance));
+        Set<Note> assignedNotes = new HashSet<>();
+        Map<Long, String> result = new HashMap<>();
+        for (Pair pair : pairs) {
+            if (!result.containsKey(pair.annotation.getId()) && assignedNotes.add(pair.note)) {
+                result.put(pair.annotation.getId(), pair.note.text);
+            }
+        }
+        return result;
+    }
+
+    // Visits each note within the tolerance of the location, with its squared distance
+    private void visitNear(double x, double y, double z, NoteVisitor visitor) {
+        if (size == 0) {
+            return;
+        }
+        long cx = cell(x);
+        long cy = cell(y);
+        long cz = cell(z);
+        double maxDistance = tolerance * tolerance;
+        for (long i = cx - 1; i <= cx + 1; i++) {
+            for (long j = cy - 1; j <= cy + 1; j++) {
+                for (long k = cz - 1; k <= cz + 1; k++) {
+                    List<Note> cellNotes = grid.get(cellKey(i, j, k));
+                    if (cellNotes == null) {
+                        continue;
+                    }
+                    for (Note note : cellNotes) {
+                        double dx = note.x - x;
+                        double dy = note.y - y;
+                        double dz = note.z - z;
+                        double distance = dx * dx + dy * dy + dz * dz;
+                        if (distance <= maxDistance) {
+                            visitor.visit(note, distance);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private long cell(double value) {
+        return (long) Math.floor(value / Math.max(tolerance, Double.MIN_NORMAL));
+    }
+
+    // cells far apart may share a key; that only costs a distance check
+    private static long cellKey(long i, long j, long k) {
+        return ((i & 0x1FFFFF) << 42) | ((j & 0x1FFFFF) << 21) | (k & 0x1FFFFF);
+    }
+}
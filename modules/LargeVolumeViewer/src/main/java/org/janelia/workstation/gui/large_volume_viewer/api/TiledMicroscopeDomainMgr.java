@@ -2,20 +2,16 @@ package org.janelia.workstation.gui.large_volume_viewer.api;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Spliterator;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import org.janelia.it.jacs.model.user_data.tiledMicroscope.CoordinateToRawTransform;
@@ -42,7 +38,6 @@ import org.slf4j.LoggerFactory;
  * @author <a href="mailto:rokickik@janelia.hhmi.org">Konrad Rokicki</a>
  */
 public class TiledMicroscopeDomainMgr {
-    private final int NUM_PARALLEL_NEURONSTREAMS = 4;
     private static final Logger LOG = LoggerFactory.getLogger(TiledMicroscopeDomainMgr.class);
 
     // Singleton
@@ -217,51 +212,17 @@ public class TiledMicroscopeDomainMgr {
         getModel().notifyDomainObjectRemoved(workspace);
     }
 
-    class RetrieveNeuronsTask extends RecursiveTask<Stream<TmNeuronMetadata>> {
-        double defaultLength = 50000.0;
-        int start;
-        int end;
-        long workspaceId;
-
-        RetrieveNeuronsTask(long workspaceId,
-                                 int start, int end) {
-            this.start = start;
-            this.end = end;
-            this.workspaceId = workspaceId;
-        }
-
-        @Override
-        public Stream<TmNeuronMetadata> compute() {
-            if ((end-start)>defaultLength) {
-                List<RetrieveNeuronsTask> tasks = new ArrayList<>();
-                // break up into defaultLength chunks
-                int numChunks = (int)Math.ceil((end-start)/defaultLength);
-                for (int i=0; i<numChunks; i++) {
-                    int newStart = i*(int)defaultLength;
-                    int newEnd = newStart + (int)defaultLength;
-                    if ((newStart+defaultLength)>end) {
-                        newEnd = end;
-                    }
-                    RetrieveNeuronsTask task = new RetrieveNeuronsTask(workspaceId, newStart,
-                            newEnd);
-                    tasks.add(task);
-                    task.fork();
-                }
-
-                return tasks.stream().flatMap(subtask -> subtask.join());
-            } else {
-                LOG.info("Retrieving results - Neuron block: {} - {}", start, end);
-                return client.getWorkspaceNeurons(workspaceId, start, end - start).stream();
-            }
-        }
+    public long getWorkspaceNeuronCount(Long workspaceId) {
+        return client.getWorkspaceNeuronCount(workspaceId);
     }
-    
-    public Stream<TmNeuronMetadata> streamWorkspaceNeurons(Long workspaceId) {
-        LOG.debug("getWorkspaceNeurons(workspaceId={})",workspaceId);
-        long neuronCount = client.getWorkspaceNeuronCount(workspaceId);
-        ForkJoinPool pool = new ForkJoinPool(NUM_PARALLEL_NEURONSTREAMS);
-        Stream<TmNeuronMetadata> neurons = pool.invoke(new RetrieveNeuronsTask(workspaceId, 0, (int)neuronCount));
-        return neurons;
+
+    /**
+     * Streams one page of a workspace's neurons to the consumer, on the
+     * calling thread, as they are parsed.
+     */
+    public void streamWorkspaceNeurons(Long workspaceId, long offset, int length, Consumer<TmNeuronMetadata> consumer) {
+        LOG.debug("streamWorkspaceNeurons(workspaceId={}, offset={}, length={})", workspaceId, offset, length);
+        client.streamWorkspaceNeurons(workspaceId, offset, length, consumer);
     }
 
     public TmNeuronMetadata saveMetadata(TmNeuronMetadata neuronMetadata) throws Exception {
@@ -3,6 +3,7 @@ package org.janelia.workstation.gui.large_volume_viewer.api;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.*;
+import java.util.function.Consumer;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.Entity;
@@ -50,6 +51,8 @@ import org.slf4j.LoggerFactory;
 public class TiledMicroscopeRestClient extends RESTClientBase {
 
     private static final Logger LOG = LoggerFactory.getLogger(TiledMicroscopeRestClient.class);
+    // Shared by the neuron page streams, which may be parsed concurrently
+    private static final JsonFactory NEURON_STREAM_FACTORY = new JsonFactory(new ObjectMapper());
     private WebTarget service;
     private String remoteApiUrl;
     private String remoteStorageUrl;
@@ -243,28 +246,30 @@ public class TiledMicroscopeRestClient extends RESTClientBase {
     }
 
     Collection<TmNeuronMetadata> getWorkspaceNeurons(Long workspaceId, long offset, int length) {
-        try {
-            List<TmNeuronMetadata> neuronList = new ArrayList<>();
-            WebTarget target = getMouselightDataEndpoint("/workspace/neuron")
-                    .queryParam("workspaceId", workspaceId)
-                    .queryParam("offset", offset)
-                    .queryParam("length", length);
-            ObjectMapper mapper = new ObjectMapper();
-            InputStream is = target
-                    .request("application/octet-stream")
-                    .get(InputStream.class);
-            JsonFactory factory = new JsonFactory();
-            factory.setCodec(mapper);
-            JsonParser parser  = factory.createParser(is);
+        List<TmNeuronMetadata> neuronList = new ArrayList<>();
+        streamWorkspaceNeurons(workspaceId, offset, length, neuronList::add);
+        return neuronList;
+    }
+
+    /**
+     * Hands each neuron of a page to the consumer as soon as it is parsed, so
+     * the page is never held in memory as a whole.
+     */
+    void streamWorkspaceNeurons(Long workspaceId, long offset, int length, Consumer<TmNeuronMetadata> consumer) {
+        WebTarget target = getMouselightDataEndpoint("/workspace/neuron")
+                .queryParam("workspaceId", workspaceId)
+                .queryParam("offset", offset)
+                .queryParam("length", length);
+        InputStream is = target
+                .request("application/octet-stream")
+                .get(InputStream.class);
+        try (JsonParser parser = NEURON_STREAM_FACTORY.createParser(is)) {
             Iterator<TmNeuronMetadata> neurons = parser.readValuesAs(TmNeuronMetadata.class);
-            while(neurons.hasNext()) {
-                neuronList.add(neurons.next());
+            while (neurons.hasNext()) {
+                consumer.accept(neurons.next());
             }
-            return neuronList;
-
         } catch (Exception e) {
-            e.printStackTrace();
-            LOG.error ("Problems parsing the neuron stream from the server for workspace id {}",workspaceId);
+            LOG.error("Problems parsing the neuron stream from the server for workspace id {}", workspaceId, e);
             throw new RemoteServiceException("Client had problems processing Neuron Server Stream");
         }
     }
@@ -49,6 +49,7 @@ public class TileStackCacheStatusPanel extends JPanel implements ActionListener
                 setVisible(true);
             }
             cachingMap = TileStackCacheController.getInstance().getCachingMap();
+            setToolTipText(TileStackCacheController.getInstance().getPrefetchStatsSummary());
             repaint();
         } else {
             if (isVisible()) {
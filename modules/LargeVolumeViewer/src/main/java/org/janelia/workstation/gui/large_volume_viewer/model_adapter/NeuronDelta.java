@@ -0,0 +1,104 @@
+package org.janelia.workstation.gui.large_volume_viewer.model_adapter;
+
+/**
+ * The changes that take one version of a neuron to the next: annotations
+ * added or moved, annotations deleted, and anchored paths added, replaced or
+ * deleted. Annotations are stored in parallel arrays sorted by id; a radius
+ * of NaN means the annotation has none. Anchored paths are identified by
+ * their endpoint annotation ids, and their points are packed as x, y, z
+ * triples.
+ *
+ * Deltas are computed by NeuronStateSnapshot and applied by
+ * NeuronDeltaTracker, and only apply to a neuron at baseVersion.
+ */
+public class NeuronDelta {
+
+    private final long neuronId;
+    private final long baseVersion;
+    private final long version;
+
+    final long[] nodeIds;
+    final long[] parentIds;
+    final double[] x;
+    final double[] y;
+    final double[] z;
+    final double[] radius;
+    final long[] deletedNodeIds;
+
+    final long[] pathIds;
+    final long[] pathStarts;
+    final long[] pathEnds;
+    final int[][] pathPoints;
+    final long[] deletedPathStarts;
+    final long[] deletedPathEnds;
+
+    NeuronDelta(long neuronId, long baseVersion, long version,
+            long[] nodeIds, long[] parentIds, double[] x, double[] y, double[] z, double[] radius,
+            long[] deletedNodeIds,
+            long[] pathIds, long[] pathStarts, long[] pathEnds, int[][] pathPoints,
+            long[] deletedPathStarts, long[] deletedPathEnds) {
+        this.neuronId = neuronId;
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.nodeIds = nodeIds;
+        this.parentIds = parentIds;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.radius = radius;
+        this.deletedNodeIds = deletedNodeIds;
+        this.pathIds = pathIds;
+        this.pathStarts = pathStarts;
+        this.pathEnds = pathEnds;
+        this.pathPoints = pathPoints;
+        this.deletedPathStarts = deletedPathStarts;
+        this.deletedPathEnds = deletedPathEnds;
+    }
+
+    public long getNeuronId() {
+        return neuronId;
+    }
+
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return number of annotations added or changed
+     */
+    public int getChangedNodeCount() {
+        return nodeIds.length;
+    }
+
+    public int getDeletedNodeCount() {
+        return deletedNodeIds.length;
+    }
+
+    /**
+     * @return number of anchored paths added or replaced
+     */
+    public int getChangedPathCount() {
+        return pathIds.length;
+    }
+
+    public int getDeletedPathCount() {
+        return deletedPathStarts.length;
+    }
+
+    public boolean isEmpty() {
+        return nodeIds.length == 0 && deletedNodeIds.length == 0
+                && pathIds.length == 0 && deletedPathStarts.length == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "NeuronDelta[neuron=" + neuronId + ", " + baseVersion + " -> " + version
+                + ", changed=" + nodeIds.length + ", deleted=" + deletedNodeIds.length
+                + ", paths changed=" + pathIds.length + ", paths deleted=" + deletedPathStarts.length + "]";
+    }
+
+}
@@ -0,0 +1,321 @@
+package org.janelia.workstation.gui.large_volume_viewer.model_adapter;
+
+import java.util.Arrays;
+
+/**
+ * Compact binary form of a NeuronDelta.
+ *
+ * Ids are written as zigzag varints of their difference from a nearby id
+ * (the previous id in sorted order, or the annotation's own id for its
+ * parent), since ids handed out together are close together. Positions are
+ * written as floats when that is exact, doubles otherwise, and path points as
+ * varint steps from the previous point. Decoding is exact.
+ *
+ * An instance reuses its encoding buffer and is not thread safe.
+ */
+class NeuronDeltaCodec {
+
+    private static final int MAGIC = 0x4e44; // "ND"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FLAG_FLOAT_POSITION = 1;
+    private static final int FLAG_RADIUS = 2;
+    private static final int FLAG_FLOAT_RADIUS = 4;
+
+    private byte[] buffer = new byte[4096];
+    private int length;
+
+    byte[] encode(NeuronDelta delta) {
+        length = 0;
+        writeShort(MAGIC);
+        writeByte(FORMAT_VERSION);
+        writeLong(delta.getNeuronId());
+        writeLong(delta.getBaseVersion());
+        writeLong(delta.getVersion());
+
+        int nodeCount = delta.nodeIds.length;
+        writeVarint(nodeCount);
+        long previousId = 0;
+        for (int i = 0; i < nodeCount; ++i) {
+            long id = delta.nodeIds[i];
+            writeSignedVarint(id - previousId);
+            writeSignedVarint(delta.parentIds[i] - id);
+            previousId = id;
+            double x = delta.x[i];
+            double y = delta.y[i];
+            double z = delta.z[i];
+            double radius = delta.radius[i];
+            boolean floatPosition = isFloat(x) && isFloat(y) && isFloat(z);
+            boolean hasRadius = !Double.isNaN(radius);
+            int flags = (floatPosition ? FLAG_FLOAT_POSITION : 0)
+                    | (hasRadius ? FLAG_RADIUS : 0)
+                    | (hasRadius && isFloat(radius) ? FLAG_FLOAT_RADIUS : 0);
+            writeByte(flags);
+            if (floatPosition) {
+                writeInt(Float.floatToRawIntBits((float) x));
+                writeInt(Float.floatToRawIntBits((float) y));
+                writeInt(Float.floatToRawIntBits((float) z));
+            } else {
+                writeLong(Double.doubleToRawLongBits(x));
+                writeLong(Double.doubleToRawLongBits(y));
+                writeLong(Double.doubleToRawLongBits(z));
+            }
+            if ((flags & FLAG_FLOAT_RADIUS) != 0) {
+                writeInt(Float.floatToRawIntBits((float) radius));
+            } else if (hasRadius) {
+                writeLong(Double.doubleToRawLongBits(radius));
+            }
+        }
+
+        writeIds(delta.deletedNodeIds);
+
+        int pathCount = delta.pathIds.length;
+        writeVarint(pathCount);
+        long previousStart = 0;
+        for (int i = 0; i < pathCount; ++i) {
+            long start = delta.pathStarts[i];
+            writeSignedVarint(start - previousStart);
+            writeSignedVarint(delta.pathEnds[i] - start);
+            writeSignedVarint(delta.pathIds[i] - start);
+            previousStart = start;
+            int[] points = delta.pathPoints[i];
+            writeVarint(points.length);
+            int previous = 0;
+            for (int point : points) {
+                writeSignedVarint(point - previous);
+                previous = point;
+            }
+        }
+
+        int deletedPathCount = delta.deletedPathStarts.length;
+        writeVarint(deletedPathCount);
+        previousStart = 0;
+        for (int i = 0; i < deletedPathCount; ++i) {
+            long start = delta.deletedPathStarts[i];
+            writeSignedVarint(start - previousStart);
+            writeSignedVarint(delta.deletedPathEnds[i] - start);
+            previousStart = start;
+        }
+
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not an encoded delta
+     */
+    static NeuronDelta decode(byte[] bytes) {
+        Reader in = new Reader(bytes);
+        try {
+            if (in.readShort() != MAGIC) {
+                throw new IllegalArgumentException("Not a neuron delta");
+            }
+            int formatVersion = in.readByte();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported neuron delta format " + formatVersion);
+            }
+            long neuronId = in.readLong();
+            long baseVersion = in.readLong();
+            long version = in.readLong();
+
+            int nodeCount = in.readCount();
+            long[] nodeIds = new long[nodeCount];
+            long[] parentIds = new long[nodeCount];
+            double[] x = new double[nodeCount];
+            double[] y = new double[nodeCount];
+            double[] z = new double[nodeCount];
+            double[] radius = new double[nodeCount];
+            long previousId = 0;
+            for (int i = 0; i < nodeCount; ++i) {
+                long id = previousId + in.readSignedVarint();
+                nodeIds[i] = id;
+                parentIds[i] = id + in.readSignedVarint();
+                previousId = id;
+                int flags = in.readByte();
+                if ((flags & FLAG_FLOAT_POSITION) != 0) {
+                    x[i] = Float.intBitsToFloat(in.readInt());
+                    y[i] = Float.intBitsToFloat(in.readInt());
+                    z[i] = Float.intBitsToFloat(in.readInt());
+                } else {
+                    x[i] = Double.longBitsToDouble(in.readLong());
+                    y[i] = Double.longBitsToDouble(in.readLong());
+                    z[i] = Double.longBitsToDouble(in.readLong());
+                }
+                if ((flags & FLAG_FLOAT_RADIUS) != 0) {
+                    radius[i] = Float.intBitsToFloat(in.readInt());
+                } else if ((flags & FLAG_RADIUS) != 0) {
+                    radius[i] = Double.longBitsToDouble(in.readLong());
+                } else {
+                    radius[i] = Double.NaN;
+                }
+            }
+
+            long[] deletedNodeIds = in.readIds();
+
+            int pathCount = in.readCount();
+            long[] pathIds = new long[pathCount];
+            long[] pathStarts = new long[pathCount];
+            long[] pathEnds = new long[pathCount];
+            int[][] pathPoints = new int[pathCount][];
+            long previousStart = 0;
+            for (int i = 0; i < pathCount; ++i) {
+                long start = previousStart + in.readSignedVarint();
+                pathStarts[i] = start;
+                pathEnds[i] = start + in.readSignedVarint();
+                pathIds[i] = start + in.readSignedVarint();
+                previousStart = start;
+                int[] points = new int[in.readCount()];
+                int previous = 0;
+                for (int p = 0; p < points.length; ++p) {
+                    previous += (int) in.readSignedVarint();
+                    points[p] = previous;
+                }
+                pathPoints[i] = points;
+            }
+
+            int deletedPathCount = in.readCount();
+            long[] deletedPathStarts = new long[deletedPathCount];
+            long[] deletedPathEnds = new long[deletedPathCount];
+            previousStart = 0;
+            for (int i = 0; i < deletedPathCount; ++i) {
+                long start = previousStart + in.readSignedVarint();
+                deletedPathStarts[i] = start;
+                deletedPathEnds[i] = start + in.readSignedVarint();
+                previousStart = start;
+            }
+
+            return new NeuronDelta(neuronId, baseVersion, version,
+                    nodeIds, parentIds, x, y, z, radius, deletedNodeIds,
+                    pathIds, pathStarts, pathEnds, pathPoints,
+                    deletedPathStarts, deletedPathEnds);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated neuron delta", e);
+        }
+    }
+
+    private static boolean isFloat(double value) {
+        return (double) (float) value == value;
+    }
+
+    private void writeIds(long[] ids) {
+        writeVarint(ids.length);
+        long previous = 0;
+        for (long id : ids) {
+            writeSignedVarint(id - previous);
+            previous = id;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, length + extra));
+        }
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeShort(int value) {
+        ensureCapacity(2);
+        buffer[length++] = (byte) (value >>> 8);
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeSignedVarint(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private int position = 0;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int readByte() {
+            return bytes[position++] & 0xff;
+        }
+
+        int readShort() {
+            return (readByte() << 8) | readByte();
+        }
+
+        int readInt() {
+            int value = 0;
+            for (int i = 0; i < 4; ++i) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; ++i) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in neuron delta");
+        }
+
+        long readSignedVarint() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        // Element count, which cannot exceed the bytes remaining
+        int readCount() {
+            long count = readVarint();
+            if (count < 0 || count > bytes.length - position) {
+                throw new IllegalArgumentException("Bad element count in neuron delta: " + count);
+            }
+            return (int) count;
+        }
+
+        long[] readIds() {
+            long[] ids = new long[readCount()];
+            long previous = 0;
+            for (int i = 0; i < ids.length; ++i) {
+                previous += readSignedVarint();
+                ids[i] = previous;
+            }
+            return ids;
+        }
+    }
+
+}
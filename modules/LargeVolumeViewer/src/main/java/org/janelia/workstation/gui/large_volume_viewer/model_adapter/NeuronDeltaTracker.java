@@ -0,0 +1,291 @@
+package org.janelia.workstation.gui.large_volume_viewer.model_adapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.janelia.model.domain.tiledMicroscope.TmAnchoredPath;
+import org.janelia.model.domain.tiledMicroscope.TmAnchoredPathEndpoints;
+import org.janelia.model.domain.tiledMicroscope.TmGeoAnnotation;
+import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
+import org.janelia.model.domain.tiledMicroscope.TmStructuredTextAnnotation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the neuron version numbers behind delta encoded neuron messages.
+ * <p>
+ * When this client saves a neuron it sent before, the change from the last
+ * version it sent is encoded as a NeuronDelta, which is the whole message
+ * body; the full neuron is only sent the first time, and after a resync
+ * request. Receivers, the persistence broker included, apply the delta to
+ * their copy, provided it is at the delta's base version. Otherwise they send
+ * a resync request back to the writer, which answers with the full neuron,
+ * and they take up its version.
+ * <p>
+ * Each client starts numbering a neuron's versions at a random base, so
+ * versions from an earlier session or another writer never line up by
+ * accident. A delta is only sent when nothing but this client's own saves has
+ * changed the neuron since the last one, and only its geometry changed; a
+ * save that renames, recolors, retags, annotates or reassigns the neuron goes
+ * without one, so that receivers take up the full neuron.
+ */
+public class NeuronDeltaTracker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NeuronDeltaTracker.class);
+
+    private static final NeuronDeltaTracker INSTANCE = new NeuronDeltaTracker();
+
+    private final NeuronDeltaCodec codec = new NeuronDeltaCodec();
+    // Last version of each neuron sent or received by this client
+    private final Map<Long, Long> versions = new HashMap<>();
+    // State of each neuron as last sent by this client, at versions.get(id)
+    private final Map<Long, NeuronStateSnapshot> sentSnapshots = new HashMap<>();
+    // Version of the last full neuron this client sent, for ignoring repeated resync requests
+    private final Map<Long, Long> fullVersions = new HashMap<>();
+
+    public static NeuronDeltaTracker getInstance() {
+        return INSTANCE;
+    }
+
+    NeuronDeltaTracker() {
+    }
+
+    /**
+     * Assigns the next version to a neuron about to be saved, and adds the
+     * version to the message headers. When receivers can be at the previous
+     * version, marks the message as carrying a delta.
+     *
+     * @return the delta from the previous version, which is then the message
+     * body, or null if the message must carry the full neuron
+     */
+    synchronized byte[] addSaveHeaders(TmNeuronMetadata neuron, Map<String, Object> headers) {
+        Long neuronId = neuron.getId();
+        if (neuronId == null) {
+            return null;
+        }
+        NeuronStateSnapshot current = snapshot(neuron);
+        Long previousVersion = versions.get(neuronId);
+        long version = previousVersion == null
+                ? ThreadLocalRandom.current().nextLong(1L << 62)
+                : previousVersion + 1;
+        NeuronStateSnapshot previous = sentSnapshots.get(neuronId);
+        byte[] body = null;
+        if (previous != null && current.hasSameProperties(previous)) {
+            body = codec.encode(current.diff(previous, previousVersion, version));
+            headers.put(NeuronMessageConstants.Headers.NEURON_DELTA, Boolean.TRUE.toString());
+        } else {
+            fullVersions.put(neuronId, version);
+        }
+        headers.put(NeuronMessageConstants.Headers.NEURON_VERSION, Long.toString(version));
+        versions.put(neuronId, version);
+        sentSnapshots.put(neuronId, current);
+        return body;
+    }
+
+    /**
+     * Handles a request from a receiver that could not apply the delta at the
+     * given version, by making the next save of the neuron carry the full neuron.
+     *
+     * @return false if a full neuron at that version or later was sent
+     * already, or the neuron was never sent, so nothing needs resending
+     */
+    synchronized boolean resyncRequested(Long neuronId, long failedVersion) {
+        Long fullVersion = fullVersions.get(neuronId);
+        if (!sentSnapshots.containsKey(neuronId) || (fullVersion != null && fullVersion >= failedVersion)) {
+            return false;
+        }
+        sentSnapshots.remove(neuronId);
+        return true;
+    }
+
+    /**
+     * Applies a delta received from another client to the local copy of its
+     * neuron.
+     *
+     * @return false if the local copy is missing or not at the delta's base
+     * version, in which case the caller must ask the writer for the full neuron
+     */
+    public synchronized boolean apply(NeuronDelta delta, TmNeuronMetadata localNeuron) {
+        Long localVersion = versions.get(delta.getNeuronId());
+        if (localNeuron == null || localVersion == null || localVersion != delta.getBaseVersion()) {
+            LOG.debug("Version gap for neuron {}: have {}, delta from {}", delta.getNeuronId(), localVersion, delta.getBaseVersion());
+            return false;
+        }
+        apply(delta, localNeuron, new Date());
+        versions.put(delta.getNeuronId(), delta.getVersion());
+        sentSnapshots.remove(delta.getNeuronId());
+        return true;
+    }
+
+    /**
+     * Records that the local copy of a neuron was replaced by a full copy
+     * from a message, at the given version, or an unknown version if null.
+     */
+    public synchronized void resynced(Long neuronId, Long version) {
+        if (version == null) {
+            versions.remove(neuronId);
+        } else {
+            versions.put(neuronId, version);
+        }
+        sentSnapshots.remove(neuronId);
+    }
+
+    public synchronized void forget(Long neuronId) {
+        versions.remove(neuronId);
+        sentSnapshots.remove(neuronId);
+        fullVersions.remove(neuronId);
+    }
+
+    /**
+     * @return true if the message body is a delta rather than the full neuron
+     */
+    public static boolean hasDeltaBody(Map<String, Object> headers) {
+        Object value = headers.get(NeuronMessageConstants.Headers.NEURON_DELTA);
+        return value != null && Boolean.parseBoolean(value.toString());
+    }
+
+    /**
+     * @return the delta in a message body, or null if it cannot be read
+     */
+    public static NeuronDelta readDelta(byte[] body) {
+        try {
+            return NeuronDeltaCodec.decode(body);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Ignoring unreadable neuron delta", e);
+            return null;
+        }
+    }
+
+    static NeuronStateSnapshot snapshot(TmNeuronMetadata neuron) {
+        Map<Long, TmGeoAnnotation> annotations = neuron.getGeoAnnotationMap();
+        Map<TmAnchoredPathEndpoints, TmAnchoredPath> paths = neuron.getAnchoredPathMap();
+        NeuronStateSnapshot snapshot = new NeuronStateSnapshot(neuron.getId(), annotations.size(), paths.size());
+        for (TmGeoAnnotation annotation : annotations.values()) {
+            Double radius = annotation.getRadius();
+            snapshot.addNode(annotation.getId(),
+                    annotation.getParentId() == null ? neuron.getId() : annotation.getParentId(),
+                    annotation.getX(), annotation.getY(), annotation.getZ(),
+                    radius == null ? Double.NaN : radius);
+        }
+        for (Map.Entry<TmAnchoredPathEndpoints, TmAnchoredPath> entry : paths.entrySet()) {
+            List<List<Integer>> pointList = entry.getValue().getPointList();
+            int[] points = new int[3 * pointList.size()];
+            int p = 0;
+            for (List<Integer> point : pointList) {
+                points[p++] = point.get(0);
+                points[p++] = point.get(1);
+                points[p++] = point.get(2);
+            }
+            snapshot.addPath(entry.getValue().getId(),
+                    entry.getKey().getFirstAnnotationID(), entry.getKey().getSecondAnnotationID(), points);
+        }
+        snapshot.setProperties(properties(neuron));
+        return snapshot;
+    }
+
+    // Copies of what a save carries besides geometry; visibility is kept per
+    // user in the tag metadata, not in the neuron
+    private static List<Object> properties(TmNeuronMetadata neuron) {
+        Map<Long, String> notes = new HashMap<>();
+        if (neuron.getStructuredTextAnnotationMap() != null) {
+            for (TmStructuredTextAnnotation note : neuron.getStructuredTextAnnotationMap().values()) {
+                notes.put(note.getParentId(), note.getDataString());
+            }
+        }
+        return Arrays.asList(neuron.getName(), neuron.getColor(), neuron.getOwnerKey(),
+                copy(neuron.getReaders()), copy(neuron.getWriters()), copy(neuron.getTags()), notes);
+    }
+
+    private static <T> HashSet<T> copy(Collection<T> values) {
+        return values == null ? null : new HashSet<>(values);
+    }
+
+    static void apply(NeuronDelta delta, TmNeuronMetadata neuron, Date now) {
+        Long neuronId = neuron.getId();
+        Map<Long, TmGeoAnnotation> annotations = neuron.getGeoAnnotationMap();
+
+        for (long id : delta.deletedNodeIds) {
+            TmGeoAnnotation annotation = annotations.remove(id);
+            if (annotation != null) {
+                unlink(neuron, annotation);
+            }
+        }
+
+        // Update every annotation before linking any, since new parents may
+        // come later in the delta than their children
+        TmGeoAnnotation[] changed = new TmGeoAnnotation[delta.nodeIds.length];
+        boolean[] relink = new boolean[delta.nodeIds.length];
+        for (int i = 0; i < delta.nodeIds.length; ++i) {
+            Long id = delta.nodeIds[i];
+            Long parentId = delta.parentIds[i];
+            TmGeoAnnotation annotation = annotations.get(id);
+            if (annotation == null) {
+                annotation = new TmGeoAnnotation();
+                annotation.setId(id);
+                annotation.setNeuronId(neuronId);
+                annotation.setCreationDate(now);
+                annotation.setParentId(parentId);
+                annotations.put(id, annotation);
+                relink[i] = true;
+            } else if (!parentId.equals(annotation.getParentId())) {
+                unlink(neuron, annotation);
+                annotation.setParentId(parentId);
+                relink[i] = true;
+            }
+            annotation.setX(delta.x[i]);
+            annotation.setY(delta.y[i]);
+            annotation.setZ(delta.z[i]);
+            annotation.setRadius(Double.isNaN(delta.radius[i]) ? null : delta.radius[i]);
+            annotation.setModificationDate(now);
+            changed[i] = annotation;
+        }
+        for (int i = 0; i < changed.length; ++i) {
+            if (!relink[i]) {
+                continue;
+            }
+            TmGeoAnnotation annotation = changed[i];
+            if (annotation.getParentId().equals(neuronId)) {
+                neuron.addRootAnnotation(annotation);
+            } else {
+                TmGeoAnnotation parent = annotations.get(annotation.getParentId());
+                if (parent != null && !parent.getChildIds().contains(annotation.getId())) {
+                    parent.getChildIds().add(annotation.getId());
+                }
+            }
+        }
+
+        Map<TmAnchoredPathEndpoints, TmAnchoredPath> paths = neuron.getAnchoredPathMap();
+        for (int i = 0; i < delta.deletedPathStarts.length; ++i) {
+            paths.remove(new TmAnchoredPathEndpoints(delta.deletedPathStarts[i], delta.deletedPathEnds[i]));
+        }
+        for (int i = 0; i < delta.pathIds.length; ++i) {
+            int[] points = delta.pathPoints[i];
+            List<List<Integer>> pointList = new ArrayList<>(points.length / 3);
+            for (int p = 0; p < points.length; p += 3) {
+                pointList.add(Arrays.asList(points[p], points[p + 1], points[p + 2]));
+            }
+            TmAnchoredPathEndpoints endpoints = new TmAnchoredPathEndpoints(delta.pathStarts[i], delta.pathEnds[i]);
+            paths.put(endpoints, new TmAnchoredPath(delta.pathIds[i], endpoints, pointList));
+        }
+    }
+
+    // Removes an annotation from its parent's children, or from the roots
+    private static void unlink(TmNeuronMetadata neuron, TmGeoAnnotation annotation) {
+        if (annotation.isRoot()) {
+            neuron.removeRootAnnotation(annotation);
+        } else {
+            TmGeoAnnotation parent = neuron.getGeoAnnotationMap().get(annotation.getParentId());
+            if (parent != null) {
+                parent.getChildIds().remove(annotation.getId());
+            }
+        }
+    }
+
+}
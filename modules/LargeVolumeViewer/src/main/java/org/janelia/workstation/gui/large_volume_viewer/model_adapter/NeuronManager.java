@@ -7,7 +7,6 @@ import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
 
 public class NeuronManager {
 
@@ -16,7 +15,10 @@ public class NeuronManager {
     private final IdSource idSource;
     private final Map<Long, TmNeuronMetadata> neuronMap = new HashMap<>();
     private CompletableFuture<Boolean> ownershipRequest;
-    private CompletableFuture<TmNeuronMetadata> createNeuronRequest;
+    // outstanding creates, oldest first, by workspace and name; a batch of
+    //  creates can be in flight at once, and the server's replies are matched
+    //  back to them here
+    private final Map<String, Deque<CompletableFuture<TmNeuronMetadata>>> createNeuronRequests = new LinkedHashMap<>();
 
     public NeuronManager() {
         this.neuronModelAdapter = new NeuronModelAdapter();
@@ -142,8 +144,24 @@ public class NeuronManager {
      */
     public void completeCreateNeuron(TmNeuronMetadata updatedNeuron) {
         addNeuron(updatedNeuron);
-        if (createNeuronRequest != null) {
-            createNeuronRequest.complete(updatedNeuron);
+        CompletableFuture<TmNeuronMetadata> request = null;
+        synchronized (createNeuronRequests) {
+            // only a request for this workspace and name; a neuron created
+            //  elsewhere must never be handed to another request
+            Deque<CompletableFuture<TmNeuronMetadata>> requests =
+                    createNeuronRequests.get(createNeuronKey(updatedNeuron.getWorkspaceId(), updatedNeuron.getName()));
+            if (requests != null) {
+                // skip any the caller has given up on
+                do {
+                    request = requests.poll();
+                } while (request != null && request.isDone());
+                if (requests.isEmpty()) {
+                    createNeuronRequests.remove(createNeuronKey(updatedNeuron.getWorkspaceId(), updatedNeuron.getName()));
+                }
+            }
+        }
+        if (request != null) {
+            request.complete(updatedNeuron);
         }
     }
 
@@ -186,11 +204,18 @@ public class NeuronManager {
      * one which happens to be on the server.
      */
     public void loadWorkspaceNeurons(TmWorkspace workspace) throws Exception {
+        loadWorkspaceNeurons(workspace, null, null);
+    }
+
+    /**
+     * @param focus annotation coordinates around which neurons are registered
+     * first, or null
+     * @param listener told of each batch of neurons as it is registered, or null
+     */
+    public void loadWorkspaceNeurons(TmWorkspace workspace, double[] focus, WorkspaceNeuronLoader.Listener listener) throws Exception {
         neuronMap.clear();
-        // addNeurons() must be done serially, so flatten the stream:
-        for (TmNeuronMetadata n: neuronModelAdapter.loadNeurons(workspace).collect(Collectors.toList())) {
-            addNeuron(n);
-        }
+        // addNeuron() must be done serially; the loader calls it on this thread
+        neuronModelAdapter.loadNeurons(workspace, focus, this::addNeuron, listener);
         LOG.info("NeuronManager.loadWorkspaceNeurons() loaded {} neurons", neuronMap.size());
     }
 
@@ -208,12 +233,40 @@ public class NeuronManager {
             throw new IllegalStateException("Tiled Neuron must be created in a valid workspace.");
         }
         TmNeuronMetadata neuron = new TmNeuronMetadata(workspace, name);
-        createNeuronRequest = createTiledMicroscopeNeuron(neuron);
-        return createNeuronRequest;
+        return createTiledMicroscopeNeuron(neuron);
     }
 
     private CompletableFuture<TmNeuronMetadata> createTiledMicroscopeNeuron(TmNeuronMetadata neuron) throws Exception {
-        return neuronModelAdapter.asyncCreateNeuron(neuron);
+        // the reply can arrive before the send returns, so register first
+        String key = createNeuronKey(neuron.getWorkspaceId(), neuron.getName());
+        CompletableFuture<TmNeuronMetadata> request = new CompletableFuture<>();
+        synchronized (createNeuronRequests) {
+            createNeuronRequests.computeIfAbsent(key, k -> new ArrayDeque<>()).add(request);
+        }
+        // a request the caller gives up on, or that never gets its reply,
+        //  stops waiting for one
+        request.whenComplete((createdNeuron, error) -> forgetCreateNeuron(key, request));
+        try {
+            neuronModelAdapter.asyncCreateNeuron(neuron);
+        }
+        catch (Exception e) {
+            request.completeExceptionally(e);
+            throw e;
+        }
+        return request;
+    }
+
+    private void forgetCreateNeuron(String key, CompletableFuture<TmNeuronMetadata> request) {
+        synchronized (createNeuronRequests) {
+            Deque<CompletableFuture<TmNeuronMetadata>> requests = createNeuronRequests.get(key);
+            if (requests != null && requests.remove(request) && requests.isEmpty()) {
+                createNeuronRequests.remove(key);
+            }
+        }
+    }
+
+    private static String createNeuronKey(Long workspaceId, String name) {
+        return workspaceId + "/" + name;
     }
 
     /**
@@ -450,6 +503,26 @@ public class NeuronManager {
         neuronModelAdapter.asyncSaveNeuron(neuron);
     }
 
+    /**
+     * Asks the writer of a delta that could not be applied to the local copy
+     * of its neuron to send the full neuron.
+     */
+    public void requestNeuronResync(Long workspaceId, Long neuronId, String writer, long failedVersion) throws Exception {
+        neuronModelAdapter.requestResync(workspaceId, neuronId, writer, failedVersion);
+    }
+
+    /**
+     * Answers a resync request for a neuron this client saved, by saving the
+     * full neuron, unless that was done since the delta the request is for.
+     */
+    public void resendNeuron(Long neuronId, long failedVersion) throws Exception {
+        TmNeuronMetadata neuron = neuronMap.get(neuronId);
+        if (neuron != null && NeuronDeltaTracker.getInstance().resyncRequested(neuronId, failedVersion)) {
+            LOG.info("Resending neuron {} for a receiver that missed version {}", neuronId, failedVersion);
+            saveNeuronData(neuron);
+        }
+    }
+
     public void splitNeurite(TmNeuronMetadata tmNeuronMetadata, TmGeoAnnotation newRoot) throws Exception {
         if (newRoot == null || tmNeuronMetadata == null) {
             return;
@@ -12,6 +12,8 @@ public class NeuronMessageConstants {
         public static final String TYPE = "msgType";
         public static final String DECISION = "decision";
         public static final String DESCRIPTION = "description";
+        public static final String NEURON_VERSION = "neuronVersion";
+        public static final String NEURON_DELTA = "neuronDelta";
     }
 
     public enum MessageType {
@@ -20,6 +22,7 @@ public class NeuronMessageConstants {
         NEURON_DELETE,
         REQUEST_NEURON_OWNERSHIP,
         REQUEST_NEURON_ASSIGNMENT,
+        REQUEST_NEURON_RESYNC,
         NEURON_OWNERSHIP_DECISION,
         ERROR_PROCESSING,
         NETWORK_DIAGNOSTICS
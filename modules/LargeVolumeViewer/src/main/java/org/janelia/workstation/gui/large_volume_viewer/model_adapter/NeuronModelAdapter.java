@@ -1,12 +1,13 @@
 package org.janelia.workstation.gui.large_volume_viewer.model_adapter;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Stream;
+import java.util.function.Consumer;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -21,7 +22,6 @@ import org.janelia.workstation.core.api.ClientDomainUtils;
 import org.janelia.workstation.core.util.ConsoleProperties;
 import org.janelia.workstation.gui.large_volume_viewer.api.TiledMicroscopeDomainMgr;
 import org.janelia.workstation.gui.large_volume_viewer.options.ApplicationPanel;
-import org.perf4j.StopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,46 +47,64 @@ class NeuronModelAdapter {
     private static final String MESSAGESERVER_PASSWORD = ConsoleProperties.getInstance().getProperty("domain.msgserver.password").trim();
     private static final String MESSAGESERVER_UPDATESEXCHANGE = ConsoleProperties.getInstance().getProperty("domain.msgserver.exchange.updates").trim();
     private static final String MESSAGESERVER_ROUTINGKEY = ConsoleProperties.getInstance().getProperty("domain.msgserver.routingkey.updates").trim();
+    private static final int NEURON_PAGE_SIZE = ConsoleProperties.getInt("console.LVV.neuronLoad.pageSize", 10000);
+    private static final int NEURON_FETCH_THREADS = ConsoleProperties.getInt("console.LVV.neuronLoad.fetchThreads", 4);
+    private static final int NEURON_PREPARE_THREADS = ConsoleProperties.getInt("console.LVV.neuronLoad.prepareThreads",
+            Runtime.getRuntime().availableProcessors());
+    private static final boolean SEND_NEURON_DELTAS = ConsoleProperties.getBoolean("console.LVV.neuronDeltaMessages", true);
+
+    // ObjectMapper is thread safe once configured, and costly to construct per message
+    private static final ObjectMapper MAPPER = new ObjectMapper();
 
     private TiledMicroscopeDomainMgr tmDomainMgr = TiledMicroscopeDomainMgr.getDomainMgr();
     private MessageSender messageSender;
 
-    Stream<TmNeuronMetadata> loadNeurons(TmWorkspace workspace) {
+    /**
+     * Loads the workspace's neurons through a WorkspaceNeuronLoader, handing
+     * each to register, on the calling thread, once it is repaired and
+     * initialized.
+     *
+     * @param focus annotation coordinates to load outwards from, or null
+     * @param listener told of each batch as it is registered, or null
+     */
+    void loadNeurons(TmWorkspace workspace, double[] focus, Consumer<TmNeuronMetadata> register,
+            WorkspaceNeuronLoader.Listener listener) throws Exception {
         LOG.info("Loading neurons for workspace: {}", workspace);
-        StopWatch stopWatch = new StopWatch();
-        try {
-            return tmDomainMgr.streamWorkspaceNeurons(workspace.getId())
-                    .limit(MAX_NEURONS)
-                    .map(neuron -> {
-                        if (ClientDomainUtils.hasWriteAccess(workspace)) {
-                            if (ApplicationPanel.isVerifyNeurons()) {
-                                LOG.info("Checking neuron data consistency");
-                                // check neuron consistency and repair (some) problems
-                                LOG.debug("Checking neuron data for TmNeuronMetadata#{}", neuron.getId());
-                                List<String> results = neuron.checkRepairNeuron();
-                                if (results.size() > 0) {
-                                    // save results, then output to LOG; this is unfortunately
-                                    //  not visible to the user; we aren't in a place in the
-                                    //  code where we can pop a dialog
-                                    for (String s : results) {
-                                        LOG.warn(s);
-                                    }
-                                    try {
-                                        return tmDomainMgr.save(neuron);
-                                    } catch (Exception e) {
-                                        throw new IllegalStateException(e);
-                                    }
-                                }
-                            }
-                        }
-                        // make sure to initialize cross references
-                        neuron.initNeuronData();
-                        return neuron;
-                    })
-                    ;
-        } finally {
-            LOG.info("Getting neurons stream took {} ms", stopWatch.getElapsedTime());
+        Long workspaceId = workspace.getId();
+        boolean verifyNeurons = ClientDomainUtils.hasWriteAccess(workspace) && ApplicationPanel.isVerifyNeurons();
+        WorkspaceNeuronLoader loader = new WorkspaceNeuronLoader(new WorkspaceNeuronLoader.NeuronSource() {
+            @Override
+            public long getNeuronCount() {
+                return Math.min(tmDomainMgr.getWorkspaceNeuronCount(workspaceId), MAX_NEURONS);
+            }
+
+            @Override
+            public void streamNeurons(long offset, int length, Consumer<TmNeuronMetadata> consumer) {
+                tmDomainMgr.streamWorkspaceNeurons(workspaceId, offset, length, consumer);
+            }
+        }, NEURON_PAGE_SIZE, NEURON_FETCH_THREADS, NEURON_PREPARE_THREADS);
+        loader.setFocus(focus);
+        loader.load(neuron -> prepareNeuron(neuron, verifyNeurons), register, listener);
+    }
+
+    private TmNeuronMetadata prepareNeuron(TmNeuronMetadata neuron, boolean verifyNeurons) throws Exception {
+        if (verifyNeurons) {
+            // check neuron consistency and repair (some) problems
+            LOG.debug("Checking neuron data for TmNeuronMetadata#{}", neuron.getId());
+            List<String> results = neuron.checkRepairNeuron();
+            if (results.size() > 0) {
+                // save results, then output to LOG; this is unfortunately
+                //  not visible to the user; we aren't in a place in the
+                //  code where we can pop a dialog
+                for (String s : results) {
+                    LOG.warn(s);
+                }
+                neuron = tmDomainMgr.save(neuron);
+            }
         }
+        // make sure to initialize cross references
+        neuron.initNeuronData();
+        return neuron;
     }
 
     private MessageSender getSender() {
@@ -114,8 +132,6 @@ class NeuronModelAdapter {
 
         List<Long> neuronIds = new ArrayList<Long>();
         neuronIds.add(neuron.getId());
-        ObjectMapper mapper = new ObjectMapper();
-        byte[] neuronData = mapper.writeValueAsBytes(neuron);
 
         Map<String, Object> updateHeaders = new HashMap<String, Object>();
         updateHeaders.put(NeuronMessageConstants.Headers.TYPE, type.toString());
@@ -129,10 +145,34 @@ class NeuronModelAdapter {
                 updateHeaders.put(extraKey, extraArguments.get(extraKey));
             }
         }
+        byte[] neuronData = null;
+        if (type == NeuronMessageConstants.MessageType.NEURON_SAVE_NEURONDATA && SEND_NEURON_DELTAS) {
+            // receivers at the previous version only need the delta
+            neuronData = NeuronDeltaTracker.getInstance().addSaveHeaders(neuron, updateHeaders);
+        } else if (type == NeuronMessageConstants.MessageType.NEURON_DELETE) {
+            NeuronDeltaTracker.getInstance().forget(neuron.getId());
+        }
+        if (neuronData == null) {
+            neuronData = MAPPER.writeValueAsBytes(neuron);
+        }
 
         getSender().sendMessage(updateHeaders, neuronData);
     }
 
+    /**
+     * Asks the client which sent a delta we could not apply to send the full neuron.
+     */
+    void requestResync(Long workspaceId, Long neuronId, String writer, long failedVersion) throws Exception {
+        Map<String, Object> updateHeaders = new HashMap<String, Object>();
+        updateHeaders.put(NeuronMessageConstants.Headers.TYPE, NeuronMessageConstants.MessageType.REQUEST_NEURON_RESYNC.toString());
+        updateHeaders.put(NeuronMessageConstants.Headers.USER, AccessManager.getSubjectKey());
+        updateHeaders.put(NeuronMessageConstants.Headers.WORKSPACE, workspaceId.toString());
+        updateHeaders.put(NeuronMessageConstants.Headers.NEURONIDS, Collections.singletonList(neuronId).toString());
+        updateHeaders.put(NeuronMessageConstants.Headers.TARGET_USER, writer);
+        updateHeaders.put(NeuronMessageConstants.Headers.NEURON_VERSION, Long.toString(failedVersion));
+        getSender().sendMessage(updateHeaders, new byte[0]);
+    }
+
     CompletableFuture<TmNeuronMetadata> asyncCreateNeuron(TmNeuronMetadata neuron) throws Exception {
         // make sure the neuron contains the current user's ownerKey;
         neuron.setOwnerKey(AccessManager.getSubjectKey());
@@ -0,0 +1,292 @@
+package org.janelia.workstation.gui.large_volume_viewer.model_adapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Geometry of a neuron at one version, in primitive arrays: each annotation's
+ * parent, position and radius, and each anchored path's points. Comparing two
+ * snapshots gives the NeuronDelta between them without touching the domain
+ * objects again or allocating per annotation.
+ *
+ * Everything else saved with the neuron, like its name or notes, is kept as
+ * one opaque value; a delta cannot carry it, so it only tells whether a delta
+ * is enough.
+ */
+class NeuronStateSnapshot {
+
+    private final long neuronId;
+
+    private int nodeCount = 0;
+    private long[] ids;
+    private long[] parentIds;
+    private double[] x;
+    private double[] y;
+    private double[] z;
+    private double[] radius;
+
+    private int pathCount = 0;
+    private long[] pathIds;
+    private long[] pathStarts;
+    private long[] pathEnds;
+    private int[][] pathPoints;
+
+    // Open addressed lookup tables holding index + 1, built on first lookup
+    private int[] nodeTable;
+    private int[] pathTable;
+
+    private Object properties;
+
+    NeuronStateSnapshot(long neuronId, int nodeCapacity, int pathCapacity) {
+        this.neuronId = neuronId;
+        nodeCapacity = Math.max(nodeCapacity, 1);
+        pathCapacity = Math.max(pathCapacity, 1);
+        ids = new long[nodeCapacity];
+        parentIds = new long[nodeCapacity];
+        x = new double[nodeCapacity];
+        y = new double[nodeCapacity];
+        z = new double[nodeCapacity];
+        radius = new double[nodeCapacity];
+        pathIds = new long[pathCapacity];
+        pathStarts = new long[pathCapacity];
+        pathEnds = new long[pathCapacity];
+        pathPoints = new int[pathCapacity][];
+    }
+
+    long getNeuronId() {
+        return neuronId;
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    int getPathCount() {
+        return pathCount;
+    }
+
+    /**
+     * @param radius NaN if the annotation has no radius
+     */
+    void addNode(long id, long parentId, double x, double y, double z, double radius) {
+        if (nodeCount == ids.length) {
+            int capacity = 2 * nodeCount;
+            ids = Arrays.copyOf(ids, capacity);
+            parentIds = Arrays.copyOf(parentIds, capacity);
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            this.z = Arrays.copyOf(this.z, capacity);
+            this.radius = Arrays.copyOf(this.radius, capacity);
+        }
+        ids[nodeCount] = id;
+        parentIds[nodeCount] = parentId;
+        this.x[nodeCount] = x;
+        this.y[nodeCount] = y;
+        this.z[nodeCount] = z;
+        this.radius[nodeCount] = radius;
+        nodeCount++;
+        nodeTable = null;
+    }
+
+    /**
+     * @param points x, y, z triples
+     */
+    void addPath(long id, long startId, long endId, int[] points) {
+        if (pathCount == pathIds.length) {
+            int capacity = 2 * pathCount;
+            pathIds = Arrays.copyOf(pathIds, capacity);
+            pathStarts = Arrays.copyOf(pathStarts, capacity);
+            pathEnds = Arrays.copyOf(pathEnds, capacity);
+            pathPoints = Arrays.copyOf(pathPoints, capacity);
+        }
+        pathIds[pathCount] = id;
+        pathStarts[pathCount] = startId;
+        pathEnds[pathCount] = endId;
+        pathPoints[pathCount] = points;
+        pathCount++;
+        pathTable = null;
+    }
+
+    /**
+     * @param properties the neuron's state besides its geometry, comparable
+     * with equals()
+     */
+    void setProperties(Object properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * @return whether the two snapshots differ only in geometry, so that a
+     * delta between them is the whole change
+     */
+    boolean hasSameProperties(NeuronStateSnapshot other) {
+        return Objects.equals(properties, other.properties);
+    }
+
+    /**
+     * Changes that turn previous into this snapshot. A null previous snapshot
+     * yields a delta that adds everything.
+     */
+    NeuronDelta diff(NeuronStateSnapshot previous, long baseVersion, long version) {
+        if (previous != null && previous.neuronId != neuronId) {
+            throw new IllegalArgumentException("Snapshots are of different neurons: " + previous.neuronId + ", " + neuronId);
+        }
+
+        long[] changed = new long[nodeCount];
+        int changedCount = 0;
+        for (int i = 0; i < nodeCount; ++i) {
+            int j = previous == null ? -1 : previous.findNode(ids[i]);
+            if (j < 0 || !sameNode(i, previous, j)) {
+                changed[changedCount++] = ids[i];
+            }
+        }
+        changed = Arrays.copyOf(changed, changedCount);
+        Arrays.sort(changed);
+
+        long[] deleted = new long[previous == null ? 0 : previous.nodeCount];
+        int deletedCount = 0;
+        if (previous != null) {
+            for (int j = 0; j < previous.nodeCount; ++j) {
+                if (findNode(previous.ids[j]) < 0) {
+                    deleted[deletedCount++] = previous.ids[j];
+                }
+            }
+        }
+        deleted = Arrays.copyOf(deleted, deletedCount);
+        Arrays.sort(deleted);
+
+        long[] nodeIds = new long[changedCount];
+        long[] nodeParents = new long[changedCount];
+        double[] nodeX = new double[changedCount];
+        double[] nodeY = new double[changedCount];
+        double[] nodeZ = new double[changedCount];
+        double[] nodeRadius = new double[changedCount];
+        for (int k = 0; k < changedCount; ++k) {
+            int i = findNode(changed[k]);
+            nodeIds[k] = ids[i];
+            nodeParents[k] = parentIds[i];
+            nodeX[k] = x[i];
+            nodeY[k] = y[i];
+            nodeZ[k] = z[i];
+            nodeRadius[k] = radius[i];
+        }
+
+        List<Integer> changedPaths = new ArrayList<>();
+        for (int i = 0; i < pathCount; ++i) {
+            int j = previous == null ? -1 : previous.findPath(pathStarts[i], pathEnds[i]);
+            if (j < 0 || previous.pathIds[j] != pathIds[i] || !Arrays.equals(previous.pathPoints[j], pathPoints[i])) {
+                changedPaths.add(i);
+            }
+        }
+        changedPaths.sort((a, b) -> comparePaths(pathStarts[a], pathEnds[a], pathStarts[b], pathEnds[b]));
+        long[] changedPathIds = new long[changedPaths.size()];
+        long[] changedPathStarts = new long[changedPaths.size()];
+        long[] changedPathEnds = new long[changedPaths.size()];
+        int[][] changedPathPoints = new int[changedPaths.size()][];
+        for (int k = 0; k < changedPaths.size(); ++k) {
+            int i = changedPaths.get(k);
+            changedPathIds[k] = pathIds[i];
+            changedPathStarts[k] = pathStarts[i];
+            changedPathEnds[k] = pathEnds[i];
+            changedPathPoints[k] = pathPoints[i];
+        }
+
+        List<Integer> deletedPaths = new ArrayList<>();
+        if (previous != null) {
+            for (int j = 0; j < previous.pathCount; ++j) {
+                if (findPath(previous.pathStarts[j], previous.pathEnds[j]) < 0) {
+                    deletedPaths.add(j);
+                }
+            }
+            deletedPaths.sort((a, b) -> comparePaths(previous.pathStarts[a], previous.pathEnds[a],
+                    previous.pathStarts[b], previous.pathEnds[b]));
+        }
+        long[] deletedPathStarts = new long[deletedPaths.size()];
+        long[] deletedPathEnds = new long[deletedPaths.size()];
+        for (int k = 0; k < deletedPaths.size(); ++k) {
+            deletedPathStarts[k] = previous.pathStarts[deletedPaths.get(k)];
+            deletedPathEnds[k] = previous.pathEnds[deletedPaths.get(k)];
+        }
+
+        return new NeuronDelta(neuronId, baseVersion, version,
+                nodeIds, nodeParents, nodeX, nodeY, nodeZ, nodeRadius, deleted,
+                changedPathIds, changedPathStarts, changedPathEnds, changedPathPoints,
+                deletedPathStarts, deletedPathEnds);
+    }
+
+    private boolean sameNode(int i, NeuronStateSnapshot other, int j) {
+        return parentIds[i] == other.parentIds[j]
+                && Double.doubleToLongBits(x[i]) == Double.doubleToLongBits(other.x[j])
+                && Double.doubleToLongBits(y[i]) == Double.doubleToLongBits(other.y[j])
+                && Double.doubleToLongBits(z[i]) == Double.doubleToLongBits(other.z[j])
+                && Double.doubleToLongBits(radius[i]) == Double.doubleToLongBits(other.radius[j]);
+    }
+
+    private static int comparePaths(long start1, long end1, long start2, long end2) {
+        int result = Long.compare(start1, start2);
+        return result != 0 ? result : Long.compare(end1, end2);
+    }
+
+    /**
+     * @return index of the annotation, or -1
+     */
+    int findNode(long id) {
+        if (nodeTable == null) {
+            nodeTable = new int[tableSize(nodeCount)];
+            for (int i = 0; i < nodeCount; ++i) {
+                int slot = hash(ids[i], 0) & (nodeTable.length - 1);
+                while (nodeTable[slot] != 0) {
+                    slot = (slot + 1) & (nodeTable.length - 1);
+                }
+                nodeTable[slot] = i + 1;
+            }
+        }
+        int slot = hash(id, 0) & (nodeTable.length - 1);
+        while (nodeTable[slot] != 0) {
+            int i = nodeTable[slot] - 1;
+            if (ids[i] == id) {
+                return i;
+            }
+            slot = (slot + 1) & (nodeTable.length - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the anchored path between the two annotations, or -1
+     */
+    int findPath(long startId, long endId) {
+        if (pathTable == null) {
+            pathTable = new int[tableSize(pathCount)];
+            for (int i = 0; i < pathCount; ++i) {
+                int slot = hash(pathStarts[i], pathEnds[i]) & (pathTable.length - 1);
+                while (pathTable[slot] != 0) {
+                    slot = (slot + 1) & (pathTable.length - 1);
+                }
+                pathTable[slot] = i + 1;
+            }
+        }
+        int slot = hash(startId, endId) & (pathTable.length - 1);
+        while (pathTable[slot] != 0) {
+            int i = pathTable[slot] - 1;
+            if (pathStarts[i] == startId && pathEnds[i] == endId) {
+                return i;
+            }
+            slot = (slot + 1) & (pathTable.length - 1);
+        }
+        return -1;
+    }
+
+    // Power of two of at least twice the entry count, so probe chains stay short
+    private static int tableSize(int count) {
+        return Integer.highestOneBit(Math.max(2 * count, 8) - 1) << 1;
+    }
+
+    private static int hash(long a, long b) {
+        long h = (a * 0x9E3779B97F4A7C15L) ^ (b * 0xC2B2AE3D27D4EB4FL);
+        return (int) (h ^ (h >>> 29) ^ (h >>> 32));
+    }
+
+}
@@ -0,0 +1,425 @@
+package org.janelia.workstation.gui.large_volume_viewer.model_adapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.janelia.model.domain.tiledMicroscope.TmGeoAnnotation;
+import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads a workspace's neurons through a bounded, three stage pipeline:
+ * <ol>
+ * <li>fetch threads stream pages of neurons from the server, parsing each
+ * neuron as it arrives, taking the pages likeliest to be near the focus
+ * first;</li>
+ * <li>prepare threads repair and initialize neurons in parallel;</li>
+ * <li>the calling thread registers the prepared neurons in batches, nearest
+ * the focus first within each batch, and reports each batch to a listener.</li>
+ * </ol>
+ * The queues between the stages are bounded, so a slow stage holds back the
+ * ones before it instead of buffering the whole workspace. If any stage fails,
+ * the others drain and stop, and the first failure is rethrown by load().
+ */
+public class WorkspaceNeuronLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WorkspaceNeuronLoader.class);
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Receives neurons as they are registered.
+     */
+    public interface Listener {
+        /**
+         * Called on the loading thread after each batch of neurons has been
+         * registered.
+         *
+         * @param loadedCount neurons registered so far, including this batch
+         * @param totalCount neurons the server reported for the workspace
+         */
+        void neuronsLoaded(List<TmNeuronMetadata> batch, int loadedCount, long totalCount);
+    }
+
+    /**
+     * Pages of a workspace's neurons.
+     */
+    interface NeuronSource {
+        long getNeuronCount();
+
+        /**
+         * Hands each neuron of the page to the consumer, on the calling thread.
+         */
+        void streamNeurons(long offset, int length, Consumer<TmNeuronMetadata> consumer);
+    }
+
+    /**
+     * Readies a neuron for registration; called from several threads at once,
+     * but never for the same neuron.
+     */
+    interface NeuronPreparer {
+        TmNeuronMetadata prepare(TmNeuronMetadata neuron) throws Exception;
+    }
+
+    /**
+     * Wall clock and busy times of a load, in milliseconds. Busy times are
+     * summed over the threads of a stage; fetch time includes waiting for
+     * room in the queue, so time well beyond the wall clock means parsing
+     * outpaced preparation.
+     */
+    public static class Stats {
+        int neuronCount;
+        long totalCount;
+        long fetchDoneMs;
+        long fetchBusyMs;
+        long prepareDoneMs;
+        long prepareBusyMs;
+        long registerBusyMs;
+        long totalMs;
+
+        public int getNeuronCount() {
+            return neuronCount;
+        }
+
+        public long getTotalMs() {
+            return totalMs;
+        }
+
+        @Override
+        public String toString() {
+            return "loaded " + neuronCount + " of " + totalCount + " neurons in " + totalMs + " ms"
+                    + " (fetched by " + fetchDoneMs + " ms, " + fetchBusyMs + " ms busy;"
+                    + " prepared by " + prepareDoneMs + " ms, " + prepareBusyMs + " ms busy;"
+                    + " registered in " + registerBusyMs + " ms)";
+        }
+    }
+
+    // A parsed neuron and the page it came from
+    private static class ParsedNeuron {
+        final TmNeuronMetadata neuron;
+        final int page;
+
+        ParsedNeuron(TmNeuronMetadata neuron, int page) {
+            this.neuron = neuron;
+            this.page = page;
+        }
+    }
+
+    // A prepared neuron and its squared distance from the focus
+    private static class PreparedNeuron {
+        final TmNeuronMetadata neuron;
+        final double distance;
+
+        PreparedNeuron(TmNeuronMetadata neuron, double distance) {
+            this.neuron = neuron;
+            this.distance = distance;
+        }
+    }
+
+    private static final ParsedNeuron END_OF_NEURONS = new ParsedNeuron(null, -1);
+    private static final PreparedNeuron END_OF_PREPARED = new PreparedNeuron(null, 0);
+
+    private final NeuronSource source;
+    private final int pageSize;
+    private final int fetchThreads;
+    private final int prepareThreads;
+    private double[] focus;
+
+    WorkspaceNeuronLoader(NeuronSource source, int pageSize, int fetchThreads, int prepareThreads) {
+        this.source = source;
+        this.pageSize = Math.max(pageSize, 1);
+        this.fetchThreads = Math.max(fetchThreads, 1);
+        this.prepareThreads = Math.max(prepareThreads, 1);
+    }
+
+    /**
+     * @param focus x, y, z in annotation (voxel) coordinates, or null to
+     * register neurons in the order they are prepared
+     */
+    void setFocus(double[] focus) {
+        this.focus = focus;
+    }
+
+    /**
+     * Runs the pipeline, registering every neuron on the calling thread.
+     *
+     * @param listener notified after each batch, or null
+     */
+    Stats load(NeuronPreparer preparer, Consumer<TmNeuronMetadata> register, Listener listener) throws Exception {
+        long startNanos = System.nanoTime();
+        Stats stats = new Stats();
+        stats.totalCount = source.getNeuronCount();
+        int pageCount = (int) ((stats.totalCount + pageSize - 1) / pageSize);
+
+        PageScheduler pages = new PageScheduler(pageCount, focus != null);
+        BlockingQueue<ParsedNeuron> parsed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<PreparedNeuron> prepared = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger pagesLeft = new AtomicInteger(pageCount);
+        AtomicInteger preparersLeft = new AtomicInteger(prepareThreads);
+        LongAdder fetchBusyNanos = new LongAdder();
+        LongAdder prepareBusyNanos = new LongAdder();
+
+        ExecutorService prepareExecutor = Executors.newFixedThreadPool(prepareThreads, new ThreadFactoryBuilder()
+                .setNameFormat("NeuronPrepare-%d")
+                .setDaemon(true)
+                .build());
+        ExecutorService fetchExecutor = Executors.newFixedThreadPool(Math.max(Math.min(fetchThreads, pageCount), 1), new ThreadFactoryBuilder()
+                .setNameFormat("NeuronFetch-%d")
+                .setDaemon(true)
+                .build());
+        try {
+            for (int i = 0; i < prepareThreads; ++i) {
+                prepareExecutor.execute(() -> {
+                    try {
+                        while (true) {
+                            ParsedNeuron neuron = Uninterruptibles.takeUninterruptibly(parsed);
+                            if (neuron == END_OF_NEURONS) {
+                                break;
+                            }
+                            if (failure.get() != null) {
+                                continue; // drain so the fetchers never block
+                            }
+                            long t = System.nanoTime();
+                            try {
+                                TmNeuronMetadata result = preparer.prepare(neuron.neuron);
+                                double distance = distanceFromFocus(result);
+                                pages.neuronPrepared(neuron.page, distance);
+                                prepareBusyNanos.add(System.nanoTime() - t);
+                                Uninterruptibles.putUninterruptibly(prepared, new PreparedNeuron(result, distance));
+                            } catch (Throwable e) {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    } finally {
+                        if (preparersLeft.decrementAndGet() == 0) {
+                            stats.prepareDoneMs = elapsedMs(startNanos);
+                            Uninterruptibles.putUninterruptibly(prepared, END_OF_PREPARED);
+                        }
+                    }
+                });
+            }
+
+            if (pageCount == 0) {
+                endOfNeurons(parsed);
+            }
+            for (int i = 0; i < pageCount; ++i) {
+                fetchExecutor.execute(() -> {
+                    long t = System.nanoTime();
+                    try {
+                        if (failure.get() == null) {
+                            // the page is picked when a thread is free, so it
+                            // reflects what earlier pages turned out to hold
+                            int page = pages.next();
+                            long offset = (long) page * pageSize;
+                            int length = (int) Math.min(pageSize, stats.totalCount - offset);
+                            source.streamNeurons(offset, length, neuron -> {
+                                if (failure.get() != null) {
+                                    throw new CancellationException("Neuron load failed");
+                                }
+                                Uninterruptibles.putUninterruptibly(parsed, new ParsedNeuron(neuron, page));
+                            });
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        fetchBusyNanos.add(System.nanoTime() - t);
+                        if (pagesLeft.decrementAndGet() == 0) {
+                            stats.fetchDoneMs = elapsedMs(startNanos);
+                            endOfNeurons(parsed);
+                        }
+                    }
+                });
+            }
+
+            Comparator<PreparedNeuron> nearestFirst = Comparator.comparingDouble(p -> p.distance);
+            List<PreparedNeuron> batch = new ArrayList<>(BATCH_SIZE);
+            List<TmNeuronMetadata> neurons = new ArrayList<>(BATCH_SIZE);
+            boolean done = false;
+            while (!done) {
+                batch.clear();
+                batch.add(Uninterruptibles.takeUninterruptibly(prepared));
+                prepared.drainTo(batch, BATCH_SIZE - 1);
+                // Only one end marker is queued, after every neuron
+                if (batch.get(batch.size() - 1) == END_OF_PREPARED) {
+                    batch.remove(batch.size() - 1);
+                    done = true;
+                }
+                if (batch.isEmpty() || failure.get() != null) {
+                    continue;
+                }
+                long t = System.nanoTime();
+                try {
+                    if (focus != null) {
+                        batch.sort(nearestFirst);
+                    }
+                    neurons.clear();
+                    for (PreparedNeuron p : batch) {
+                        register.accept(p.neuron);
+                        neurons.add(p.neuron);
+                    }
+                    stats.neuronCount += neurons.size();
+                    if (listener != null) {
+                        listener.neuronsLoaded(neurons, stats.neuronCount, stats.totalCount);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+                stats.registerBusyMs += (System.nanoTime() - t) / 1_000_000;
+            }
+        } finally {
+            fetchExecutor.shutdown();
+            prepareExecutor.shutdown();
+        }
+
+        stats.fetchBusyMs = fetchBusyNanos.sum() / 1_000_000;
+        stats.prepareBusyMs = prepareBusyNanos.sum() / 1_000_000;
+        stats.totalMs = elapsedMs(startNanos);
+
+        Throwable t = failure.get();
+        if (t != null) {
+            LOG.error("Neuron load failed after {} of {} neurons", stats.neuronCount, stats.totalCount);
+            Throwables.throwIfUnchecked(t);
+            throw t instanceof Exception ? (Exception) t : new ExecutionException(t);
+        }
+        LOG.info("Workspace neuron pipeline {}", stats);
+        return stats;
+    }
+
+    private void endOfNeurons(BlockingQueue<ParsedNeuron> parsed) {
+        for (int i = 0; i < prepareThreads; ++i) {
+            Uninterruptibles.putUninterruptibly(parsed, END_OF_NEURONS);
+        }
+    }
+
+    // Squared distance from the focus to the neuron's nearest annotation
+    private double distanceFromFocus(TmNeuronMetadata neuron) {
+        double[] f = focus;
+        if (f == null) {
+            return 0;
+        }
+        double nearest = Double.MAX_VALUE;
+        for (TmGeoAnnotation annotation : neuron.getGeoAnnotationMap().values()) {
+            double dx = annotation.getX() - f[0];
+            double dy = annotation.getY() - f[1];
+            double dz = annotation.getZ() - f[2];
+            nearest = Math.min(nearest, dx * dx + dy * dy + dz * dz);
+        }
+        return nearest;
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    /**
+     * Hands out each page once. Without a focus, pages go in order. With one,
+     * the server can't say where a page's neurons lie before it is fetched,
+     * so the first few pages, about the square root of the count, are spread
+     * evenly over the workspace; after that each pick is the page whose
+     * nearest fetched neighbour, by offset, came closest to the focus. Pages follow creation order, and neurons created
+     * together, such as an imported set of fragments, tend to lie together.
+     */
+    static class PageScheduler {
+        private final boolean[] taken;
+        // squared distance from the focus to the nearest prepared neuron of
+        //  each page, NaN until one is prepared
+        private final double[] nearest;
+        private final int[] probeOrder;
+        private final boolean spatial;
+        private final int probeCount;
+        private int nextProbe;
+
+        PageScheduler(int pageCount, boolean spatial) {
+            this.taken = new boolean[pageCount];
+            this.nearest = new double[pageCount];
+            Arrays.fill(nearest, Double.NaN);
+            this.spatial = spatial;
+            this.probeOrder = spreadOrder(pageCount);
+            this.probeCount = (int) Math.ceil(Math.sqrt(pageCount));
+        }
+
+        synchronized int next() {
+            int best = -1;
+            if (spatial && nextProbe >= probeCount) {
+                double bestEstimate = Double.MAX_VALUE;
+                int bestGap = Integer.MAX_VALUE;
+                for (int page = 0; page < taken.length; ++page) {
+                    if (taken[page]) {
+                        continue;
+                    }
+                    // the nearest known distance among the closest pages
+                    //  that have one
+                    for (int gap = 1; gap < nearest.length; ++gap) {
+                        double estimate = Double.MAX_VALUE;
+                        if (page - gap >= 0 && !Double.isNaN(nearest[page - gap])) {
+                            estimate = nearest[page - gap];
+                        }
+                        if (page + gap < nearest.length && !Double.isNaN(nearest[page + gap])) {
+                            estimate = Math.min(estimate, nearest[page + gap]);
+                        }
+                        if (estimate < Double.MAX_VALUE) {
+                            if (estimate < bestEstimate || (estimate == bestEstimate && gap < bestGap)) {
+                                bestEstimate = estimate;
+                                bestGap = gap;
+                                best = page;
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+            while (best < 0 && nextProbe < probeOrder.length) {
+                int page = spatial ? probeOrder[nextProbe] : nextProbe;
+                nextProbe++;
+                if (!taken[page]) {
+                    best = page;
+                }
+            }
+            if (best < 0) {
+                throw new IllegalStateException("Every page has been taken");
+            }
+            taken[best] = true;
+            return best;
+        }
+
+        synchronized void neuronPrepared(int page, double distance) {
+            if (!(nearest[page] <= distance)) {
+                nearest[page] = distance;
+            }
+        }
+
+        // 0, n/2, n/4, 3n/4, ...: each page as far as possible from those before it
+        private static int[] spreadOrder(int pageCount) {
+            int bits = 32 - Integer.numberOfLeadingZeros(Math.max(pageCount - 1, 1));
+            Integer[] pages = new Integer[pageCount];
+            for (int i = 0; i < pageCount; ++i) {
+                pages[i] = i;
+            }
+            Arrays.sort(pages, Comparator.comparingInt(p -> Integer.reverse(p) >>> (32 - bits)));
+            int[] order = new int[pageCount];
+            for (int i = 0; i < pageCount; ++i) {
+                order[i] = pages[i];
+            }
+            return order;
+        }
+    }
+
+}
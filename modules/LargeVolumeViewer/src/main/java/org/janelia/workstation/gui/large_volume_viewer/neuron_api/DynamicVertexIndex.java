@@ -0,0 +1,633 @@
+package org.janelia.workstation.gui.large_volume_viewer.neuron_api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spatial index of points that keep changing while they are queried, for the
+ * nearest neighbour and box searches over the anchors of a workspace.
+ * <p>
+ * Most points live in a balanced k-d tree held in flat arrays. Points added
+ * since the tree was built wait in a short pending list that queries scan
+ * linearly, and removed points are only marked dead in the tree. Once there
+ * are too many pending or dead points, a new tree is built from a snapshot on
+ * a background thread while the old one keeps answering queries; edits made
+ * in the meantime are carried over when the new tree is swapped in.
+ * <p>
+ * Items are keyed by equals(), and any number of them may share a location.
+ * Each is indexed at the location it had when it was added, so an item that
+ * moves must be removed and added again. Thread safe.
+ */
+public class DynamicVertexIndex<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DynamicVertexIndex.class);
+
+    private static final int LEAF_SIZE = 8;
+    // Pending points are scanned by every query, so rebuild before there are many
+    private static final int PENDING_LIMIT = 2048;
+    // Dead points only cost traversal, so tolerate a fraction of the tree
+    private static final int MIN_DEAD_LIMIT = 1024;
+
+    private static final ExecutorService REBUILD_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("VertexIndexRebuild-%d")
+            .setDaemon(true)
+            .build());
+
+    private static final class Entry<T> {
+        final T item;
+        final float x, y, z;
+        final long sequence;
+        boolean pending = true;
+        int pendingIndex;
+        boolean removed;
+
+        Entry(T item, float x, float y, float z, long sequence) {
+            this.item = item;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.sequence = sequence;
+        }
+    }
+
+    // A balanced k-d tree over a fixed set of entries. The node of the range
+    // [lo, hi) is at its middle, split along axes[mid], with the smaller or
+    // equal points before it; ranges of LEAF_SIZE or fewer are not split.
+    private static final class Tree<T> {
+        final Entry<T>[] entries;
+        final float[] coords;
+        final byte[] axes;
+        int deadCount;
+
+        Tree(Entry<T>[] entries) {
+            this.entries = entries;
+            this.coords = new float[3 * entries.length];
+            this.axes = new byte[entries.length];
+            for (int i = 0; i < entries.length; ++i) {
+                coords[3 * i] = entries[i].x;
+                coords[3 * i + 1] = entries[i].y;
+                coords[3 * i + 2] = entries[i].z;
+            }
+            split(0, entries.length);
+        }
+
+        int size() {
+            return entries.length;
+        }
+
+        private void split(int lo, int hi) {
+            while (hi - lo > LEAF_SIZE) {
+                int axis = widestAxis(lo, hi);
+                int mid = (lo + hi) >>> 1;
+                select(lo, hi - 1, mid, axis);
+                axes[mid] = (byte) axis;
+                split(lo, mid);
+                lo = mid + 1;
+            }
+        }
+
+        private int widestAxis(int lo, int hi) {
+            float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+            float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            for (int i = lo; i < hi; ++i) {
+                for (int a = 0; a < 3; ++a) {
+                    float c = coords[3 * i + a];
+                    if (c < min[a]) min[a] = c;
+                    if (c > max[a]) max[a] = c;
+                }
+            }
+            int axis = 0;
+            for (int a = 1; a < 3; ++a) {
+                if (max[a] - min[a] > max[axis] - min[axis]) {
+                    axis = a;
+                }
+            }
+            return axis;
+        }
+
+        // Hoare selection: moves the k-th smallest along the axis to k
+        private void select(int lo, int hi, int k, int axis) {
+            while (hi > lo) {
+                float pivot = coords[3 * ((lo + hi) >>> 1) + axis];
+                int i = lo, j = hi;
+                while (i <= j) {
+                    while (coords[3 * i + axis] < pivot) ++i;
+                    while (coords[3 * j + axis] > pivot) --j;
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                if (k <= j) {
+                    hi = j;
+                } else if (k >= i) {
+                    lo = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void swap(int i, int j) {
+            Entry<T> e = entries[i];
+            entries[i] = entries[j];
+            entries[j] = e;
+            for (int a = 0; a < 3; ++a) {
+                float c = coords[3 * i + a];
+                coords[3 * i + a] = coords[3 * j + a];
+                coords[3 * j + a] = c;
+            }
+        }
+
+        void nearest(int lo, int hi, double[] q, Predicate<? super T> filter, Neighbours<T> result) {
+            while (hi - lo > LEAF_SIZE) {
+                int mid = (lo + hi) >>> 1;
+                int axis = axes[mid];
+                double diff = q[axis] - coords[3 * mid + axis];
+                if (diff < 0) {
+                    nearest(lo, mid, q, filter, result);
+                    consider(mid, q, filter, result);
+                    lo = mid + 1;
+                } else {
+                    nearest(mid + 1, hi, q, filter, result);
+                    consider(mid, q, filter, result);
+                    hi = mid;
+                }
+                if (diff * diff >= result.worst()) {
+                    return;
+                }
+            }
+            for (int i = lo; i < hi; ++i) {
+                consider(i, q, filter, result);
+            }
+        }
+
+        private void consider(int i, double[] q, Predicate<? super T> filter, Neighbours<T> result) {
+            double dx = coords[3 * i] - q[0];
+            double dy = coords[3 * i + 1] - q[1];
+            double dz = coords[3 * i + 2] - q[2];
+            double d = dx * dx + dy * dy + dz * dz;
+            if (d < result.worst()) {
+                Entry<T> e = entries[i];
+                if (!e.removed && (filter == null || filter.test(e.item))) {
+                    result.offer(d, e.item);
+                }
+            }
+        }
+
+        void range(int lo, int hi, double[] min, double[] max, List<T> result) {
+            while (hi - lo > LEAF_SIZE) {
+                int mid = (lo + hi) >>> 1;
+                int axis = axes[mid];
+                float split = coords[3 * mid + axis];
+                if (min[axis] <= split) {
+                    range(lo, mid, min, max, result);
+                    inRange(mid, min, max, result);
+                }
+                if (max[axis] < split) {
+                    return;
+                }
+                lo = mid + 1;
+            }
+            for (int i = lo; i < hi; ++i) {
+                inRange(i, min, max, result);
+            }
+        }
+
+        private void inRange(int i, double[] min, double[] max, List<T> result) {
+            for (int a = 0; a < 3; ++a) {
+                float c = coords[3 * i + a];
+                if (c < min[a] || c > max[a]) {
+                    return;
+                }
+            }
+            if (!entries[i].removed) {
+                result.add(entries[i].item);
+            }
+        }
+    }
+
+    // The k closest items so far, as a max heap on squared distance
+    private static final class Neighbours<T> {
+        final int capacity;
+        final double[] distances;
+        final Object[] items;
+        int size;
+
+        Neighbours(int capacity) {
+            this.capacity = capacity;
+            this.distances = new double[capacity];
+            this.items = new Object[capacity];
+        }
+
+        double worst() {
+            return size < capacity ? Double.POSITIVE_INFINITY : distances[0];
+        }
+
+        // Only called with a distance below worst()
+        void offer(double distance, T item) {
+            int i;
+            if (size < capacity) {
+                i = size++;
+                while (i > 0 && distances[(i - 1) / 2] < distance) {
+                    int parent = (i - 1) / 2;
+                    distances[i] = distances[parent];
+                    items[i] = items[parent];
+                    i = parent;
+                }
+            } else {
+                i = siftDown(0, distance);
+            }
+            distances[i] = distance;
+            items[i] = item;
+        }
+
+        // Finds where a new value for slot i goes, moving larger children up
+        private int siftDown(int i, double distance) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    return i;
+                }
+                if (child + 1 < size && distances[child + 1] > distances[child]) {
+                    ++child;
+                }
+                if (distances[child] <= distance) {
+                    return i;
+                }
+                distances[i] = distances[child];
+                items[i] = items[child];
+                i = child;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        List<T> closestFirst() {
+            Object[] sorted = new Object[size];
+            while (size > 0) {
+                sorted[size - 1] = items[0];
+                --size;
+                double last = distances[size];
+                Object lastItem = items[size];
+                int i = siftDown(0, last);
+                distances[i] = last;
+                items[i] = lastItem;
+            }
+            return (List<T>) Arrays.asList(sorted);
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Executor rebuildExecutor;
+
+    private final Map<T, Entry<T>> entries = new HashMap<>();
+    private Tree<T> tree = emptyTree();
+    private final List<Entry<T>> pending = new ArrayList<>();
+    private long nextSequence = 0;
+
+    // Bumped by clear() and rebuild(), so a background rebuild started
+    // before them is thrown away
+    private long generation = 0;
+    private boolean rebuilding = false;
+    private int rebuildCount = 0;
+
+    public DynamicVertexIndex() {
+        this(REBUILD_EXECUTOR);
+    }
+
+    DynamicVertexIndex(Executor rebuildExecutor) {
+        this.rebuildExecutor = rebuildExecutor;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Tree<T> emptyTree() {
+        return new Tree<>((Entry<T>[]) new Entry[0]);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(T item) {
+        lock.readLock().lock();
+        try {
+            return entries.containsKey(item);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of background rebuilds swapped in so far.
+     */
+    int getRebuildCount() {
+        lock.readLock().lock();
+        try {
+            return rebuildCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if the item was already indexed
+     */
+    public boolean add(T item, float x, float y, float z) {
+        Runnable rebuild;
+        lock.writeLock().lock();
+        try {
+            if (!addEntry(item, x, y, z)) {
+                return false;
+            }
+            rebuild = prepareRebuild();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        startRebuild(rebuild);
+        return true;
+    }
+
+    /**
+     * Adds items in one step, such as the anchors of a neuron that was
+     * loaded or merged.
+     *
+     * @return how many of the items were not already indexed
+     */
+    public int addAll(Collection<? extends T> items, Function<? super T, float[]> location) {
+        int added = 0;
+        Runnable rebuild;
+        lock.writeLock().lock();
+        try {
+            for (T item : items) {
+                float[] xyz = location.apply(item);
+                if (addEntry(item, xyz[0], xyz[1], xyz[2])) {
+                    ++added;
+                }
+            }
+            rebuild = prepareRebuild();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        startRebuild(rebuild);
+        return added;
+    }
+
+    /**
+     * @return false if the item was not indexed
+     */
+    public boolean remove(T item) {
+        Runnable rebuild;
+        lock.writeLock().lock();
+        try {
+            if (!removeEntry(item)) {
+                return false;
+            }
+            rebuild = prepareRebuild();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        startRebuild(rebuild);
+        return true;
+    }
+
+    /**
+     * @return how many of the items were indexed
+     */
+    public int removeAll(Collection<? extends T> items) {
+        int removed = 0;
+        Runnable rebuild;
+        lock.writeLock().lock();
+        try {
+            for (T item : items) {
+                if (removeEntry(item)) {
+                    ++removed;
+                }
+            }
+            rebuild = prepareRebuild();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        startRebuild(rebuild);
+        return removed;
+    }
+
+    /**
+     * Replaces the whole contents of the index, building the tree on the
+     * calling thread. Duplicate items are indexed once.
+     */
+    @SuppressWarnings("unchecked")
+    public void rebuild(Collection<? extends T> items, Function<? super T, float[]> location) {
+        Map<T, Entry<T>> built = new HashMap<>();
+        for (T item : items) {
+            float[] xyz = location.apply(item);
+            built.put(item, new Entry<>(item, xyz[0], xyz[1], xyz[2], 0));
+        }
+        Tree<T> builtTree = new Tree<>(built.values().toArray(new Entry[0]));
+        for (Entry<T> e : builtTree.entries) {
+            e.pending = false;
+        }
+        lock.writeLock().lock();
+        try {
+            ++generation;
+            rebuilding = false;
+            entries.clear();
+            entries.putAll(built);
+            pending.clear();
+            tree = builtTree;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            ++generation;
+            rebuilding = false;
+            entries.clear();
+            pending.clear();
+            tree = emptyTree();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to n items closest to the location, closest first.
+     *
+     * @param filter excludes items, or null to consider all of them
+     */
+    public List<T> nearest(double x, double y, double z, int n, Predicate<? super T> filter) {
+        if (n <= 0) {
+            return Collections.emptyList();
+        }
+        double[] q = {x, y, z};
+        lock.readLock().lock();
+        try {
+            Neighbours<T> result = new Neighbours<>(Math.min(n, Math.max(entries.size(), 1)));
+            tree.nearest(0, tree.size(), q, filter, result);
+            for (Entry<T> e : pending) {
+                double dx = e.x - x;
+                double dy = e.y - y;
+                double dz = e.z - z;
+                double d = dx * dx + dy * dy + dz * dz;
+                if (d < result.worst() && (filter == null || filter.test(e.item))) {
+                    result.offer(d, e.item);
+                }
+            }
+            return result.closestFirst();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the items inside the box, with bounds included.
+     */
+    public List<T> inBox(double[] min, double[] max) {
+        List<T> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            tree.range(0, tree.size(), min, max, result);
+            for (Entry<T> e : pending) {
+                if (e.x >= min[0] && e.x <= max[0] && e.y >= min[1] && e.y <= max[1] && e.z >= min[2] && e.z <= max[2]) {
+                    result.add(e.item);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    // Called with the write lock held
+    private boolean addEntry(T item, float x, float y, float z) {
+        if (entries.containsKey(item)) {
+            return false;
+        }
+        Entry<T> e = new Entry<>(item, x, y, z, ++nextSequence);
+        e.pendingIndex = pending.size();
+        pending.add(e);
+        entries.put(item, e);
+        return true;
+    }
+
+    // Called with the write lock held
+    private boolean removeEntry(T item) {
+        Entry<T> e = entries.remove(item);
+        if (e == null) {
+            return false;
+        }
+        e.removed = true;
+        if (e.pending) {
+            Entry<T> last = pending.remove(pending.size() - 1);
+            if (last != e) {
+                last.pendingIndex = e.pendingIndex;
+                pending.set(e.pendingIndex, last);
+            }
+        } else {
+            tree.deadCount++;
+        }
+        return true;
+    }
+
+    /**
+     * If the tree has gone stale and no rebuild is running, snapshots the
+     * live entries and returns the task that rebuilds from them. Called with
+     * the write lock held.
+     */
+    @SuppressWarnings("unchecked")
+    private Runnable prepareRebuild() {
+        if (rebuilding) {
+            return null;
+        }
+        boolean stale = pending.size() > PENDING_LIMIT
+                || tree.deadCount > Math.max(MIN_DEAD_LIMIT, tree.size() / 4);
+        if (!stale) {
+            return null;
+        }
+        rebuilding = true;
+        Entry<T>[] snapshot = entries.values().toArray(new Entry[0]);
+        long snapshotGeneration = generation;
+        long snapshotSequence = nextSequence;
+        return () -> {
+            Tree<T> built;
+            try {
+                built = new Tree<>(snapshot);
+            } catch (Throwable e) {
+                LOG.error("Could not rebuild vertex index", e);
+                lock.writeLock().lock();
+                try {
+                    if (generation == snapshotGeneration) {
+                        rebuilding = false;
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                return;
+            }
+            Runnable next;
+            lock.writeLock().lock();
+            try {
+                if (generation != snapshotGeneration) {
+                    return;
+                }
+                swapIn(built, snapshotSequence);
+                next = prepareRebuild();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            startRebuild(next);
+        };
+    }
+
+    // Called with the write lock held
+    private void swapIn(Tree<T> built, long snapshotSequence) {
+        for (Entry<T> e : built.entries) {
+            if (e.removed) {
+                built.deadCount++;
+            }
+            e.pending = false;
+        }
+        // Entries added since the snapshot stay pending
+        int kept = 0;
+        for (Entry<T> e : pending) {
+            if (e.sequence > snapshotSequence) {
+                e.pendingIndex = kept;
+                pending.set(kept++, e);
+            }
+        }
+        pending.subList(kept, pending.size()).clear();
+        LOG.trace("Swapped in vertex index of {} points, {} dead, {} pending", built.size(), built.deadCount, pending.size());
+        tree = built;
+        rebuilding = false;
+        rebuildCount++;
+    }
+
+    private void startRebuild(Runnable rebuild) {
+        if (rebuild != null) {
+            rebuildExecutor.execute(rebuild);
+        }
+    }
+
+}
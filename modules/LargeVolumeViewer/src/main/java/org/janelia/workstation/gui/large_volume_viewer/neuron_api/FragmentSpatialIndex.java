@@ -0,0 +1,778 @@
+package org.janelia.workstation.gui.large_volume_viewer.neuron_api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.janelia.model.domain.tiledMicroscope.TmGeoAnnotation;
+import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
+
+/**
+ * Spatial index over the annotation points of many small neuron fragments,
+ * kept in flat primitive arrays instead of one object per point.
+ * <p>
+ * Each fragment occupies a slot holding its id, a stamp identifying the
+ * version it was indexed from, its bounding box and the range of its points
+ * in a shared coordinate array. A uniform grid maps each cell to the slots
+ * with at least one point in it, so a query only visits fragments near the
+ * query box, and only tests the points of fragments whose bounding box meets
+ * it. Removed fragments leave dead slots behind until enough accumulate to
+ * make compacting worthwhile.
+ * <p>
+ * The index can be written to a file and read back without the fragments
+ * or a rebuild, then brought up to date with sync(), which only
+ * reindexes fragments whose stamp changed.
+ * <p>
+ * Not thread safe.
+ */
+public class FragmentSpatialIndex {
+
+    private static final int MAGIC = 0x46534958; // "FSIX"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int NO_ENTRY = -1;
+
+    private final double cellSize;
+
+    // Slots, one per indexed fragment version
+    private int slotCount = 0;
+    private int liveCount = 0;
+    private long[] ids = new long[16];
+    private long[] stamps = new long[16];
+    private boolean[] live = new boolean[16];
+    private float[] bounds = new float[6 * 16]; // min x, y, z, max x, y, z
+    private int[] pointStart = new int[16];
+    private int[] pointCount = new int[16];
+    private final LongIntTable slotById = new LongIntTable();
+
+    // Points of all slots, as x, y, z triples
+    private float[] points = new float[3 * 256];
+    private int pointLength = 0;
+
+    // Grid cells, each a linked list of entries naming a slot
+    private final LongIntTable cellHeads = new LongIntTable();
+    private int entryCount = 0;
+    private int[] entrySlot = new int[256];
+    private int[] entryNext = new int[256];
+
+    // Slots seen by the current query, to report each fragment once
+    private int[] visited = new int[16];
+    private int visitStamp = 0;
+
+    /**
+     * @param cellSize edge of a grid cell, in annotation coordinates; about
+     * the usual query distance works well
+     */
+    public FragmentSpatialIndex(double cellSize) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+        }
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Indexes all the fragments in one pass.
+     */
+    public static FragmentSpatialIndex build(Collection<TmNeuronMetadata> fragments, double cellSize) {
+        FragmentSpatialIndex index = new FragmentSpatialIndex(cellSize);
+        int totalPoints = 0;
+        for (TmNeuronMetadata fragment : fragments) {
+            totalPoints += fragment.getGeoAnnotationMap().size();
+        }
+        index.ensureSlots(fragments.size());
+        index.ensurePoints(3 * totalPoints);
+        index.ensureEntries(totalPoints);
+        for (TmNeuronMetadata fragment : fragments) {
+            index.add(fragment);
+        }
+        return index;
+    }
+
+    /**
+     * Identifies the version of a fragment that is indexed, without looking at
+     * its annotations: any save changes its updated date.
+     */
+    public static long stamp(TmNeuronMetadata fragment) {
+        Date updated = fragment.getUpdatedDate();
+        long h = (updated == null ? 0 : updated.getTime()) * 0x9E3779B97F4A7C15L;
+        h ^= fragment.getGeoAnnotationMap().size() * 0xC2B2AE3D27D4EB4FL;
+        return h ^ (h >>> 31);
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * @return number of fragments indexed
+     */
+    public int size() {
+        return liveCount;
+    }
+
+    public boolean contains(Long fragmentId) {
+        return slotById.get(fragmentId) != NO_ENTRY;
+    }
+
+    /**
+     * Indexes a fragment, replacing any earlier version of it.
+     */
+    public void add(TmNeuronMetadata fragment) {
+        Collection<TmGeoAnnotation> annotations = fragment.getGeoAnnotationMap().values();
+        float[] xyz = new float[3 * annotations.size()];
+        int p = 0;
+        for (TmGeoAnnotation annotation : annotations) {
+            xyz[p++] = annotation.getX().floatValue();
+            xyz[p++] = annotation.getY().floatValue();
+            xyz[p++] = annotation.getZ().floatValue();
+        }
+        add(fragment.getId(), stamp(fragment), xyz, xyz.length);
+    }
+
+    /**
+     * @return false if the fragment was not indexed
+     */
+    public boolean remove(Long fragmentId) {
+        int slot = slotById.remove(fragmentId);
+        if (slot == NO_ENTRY) {
+            return false;
+        }
+        live[slot] = false;
+        liveCount--;
+        // Dead slots keep their points and grid entries until compaction
+        if (slotCount - liveCount > Math.max(1024, liveCount)) {
+            compact();
+        }
+        return true;
+    }
+
+    public void clear() {
+        slotCount = 0;
+        liveCount = 0;
+        pointLength = 0;
+        entryCount = 0;
+        slotById.clear();
+        cellHeads.clear();
+    }
+
+    /**
+     * Brings the index up to date with the given fragments: fragments whose
+     * stamp changed are reindexed, new ones are added and missing ones
+     * removed.
+     *
+     * @return number of fragments added, reindexed or removed
+     */
+    public int sync(Collection<TmNeuronMetadata> fragments) {
+        int changes = 0;
+        boolean[] seen = new boolean[slotCount + fragments.size()];
+        for (TmNeuronMetadata fragment : fragments) {
+            int slot = slotById.get(fragment.getId());
+            if (slot == NO_ENTRY || stamps[slot] != stamp(fragment)) {
+                add(fragment);
+                slot = slotById.get(fragment.getId());
+                changes++;
+            }
+            if (slot >= seen.length) {
+                seen = Arrays.copyOf(seen, Math.max(2 * seen.length, slot + 1));
+            }
+            seen[slot] = true;
+        }
+        int originalSlotCount = slotCount;
+        for (int slot = 0; slot < originalSlotCount; ++slot) {
+            if (live[slot] && (slot >= seen.length || !seen[slot])) {
+                live[slot] = false;
+                liveCount--;
+                slotById.remove(ids[slot]);
+                changes++;
+            }
+        }
+        if (slotCount - liveCount > Math.max(1024, liveCount)) {
+            compact();
+        }
+        return changes;
+    }
+
+    /**
+     * Fragments with a point no further than distance from the given point
+     * along each axis, that is, inside the cube of half width distance around
+     * it.
+     */
+    public Set<Long> getFragmentIdsNear(double x, double y, double z, double distance) {
+        return getFragmentIdsInBoundingBox(
+                new double[]{x - distance, y - distance, z - distance},
+                new double[]{x + distance, y + distance, z + distance});
+    }
+
+    /**
+     * Fragments with a point inside the box, bounds included.
+     */
+    public Set<Long> getFragmentIdsInBoundingBox(double[] minXYZ, double[] maxXYZ) {
+        Set<Long> fragments = new HashSet<>();
+        if (liveCount == 0) {
+            return fragments;
+        }
+        long minCx = cell(minXYZ[0]), minCy = cell(minXYZ[1]), minCz = cell(minXYZ[2]);
+        long maxCx = cell(maxXYZ[0]), maxCy = cell(maxXYZ[1]), maxCz = cell(maxXYZ[2]);
+        double cellsInBox = (double) (maxCx - minCx + 1) * (maxCy - minCy + 1) * (maxCz - minCz + 1);
+        startVisit();
+        if (cellsInBox > cellHeads.size()) {
+            // Cheaper to test every slot than to probe mostly empty cells
+            for (int slot = 0; slot < slotCount; ++slot) {
+                if (live[slot] && slotMeetsBox(slot, minXYZ, maxXYZ)) {
+                    fragments.add(ids[slot]);
+                }
+            }
+            return fragments;
+        }
+        for (long cx = minCx; cx <= maxCx; ++cx) {
+            for (long cy = minCy; cy <= maxCy; ++cy) {
+                for (long cz = minCz; cz <= maxCz; ++cz) {
+                    for (int e = cellHeads.get(cellKey(cx, cy, cz)); e != NO_ENTRY; e = entryNext[e]) {
+                        int slot = entrySlot[e];
+                        if (!live[slot] || visited[slot] == visitStamp) {
+                            continue;
+                        }
+                        visited[slot] = visitStamp;
+                        if (slotMeetsBox(slot, minXYZ, maxXYZ)) {
+                            fragments.add(ids[slot]);
+                        }
+                    }
+                }
+            }
+        }
+        return fragments;
+    }
+
+    /**
+     * Writes the index as it is held in memory, so reading it back is a few
+     * bulk copies.
+     */
+    public void write(Path file) throws IOException {
+        if (slotCount > liveCount) {
+            compact();
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ArrayWriter out = new ArrayWriter(channel);
+            out.putInt(MAGIC);
+            out.putInt(FORMAT_VERSION);
+            out.putDouble(cellSize);
+            out.putInt(slotCount);
+            out.putLongs(ids, slotCount);
+            out.putLongs(stamps, slotCount);
+            out.putFloats(bounds, 6 * slotCount);
+            out.putInts(pointStart, slotCount);
+            out.putInts(pointCount, slotCount);
+            out.putInt(pointLength);
+            out.putFloats(points, pointLength);
+            out.putInt(entryCount);
+            out.putInts(entrySlot, entryCount);
+            out.putInts(entryNext, entryCount);
+            cellHeads.write(out);
+            out.flush();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static FragmentSpatialIndex read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ArrayReader in = new ArrayReader(channel, channel.size());
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a fragment index: " + file);
+            }
+            int formatVersion = in.getInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported fragment index format " + formatVersion + ": " + file);
+            }
+            FragmentSpatialIndex index = new FragmentSpatialIndex(in.getDouble());
+            int count = in.getCount(8);
+            index.ensureSlots(count);
+            index.slotCount = count;
+            index.liveCount = count;
+            in.getLongs(index.ids, count);
+            in.getLongs(index.stamps, count);
+            in.getFloats(index.bounds, 6 * count);
+            in.getInts(index.pointStart, count);
+            in.getInts(index.pointCount, count);
+            Arrays.fill(index.live, 0, count, true);
+            int pointLength = in.getCount(4);
+            index.ensurePoints(pointLength);
+            index.pointLength = pointLength;
+            in.getFloats(index.points, pointLength);
+            int entryCount = in.getCount(8);
+            index.ensureEntries(entryCount);
+            index.entryCount = entryCount;
+            in.getInts(index.entrySlot, entryCount);
+            in.getInts(index.entryNext, entryCount);
+            index.cellHeads.read(in);
+            for (int slot = 0; slot < count; ++slot) {
+                index.slotById.put(index.ids[slot], slot);
+            }
+            return index;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt fragment index: " + file, e);
+        }
+    }
+
+    /**
+     * Reads what an ArrayWriter wrote, through one buffer.
+     */
+    private static class ArrayReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        private long unread;
+
+        ArrayReader(FileChannel channel, long size) {
+            this.channel = channel;
+            this.unread = size;
+            buffer.limit(0);
+        }
+
+        int getInt() throws IOException {
+            need(4);
+            return buffer.getInt();
+        }
+
+        double getDouble() throws IOException {
+            need(8);
+            return buffer.getDouble();
+        }
+
+        byte getByte() throws IOException {
+            need(1);
+            return buffer.get();
+        }
+
+        /**
+         * @return an element count, which cannot need more bytes than remain
+         */
+        int getCount(int bytesPerElement) throws IOException {
+            int count = getInt();
+            if (count < 0 || (long) count * bytesPerElement > unread + buffer.remaining()) {
+                throw new IllegalArgumentException("Bad element count " + count);
+            }
+            return count;
+        }
+
+        void getLongs(long[] array, int length) throws IOException {
+            for (int i = 0; i < length; ) {
+                need(8);
+                int n = Math.min(buffer.remaining() / 8, length - i);
+                buffer.asLongBuffer().get(array, i, n);
+                buffer.position(buffer.position() + 8 * n);
+                i += n;
+            }
+        }
+
+        void getInts(int[] array, int length) throws IOException {
+            for (int i = 0; i < length; ) {
+                need(4);
+                int n = Math.min(buffer.remaining() / 4, length - i);
+                buffer.asIntBuffer().get(array, i, n);
+                buffer.position(buffer.position() + 4 * n);
+                i += n;
+            }
+        }
+
+        void getFloats(float[] array, int length) throws IOException {
+            for (int i = 0; i < length; ) {
+                need(4);
+                int n = Math.min(buffer.remaining() / 4, length - i);
+                buffer.asFloatBuffer().get(array, i, n);
+                buffer.position(buffer.position() + 4 * n);
+                i += n;
+            }
+        }
+
+        // Refills the buffer until it holds at least the given bytes
+        private void need(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new IOException("Fragment index is truncated");
+                }
+                unread -= read;
+            }
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Writes primitives and arrays of them to a channel through one buffer.
+     */
+    private static class ArrayWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+        ArrayWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            room(4);
+            buffer.putInt(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            room(8);
+            buffer.putDouble(value);
+        }
+
+        void putLongs(long[] array, int length) throws IOException {
+            for (int i = 0; i < length; ) {
+                room(8);
+                int n = Math.min(buffer.remaining() / 8, length - i);
+                buffer.asLongBuffer().put(array, i, n);
+                buffer.position(buffer.position() + 8 * n);
+                i += n;
+            }
+        }
+
+        void putInts(int[] array, int length) throws IOException {
+            for (int i = 0; i < length; ) {
+                room(4);
+                int n = Math.min(buffer.remaining() / 4, length - i);
+                buffer.asIntBuffer().put(array, i, n);
+                buffer.position(buffer.position() + 4 * n);
+                i += n;
+            }
+        }
+
+        void putFloats(float[] array, int length) throws IOException {
+            for (int i = 0; i < length; ) {
+                room(4);
+                int n = Math.min(buffer.remaining() / 4, length - i);
+                buffer.asFloatBuffer().put(array, i, n);
+                buffer.position(buffer.position() + 4 * n);
+                i += n;
+            }
+        }
+
+        void putBytes(byte[] array) throws IOException {
+            for (int i = 0; i < array.length; ) {
+                room(1);
+                int n = Math.min(buffer.remaining(), array.length - i);
+                buffer.put(array, i, n);
+                i += n;
+            }
+        }
+
+        private void room(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private void add(long id, long stamp, float[] xyz, int length) {
+        int previous = slotById.remove(id);
+        if (previous != NO_ENTRY) {
+            live[previous] = false;
+            liveCount--;
+        }
+
+        ensureSlots(slotCount + 1);
+        ensurePoints(pointLength + length);
+        int slot = slotCount++;
+        ids[slot] = id;
+        stamps[slot] = stamp;
+        live[slot] = true;
+        pointStart[slot] = pointLength;
+        pointCount[slot] = length / 3;
+        System.arraycopy(xyz, 0, points, pointLength, length);
+        pointLength += length;
+        liveCount++;
+        slotById.put(id, slot);
+        indexSlot(slot);
+    }
+
+    // Computes the slot's bounds and adds it to the cell of each of its points
+    private void indexSlot(int slot) {
+        int start = pointStart[slot];
+        int end = start + 3 * pointCount[slot];
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        long[] keys = new long[pointCount[slot]];
+        for (int p = start, k = 0; p < end; p += 3, ++k) {
+            float x = points[p], y = points[p + 1], z = points[p + 2];
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+            keys[k] = cellKey(cell(x), cell(y), cell(z));
+        }
+        int b = 6 * slot;
+        bounds[b] = minX;
+        bounds[b + 1] = minY;
+        bounds[b + 2] = minZ;
+        bounds[b + 3] = maxX;
+        bounds[b + 4] = maxY;
+        bounds[b + 5] = maxZ;
+
+        // Points of a fragment are mostly in few cells; enter each cell once
+        Arrays.sort(keys);
+        for (int k = 0; k < keys.length; ++k) {
+            if (k > 0 && keys[k] == keys[k - 1]) {
+                continue;
+            }
+            ensureEntries(entryCount + 1);
+            int e = entryCount++;
+            entrySlot[e] = slot;
+            entryNext[e] = cellHeads.get(keys[k]);
+            cellHeads.put(keys[k], e);
+        }
+    }
+
+    private boolean slotMeetsBox(int slot, double[] minXYZ, double[] maxXYZ) {
+        int b = 6 * slot;
+        if (bounds[b] > maxXYZ[0] || bounds[b + 3] < minXYZ[0]
+                || bounds[b + 1] > maxXYZ[1] || bounds[b + 4] < minXYZ[1]
+                || bounds[b + 2] > maxXYZ[2] || bounds[b + 5] < minXYZ[2]) {
+            return false;
+        }
+        if (bounds[b] >= minXYZ[0] && bounds[b + 3] <= maxXYZ[0]
+                && bounds[b + 1] >= minXYZ[1] && bounds[b + 4] <= maxXYZ[1]
+                && bounds[b + 2] >= minXYZ[2] && bounds[b + 5] <= maxXYZ[2]) {
+            return true; // box holds the whole fragment
+        }
+        int start = pointStart[slot];
+        int end = start + 3 * pointCount[slot];
+        for (int p = start; p < end; p += 3) {
+            float x = points[p], y = points[p + 1], z = points[p + 2];
+            if (x >= minXYZ[0] && x <= maxXYZ[0]
+                    && y >= minXYZ[1] && y <= maxXYZ[1]
+                    && z >= minXYZ[2] && z <= maxXYZ[2]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Drops dead slots, their points and grid entries
+    private void compact() {
+        int newSlot = 0;
+        int newPointLength = 0;
+        slotById.clear();
+        for (int slot = 0; slot < slotCount; ++slot) {
+            if (!live[slot]) {
+                continue;
+            }
+            int length = 3 * pointCount[slot];
+            System.arraycopy(points, pointStart[slot], points, newPointLength, length);
+            ids[newSlot] = ids[slot];
+            stamps[newSlot] = stamps[slot];
+            live[newSlot] = true;
+            pointStart[newSlot] = newPointLength;
+            pointCount[newSlot] = pointCount[slot];
+            slotById.put(ids[newSlot], newSlot);
+            newPointLength += length;
+            newSlot++;
+        }
+        slotCount = newSlot;
+        pointLength = newPointLength;
+        entryCount = 0;
+        cellHeads.clear();
+        for (int slot = 0; slot < slotCount; ++slot) {
+            indexSlot(slot);
+        }
+    }
+
+    private long cell(double coordinate) {
+        return (long) Math.floor(coordinate / cellSize);
+    }
+
+    // Packs three cell coordinates of 21 bits each
+    private static long cellKey(long cx, long cy, long cz) {
+        return ((cx & 0x1FFFFF) << 42) | ((cy & 0x1FFFFF) << 21) | (cz & 0x1FFFFF);
+    }
+
+    private void startVisit() {
+        if (visited.length < slotCount) {
+            visited = new int[Math.max(slotCount, 2 * visited.length)];
+            visitStamp = 0;
+        }
+        if (++visitStamp == 0) {
+            Arrays.fill(visited, 0);
+            visitStamp = 1;
+        }
+    }
+
+    private void ensureSlots(int capacity) {
+        if (capacity > ids.length) {
+            int size = Math.max(capacity, 2 * ids.length);
+            ids = Arrays.copyOf(ids, size);
+            stamps = Arrays.copyOf(stamps, size);
+            live = Arrays.copyOf(live, size);
+            bounds = Arrays.copyOf(bounds, 6 * size);
+            pointStart = Arrays.copyOf(pointStart, size);
+            pointCount = Arrays.copyOf(pointCount, size);
+        }
+    }
+
+    private void ensurePoints(int capacity) {
+        if (capacity > points.length) {
+            points = Arrays.copyOf(points, Math.max(capacity, 2 * points.length));
+        }
+    }
+
+    private void ensureEntries(int capacity) {
+        if (capacity > entrySlot.length) {
+            int size = Math.max(capacity, 2 * entrySlot.length);
+            entrySlot = Arrays.copyOf(entrySlot, size);
+            entryNext = Arrays.copyOf(entryNext, size);
+        }
+    }
+
+    /**
+     * Open addressed long to int map with linear probing; values are never
+     * negative, and NO_ENTRY stands for a missing key.
+     */
+    private static class LongIntTable {
+        private long[] keys = new long[16];
+        private int[] values = new int[16];
+        private boolean[] used = new boolean[16];
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; used[i]; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return NO_ENTRY;
+        }
+
+        void put(long key, int value) {
+            if (2 * (size + 1) > keys.length) {
+                resize(2 * keys.length);
+            }
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (used[i]) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            used[i] = true;
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        /**
+         * @return the removed value, or NO_ENTRY
+         */
+        int remove(long key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (used[i] && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!used[i]) {
+                return NO_ENTRY;
+            }
+            int value = values[i];
+            // Shift later entries of the probe chain back into the gap
+            int gap = i;
+            for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            used[gap] = false;
+            size--;
+            return value;
+        }
+
+        void clear() {
+            Arrays.fill(used, false);
+            size = 0;
+        }
+
+        void write(ArrayWriter out) throws IOException {
+            out.putInt(keys.length);
+            out.putInt(size);
+            out.putLongs(keys, keys.length);
+            out.putInts(values, values.length);
+            byte[] flags = new byte[used.length];
+            for (int i = 0; i < used.length; ++i) {
+                flags[i] = used[i] ? (byte) 1 : 0;
+            }
+            out.putBytes(flags);
+        }
+
+        void read(ArrayReader in) throws IOException {
+            int capacity = in.getCount(13);
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Bad table capacity " + capacity);
+            }
+            size = in.getInt();
+            keys = new long[capacity];
+            values = new int[capacity];
+            used = new boolean[capacity];
+            in.getLongs(keys, capacity);
+            in.getInts(values, capacity);
+            for (int i = 0; i < capacity; ++i) {
+                used[i] = in.getByte() != 0;
+            }
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new long[capacity];
+            values = new int[capacity];
+            used = new boolean[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+}
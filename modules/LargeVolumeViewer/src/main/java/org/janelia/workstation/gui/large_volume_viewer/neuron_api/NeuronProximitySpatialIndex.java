@@ -1,17 +1,18 @@
 package org.janelia.workstation.gui.large_volume_viewer.neuron_api;
 
-import java.util.HashSet;
-import java.util.List;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import edu.wlu.cs.levy.CG.KDTree;
-import edu.wlu.cs.levy.CG.KeyDuplicateException;
-import edu.wlu.cs.levy.CG.KeyMissingException;
-import edu.wlu.cs.levy.CG.KeySizeException;
+import org.janelia.workstation.core.util.ConsoleProperties;
 import org.janelia.workstation.gui.large_volume_viewer.annotation.NeuronUpdates;
 import org.janelia.model.domain.tiledMicroscope.TmGeoAnnotation;
 import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
+import org.perf4j.StopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,41 +25,81 @@ import org.slf4j.LoggerFactory;
  */
 public class NeuronProximitySpatialIndex {
 
+    private static final double CELL_SIZE = ConsoleProperties.getDouble("console.LVV.fragmentIndex.cellSize", 512);
+    private static final boolean CACHE_INDEX = ConsoleProperties.getBoolean("console.LVV.fragmentIndex.cache", true);
+
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
-    private KDTree<TmGeoAnnotation> index;
+    private FragmentSpatialIndex index;
 
     // Is the index currently in a valid, usable state?
     private AtomicBoolean valid = new AtomicBoolean(false);
 
 
     public NeuronProximitySpatialIndex() {
-        this.index = new KDTree<>(3);
+        this.index = new FragmentSpatialIndex(CELL_SIZE);
         log.trace("Creating spatial index");
     }
 
     /**
-     * Returns all TmGeoAnnotations within the bounding box
+     * Indexes all the fragments at once. If a workspace is given, the index
+     * left by an earlier session for that workspace is read and brought up to
+     * date instead, and saved again for the next one.
+     *
+     * @param workspaceId workspace the fragments belong to, or null to skip
+     * the cached index
+     */
+    public void buildIndex(Collection<TmNeuronMetadata> fragments, Long workspaceId) {
+        StopWatch stopWatch = new StopWatch();
+        Path cacheFile = CACHE_INDEX && workspaceId != null ? getCacheFile(workspaceId) : null;
+        FragmentSpatialIndex cached = null;
+        if (cacheFile != null && Files.exists(cacheFile)) {
+            try {
+                cached = FragmentSpatialIndex.read(cacheFile);
+                if (cached.getCellSize() != CELL_SIZE) {
+                    cached = null;
+                }
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable fragment index {}", cacheFile, e);
+            }
+        }
+
+        int changes;
+        if (cached != null) {
+            index = cached;
+            changes = index.sync(fragments);
+            log.info("Read fragment index for workspace {} and updated {} fragments in {} ms",
+                    workspaceId, changes, stopWatch.getElapsedTime());
+        } else {
+            index = FragmentSpatialIndex.build(fragments, CELL_SIZE);
+            changes = index.size();
+            log.info("Built fragment index of {} fragments in {} ms", index.size(), stopWatch.getElapsedTime());
+        }
+        valid.set(true);
+
+        if (cacheFile != null && changes > 0) {
+            try {
+                Files.createDirectories(cacheFile.getParent());
+                index.write(cacheFile);
+            } catch (IOException e) {
+                log.warn("Could not save fragment index to {}", cacheFile, e);
+            }
+        }
+    }
+
+    private static Path getCacheFile(Long workspaceId) {
+        return Paths.get(ConsoleProperties.getLocalCacheDir(), "lvv-fragment-index", "workspace-" + workspaceId + ".idx");
+    }
+
+    /**
+     * Returns the ids of the fragments with an annotation within the bounding box
      * @param minXYZ minimums for the bounding box
      * @param maxXYZ maximums for the bounding box
      * @return
      */
     public Set<Long> getFragmentIdsInBoundingBox(double[] minXYZ, double[] maxXYZ) {
         if (index==null) return null;
-        try {
-            List<TmGeoAnnotation> points = index.range(minXYZ, maxXYZ);
-            Set<Long> fragments = new HashSet<>();
-            if (points!=null && points.size()>0) {
-                for (TmGeoAnnotation point: points) {
-                    fragments.add(point.getNeuronId());
-                }
-            }
-            return fragments;
-        } 
-        catch (KeySizeException ex) {
-            log.warn("Exception while finding fragments in spatial index", ex);
-            return null;
-        }
+        return index.getFragmentIdsInBoundingBox(minXYZ, maxXYZ);
     }
 
     public NeuronUpdates selectVertex(TmGeoAnnotation annotation) {
@@ -66,36 +107,20 @@ public class NeuronProximitySpatialIndex {
     }
 
     public boolean addToIndex(TmNeuronMetadata neuron) {
-        try {
-            for (TmGeoAnnotation annotation: neuron.getGeoAnnotationMap().values()) {
-                double[] key = new double[]{annotation.getX(), annotation.getY(), annotation.getZ()};
-                index.insert(key, annotation);
-            }
-        }
-        catch (KeySizeException | KeyDuplicateException ex) {
-            return false;
-        }
+        index.add(neuron);
         return true;
     }
 
     public boolean removeFromIndex(TmNeuronMetadata neuron) {
-        try {
-            for (TmGeoAnnotation annotation: neuron.getGeoAnnotationMap().values()) {
-                double[] key = new double[]{annotation.getX(), annotation.getY(), annotation.getZ()};
-                index.delete(key);
-            }
-        }
-        catch (KeySizeException | KeyMissingException ex) {
-            return false;
-        }
-        return true;
+        return index.remove(neuron.getId());
     }
 
     public boolean isValid() {
         return valid.get();
     }
-    
+
     public void clear() {
-        this.index = new KDTree<>(3);
+        index.clear();
+        valid.set(false);
     }
 }
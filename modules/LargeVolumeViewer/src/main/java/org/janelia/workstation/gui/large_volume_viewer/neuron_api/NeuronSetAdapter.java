@@ -490,13 +490,11 @@ public class NeuronSetAdapter
                 if (!deletedVerticesByNeuron.containsKey(neuron))
                     deletedVerticesByNeuron.put(neuron, new ArrayList<NeuronVertex>());
                 deletedVerticesByNeuron.get(neuron).add(vertex);
-
-                LOG.debug("Removing vertex: {}", vertex);
-                spatialIndex.removeFromIndex(vertex);
             }
 
             // Send out one signal per neuron
             for (NeuronModel neuron : deletedVerticesByNeuron.keySet()) {
+                spatialIndex.removeFromIndex(deletedVerticesByNeuron.get(neuron));
                 neuron.getVertexesRemovedObservable().setChanged();
                 Collection<NeuronVertex> deletedVertices = deletedVerticesByNeuron.get(neuron);
                 neuron.getVertexesRemovedObservable().notifyObservers(
@@ -530,10 +528,7 @@ public class NeuronSetAdapter
                 LOG.error("could not find NeuronModel for newly added TmGeoAnnotation");
                 return;
             }
-            for (NeuronVertex neuronVertex : neuronModel.getVertexes()) {
-                LOG.debug("Adding vertex: {}", neuronVertex);
-                spatialIndex.addToIndex(neuronVertex);
-            }
+            spatialIndex.addToIndex(neuronModel.getVertexes());
 
             NeuronVertex reparentedVertex = neuronModel.getVertexForAnnotation(annotation);
 
@@ -662,18 +657,12 @@ public class NeuronSetAdapter
         public void neuronModelChanged(TmNeuronMetadata neuron) {
             // Remove all the existing cached vertices for this neuron
             NeuronModelAdapter neuronModel = innerList.neuronModelForTmNeuron(neuron);
-            for (NeuronVertex neuronVertex : neuronModel.getCachedVertexes()) {
-                LOG.debug("Removing cached vertex: {}", neuronVertex);
-                spatialIndex.removeFromIndex(neuronVertex);
-            }
+            spatialIndex.removeFromIndex(neuronModel.getCachedVertexes());
             // merge in the latest vertices and update the geometry
             neuronModel.mergeNeuronData(neuron);
 
             // Re-create all the vertices for the neuron, and re-add them to the spatial index
-            for (NeuronVertex neuronVertex : neuronModel.getVertexes()) {
-                LOG.debug("Re-adding vertex: {}", neuronVertex);
-                spatialIndex.addToIndex(neuronVertex);
-            }
+            spatialIndex.addToIndex(neuronModel.getVertexes());
 
             //  repaintHorta(neuronModel);
         }
@@ -681,10 +670,7 @@ public class NeuronSetAdapter
         @Override
         public void neuronModelCreated(TmNeuronMetadata neuron) {
             NeuronModelAdapter neuronModel = innerList.neuronModelForTmNeuron(neuron);
-            for (NeuronVertex neuronVertex : neuronModel.getVertexes()) {
-                LOG.debug("Adding vertex: {}", neuronVertex);
-                spatialIndex.addToIndex(neuronVertex);
-            }
+            spatialIndex.addToIndex(neuronModel.getVertexes());
             neuronModel.getGeometryChangeObservable().setChanged();
             getMembershipChangeObservable().setChanged();
             getMembershipChangeObservable().notifyObservers(neuronModel);
@@ -697,11 +683,8 @@ public class NeuronSetAdapter
             NeuronModelAdapter neuronModel = innerList.neuronModelForTmNeuron(neuron);
             if (neuronModel==null)
                 return;
-            for (NeuronVertex neuronVertex : neuronModel.getVertexes()) {
-                LOG.debug("Removing vertex: {}", neuronVertex);
-                spatialIndex.removeFromIndex(neuronVertex);
-                deletedVertices.add(neuronVertex);
-            }
+            deletedVertices.addAll(neuronModel.getVertexes());
+            spatialIndex.removeFromIndex(deletedVertices);
             neuronModel.getVertexesRemovedObservable().setChanged();
             neuronModel.getVertexesRemovedObservable().notifyObservers(
                     new VertexCollectionWithNeuron(deletedVertices, neuronModel));
@@ -785,10 +768,7 @@ public class NeuronSetAdapter
         public void neuronCreated(TmNeuronMetadata neuron) {
             LOG.info("Neuron created: {}", neuron);
             NeuronModelAdapter neuronModel = innerList.neuronModelForTmNeuron(neuron);
-            for (NeuronVertex neuronVertex : neuronModel.getVertexes()) {
-                LOG.debug("Adding vertex: {}", neuronVertex);
-                spatialIndex.addToIndex(neuronVertex);
-            }
+            spatialIndex.addToIndex(neuronModel.getVertexes());
             neuronModel.getGeometryChangeObservable().setChanged();
             getMembershipChangeObservable().setChanged();
             getMembershipChangeObservable().notifyObservers(neuronModel);
@@ -803,9 +783,7 @@ public class NeuronSetAdapter
             for (TmNeuronMetadata neuron : addList) {
                 NeuronModelAdapter neuronModel = innerList.neuronModelForTmNeuron(neuron);
                 neuronModel.getGeometryChangeObservable().setChanged();                
-                for (NeuronVertex neuronVertex : neuronModel.getVertexes()) {
-                    spatialIndex.addToIndex(neuronVertex);
-                }
+                spatialIndex.addToIndex(neuronModel.getVertexes());
                 getMembershipChangeObservable().notifyObservers(neuronModel);
             }
             
@@ -814,11 +792,8 @@ public class NeuronSetAdapter
                 NeuronModelAdapter neuronModel = innerList.neuronModelForTmNeuron(neuron);
                 if (neuron.getOwnerKey().equals(AccessManager.getSubjectKey()))
                     continue;
-                for (NeuronVertex neuronVertex : neuronModel.getVertexes()) {
-                    LOG.debug("Removing vertex: {}", neuronVertex);
-                    spatialIndex.removeFromIndex(neuronVertex);
-                    deletedVertices.add(neuronVertex);
-                }
+                deletedVertices.addAll(neuronModel.getVertexes());
+                spatialIndex.removeFromIndex(deletedVertices);
                 neuronModel.getVertexesRemovedObservable().setChanged();
                 neuronModel.getVertexesRemovedObservable().notifyObservers(
                         new VertexCollectionWithNeuron(deletedVertices, neuronModel));
@@ -837,11 +812,8 @@ public class NeuronSetAdapter
             LOG.info("Neuron deleted: {}", neuron);
             Collection<NeuronVertex> deletedVertices = new ArrayList<>();
             NeuronModelAdapter neuronModel = innerList.neuronModelForTmNeuron(neuron);
-            for (NeuronVertex neuronVertex : neuronModel.getVertexes()) {
-                LOG.debug("Removing vertex: {}", neuronVertex);
-                spatialIndex.removeFromIndex(neuronVertex);
-                deletedVertices.add(neuronVertex);
-            }
+            deletedVertices.addAll(neuronModel.getVertexes());
+            spatialIndex.removeFromIndex(deletedVertices);
             neuronModel.getVertexesRemovedObservable().setChanged();
             neuronModel.getVertexesRemovedObservable().notifyObservers(
                     new VertexCollectionWithNeuron(deletedVertices, neuronModel));
@@ -860,18 +832,12 @@ public class NeuronSetAdapter
             NeuronModelAdapter neuronModel = innerList.neuronModelForTmNeuron(neuron);
             
             // Remove all the existing cached vertices for this neuron
-            for (NeuronVertex neuronVertex : neuronModel.getCachedVertexes()) {
-                LOG.debug("Removing cached vertex: {}", neuronVertex);
-                spatialIndex.removeFromIndex(neuronVertex);
-            }
+            spatialIndex.removeFromIndex(neuronModel.getCachedVertexes());
             // Re-create all the vertices for the neuron, and re-add them to the spatial index
             neuronModel.loadNewVertices(neuron);
             // reload the vertices into the model
             // Re-create all the vertices for the neuron from the neuron passed, not the model (which might be out of date)
-            for (NeuronVertex neuronVertex : neuronModel.getVertexes()) {
-                LOG.debug("Re-adding vertex: {}", neuronVertex);
-                spatialIndex.addToIndex(neuronVertex);
-            }
+            spatialIndex.addToIndex(neuronModel.getVertexes());
 
             // Recreate edges from the updated vertex list
             getMembershipChangeObservable().setChanged();
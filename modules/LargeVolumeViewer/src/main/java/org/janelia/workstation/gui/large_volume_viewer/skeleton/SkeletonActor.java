@@ -33,8 +33,6 @@ import org.janelia.workstation.tracing.SegmentIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Multiset;
-
 /**
  * SkeletonActor is responsible for painting neuron traces in the large volume
  * viewer.
@@ -226,6 +224,8 @@ public class SkeletonActor implements GLActor {
         lineIbo = ix[1];
         pointIbo = ix[2];
         colorBo = ix[3];
+        // new buffer objects start out empty
+        model.invalidateBuffers();
         //
         PassThroughTextureShader.checkGlError(gl, "load anchor texture");
         transparencyDepthMode(gl, true);
@@ -239,8 +239,7 @@ public class SkeletonActor implements GLActor {
             return;
         }
         
-        Multiset<Long> neuronVertexCount = model.getNeuronVertexCount();
-        if (neuronVertexCount.size() <= 0) {
+        if (!model.hasAnchors()) {
             return;
         }
         if (!bIsGlInitialized) {
@@ -280,18 +279,11 @@ public class SkeletonActor implements GLActor {
 
         int n = 0;
 
-        boolean refreshBufferData = model.updateVertices();
-
-        if (refreshBufferData) {
-            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo);
-            gl.glBufferData(GL.GL_ARRAY_BUFFER, model.getCummulativeVertexOffset(), model.getVertexBuffer(), GL.GL_DYNAMIC_DRAW);
-
-            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, colorBo);
-            gl.glBufferData(GL.GL_ARRAY_BUFFER, model.getCummulativeColorOffset(), model.getColorBuffer(), GL.GL_DYNAMIC_DRAW);
-
-            gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, lineIbo);
-            gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, model.getCummulativeLineOffset(), model.getLineBuffer(), GL.GL_DYNAMIC_DRAW);
-        }
+        // only the ranges that changed since the last frame are uploaded
+        model.updateVertices(
+                new GLBufferUploader(gl, GL.GL_ARRAY_BUFFER, vbo),
+                new GLBufferUploader(gl, GL.GL_ARRAY_BUFFER, colorBo),
+                new GLBufferUploader(gl, GL.GL_ELEMENT_ARRAY_BUFFER, lineIbo));
 
         gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
         lineShader.load(gl2);
@@ -420,23 +412,14 @@ public class SkeletonActor implements GLActor {
 
     private synchronized void displayAnchors(GLAutoDrawable glDrawable) {
         // Paint anchors as point sprites
-        Map<Long, IntBuffer> neuronPointIndices = model.getNeuronPointIndices();
-        if (neuronPointIndices == null) {
-            return;
-        }
-        if (neuronPointIndices.size() < 1) {
+        if (!model.hasAnchors()) {
             return;
         }
 
         GL2 gl = glDrawable.getGL().getGL2();
         setupAnchorShaders(gl);
 
-        boolean refreshBufferData = model.updatePoints();
-
-        if (refreshBufferData) {
-            gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, pointIbo);
-            gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, model.getCummulativePointOffset(), model.getPointBuffer(), GL.GL_DYNAMIC_DRAW);
-        }
+        model.updatePoints(new GLBufferUploader(gl, GL.GL_ELEMENT_ARRAY_BUFFER, pointIbo));
 
         gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
         gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
@@ -674,5 +657,32 @@ public class SkeletonActor implements GLActor {
     public void setPointComputer(BasicMouseMode pointComputer) {
         model.setPointComputer(pointComputer);
     }
-    
+
+    /**
+     * Copies the model's buffer changes into one GL buffer object.
+     */
+    private static class GLBufferUploader implements SkeletonBufferManager.Uploader {
+        private final GL gl;
+        private final int target;
+        private final int buffer;
+
+        GLBufferUploader(GL gl, int target, int buffer) {
+            this.gl = gl;
+            this.target = target;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void bufferData(ByteBuffer data) {
+            gl.glBindBuffer(target, buffer);
+            gl.glBufferData(target, data.remaining(), data, GL.GL_DYNAMIC_DRAW);
+        }
+
+        @Override
+        public void bufferSubData(long offset, ByteBuffer data) {
+            gl.glBindBuffer(target, buffer);
+            gl.glBufferSubData(target, offset, data.remaining(), data);
+        }
+    }
+
 }
@@ -1,10 +1,6 @@
 package org.janelia.workstation.gui.large_volume_viewer.skeleton;
 
 import java.awt.Point;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -14,7 +10,6 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.janelia.console.viewerapi.model.NeuronModel;
@@ -42,9 +37,6 @@ import org.perf4j.StopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
-
 /**
  * Created by murphys on 4/14/2016.
  */
@@ -100,23 +92,10 @@ public class SkeletonActorModel {
     private Skeleton skeleton;
     private SkeletonActorStateUpdater updater;
 
-    ByteBuffer vertexByteBuffer;
-    FloatBuffer vertexBuffer;
-
-    ByteBuffer colorByteBuffer;
-    FloatBuffer colorBuffer;
-
-    ByteBuffer lineByteBuffer;
-    IntBuffer lineBuffer;
-
-    ByteBuffer pointByteBuffer;
-    IntBuffer pointBuffer;
-
-    // arrays for draw
-    private Multiset<Long> neuronVertexCount = HashMultiset.create();
-    private Map<Long, FloatBuffer> neuronVertices = new HashMap<>();
-    private Map<Long, FloatBuffer> neuronColors = new HashMap<>();
+    // per-neuron regions of the shared buffers SkeletonActor uploads
+    private final SkeletonBufferManager buffers = new SkeletonBufferManager();
 
+    // what to draw, for the visible neurons
     List<ElementDataOffset> vertexOffsets=new ArrayList<>();
     List<ElementDataOffset> colorOffsets=new ArrayList<>();
     List<ElementDataOffset> lineOffsets=new ArrayList<>();
@@ -125,39 +104,17 @@ public class SkeletonActorModel {
     Map<Long, ElementDataOffset> vertexOffsetMap=new HashMap<>();
     Map<Long, ElementDataOffset> colorOffsetMap=new HashMap<>();
 
-    // Vertex buffer objects need indices
-    private Map<Anchor, Integer> neuronAnchorIndices = new HashMap<>();
-    private Map<Long, Map<Integer, Anchor>> neuronIndexAnchors = new HashMap<>();
-    private Map<Long, IntBuffer> neuronPointIndices = new HashMap<>();
-    private Map<Long, IntBuffer> neuronLineIndices = new HashMap<>();
-
     private Map<Long, Map<SegmentIndex, TracedPathActor>> neuronTracedSegments = new HashMap<>();
 
-    public Map<Long, IntBuffer> getNeuronLineIndices() { return neuronLineIndices; }
-
-    int cummulativeVertexOffset = 0;
-    int cummulativeColorOffset = 0;
-    int cummulativeLineOffset = 0;
-    int cummulativePointOffset=0;
-
     private float zoomedZThicknessInPixels = 0f;
 
-    public int getCummulativeVertexOffset() { return cummulativeVertexOffset; }
-    public ByteBuffer getVertexBuffer() { return vertexByteBuffer; }
-    public int getCummulativeColorOffset() { return cummulativeColorOffset; }
-    public FloatBuffer getColorBuffer() { return colorBuffer; }
-    public int getCummulativeLineOffset() { return cummulativeLineOffset; }
-    public IntBuffer getLineBuffer() { return lineBuffer; }
     public List<ElementDataOffset> getLineOffsets() { return lineOffsets; }
     public List<ElementDataOffset> getVertexOffsets() { return vertexOffsets; }
     public List<ElementDataOffset> getColorOffsets() { return colorOffsets; }
-    public int getCummulativePointOffset() { return cummulativePointOffset; }
-    public IntBuffer getPointBuffer() { return pointBuffer; }
-    public Map<Long, IntBuffer> getNeuronPointIndices() { return neuronPointIndices; }
     public List<ElementDataOffset> getPointOffsets() { return pointOffsets; }
     public Map<Long, ElementDataOffset> getVertexOffsetMap() { return vertexOffsetMap; }
     Map<Long, ElementDataOffset> getColorOffsetMap() { return colorOffsetMap; }
-    public Multiset<Long> getNeuronVertexCount() { return neuronVertexCount; }
+    public synchronized boolean hasAnchors() { return !buffers.isEmpty(); }
     public Map<Long, Map<SegmentIndex, TracedPathActor>> getNeuronTracedSegments() { return neuronTracedSegments; }
 
     public SkeletonActorModel() {
@@ -190,153 +147,70 @@ public class SkeletonActorModel {
         updater.update();
     }
 
-    public synchronized boolean updateVertices() {
-        if (verticesNeedCopy) {
+    /**
+     * Refreshes the line draw lists if anything moved, and uploads the parts
+     * of the vertex, color and line buffers that changed.
+     */
+    public synchronized void updateVertices(SkeletonBufferManager.Uploader vertexUploader,
+            SkeletonBufferManager.Uploader colorUploader, SkeletonBufferManager.Uploader lineUploader) {
+        if (verticesNeedCopy || buffers.takeLayoutChanged()) {
             log.trace("updateVertices - running");
-            
-            cummulativeVertexOffset=0;
-            cummulativeColorOffset=0;
-            cummulativeLineOffset=0;
-
-            vertexOffsets.clear();
-            colorOffsets.clear();
-            lineOffsets.clear();
-
-            vertexOffsetMap.clear();
-            colorOffsetMap.clear();
-
-            List<Long> neuronOrderList = new ArrayList<>();
-
-            //log.info("displayLines2 Check1");
-
-            for (Long neuronID : neuronVertices.keySet()) {
-
-                NeuronStyle neuronStyle=neuronStyles.get(neuronID);
-                
-                if (neuronStyle != null && (!neuronStyle.isVisible())) {
-                    continue;
-                }
-
-                neuronOrderList.add(neuronID);
-
-                int vertexCount=neuronVertexCount.count(neuronID);
-
-                int vertexBufferSize = vertexCount * FLOAT_BYTE_COUNT * VERTEX_FLOAT_COUNT;
-                int colorBufferSize = vertexCount * FLOAT_BYTE_COUNT * COLOR_FLOAT_COUNT;
-
-                int lineBufferSize = 0;
-                IntBuffer lineBuffer=neuronLineIndices.get(neuronID);
-                if (lineBuffer!=null) {
-                    lineBufferSize = lineBuffer.capacity() * INT_BYTE_COUNT;
-                }
-
-                ElementDataOffset vertexOffset = new ElementDataOffset(neuronID, vertexBufferSize, cummulativeVertexOffset);
-                vertexOffsets.add(vertexOffset);
-                vertexOffsetMap.put(neuronID, vertexOffset);
-
-                ElementDataOffset colorOffset = new ElementDataOffset(neuronID, colorBufferSize, cummulativeColorOffset);
-                colorOffsets.add(colorOffset);
-                colorOffsetMap.put(neuronID, colorOffset);
-
-                lineOffsets.add(new ElementDataOffset(neuronID, lineBufferSize, cummulativeLineOffset));
-
-                cummulativeVertexOffset += vertexBufferSize;
-                cummulativeColorOffset += colorBufferSize;
-                cummulativeLineOffset += lineBufferSize;
-            }
-
-            if (vertexByteBuffer==null || vertexByteBuffer.limit()!=cummulativeVertexOffset) {
-                vertexByteBuffer = ByteBuffer.allocateDirect(cummulativeVertexOffset);
-                vertexBuffer = vertexByteBuffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
-            }
-            int n = 0;
-            for (Long neuronID : neuronOrderList) {
-                ElementDataOffset elementDataOffset = vertexOffsets.get(n);
-                FloatBuffer neuronVertexBuffer = neuronVertices.get(elementDataOffset.id);
-                neuronVertexBuffer.rewind();
-                vertexBuffer.put(neuronVertexBuffer);
-                n++;
-            }
-            vertexBuffer.rewind();
-
-            if (colorByteBuffer==null || colorByteBuffer.limit()!=cummulativeColorOffset) {
-                colorByteBuffer = ByteBuffer.allocateDirect(cummulativeColorOffset);
-                colorBuffer = colorByteBuffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
-            }
-            n = 0;
-            for (Long neuronID : neuronOrderList) {
-                ElementDataOffset elementDataOffset = colorOffsets.get(n);
-                FloatBuffer neuronColorBuffer = neuronColors.get(elementDataOffset.id);
-                neuronColorBuffer.rewind();
-                colorBuffer.put(neuronColorBuffer);
-                n++;
-            }
-            colorBuffer.rewind();
-
-            if (lineByteBuffer==null || lineByteBuffer.limit()!=cummulativeLineOffset) {
-                lineByteBuffer = ByteBuffer.allocateDirect(cummulativeLineOffset);
-                lineBuffer = lineByteBuffer.order(ByteOrder.nativeOrder()).asIntBuffer();
-            }
-            n = 0;
-            for (Long neuronID : neuronOrderList) {
-                ElementDataOffset elementDataOffset = lineOffsets.get(n);
-                if (elementDataOffset.size != 0) {
-                    IntBuffer neuronLineBuffer = neuronLineIndices.get(elementDataOffset.id);
-                    lineBuffer.put(neuronLineBuffer);
-                }
-                n++;
-            }
-            lineBuffer.rewind();
+            updateDrawLists();
             verticesNeedCopy=false;
-            return true;
-        } else {
-            return false;
+        }
+        int bytes = buffers.uploadVertices(vertexUploader, colorUploader, lineUploader);
+        if (bytes > 0) {
+            log.trace("updateVertices uploaded {} bytes", bytes);
         }
     }
 
-    public synchronized boolean updatePoints() {
-        if (pointIndicesNeedCopy) {
+    /**
+     * Refreshes the point draw lists if anything moved, and uploads the parts
+     * of the point buffer that changed.
+     */
+    public synchronized void updatePoints(SkeletonBufferManager.Uploader pointUploader) {
+        if (pointIndicesNeedCopy || buffers.takeLayoutChanged()) {
             log.trace("updatePoints - running");
+            updateDrawLists();
+            pointIndicesNeedCopy=false;
+        }
+        buffers.uploadPoints(pointUploader);
+    }
 
-            pointOffsets.clear();
+    /**
+     * The GL buffer objects were recreated; upload everything again.
+     */
+    public synchronized void invalidateBuffers() {
+        buffers.invalidate();
+    }
 
-            cummulativePointOffset=0;
-            List<Long> neuronOrderList=new ArrayList<>();
+    private void updateDrawLists() {
+        vertexOffsets.clear();
+        colorOffsets.clear();
+        lineOffsets.clear();
+        pointOffsets.clear();
+        vertexOffsetMap.clear();
+        colorOffsetMap.clear();
 
-            for (Long neuronID : neuronVertices.keySet()) {
-                NeuronStyle neuronStyle=neuronStyles.get(neuronID);
-                if (neuronStyle != null && !neuronStyle.isVisible()) {
-                    continue;
-                }
-                neuronOrderList.add(neuronID);
-                IntBuffer intBuffer = neuronPointIndices.get(neuronID);
-                if (intBuffer==null) {
-                    log.warn("Missing neuron {} from neuronPointIndices",neuronID);
-                }
-                else {
-                    int pointBufferSize=intBuffer.capacity()*INT_BYTE_COUNT;
-                    pointOffsets.add(new ElementDataOffset(neuronID, pointBufferSize, cummulativePointOffset));
-                    cummulativePointOffset+=pointBufferSize;
-                }
+        for (Long neuronID : buffers.getNeuronIds()) {
+            NeuronStyle neuronStyle=neuronStyles.get(neuronID);
+            if (neuronStyle != null && (!neuronStyle.isVisible())) {
+                continue;
             }
+            int vertexCount=buffers.getAnchorCount(neuronID);
+            long vertexOffset=buffers.getVertexOffset(neuronID);
 
-            int n=0;
-            if (pointByteBuffer==null || pointByteBuffer.limit()!=cummulativePointOffset) {
-                pointByteBuffer = ByteBuffer.allocateDirect(cummulativePointOffset);
-                pointBuffer = pointByteBuffer.order(ByteOrder.nativeOrder()).asIntBuffer();
-            }
-            for (Long neuronID : neuronOrderList) {
-                ElementDataOffset elementDataOffset = pointOffsets.get(n);
-                IntBuffer neuronPointBuffer=neuronPointIndices.get(elementDataOffset.id);
-                neuronPointBuffer.rewind();
-                pointBuffer.put(neuronPointBuffer);
-                n++;
-            }
-            pointBuffer.rewind();
-            pointIndicesNeedCopy=false;
-            return true;
-        } else {
-            return false;
+            ElementDataOffset vertexElementOffset = new ElementDataOffset(neuronID, vertexCount * FLOAT_BYTE_COUNT * VERTEX_FLOAT_COUNT, vertexOffset);
+            vertexOffsets.add(vertexElementOffset);
+            vertexOffsetMap.put(neuronID, vertexElementOffset);
+
+            // colors share the vertex layout
+            ElementDataOffset colorElementOffset = new ElementDataOffset(neuronID, vertexCount * FLOAT_BYTE_COUNT * COLOR_FLOAT_COUNT, vertexOffset);
+            colorOffsets.add(colorElementOffset);
+            colorOffsetMap.put(neuronID, colorElementOffset);
+
+            lineOffsets.add(new ElementDataOffset(neuronID, buffers.getLineBytes(neuronID), buffers.getLineOffset(neuronID)));
+            pointOffsets.add(new ElementDataOffset(neuronID, buffers.getPointBytes(neuronID), buffers.getPointOffset(neuronID)));
         }
     }
 
@@ -344,10 +218,7 @@ public class SkeletonActorModel {
         if (anchor == null) {
             return -1;
         }
-        if (neuronAnchorIndices.containsKey(anchor)) {
-            return neuronAnchorIndices.get(anchor);
-        }
-        return -1;
+        return buffers.getSlot(anchor.getNeuronID(), anchor.getGuid());
     }
 
     public void changeNeuronStyle(TmNeuronMetadata neuron, NeuronStyle style) {
@@ -409,82 +280,25 @@ public class SkeletonActorModel {
         }
 
         // we do the point update in this method, then call out
-        //  to other methods for the lines and paths; no reason we
-        //  couldn't also refactor this into its own method, too
-        // clear out the maps first
-        neuronVertexCount.clear();
-        neuronVertices.clear();
-        neuronColors.clear();
-        // first, how many vertices per neuron; then, fill the buffers (one per neuron)
+        //  to other methods for the lines and paths; each anchor keeps its
+        //  slot in its neuron's region of the shared buffers, and only the
+        //  values that changed are written (and later uploaded)
         Collection<Anchor> anchors = getAnchorsSafe();
-        for (Anchor anchor : anchors) {
-            neuronVertexCount.add(anchor.getNeuronID());
-        }
-        for (Long neuronID : neuronVertexCount.elementSet()) {
-            int vertexCount=neuronVertexCount.count(neuronID);
-            ByteBuffer tempBytes = ByteBuffer.allocateDirect(vertexCount * FLOAT_BYTE_COUNT * VERTEX_FLOAT_COUNT);
-            tempBytes.order(ByteOrder.nativeOrder());
-            neuronVertices.put(neuronID, tempBytes.asFloatBuffer());
-            neuronVertices.get(neuronID).rewind();
-
-            tempBytes = ByteBuffer.allocateDirect(vertexCount * FLOAT_BYTE_COUNT * COLOR_FLOAT_COUNT);
-            tempBytes.order(ByteOrder.nativeOrder());
-            neuronColors.put(neuronID, tempBytes.asFloatBuffer());
-            neuronColors.get(neuronID).rewind();
-        }
-
-        neuronAnchorIndices.clear();
-        neuronIndexAnchors.clear();
-        Map<Long, Integer> neuronVertexIndex = new HashMap<>();
-        Integer currentVertexIndex;
         NeuronStyle style;
+        buffers.beginUpdate();
         for (Anchor anchor : anchors) {
             Long neuronID = anchor.getNeuronID();
 
-            Vec3 xyz = anchor.getLocation();
-            FloatBuffer vertexBuffer=neuronVertices.get(neuronID);
-            vertexBuffer.put((float) xyz.getX());
-            vertexBuffer.put((float) xyz.getY());
-            vertexBuffer.put((float) xyz.getZ());
-
             style=neuronStyles.get(neuronID);
             if (style==null) {
                 style = NeuronStyle.getStyleForNeuron(neuronID);
             }
-            float[] styleColorArr=style.getColorAsFloatArray();
-            FloatBuffer colorBuffer=neuronColors.get(neuronID);
-            colorBuffer.put(styleColorArr);
-
-            currentVertexIndex=neuronVertexIndex.get(neuronID);
-            if (currentVertexIndex==null) {
-                currentVertexIndex=0;
-                neuronVertexIndex.put(neuronID, currentVertexIndex);
-            }
-            neuronAnchorIndices.put(anchor, currentVertexIndex);
-
-            Map<Integer, Anchor> indexAnchorMap=neuronIndexAnchors.get(neuronID);
-            if (indexAnchorMap==null) {
-                indexAnchorMap=new HashMap<>();
-                neuronIndexAnchors.put(neuronID, indexAnchorMap);
-            }
-            indexAnchorMap.put(currentVertexIndex, anchor);
-
-            neuronVertexIndex.put(neuronID, currentVertexIndex + 1);
-        }
-
-        neuronPointIndices.clear();
-        for (Long neuronID : neuronVertexIndex.keySet()) {
-            // recall that the last value neuronVertexIndex takes is the
-            //  number of points:
-            ByteBuffer tempBytes = ByteBuffer.allocateDirect(neuronVertexIndex.get(neuronID) * INT_BYTE_COUNT);
-            tempBytes.order(ByteOrder.nativeOrder());
-            neuronPointIndices.put(neuronID, tempBytes.asIntBuffer());
-            neuronPointIndices.get(neuronID).rewind();
-        }
-        for (Anchor anchor : anchors) {
-            int i1 = neuronAnchorIndices.get(anchor);
-            neuronPointIndices.get(anchor.getNeuronID()).put(i1);
+            Vec3 xyz = anchor.getLocation();
+            buffers.placeAnchor(neuronID, anchor.getGuid(),
+                    (float) xyz.getX(), (float) xyz.getY(), (float) xyz.getZ(),
+                    style.getColorAsFloatArray());
         }
+        buffers.endUpdate();
 
         pointIndicesNeedCopy=true;
 
@@ -532,10 +346,7 @@ public class SkeletonActorModel {
                 continue;
             }
             for (Anchor neighbor : anchor.getNeighbors()) {
-                Integer i2=neuronAnchorIndices.get(neighbor);
-                if (i2==null) {
-                    i2=-1;
-                }
+                int i2 = getIndexForAnchor(neighbor);
                 if (i2 < 0) {
                     continue;
                 }
@@ -552,26 +363,26 @@ public class SkeletonActorModel {
                     }
                 }
                 if (!tempLineIndices.containsKey(neuronID)) {
-                    tempLineIndices.put(neuronID, new Vector<Integer>());
+                    tempLineIndices.put(neuronID, new ArrayList<Integer>());
                 }
                 tempLineIndices.get(neuronID).add(i1);
                 tempLineIndices.get(neuronID).add(i2);
             }
         }
 
-        // loop over neurons and fill the arrays
-        neuronLineIndices.clear();
-        for (Long neuronID : tempLineIndices.keySet()) {
-            ByteBuffer lineBytes = ByteBuffer.allocateDirect(tempLineIndices.get(neuronID).size() * INT_BYTE_COUNT);
-            lineBytes.order(ByteOrder.nativeOrder());
-            IntBuffer lineIndexBuffer=lineBytes.asIntBuffer();
-            neuronLineIndices.put(neuronID, lineIndexBuffer);
-            lineIndexBuffer.rewind();
-            for (int i : tempLineIndices.get(neuronID)) // fill actual int buffer
-            {
-                lineIndexBuffer.put(i);
+        // loop over neurons and fill their regions; neurons without lines
+        //  are written as empty
+        int[] lineIndices = new int[0];
+        for (Long neuronID : buffers.getNeuronIds()) {
+            List<Integer> neuronLines = tempLineIndices.get(neuronID);
+            int count = neuronLines == null ? 0 : neuronLines.size();
+            if (lineIndices.length < count) {
+                lineIndices = new int[count];
             }
-            lineIndexBuffer.rewind();
+            for (int i = 0; i < count; i++) {
+                lineIndices[i] = neuronLines.get(i);
+            }
+            buffers.setLines(neuronID, lineIndices, count);
         }
         verticesNeedCopy=true;
     }
@@ -681,11 +492,9 @@ public class SkeletonActorModel {
         if (index < 0) {
             return;
         }
-        int offset = index * VERTEX_FLOAT_COUNT;
-        for (int i = 0; i < 3; ++i) {
-            neuronVertices.get(dragAnchor.getNeuronID()).put(offset + i, (float) (double) location.get(i));
-        }
-        updateLines(null);
+        // lines refer to the anchor by index, so they need no update
+        buffers.moveAnchor(dragAnchor.getNeuronID(), dragAnchor.getGuid(),
+                (float) location.getX(), (float) location.getY(), (float) location.getZ());
         updater.update();
     }
 
@@ -0,0 +1,696 @@
+package org.janelia.workstation.gui.large_volume_viewer.skeleton;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CPU side of the buffers SkeletonActor draws anchors and lines from.
+ * <p>
+ * Each neuron gets a region in each of four shared, growable direct buffers:
+ * vertex positions and colors, with one entry per anchor slot, then point
+ * indices and line indices. Anchors keep their slot from one update to the
+ * next, so a moved anchor rewrites one vertex. Regions have room to grow, so
+ * most edits stay in place. Every write is compared with what the buffer
+ * already holds, so only byte ranges that really changed are uploaded.
+ * Freed regions are reused. A buffer is compacted, at the cost of one full
+ * upload, only once more of it is free than in use.
+ * <p>
+ * An update places every anchor to draw, neuron by neuron, between
+ * beginUpdate() and endUpdate(); neurons and anchors that were not placed are
+ * dropped. Line indices follow with setLines(). Not thread safe.
+ */
+public class SkeletonBufferManager {
+
+    private static final int FLOAT_BYTES = 4;
+    private static final int INT_BYTES = 4;
+    private static final int VERTEX_BYTES = 3 * FLOAT_BYTES; // x, y, z or r, g, b
+
+    // Free units a buffer may hold before it is compacted, beyond its live units
+    private static final int MIN_COMPACT_UNITS = 16384;
+    // Freed slots a neuron may hold before its anchors are renumbered, beyond its live slots
+    private static final int MIN_RENUMBER_SLOTS = 32;
+
+    /**
+     * Copies buffer contents to the GPU.
+     */
+    public interface Uploader {
+        /**
+         * Replaces the whole buffer object; data runs from 0 to its limit.
+         */
+        void bufferData(ByteBuffer data);
+
+        /**
+         * Replaces part of the buffer object; data runs from its position to
+         * its limit, and goes to the given byte offset.
+         */
+        void bufferSubData(long offset, ByteBuffer data);
+    }
+
+    /**
+     * A growable direct buffer, and the byte ranges changed in it since it was
+     * last uploaded. Its contents always match the GPU's copy outside those
+     * ranges, so writing back the same value costs nothing.
+     */
+    static final class DirtyBuffer {
+
+        // Dirty ranges closer than this are uploaded together
+        private static final int MERGE_GAP = 4096;
+        private static final int MAX_RANGES = 4096;
+
+        private ByteBuffer bytes;
+        private boolean respecify = true;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int rangeCount = 0;
+
+        DirtyBuffer() {
+            this.bytes = allocate(0);
+        }
+
+        static ByteBuffer allocate(int capacity) {
+            return ByteBuffer.allocateDirect(Math.max(capacity, 64)).order(ByteOrder.nativeOrder());
+        }
+
+        ByteBuffer bytes() {
+            return bytes;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity <= bytes.capacity()) {
+                return;
+            }
+            ByteBuffer old = bytes.duplicate();
+            old.clear();
+            ByteBuffer grown = allocate(Math.max(capacity, bytes.capacity() * 2));
+            grown.put(old);
+            grown.clear();
+            replace(grown);
+        }
+
+        void replace(ByteBuffer contents) {
+            bytes = contents;
+            respecify = true;
+            rangeCount = 0;
+        }
+
+        void invalidate() {
+            respecify = true;
+            rangeCount = 0;
+        }
+
+        void writeFloats(int offset, float[] values, int from, int count) {
+            int first = -1;
+            int last = -1;
+            for (int i = 0; i < count; ++i) {
+                int at = offset + FLOAT_BYTES * i;
+                float value = values[from + i];
+                if (Float.floatToRawIntBits(bytes.getFloat(at)) != Float.floatToRawIntBits(value)) {
+                    bytes.putFloat(at, value);
+                    if (first < 0) {
+                        first = i;
+                    }
+                    last = i;
+                }
+            }
+            if (first >= 0) {
+                markDirty(offset + FLOAT_BYTES * first, offset + FLOAT_BYTES * (last + 1));
+            }
+        }
+
+        void writeInts(int offset, int[] values, int from, int count) {
+            int first = -1;
+            int last = -1;
+            for (int i = 0; i < count; ++i) {
+                int at = offset + INT_BYTES * i;
+                int value = values[from + i];
+                if (bytes.getInt(at) != value) {
+                    bytes.putInt(at, value);
+                    if (first < 0) {
+                        first = i;
+                    }
+                    last = i;
+                }
+            }
+            if (first >= 0) {
+                markDirty(offset + INT_BYTES * first, offset + INT_BYTES * (last + 1));
+            }
+        }
+
+        // Copies within the buffer, to a region that does not overlap the source
+        void copy(int from, int to, int length) {
+            if (length <= 0) {
+                return;
+            }
+            ByteBuffer source = bytes.duplicate();
+            source.limit(from + length).position(from);
+            ByteBuffer target = bytes.duplicate();
+            target.position(to);
+            target.put(source);
+            markDirty(to, to + length);
+        }
+
+        void markDirty(int start, int end) {
+            if (respecify) {
+                return;
+            }
+            if (rangeCount == starts.length) {
+                if (rangeCount >= MAX_RANGES) {
+                    coalesce(Integer.MAX_VALUE);
+                } else {
+                    starts = Arrays.copyOf(starts, 2 * rangeCount);
+                    ends = Arrays.copyOf(ends, 2 * rangeCount);
+                }
+            }
+            starts[rangeCount] = start;
+            ends[rangeCount] = end;
+            ++rangeCount;
+        }
+
+        // Sorts the ranges and merges those closer than the gap
+        private void coalesce(int gap) {
+            long[] ranges = new long[rangeCount];
+            for (int i = 0; i < rangeCount; ++i) {
+                ranges[i] = ((long) starts[i] << 32) | ends[i];
+            }
+            Arrays.sort(ranges);
+            int merged = 0;
+            for (long range : ranges) {
+                int start = (int) (range >>> 32);
+                int end = (int) range;
+                if (merged > 0 && start - ends[merged - 1] <= gap) {
+                    ends[merged - 1] = Math.max(ends[merged - 1], end);
+                } else {
+                    starts[merged] = start;
+                    ends[merged] = end;
+                    ++merged;
+                }
+            }
+            rangeCount = merged;
+        }
+
+        /**
+         * @return bytes uploaded
+         */
+        int upload(Uploader uploader) {
+            int uploaded = 0;
+            if (respecify) {
+                ByteBuffer data = bytes.duplicate();
+                data.clear();
+                uploader.bufferData(data);
+                uploaded = data.capacity();
+            } else if (rangeCount > 0) {
+                coalesce(MERGE_GAP);
+                for (int i = 0; i < rangeCount; ++i) {
+                    ByteBuffer data = bytes.duplicate();
+                    data.limit(ends[i]).position(starts[i]);
+                    uploader.bufferSubData(starts[i], data);
+                    uploaded += ends[i] - starts[i];
+                }
+            }
+            respecify = false;
+            rangeCount = 0;
+            return uploaded;
+        }
+    }
+
+    /**
+     * First fit allocation of units within a buffer, merging freed neighbours.
+     */
+    static final class Allocator {
+        private final TreeMap<Integer, Integer> free = new TreeMap<>(); // offset to length
+        private int end = 0;
+        private int freeUnits = 0;
+
+        int allocate(int units) {
+            for (Map.Entry<Integer, Integer> entry : free.entrySet()) {
+                int offset = entry.getKey();
+                int length = entry.getValue();
+                if (length >= units) {
+                    free.remove(offset);
+                    if (length > units) {
+                        free.put(offset + units, length - units);
+                    }
+                    freeUnits -= units;
+                    return offset;
+                }
+            }
+            int offset = end;
+            end += units;
+            return offset;
+        }
+
+        void release(int offset, int units) {
+            if (units <= 0) {
+                return;
+            }
+            int start = offset;
+            int length = units;
+            Map.Entry<Integer, Integer> before = free.floorEntry(offset);
+            if (before != null && before.getKey() + before.getValue() == offset) {
+                free.remove(before.getKey());
+                start = before.getKey();
+                length += before.getValue();
+                freeUnits -= before.getValue();
+            }
+            Integer after = free.remove(offset + units);
+            if (after != null) {
+                length += after;
+                freeUnits -= after;
+            }
+            if (start + length == end) {
+                end = start;
+            } else {
+                free.put(start, length);
+                freeUnits += length;
+            }
+        }
+
+        int getEnd() {
+            return end;
+        }
+
+        int getFreeUnits() {
+            return freeUnits;
+        }
+
+        void reset(int end) {
+            free.clear();
+            freeUnits = 0;
+            this.end = end;
+        }
+    }
+
+    // Units allocated to a neuron in one buffer, and how many are in use
+    private static final class Region {
+        int offset = -1;
+        int capacity = 0;
+        int count = 0;
+    }
+
+    private static final class NeuronRegions {
+        final Map<Long, Integer> slotByGuid = new HashMap<>();
+        int[] slotStamps = new int[16]; // update that last placed each slot, 0 when free
+        int[] freeSlots = new int[16];
+        int freeSlotCount = 0;
+        int slotCount = 0;
+        int stamp = 0;
+        int placedCount = 0;
+        boolean renumber = false;
+        final Region vertices = new Region(); // count unused; slotCount instead
+        final Region points = new Region();
+        final Region lines = new Region();
+
+        int newSlot() {
+            if (freeSlotCount > 0) {
+                return freeSlots[--freeSlotCount];
+            }
+            if (slotCount == slotStamps.length) {
+                slotStamps = Arrays.copyOf(slotStamps, 2 * slotCount);
+            }
+            return slotCount++;
+        }
+
+        void freeSlot(int slot) {
+            slotStamps[slot] = 0;
+            if (freeSlotCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, 2 * freeSlotCount);
+            }
+            freeSlots[freeSlotCount++] = slot;
+        }
+    }
+
+    private final Map<Long, NeuronRegions> neurons = new LinkedHashMap<>();
+
+    private final Allocator vertexAllocator = new Allocator(); // in slots, shared by positions and colors
+    private final Allocator pointAllocator = new Allocator(); // in indices
+    private final Allocator lineAllocator = new Allocator(); // in indices
+    private final DirtyBuffer vertices = new DirtyBuffer();
+    private final DirtyBuffer colors = new DirtyBuffer();
+    private final DirtyBuffer points = new DirtyBuffer();
+    private final DirtyBuffer lines = new DirtyBuffer();
+
+    private int updateStamp = 0;
+    private boolean layoutChanged = true;
+    private int compactionCount = 0;
+
+    private final float[] xyz = new float[3];
+    private int[] indexScratch = new int[256];
+    private long[] pairScratch = new long[128];
+
+    public void beginUpdate() {
+        if (++updateStamp == 0) {
+            ++updateStamp; // 0 marks free slots
+        }
+    }
+
+    /**
+     * Writes an anchor's position and color, giving it a slot in its neuron
+     * if it has none.
+     *
+     * @return the anchor's slot, its index within its neuron's vertices
+     */
+    public int placeAnchor(Long neuronId, Long guid, float x, float y, float z, float[] rgb) {
+        NeuronRegions neuron = neurons.get(neuronId);
+        if (neuron == null) {
+            neuron = new NeuronRegions();
+            neurons.put(neuronId, neuron);
+            layoutChanged = true;
+        }
+        if (neuron.stamp != updateStamp) {
+            neuron.stamp = updateStamp;
+            neuron.placedCount = 0;
+            if (neuron.renumber) {
+                neuron.renumber = false;
+                neuron.slotByGuid.clear();
+                Arrays.fill(neuron.slotStamps, 0);
+                neuron.freeSlotCount = 0;
+                neuron.slotCount = 0;
+            }
+        }
+        Integer slot = neuron.slotByGuid.get(guid);
+        if (slot == null) {
+            slot = neuron.newSlot();
+            neuron.slotByGuid.put(guid, slot);
+            if (neuron.slotCount > neuron.vertices.capacity) {
+                growVertices(neuron, slot);
+            }
+        }
+        if (neuron.slotStamps[slot] != updateStamp) {
+            neuron.slotStamps[slot] = updateStamp;
+            neuron.placedCount++;
+        }
+        xyz[0] = x;
+        xyz[1] = y;
+        xyz[2] = z;
+        int offset = VERTEX_BYTES * (neuron.vertices.offset + slot);
+        vertices.writeFloats(offset, xyz, 0, 3);
+        colors.writeFloats(offset, rgb, 0, 3);
+        return slot;
+    }
+
+    // Moves a neuron's vertices to a larger region; the new slot has no data yet
+    private void growVertices(NeuronRegions neuron, int newSlot) {
+        Region region = neuron.vertices;
+        int capacity = withHeadroom(neuron.slotCount);
+        int offset = vertexAllocator.allocate(capacity);
+        vertices.ensureCapacity(VERTEX_BYTES * vertexAllocator.getEnd());
+        colors.ensureCapacity(VERTEX_BYTES * vertexAllocator.getEnd());
+        if (region.capacity > 0) {
+            int used = VERTEX_BYTES * newSlot; // slots are only appended when none are free
+            vertices.copy(VERTEX_BYTES * region.offset, VERTEX_BYTES * offset, used);
+            colors.copy(VERTEX_BYTES * region.offset, VERTEX_BYTES * offset, used);
+            vertexAllocator.release(region.offset, region.capacity);
+        }
+        region.offset = offset;
+        region.capacity = capacity;
+        layoutChanged = true;
+    }
+
+    /**
+     * Drops the neurons and anchors that were not placed since beginUpdate(),
+     * and writes each neuron's point indices.
+     */
+    public void endUpdate() {
+        Iterator<NeuronRegions> it = neurons.values().iterator();
+        while (it.hasNext()) {
+            NeuronRegions neuron = it.next();
+            if (neuron.stamp != updateStamp) {
+                vertexAllocator.release(neuron.vertices.offset, neuron.vertices.capacity);
+                pointAllocator.release(neuron.points.offset, neuron.points.capacity);
+                lineAllocator.release(neuron.lines.offset, neuron.lines.capacity);
+                it.remove();
+                layoutChanged = true;
+                continue;
+            }
+            if (neuron.placedCount < neuron.slotByGuid.size()) {
+                Iterator<Integer> slots = neuron.slotByGuid.values().iterator();
+                while (slots.hasNext()) {
+                    int slot = slots.next();
+                    if (neuron.slotStamps[slot] != updateStamp) {
+                        neuron.freeSlot(slot);
+                        slots.remove();
+                    }
+                }
+            }
+            // Points in slot order, so they only change where anchors do
+            int count = 0;
+            int[] indices = indexScratch(neuron.slotByGuid.size());
+            for (int slot = 0; slot < neuron.slotCount; ++slot) {
+                if (neuron.slotStamps[slot] != 0) {
+                    indices[count++] = slot;
+                }
+            }
+            writeIndices(neuron.points, pointAllocator, points, indices, count);
+            if (neuron.freeSlotCount > Math.max(MIN_RENUMBER_SLOTS, count)) {
+                neuron.renumber = true;
+            }
+        }
+        if (needsCompaction(vertexAllocator)) {
+            compactVertices();
+        }
+        if (needsCompaction(pointAllocator)) {
+            compactIndices(pointAllocator, points, true);
+        }
+    }
+
+    /**
+     * Writes a neuron's line indices, as pairs of slots. Pairs are written
+     * in sorted order, so the order they are given in does not matter.
+     */
+    public void setLines(Long neuronId, int[] slotPairs, int count) {
+        NeuronRegions neuron = neurons.get(neuronId);
+        if (neuron == null) {
+            return;
+        }
+        int pairCount = count / 2;
+        if (pairScratch.length < pairCount) {
+            pairScratch = new long[Math.max(pairCount, 2 * pairScratch.length)];
+        }
+        for (int i = 0; i < pairCount; ++i) {
+            pairScratch[i] = ((long) slotPairs[2 * i] << 32) | (slotPairs[2 * i + 1] & 0xffffffffL);
+        }
+        Arrays.sort(pairScratch, 0, pairCount);
+        int[] indices = indexScratch(2 * pairCount);
+        for (int i = 0; i < pairCount; ++i) {
+            indices[2 * i] = (int) (pairScratch[i] >>> 32);
+            indices[2 * i + 1] = (int) pairScratch[i];
+        }
+        writeIndices(neuron.lines, lineAllocator, lines, indices, 2 * pairCount);
+        if (needsCompaction(lineAllocator)) {
+            compactIndices(lineAllocator, lines, false);
+        }
+    }
+
+    private void writeIndices(Region region, Allocator allocator, DirtyBuffer buffer, int[] values, int count) {
+        if (count > region.capacity) {
+            int capacity = withHeadroom(count);
+            int offset = allocator.allocate(capacity);
+            buffer.ensureCapacity(INT_BYTES * allocator.getEnd());
+            allocator.release(region.offset, region.capacity);
+            region.offset = offset;
+            region.capacity = capacity;
+            layoutChanged = true;
+        }
+        if (count != region.count) {
+            region.count = count;
+            layoutChanged = true;
+        }
+        if (count > 0) {
+            buffer.writeInts(INT_BYTES * region.offset, values, 0, count);
+        }
+    }
+
+    /**
+     * Changes the position of a placed anchor without an update, as while
+     * dragging it.
+     *
+     * @return false if the anchor has no slot
+     */
+    public boolean moveAnchor(Long neuronId, Long guid, float x, float y, float z) {
+        int slot = getSlot(neuronId, guid);
+        if (slot < 0) {
+            return false;
+        }
+        xyz[0] = x;
+        xyz[1] = y;
+        xyz[2] = z;
+        vertices.writeFloats(VERTEX_BYTES * (neurons.get(neuronId).vertices.offset + slot), xyz, 0, 3);
+        return true;
+    }
+
+    /**
+     * @return the anchor's index within its neuron's vertices, or -1
+     */
+    public int getSlot(Long neuronId, Long guid) {
+        NeuronRegions neuron = neurons.get(neuronId);
+        if (neuron == null) {
+            return -1;
+        }
+        Integer slot = neuron.slotByGuid.get(guid);
+        return slot == null ? -1 : slot;
+    }
+
+    private static int withHeadroom(int count) {
+        return count + count / 2 + 8;
+    }
+
+    private int[] indexScratch(int count) {
+        if (indexScratch.length < count) {
+            indexScratch = new int[Math.max(count, 2 * indexScratch.length)];
+        }
+        return indexScratch;
+    }
+
+    private static boolean needsCompaction(Allocator allocator) {
+        int free = allocator.getFreeUnits();
+        return free > MIN_COMPACT_UNITS && free > allocator.getEnd() - free;
+    }
+
+    private void compactVertices() {
+        int end = 0;
+        for (NeuronRegions neuron : neurons.values()) {
+            end += neuron.vertices.capacity;
+        }
+        ByteBuffer newVertices = DirtyBuffer.allocate(VERTEX_BYTES * end);
+        ByteBuffer newColors = DirtyBuffer.allocate(VERTEX_BYTES * end);
+        int offset = 0;
+        for (NeuronRegions neuron : neurons.values()) {
+            Region region = neuron.vertices;
+            copyRegion(vertices.bytes(), newVertices, VERTEX_BYTES * region.offset, VERTEX_BYTES * offset, VERTEX_BYTES * neuron.slotCount);
+            copyRegion(colors.bytes(), newColors, VERTEX_BYTES * region.offset, VERTEX_BYTES * offset, VERTEX_BYTES * neuron.slotCount);
+            region.offset = offset;
+            offset += region.capacity;
+        }
+        vertices.replace(newVertices);
+        colors.replace(newColors);
+        vertexAllocator.reset(end);
+        layoutChanged = true;
+        compactionCount++;
+    }
+
+    private void compactIndices(Allocator allocator, DirtyBuffer buffer, boolean pointRegions) {
+        int end = 0;
+        for (NeuronRegions neuron : neurons.values()) {
+            end += (pointRegions ? neuron.points : neuron.lines).capacity;
+        }
+        ByteBuffer compacted = DirtyBuffer.allocate(INT_BYTES * end);
+        int offset = 0;
+        for (NeuronRegions neuron : neurons.values()) {
+            Region region = pointRegions ? neuron.points : neuron.lines;
+            if (region.capacity == 0) {
+                continue;
+            }
+            copyRegion(buffer.bytes(), compacted, INT_BYTES * region.offset, INT_BYTES * offset, INT_BYTES * region.count);
+            region.offset = offset;
+            offset += region.capacity;
+        }
+        buffer.replace(compacted);
+        allocator.reset(end);
+        layoutChanged = true;
+        compactionCount++;
+    }
+
+    private static void copyRegion(ByteBuffer from, ByteBuffer to, int fromOffset, int toOffset, int length) {
+        ByteBuffer source = from.duplicate();
+        source.limit(fromOffset + length).position(fromOffset);
+        ByteBuffer target = to.duplicate();
+        target.position(toOffset);
+        target.put(source);
+    }
+
+    /**
+     * Uploads what changed in the position, color and line buffers.
+     *
+     * @return bytes uploaded
+     */
+    public int uploadVertices(Uploader vertexUploader, Uploader colorUploader, Uploader lineUploader) {
+        return vertices.upload(vertexUploader) + colors.upload(colorUploader) + lines.upload(lineUploader);
+    }
+
+    /**
+     * Uploads what changed in the point buffer.
+     *
+     * @return bytes uploaded
+     */
+    public int uploadPoints(Uploader pointUploader) {
+        return points.upload(pointUploader);
+    }
+
+    /**
+     * Makes the next uploads respecify every buffer, as after the GL buffer
+     * objects were recreated.
+     */
+    public void invalidate() {
+        vertices.invalidate();
+        colors.invalidate();
+        points.invalidate();
+        lines.invalidate();
+    }
+
+    /**
+     * True if regions moved or changed size since the last call, so offsets
+     * and counts read for drawing are out of date.
+     */
+    public boolean takeLayoutChanged() {
+        boolean changed = layoutChanged;
+        layoutChanged = false;
+        return changed;
+    }
+
+    public boolean isEmpty() {
+        return neurons.isEmpty();
+    }
+
+    public Collection<Long> getNeuronIds() {
+        return neurons.keySet();
+    }
+
+    public int getAnchorCount(Long neuronId) {
+        NeuronRegions neuron = neurons.get(neuronId);
+        return neuron == null ? 0 : neuron.slotByGuid.size();
+    }
+
+    /**
+     * Byte offset of the neuron's first vertex, in both the position and the
+     * color buffer.
+     */
+    public long getVertexOffset(Long neuronId) {
+        return (long) VERTEX_BYTES * neurons.get(neuronId).vertices.offset;
+    }
+
+    public long getPointOffset(Long neuronId) {
+        return (long) INT_BYTES * Math.max(neurons.get(neuronId).points.offset, 0);
+    }
+
+    public int getPointBytes(Long neuronId) {
+        return INT_BYTES * neurons.get(neuronId).points.count;
+    }
+
+    public long getLineOffset(Long neuronId) {
+        return (long) INT_BYTES * Math.max(neurons.get(neuronId).lines.offset, 0);
+    }
+
+    public int getLineBytes(Long neuronId) {
+        return INT_BYTES * neurons.get(neuronId).lines.count;
+    }
+
+    int getCompactionCount() {
+        return compactionCount;
+    }
+
+    /**
+     * Total bytes held for the four buffers.
+     */
+    long getBufferBytes() {
+        return (long) vertices.bytes().capacity() + colors.bytes().capacity()
+                + points.bytes().capacity() + lines.bytes().capacity();
+    }
+
+}
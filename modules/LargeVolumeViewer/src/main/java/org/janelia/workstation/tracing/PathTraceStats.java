@@ -0,0 +1,80 @@
+package org.janelia.workstation.tracing;
+
+/**
+ * Timing and data volume of one path trace, for diagnosing slow traces.
+ *
+ * Fetch time covers building the subvolumes the search runs on; voxels
+ * fetched counts subvolume voxels, at whatever zoom level they were fetched,
+ * and tiles are counted by whether the texture cache already had them.
+ */
+public class PathTraceStats {
+
+    private long fetchTimeMs;
+    private long traceTimeMs;
+    private long voxelsFetched;
+    private long voxelsExpanded;
+    private int tilesFromCache;
+    private int tilesLoaded;
+    private int coarseZoomLevel; // 0 when no coarse pass was run
+    private int refinedPieceCount;
+
+    void addFetch(long timeMs, long voxels, int cachedTiles, int loadedTiles) {
+        fetchTimeMs += timeMs;
+        voxelsFetched += voxels;
+        tilesFromCache += cachedTiles;
+        tilesLoaded += loadedTiles;
+    }
+
+    void addTrace(long timeMs, long expanded) {
+        traceTimeMs += timeMs;
+        voxelsExpanded += expanded;
+    }
+
+    void setCoarseZoomLevel(int coarseZoomLevel) {
+        this.coarseZoomLevel = coarseZoomLevel;
+    }
+
+    void setRefinedPieceCount(int refinedPieceCount) {
+        this.refinedPieceCount = refinedPieceCount;
+    }
+
+    public long getFetchTimeMs() {
+        return fetchTimeMs;
+    }
+
+    public long getTraceTimeMs() {
+        return traceTimeMs;
+    }
+
+    public long getVoxelsFetched() {
+        return voxelsFetched;
+    }
+
+    public long getVoxelsExpanded() {
+        return voxelsExpanded;
+    }
+
+    public int getTilesFromCache() {
+        return tilesFromCache;
+    }
+
+    public int getTilesLoaded() {
+        return tilesLoaded;
+    }
+
+    public int getCoarseZoomLevel() {
+        return coarseZoomLevel;
+    }
+
+    public int getRefinedPieceCount() {
+        return refinedPieceCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("fetch %d ms (%d voxels, %d cached / %d loaded tiles), trace %d ms (%d voxels expanded), coarse zoom %d, %d pieces",
+                fetchTimeMs, voxelsFetched, tilesFromCache, tilesLoaded,
+                traceTimeMs, voxelsExpanded, coarseZoomLevel, refinedPieceCount);
+    }
+
+}
@@ -29,6 +29,13 @@ public class PathTraceToParentRequest {
     private SharedVolumeImage imageVolume;
     private TextureCache textureCache;
 
+    // how to trace; coarse-to-fine first solves at a lower zoom level, then
+    //  refines at full resolution along the coarse path
+    private boolean coarseToFine = true;
+    private boolean bidirectional = true;
+    // filled in by the tracer, also when tracing fails
+    private PathTraceStats stats = new PathTraceStats();
+
 
     public PathTraceToParentRequest(Long neuronGuid, Long anchorGuid) {
         setNeuronGuid(neuronGuid);
@@ -117,5 +124,25 @@ public class PathTraceToParentRequest {
         this.textureCache = textureCache;
     }
 
+    public boolean isCoarseToFine() {
+        return coarseToFine;
+    }
+
+    public void setCoarseToFine(boolean coarseToFine) {
+        this.coarseToFine = coarseToFine;
+    }
+
+    public boolean isBidirectional() {
+        return bidirectional;
+    }
+
+    public void setBidirectional(boolean bidirectional) {
+        this.bidirectional = bidirectional;
+    }
+
+    public PathTraceStats getStats() {
+        return stats;
+    }
+
 
 }
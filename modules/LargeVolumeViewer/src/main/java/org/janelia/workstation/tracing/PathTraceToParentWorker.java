@@ -1,30 +1,59 @@
 package org.janelia.workstation.tracing;
 
+import org.janelia.workstation.core.util.ConsoleProperties;
 import org.janelia.workstation.geom.CoordinateAxis;
 import org.janelia.workstation.geom.Vec3;
 import org.janelia.workstation.octree.ZoomLevel;
 import org.janelia.workstation.octree.ZoomedVoxelIndex;
 import org.janelia.workstation.core.workers.BackgroundWorker;
 import org.janelia.workstation.gui.large_volume_viewer.Subvolume;
+import org.janelia.workstation.gui.large_volume_viewer.SubvolumeService;
 import org.janelia.workstation.gui.large_volume_viewer.TileFormat;
 import org.janelia.workstation.gui.large_volume_viewer.controller.PathTraceListener;
+import org.janelia.workstation.raster.VoxelIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * this worker traces a detailed path given a request; adapted from
  * PathTraceWorker, which didn't use the workstation's built-in workers
  *
+ * distant anchors are traced coarse-to-fine: first at a lower zoom level,
+ * then at full resolution only inside a corridor around the coarse path;
+ * searches run from both anchors at once
+ *
  * djo, 1/14
  */
 public class PathTraceToParentWorker extends BackgroundWorker {
 
+    private static final Logger log = LoggerFactory.getLogger(PathTraceToParentWorker.class);
+
+    // Anchors further apart than this, in full resolution voxels, are first
+    //  traced at a coarser zoom level
+    private static final boolean COARSE_TO_FINE = ConsoleProperties.getBoolean("console.LVV.tracing.coarseToFine", true);
+    private static final int COARSE_TRACE_MIN_SPAN = ConsoleProperties.getInt("console.LVV.tracing.coarseMinSpan", 128);
+    // The coarse zoom level is picked so the anchors are about this far apart in it
+    private static final int COARSE_TARGET_SPAN = 48;
+    // Full resolution margin around the coarse path, and the largest piece of corridor fetched at once
+    private static final int CORRIDOR_MARGIN = ConsoleProperties.getInt("console.LVV.tracing.corridorMargin", 6);
+    private static final int MAX_PIECE_EXTENT = 160;
+    private static final int PAD_PIXELS = 10;
+
     private PathTraceToParentRequest request;
     private PathTraceListener pathTraceListener;
 
+    // result of the trace, at full resolution
+    private final List<ZoomedVoxelIndex> tracedPath = new ArrayList<>();
+    private final Map<VoxelPosition, Integer> tracedIntensities = new HashMap<>();
+
     // timeout in seconds
     private double timeout = 10.0;
 
@@ -64,31 +93,23 @@ public class PathTraceToParentWorker extends BackgroundWorker {
         ZoomedVoxelIndex zv2 = zoomedVoxelIndexForVoxelVec3(
                 vec3_2, tileFormat, zoomLevel);
 
-        // Create some padding around the neurite ends.
-        final int padPixels = 10;
-        ZoomedVoxelIndex v1pad = new ZoomedVoxelIndex(
-                zv1.getZoomLevel(),
-                Math.min(zv1.getX(), zv2.getX()) - padPixels,
-                Math.min(zv1.getY(), zv2.getY()) - padPixels,
-                Math.min(zv1.getZ(), zv2.getZ()) - padPixels);
-        ZoomedVoxelIndex v2pad = new ZoomedVoxelIndex(
-                zv2.getZoomLevel(),
-                Math.max(zv1.getX(), zv2.getX()) + padPixels,
-                Math.max(zv1.getY(), zv2.getY()) + padPixels,
-                Math.max(zv1.getZ(), zv2.getZ()) + padPixels);
-
-        Subvolume subvolume = new Subvolume(v1pad, v2pad, request.getImageVolume(),
-                request.getTextureCache());
-        AStar astar = new AStar(subvolume);
-        astar.setVoxelSizes(tileFormat.getVoxelMicrometers());
-
-        setStatus("Tracing");
-        List<ZoomedVoxelIndex> path = astar.trace(zv1, zv2, timeout); // This is the slow part
-        if (path == null) {
+        long deadline = System.nanoTime() + (long) (timeout * 1e9);
+        int span = Math.max(Math.abs(zv1.getX() - zv2.getX()),
+                Math.max(Math.abs(zv1.getY() - zv2.getY()), Math.abs(zv1.getZ() - zv2.getZ())));
+        boolean traced = false;
+        if (COARSE_TO_FINE && request.isCoarseToFine() && span > COARSE_TRACE_MIN_SPAN) {
+            traced = traceCoarseToFine(tileFormat, zv1, zv2, span, deadline);
+        }
+        if (!traced && System.nanoTime() < deadline) {
+            traced = traceDirect(tileFormat, zv1, zv2, deadline);
+        }
+        log.info("Path trace to parent of anchor {}: {}", request.getAnchorGuid1(), request.getStats());
+        if (!traced) {
             // probably timed out; I don't see any other way it could fail
             // we don't do anything if we fail (would be nice to visually indicated it)
             setStatus("Timed out");
         } else {
+            List<ZoomedVoxelIndex> path = tracedPath;
             //DEBUG System.out.println("Original path length: " + path.size());
             final List<VoxelPosition> reducedPath = simplifyPath(path);
             if (!reducedPath.contains(zviToVoxel(path.get(0)))) {
@@ -99,8 +120,8 @@ public class PathTraceToParentWorker extends BackgroundWorker {
             }
             List<Integer> intensities = new ArrayList<>();
             for (VoxelPosition p : reducedPath) {
-                int intensity = subvolume.getIntensityGlobal(p, 0);
-                intensities.add(intensity);
+                Integer intensity = tracedIntensities.get(p);
+                intensities.add(intensity == null ? 0 : intensity);
             }
 
             //DEBUG dumpFullAndSimplified( path, reducedPath );
@@ -109,7 +130,7 @@ public class PathTraceToParentWorker extends BackgroundWorker {
             // launder the request down to a more generic request
             PathTraceRequest simpleRequest = new PathTraceRequest(request.getXyz1(),
                     request.getXyz2(), request.getNeuronGuid(), request.getAnchorGuid1(), request.getAnchorGuid2());
-            TracedPathSegment result = new TracedPathSegment(simpleRequest, reducedPath, intensities);
+            TracedPathSegment result = new TracedPathSegment(simpleRequest, reducedPath, intensities, request.getStats());
             if (pathTraceListener != null) {
                 pathTraceListener.pathTraced(request.getNeuronGuid(), result);
             }
@@ -118,6 +139,177 @@ public class PathTraceToParentWorker extends BackgroundWorker {
         }
     }
 
+    /**
+     * Traces within the padded bounding box of the two anchors, at full
+     * resolution.
+     */
+    private boolean traceDirect(TileFormat tileFormat, ZoomedVoxelIndex zv1, ZoomedVoxelIndex zv2, long deadline) {
+        // Create some padding around the neurite ends.
+        ZoomedVoxelIndex v1pad = new ZoomedVoxelIndex(
+                zv1.getZoomLevel(),
+                Math.min(zv1.getX(), zv2.getX()) - PAD_PIXELS,
+                Math.min(zv1.getY(), zv2.getY()) - PAD_PIXELS,
+                Math.min(zv1.getZ(), zv2.getZ()) - PAD_PIXELS);
+        ZoomedVoxelIndex v2pad = new ZoomedVoxelIndex(
+                zv2.getZoomLevel(),
+                Math.max(zv1.getX(), zv2.getX()) + PAD_PIXELS,
+                Math.max(zv1.getY(), zv2.getY()) + PAD_PIXELS,
+                Math.max(zv1.getZ(), zv2.getZ()) + PAD_PIXELS);
+
+        Subvolume subvolume = fetch(v1pad, v2pad);
+        setStatus("Tracing");
+        List<ZoomedVoxelIndex> path = trace(subvolume, null, tileFormat.getVoxelMicrometers(), zv1, zv2, deadline); // This is the slow part
+        if (path != null) {
+            tracedPath.clear();
+            tracedIntensities.clear();
+            appendPath(subvolume, path);
+        }
+        getSubvolumeService().release(subvolume);
+        return path != null;
+    }
+
+    /**
+     * Traces at a zoom level where the anchors are only a few dozen voxels
+     * apart, then refines at full resolution inside a corridor around the
+     * coarse path, one piece of corridor at a time, so only voxels near the
+     * path are ever fetched at full resolution.
+     */
+    private boolean traceCoarseToFine(TileFormat tileFormat, ZoomedVoxelIndex zv1, ZoomedVoxelIndex zv2,
+            int span, long deadline) {
+        int zoom = (int) Math.ceil(Math.log(span / (double) COARSE_TARGET_SPAN) / Math.log(2.0));
+        zoom = Math.min(zoom, tileFormat.getZoomLevelCount() - 1);
+        if (zoom < 1) {
+            return false;
+        }
+        ZoomLevel coarseLevel = new ZoomLevel(zoom);
+        ZoomedVoxelIndex c1 = zoomedVoxelIndexForVoxelVec3(request.getXyz1(), tileFormat, coarseLevel);
+        ZoomedVoxelIndex c2 = zoomedVoxelIndexForVoxelVec3(request.getXyz2(), tileFormat, coarseLevel);
+        // Octree tiles are not downsampled along the slice axis, so work
+        //  out the scale of each axis from the tile format
+        int factor = coarseLevel.getZoomOutFactor();
+        ZoomedVoxelIndex probe = tileFormat.zoomedVoxelIndexForVoxelXyz(
+                new TileFormat.VoxelXyz(factor, factor, factor), coarseLevel, CoordinateAxis.Z);
+        int[] scale = {factor / probe.getX(), factor / probe.getY(), factor / probe.getZ()};
+        double[] voxelMicrometers = tileFormat.getVoxelMicrometers();
+        double[] coarseMicrometers = new double[3];
+        int[] coarsePad = new int[3];
+        for (int a = 0; a < 3; ++a) {
+            coarseMicrometers[a] = voxelMicrometers[a] * scale[a];
+            coarsePad[a] = Math.max(2, PAD_PIXELS / scale[a]);
+        }
+
+        setStatus("Retrieving coarse data");
+        Subvolume coarseVolume = fetch(
+                new ZoomedVoxelIndex(coarseLevel,
+                        Math.min(c1.getX(), c2.getX()) - coarsePad[0],
+                        Math.min(c1.getY(), c2.getY()) - coarsePad[1],
+                        Math.min(c1.getZ(), c2.getZ()) - coarsePad[2]),
+                new ZoomedVoxelIndex(coarseLevel,
+                        Math.max(c1.getX(), c2.getX()) + coarsePad[0],
+                        Math.max(c1.getY(), c2.getY()) + coarsePad[1],
+                        Math.max(c1.getZ(), c2.getZ()) + coarsePad[2]));
+        setStatus("Tracing coarse path");
+        List<ZoomedVoxelIndex> coarsePath = trace(coarseVolume, null, coarseMicrometers, c1, c2, deadline);
+        getSubvolumeService().release(coarseVolume);
+        if (coarsePath == null) {
+            return false;
+        }
+        request.getStats().setCoarseZoomLevel(zoom);
+        List<int[]> coarseXyz = new ArrayList<>(coarsePath.size());
+        for (ZoomedVoxelIndex v : coarsePath) {
+            coarseXyz.add(new int[] {v.getX(), v.getY(), v.getZ()});
+        }
+        TraceCorridor corridor = new TraceCorridor(coarseXyz, scale, CORRIDOR_MARGIN, MAX_PIECE_EXTENT);
+        request.getStats().setRefinedPieceCount(corridor.getPieceCount());
+
+        tracedPath.clear();
+        tracedIntensities.clear();
+        ZoomedVoxelIndex pieceStart = zv1;
+        for (int piece = 0; piece < corridor.getPieceCount(); ++piece) {
+            setStatus("Refining path, part " + (piece + 1) + " of " + corridor.getPieceCount());
+            int[][] bounds = corridor.getPieceBounds(piece);
+            Subvolume fineVolume = fetch(
+                    new ZoomedVoxelIndex(zv1.getZoomLevel(), bounds[0][0], bounds[0][1], bounds[0][2]),
+                    new ZoomedVoxelIndex(zv1.getZoomLevel(), bounds[1][0], bounds[1][1], bounds[1][2]));
+            ZoomedVoxelIndex pieceGoal = (piece == corridor.getPieceCount() - 1)
+                    ? zv2
+                    : brightestVoxel(fineVolume, corridor.getFootprint(corridor.getPieceEnd(piece)));
+            List<ZoomedVoxelIndex> path = null;
+            if (pieceGoal != null) {
+                path = trace(fineVolume, corridor.getPieceMask(piece),
+                        voxelMicrometers, pieceStart, pieceGoal, deadline);
+            }
+            if (path != null) {
+                appendPath(fineVolume, path);
+            }
+            getSubvolumeService().release(fineVolume);
+            if (path == null) {
+                return false;
+            }
+            pieceStart = pieceGoal;
+        }
+        return true;
+    }
+
+    private Subvolume fetch(ZoomedVoxelIndex corner1, ZoomedVoxelIndex corner2) {
+        long startTime = System.currentTimeMillis();
+        Subvolume subvolume = getSubvolumeService().fetch(corner1, corner2);
+        VoxelIndex extent = subvolume.getExtent();
+        request.getStats().addFetch(System.currentTimeMillis() - startTime,
+                (long) extent.getX() * extent.getY() * extent.getZ(),
+                subvolume.getCachedTileCount(), subvolume.getLoadedTileCount());
+        return subvolume;
+    }
+
+    private SubvolumeService getSubvolumeService() {
+        return SubvolumeService.forVolume(request.getImageVolume(), request.getTextureCache());
+    }
+
+    private List<ZoomedVoxelIndex> trace(Subvolume subvolume, BitSet corridor, double[] voxelSizes,
+            ZoomedVoxelIndex start, ZoomedVoxelIndex goal, long deadline) {
+        double remainingSeconds = (deadline - System.nanoTime()) / 1e9;
+        if (remainingSeconds <= 0) {
+            return null;
+        }
+        AStar astar = new AStar(subvolume);
+        astar.setVoxelSizes(voxelSizes);
+        astar.setBidirectional(request.isBidirectional());
+        astar.setCorridor(corridor);
+        List<ZoomedVoxelIndex> path = astar.trace(start, goal, remainingSeconds);
+        request.getStats().addTrace(Math.round(astar.getTraceTimeMs()), astar.getExpandedVoxelCount());
+        return path;
+    }
+
+    // Appends a traced piece, skipping its first point when it repeats the last one
+    private void appendPath(Subvolume subvolume, List<ZoomedVoxelIndex> path) {
+        for (ZoomedVoxelIndex v : path) {
+            if (!tracedPath.isEmpty() && tracedPath.get(tracedPath.size() - 1).equals(v)) {
+                continue;
+            }
+            tracedPath.add(v);
+            tracedIntensities.put(zviToVoxel(v), subvolume.getIntensityGlobal(v, 0));
+        }
+    }
+
+    private ZoomedVoxelIndex brightestVoxel(Subvolume subvolume, int[][] footprint) {
+        ZoomedVoxelIndex origin = subvolume.getOrigin();
+        VoxelIndex extent = subvolume.getExtent();
+        ZoomedVoxelIndex result = null;
+        int maxIntensity = -1;
+        for (int z = Math.max(footprint[0][2], origin.getZ()); z < Math.min(footprint[1][2], origin.getZ() + extent.getZ()); ++z) {
+            for (int y = Math.max(footprint[0][1], origin.getY()); y < Math.min(footprint[1][1], origin.getY() + extent.getY()); ++y) {
+                for (int x = Math.max(footprint[0][0], origin.getX()); x < Math.min(footprint[1][0], origin.getX() + extent.getX()); ++x) {
+                    int intensity = subvolume.getIntensityGlobal(x, y, z, 0);
+                    if (intensity > maxIntensity) {
+                        maxIntensity = intensity;
+                        result = new ZoomedVoxelIndex(origin.getZoomLevel(), x, y, z);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
     private ZoomedVoxelIndex zoomedVoxelIndexForVoxelVec3(Vec3 vec3, TileFormat tileFormat, ZoomLevel zoomLevel) {
         TileFormat.VoxelXyz vox = new TileFormat.VoxelXyz(vec3);
         ZoomedVoxelIndex zv = tileFormat.zoomedVoxelIndexForVoxelXyz(
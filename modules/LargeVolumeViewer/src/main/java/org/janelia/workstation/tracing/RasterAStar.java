@@ -0,0 +1,504 @@
+package org.janelia.workstation.tracing;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.janelia.workstation.gui.large_volume_viewer.Subvolume;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A* path search directly over a dense intensity raster, such as a Subvolume.
+ *
+ * Voxels are addressed by their flat index (x + sx * (y + sy * z)), and all
+ * per-voxel search state lives in primitive arrays, so tracing allocates
+ * nothing per voxel. The open set is an indexed binary heap, which supports
+ * decrease-key, and step costs come from a lookup table indexed by intensity.
+ *
+ * Costs are the same as in the original AStar: the cost of stepping into a
+ * voxel is the (fudged) probability that its intensity is no brighter than
+ * chance, times the Euclidean step length.
+ *
+ * The search may be confined to a corridor of voxels, and may be run from
+ * both end points at once, which roughly halves the number of voxels
+ * expanded on long, well lit paths.
+ */
+public class RasterAStar {
+
+    private static final Logger log = LoggerFactory.getLogger(RasterAStar.class);
+
+    // Non-zero values prevent meandering path; see AStar
+    private static final double STEP_COST_LOWER_BOUND = 1e-60;
+    // Reduce Z-score by a factor, so we can numerically distinguish more very bright values
+    private static final double Z_FUDGE = 0.80;
+    // Voxel search states
+    private static final byte UNSEEN = 0;
+    private static final byte OPEN = 1;
+    private static final byte CLOSED = 2;
+
+    private final ByteBuffer bytes;
+    private final ShortBuffer shorts;
+    private final int channelCount;
+    private final int sizeX, sizeY, sizeZ;
+    private final int voxelCount;
+
+    private double meanIntensity;
+    private double stdDevIntensity;
+    private double minStepCost;
+    private double[] stepCostForIntensity; // lookup table, indexed by raw intensity
+
+    // 26-connected neighbourhood
+    private final int[] neighborDx = new int[26];
+    private final int[] neighborDy = new int[26];
+    private final int[] neighborDz = new int[26];
+    private final int[] neighborOffset = new int[26];
+    private final double[] neighborDistance = new double[26];
+    private double voxelSizeX = 1.0;
+    private double voxelSizeY = 1.0;
+    private double voxelSizeZ = 1.0;
+
+    // Search state, reused between traces; the reverse frontier is only
+    // allocated for bidirectional traces
+    private Frontier forward;
+    private Frontier reverse;
+    // Voxels the search may enter; null means all of them
+    private BitSet corridor;
+
+    // Statistics of the most recent trace
+    private long expandedVoxelCount;
+    private long traceTimeNanos;
+
+    public RasterAStar(Subvolume volume) {
+        this(volume.getByteBuffer(), volume.getBytesPerIntensity(), volume.getChannelCount(),
+                volume.getExtent().getX(), volume.getExtent().getY(), volume.getExtent().getZ());
+    }
+
+    /**
+     * @param raster native-order intensities, with color channel fastest,
+     * then x, then y, then z; only channel zero is traced
+     */
+    public RasterAStar(ByteBuffer raster, int bytesPerIntensity, int channelCount, int sizeX, int sizeY, int sizeZ) {
+        this.bytes = raster.duplicate().order(raster.order());
+        this.bytes.rewind();
+        this.shorts = (bytesPerIntensity == 2) ? bytes.asShortBuffer() : null;
+        this.channelCount = channelCount;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.voxelCount = sizeX * sizeY * sizeZ;
+        computeIntensityStats();
+        initNeighbors();
+    }
+
+    public void setVoxelSizes(double xSize, double ySize, double zSize) {
+        voxelSizeX = xSize;
+        voxelSizeY = ySize;
+        voxelSizeZ = zSize;
+        initNeighbors();
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    public int getSizeZ() {
+        return sizeZ;
+    }
+
+    public int voxelIndex(int x, int y, int z) {
+        return x + sizeX * (y + sizeY * z);
+    }
+
+    /**
+     * Number of voxels taken off the open set by the most recent trace.
+     */
+    public long getExpandedVoxelCount() {
+        return expandedVoxelCount;
+    }
+
+    /**
+     * Wall clock time of the most recent trace, in milliseconds.
+     */
+    public double getTraceTimeMs() {
+        return traceTimeNanos / 1e6;
+    }
+
+    /**
+     * Sum of step costs along a path of neighboring voxels, as the search
+     * prices it.
+     */
+    public double getPathCost(int[] path) {
+        double cost = 0;
+        int planeSize = sizeX * sizeY;
+        for (int i = 1; i < path.length; ++i) {
+            int a = path[i - 1];
+            int b = path[i];
+            double dx = (b % sizeX - a % sizeX) * voxelSizeX;
+            double dy = ((b % planeSize) / sizeX - (a % planeSize) / sizeX) * voxelSizeY;
+            double dz = (b / planeSize - a / planeSize) * voxelSizeZ;
+            cost += stepCostForIntensity[intensity(b)] * Math.sqrt(dx * dx + dy * dy + dz * dz);
+        }
+        return cost;
+    }
+
+    /**
+     * Restricts subsequent traces to the given voxels, by flat index; null
+     * lifts the restriction. End points outside the corridor are still
+     * allowed.
+     */
+    public void setCorridor(BitSet corridor) {
+        this.corridor = corridor;
+    }
+
+    /**
+     * Finds the cheapest path between two voxels, given as local x/y/z.
+     *
+     * @return flat voxel indices from start to goal, inclusive, or null if
+     * there is no path or the search timed out
+     */
+    public int[] trace(int startX, int startY, int startZ,
+            int goalX, int goalY, int goalZ,
+            double timeoutSeconds) {
+        return trace(startX, startY, startZ, goalX, goalY, goalZ, timeoutSeconds, false);
+    }
+
+    /**
+     * Like trace(), but optionally searches from both end points at once,
+     * expanding whichever frontier is smaller, until the two meet on the
+     * cheapest path.
+     */
+    public int[] trace(int startX, int startY, int startZ,
+            int goalX, int goalY, int goalZ,
+            double timeoutSeconds, boolean bidirectional) {
+        if (!contains(startX, startY, startZ) || !contains(goalX, goalY, goalZ)) {
+            log.warn("A-star trace end points lie outside the subvolume");
+            return null;
+        }
+        long startTime = System.nanoTime();
+        long deadline = startTime + (long) (timeoutSeconds * 1e9);
+        try {
+            int start = voxelIndex(startX, startY, startZ);
+            int goal = voxelIndex(goalX, goalY, goalZ);
+            if (bidirectional) {
+                return searchBidirectional(start, goal, startX, startY, startZ, goalX, goalY, goalZ, deadline);
+            }
+            return search(start, goal, goalX, goalY, goalZ, deadline);
+        } finally {
+            traceTimeNanos = System.nanoTime() - startTime;
+        }
+    }
+
+    private int[] search(int start, int goal, int goalX, int goalY, int goalZ, long deadline) {
+        if (forward == null) {
+            forward = new Frontier();
+        }
+        forward.reset(goalX, goalY, goalZ);
+        expandedVoxelCount = 0;
+        forward.gScore[start] = 0.0;
+        forward.push(start, heuristicCostEstimate(start, goalX, goalY, goalZ));
+        while (forward.heapSize > 0) {
+            int current = forward.pop();
+            if (current == goal) {
+                return reconstructPath(start, goal, forward.cameFrom);
+            }
+            if (isTimedOut(deadline)) {
+                return null;
+            }
+            expand(current, forward, true, null);
+        }
+        return null;
+    }
+
+    // Bidirectional A* with a consistent heuristic: stop as soon as either
+    // frontier can no longer beat the best meeting point found so far.
+    private int[] searchBidirectional(int start, int goal,
+            int startX, int startY, int startZ,
+            int goalX, int goalY, int goalZ, long deadline) {
+        if (start == goal) {
+            expandedVoxelCount = 0;
+            return new int[] {start};
+        }
+        if (forward == null) {
+            forward = new Frontier();
+        }
+        if (reverse == null) {
+            reverse = new Frontier();
+        }
+        forward.reset(goalX, goalY, goalZ);
+        reverse.reset(startX, startY, startZ);
+        expandedVoxelCount = 0;
+        forward.gScore[start] = 0.0;
+        forward.push(start, heuristicCostEstimate(start, goalX, goalY, goalZ));
+        reverse.gScore[goal] = 0.0;
+        reverse.push(goal, heuristicCostEstimate(goal, startX, startY, startZ));
+        Meeting meeting = new Meeting();
+        while (forward.heapSize > 0 && reverse.heapSize > 0) {
+            if (forward.heapKey[0] >= meeting.cost || reverse.heapKey[0] >= meeting.cost) {
+                break;
+            }
+            if (isTimedOut(deadline)) {
+                return null;
+            }
+            if (forward.heapSize <= reverse.heapSize) {
+                expand(forward.pop(), forward, true, meeting);
+            } else {
+                expand(reverse.pop(), reverse, false, meeting);
+            }
+        }
+        if (meeting.voxel < 0) {
+            return null;
+        }
+        int[] head = reconstructPath(start, meeting.voxel, forward.cameFrom);
+        int[] tail = reconstructPath(goal, meeting.voxel, reverse.cameFrom); // goal ... meeting
+        int[] path = Arrays.copyOf(head, head.length + tail.length - 1);
+        for (int i = 0; i < tail.length - 1; ++i) {
+            path[head.length + i] = tail[tail.length - 2 - i];
+        }
+        return path;
+    }
+
+    private static class Meeting {
+        double cost = Double.POSITIVE_INFINITY;
+        int voxel = -1;
+    }
+
+    private boolean isTimedOut(long deadline) {
+        expandedVoxelCount++;
+        if (expandedVoxelCount % 1000 == 0 && System.nanoTime() > deadline) {
+            log.warn("A-star tracing timed out, " + expandedVoxelCount + " voxels examined");
+            return true;
+        }
+        return false;
+    }
+
+    // Relaxes the neighbors of current. Moving forward, a step costs the
+    // intensity of the voxel stepped into; moving in reverse, of the voxel
+    // stepped out of, so both frontiers price the same path identically.
+    private void expand(int current, Frontier frontier, boolean isForward, Meeting meeting) {
+        frontier.state[current] = CLOSED;
+        int planeSize = sizeX * sizeY;
+        int cz = current / planeSize;
+        int cy = (current - cz * planeSize) / sizeX;
+        int cx = current - cz * planeSize - cy * sizeX;
+        double currentG = frontier.gScore[current];
+        double reverseStepCost = stepCostForIntensity[intensity(current)];
+        Frontier other = isForward ? reverse : forward;
+        for (int n = 0; n < 26; ++n) {
+            int x = cx + neighborDx[n];
+            int y = cy + neighborDy[n];
+            int z = cz + neighborDz[n];
+            if (x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ) {
+                continue;
+            }
+            int neighbor = current + neighborOffset[n];
+            if (corridor != null && !corridor.get(neighbor) && neighbor != frontier.target) {
+                continue;
+            }
+            double stepCost = isForward ? stepCostForIntensity[intensity(neighbor)] : reverseStepCost;
+            double tentativeG = currentG + stepCost * neighborDistance[n];
+            byte neighborState = frontier.state[neighbor];
+            if (neighborState != UNSEEN && tentativeG >= frontier.gScore[neighbor]) {
+                continue;
+            }
+            frontier.gScore[neighbor] = tentativeG;
+            frontier.cameFrom[neighbor] = current;
+            double f = tentativeG + heuristicCostEstimate(neighbor, frontier.targetX, frontier.targetY, frontier.targetZ);
+            if (neighborState == OPEN) {
+                frontier.decreaseKey(neighbor, f);
+            } else {
+                frontier.push(neighbor, f); // new, or a closed voxel reopened by a cheaper route
+            }
+            if (meeting != null && other.state[neighbor] != UNSEEN) {
+                double cost = tentativeG + other.gScore[neighbor];
+                if (cost < meeting.cost) {
+                    meeting.cost = cost;
+                    meeting.voxel = neighbor;
+                }
+            }
+        }
+    }
+
+    private boolean contains(int x, int y, int z) {
+        return x >= 0 && y >= 0 && z >= 0 && x < sizeX && y < sizeY && z < sizeZ;
+    }
+
+    private int intensity(int voxel) {
+        int offset = voxel * channelCount;
+        return shorts != null ? (shorts.get(offset) & 0xffff) : (bytes.get(offset) & 0xff);
+    }
+
+    // Must not overestimate actual cost of path to goal
+    private double heuristicCostEstimate(int voxel, int goalX, int goalY, int goalZ) {
+        int planeSize = sizeX * sizeY;
+        int z = voxel / planeSize;
+        int y = (voxel - z * planeSize) / sizeX;
+        int x = voxel - z * planeSize - y * sizeX;
+        double dx = (x - goalX) * voxelSizeX;
+        double dy = (y - goalY) * voxelSizeY;
+        double dz = (z - goalZ) * voxelSizeZ;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz) * minStepCost;
+    }
+
+    private static int[] reconstructPath(int start, int goal, int[] cameFrom) {
+        int length = 1;
+        for (int v = goal; v != start; v = cameFrom[v]) {
+            length++;
+        }
+        int[] path = new int[length];
+        int v = goal;
+        for (int i = length - 1; i >= 0; --i) {
+            path[i] = v;
+            v = cameFrom[v];
+        }
+        return path;
+    }
+
+    private void initNeighbors() {
+        int n = 0;
+        for (int dz = -1; dz <= 1; ++dz) {
+            for (int dy = -1; dy <= 1; ++dy) {
+                for (int dx = -1; dx <= 1; ++dx) {
+                    if (dx == 0 && dy == 0 && dz == 0) {
+                        continue; // self is not a neighbor
+                    }
+                    neighborDx[n] = dx;
+                    neighborDy[n] = dy;
+                    neighborDz[n] = dz;
+                    neighborOffset[n] = dx + sizeX * (dy + sizeY * dz);
+                    double ux = dx * voxelSizeX;
+                    double uy = dy * voxelSizeY;
+                    double uz = dz * voxelSizeZ;
+                    neighborDistance[n] = Math.sqrt(ux * ux + uy * uy + uz * uz);
+                    n++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-voxel search state for one search direction, with its open set
+     * kept in an indexed binary min-heap on f-score.
+     */
+    private class Frontier {
+        private final double[] gScore = new double[voxelCount];
+        private final int[] cameFrom = new int[voxelCount];
+        private final byte[] state = new byte[voxelCount];
+        private final int[] heapPosition = new int[voxelCount];
+        private int[] heap = new int[1024];
+        private double[] heapKey = new double[1024];
+        private int heapSize;
+        private int targetX, targetY, targetZ, target;
+
+        private void reset(int targetX, int targetY, int targetZ) {
+            Arrays.fill(state, UNSEEN);
+            heapSize = 0;
+            this.targetX = targetX;
+            this.targetY = targetY;
+            this.targetZ = targetZ;
+            this.target = voxelIndex(targetX, targetY, targetZ);
+        }
+
+        private void push(int voxel, double key) {
+            if (heapSize == heap.length) {
+                heap = Arrays.copyOf(heap, heapSize * 2);
+                heapKey = Arrays.copyOf(heapKey, heapSize * 2);
+            }
+            state[voxel] = OPEN;
+            siftUp(heapSize++, voxel, key);
+        }
+
+        private int pop() {
+            int result = heap[0];
+            heapSize--;
+            if (heapSize > 0) {
+                siftDown(0, heap[heapSize], heapKey[heapSize]);
+            }
+            return result;
+        }
+
+        private void decreaseKey(int voxel, double key) {
+            int position = heapPosition[voxel];
+            if (key < heapKey[position]) {
+                siftUp(position, voxel, key);
+            }
+        }
+
+        private void siftUp(int position, int voxel, double key) {
+            while (position > 0) {
+                int parent = (position - 1) >>> 1;
+                if (heapKey[parent] <= key) {
+                    break;
+                }
+                place(position, heap[parent], heapKey[parent]);
+                position = parent;
+            }
+            place(position, voxel, key);
+        }
+
+        private void siftDown(int position, int voxel, double key) {
+            int half = heapSize >>> 1;
+            while (position < half) {
+                int child = 2 * position + 1;
+                int right = child + 1;
+                if (right < heapSize && heapKey[right] < heapKey[child]) {
+                    child = right;
+                }
+                if (key <= heapKey[child]) {
+                    break;
+                }
+                place(position, heap[child], heapKey[child]);
+                position = child;
+            }
+            place(position, voxel, key);
+        }
+
+        private void place(int position, int voxel, double key) {
+            heap[position] = voxel;
+            heapKey[position] = key;
+            heapPosition[voxel] = position;
+        }
+    }
+
+    // Compute mean, standard deviation, and the step cost lookup table
+    private void computeIntensityStats() {
+        double sumIntensity = 0;
+        long intensityCount = 0;
+        int maxIntensity = 0;
+        int valueCount = (shorts != null) ? shorts.limit() : bytes.limit();
+        for (int i = 0; i < valueCount; ++i) {
+            int intensity = (shorts != null) ? (shorts.get(i) & 0xffff) : (bytes.get(i) & 0xff);
+            maxIntensity = Math.max(intensity, maxIntensity);
+            sumIntensity += intensity;
+            intensityCount++;
+        }
+        meanIntensity = 0.0;
+        if (intensityCount > 0) {
+            meanIntensity = sumIntensity / intensityCount;
+        }
+        double delta = 0;
+        for (int i = 0; i < valueCount; ++i) {
+            int intensity = (shorts != null) ? (shorts.get(i) & 0xffff) : (bytes.get(i) & 0xff);
+            double di = meanIntensity - intensity;
+            delta += di * di;
+        }
+        stdDevIntensity = 1.0;
+        if (intensityCount > 0 && delta > 0) {
+            stdDevIntensity = Math.sqrt(delta / intensityCount);
+        }
+        // Covers every intensity in the raster
+        stepCostForIntensity = new double[maxIntensity + 1];
+        for (int intensity = 0; intensity <= maxIntensity; ++intensity) {
+            double zScore = (intensity - meanIntensity) / stdDevIntensity;
+            stepCostForIntensity[intensity] = AStar.oneMinusErf(Z_FUDGE * zScore);
+        }
+        // minStepCost must be computed AFTER mean/stddev
+        minStepCost = stepCostForIntensity[maxIntensity] + STEP_COST_LOWER_BOUND;
+    }
+
+}
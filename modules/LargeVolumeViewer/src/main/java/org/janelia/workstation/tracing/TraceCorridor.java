@@ -0,0 +1,128 @@
+package org.janelia.workstation.tracing;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Full resolution corridor around a path traced at a coarser zoom level.
+ *
+ * Every coarse voxel covers a block of scale[0] x scale[1] x scale[2] full
+ * resolution voxels; the corridor is those blocks, grown by a margin. The
+ * corridor is cut into pieces whose bounding boxes stay below a maximum
+ * extent, so refining a long path never needs one huge subvolume.
+ * Consecutive pieces share their boundary coarse voxel.
+ *
+ * All coordinates are global voxel indices; coarse ones at the coarse zoom,
+ * everything else at zoom zero.
+ */
+class TraceCorridor {
+
+    private final int[][] coarsePath; // x/y/z per coarse path voxel
+    private final int[] scale;
+    private final int margin;
+    private final List<int[]> pieces = new ArrayList<>(); // first and last coarse path index
+
+    TraceCorridor(List<int[]> coarsePath, int[] scale, int margin, int maxPieceExtent) {
+        this.coarsePath = coarsePath.toArray(new int[coarsePath.size()][]);
+        this.scale = scale.clone();
+        this.margin = margin;
+        int first = 0;
+        while (first < this.coarsePath.length - 1) {
+            int last = first + 1;
+            while (last + 1 < this.coarsePath.length && maxExtent(first, last + 1) <= maxPieceExtent) {
+                last++;
+            }
+            pieces.add(new int[] {first, last});
+            first = last;
+        }
+        if (pieces.isEmpty()) {
+            pieces.add(new int[] {0, 0});
+        }
+    }
+
+    int getPieceCount() {
+        return pieces.size();
+    }
+
+    /**
+     * Index, into the coarse path, of the last voxel of a piece.
+     */
+    int getPieceEnd(int piece) {
+        return pieces.get(piece)[1];
+    }
+
+    /**
+     * Full resolution voxels covered by one coarse path voxel, as
+     * inclusive min and exclusive max corners.
+     */
+    int[][] getFootprint(int pathIndex) {
+        int[] min = new int[3];
+        int[] max = new int[3];
+        for (int a = 0; a < 3; ++a) {
+            min[a] = coarsePath[pathIndex][a] * scale[a];
+            max[a] = min[a] + scale[a];
+        }
+        return new int[][] {min, max};
+    }
+
+    /**
+     * Inclusive bounding box of a piece, clipped at zero.
+     */
+    int[][] getPieceBounds(int piece) {
+        int[] range = pieces.get(piece);
+        int[] min = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+        int[] max = {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        for (int i = range[0]; i <= range[1]; ++i) {
+            int[][] footprint = getFootprint(i);
+            for (int a = 0; a < 3; ++a) {
+                min[a] = Math.min(min[a], Math.max(0, footprint[0][a] - margin));
+                max[a] = Math.max(max[a], footprint[1][a] - 1 + margin);
+            }
+        }
+        return new int[][] {min, max};
+    }
+
+    /**
+     * Corridor voxels of a piece, by flat index (x + sx * (y + sy * z))
+     * within the piece bounding box.
+     */
+    BitSet getPieceMask(int piece) {
+        int[][] bounds = getPieceBounds(piece);
+        int sx = bounds[1][0] - bounds[0][0] + 1;
+        int sy = bounds[1][1] - bounds[0][1] + 1;
+        BitSet mask = new BitSet();
+        int[] range = pieces.get(piece);
+        for (int i = range[0]; i <= range[1]; ++i) {
+            int[][] footprint = getFootprint(i);
+            int x0 = Math.max(bounds[0][0], footprint[0][0] - margin) - bounds[0][0];
+            int x1 = footprint[1][0] - 1 + margin - bounds[0][0];
+            int y0 = Math.max(bounds[0][1], footprint[0][1] - margin) - bounds[0][1];
+            int y1 = footprint[1][1] - 1 + margin - bounds[0][1];
+            int z0 = Math.max(bounds[0][2], footprint[0][2] - margin) - bounds[0][2];
+            int z1 = footprint[1][2] - 1 + margin - bounds[0][2];
+            for (int z = z0; z <= z1; ++z) {
+                for (int y = y0; y <= y1; ++y) {
+                    int row = sx * (y + sy * z);
+                    mask.set(row + x0, row + x1 + 1);
+                }
+            }
+        }
+        return mask;
+    }
+
+    private int maxExtent(int first, int last) {
+        int result = 0;
+        for (int a = 0; a < 3; ++a) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int i = first; i <= last; ++i) {
+                min = Math.min(min, coarsePath[i][a] * scale[a]);
+                max = Math.max(max, (coarsePath[i][a] + 1) * scale[a]);
+            }
+            result = Math.max(result, max - min + 2 * margin);
+        }
+        return result;
+    }
+
+}
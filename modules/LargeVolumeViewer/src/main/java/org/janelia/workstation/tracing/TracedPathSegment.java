@@ -7,11 +7,18 @@ public class TracedPathSegment implements AnchoredVoxelPath {
     private PathTraceRequest request;
     private List<VoxelPosition> path;
     private List<Integer> intensities;
+    private PathTraceStats stats;
 
     public TracedPathSegment(PathTraceRequest request, List<VoxelPosition> path, List<Integer> intensities) {
+        this(request, path, intensities, null);
+    }
+
+    public TracedPathSegment(PathTraceRequest request, List<VoxelPosition> path, List<Integer> intensities,
+            PathTraceStats stats) {
         this.request = request;
         this.path = path;
         this.intensities = intensities;
+        this.stats = stats;
     }
 
     public PathTraceRequest getRequest() {
@@ -27,6 +34,13 @@ public class TracedPathSegment implements AnchoredVoxelPath {
         return intensities;
     }
 
+    /**
+     * Timing and fetch statistics of the trace; null if not recorded.
+     */
+    public PathTraceStats getStats() {
+        return stats;
+    }
+
     @Override
     public SegmentIndex getSegmentIndex() {
         return request.getSegmentIndex();
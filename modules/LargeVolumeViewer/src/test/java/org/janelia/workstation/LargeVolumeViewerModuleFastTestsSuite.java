@@ -2,9 +2,22 @@
 package org.janelia.workstation;
 
 
+import org.janelia.workstation.gui.large_volume_viewer.TestMappedTiffStack;
+import org.janelia.workstation.gui.large_volume_viewer.TestMotionAwarePrefetchPlanner;
+import org.janelia.workstation.gui.large_volume_viewer.TestSubvolumeService;
+import org.janelia.workstation.gui.large_volume_viewer.TestTextureCacheTier;
 import org.janelia.workstation.gui.large_volume_viewer.TestTileFormat;
+import org.janelia.workstation.gui.large_volume_viewer.TestTileLoadScheduler;
+import org.janelia.workstation.gui.large_volume_viewer.annotation.TestSWCEngine;
+import org.janelia.workstation.gui.large_volume_viewer.model_adapter.TestNeuronDelta;
+import org.janelia.workstation.gui.large_volume_viewer.model_adapter.TestWorkspaceNeuronLoader;
+import org.janelia.workstation.gui.large_volume_viewer.neuron_api.TestDynamicVertexIndex;
+import org.janelia.workstation.gui.large_volume_viewer.neuron_api.TestFragmentSpatialIndex;
+import org.janelia.workstation.gui.large_volume_viewer.skeleton.TestSkeletonBufferManager;
 import org.janelia.it.jacs.model.TestCategories;
 import org.janelia.workstation.gui.passive_3d.filter.MatrixFilter3DTest;
+import org.janelia.workstation.tracing.TestRasterAStar;
+import org.janelia.workstation.tracing.TestTraceCorridor;
 import org.junit.experimental.categories.Categories;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -13,6 +26,19 @@ import org.junit.runners.Suite;
 @Categories.IncludeCategory(TestCategories.FastTests.class)
 @Suite.SuiteClasses({
         TestTileFormat.class,
-        MatrixFilter3DTest.class
+        TestMappedTiffStack.class,
+        TestMotionAwarePrefetchPlanner.class,
+        MatrixFilter3DTest.class,
+        TestRasterAStar.class,
+        TestTraceCorridor.class,
+        TestSubvolumeService.class,
+        TestTextureCacheTier.class,
+        TestTileLoadScheduler.class,
+        TestNeuronDelta.class,
+        TestWorkspaceNeuronLoader.class,
+        TestFragmentSpatialIndex.class,
+        TestDynamicVertexIndex.class,
+        TestSkeletonBufferManager.class,
+        TestSWCEngine.class
 })
 public class LargeVolumeViewerModuleFastTestsSuite {}
@@ -0,0 +1,222 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import com.google.common.collect.Iterators;
+import com.google.common.io.ByteStreams;
+import com.sun.media.jai.codec.FileSeekableStream;
+import com.sun.media.jai.codec.ImageCodec;
+import com.sun.media.jai.codec.ImageDecoder;
+import com.sun.media.jai.codec.ImageEncoder;
+import com.sun.media.jai.codec.TIFFEncodeParam;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+public class TestMappedTiffStack {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    // Odd width, to exercise the right edge padding
+    private static final int WIDTH = 509;
+    private static final int HEIGHT = 512;
+    private static final int DEPTH = 16;
+
+    private File writeSyntheticStack(int channel) throws IOException {
+        BufferedImage[] slices = new BufferedImage[DEPTH];
+        int[] pixel = {0};
+        for (int z = 0; z < DEPTH; ++z) {
+            slices[z] = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_USHORT_GRAY);
+            for (int y = 0; y < HEIGHT; ++y) {
+                for (int x = 0; x < WIDTH; ++x) {
+                    pixel[0] = (x * 131 + y * 17 + z * 1009 + channel * 7919) & 0xffff;
+                    slices[z].getRaster().setPixel(x, y, pixel);
+                }
+            }
+        }
+        File tiffFile = temporaryFolder.newFile("default." + channel + ".tif");
+        TIFFEncodeParam params = new TIFFEncodeParam();
+        Iterator<BufferedImage> it = Iterators.forArray(slices);
+        it.next(); // Avoid duplicate first slice
+        params.setExtraImages(it);
+        try (OutputStream out = new FileOutputStream(tiffFile)) {
+            ImageEncoder encoder = ImageCodec.createImageEncoder("tiff", out, params);
+            encoder.encode(slices[0]);
+        }
+        return tiffFile;
+    }
+
+    // The path tiles used to take: decode to a raster, serialize to bytes,
+    // copy through the file cache stream, then copy into a texture buffer
+    private static TextureData2d loadLegacy(ImageDecoder decoder, int page) throws IOException {
+        RenderedImage image = decoder.decodeAsRenderedImage(page);
+        TextureData2d decoded = new TextureData2d();
+        decoded.loadRenderedImage(image);
+        byte[] textureBytes = decoded.copyToByteArray();
+        byte[] cachedBytes = ByteStreams.toByteArray(new ByteArrayInputStream(textureBytes));
+        return new TextureData2d(cachedBytes);
+    }
+
+    private static TextureData2d loadMapped(MappedTiffStack stack, int page) {
+        int usedWidth = stack.getWidth(page);
+        int width = usedWidth + (usedWidth % 8 == 0 ? 0 : 8 - usedWidth % 8);
+        int height = stack.getHeight(page);
+        int byteCount = width * height * 2;
+        ByteBuffer pixels = TileBufferPool.getInstance().acquire(byteCount);
+        stack.copyPageInto(page, pixels, width, 0, 1);
+        return new TextureData2d(pixels, width, usedWidth, height, 16, 1, false);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testMappedPageMatchesDecodedPage() throws IOException {
+        File tiffFile = writeSyntheticStack(0);
+        MappedTiffStack stack = MappedTiffStack.open(tiffFile.toPath());
+        assertEquals(DEPTH, stack.getPageCount());
+        assertEquals(WIDTH, stack.getWidth(0));
+        assertEquals(HEIGHT, stack.getHeight(0));
+        assertEquals(16, stack.getBitDepth(0));
+        try (FileSeekableStream stream = new FileSeekableStream(tiffFile)) {
+            ImageDecoder decoder = ImageCodec.createImageDecoder("tiff", stream, null);
+            for (int page : new int[] {0, 7, DEPTH - 1}) {
+                TextureData2d expected = new TextureData2d();
+                expected.loadRenderedImage(decoder.decodeAsRenderedImage(page));
+                TextureData2d actual = loadMapped(stack, page);
+                assertEquals(expected.getWidth(), actual.getWidth());
+                assertEquals(expected.getUsedWidth(), actual.getUsedWidth());
+                assertEquals(expected.getHeight(), actual.getHeight());
+                expected.getPixels().rewind();
+                assertEquals(expected.getPixels(), actual.getPixels());
+                actual.releaseMemory();
+            }
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testInterleavedChannels() throws IOException {
+        MappedTiffStack[] stacks = {
+            MappedTiffStack.open(writeSyntheticStack(0).toPath()),
+            MappedTiffStack.open(writeSyntheticStack(1).toPath())
+        };
+        int width = 512;
+        ByteBuffer pixels = TileBufferPool.getInstance().acquire(width * HEIGHT * 2 * 2);
+        for (int c = 0; c < 2; ++c) {
+            stacks[c].copyPageInto(3, pixels, width, c, 2);
+        }
+        for (int c = 0; c < 2; ++c) {
+            // first pixel, last used pixel, and padding which repeats the last used pixel
+            int y = 100;
+            int expectedLast = ((WIDTH - 1) * 131 + y * 17 + 3 * 1009 + c * 7919) & 0xffff;
+            assertEquals((3 * 1009 + c * 7919) & 0xffff, pixels.getShort(2 * c) & 0xffff);
+            assertEquals(expectedLast, pixels.getShort(4 * (y * width + WIDTH - 1) + 2 * c) & 0xffff);
+            assertEquals(expectedLast, pixels.getShort(4 * (y * width + width - 1) + 2 * c) & 0xffff);
+        }
+        TileBufferPool.getInstance().release(pixels);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testBlockTilePageAtLowerResolution() throws IOException {
+        MappedTiffStack[] stacks = {
+            MappedTiffStack.open(writeSyntheticStack(0).toPath()),
+            MappedTiffStack.open(writeSyntheticStack(1).toPath())
+        };
+        // Tile z is a full resolution slice; at zoom k a block page is 2^k slices thick
+        int[][] zZoomPage = {
+            {5, 0, 5},
+            {DEPTH + 2, 0, 2},
+            {2 * 7, 1, 7},
+            {2 * (DEPTH + 5) + 1, 1, 5},
+            {4 * (2 * DEPTH + 9) + 3, 2, 9},
+            {8 * (DEPTH - 1), 3, DEPTH - 1}
+        };
+        for (int[] zZoom : zZoomPage) {
+            int page = zZoom[2];
+            assertEquals(page, MappedTiffStack.blockPage(zZoom[0], zZoom[1], DEPTH));
+            TextureData2d tile = MappedTiffStack.loadBlockTile(stacks, zZoom[0], zZoom[1], false);
+            assertEquals(512, tile.getWidth());
+            assertEquals(WIDTH, tile.getUsedWidth());
+            assertEquals(2, tile.getChannelCount());
+            ByteBuffer pixels = tile.getPixels();
+            int y = 200;
+            for (int c = 0; c < 2; ++c) {
+                for (int x : new int[] {0, 77, WIDTH - 1}) {
+                    int expected = (x * 131 + y * 17 + page * 1009 + c * 7919) & 0xffff;
+                    assertEquals(expected, pixels.getShort(4 * (y * 512 + x) + 2 * c) & 0xffff);
+                }
+            }
+            tile.releaseMemory();
+        }
+    }
+
+    /**
+     * Compares the old byte[] tile path with the memory-mapped path, in
+     * tiles per second and heap bytes allocated per tile, as measured by
+     * the JVM for the benchmark thread.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkTileLoad() throws IOException {
+        File tiffFile = writeSyntheticStack(0);
+        int rounds = 20;
+        try (FileSeekableStream stream = new FileSeekableStream(tiffFile)) {
+            ImageDecoder decoder = ImageCodec.createImageDecoder("tiff", stream, null);
+            for (int page = 0; page < DEPTH; ++page) {
+                loadLegacy(decoder, page).releaseMemory(); // warm up
+            }
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; ++r) {
+                for (int page = 0; page < DEPTH; ++page) {
+                    loadLegacy(decoder, page).releaseMemory();
+                }
+            }
+            report("byte[] path", rounds * DEPTH, System.nanoTime() - start, allocatedBytes() - allocated);
+        }
+        MappedTiffStack stack = MappedTiffStack.open(tiffFile.toPath());
+        for (int page = 0; page < DEPTH; ++page) {
+            loadMapped(stack, page).releaseMemory(); // warm up
+        }
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; ++r) {
+            for (int page = 0; page < DEPTH; ++page) {
+                loadMapped(stack, page).releaseMemory();
+            }
+        }
+        report("mapped path", rounds * DEPTH, System.nanoTime() - start, allocatedBytes() - allocated);
+    }
+
+    // Heap bytes allocated so far by this thread, or -1 if the JVM cannot tell
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void report(String label, int tileCount, long elapsedNanos, long allocatedBytes) {
+        System.out.println(String.format("%s: %.1f tiles/s, %s heap bytes allocated per tile",
+                label, tileCount / (elapsedNanos / 1e9),
+                allocatedBytes < 0 ? "unknown" : String.valueOf(allocatedBytes / tileCount)));
+    }
+
+}
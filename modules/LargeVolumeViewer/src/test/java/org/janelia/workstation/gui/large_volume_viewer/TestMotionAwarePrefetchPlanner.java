@@ -0,0 +1,93 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.janelia.workstation.geom.Vec3;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestMotionAwarePrefetchPlanner {
+
+    private TileFormat createFormat() {
+        TileFormat tileFormat = new TileFormat();
+        tileFormat.setDefaultParameters();
+        tileFormat.setVolumeSize(new int[] {65536, 65536, 7936});
+        tileFormat.setVoxelMicrometers(new double[] {1.0, 1.0, 1.0});
+        tileFormat.setTileSize(new int[] {1024, 1024, 124});
+        tileFormat.setZoomLevelCount(7);
+        return tileFormat;
+    }
+
+    private static int rankOf(List<MotionAwarePrefetchPlanner.PlannedTile> plan, int dx, int dy, int dz) {
+        for (int i = 0; i < plan.size(); ++i) {
+            int[] offsets = plan.get(i).getFocusOffsets();
+            if (offsets != null && offsets[0] == dx && offsets[1] == dy && offsets[2] == dz) {
+                return i;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testMotionVectorRanksTilesAhead() {
+        MotionAwarePrefetchPlanner planner = new MotionAwarePrefetchPlanner(createFormat(), 500);
+        double zoom = 1.0; // one screen pixel per voxel -> zoom level 0
+        planner.setZoom(zoom, 0);
+        // Pan in +X at 4 micrometers per millisecond
+        for (int t = 0; t <= 200; t += 50) {
+            planner.setFocus(new Vec3(30000 + 4 * t, 30000, 3000), t);
+        }
+        List<MotionAwarePrefetchPlanner.PlannedTile> plan = planner.plan(50);
+        assertEquals(planner.getFocusTileIndex(), plan.get(0).getTileIndex());
+        assertTrue(rankOf(plan, 1, 0, 0) < rankOf(plan, -1, 0, 0));
+        assertTrue(rankOf(plan, 2, 0, 0) < rankOf(plan, -2, 0, 0));
+        assertEquals(50, plan.size());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testZoomTrendAddsNextZoomLevel() {
+        TileFormat tileFormat = createFormat();
+        MotionAwarePrefetchPlanner planner = new MotionAwarePrefetchPlanner(tileFormat, 500);
+        planner.setFocus(new Vec3(30000, 30000, 3000), 0);
+        planner.setZoom(0.125, 0);
+        int zoomLevel = tileFormat.zoomLevelForCameraZoom(0.125);
+        // Without zooming, only the current level is planned
+        for (MotionAwarePrefetchPlanner.PlannedTile tile : planner.plan(1000)) {
+            assertEquals(zoomLevel, tile.getTileIndex().getZoom());
+        }
+        // Zooming in brings in the next finer level
+        planner.setZoom(0.25, 500);
+        zoomLevel = tileFormat.zoomLevelForCameraZoom(0.25);
+        boolean foundFiner = false;
+        for (MotionAwarePrefetchPlanner.PlannedTile tile : planner.plan(1000)) {
+            foundFiner |= tile.getTileIndex().getZoom() == zoomLevel - 1;
+        }
+        assertTrue(foundFiner);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testZSteppingPrefetchesNextSlices() {
+        MotionAwarePrefetchPlanner planner = new MotionAwarePrefetchPlanner(createFormat(), 500);
+        planner.setZoom(1.0, 0);
+        // Step down one slice every 100 ms
+        for (int t = 0; t <= 300; t += 100) {
+            planner.setFocus(new Vec3(30000, 30000, 3000 + t / 100), t);
+        }
+        TileIndex focusTile = planner.getFocusTileIndex();
+        List<MotionAwarePrefetchPlanner.PlannedTile> plan = planner.plan(4);
+        // focus, then the next three slices in the stepping direction
+        for (int i = 0; i < plan.size(); ++i) {
+            TileIndex tile = plan.get(i).getTileIndex();
+            assertEquals(focusTile.getX(), tile.getX());
+            assertEquals(focusTile.getY(), tile.getY());
+            assertEquals(focusTile.getZ() + i, tile.getZ());
+        }
+    }
+
+}
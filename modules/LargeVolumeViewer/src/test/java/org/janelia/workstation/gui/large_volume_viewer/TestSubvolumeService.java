@@ -0,0 +1,165 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.janelia.workstation.geom.CoordinateAxis;
+import org.janelia.workstation.octree.ZoomLevel;
+import org.janelia.workstation.octree.ZoomedVoxelIndex;
+import org.janelia.workstation.raster.VoxelIndex;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestSubvolumeService {
+
+    private static final ZoomLevel ZOOM_0 = new ZoomLevel(0);
+
+    // Synthetic 16-bit, single channel volume whose intensities are a function of position
+    private static class SyntheticLoadAdapter extends AbstractTextureLoadAdapter {
+        private final AtomicInteger loadCount = new AtomicInteger();
+
+        SyntheticLoadAdapter() {
+            super(new TileFormat());
+            TileFormat tileFormat = getTileFormat();
+            tileFormat.setVolumeSize(new int[] {1024, 1024, 64});
+            tileFormat.setTileSize(new int[] {256, 256, 1});
+            tileFormat.setBitDepth(16);
+            tileFormat.setChannelCount(1);
+        }
+
+        @Override
+        public TextureData2d loadToRam(TileIndex tileIndex) {
+            loadCount.incrementAndGet();
+            int size = 256;
+            ZoomedVoxelIndex tileOrigin = getTileFormat().zoomedVoxelIndexForTileXyz(
+                    new TileFormat.TileXyz(tileIndex.getX(), tileIndex.getY(), tileIndex.getZ()),
+                    ZOOM_0, CoordinateAxis.Z);
+            ByteBuffer pixels = TileBufferPool.getInstance().acquire(size * size * 2);
+            for (int y = 0; y < size; ++y) {
+                for (int x = 0; x < size; ++x) {
+                    pixels.putShort(2 * (y * size + x),
+                            (short) intensity(tileOrigin.getX() + x, tileOrigin.getY() + y, tileIndex.getZ()));
+                }
+            }
+            return new TextureData2d(pixels, size, size, size, 16, 1, false);
+        }
+    }
+
+    private static int intensity(int x, int y, int z) {
+        return (x * 7 + y * 13 + z * 31) & 0xffff;
+    }
+
+    private static void assertMatchesVolume(Subvolume subvolume) {
+        ZoomedVoxelIndex origin = subvolume.getOrigin();
+        VoxelIndex extent = subvolume.getExtent();
+        for (int z = 0; z < extent.getZ(); ++z) {
+            for (int y = 0; y < extent.getY(); ++y) {
+                for (int x = 0; x < extent.getX(); ++x) {
+                    assertEquals(intensity(origin.getX() + x, origin.getY() + y, origin.getZ() + z),
+                            subvolume.getIntensityLocal(new VoxelIndex(x, y, z), 0));
+                }
+            }
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testFetchAcrossTileBoundaries() {
+        SyntheticLoadAdapter adapter = new SyntheticLoadAdapter();
+        SubvolumeService service = new SubvolumeService(() -> adapter, null);
+        // Straddles tile boundaries in x and y, including the far corner
+        Subvolume subvolume = service.fetch(
+                new ZoomedVoxelIndex(ZOOM_0, 240, 500, 3),
+                new ZoomedVoxelIndex(ZOOM_0, 270, 520, 6));
+        assertEquals(31, subvolume.getExtent().getX());
+        assertMatchesVolume(subvolume);
+        assertEquals(4 * 4, adapter.loadCount.get());
+        assertEquals(16, subvolume.getLoadedTileCount());
+        // Overlapping request is served from recently loaded tiles
+        Subvolume again = service.fetch(
+                new ZoomedVoxelIndex(ZOOM_0, 250, 505, 4),
+                new ZoomedVoxelIndex(ZOOM_0, 260, 515, 5));
+        assertMatchesVolume(again);
+        assertEquals(16, adapter.loadCount.get());
+        assertEquals(0, again.getLoadedTileCount());
+        service.release(subvolume);
+        service.release(again);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testGrowOnlyLoadsNewShell() {
+        SyntheticLoadAdapter adapter = new SyntheticLoadAdapter();
+        SubvolumeService service = new SubvolumeService(() -> adapter, null);
+        Subvolume subvolume = service.fetch(
+                new ZoomedVoxelIndex(ZOOM_0, 100, 100, 10),
+                new ZoomedVoxelIndex(ZOOM_0, 120, 130, 20));
+        assertEquals(11, adapter.loadCount.get());
+        Subvolume grown = service.grow(subvolume, 4);
+        assertEquals(29, grown.getExtent().getX());
+        assertEquals(19, grown.getExtent().getZ());
+        assertMatchesVolume(grown);
+        // only the eight new slices needed loading
+        assertEquals(11 + 8, adapter.loadCount.get());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testViewLoadsOnlyTouchedTiles() {
+        SyntheticLoadAdapter adapter = new SyntheticLoadAdapter();
+        SubvolumeService service = new SubvolumeService(() -> adapter, null);
+        RasterSubvolume view = service.createView(
+                new ZoomedVoxelIndex(ZOOM_0, 0, 0, 0),
+                new ZoomedVoxelIndex(ZOOM_0, 1023, 1023, 63));
+        assertEquals(0, adapter.loadCount.get());
+        for (int z = 20; z < 25; ++z) {
+            assertEquals(intensity(300, 700, z), view.getIntensityGlobal(300, 700, z, 0));
+            assertEquals(intensity(301, 701, z), view.getIntensityGlobal(301, 701, z, 0));
+        }
+        assertEquals(5, adapter.loadCount.get());
+        assertEquals(5, view.getLoadedTileCount());
+        assertEquals(0, view.getIntensityGlobal(2000, 0, 0, 0));
+        view.release();
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testViewKeepsEvictedTile() {
+        AtomicReference<AbstractTextureLoadAdapter> adapter = new AtomicReference<>(new SyntheticLoadAdapter());
+        SubvolumeService service = new SubvolumeService(adapter::get, null);
+        RasterSubvolume view = service.createView(
+                new ZoomedVoxelIndex(ZOOM_0, 0, 0, 0),
+                new ZoomedVoxelIndex(ZOOM_0, 255, 255, 0));
+        assertEquals(intensity(10, 20, 0), view.getIntensityGlobal(10, 20, 0, 0));
+
+        // Opening another volume evicts every recently loaded tile
+        adapter.set(new SyntheticLoadAdapter());
+        service.release(service.fetch(
+                new ZoomedVoxelIndex(ZOOM_0, 0, 0, 5),
+                new ZoomedVoxelIndex(ZOOM_0, 0, 0, 5)));
+        // Recycled buffers come back first, so a released tile buffer would be handed out here
+        List<ByteBuffer> scribbled = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            ByteBuffer buffer = TileBufferPool.getInstance().acquire(256 * 256 * 2);
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) 0x5a);
+            }
+            scribbled.add(buffer);
+        }
+
+        // The tile the view holds is still intact
+        assertEquals(intensity(11, 20, 0), view.getIntensityGlobal(11, 20, 0, 0));
+        assertEquals(intensity(200, 250, 0), view.getIntensityGlobal(200, 250, 0, 0));
+        view.release();
+        for (ByteBuffer buffer : scribbled) {
+            TileBufferPool.getInstance().release(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.janelia.workstation.geom.CoordinateAxis;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestTextureCacheTier {
+
+    private static final int SIZE = 64;
+    private static final int BYTE_COUNT = SIZE * SIZE * 2;
+
+    // 16-bit tiles whose pixels are a function of the tile's z
+    private static class SyntheticTileLoader extends BlockTiffOctreeLoadAdapter {
+        private final AtomicInteger loadCount = new AtomicInteger();
+
+        SyntheticTileLoader() {
+            super(new TileFormat(), URI.create("file:///synthetic"));
+            TileFormat tileFormat = getTileFormat();
+            tileFormat.setVolumeSize(new int[] {SIZE, SIZE, 16});
+            tileFormat.setTileSize(new int[] {SIZE, SIZE, 1});
+            tileFormat.setBitDepth(16);
+            tileFormat.setChannelCount(1);
+        }
+
+        @Override
+        public void loadMetadata() {
+        }
+
+        @Override
+        public TextureData2d loadToRam(TileIndex tileIndex) {
+            loadCount.incrementAndGet();
+            ByteBuffer pixels = TileBufferPool.getInstance().acquire(BYTE_COUNT);
+            for (int i = 0; i < SIZE * SIZE; ++i) {
+                pixels.putShort(2 * i, (short) pixel(tileIndex, i));
+            }
+            return new TextureData2d(pixels, SIZE, SIZE, SIZE, 16, 1, false);
+        }
+    }
+
+    private static int pixel(TileIndex tileIndex, int i) {
+        return (i * 3 + tileIndex.getZ() * 101) & 0xffff;
+    }
+
+    private static TileIndex tileIndex(int z) {
+        return new TileIndex(0, 0, z, 0, 0, TileIndex.IndexStyle.OCTREE, CoordinateAxis.Z);
+    }
+
+    private static void assertPixels(TileIndex tileIndex, TextureData2d data) {
+        ByteBuffer pixels = data.getPixels();
+        assertNotNull(pixels);
+        for (int i = 0; i < SIZE * SIZE; ++i) {
+            assertEquals(pixel(tileIndex, i), pixels.getShort(2 * i) & 0xffff);
+        }
+    }
+
+    private boolean volumeCache;
+
+    @Before
+    public void enableVolumeCache() {
+        volumeCache = VolumeCache.useVolumeCache();
+        VolumeCache.setVolumeCache(true);
+    }
+
+    @After
+    public void restoreVolumeCache() {
+        VolumeCache.setVolumeCache(volumeCache);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testCachedTileSurvivesRetire() {
+        SyntheticTileLoader loader = new SyntheticTileLoader();
+        CachedBlockTiffOctreeLoadAdapter adapter = new CachedBlockTiffOctreeLoadAdapter(loader);
+        TextureCacheTier tier = new TextureCacheTier("test", 64L * 1024 * 1024);
+        TileIndex index = tileIndex(3);
+
+        TileTexture first = new TileTexture(index, adapter);
+        assertTrue(first.loadImageToRam());
+        ByteBuffer sharedPixels = first.getTextureData().getPixels();
+        tier.put(index, first);
+        // Retiring the tile drops its pixels, but the adapter cache still holds them
+        tier.clear();
+        assertNull(first.getTextureData());
+
+        // Recycled buffers come back first, so a released tile buffer would be handed out here
+        List<ByteBuffer> scribbled = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            ByteBuffer buffer = TileBufferPool.getInstance().acquire(BYTE_COUNT);
+            assertNotSame(sharedPixels, buffer);
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) 0x5a);
+            }
+            scribbled.add(buffer);
+        }
+
+        // A cache hit for the same tile still reads the original pixels
+        TileTexture second = new TileTexture(index, adapter);
+        assertTrue(second.loadImageToRam());
+        assertEquals(1, loader.loadCount.get());
+        assertSame(sharedPixels, second.getTextureData().getPixels());
+        assertPixels(index, second.getTextureData());
+        second.releaseMemory();
+        assertNotSame(sharedPixels, TileBufferPool.getInstance().acquire(BYTE_COUNT));
+
+        for (ByteBuffer buffer : scribbled) {
+            TileBufferPool.getInstance().release(buffer);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testReaderKeepsRetiredTile() {
+        SyntheticTileLoader loader = new SyntheticTileLoader();
+        TextureCacheTier tier = new TextureCacheTier("test", 64L * 1024 * 1024);
+        TileIndex index = tileIndex(5);
+        TileTexture tile = new TileTexture(index, loader);
+        assertTrue(tile.loadImageToRam());
+        tier.put(index, tile);
+
+        // e.g. a subvolume fetch copying a resident tile
+        TextureData2d reader = tile.retainTextureData();
+        ByteBuffer pixels = reader.getPixels();
+        tier.clear();
+        assertNull(tile.retainTextureData());
+        assertNotSame(pixels, TileBufferPool.getInstance().acquire(BYTE_COUNT));
+        assertPixels(index, reader);
+
+        // The last owner gives the buffer back, once
+        reader.releaseMemory();
+        reader.releaseMemory();
+        assertSame(pixels, TileBufferPool.getInstance().acquire(BYTE_COUNT));
+        assertNotSame(pixels, TileBufferPool.getInstance().acquire(BYTE_COUNT));
+    }
+
+    // A texture which only knows its id, as if uploaded to OpenGL
+    private static PyramidTexture uploadedTexture(int textureId) {
+        return (PyramidTexture) Proxy.newProxyInstance(PyramidTexture.class.getClassLoader(),
+                new Class<?>[] {PyramidTexture.class},
+                (proxy, method, args) -> "getTextureId".equals(method.getName()) ? textureId : null);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testReplacedTileIsRetired() {
+        SyntheticTileLoader loader = new SyntheticTileLoader();
+        TextureCacheTier tier = new TextureCacheTier("test", 64L * 1024 * 1024);
+        TileIndex index = tileIndex(7);
+        TileTexture first = new TileTexture(index, loader) {
+            @Override
+            public PyramidTexture getTexture() {
+                return uploadedTexture(42);
+            }
+        };
+        assertTrue(first.loadImageToRam());
+        ByteBuffer pixels = first.getTextureData().getPixels();
+        tier.put(index, first);
+        // Putting the same tile again keeps it
+        tier.put(index, first);
+        assertNotNull(first.getTextureData());
+        assertTrue(tier.popObsoleteGlTextures().isEmpty());
+
+        TileTexture second = new TileTexture(index, loader);
+        assertTrue(second.loadImageToRam());
+        assertSame(first, tier.put(index, second));
+        assertSame(second, tier.peek(index));
+        assertEquals(1, tier.size());
+        assertEquals(second.getByteSize() + 256, tier.getResidentBytes());
+        // The replaced tile's texture is queued for deletion and its pixels go back to the pool
+        assertEquals(Collections.singleton(42), tier.popObsoleteGlTextures());
+        assertNull(first.getTextureData());
+        assertSame(pixels, TileBufferPool.getInstance().acquire(BYTE_COUNT));
+    }
+
+}
@@ -0,0 +1,182 @@
+package org.janelia.workstation.gui.large_volume_viewer;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.janelia.workstation.geom.CoordinateAxis;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestTileLoadScheduler {
+
+    private static final TileLoadScheduler.Category DISPLAYED = TileLoadScheduler.Category.DISPLAYED;
+    private static final TileLoadScheduler.Category PREFETCHED = TileLoadScheduler.Category.PREFETCHED;
+
+    private static TileIndex tile(int x) {
+        return new TileIndex(x, 0, 0, 0, 0, TileIndex.IndexStyle.QUADTREE, CoordinateAxis.Z);
+    }
+
+    // One loader thread, held busy by a first load until released, so that
+    //  the loads scheduled meanwhile queue up
+    private static class Fixture {
+        final TileLoadScheduler scheduler;
+        final CountDownLatch blockerStarted = new CountDownLatch(1);
+        final CountDownLatch releaseBlocker = new CountDownLatch(1);
+        final CountDownLatch blockerDone = new CountDownLatch(1);
+        final AtomicBoolean blockerInterrupted = new AtomicBoolean();
+        final List<Integer> loaded = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> cancelled = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch finished;
+
+        Fixture(boolean interruptObsolete, int loadCount) throws InterruptedException {
+            scheduler = new TileLoadScheduler("TestTileLoad", 1, interruptObsolete);
+            finished = new CountDownLatch(loadCount);
+            scheduler.schedule(tile(0), DISPLAYED, 0, () -> {
+                blockerStarted.countDown();
+                try {
+                    releaseBlocker.await();
+                } catch (InterruptedException e) {
+                    blockerInterrupted.set(true);
+                } finally {
+                    blockerDone.countDown();
+                }
+            }, null);
+            assertTrue(blockerStarted.await(5, TimeUnit.SECONDS));
+        }
+
+        boolean schedule(int x, TileLoadScheduler.Category category, double priority) {
+            return scheduler.schedule(tile(x), category, priority,
+                    () -> {
+                        loaded.add(x);
+                        finished.countDown();
+                    },
+                    () -> {
+                        cancelled.add(x);
+                        finished.countDown();
+                    });
+        }
+
+        void awaitLoads() throws InterruptedException {
+            releaseBlocker.countDown();
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static List<Integer> sorted(List<Integer> values) {
+        List<Integer> result = new ArrayList<>(values);
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test(timeout = 10000)
+    @Category(TestCategories.FastTests.class)
+    public void testDisplayedLoadsFirstByPriority() throws Exception {
+        Fixture fixture = new Fixture(true, 6);
+        fixture.schedule(1, PREFETCHED, 1.0);
+        fixture.schedule(2, DISPLAYED, 5.0);
+        fixture.schedule(3, PREFETCHED, 0.5);
+        fixture.schedule(4, DISPLAYED, 2.0);
+        // Ties keep submission order
+        fixture.schedule(5, DISPLAYED, 2.0);
+        fixture.schedule(6, PREFETCHED, 1.0);
+        assertEquals(6, fixture.scheduler.getQueueDepth());
+        fixture.awaitLoads();
+        assertEquals(Arrays.asList(4, 5, 2, 3, 1, 6), fixture.loaded);
+        assertTrue(fixture.cancelled.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    @Category(TestCategories.FastTests.class)
+    public void testRescheduleUpdatesQueuedLoad() throws Exception {
+        Fixture fixture = new Fixture(true, 4);
+        fixture.schedule(1, PREFETCHED, 1.0);
+        fixture.schedule(2, PREFETCHED, 2.0);
+        fixture.schedule(3, DISPLAYED, 1.0);
+        fixture.schedule(4, DISPLAYED, 2.0);
+        // Scheduling a queued tile again only updates it
+        assertFalse(fixture.schedule(2, PREFETCHED, 0.5));
+        // A prefetch request never demotes a displayed tile
+        assertTrue(fixture.scheduler.reschedule(tile(4), PREFETCHED, 0.0));
+        // A display request promotes a prefetched tile
+        assertTrue(fixture.scheduler.reschedule(tile(1), DISPLAYED, 0.0));
+        assertFalse(fixture.scheduler.reschedule(tile(7), DISPLAYED, 0.0));
+        assertEquals(4, fixture.scheduler.getQueueDepth());
+        fixture.awaitLoads();
+        assertEquals(Arrays.asList(1, 3, 4, 2), fixture.loaded);
+    }
+
+    @Test(timeout = 10000)
+    @Category(TestCategories.FastTests.class)
+    public void testCancelObsoleteKeepsRequestedLoads() throws Exception {
+        Fixture fixture = new Fixture(true, 4);
+        fixture.schedule(1, DISPLAYED, 1.0);
+        fixture.schedule(2, DISPLAYED, 2.0);
+        fixture.schedule(3, PREFETCHED, 1.0);
+        fixture.schedule(4, PREFETCHED, 2.0);
+
+        // The view moves; only tiles 0 (running), 2 and 4 are still wanted
+        fixture.scheduler.beginGeneration();
+        assertTrue(fixture.scheduler.reschedule(tile(0), DISPLAYED, 0.0));
+        assertTrue(fixture.scheduler.reschedule(tile(4), DISPLAYED, 0.0));
+        assertTrue(fixture.scheduler.reschedule(tile(2), DISPLAYED, 3.0));
+        fixture.scheduler.cancelObsolete();
+
+        assertEquals(Arrays.asList(1, 3), sorted(fixture.cancelled));
+        assertFalse(fixture.scheduler.isScheduled(tile(1)));
+        assertTrue(fixture.scheduler.isScheduled(tile(2)));
+        assertEquals(2, fixture.scheduler.getCancelledQueuedCount());
+        assertEquals(0, fixture.scheduler.getCancelledRunningCount());
+        fixture.awaitLoads();
+        assertEquals(Arrays.asList(4, 2), fixture.loaded);
+        assertEquals(2, fixture.cancelled.size());
+        assertFalse(fixture.blockerInterrupted.get());
+    }
+
+    @Test(timeout = 10000)
+    @Category(TestCategories.FastTests.class)
+    public void testCancelObsoleteInterruptsRunningLoad() throws Exception {
+        TileLoadScheduler scheduler = new TileLoadScheduler("TestTileLoad", 1, true);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        scheduler.schedule(tile(1), DISPLAYED, 0.0, () -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        }, null);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        scheduler.beginGeneration();
+        scheduler.cancelObsolete();
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getCancelledRunningCount());
+        assertFalse(scheduler.isScheduled(tile(1)));
+    }
+
+    @Test(timeout = 10000)
+    @Category(TestCategories.FastTests.class)
+    public void testCancelWithoutInterruptLetsLoadFinish() throws Exception {
+        Fixture fixture = new Fixture(false, 1);
+        fixture.schedule(1, DISPLAYED, 0.0);
+        fixture.scheduler.cancelAll();
+        assertEquals(Collections.singletonList(1), fixture.cancelled);
+        assertEquals(1, fixture.scheduler.getCancelledQueuedCount());
+        assertEquals(1, fixture.scheduler.getCancelledRunningCount());
+        fixture.awaitLoads();
+        // The running load was cancelled, but its thread was not interrupted
+        assertTrue(fixture.blockerDone.await(5, TimeUnit.SECONDS));
+        assertFalse(fixture.blockerInterrupted.get());
+        assertTrue(fixture.loaded.isEmpty());
+        assertFalse(fixture.scheduler.isScheduled(tile(0)));
+    }
+
+}
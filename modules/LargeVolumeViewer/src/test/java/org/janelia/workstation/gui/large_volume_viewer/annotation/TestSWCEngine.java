@@ -0,0 +1,462 @@
+package org.janelia.workstation.gui.large_volume_viewer.annotation;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.janelia.model.domain.tiledMicroscope.TmGeoAnnotation;
+import org.janelia.workstation.geom.Vec3;
+import org.janelia.workstation.swc.SWCData;
+import org.janelia.workstation.swc.SWCNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSWCEngine {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    // The way nodes were parsed before: a regex split, and a string per field
+    private static SWCNode legacyParseLine(String line) {
+        String[] items = line.split("\\s+");
+        if (items.length != 7) {
+            return null;
+        }
+        return new SWCNode(
+                Integer.parseInt(items[0]),
+                SWCNode.SegmentType.values()[Integer.parseInt(items[1])],
+                Double.parseDouble(items[2]),
+                Double.parseDouble(items[3]),
+                Double.parseDouble(items[4]),
+                Double.parseDouble(items[5]),
+                Integer.parseInt(items[6]));
+    }
+
+    private static String legacyLine(SWCNode node) {
+        return String.format(Locale.US, "%d %d %f %f %f %f %d", node.getIndex(), node.getSegmentType().decode(),
+                node.getX(), node.getY(), node.getZ(), node.getRadius(), node.getParentIndex());
+    }
+
+    private static void assertSameNode(SWCNode expected, SWCNode actual) {
+        assertEquals(expected.getIndex(), actual.getIndex());
+        assertEquals(expected.getSegmentType(), actual.getSegmentType());
+        assertEquals(Double.doubleToLongBits(expected.getX()), Double.doubleToLongBits(actual.getX()));
+        assertEquals(Double.doubleToLongBits(expected.getY()), Double.doubleToLongBits(actual.getY()));
+        assertEquals(Double.doubleToLongBits(expected.getZ()), Double.doubleToLongBits(actual.getZ()));
+        assertEquals(Double.doubleToLongBits(expected.getRadius()), Double.doubleToLongBits(actual.getRadius()));
+        assertEquals(expected.getParentIndex(), actual.getParentIndex());
+    }
+
+    // A neuron: a random walk, branching now and then
+    private static SWCData syntheticNeuron(Random random, String name, int nodeCount) {
+        List<String> headers = new ArrayList<>();
+        headers.add("# ORIGINAL_SOURCE test");
+        headers.add("# OFFSET 70000.000000 40000.000000 20000.000000");
+        headers.add("# COLOR 1.000000,0.500000,0.000000");
+        headers.add("# NAME " + name);
+        List<SWCNode> nodes = new ArrayList<>();
+        double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000, z = random.nextDouble() * 1000;
+        for (int i = 1; i <= nodeCount; i++) {
+            x += random.nextGaussian() * 3;
+            y += random.nextGaussian() * 3;
+            z += random.nextGaussian();
+            int parent = i == 1 ? -1 : random.nextInt(20) == 0 ? 1 + random.nextInt(i - 1) : i - 1;
+            nodes.add(new SWCNode(i, SWCNode.SegmentType.values()[random.nextInt(8)], x, y, z,
+                    0.5 + random.nextDouble(), parent));
+        }
+        return new SWCData(nodes, headers);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void parsesLikeSplit() {
+        Random random = new Random(1);
+        String[] separators = {" ", "  ", "\t", " \t "};
+        for (int i = 0; i < 20000; i++) {
+            String[] fields = {
+                    Integer.toString(random.nextInt(100000)),
+                    Integer.toString(random.nextInt(8)),
+                    randomNumber(random),
+                    randomNumber(random),
+                    randomNumber(random),
+                    randomNumber(random),
+                    Integer.toString(random.nextInt(3) == 0 ? -1 : random.nextInt(100000))};
+            StringBuilder line = new StringBuilder(fields[0]);
+            for (int f = 1; f < fields.length; f++) {
+                line.append(separators[random.nextInt(separators.length)]).append(fields[f]);
+            }
+            assertSameNode(legacyParseLine(line.toString()), SWCNode.parseLine(line.toString()));
+        }
+
+        assertNull(SWCNode.parseLine("1 2 3.0 4.0 5.0 1.0"));
+        assertNull(SWCNode.parseLine("1 2 3.0 4.0 5.0 1.0 -1 7"));
+        assertNull(SWCNode.parseLine(""));
+        try {
+            SWCNode.parseLine("1 2 3.0 4.x 5.0 1.0 -1");
+            fail("bad number should throw, as before");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+    }
+
+    private static String randomNumber(Random random) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return Integer.toString(random.nextInt(200000) - 100000);
+            case 1:
+                return String.format(Locale.US, "%f", (random.nextDouble() - 0.5) * 200000);
+            case 2:
+                return Double.toString(random.nextDouble() * 1e-3);
+            case 3:
+                return Double.toString((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(30) - 10));
+            case 4:
+                return String.format(Locale.US, "%.3f", random.nextDouble() * 100);
+            default:
+                return (random.nextBoolean() ? "+" : "") + "." + random.nextInt(1000);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void writesLikeFormat() throws Exception {
+        Random random = new Random(2);
+        for (int i = 0; i < 20000; i++) {
+            // values as they come out of the converter: voxel coordinates
+            //  scaled to microns and offset
+            SWCNode node = new SWCNode(i + 1, SWCNode.SegmentType.values()[random.nextInt(8)],
+                    (random.nextInt(2000000) - 1000000) / 4.0, random.nextInt(100000) * 0.125,
+                    -random.nextInt(100000) / 1000.0, 1.0, i);
+            assertEquals(legacyLine(node), node.toSWCline());
+        }
+        for (int i = 0; i < 20000; i++) {
+            SWCNode node = new SWCNode(i + 1, SWCNode.SegmentType.soma, (random.nextDouble() - 0.5) * 200000,
+                    random.nextDouble(), random.nextDouble() * 1e-7, 1.0, -1);
+            SWCNode parsed = SWCNode.parseLine(node.toSWCline());
+            assertEquals(node.getX(), parsed.getX(), 5e-7);
+            assertEquals(node.getY(), parsed.getY(), 5e-7);
+            assertEquals(node.getZ(), parsed.getZ(), 5e-7);
+        }
+
+        File dir = temporaryFolder.newFolder();
+        SWCData data = syntheticNeuron(random, "neuron", 5000);
+        assertTrue(data.isValid());
+        File file = new File(dir, "neuron.swc");
+        data.write(file, -1);
+        assertEquals(file.getAbsolutePath(), data.getPath());
+        SWCData read = SWCData.read(file);
+        assertTrue(read.isValid());
+        assertEquals(data.getHeaderList(), read.getHeaderList());
+        assertEquals(data.getNodeList().size(), read.getNodeList().size());
+        for (int i = 0; i < data.getNodeList().size(); i++) {
+            assertEquals(data.getNodeList().get(i).toSWCline(), read.getNodeList().get(i).toSWCline());
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void claimsUniqueNamesInParallel() throws Exception {
+        File allNeurons = new File(temporaryFolder.getRoot(), "all.swc");
+        List<SWCData> neurons = new ArrayList<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 40; i++) {
+            // many neurons share a name
+            neurons.add(syntheticNeuron(random, "neuron " + (i % 3), 50));
+        }
+        Set<String> paths = Collections.synchronizedSet(new HashSet<>());
+        new SWCEngine(8).run(neurons, (i, neuron) -> {
+            neuron.write(allNeurons, i);
+            return neuron.getPath();
+        }, (i, path) -> paths.add(path));
+        assertEquals(neurons.size(), paths.size());
+        File dir = new File(temporaryFolder.getRoot(), "all");
+        assertEquals(neurons.size(), dir.listFiles().length);
+        assertTrue(new File(dir, "neuron 0.swc").exists());
+        assertTrue(new File(dir, "neuron 0_14.swc").exists());
+        assertFalse(new File(dir, "neuron 0_15.swc").exists());
+        for (String path : paths) {
+            assertTrue(SWCData.read(new File(path)).isValid());
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void deliversResultsInOrder() throws Exception {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            items.add(i);
+        }
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Integer> results = new ArrayList<>();
+        Random random = new Random(4);
+        int[] delays = random.ints(items.size(), 0, 3).toArray();
+        new SWCEngine(4).run(items, (i, item) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(delays[i]);
+            running.decrementAndGet();
+            return item * 10;
+        }, (i, result) -> {
+            assertEquals(results.size(), i);
+            results.add(result);
+        });
+        assertEquals(items.size(), results.size());
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(10 * i, (int) results.get(i));
+        }
+        assertTrue(maxRunning.get() <= 4);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void stopsOnFirstFailure() throws Exception {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(i);
+        }
+        AtomicInteger started = new AtomicInteger();
+        List<Integer> delivered = new ArrayList<>();
+        try {
+            new SWCEngine(2).run(items, (i, item) -> {
+                started.incrementAndGet();
+                if (item == 10) {
+                    throw new IllegalArgumentException("bad file " + item);
+                }
+                return item;
+            }, (i, result) -> delivered.add(result));
+            fail("failure should be rethrown");
+        } catch (IllegalArgumentException e) {
+            assertEquals("bad file 10", e.getMessage());
+        }
+        // nothing after the failure is delivered, and little is started
+        assertEquals(10, delivered.size());
+        assertTrue(started.get() <= 10 + 1 + 2 * 2);
+
+        try {
+            new SWCEngine(2).run(items, (i, item) -> item, (i, result) -> {
+                if (i == 5) {
+                    throw new Exception("sink failed");
+                }
+            });
+            fail("sink failure should be rethrown");
+        } catch (Exception e) {
+            assertEquals("sink failed", e.getMessage());
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void stopsStartingItemsOnceCancelled() throws Exception {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(i);
+        }
+        for (int threads : new int[] {1, 2}) {
+            AtomicBoolean cancelled = new AtomicBoolean();
+            AtomicInteger started = new AtomicInteger();
+            List<Integer> delivered = new ArrayList<>();
+            new SWCEngine(threads).run(items, (i, item) -> {
+                started.incrementAndGet();
+                return item;
+            }, (i, result) -> {
+                delivered.add(result);
+                if (i == 10) {
+                    cancelled.set(true);
+                }
+            }, cancelled::get);
+            // nothing after the cancel is delivered, and little is started
+            assertEquals(11, delivered.size());
+            assertTrue(started.get() <= 11 + 2 * threads);
+        }
+
+        AtomicInteger started = new AtomicInteger();
+        new SWCEngine(2).run(items, (i, item) -> started.incrementAndGet(),
+                (i, result) -> fail("nothing should be delivered"), () -> true);
+        assertEquals(0, started.get());
+    }
+
+    private static TmGeoAnnotation annotation(long id, double x, double y, double z) {
+        Date now = new Date();
+        return new TmGeoAnnotation(id, null, 1L, x, y, z, 1.0, now, now);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void assignsEachNoteToOneNearestAnnotation() {
+        Map<Vec3, String> notes = new HashMap<>();
+        notes.put(new Vec3(100, 200, 300), "a");
+        notes.put(new Vec3(110, 200, 300), "b");
+        notes.put(new Vec3(0, 0, 0), "c");
+        notes.put(new Vec3(0.8, 0, 0), "d");
+        notes.put(new Vec3(1000.2, 0, 0), "e");
+        notes.put(new Vec3(999.7, 0, 0), "f");
+        notes.put(new Vec3(2000, 0, 0), "g");
+        notes.put(new Vec3(3000, 0, 0), "nowhere");
+        List<TmGeoAnnotation> annotations = Arrays.asList(
+                // all near "a", but only the exact one gets it
+                annotation(1, 100, 200, 300.4),
+                annotation(2, 100, 200, 300),
+                annotation(3, 100.3, 200, 300),
+                annotation(4, 110.2, 200, 300),
+                annotation(5, 110.1, 200, 300),
+                // 6 is nearest to "c", 7 to "d"
+                annotation(6, 0.35, 0, 0),
+                annotation(7, 0.5, 0, 0),
+                // near two notes; gets the nearer one only
+                annotation(8, 1000, 0, 0),
+                // equally near; the first one gets it
+                annotation(9, 2000, 0, 0.25),
+                annotation(10, 2000, 0, -0.25));
+        Map<Long, String> expected = new HashMap<>();
+        expected.put(2L, "a");
+        expected.put(5L, "b");
+        expected.put(6L, "c");
+        expected.put(7L, "d");
+        expected.put(8L, "e");
+        expected.put(9L, "g");
+        assertEquals(expected, new SWCNoteMatcher(notes).assign(annotations));
+        assertTrue(new SWCNoteMatcher(Collections.emptyMap()).assign(annotations).isEmpty());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void matchesNotesByLocation() {
+        Map<Vec3, String> notes = new HashMap<>();
+        notes.put(new Vec3(100, 200, 300), "exact");
+        notes.put(new Vec3(100, 201, 300), "next voxel");
+        notes.put(new Vec3(-50, -50, -50), "negative");
+        notes.put(new Vec3(5000, 5000, 5000), "far");
+        SWCNoteMatcher matcher = new SWCNoteMatcher(notes);
+        assertEquals(4, matcher.size());
+        assertEquals("exact", matcher.match(100, 200, 300));
+        assertEquals("exact", matcher.match(100.2, 200.2, 299.9));
+        assertEquals("next voxel", matcher.match(100, 200.9, 300));
+        assertEquals("negative", matcher.match(-50, -50.3, -50));
+        assertNull(matcher.match(100, 200.5001, 301));
+        assertNull(matcher.match(4999, 5000, 5000));
+        assertNull(new SWCNoteMatcher(Collections.emptyMap()).match(0, 0, 0));
+
+        // matches a brute force search over many notes
+        Random random = new Random(5);
+        notes.clear();
+        for (int i = 0; i < 5000; i++) {
+            notes.put(new Vec3(random.nextInt(300), random.nextInt(300), random.nextInt(100)), "note " + i);
+        }
+        matcher = new SWCNoteMatcher(notes, 1.5);
+        for (int i = 0; i < 5000; i++) {
+            double x = random.nextDouble() * 300, y = random.nextDouble() * 300, z = random.nextDouble() * 100;
+            double best = 1.5 * 1.5;
+            Set<String> expected = new HashSet<>();
+            for (Map.Entry<Vec3, String> entry : notes.entrySet()) {
+                Vec3 v = entry.getKey();
+                double d = (v.getX() - x) * (v.getX() - x) + (v.getY() - y) * (v.getY() - y) + (v.getZ() - z) * (v.getZ() - z);
+                if (d < best) {
+                    best = d;
+                    expected.clear();
+                }
+                if (d == best) {
+                    expected.add(entry.getValue());
+                }
+            }
+            String found = matcher.match(x, y, z);
+            if (expected.isEmpty()) {
+                assertNull(found);
+            } else {
+                assertTrue(expected.contains(found));
+            }
+        }
+    }
+
+    /**
+     * Reads and writes 10k synthetic SWC files of about 200 nodes, the old
+     * way (whole file as lines, split and String.format per node) and with the
+     * streaming parser and writer, serially and on all cores.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkTenThousandFiles() throws Exception {
+        int fileCount = 10000;
+        Random random = new Random(6);
+        List<SWCData> neurons = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            neurons.add(syntheticNeuron(random, "neuron " + i, 150 + random.nextInt(100)));
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        File root = temporaryFolder.newFolder();
+
+        File legacyDir = new File(root, "legacy");
+        legacyDir.mkdirs();
+        long start = System.nanoTime();
+        for (int i = 0; i < fileCount; i++) {
+            SWCData neuron = neurons.get(i);
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(legacyDir, i + ".swc")))) {
+                for (String header : neuron.getHeaderList()) {
+                    writer.write(header);
+                    writer.newLine();
+                }
+                for (SWCNode node : neuron.getNodeList()) {
+                    writer.write(legacyLine(node));
+                    writer.newLine();
+                }
+            }
+        }
+        report("write, String.format", start, fileCount);
+
+        for (int t : new int[]{1, threads}) {
+            File all = new File(root, "all" + t + ".swc");
+            start = System.nanoTime();
+            new SWCEngine(t).run(neurons, (i, neuron) -> {
+                neuron.write(all, i);
+                return null;
+            }, (i, result) -> {});
+            report("write, streaming, " + t + " threads", start, fileCount);
+        }
+
+        File[] files = legacyDir.listFiles();
+        start = System.nanoTime();
+        long nodes = 0;
+        for (File file : files) {
+            for (String line : Files.readAllLines(file.toPath(), Charset.defaultCharset())) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    legacyParseLine(line);
+                    nodes++;
+                }
+            }
+        }
+        report("read, readAllLines and split (" + nodes + " nodes)", start, fileCount);
+
+        for (int t : new int[]{1, threads}) {
+            long[] count = {0};
+            start = System.nanoTime();
+            new SWCEngine(t).run(Arrays.asList(files), (i, file) -> SWCData.read(file),
+                    (i, data) -> count[0] += data.getNodeList().size());
+            report("read, streaming, " + t + " threads (" + count[0] + " nodes)", start, fileCount);
+        }
+    }
+
+    private static void report(String what, long startNanos, int fileCount) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%s: %.2f s, %.0f files/s%n", what, seconds, fileCount / seconds);
+    }
+
+}
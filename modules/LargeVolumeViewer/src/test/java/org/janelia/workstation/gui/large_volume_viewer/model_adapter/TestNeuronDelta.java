@@ -0,0 +1,367 @@
+package org.janelia.workstation.gui.large_volume_viewer.model_adapter;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.janelia.it.jacs.model.TestCategories;
+import org.janelia.model.domain.tiledMicroscope.TmAnchoredPath;
+import org.janelia.model.domain.tiledMicroscope.TmAnchoredPathEndpoints;
+import org.janelia.model.domain.tiledMicroscope.TmGeoAnnotation;
+import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
+import org.janelia.model.domain.tiledMicroscope.TmStructuredTextAnnotation;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestNeuronDelta {
+
+    private static final long NEURON_ID = 2500000000000000000L;
+    private static final long FIRST_NODE_ID = NEURON_ID + 1000;
+
+    // A chain of nodes with occasional branches, and an anchored path along every fourth edge
+    private static TmNeuronMetadata syntheticNeuron(int nodeCount) {
+        Random random = new Random(nodeCount);
+        TmNeuronMetadata neuron = new TmNeuronMetadata();
+        neuron.setId(NEURON_ID);
+        neuron.setName("synthetic");
+        for (int i = 0; i < nodeCount; ++i) {
+            TmGeoAnnotation annotation = new TmGeoAnnotation();
+            annotation.setId(FIRST_NODE_ID + i);
+            annotation.setNeuronId(NEURON_ID);
+            annotation.setCreationDate(new Date());
+            annotation.setX(1000 + random.nextInt(5000) + 0.5);
+            annotation.setY(1000 + random.nextInt(5000) + random.nextDouble());
+            annotation.setZ(100.0 + random.nextInt(500));
+            annotation.setRadius(i % 3 == 0 ? null : 1.0 + random.nextInt(4));
+            if (i == 0) {
+                annotation.setParentId(NEURON_ID);
+                neuron.getGeoAnnotationMap().put(annotation.getId(), annotation);
+                neuron.addRootAnnotation(annotation);
+                continue;
+            }
+            long parentId = random.nextInt(20) == 0 ? FIRST_NODE_ID + random.nextInt(i) : FIRST_NODE_ID + i - 1;
+            annotation.setParentId(parentId);
+            neuron.getGeoAnnotationMap().put(annotation.getId(), annotation);
+            neuron.getGeoAnnotationMap().get(parentId).addChild(annotation);
+            if (i % 4 == 0) {
+                addPath(neuron, parentId, annotation.getId(), 5 + random.nextInt(10));
+            }
+        }
+        return neuron;
+    }
+
+    private static void addPath(TmNeuronMetadata neuron, long start, long end, int length) {
+        List<List<Integer>> points = new ArrayList<>();
+        for (int p = 0; p < length; ++p) {
+            points.add(Arrays.asList(2000 + p, 3000 - p, 400 + p / 2));
+        }
+        TmAnchoredPathEndpoints endpoints = new TmAnchoredPathEndpoints(start, end);
+        neuron.getAnchoredPathMap().put(endpoints, new TmAnchoredPath(end + 1000000, endpoints, points));
+    }
+
+    private static NeuronStateSnapshot snapshot(long neuronId, long... idsAndParents) {
+        NeuronStateSnapshot snapshot = new NeuronStateSnapshot(neuronId, 1, 1);
+        for (int i = 0; i < idsAndParents.length; i += 2) {
+            long id = idsAndParents[i];
+            snapshot.addNode(id, idsAndParents[i + 1], id * 1.5, id + 0.25, id % 7, i % 4 == 0 ? Double.NaN : 2.0);
+        }
+        return snapshot;
+    }
+
+    // What NeuronModelAdapter sends for a save: the delta, or else the full neuron
+    private static byte[] sendSave(NeuronDeltaTracker tracker, TmNeuronMetadata neuron, Map<String, Object> headers,
+            ObjectMapper mapper) throws Exception {
+        headers.clear();
+        byte[] delta = tracker.addSaveHeaders(neuron, headers);
+        assertEquals(delta != null, NeuronDeltaTracker.hasDeltaBody(headers));
+        return delta != null ? delta : mapper.writeValueAsBytes(neuron);
+    }
+
+    // What RefreshHandler does with a save from another client: apply its delta
+    //  to the local copy, or else take up the full neuron from the message body;
+    //  null if the delta does not apply, and the writer must resend the full neuron
+    private static TmNeuronMetadata receiveSave(NeuronDeltaTracker tracker, Map<String, Object> headers, byte[] body,
+            TmNeuronMetadata localNeuron, ObjectMapper mapper) throws Exception {
+        if (NeuronDeltaTracker.hasDeltaBody(headers)) {
+            return tracker.apply(NeuronDeltaTracker.readDelta(body), localNeuron) ? localNeuron : null;
+        }
+        TmNeuronMetadata neuron = mapper.readValue(body, TmNeuronMetadata.class);
+        tracker.resynced(neuron.getId(), Long.valueOf((String) headers.get(NeuronMessageConstants.Headers.NEURON_VERSION)));
+        return neuron;
+    }
+
+    private static void assertSameGeometry(TmNeuronMetadata expected, TmNeuronMetadata actual) {
+        NeuronStateSnapshot expectedState = NeuronDeltaTracker.snapshot(expected);
+        NeuronStateSnapshot actualState = NeuronDeltaTracker.snapshot(actual);
+        assertTrue(actualState.diff(expectedState, 0, 1).isEmpty());
+        for (TmGeoAnnotation annotation : expected.getGeoAnnotationMap().values()) {
+            TmGeoAnnotation copy = actual.getGeoAnnotationMap().get(annotation.getId());
+            assertEquals(annotation.getChildIds().size(), copy.getChildIds().size());
+            assertTrue(copy.getChildIds().containsAll(annotation.getChildIds()));
+        }
+        assertEquals(expected.getRootAnnotations().size(), actual.getRootAnnotations().size());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testDiffFindsChangedAndDeletedNodes() {
+        NeuronStateSnapshot before = snapshot(1, 10, 1, 11, 10, 12, 11, 13, 11);
+        NeuronStateSnapshot after = snapshot(1, 10, 1, 11, 10, 13, 10, 14, 13);
+        before.addPath(100, 10, 11, new int[] {1, 2, 3, 2, 2, 3});
+        before.addPath(101, 11, 12, new int[] {5, 5, 5});
+        after.addPath(100, 10, 11, new int[] {1, 2, 3, 2, 2, 3});
+        after.addPath(102, 13, 14, new int[] {7, 8, 9});
+
+        NeuronDelta delta = after.diff(before, 41, 42);
+        assertEquals(41, delta.getBaseVersion());
+        assertEquals(42, delta.getVersion());
+        // 13 was reparented, 14 is new
+        assertArrayEquals(new long[] {13, 14}, delta.nodeIds);
+        assertArrayEquals(new long[] {10, 13}, delta.parentIds);
+        assertArrayEquals(new long[] {12}, delta.deletedNodeIds);
+        assertArrayEquals(new long[] {13}, delta.pathStarts);
+        assertArrayEquals(new long[] {11}, delta.deletedPathStarts);
+        assertArrayEquals(new long[] {12}, delta.deletedPathEnds);
+
+        assertTrue(after.diff(after, 42, 43).isEmpty());
+        assertEquals(4, after.diff(null, 0, 1).getChangedNodeCount());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testCodecRoundTrip() {
+        NeuronStateSnapshot state = new NeuronStateSnapshot(NEURON_ID, 4, 4);
+        state.addNode(NEURON_ID + 5, NEURON_ID, 12.5, -3.0, 0.1, Double.NaN);
+        state.addNode(NEURON_ID + 3, NEURON_ID + 5, Math.PI, 1e9, -7.25, 1.75);
+        state.addNode(NEURON_ID - 2, NEURON_ID + 3, 0, 0, 0, 0.3);
+        state.addPath(NEURON_ID + 99, NEURON_ID + 5, NEURON_ID + 3, new int[] {-4, 100000, 7, -5, 99999, 7});
+        NeuronDelta delta = state.diff(snapshot(NEURON_ID, NEURON_ID + 1, NEURON_ID), 7, Long.MAX_VALUE);
+        NeuronDeltaCodec codec = new NeuronDeltaCodec();
+        byte[] encoded = codec.encode(delta);
+        NeuronDelta decoded = NeuronDeltaCodec.decode(encoded);
+
+        assertEquals(NEURON_ID, decoded.getNeuronId());
+        assertEquals(7, decoded.getBaseVersion());
+        assertEquals(Long.MAX_VALUE, decoded.getVersion());
+        assertArrayEquals(delta.nodeIds, decoded.nodeIds);
+        assertArrayEquals(delta.parentIds, decoded.parentIds);
+        assertArrayEquals(delta.x, decoded.x, 0);
+        assertArrayEquals(delta.y, decoded.y, 0);
+        assertArrayEquals(delta.z, decoded.z, 0);
+        assertArrayEquals(delta.radius, decoded.radius, 0);
+        assertArrayEquals(new long[] {NEURON_ID + 1}, decoded.deletedNodeIds);
+        assertArrayEquals(delta.pathIds, decoded.pathIds);
+        assertArrayEquals(delta.pathEnds, decoded.pathEnds);
+        assertArrayEquals(delta.pathPoints[0], decoded.pathPoints[0]);
+
+        // The buffer is reused, so a second encoding must not disturb the first
+        codec.encode(snapshot(1, 10, 1).diff(null, 0, 1));
+        assertArrayEquals(encoded, codec.encode(delta));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testTruncatedDeltaIsRejected() {
+        byte[] encoded = new NeuronDeltaCodec().encode(snapshot(1, 10, 1, 11, 10).diff(null, 0, 1));
+        for (int length = 0; length < encoded.length; ++length) {
+            try {
+                NeuronDeltaCodec.decode(Arrays.copyOf(encoded, length));
+                fail("Decoded truncated delta of " + length + " bytes");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testApplyFollowsEditsAndDetectsGaps() {
+        TmNeuronMetadata writer = syntheticNeuron(200);
+        TmNeuronMetadata reader = syntheticNeuron(200);
+        NeuronDeltaTracker writerTracker = new NeuronDeltaTracker();
+        NeuronDeltaTracker readerTracker = new NeuronDeltaTracker();
+
+        Map<String, Object> headers = new HashMap<>();
+        assertNull(writerTracker.addSaveHeaders(writer, headers)); // nothing sent before, so no delta
+        assertFalse(NeuronDeltaTracker.hasDeltaBody(headers));
+        readerTracker.resynced(NEURON_ID, Long.valueOf((String) headers.get(NeuronMessageConstants.Headers.NEURON_VERSION)));
+
+        // move a node, delete a leaf, add a branch with a path
+        writer.getGeoAnnotationMap().get(FIRST_NODE_ID + 50).setX(1.0);
+        TmGeoAnnotation leaf = writer.getGeoAnnotationMap().remove(FIRST_NODE_ID + 199);
+        writer.getGeoAnnotationMap().get(leaf.getParentId()).getChildIds().remove(leaf.getId());
+        TmGeoAnnotation branch = new TmGeoAnnotation();
+        branch.setId(FIRST_NODE_ID + 500);
+        branch.setNeuronId(NEURON_ID);
+        branch.setParentId(FIRST_NODE_ID + 10);
+        branch.setX(1.0);
+        branch.setY(2.0);
+        branch.setZ(3.0);
+        writer.getGeoAnnotationMap().put(branch.getId(), branch);
+        writer.getGeoAnnotationMap().get(FIRST_NODE_ID + 10).addChild(branch);
+        addPath(writer, FIRST_NODE_ID + 10, branch.getId(), 3);
+
+        headers.clear();
+        NeuronDelta delta = NeuronDeltaTracker.readDelta(writerTracker.addSaveHeaders(writer, headers));
+        assertTrue(NeuronDeltaTracker.hasDeltaBody(headers));
+        assertEquals(2, delta.getChangedNodeCount());
+        assertEquals(1, delta.getDeletedNodeCount());
+        assertTrue(readerTracker.apply(delta, reader));
+        assertSameGeometry(writer, reader);
+
+        // a second reader that missed the first message cannot apply the next one
+        headers.clear();
+        writer.getGeoAnnotationMap().get(FIRST_NODE_ID + 60).setZ(0.0);
+        NeuronDelta next = NeuronDeltaTracker.readDelta(writerTracker.addSaveHeaders(writer, headers));
+        assertFalse(new NeuronDeltaTracker().apply(next, syntheticNeuron(200)));
+        assertTrue(readerTracker.apply(next, reader));
+        assertSameGeometry(writer, reader);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testRenameSendsFullNeuron() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        TmNeuronMetadata writer = syntheticNeuron(50);
+        NeuronDeltaTracker writerTracker = new NeuronDeltaTracker();
+        NeuronDeltaTracker readerTracker = new NeuronDeltaTracker();
+        Map<String, Object> headers = new HashMap<>();
+        TmNeuronMetadata reader = receiveSave(readerTracker, headers, sendSave(writerTracker, writer, headers, mapper), null, mapper);
+
+        writer.setName("renamed");
+        byte[] body = sendSave(writerTracker, writer, headers, mapper);
+        // A delta would be empty, and leave the receiver with the old name
+        assertFalse(NeuronDeltaTracker.hasDeltaBody(headers));
+        reader = receiveSave(readerTracker, headers, body, reader, mapper);
+        assertEquals("renamed", reader.getName());
+
+        // Once back in step, a move travels as a delta again
+        writer.getGeoAnnotationMap().get(FIRST_NODE_ID + 20).setY(-5.0);
+        body = sendSave(writerTracker, writer, headers, mapper);
+        assertTrue(NeuronDeltaTracker.hasDeltaBody(headers));
+        TmNeuronMetadata updated = receiveSave(readerTracker, headers, body, reader, mapper);
+        assertSame(reader, updated);
+        assertEquals(-5.0, reader.getGeoAnnotationMap().get(FIRST_NODE_ID + 20).getY(), 0);
+        assertEquals("renamed", reader.getName());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testPropertyChangesSendNoDelta() {
+        TmNeuronMetadata writer = syntheticNeuron(50);
+        NeuronDeltaTracker tracker = new NeuronDeltaTracker();
+        Map<String, Object> headers = new HashMap<>();
+        tracker.addSaveHeaders(writer, headers);
+        List<Runnable> edits = Arrays.asList(
+                () -> writer.setColor(Color.ORANGE),
+                () -> writer.getTags().add("traced"),
+                () -> writer.getStructuredTextAnnotationMap().put(FIRST_NODE_ID + 3,
+                        new TmStructuredTextAnnotation(NEURON_ID + 77, FIRST_NODE_ID + 3, "{\"note\":\"branch\"}")),
+                () -> writer.getStructuredTextAnnotationMap().get(FIRST_NODE_ID + 3).setDataString("{\"note\":\"end\"}"),
+                () -> writer.setOwnerKey("user:other"),
+                () -> writer.getWriters().add("group:tracers"));
+        for (Runnable edit : edits) {
+            edit.run();
+            headers.clear();
+            assertNull(tracker.addSaveHeaders(writer, headers));
+            assertFalse(NeuronDeltaTracker.hasDeltaBody(headers));
+            assertNotNull(headers.get(NeuronMessageConstants.Headers.NEURON_VERSION));
+        }
+        // Saving again unchanged sends an empty delta
+        headers.clear();
+        assertTrue(NeuronDeltaTracker.readDelta(tracker.addSaveHeaders(writer, headers)).isEmpty());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testResyncRequestSendsFullNeuron() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        TmNeuronMetadata writer = syntheticNeuron(50);
+        NeuronDeltaTracker writerTracker = new NeuronDeltaTracker();
+        NeuronDeltaTracker readerTracker = new NeuronDeltaTracker();
+        Map<String, Object> headers = new HashMap<>();
+        assertFalse(writerTracker.resyncRequested(NEURON_ID, 1)); // never sent
+        TmNeuronMetadata reader = receiveSave(readerTracker, headers, sendSave(writerTracker, writer, headers, mapper), null, mapper);
+
+        // A receiver that joins late has no base for the delta
+        writer.getGeoAnnotationMap().get(FIRST_NODE_ID + 30).setZ(7.0);
+        byte[] body = sendSave(writerTracker, writer, headers, mapper);
+        NeuronDeltaTracker lateTracker = new NeuronDeltaTracker();
+        assertNull(receiveSave(lateTracker, headers, body, syntheticNeuron(50), mapper));
+        long failedVersion = NeuronDeltaTracker.readDelta(body).getVersion();
+        assertSame(reader, receiveSave(readerTracker, headers, body, reader, mapper));
+
+        // The writer answers the request with the full neuron, once
+        assertTrue(writerTracker.resyncRequested(NEURON_ID, failedVersion));
+        body = sendSave(writerTracker, writer, headers, mapper);
+        assertFalse(NeuronDeltaTracker.hasDeltaBody(headers));
+        TmNeuronMetadata late = receiveSave(lateTracker, headers, body, null, mapper);
+        reader = receiveSave(readerTracker, headers, body, reader, mapper);
+        assertEquals(7.0, late.getGeoAnnotationMap().get(FIRST_NODE_ID + 30).getZ(), 0);
+        assertFalse(writerTracker.resyncRequested(NEURON_ID, failedVersion));
+
+        // Both receivers follow the next delta
+        writer.getGeoAnnotationMap().get(FIRST_NODE_ID + 31).setZ(8.0);
+        body = sendSave(writerTracker, writer, headers, mapper);
+        assertTrue(NeuronDeltaTracker.hasDeltaBody(headers));
+        assertSame(late, receiveSave(lateTracker, headers, body, late, mapper));
+        assertSame(reader, receiveSave(readerTracker, headers, body, reader, mapper));
+        assertEquals(8.0, late.getGeoAnnotationMap().get(FIRST_NODE_ID + 31).getZ(), 0);
+        assertEquals(8.0, reader.getGeoAnnotationMap().get(FIRST_NODE_ID + 31).getZ(), 0);
+    }
+
+    /**
+     * Whole save path of one anchor drag, from serializing the message on
+     * the sending client to updating the neuron on the receiving one, with
+     * the full neuron as the message body and with a delta body.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkAnchorDrag() throws Exception {
+        int nodeCount = 50000;
+        TmNeuronMetadata writer = syntheticNeuron(nodeCount);
+        TmNeuronMetadata reader = syntheticNeuron(nodeCount);
+        ObjectMapper mapper = new ObjectMapper();
+        NeuronDeltaTracker writerTracker = new NeuronDeltaTracker();
+        NeuronDeltaTracker readerTracker = new NeuronDeltaTracker();
+        Map<String, Object> headers = new HashMap<>();
+        writerTracker.addSaveHeaders(writer, headers);
+        readerTracker.resynced(NEURON_ID, Long.valueOf((String) headers.get(NeuronMessageConstants.Headers.NEURON_VERSION)));
+        TmGeoAnnotation dragged = writer.getGeoAnnotationMap().get(FIRST_NODE_ID + nodeCount / 2);
+
+        int edits = 20;
+        long jsonBytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < edits; ++i) {
+            dragged.setX(dragged.getX() + 1);
+            byte[] json = mapper.writeValueAsBytes(writer);
+            jsonBytes += json.length;
+            mapper.readValue(json, TmNeuronMetadata.class);
+        }
+        double jsonSeconds = (System.nanoTime() - start) / 1e9;
+
+        long deltaBytes = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < edits; ++i) {
+            dragged.setX(dragged.getX() + 1);
+            byte[] body = sendSave(writerTracker, writer, headers, mapper);
+            deltaBytes += body.length;
+            assertSame(reader, receiveSave(readerTracker, headers, body, reader, mapper));
+        }
+        double deltaSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d-node neuron, full JSON: %.1f saves/s, %d message bytes per save%n",
+                nodeCount, edits / jsonSeconds, jsonBytes / edits);
+        System.out.printf("%d-node neuron, delta: %.1f saves/s, %d message bytes per save%n",
+                nodeCount, edits / deltaSeconds, deltaBytes / edits);
+    }
+
+}
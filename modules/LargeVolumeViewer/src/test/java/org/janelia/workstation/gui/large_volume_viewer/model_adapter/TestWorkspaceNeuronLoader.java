@@ -0,0 +1,342 @@
+package org.janelia.workstation.gui.large_volume_viewer.model_adapter;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.janelia.it.jacs.model.TestCategories;
+import org.janelia.model.domain.tiledMicroscope.TmGeoAnnotation;
+import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestWorkspaceNeuronLoader {
+
+    private static final long FIRST_NEURON_ID = 2500000000000000000L;
+
+    // A fragment: a short chain of annotations around a random point
+    private static TmNeuronMetadata syntheticFragment(long index, int nodeCount) {
+        Random random = new Random(index);
+        long neuronId = FIRST_NEURON_ID + 1000 * index;
+        TmNeuronMetadata neuron = new TmNeuronMetadata();
+        neuron.setId(neuronId);
+        neuron.setName("fragment " + index);
+        double x = random.nextInt(20000);
+        double y = random.nextInt(20000);
+        double z = random.nextInt(5000);
+        for (int i = 0; i < nodeCount; ++i) {
+            TmGeoAnnotation annotation = new TmGeoAnnotation();
+            annotation.setId(neuronId + 1 + i);
+            annotation.setNeuronId(neuronId);
+            annotation.setParentId(i == 0 ? neuronId : neuronId + i);
+            annotation.setCreationDate(new Date());
+            annotation.setX(x + i);
+            annotation.setY(y + random.nextInt(3));
+            annotation.setZ(z);
+            neuron.getGeoAnnotationMap().put(annotation.getId(), annotation);
+            if (i == 0) {
+                neuron.addRootAnnotation(annotation);
+            }
+        }
+        return neuron;
+    }
+
+    // Generates neurons on demand, so nothing is shared between pages
+    private static class SyntheticSource implements WorkspaceNeuronLoader.NeuronSource {
+        private final long count;
+        private final long failAt;
+
+        SyntheticSource(long count, long failAt) {
+            this.count = count;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public long getNeuronCount() {
+            return count;
+        }
+
+        @Override
+        public void streamNeurons(long offset, int length, Consumer<TmNeuronMetadata> consumer) {
+            for (long i = offset; i < offset + length; ++i) {
+                if (i == failAt) {
+                    throw new IllegalStateException("Stream broke at neuron " + i);
+                }
+                consumer.accept(syntheticFragment(i, 3));
+            }
+        }
+    }
+
+    private static double distance(TmNeuronMetadata neuron, double[] focus) {
+        double nearest = Double.MAX_VALUE;
+        for (TmGeoAnnotation annotation : neuron.getGeoAnnotationMap().values()) {
+            double dx = annotation.getX() - focus[0];
+            double dy = annotation.getY() - focus[1];
+            double dz = annotation.getZ() - focus[2];
+            nearest = Math.min(nearest, dx * dx + dy * dy + dz * dz);
+        }
+        return nearest;
+    }
+
+    @Test(timeout = 30000)
+    @Category(TestCategories.FastTests.class)
+    public void loadsEveryNeuronOnce() throws Exception {
+        int count = 25013;
+        WorkspaceNeuronLoader loader = new WorkspaceNeuronLoader(new SyntheticSource(count, -1), 1000, 3, 3);
+        Set<Long> registered = new HashSet<>();
+        List<Integer> progress = new ArrayList<>();
+        WorkspaceNeuronLoader.Stats stats = loader.load(
+                neuron -> {
+                    neuron.setName("prepared");
+                    return neuron;
+                },
+                neuron -> {
+                    assertEquals("prepared", neuron.getName());
+                    assertTrue("registered twice: " + neuron.getId(), registered.add(neuron.getId()));
+                },
+                (batch, loadedCount, totalCount) -> {
+                    assertEquals(count, totalCount);
+                    progress.add(loadedCount);
+                });
+
+        assertEquals(count, registered.size());
+        for (long i = 0; i < count; ++i) {
+            assertTrue(registered.contains(FIRST_NEURON_ID + 1000 * i));
+        }
+        assertEquals(count, stats.getNeuronCount());
+        assertEquals(count, (int) progress.get(progress.size() - 1));
+        for (int i = 1; i < progress.size(); ++i) {
+            assertTrue(progress.get(i) > progress.get(i - 1));
+        }
+    }
+
+    @Test(timeout = 30000)
+    @Category(TestCategories.FastTests.class)
+    public void registersNearestFocusFirstInEachBatch() throws Exception {
+        double[] focus = {10000, 10000, 2500};
+        WorkspaceNeuronLoader loader = new WorkspaceNeuronLoader(new SyntheticSource(20000, -1), 500, 2, 2);
+        loader.setFocus(focus);
+        List<TmNeuronMetadata> order = new ArrayList<>();
+        loader.load(neuron -> neuron, order::add, (batch, loadedCount, totalCount) -> {
+            for (int i = 1; i < batch.size(); ++i) {
+                assertTrue(distance(batch.get(i - 1), focus) <= distance(batch.get(i), focus));
+            }
+        });
+        assertEquals(20000, order.size());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void pagesWithoutFocusGoInOrder() {
+        WorkspaceNeuronLoader.PageScheduler pages = new WorkspaceNeuronLoader.PageScheduler(5, false);
+        for (int page = 0; page < 5; ++page) {
+            assertEquals(page, pages.next());
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void pagesNextToTheNearestPageGoFirst() {
+        WorkspaceNeuronLoader.PageScheduler pages = new WorkspaceNeuronLoader.PageScheduler(16, true);
+        // first spread over the workspace
+        assertEquals(0, pages.next());
+        assertEquals(8, pages.next());
+        assertEquals(4, pages.next());
+        assertEquals(12, pages.next());
+        pages.neuronPrepared(0, 900);
+        pages.neuronPrepared(4, 900);
+        pages.neuronPrepared(8, 400);
+        pages.neuronPrepared(8, 100);
+        pages.neuronPrepared(12, 300);
+        // then the neighbours of page 8, then those of page 12
+        Set<Integer> next = new HashSet<>();
+        next.add(pages.next());
+        next.add(pages.next());
+        assertEquals(new HashSet<>(Arrays.asList(7, 9)), next);
+        pages.neuronPrepared(9, 50);
+        assertEquals(10, pages.next());
+        // page 8 is nearer than page 12, even two pages away
+        assertEquals(6, pages.next());
+        Set<Integer> all = new HashSet<>(Arrays.asList(0, 8, 4, 12, 7, 9, 10, 6));
+        for (int i = all.size(); i < 16; ++i) {
+            assertTrue(all.add(pages.next()));
+        }
+        assertEquals(16, all.size());
+    }
+
+    @Test(timeout = 30000)
+    @Category(TestCategories.FastTests.class)
+    public void fetchesPagesNearTheFocusEarly() throws Exception {
+        int pageSize = 100;
+        int pageCount = 64;
+        double[] focus = {1000 * 45, 0, 0};
+        // each page's neurons lie together, further along x for later pages
+        List<Long> fetched = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger registeredCount = new AtomicInteger();
+        WorkspaceNeuronLoader.NeuronSource source = new WorkspaceNeuronLoader.NeuronSource() {
+            @Override
+            public long getNeuronCount() {
+                return (long) pageSize * pageCount;
+            }
+
+            @Override
+            public void streamNeurons(long offset, int length, Consumer<TmNeuronMetadata> consumer) {
+                // let earlier pages reach the scheduler, as slow fetches would
+                while (registeredCount.get() < fetched.size() * pageSize) {
+                    Thread.yield();
+                }
+                fetched.add(offset / pageSize);
+                for (long i = offset; i < offset + length; ++i) {
+                    TmNeuronMetadata neuron = syntheticFragment(i, 1);
+                    TmGeoAnnotation annotation = neuron.getGeoAnnotationMap().values().iterator().next();
+                    annotation.setX(1000.0 * (i / pageSize));
+                    annotation.setY(0.0);
+                    annotation.setZ(0.0);
+                    consumer.accept(neuron);
+                }
+            }
+        };
+        WorkspaceNeuronLoader loader = new WorkspaceNeuronLoader(source, pageSize, 1, 1);
+        loader.setFocus(focus);
+        Set<Long> registered = new HashSet<>();
+        loader.load(neuron -> neuron, neuron -> {
+            registered.add(neuron.getId());
+            registeredCount.incrementAndGet();
+        }, null);
+        assertEquals(pageSize * pageCount, registered.size());
+        assertEquals(pageCount, new HashSet<>(fetched).size());
+        // 8 pages spread out, then a walk from the nearest of them; in offset
+        //  order page 45 would come 46th
+        assertTrue("focus page fetched at " + fetched.indexOf(45L), fetched.indexOf(45L) < 16);
+    }
+
+    @Test(timeout = 30000)
+    @Category(TestCategories.FastTests.class)
+    public void emptyWorkspace() throws Exception {
+        WorkspaceNeuronLoader loader = new WorkspaceNeuronLoader(new SyntheticSource(0, -1), 1000, 4, 4);
+        WorkspaceNeuronLoader.Stats stats = loader.load(neuron -> neuron,
+                neuron -> fail("nothing to register"),
+                (batch, loadedCount, totalCount) -> fail("nothing to report"));
+        assertEquals(0, stats.getNeuronCount());
+    }
+
+    @Test(timeout = 30000, expected = IllegalStateException.class)
+    @Category(TestCategories.FastTests.class)
+    public void sourceFailureIsRethrown() throws Exception {
+        // fails part way through a page, with other pages still streaming
+        WorkspaceNeuronLoader loader = new WorkspaceNeuronLoader(new SyntheticSource(50000, 12345), 1000, 4, 2);
+        loader.load(neuron -> neuron, neuron -> { }, null);
+    }
+
+    @Test(timeout = 30000)
+    @Category(TestCategories.FastTests.class)
+    public void prepareFailureIsRethrown() throws Exception {
+        long badId = FIRST_NEURON_ID + 1000 * 777;
+        WorkspaceNeuronLoader loader = new WorkspaceNeuronLoader(new SyntheticSource(50000, -1), 1000, 4, 3);
+        try {
+            loader.load(neuron -> {
+                if (neuron.getId() == badId) {
+                    throw new IOException("could not save repaired neuron");
+                }
+                return neuron;
+            }, neuron -> { }, null);
+            fail("expected the preparer's exception");
+        } catch (IOException e) {
+            assertEquals("could not save repaired neuron", e.getMessage());
+        }
+    }
+
+    /**
+     * Compares the pipeline with the old path on JSON pages of fragments:
+     * parse every page into a list, then initialize and register each neuron
+     * in turn.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkWorkspaceLoad() throws Exception {
+        int count = 100000;
+        int pageSize = 10000;
+        ObjectMapper mapper = new ObjectMapper();
+        List<byte[]> pages = new ArrayList<>();
+        for (int offset = 0; offset < count; offset += pageSize) {
+            List<TmNeuronMetadata> page = new ArrayList<>();
+            for (int i = offset; i < offset + pageSize; ++i) {
+                page.add(syntheticFragment(i, 10));
+            }
+            StringBuilder json = new StringBuilder();
+            for (TmNeuronMetadata neuron : page) {
+                json.append(mapper.writeValueAsString(neuron)).append('\n');
+            }
+            pages.add(json.toString().getBytes("UTF-8"));
+        }
+        WorkspaceNeuronLoader.NeuronSource source = new WorkspaceNeuronLoader.NeuronSource() {
+            @Override
+            public long getNeuronCount() {
+                return count;
+            }
+
+            @Override
+            public void streamNeurons(long offset, int length, Consumer<TmNeuronMetadata> consumer) {
+                try (JsonParser parser = mapper.getFactory().createParser(pages.get((int) (offset / pageSize)))) {
+                    Iterator<TmNeuronMetadata> neurons = parser.readValuesAs(TmNeuronMetadata.class);
+                    while (neurons.hasNext()) {
+                        consumer.accept(neurons.next());
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        WorkspaceNeuronLoader.NeuronPreparer preparer = neuron -> {
+            neuron.initNeuronData();
+            return neuron;
+        };
+
+        long start = System.nanoTime();
+        List<TmNeuronMetadata> all = new ArrayList<>();
+        for (long offset = 0; offset < count; offset += pageSize) {
+            source.streamNeurons(offset, pageSize, all::add);
+        }
+        Set<Long> registered = new HashSet<>();
+        for (TmNeuronMetadata neuron : all) {
+            registered.add(preparer.prepare(neuron).getId());
+        }
+        double serialSeconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(count, registered.size());
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        WorkspaceNeuronLoader loader = new WorkspaceNeuronLoader(source, pageSize, 4, cores);
+        loader.setFocus(new double[]{10000, 10000, 2500});
+        registered.clear();
+        long[] firstBatchNanos = {0};
+        start = System.nanoTime();
+        long pipelineStart = start;
+        WorkspaceNeuronLoader.Stats stats = loader.load(preparer, neuron -> registered.add(neuron.getId()),
+                (batch, loadedCount, totalCount) -> {
+                    if (firstBatchNanos[0] == 0) {
+                        firstBatchNanos[0] = System.nanoTime() - pipelineStart;
+                    }
+                });
+        double pipelineSeconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(count, registered.size());
+
+        System.out.printf("%d fragments, parse then prepare: %.2f s, nothing visible until done%n", count, serialSeconds);
+        System.out.printf("%d fragments, pipeline on %d cores: %.2f s, first batch after %.3f s%n",
+                count, cores, pipelineSeconds, firstBatchNanos[0] / 1e9);
+        System.out.println(stats);
+    }
+
+}
@@ -0,0 +1,297 @@
+package org.janelia.workstation.gui.large_volume_viewer.neuron_api;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestDynamicVertexIndex {
+
+    private static final Executor SAME_THREAD = Runnable::run;
+
+    // Equal by id only, like NeuronVertexAdapter
+    private static class Point {
+        final long id;
+        final float[] location;
+
+        Point(long id, float x, float y, float z) {
+            this.id = id;
+            this.location = new float[]{x, y, z};
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Point && ((Point) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(id);
+        }
+    }
+
+    // Points on a coarse grid, so many share a location
+    private static Point randomPoint(Random random, long id) {
+        return new Point(id, random.nextInt(200) * 0.4f, random.nextInt(200) * 0.4f, random.nextInt(50));
+    }
+
+    private static double distance(Point p, double[] q) {
+        double dx = p.location[0] - q[0];
+        double dy = p.location[1] - q[1];
+        double dz = p.location[2] - q[2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    // Compares distances rather than points, since ties may come back in any order
+    private static void assertNearest(List<Point> points, DynamicVertexIndex<Point> index, double[] q, int n,
+            Predicate<Point> filter) {
+        double[] expected = points.stream()
+                .filter(p -> filter == null || filter.test(p))
+                .mapToDouble(p -> distance(p, q))
+                .sorted()
+                .limit(n)
+                .toArray();
+        List<Point> found = index.nearest(q[0], q[1], q[2], n, filter);
+        double[] actual = found.stream().mapToDouble(p -> distance(p, q)).toArray();
+        assertArrayEquals(expected, actual, 0);
+        assertEquals(found.size(), new HashSet<>(found).size());
+    }
+
+    private static void assertSameQueries(Random random, List<Point> points, DynamicVertexIndex<Point> index) {
+        assertEquals(points.size(), index.size());
+        for (int i = 0; i < 100; ++i) {
+            double[] q = {random.nextDouble() * 80, random.nextDouble() * 80, random.nextDouble() * 50};
+            assertNearest(points, index, q, 1 + random.nextInt(12), null);
+            assertNearest(points, index, q, 3, p -> p.id % 2 == 0);
+
+            double[] min = {q[0] - 5, q[1] - 5, q[2] - 3};
+            double[] max = {q[0] + 5, q[1] + 5, q[2] + 3};
+            HashSet<Point> expected = new HashSet<>();
+            for (Point p : points) {
+                if (p.location[0] >= min[0] && p.location[0] <= max[0] && p.location[1] >= min[1]
+                        && p.location[1] <= max[1] && p.location[2] >= min[2] && p.location[2] <= max[2]) {
+                    expected.add(p);
+                }
+            }
+            List<Point> inBox = index.inBox(min, max);
+            assertEquals(expected.size(), inBox.size());
+            assertEquals(expected, new HashSet<>(inBox));
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void storesDuplicateLocations() {
+        DynamicVertexIndex<Point> index = new DynamicVertexIndex<>(SAME_THREAD);
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            points.add(new Point(i, 10, 20, 30));
+        }
+        index.rebuild(points.subList(0, 25), p -> p.location);
+        assertEquals(25, index.addAll(points, p -> p.location));
+        assertFalse(index.add(points.get(0), 1, 2, 3));
+        assertEquals(50, index.size());
+        assertEquals(50, index.nearest(10, 20, 30, 100, null).size());
+        assertEquals(50, index.inBox(new double[]{10, 20, 30}, new double[]{10, 20, 30}).size());
+
+        assertTrue(index.remove(points.get(3)));
+        assertFalse(index.remove(points.get(3)));
+        assertEquals(49, index.nearest(0, 0, 0, 100, null).size());
+        assertFalse(index.nearest(0, 0, 0, 100, null).contains(points.get(3)));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void bulkBuildMatchesBruteForce() {
+        Random random = new Random(1);
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 20000; ++i) {
+            points.add(randomPoint(random, i));
+        }
+        DynamicVertexIndex<Point> index = new DynamicVertexIndex<>(SAME_THREAD);
+        index.rebuild(points, p -> p.location);
+        assertSameQueries(random, points, index);
+        assertTrue(index.nearest(0, 0, 0, 0, null).isEmpty());
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertTrue(index.nearest(0, 0, 0, 5, null).isEmpty());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void interleavedEditsTriggerRebuilds() {
+        Random random = new Random(2);
+        DynamicVertexIndex<Point> index = new DynamicVertexIndex<>(SAME_THREAD);
+        List<Point> points = new ArrayList<>();
+        long nextId = 0;
+        for (int round = 0; round < 60; ++round) {
+            // a neuron's worth of points comes and another goes
+            List<Point> neuron = new ArrayList<>();
+            for (int i = 0; i < 300; ++i) {
+                neuron.add(randomPoint(random, nextId++));
+            }
+            index.addAll(neuron, p -> p.location);
+            points.addAll(neuron);
+            if (round % 3 == 2) {
+                List<Point> removed = new ArrayList<>(points.subList(0, 500));
+                assertEquals(500, index.removeAll(removed));
+                points.subList(0, 500).clear();
+            }
+            // single edits, including moves
+            for (int i = 0; i < 20; ++i) {
+                Point p = points.get(random.nextInt(points.size()));
+                assertTrue(index.remove(p));
+                Point moved = randomPoint(random, p.id);
+                assertTrue(index.add(moved, moved.location[0], moved.location[1], moved.location[2]));
+                points.set(points.indexOf(p), moved);
+            }
+            if (round % 10 == 0) {
+                assertSameQueries(random, points, index);
+            }
+        }
+        assertTrue(index.getRebuildCount() > 0);
+        assertSameQueries(random, points, index);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void editsDuringBackgroundRebuildAreKept() {
+        Random random = new Random(3);
+        List<Runnable> queued = new ArrayList<>();
+        DynamicVertexIndex<Point> index = new DynamicVertexIndex<>(queued::add);
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 5000; ++i) {
+            points.add(randomPoint(random, i));
+        }
+        index.addAll(points, p -> p.location);
+        assertEquals(1, queued.size());
+
+        // while the snapshot is being built: remove old points, including
+        // some still pending, move some, and add new ones
+        List<Point> removed = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            removed.add(points.get(random.nextInt(points.size())));
+        }
+        index.removeAll(removed);
+        points.removeAll(removed);
+        for (int i = 0; i < 100; ++i) {
+            int at = random.nextInt(points.size());
+            Point moved = randomPoint(random, points.get(at).id);
+            index.remove(points.get(at));
+            index.add(moved, moved.location[0], moved.location[1], moved.location[2]);
+            points.set(at, moved);
+        }
+        for (int i = 0; i < 300; ++i) {
+            Point p = randomPoint(random, 10000 + i);
+            index.add(p, p.location[0], p.location[1], p.location[2]);
+            points.add(p);
+        }
+        assertEquals(1, queued.size()); // one rebuild at a time
+        assertSameQueries(random, points, index);
+
+        queued.remove(0).run();
+        assertEquals(1, index.getRebuildCount());
+        assertSameQueries(random, points, index);
+
+        // a rebuild started before clear() is dropped
+        List<Point> more = new ArrayList<>();
+        for (int i = 0; i < 3000; ++i) {
+            more.add(randomPoint(random, 20000 + i));
+        }
+        index.addAll(more, p -> p.location);
+        assertEquals(1, queued.size());
+        index.clear();
+        queued.remove(0).run();
+        assertEquals(0, index.size());
+        assertTrue(index.nearest(0, 0, 0, 1, null).isEmpty());
+    }
+
+    /**
+     * Measures nearest neighbour latency while another thread edits the index
+     * the way a tracing session does: whole neurons loaded and deleted in
+     * batches, and single anchors added and moved.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkQueriesDuringEdits() throws Exception {
+        Random random = new Random(4);
+        int count = 1000000;
+        List<Point> points = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            points.add(new Point(i, random.nextFloat() * 10000, random.nextFloat() * 8000, random.nextFloat() * 2000));
+        }
+        DynamicVertexIndex<Point> index = new DynamicVertexIndex<>();
+        long start = System.nanoTime();
+        index.rebuild(points, p -> p.location);
+        System.out.printf("%d vertices: bulk build %.2f s%n", count, (System.nanoTime() - start) / 1e9);
+
+        for (int k : new int[]{1, 10}) {
+            long[] quiet = queryLatencies(index, new Random(5), 200000, k);
+            System.out.printf("k=%d, no edits: %s%n", k, percentiles(quiet));
+        }
+
+        long[] edits = {0};
+        Thread editor = new Thread(() -> {
+            Random r = new Random(6);
+            long nextId = count;
+            List<List<Point>> neurons = new ArrayList<>();
+            long end = System.nanoTime() + 8_000_000_000L;
+            while (System.nanoTime() < end) {
+                List<Point> neuron = new ArrayList<>();
+                for (int i = 0; i < 2000; ++i) {
+                    neuron.add(new Point(nextId++, r.nextFloat() * 10000, r.nextFloat() * 8000, r.nextFloat() * 2000));
+                }
+                index.addAll(neuron, p -> p.location);
+                neurons.add(neuron);
+                if (neurons.size() > 5) {
+                    index.removeAll(neurons.remove(0));
+                }
+                for (int i = 0; i < 200; ++i) {
+                    Point p = points.get(r.nextInt(count));
+                    index.remove(p);
+                    index.add(p, p.location[0] + 1, p.location[1], p.location[2]);
+                }
+                edits[0] += 4400;
+                Thread.yield();
+            }
+        });
+        int rebuildsBefore = index.getRebuildCount();
+        start = System.nanoTime();
+        editor.start();
+        long[] busy = queryLatencies(index, new Random(7), 200000, 1);
+        editor.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("k=1, %.0f edits/s and %d background rebuilds alongside: %s%n",
+                edits[0] / seconds, index.getRebuildCount() - rebuildsBefore, percentiles(busy));
+    }
+
+    private static long[] queryLatencies(DynamicVertexIndex<Point> index, Random random, int queries, int k) {
+        long[] nanos = new long[queries];
+        for (int i = 0; i < queries; ++i) {
+            double x = random.nextDouble() * 10000, y = random.nextDouble() * 8000, z = random.nextDouble() * 2000;
+            long t = System.nanoTime();
+            index.nearest(x, y, z, k, null);
+            nanos[i] = System.nanoTime() - t;
+        }
+        return nanos;
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("p50 %.1f us, p99 %.1f us, max %.1f us (%d queries)",
+                sorted[sorted.length / 2] / 1e3, sorted[sorted.length * 99 / 100] / 1e3,
+                sorted[sorted.length - 1] / 1e3, sorted.length);
+    }
+
+}
@@ -0,0 +1,201 @@
+package org.janelia.workstation.gui.large_volume_viewer.neuron_api;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.janelia.model.domain.tiledMicroscope.TmGeoAnnotation;
+import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestFragmentSpatialIndex {
+
+    private static final long FIRST_FRAGMENT_ID = 2500000000000000000L;
+    private static final double EXTENT = 40000;
+
+    // A short random walk, like the fragments produced by automated tracing
+    private static TmNeuronMetadata syntheticFragment(Random random, long id, int nodeCount) {
+        TmNeuronMetadata fragment = new TmNeuronMetadata();
+        fragment.setId(id);
+        fragment.setUpdatedDate(new Date(1500000000000L + random.nextInt(1000000)));
+        double x = random.nextDouble() * EXTENT;
+        double y = random.nextDouble() * EXTENT;
+        double z = random.nextDouble() * EXTENT / 4;
+        for (int i = 0; i < nodeCount; ++i) {
+            TmGeoAnnotation annotation = new TmGeoAnnotation();
+            annotation.setId(id + 1 + i);
+            annotation.setNeuronId(id);
+            annotation.setParentId(i == 0 ? id : id + i);
+            annotation.setX(x);
+            annotation.setY(y);
+            annotation.setZ(z);
+            fragment.getGeoAnnotationMap().put(annotation.getId(), annotation);
+            x += random.nextGaussian() * 40;
+            y += random.nextGaussian() * 40;
+            z += random.nextGaussian() * 10;
+        }
+        return fragment;
+    }
+
+    private static List<TmNeuronMetadata> syntheticFragments(Random random, int count, int nodeCount) {
+        List<TmNeuronMetadata> fragments = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            fragments.add(syntheticFragment(random, FIRST_FRAGMENT_ID + 1000L * i, nodeCount));
+        }
+        return fragments;
+    }
+
+    private static Set<Long> bruteForce(List<TmNeuronMetadata> fragments, double[] min, double[] max) {
+        Set<Long> result = new HashSet<>();
+        for (TmNeuronMetadata fragment : fragments) {
+            for (TmGeoAnnotation a : fragment.getGeoAnnotationMap().values()) {
+                float x = a.getX().floatValue(), y = a.getY().floatValue(), z = a.getZ().floatValue();
+                if (x >= min[0] && x <= max[0] && y >= min[1] && y <= max[1] && z >= min[2] && z <= max[2]) {
+                    result.add(fragment.getId());
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void assertSameQueries(Random random, FragmentSpatialIndex index, List<TmNeuronMetadata> fragments) {
+        for (int q = 0; q < 200; ++q) {
+            double x = random.nextDouble() * EXTENT;
+            double y = random.nextDouble() * EXTENT;
+            double z = random.nextDouble() * EXTENT / 4;
+            double distance = q % 50 == 0 ? 20000 : 100 + random.nextInt(1000);
+            double[] min = {x - distance, y - distance, z - distance};
+            double[] max = {x + distance, y + distance, z + distance};
+            assertEquals(bruteForce(fragments, min, max), index.getFragmentIdsNear(x, y, z, distance));
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void bulkBuildMatchesBruteForce() {
+        Random random = new Random(1);
+        List<TmNeuronMetadata> fragments = syntheticFragments(random, 3000, 12);
+        FragmentSpatialIndex index = FragmentSpatialIndex.build(fragments, 450);
+        assertEquals(fragments.size(), index.size());
+        assertSameQueries(random, index, fragments);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void addRemoveAndReplace() {
+        Random random = new Random(2);
+        List<TmNeuronMetadata> fragments = syntheticFragments(random, 3000, 8);
+        FragmentSpatialIndex index = new FragmentSpatialIndex(300);
+        for (TmNeuronMetadata fragment : fragments) {
+            index.add(fragment);
+        }
+        // remove enough to force compaction, and move some others
+        List<TmNeuronMetadata> remaining = new ArrayList<>();
+        for (int i = 0; i < fragments.size(); ++i) {
+            TmNeuronMetadata fragment = fragments.get(i);
+            if (i % 3 != 0) {
+                assertTrue(index.remove(fragment.getId()));
+                assertFalse(index.contains(fragment.getId()));
+            } else if (i % 2 == 0) {
+                TmNeuronMetadata moved = syntheticFragment(random, fragment.getId(), 5);
+                index.add(moved);
+                remaining.add(moved);
+            } else {
+                remaining.add(fragment);
+            }
+        }
+        assertFalse(index.remove(FIRST_FRAGMENT_ID + 1));
+        assertEquals(remaining.size(), index.size());
+        assertSameQueries(random, index, remaining);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void cacheFileRoundTripAndSync() throws Exception {
+        Random random = new Random(3);
+        List<TmNeuronMetadata> fragments = syntheticFragments(random, 2000, 10);
+        FragmentSpatialIndex index = FragmentSpatialIndex.build(fragments, 512);
+        Path file = Files.createTempFile("fragments", ".idx");
+        try {
+            index.write(file);
+            FragmentSpatialIndex read = FragmentSpatialIndex.read(file);
+            assertEquals(512, read.getCellSize(), 0);
+            assertEquals(fragments.size(), read.size());
+            assertSameQueries(random, read, fragments);
+            assertEquals(0, read.sync(fragments));
+
+            // another session edited one fragment, deleted one and added one
+            List<TmNeuronMetadata> changed = new ArrayList<>(fragments);
+            TmNeuronMetadata edited = syntheticFragment(random, changed.get(10).getId(), 4);
+            changed.set(10, edited);
+            changed.remove(20);
+            changed.add(syntheticFragment(random, FIRST_FRAGMENT_ID + 1000L * 5000, 6));
+            assertEquals(3, read.sync(changed));
+            assertEquals(changed.size(), read.size());
+            assertSameQueries(random, read, changed);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    @Category(TestCategories.FastTests.class)
+    public void rejectsOtherFiles() throws Exception {
+        Path file = Files.createTempFile("fragments", ".idx");
+        try {
+            Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            FragmentSpatialIndex.read(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkFragmentIndex() throws Exception {
+        Random random = new Random(4);
+        List<TmNeuronMetadata> fragments = syntheticFragments(random, 300000, 20);
+
+        long start = System.nanoTime();
+        FragmentSpatialIndex index = FragmentSpatialIndex.build(fragments, 512);
+        double buildSeconds = (System.nanoTime() - start) / 1e9;
+
+        int queries = 20000;
+        long found = 0;
+        start = System.nanoTime();
+        for (int q = 0; q < queries; ++q) {
+            found += index.getFragmentIdsNear(random.nextDouble() * EXTENT, random.nextDouble() * EXTENT,
+                    random.nextDouble() * EXTENT / 4, 450).size();
+        }
+        double querySeconds = (System.nanoTime() - start) / 1e9;
+
+        Path file = Files.createTempFile("fragments", ".idx");
+        try {
+            index.write(file);
+            System.gc();
+            start = System.nanoTime();
+            FragmentSpatialIndex read = FragmentSpatialIndex.read(file);
+            double readSeconds = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            read.sync(fragments);
+            double syncSeconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d fragments, %d points: bulk build %.2f s; cached index read %.2f s, sync %.2f s (%d MB file)%n",
+                    fragments.size(), 20 * fragments.size(), buildSeconds, readSeconds, syncSeconds, Files.size(file) >> 20);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.out.printf("%.0f queries/s at distance 450, %.1f fragments per query%n",
+                queries / querySeconds, (double) found / queries);
+    }
+
+}
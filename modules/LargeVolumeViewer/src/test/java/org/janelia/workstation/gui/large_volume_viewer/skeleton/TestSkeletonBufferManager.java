@@ -0,0 +1,380 @@
+package org.janelia.workstation.gui.large_volume_viewer.skeleton;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestSkeletonBufferManager {
+
+    // Stands in for a GL buffer object, counting the bytes sent to it
+    private static class MirrorUploader implements SkeletonBufferManager.Uploader {
+        ByteBuffer contents = ByteBuffer.allocate(0).order(ByteOrder.nativeOrder());
+        long bytes = 0;
+        int calls = 0;
+
+        @Override
+        public void bufferData(ByteBuffer data) {
+            contents = ByteBuffer.allocate(data.remaining()).order(ByteOrder.nativeOrder());
+            contents.put(data.duplicate());
+            bytes += data.remaining();
+            calls++;
+        }
+
+        @Override
+        public void bufferSubData(long offset, ByteBuffer data) {
+            assertTrue(offset + data.remaining() <= contents.capacity());
+            ByteBuffer target = contents.duplicate();
+            target.position((int) offset);
+            target.put(data.duplicate());
+            bytes += data.remaining();
+            calls++;
+        }
+
+        long take() {
+            long b = bytes;
+            bytes = 0;
+            return b;
+        }
+    }
+
+    private static class Mirrors {
+        final MirrorUploader vertices = new MirrorUploader();
+        final MirrorUploader colors = new MirrorUploader();
+        final MirrorUploader lines = new MirrorUploader();
+        final MirrorUploader points = new MirrorUploader();
+
+        long upload(SkeletonBufferManager buffers) {
+            return buffers.uploadVertices(vertices, colors, lines) + buffers.uploadPoints(points);
+        }
+    }
+
+    private static class TestAnchor {
+        final long guid;
+        float x, y, z;
+        Long parent;
+
+        TestAnchor(long guid, float x, float y, float z, Long parent) {
+            this.guid = guid;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.parent = parent;
+        }
+    }
+
+    private static class TestNeuron {
+        final Long id;
+        final float[] color;
+        final Map<Long, TestAnchor> anchors = new LinkedHashMap<>();
+
+        TestNeuron(Long id, float[] color) {
+            this.id = id;
+            this.color = color;
+        }
+    }
+
+    // A chain of anchors, each the child of the one before
+    private static TestNeuron randomNeuron(Random random, long id, int anchorCount) {
+        TestNeuron neuron = new TestNeuron(id, new float[]{random.nextFloat(), random.nextFloat(), random.nextFloat()});
+        float x = random.nextFloat() * 10000, y = random.nextFloat() * 10000, z = random.nextFloat() * 2000;
+        Long parent = null;
+        for (int i = 0; i < anchorCount; ++i) {
+            long guid = id * 100000 + i;
+            neuron.anchors.put(guid, new TestAnchor(guid, x, y, z, parent));
+            parent = guid;
+            x += random.nextFloat() * 10;
+            y += random.nextFloat() * 10;
+        }
+        return neuron;
+    }
+
+    // What SkeletonActorModel.updateAnchors does with the skeleton's anchors
+    private static void update(SkeletonBufferManager buffers, List<TestNeuron> neurons) {
+        buffers.beginUpdate();
+        for (TestNeuron neuron : neurons) {
+            for (TestAnchor anchor : neuron.anchors.values()) {
+                buffers.placeAnchor(neuron.id, anchor.guid, anchor.x, anchor.y, anchor.z, neuron.color);
+            }
+        }
+        buffers.endUpdate();
+        for (TestNeuron neuron : neurons) {
+            int[] pairs = new int[2 * neuron.anchors.size()];
+            int count = 0;
+            for (TestAnchor anchor : neuron.anchors.values()) {
+                if (anchor.parent != null && neuron.anchors.containsKey(anchor.parent)) {
+                    int i1 = buffers.getSlot(neuron.id, anchor.guid);
+                    int i2 = buffers.getSlot(neuron.id, anchor.parent);
+                    pairs[count++] = Math.min(i1, i2);
+                    pairs[count++] = Math.max(i1, i2);
+                }
+            }
+            buffers.setLines(neuron.id, pairs, count);
+        }
+    }
+
+    // Reads back what a GL draw of each neuron would see, from the uploaded copies
+    private static void assertUploaded(SkeletonBufferManager buffers, Mirrors mirrors, List<TestNeuron> neurons) {
+        assertEquals(neurons.size(), buffers.getNeuronIds().size());
+        for (TestNeuron neuron : neurons) {
+            assertEquals(neuron.anchors.size(), buffers.getAnchorCount(neuron.id));
+            int vertexOffset = (int) buffers.getVertexOffset(neuron.id);
+
+            Set<Integer> slots = new HashSet<>();
+            for (TestAnchor anchor : neuron.anchors.values()) {
+                int slot = buffers.getSlot(neuron.id, anchor.guid);
+                assertTrue(slots.add(slot));
+                int at = vertexOffset + 12 * slot;
+                assertEquals(anchor.x, mirrors.vertices.contents.getFloat(at), 0);
+                assertEquals(anchor.y, mirrors.vertices.contents.getFloat(at + 4), 0);
+                assertEquals(anchor.z, mirrors.vertices.contents.getFloat(at + 8), 0);
+                for (int c = 0; c < 3; ++c) {
+                    assertEquals(neuron.color[c], mirrors.colors.contents.getFloat(at + 4 * c), 0);
+                }
+            }
+
+            Set<Integer> drawnPoints = new HashSet<>();
+            int pointOffset = (int) buffers.getPointOffset(neuron.id);
+            for (int i = 0; i < buffers.getPointBytes(neuron.id) / 4; ++i) {
+                drawnPoints.add(mirrors.points.contents.getInt(pointOffset + 4 * i));
+            }
+            assertEquals(slots, drawnPoints);
+
+            Set<Long> expectedLines = new HashSet<>();
+            for (TestAnchor anchor : neuron.anchors.values()) {
+                if (anchor.parent != null && neuron.anchors.containsKey(anchor.parent)) {
+                    expectedLines.add(Math.min(anchor.guid, anchor.parent) * 1000003 + Math.max(anchor.guid, anchor.parent));
+                }
+            }
+            Map<Integer, Long> guidBySlot = new LinkedHashMap<>();
+            for (TestAnchor anchor : neuron.anchors.values()) {
+                guidBySlot.put(buffers.getSlot(neuron.id, anchor.guid), anchor.guid);
+            }
+            Set<Long> drawnLines = new HashSet<>();
+            int lineOffset = (int) buffers.getLineOffset(neuron.id);
+            for (int i = 0; i < buffers.getLineBytes(neuron.id) / 4; i += 2) {
+                long a = guidBySlot.get(mirrors.lines.contents.getInt(lineOffset + 4 * i));
+                long b = guidBySlot.get(mirrors.lines.contents.getInt(lineOffset + 4 * i + 4));
+                drawnLines.add(Math.min(a, b) * 1000003 + Math.max(a, b));
+            }
+            assertEquals(expectedLines, drawnLines);
+        }
+    }
+
+    private static List<TestNeuron> randomNeurons(Random random, int count, int anchorCount) {
+        List<TestNeuron> neurons = new ArrayList<>();
+        for (int i = 1; i <= count; ++i) {
+            neurons.add(randomNeuron(random, i, anchorCount));
+        }
+        return neurons;
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void unchangedUpdateUploadsNothing() {
+        SkeletonBufferManager buffers = new SkeletonBufferManager();
+        Mirrors mirrors = new Mirrors();
+        List<TestNeuron> neurons = randomNeurons(new Random(1), 50, 40);
+        update(buffers, neurons);
+        assertTrue(mirrors.upload(buffers) > 0);
+        assertUploaded(buffers, mirrors, neurons);
+
+        update(buffers, neurons);
+        assertEquals(0, mirrors.upload(buffers));
+
+        buffers.invalidate();
+        assertEquals(buffers.getBufferBytes(), mirrors.upload(buffers));
+        assertUploaded(buffers, mirrors, neurons);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void movedAnchorRewritesOneVertex() {
+        SkeletonBufferManager buffers = new SkeletonBufferManager();
+        Mirrors mirrors = new Mirrors();
+        List<TestNeuron> neurons = randomNeurons(new Random(2), 50, 40);
+        update(buffers, neurons);
+        mirrors.upload(buffers);
+        assertTrue(buffers.takeLayoutChanged());
+
+        TestAnchor anchor = neurons.get(17).anchors.values().iterator().next();
+        anchor.x += 5;
+        update(buffers, neurons);
+        assertEquals(4, mirrors.upload(buffers)); // only the changed coordinate
+        assertFalse(buffers.takeLayoutChanged());
+        assertUploaded(buffers, mirrors, neurons);
+
+        // dragging moves the vertex without an update
+        assertTrue(buffers.moveAnchor(neurons.get(17).id, anchor.guid, 1, 2, 3));
+        assertEquals(12, mirrors.upload(buffers));
+        anchor.x = 1;
+        anchor.y = 2;
+        anchor.z = 3;
+        assertUploaded(buffers, mirrors, neurons);
+        assertFalse(buffers.moveAnchor(neurons.get(17).id, -1L, 1, 2, 3));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void editsStayWithinTheirNeuron() {
+        Random random = new Random(3);
+        SkeletonBufferManager buffers = new SkeletonBufferManager();
+        Mirrors mirrors = new Mirrors();
+        List<TestNeuron> neurons = randomNeurons(random, 200, 30);
+        update(buffers, neurons);
+        mirrors.upload(buffers);
+        buffers.takeLayoutChanged();
+
+        for (int round = 0; round < 300; ++round) {
+            TestNeuron neuron = neurons.get(random.nextInt(neurons.size()));
+            List<TestAnchor> anchors = new ArrayList<>(neuron.anchors.values());
+            switch (round % 4) {
+                case 0: { // extend the neuron
+                    TestAnchor last = anchors.get(anchors.size() - 1);
+                    long guid = neuron.id * 100000 + 50000 + round;
+                    neuron.anchors.put(guid, new TestAnchor(guid, last.x + 1, last.y, last.z, last.guid));
+                    break;
+                }
+                case 1: // delete a leaf
+                    if (anchors.size() > 2) {
+                        neuron.anchors.remove(anchors.get(anchors.size() - 1).guid);
+                    }
+                    break;
+                case 2: // move a point
+                    anchors.get(random.nextInt(anchors.size())).y += 1;
+                    break;
+                default: // recolor
+                    neuron.color[0] = random.nextFloat();
+                    break;
+            }
+            update(buffers, neurons);
+            long bytes = mirrors.upload(buffers);
+            // one neuron's worth of data at most, never the whole skeleton
+            assertTrue("round " + round + " uploaded " + bytes, bytes <= 40 * (neuron.anchors.size() + 8) * 4);
+            if (round % 20 == 0) {
+                assertUploaded(buffers, mirrors, neurons);
+            }
+        }
+        assertUploaded(buffers, mirrors, neurons);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void deletedNeuronsAreReusedAndCompacted() {
+        Random random = new Random(4);
+        SkeletonBufferManager buffers = new SkeletonBufferManager();
+        Mirrors mirrors = new Mirrors();
+        List<TestNeuron> neurons = randomNeurons(random, 400, 100);
+        update(buffers, neurons);
+        mirrors.upload(buffers);
+
+        // delete a few neurons, then add others; the freed regions are reused
+        long before = buffers.getBufferBytes();
+        neurons.subList(0, 10).clear();
+        update(buffers, neurons);
+        for (int i = 0; i < 10; ++i) {
+            neurons.add(randomNeuron(random, 1000 + i, 100));
+        }
+        update(buffers, neurons);
+        mirrors.upload(buffers);
+        assertEquals(before, buffers.getBufferBytes());
+        assertEquals(0, buffers.getCompactionCount());
+        assertUploaded(buffers, mirrors, neurons);
+
+        // remove most of them, and the buffers are compacted
+        neurons.subList(0, 350).clear();
+        update(buffers, neurons);
+        mirrors.upload(buffers);
+        assertTrue(buffers.getCompactionCount() > 0);
+        assertTrue(buffers.getBufferBytes() < before / 2);
+        assertUploaded(buffers, mirrors, neurons);
+
+        // a neuron that lost most of its anchors is renumbered
+        TestNeuron neuron = neurons.get(0);
+        List<Long> guids = new ArrayList<>(neuron.anchors.keySet());
+        for (Long guid : guids.subList(0, 90)) {
+            neuron.anchors.remove(guid);
+        }
+        update(buffers, neurons);
+        update(buffers, neurons);
+        for (TestAnchor anchor : neuron.anchors.values()) {
+            assertTrue(buffers.getSlot(neuron.id, anchor.guid) < neuron.anchors.size());
+        }
+        mirrors.upload(buffers);
+        assertUploaded(buffers, mirrors, neurons);
+
+        neurons.clear();
+        update(buffers, neurons);
+        assertTrue(buffers.isEmpty());
+    }
+
+    /**
+     * Counts the bytes uploaded per edit in a workspace of thousands of
+     * neurons, against re-encoding and uploading the whole skeleton.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkBytesPerEdit() {
+        Random random = new Random(5);
+        SkeletonBufferManager buffers = new SkeletonBufferManager();
+        Mirrors mirrors = new Mirrors();
+        List<TestNeuron> neurons = randomNeurons(random, 3000, 200);
+        long start = System.nanoTime();
+        update(buffers, neurons);
+        long fullBytes = mirrors.upload(buffers);
+        System.out.printf("%d neurons, %d anchors: first update %.0f ms, %d KB uploaded%n", neurons.size(),
+                neurons.size() * 200, (System.nanoTime() - start) / 1e6, fullBytes >> 10);
+
+        String[] kinds = {"move anchor", "add anchor", "delete anchor", "recolor neuron", "replace neuron"};
+        for (int kind = 0; kind < kinds.length; ++kind) {
+            int edits = 100;
+            long bytes = 0;
+            long nanos = 0;
+            for (int e = 0; e < edits; ++e) {
+                int n = random.nextInt(neurons.size());
+                TestNeuron neuron = neurons.get(n);
+                List<TestAnchor> anchors = new ArrayList<>(neuron.anchors.values());
+                TestAnchor anchor = anchors.get(random.nextInt(anchors.size()));
+                switch (kind) {
+                    case 0:
+                        anchor.x += 1;
+                        break;
+                    case 1:
+                        long guid = neuron.id * 100000 + 60000 + e;
+                        neuron.anchors.put(guid, new TestAnchor(guid, anchor.x, anchor.y + 1, anchor.z, anchor.guid));
+                        break;
+                    case 2:
+                        neuron.anchors.remove(anchors.get(anchors.size() - 1).guid);
+                        break;
+                    case 3:
+                        neuron.color[1] = random.nextFloat();
+                        break;
+                    default:
+                        neurons.set(n, randomNeuron(random, 10000 + kind * 1000 + e, 200));
+                        break;
+                }
+                start = System.nanoTime();
+                update(buffers, neurons);
+                bytes += mirrors.upload(buffers);
+                nanos += System.nanoTime() - start;
+            }
+            System.out.printf("%-15s %8.0f bytes uploaded per edit (whole skeleton: %d), update and upload %.1f ms%n",
+                    kinds[kind], (double) bytes / edits, fullBytes, nanos / 1e6 / edits);
+        }
+        assertUploaded(buffers, mirrors, neurons);
+        System.out.println("compactions: " + buffers.getCompactionCount() + ", buffers hold " + (buffers.getBufferBytes() >> 10) + " KB");
+    }
+
+}
@@ -0,0 +1,160 @@
+package org.janelia.workstation.tracing;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestRasterAStar {
+
+    private static final int BACKGROUND = 100;
+    private static final int SIGNAL = 4000;
+
+    // 16-bit noisy background, with a bright bent "neurite" from (4,4,4) to (40,4,4) to (40,30,10)
+    private static ByteBuffer createRaster(int sx, int sy, int sz, long seed) {
+        ByteBuffer raster = ByteBuffer.allocateDirect(sx * sy * sz * 2).order(ByteOrder.nativeOrder());
+        Random random = new Random(seed);
+        for (int i = 0; i < sx * sy * sz; ++i) {
+            raster.putShort(i * 2, (short) (BACKGROUND + random.nextInt(50)));
+        }
+        for (int x = 4; x <= 40; ++x) {
+            raster.putShort(2 * (x + sx * (4 + sy * 4)), (short) SIGNAL);
+        }
+        for (int y = 4; y <= 30; ++y) {
+            int z = 4 + (y - 4) * 6 / 26;
+            raster.putShort(2 * (40 + sx * (y + sy * z)), (short) SIGNAL);
+        }
+        return raster;
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testTraceFollowsBrightVoxels() {
+        int sx = 48, sy = 40, sz = 16;
+        ByteBuffer raster = createRaster(sx, sy, sz, 42);
+        RasterAStar astar = new RasterAStar(raster, 2, 1, sx, sy, sz);
+        int[] path = astar.trace(4, 4, 4, 40, 30, 10, 10.0);
+        assertNotNull(path);
+        assertEquals(astar.voxelIndex(4, 4, 4), path[0]);
+        assertEquals(astar.voxelIndex(40, 30, 10), path[path.length - 1]);
+        int bright = 0;
+        for (int voxel : path) {
+            if (raster.getShort(voxel * 2) == SIGNAL) {
+                bright++;
+            }
+        }
+        assertEquals(path.length, bright);
+        assertTrue(astar.getExpandedVoxelCount() > 0);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testStepsAreNeighbors() {
+        int sx = 48, sy = 40, sz = 16;
+        RasterAStar astar = new RasterAStar(createRaster(sx, sy, sz, 7), 2, 1, sx, sy, sz);
+        astar.setVoxelSizes(0.25, 0.25, 1.0);
+        // End points off the bright path, through noise
+        int[] path = astar.trace(0, 0, 0, sx - 1, sy - 1, sz - 1, 10.0);
+        assertNotNull(path);
+        for (int i = 1; i < path.length; ++i) {
+            int a = path[i - 1], b = path[i];
+            assertTrue(Math.abs(a % sx - b % sx) <= 1);
+            assertTrue(Math.abs((a / sx) % sy - (b / sx) % sy) <= 1);
+            assertTrue(Math.abs(a / (sx * sy) - b / (sx * sy)) <= 1);
+            assertTrue(a != b);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testOutOfBoundsEndPoints() {
+        RasterAStar astar = new RasterAStar(createRaster(48, 40, 16, 1), 2, 1, 48, 40, 16);
+        assertNull(astar.trace(4, 4, 4, 48, 4, 4, 10.0));
+        assertNull(astar.trace(-1, 4, 4, 40, 4, 4, 10.0));
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testBidirectionalFindsEquallyCheapPath() {
+        int sx = 48, sy = 40, sz = 16;
+        RasterAStar astar = new RasterAStar(createRaster(sx, sy, sz, 11), 2, 1, sx, sy, sz);
+        astar.setVoxelSizes(0.3, 0.3, 1.0);
+        int[][] endPoints = {
+            {4, 4, 4, 40, 30, 10}, // along the bright path
+            {0, 0, 0, sx - 1, sy - 1, sz - 1}, // through noise
+            {10, 35, 2, 30, 2, 14}
+        };
+        for (int[] e : endPoints) {
+            int[] forward = astar.trace(e[0], e[1], e[2], e[3], e[4], e[5], 10.0, false);
+            long forwardExpanded = astar.getExpandedVoxelCount();
+            int[] both = astar.trace(e[0], e[1], e[2], e[3], e[4], e[5], 10.0, true);
+            assertNotNull(both);
+            assertEquals(astar.voxelIndex(e[0], e[1], e[2]), both[0]);
+            assertEquals(astar.voxelIndex(e[3], e[4], e[5]), both[both.length - 1]);
+            double forwardCost = astar.getPathCost(forward);
+            assertEquals(forwardCost, astar.getPathCost(both), 1e-9 * forwardCost);
+            assertTrue(astar.getExpandedVoxelCount() > 0);
+            assertTrue(forwardExpanded > 0);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testCorridorConfinesPath() {
+        int sx = 48, sy = 40, sz = 16;
+        RasterAStar astar = new RasterAStar(createRaster(sx, sy, sz, 5), 2, 1, sx, sy, sz);
+        // A corridor along y = 20, z = 8, well away from the bright path
+        BitSet corridor = new BitSet();
+        for (int x = 0; x < sx; ++x) {
+            for (int y = 19; y <= 21; ++y) {
+                corridor.set(astar.voxelIndex(x, y, 8));
+            }
+        }
+        astar.setCorridor(corridor);
+        for (boolean bidirectional : new boolean[] {false, true}) {
+            int[] path = astar.trace(2, 20, 8, 45, 20, 8, 10.0, bidirectional);
+            assertNotNull(path);
+            for (int voxel : path) {
+                assertTrue(corridor.get(voxel));
+            }
+        }
+        // No route inside the corridor
+        assertNull(astar.trace(2, 20, 8, 45, 5, 8, 10.0, true));
+    }
+
+    /**
+     * Voxels expanded per second, tracing corner to corner through noise.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkVoxelsExpandedPerSecond() {
+        int size = 128;
+        RasterAStar astar = new RasterAStar(createRaster(size, size, size, 3), 2, 1, size, size, size);
+        astar.trace(0, 0, 0, size - 1, size - 1, size - 1, 60.0); // warm up
+        long expanded = 0;
+        double elapsedMs = 0;
+        for (int r = 0; r < 5; ++r) {
+            assertNotNull(astar.trace(0, 0, 0, size - 1, size - 1, size - 1, 60.0));
+            expanded += astar.getExpandedVoxelCount();
+            elapsedMs += astar.getTraceTimeMs();
+        }
+        System.out.println(String.format("RasterAStar: %d voxels expanded in %.1f ms, %.0f voxels/s",
+                expanded, elapsedMs, expanded / (elapsedMs / 1000.0)));
+        expanded = 0;
+        elapsedMs = 0;
+        for (int r = 0; r < 5; ++r) {
+            assertNotNull(astar.trace(0, 0, 0, size - 1, size - 1, size - 1, 60.0, true));
+            expanded += astar.getExpandedVoxelCount();
+            elapsedMs += astar.getTraceTimeMs();
+        }
+        System.out.println(String.format("RasterAStar, bidirectional: %d voxels expanded in %.1f ms, %.0f voxels/s",
+                expanded, elapsedMs, expanded / (elapsedMs / 1000.0)));
+    }
+
+}
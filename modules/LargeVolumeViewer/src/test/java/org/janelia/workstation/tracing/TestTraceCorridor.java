@@ -0,0 +1,78 @@
+package org.janelia.workstation.tracing;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestTraceCorridor {
+
+    // Diagonal coarse path, at a zoom level that halves x and y twice but keeps z
+    private static final int[] SCALE = {4, 4, 1};
+
+    private static List<int[]> diagonalPath(int length) {
+        List<int[]> path = new ArrayList<>();
+        for (int i = 0; i < length; ++i) {
+            path.add(new int[] {10 + i, 20 + i, 30 + i});
+        }
+        return path;
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testPiecesShareBoundaryVoxels() {
+        TraceCorridor corridor = new TraceCorridor(diagonalPath(100), SCALE, 6, 160);
+        assertTrue(corridor.getPieceCount() > 1);
+        assertEquals(99, corridor.getPieceEnd(corridor.getPieceCount() - 1));
+        for (int piece = 0; piece < corridor.getPieceCount(); ++piece) {
+            int[][] bounds = corridor.getPieceBounds(piece);
+            for (int a = 0; a < 3; ++a) {
+                assertTrue(bounds[1][a] - bounds[0][a] + 1 <= 160);
+            }
+            // The boundary voxel footprint lies inside both pieces that share it
+            int[][] footprint = corridor.getFootprint(corridor.getPieceEnd(piece));
+            assertInside(footprint, bounds);
+            if (piece + 1 < corridor.getPieceCount()) {
+                assertInside(footprint, corridor.getPieceBounds(piece + 1));
+            }
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testMaskCoversFootprintsOnly() {
+        TraceCorridor corridor = new TraceCorridor(diagonalPath(10), SCALE, 2, 1000);
+        assertEquals(1, corridor.getPieceCount());
+        int[][] bounds = corridor.getPieceBounds(0);
+        int sx = bounds[1][0] - bounds[0][0] + 1;
+        int sy = bounds[1][1] - bounds[0][1] + 1;
+        BitSet mask = corridor.getPieceMask(0);
+        // every footprint voxel is in the corridor
+        for (int i = 0; i < 10; ++i) {
+            int[][] footprint = corridor.getFootprint(i);
+            for (int z = footprint[0][2]; z < footprint[1][2]; ++z) {
+                for (int y = footprint[0][1]; y < footprint[1][1]; ++y) {
+                    for (int x = footprint[0][0]; x < footprint[1][0]; ++x) {
+                        assertTrue(mask.get(x - bounds[0][0] + sx * (y - bounds[0][1] + sy * (z - bounds[0][2]))));
+                    }
+                }
+            }
+        }
+        // far corners of the bounding box are not
+        assertFalse(mask.get(sx - 1));
+        assertTrue(mask.cardinality() < sx * sy * (bounds[1][2] - bounds[0][2] + 1) / 2);
+    }
+
+    private static void assertInside(int[][] footprint, int[][] bounds) {
+        for (int a = 0; a < 3; ++a) {
+            assertTrue(footprint[0][a] >= bounds[0][a]);
+            assertTrue(footprint[1][a] - 1 <= bounds[1][a]);
+        }
+    }
+
+}
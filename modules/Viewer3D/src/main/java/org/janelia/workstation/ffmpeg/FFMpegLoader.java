@@ -43,6 +43,85 @@ class ReadInput extends Read_packet_Pointer_BytePointer_int {
     }
 };
 
+/**
+ * Feeds an in-memory stream to FFmpeg a buffer at a time, so that FFmpeg only
+ * needs a small I/O buffer rather than its own copy of the whole stream.
+ */
+class ChunkedReadInput extends Read_packet_Pointer_BytePointer_int {
+    private final byte[] _buffer;
+    private int _position;
+
+    public ChunkedReadInput(byte[] bb) {
+        super();
+        this._buffer = bb;
+        this._position = 0;
+    }
+
+    @Override
+    public int call(Pointer opaque, BytePointer buffer, int buffer_size) {
+        int buf_size = Math.min(buffer_size, _buffer.length - _position);
+        if (buf_size > 0) {
+            buffer.position(0).put(_buffer, _position, buf_size);
+            _position += buf_size;
+        }
+        else {
+            buf_size = 0;
+        }
+        return buf_size;
+    }
+
+    /**
+     * Moves the read position as fseek would, or with AVSEEK_SIZE, reports the stream size.
+     *
+     * @return the new position, or -1 if it lies outside the stream
+     */
+    long seek(long offset, int whence) {
+        long position;
+        switch (whence & ~AVSEEK_FORCE) {
+            case AVSEEK_SIZE:
+                return _buffer.length;
+            case SeekInput.SEEK_SET:
+                position = offset;
+                break;
+            case SeekInput.SEEK_CUR:
+                position = _position + offset;
+                break;
+            case SeekInput.SEEK_END:
+                position = _buffer.length + offset;
+                break;
+            default:
+                return -1;
+        }
+        if (position < 0 || position > _buffer.length) {
+            return -1;
+        }
+        _position = (int) position;
+        return position;
+    }
+};
+
+/**
+ * Lets FFmpeg seek within a {@link ChunkedReadInput}, which it needs for
+ * containers whose index comes after the frames, such as an MP4 with moov at the end.
+ */
+class SeekInput extends Seek_Pointer_long_int {
+    static final int SEEK_SET = 0;
+    static final int SEEK_CUR = 1;
+    static final int SEEK_END = 2;
+
+    private final ChunkedReadInput _input;
+
+    public SeekInput(ChunkedReadInput input) {
+        super();
+        this._input = input;
+    }
+
+    @Override
+    public long call(Pointer opaque, long offset, int whence) {
+        return _input.seek(offset, whence);
+    }
+};
+
 public class FFMpegLoader
 {
     static
@@ -58,6 +137,16 @@ public class FFMpegLoader
         COLOR, GRAY, RAW
     }
 
+    /**
+     * Receives frames from {@link #grab(FrameConsumer)} as they are decoded.
+     */
+    public static interface FrameConsumer {
+        /**
+         * @param pixels width x height bytes; only valid during the call
+         */
+        void accept(int frameNumber, byte[] pixels, int width, int height) throws Exception;
+    }
+
     private String _filename;
     private AVFormatContext _format_context;
     private AVStream _video_stream;
@@ -73,6 +162,8 @@ public class FFMpegLoader
     private int frameNumber;
     private boolean deinterlace = false;
     private BytePointer _ibuffer;
+    private Read_packet_Pointer_BytePointer_int _read_input;
+    private Seek_Pointer_long_int _seek_input;
     private int _components_per_frame;
 
     public FFMpegLoader(String filename)
@@ -94,6 +185,23 @@ public class FFMpegLoader
         _format_context.pb().seekable(0);
     }
 
+    /**
+     * Reads the stream through an I/O buffer of the given size, instead of
+     * copying the whole stream into native memory.
+     */
+    public FFMpegLoader(byte[] ibytes, int bufferSize)
+    {
+        this._filename = "";
+        // Keep references to the callbacks, so that they are not collected while FFmpeg uses them
+        ChunkedReadInput input = new ChunkedReadInput(ibytes);
+        _read_input = input;
+        _seek_input = new SeekInput(input);
+        BytePointer buffer = new BytePointer(av_malloc(bufferSize));
+        _format_context = avformat_alloc_context();
+        // With a seek callback, the context is seekable
+        _format_context.pb(avio_alloc_context(buffer, bufferSize, 0, null, _read_input, null, _seek_input));
+    }
+
     public ImageStack getImage()
     {
         return _image;
@@ -184,6 +292,27 @@ public class FFMpegLoader
         return result;
     }
 
+    /**
+     * @return the number of frames recorded in the stream header, or 0 if the container does not say
+     */
+    public long getStreamFrameCount() {
+        return _video_stream == null ? 0 : Math.max(0, _video_stream.nb_frames());
+    }
+
+    /**
+     * @return the width of the decoded frames, once started
+     */
+    public int getCodedWidth() {
+        return _video_codec == null ? -1 : _video_codec.width();
+    }
+
+    /**
+     * @return the height of the decoded frames, once started
+     */
+    public int getCodedHeight() {
+        return _video_codec == null ? -1 : _video_codec.height();
+    }
+
     public double getFrameRate() {
         if (_video_stream == null) {
             return 0;
@@ -426,6 +555,22 @@ public class FFMpegLoader
         }
     }
 
+    /**
+     * Decodes every frame, handing each one to the consumer and then releasing it,
+     * instead of keeping the whole stack in memory.
+     */
+    public void grab(FrameConsumer consumer) throws Exception {
+        int frameNumber = 0;
+        Frame f;
+        while ((f = grabFrame()) != null) {
+            try {
+                consumer.accept(frameNumber++, f.imageBytes.get(0), _image.width(), _image.height());
+            } finally {
+                f.release();
+            }
+        }
+    }
+
     public Frame grabFrame() throws Exception {
         if (_format_context == null || _format_context.isNull()) {
             throw new Exception("Could not grab: No AVFormatContext. (Has start() been called?)");
@@ -90,18 +90,15 @@ public class H5JLoader
     }
 
     private void extractAttributes() {
-        IHDF5ReaderConfigurator conf = HDF5Factory.configureForReading(_filename);
-        conf.performNumericConversions();
-        IHDF5Reader ihdf5reader = conf.reader();
-        if (ihdf5reader.object().hasAttribute(CHANNELS_QUERY_PATH, PAD_BOTTOM_ATTRIB)) {
-            IHDF5LongReader ihdf5LongReader = ihdf5reader.int64();
+        if (_reader.object().hasAttribute(CHANNELS_QUERY_PATH, PAD_BOTTOM_ATTRIB)) {
+            IHDF5LongReader ihdf5LongReader = _reader.int64();
             final int paddingBottom = (int) ihdf5LongReader.getAttr(CHANNELS_QUERY_PATH, PAD_BOTTOM_ATTRIB);
             _image.setPaddingBottom(paddingBottom);
         } else {
             _image.setPaddingBottom(-1);
         }
-        if (ihdf5reader.object().hasAttribute(CHANNELS_QUERY_PATH, PAD_RIGHT_ATTRIB)) {
-            IHDF5LongReader ihdf5LongReader = ihdf5reader.int64();
+        if (_reader.object().hasAttribute(CHANNELS_QUERY_PATH, PAD_RIGHT_ATTRIB)) {
+            IHDF5LongReader ihdf5LongReader = _reader.int64();
             final int paddingRight = (int) ihdf5LongReader.getAttr(CHANNELS_QUERY_PATH, PAD_RIGHT_ATTRIB);
             _image.setPaddingRight(paddingRight);
         } else {
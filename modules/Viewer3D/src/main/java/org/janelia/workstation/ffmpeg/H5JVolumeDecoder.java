@@ -0,0 +1,351 @@
+package org.janelia.workstation.ffmpeg;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5ReaderConfigurator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes the channels of an H5J file into one interleaved volume.
+ *
+ * Unlike {@link H5JLoader}, the file is opened once and its attributes are read once,
+ * channels are decoded concurrently, and every decoded frame is written straight into
+ * its place in the volume and then released. At most the configured number of channels
+ * are in flight at a time, which bounds both the threads used and the number of encoded
+ * channel streams held in memory.
+ *
+ * As with {@link H5JLoader}, a channel which cannot be decoded is logged and skipped;
+ * its component of the volume is left at zero. Decoding fails only if no channel decodes.
+ *
+ * Decoding can be cancelled from another thread with {@link #cancel()}, or by
+ * interrupting the thread that called {@link #decode(int)}.
+ */
+public class H5JVolumeDecoder implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(H5JVolumeDecoder.class);
+
+    private static final String PAD_RIGHT_ATTRIB = "pad_right";
+    private static final String PAD_BOTTOM_ATTRIB = "pad_bottom";
+    private static final String CHANNELS_QUERY_PATH = "/Channels";
+    private static final int IO_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * One channel's decoder. Created on the thread which reads the file, and then
+     * started, run and released on a decoding thread.
+     */
+    interface ChannelDecoder {
+
+        void start() throws Exception;
+
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * @return the number of frames the stream says it has, or 0 if unknown
+         */
+        int getExpectedFrames();
+
+        void decode(FFMpegLoader.FrameConsumer consumer) throws Exception;
+
+        void release();
+    }
+
+    interface ChannelDecoderFactory {
+        ChannelDecoder create(int channel) throws Exception;
+    }
+
+    private final String filename;
+    private final IHDF5Reader reader;
+    private final List<String> channelNames;
+    private final int paddingRight;
+    private final int paddingBottom;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private volatile boolean cancelled = false;
+
+    public H5JVolumeDecoder(String filename) {
+        this.filename = filename;
+        IHDF5ReaderConfigurator conf = HDF5Factory.configureForReading(filename);
+        conf.performNumericConversions();
+        this.reader = conf.reader();
+        this.channelNames = reader.object().getAllGroupMembers(CHANNELS_QUERY_PATH);
+        this.paddingRight = readPadding(PAD_RIGHT_ATTRIB);
+        this.paddingBottom = readPadding(PAD_BOTTOM_ATTRIB);
+    }
+
+    // For channels which do not come from a file
+    H5JVolumeDecoder(String filename, List<String> channelNames) {
+        this.filename = filename;
+        this.reader = null;
+        this.channelNames = channelNames;
+        this.paddingRight = -1;
+        this.paddingBottom = -1;
+    }
+
+    private int readPadding(String attribute) {
+        if (reader.object().hasAttribute(CHANNELS_QUERY_PATH, attribute)) {
+            return (int) reader.int64().getAttr(CHANNELS_QUERY_PATH, attribute);
+        }
+        return -1;
+    }
+
+    public List<String> channelNames() {
+        return channelNames;
+    }
+
+    public int numberOfChannels() {
+        return channelNames.size();
+    }
+
+    /**
+     * @return the right padding, or -1 if the file does not say
+     */
+    public int getPaddingRight() {
+        return paddingRight;
+    }
+
+    /**
+     * @return the bottom padding, or -1 if the file does not say
+     */
+    public int getPaddingBottom() {
+        return paddingBottom;
+    }
+
+    /**
+     * Sets the maximum number of channels decoded at once. Defaults to the number of processors.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Decodes the first channels into a volume with the given number of bytes per voxel.
+     * If there are fewer channels than that, the remaining components are left at zero.
+     *
+     * @throws CancellationException if decoding was cancelled
+     */
+    public InterleavedVolume decode(int components) throws Exception {
+        int channelCount = Math.min(components, channelNames.size());
+        if (channelCount == 0) {
+            throw new IOException("No channels found in " + filename);
+        }
+        log.info("Decoding {} of {} channels from {}", channelCount, channelNames.size(), filename);
+        return decodeChannels(channel -> {
+            // Reads go through the shared reader, one at a time, on the calling thread
+            byte[] data = reader.opaque().readArray(CHANNELS_QUERY_PATH + "/" + channelNames.get(channel));
+            return new FFMpegChannelDecoder(data);
+        }, channelCount, components);
+    }
+
+    InterleavedVolume decodeChannels(ChannelDecoderFactory factory, int channelCount, int components) throws Exception {
+        int threads = Math.min(parallelism, channelCount);
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "H5JVolumeDecoder-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore inFlight = new Semaphore(threads);
+        VolumeHolder volume = new VolumeHolder(components);
+        List<Future<?>> decodes = new ArrayList<>();
+        // The first channel failure, reported if no channel decodes
+        Exception failure = null;
+        try {
+            for (int channel = 0; channel < channelCount; channel++) {
+                checkCancelled();
+                inFlight.acquire();
+                ChannelDecoder decoder;
+                try {
+                    decoder = factory.create(channel);
+                }
+                catch (Exception e) {
+                    inFlight.release();
+                    log.warn("Skipping channel {} of {}", channel, filename, e);
+                    failure = failure == null ? e : failure;
+                    continue;
+                }
+                int component = channel;
+                decodes.add(executor.submit(() -> {
+                    try {
+                        decodeChannel(decoder, component, volume);
+                    }
+                    finally {
+                        decoder.release();
+                        inFlight.release();
+                    }
+                    return null;
+                }));
+            }
+            for (int i = 0; i < decodes.size(); i++) {
+                try {
+                    decodes.get(i).get();
+                }
+                catch (ExecutionException e) {
+                    Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    if (cause instanceof CancellationException) {
+                        throw cause;
+                    }
+                    log.warn("Skipping a channel of {}", filename, cause);
+                    failure = failure == null ? cause : failure;
+                }
+            }
+            checkCancelled();
+        }
+        catch (InterruptedException e) {
+            cancelled = true;
+            throw new CancellationException("Interrupted while decoding " + filename);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        if (!volume.hasDecodedChannel()) {
+            throw failure != null ? failure : new IOException("No channel of " + filename + " could be decoded");
+        }
+        return volume.get();
+    }
+
+    private void decodeChannel(ChannelDecoder decoder, int component, VolumeHolder volume) throws Exception {
+        checkCancelled();
+        decoder.start();
+        InterleavedVolume target = volume.getOrCreate(decoder.getWidth(), decoder.getHeight(), decoder.getExpectedFrames());
+        AtomicInteger framesWritten = new AtomicInteger();
+        try {
+            decoder.decode((frameNumber, pixels, width, height) -> {
+                checkCancelled();
+                target.writePlane(frameNumber, component, pixels);
+                framesWritten.accumulateAndGet(frameNumber + 1, Math::max);
+            });
+        }
+        catch (Exception e) {
+            // Leave no part of a skipped channel behind
+            byte[] blank = new byte[target.getWidth() * target.getHeight()];
+            for (int frame = 0; frame < framesWritten.get(); frame++) {
+                target.writePlane(frame, component, blank);
+            }
+            throw e;
+        }
+        volume.channelDecoded();
+    }
+
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Decoding of " + filename + " was cancelled");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    /**
+     * The volume is sized by whichever channel starts first; a channel which does not match it is skipped.
+     */
+    private static class VolumeHolder {
+
+        private final int components;
+        private InterleavedVolume volume;
+        private boolean decodedChannel = false;
+
+        VolumeHolder(int components) {
+            this.components = components;
+        }
+
+        synchronized InterleavedVolume getOrCreate(int width, int height, int expectedFrames) throws IOException {
+            if (volume == null) {
+                volume = new InterleavedVolume(width, height, components, expectedFrames);
+            }
+            else if (volume.getWidth() != width || volume.getHeight() != height) {
+                throw new IOException(String.format("Channel size %dx%d differs from %dx%d",
+                        width, height, volume.getWidth(), volume.getHeight()));
+            }
+            return volume;
+        }
+
+        synchronized void channelDecoded() {
+            decodedChannel = true;
+        }
+
+        synchronized boolean hasDecodedChannel() {
+            return decodedChannel;
+        }
+
+        synchronized InterleavedVolume get() {
+            return volume;
+        }
+    }
+
+    private static class FFMpegChannelDecoder implements ChannelDecoder {
+
+        private byte[] data;
+        private FFMpegLoader movie;
+        private boolean started = false;
+
+        FFMpegChannelDecoder(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public void start() throws Exception {
+            movie = new FFMpegLoader(data, IO_BUFFER_SIZE);
+            movie.start();
+            started = true;
+        }
+
+        @Override
+        public int getWidth() {
+            return movie.getCodedWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return movie.getCodedHeight();
+        }
+
+        @Override
+        public int getExpectedFrames() {
+            return (int) Math.min(Integer.MAX_VALUE, movie.getStreamFrameCount());
+        }
+
+        @Override
+        public void decode(FFMpegLoader.FrameConsumer consumer) throws Exception {
+            movie.grab(consumer);
+        }
+
+        @Override
+        public void release() {
+            data = null;
+            if (started) {
+                try {
+                    movie.release();
+                }
+                catch (Exception e) {
+                    log.warn("Error releasing channel decoder", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.janelia.workstation.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A volume of 8 bit channels, interleaved per voxel, which channel decoders write
+ * into frame by frame as they go. When the number of frames is known up front, and
+ * the volume fits in one array, the whole volume is a single preallocated array which
+ * can be handed to the texture without copying. Otherwise each frame gets its own
+ * array when it is first written.
+ *
+ * Different channels may be written concurrently. Each channel must only be written
+ * by one thread at a time.
+ */
+public class InterleavedVolume {
+
+    // Largest array most JVMs will allocate
+    private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final int width;
+    private final int height;
+    private final int components;
+    private final int frameBytes;
+    private final int preallocatedFrames;
+    private final byte[] volume;
+    private final ConcurrentMap<Integer, byte[]> pages = new ConcurrentHashMap<>();
+    private final AtomicInteger frameCount = new AtomicInteger();
+
+    /**
+     * @param components bytes per voxel; channels beyond this are not stored
+     * @param expectedFrames number of frames to preallocate, or 0 if unknown
+     */
+    public InterleavedVolume(int width, int height, int components, int expectedFrames) {
+        this.width = width;
+        this.height = height;
+        this.components = components;
+        this.frameBytes = width * height * components;
+        if (expectedFrames > 0 && (long) frameBytes * expectedFrames <= MAX_ARRAY_SIZE) {
+            this.preallocatedFrames = expectedFrames;
+            this.volume = new byte[frameBytes * expectedFrames];
+        }
+        else {
+            this.preallocatedFrames = 0;
+            this.volume = null;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getComponents() {
+        return components;
+    }
+
+    /**
+     * @return one more than the highest frame written so far
+     */
+    public int getFrameCount() {
+        return frameCount.get();
+    }
+
+    /**
+     * Copies one decoded channel plane into its place in the given frame.
+     *
+     * @param plane width x height bytes of a single channel
+     */
+    public void writePlane(int frame, int component, byte[] plane) {
+        if (component < 0 || component >= components) {
+            throw new IllegalArgumentException("Component " + component + " is outside 0-" + (components - 1));
+        }
+        byte[] target;
+        int offset;
+        if (frame < preallocatedFrames) {
+            target = volume;
+            offset = frame * frameBytes;
+        }
+        else {
+            target = pages.computeIfAbsent(frame, f -> new byte[frameBytes]);
+            offset = 0;
+        }
+        int pixels = width * height;
+        for (int i = 0, j = offset + component; i < pixels; i++, j += components) {
+            target[j] = plane[i];
+        }
+        frameCount.accumulateAndGet(frame + 1, Math::max);
+    }
+
+    /**
+     * Whether the frames written so far fit in a single array.
+     */
+    public boolean fitsInArray() {
+        return (long) frameBytes * getFrameCount() <= MAX_ARRAY_SIZE;
+    }
+
+    /**
+     * Returns the whole volume as one array, frame after frame. This is the
+     * preallocated array itself whenever the expected frame count was right.
+     */
+    public byte[] toByteArray() {
+        if (!fitsInArray()) {
+            throw new IllegalStateException("Volume of " + getFrameCount() + " frames does not fit in one array");
+        }
+        int frames = getFrameCount();
+        if (frames == preallocatedFrames) {
+            return volume;
+        }
+        if (frames < preallocatedFrames) {
+            return Arrays.copyOf(volume, frames * frameBytes);
+        }
+        byte[] result = new byte[frames * frameBytes];
+        if (volume != null) {
+            System.arraycopy(volume, 0, result, 0, volume.length);
+        }
+        for (int frame = preallocatedFrames; frame < frames; frame++) {
+            byte[] page = pages.get(frame);
+            if (page != null) {
+                System.arraycopy(page, 0, result, frame * frameBytes, frameBytes);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the volume as one array per frame, for volumes too large for a single array.
+     */
+    public List<byte[]> toPages() {
+        int frames = getFrameCount();
+        List<byte[]> result = new ArrayList<>(frames);
+        for (int frame = 0; frame < frames; frame++) {
+            if (frame < preallocatedFrames) {
+                result.add(Arrays.copyOfRange(volume, frame * frameBytes, (frame + 1) * frameBytes));
+            }
+            else {
+                byte[] page = pages.get(frame);
+                result.add(page != null ? page : new byte[frameBytes]);
+            }
+        }
+        return result;
+    }
+}
@@ -21,16 +21,27 @@ public class VolumeBrickActorBuilder {
         GLActor returnValue = null;
         VolumeLoader volumeLoader = new VolumeLoader(resolver);
         if (volumeLoader.loadVolume(fileName)) {
-            volumeModel.removeAllListeners();
-            volumeModel.resetToDefaults();
-            VolumeBrickI brick = volumeBrickFactory.getVolumeBrick( volumeModel );
-            volumeLoader.populateVolumeAcceptor(brick);
-
-            returnValue = brick;
+            returnValue = buildVolumeBrickActor(volumeModel, volumeBrickFactory, volumeLoader);
         }
         return returnValue;
     }
 
+    /**
+     * This overload takes a volume the caller has already loaded, so that the load can be done
+     * off the event thread.
+     *
+     * @param volumeModel for creating volume brick.
+     * @param volumeBrickFactory for creating volume brick.
+     * @param volumeLoader on which loadVolume has succeeded.
+     */
+    public GLActor buildVolumeBrickActor(VolumeModel volumeModel, VolumeBrickFactory volumeBrickFactory, VolumeLoader volumeLoader) {
+        volumeModel.removeAllListeners();
+        volumeModel.resetToDefaults();
+        VolumeBrickI brick = volumeBrickFactory.getVolumeBrick( volumeModel );
+        volumeLoader.populateVolumeAcceptor(brick);
+        return brick;
+    }
+
     /**
      * This overload, for a simple signal volume, may be used if the signal texture must be built at
      * some upstream process.
@@ -29,6 +29,8 @@ public class VolumeLoader implements VolumeLoaderI {
     private FileResolver resolver;
     private boolean isLuminance = false;
     private TextureDataI textureData;
+    private volatile VolumeFileLoaderI fileLoader;
+    private volatile boolean cancelled;
 
     private Logger logger;
 
@@ -115,6 +117,7 @@ public class VolumeLoader implements VolumeLoaderI {
                     //throw new IllegalArgumentException("Unknown filename/extension combination " + baseName + "/" + extension);
             }
 
+            this.fileLoader = fileLoader;
             if ( textureDataBuilder != null  &&  fileLoader != null ) {
                 textureDataBuilder.setColorSpace( resolveColorSpace(baseName, extension) );
             }
@@ -126,6 +129,9 @@ public class VolumeLoader implements VolumeLoaderI {
             int tryCount = 0;
             while ( true ) {
                 try {
+                    if ( cancelled ) {
+                        return false;
+                    }
                     fileLoader.loadVolumeFile( localFileName );
                     break;
 
@@ -144,6 +150,10 @@ public class VolumeLoader implements VolumeLoaderI {
                 }
             }
 
+            if ( cancelled ) {
+                logger.info("Cancelled load volume: {}", localFileName);
+                return false;
+            }
             textureData = textureDataBuilder.buildTextureData( isLuminance );            
             final FileType fileType = getFileType( localFileName, baseName, extension );
             if ( FileType.TIF.equals( fileType)  &&
@@ -187,10 +197,25 @@ public class VolumeLoader implements VolumeLoaderI {
         catch (Exception exc) {
             logger.info("Error loading volume", exc);
         }
+        finally {
+            this.fileLoader = null;
+        }
 
         return false;
     }
 
+    /**
+     * Stops a load in progress on another thread, after which loadVolume returns false.  Only H.265
+     * files can be stopped part way through decoding; other types stop before their next read attempt.
+     */
+    public void cancelLoad() {
+        cancelled = true;
+        VolumeFileLoaderI fileLoader = this.fileLoader;
+        if ( fileLoader instanceof H265FileLoader ) {
+            ((H265FileLoader) fileLoader).cancelLoad();
+        }
+    }
+
     /** This picks up the result of the build process carried out above. */
     @Override
     public void populateVolumeAcceptor(VolumeDataAcceptor dataAcceptor) {
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
 
 import org.slf4j.Logger;
@@ -148,6 +149,42 @@ public class V3dRawImageStream
 	{
 		currentSlice.read(inStream);
 	}
+	
+	public int getSliceByteCount() {
+		return currentSlice.sliceByteCount;
+	}
+	
+	/**
+	 * Reads the next slices straight into the given array, in the byte order of
+	 * {@link #getEndian()}, instead of one at a time into the current slice. Any part
+	 * of the slices beyond the end of the stream is zero filled.
+	 */
+	public void readSlices(byte[] buffer, int offset, int sliceCount)
+	throws IOException
+	{
+		int byteCount = sliceCount * currentSlice.sliceByteCount;
+		int bytesRead = readFully(inStream, buffer, offset, byteCount);
+		if (bytesRead < byteCount) {
+			logger.warn("Stream ended " + (byteCount - bytesRead) + " bytes short of slice "
+					+ (currentSlice.sliceIndex + sliceCount));
+			Arrays.fill(buffer, offset + bytesRead, offset + byteCount, (byte)0);
+		}
+		currentSlice.sliceIndex += sliceCount;
+	}
+	
+	// Decompressing streams may return fewer bytes than asked for, well before the end
+	private static int readFully(InputStream inStream, byte[] buffer, int offset, int length)
+	throws IOException
+	{
+		int total = 0;
+		while (total < length) {
+			int n = inStream.read(buffer, offset + total, length - total);
+			if (n <= 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
 
     public void close() throws IOException {
         inStream.close();
@@ -195,7 +232,7 @@ public class V3dRawImageStream
 		public void read(InputStream inStream) 
 		throws IOException
 		{
-			inStream.read(sliceBuffer.array(), 0, sliceByteCount);
+			readFully(inStream, sliceBuffer.array(), 0, sliceByteCount);
 			++sliceIndex;
 		}
 	}
@@ -6,9 +6,10 @@
 
 package org.janelia.workstation.img_3d_loader;
 
+import java.util.concurrent.CancellationException;
+
 import org.janelia.workstation.ffmpeg.*;
 import org.janelia.workstation.img_3d_loader.AbstractVolumeFileLoader;
-import org.janelia.workstation.img_3d_loader.H26nFileLoadHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,22 +21,55 @@ import org.slf4j.LoggerFactory;
 public class H265FileLoader extends AbstractVolumeFileLoader {
 
     private final Logger logger = LoggerFactory.getLogger(H265FileLoader.class);
-    
-    private final H26nFileLoadHelper helper = new H26nFileLoadHelper();
+
+    private volatile H5JVolumeDecoder decoder;
+    private volatile boolean cancelled;
     
     @Override
     public void loadVolumeFile(String filename) throws Exception {
         setUnCachedFileName(filename);
-        H5JLoader reader = new H5JLoader(filename);
         setChannelCount( 3 );
-        try {
-            ByteGatherAcceptor acceptor = gatherBytes(reader);
-            helper.captureData(acceptor, this);
-            //dumpMeta(acceptor);
+        try (H5JVolumeDecoder decoder = new H5JVolumeDecoder(filename)) {
+            this.decoder = decoder;
+            if (cancelled) {
+                decoder.cancel();
+            }
+            InterleavedVolume volume = decoder.decode(getChannelCount());
+            captureVolume(volume);
+        } catch (CancellationException e) {
+            logger.info("Cancelled loading {}", filename);
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("Error loading {}", filename, e);
+        } finally {
+            this.decoder = null;
+        }
+    }
+
+    /**
+     * Stops a load in progress on another thread. The loader is left without texture data.
+     */
+    public void cancelLoad() {
+        cancelled = true;
+        H5JVolumeDecoder decoder = this.decoder;
+        if (decoder != null) {
+            decoder.cancel();
+        }
+    }
+
+    private void captureVolume(InterleavedVolume volume) {
+        setSx( volume.getWidth() );
+        setSy( volume.getHeight() );
+        setSz( volume.getFrameCount() );
+        setPixelBytes( volume.getComponents() );
+        if (volume.fitsInArray()) {
+            setTextureByteArray(volume.toByteArray());
+        }
+        else {
+            // Must use segmented approach.
+            for (byte[] page : volume.toPages()) {
+                addTextureBytes(page);
+            }
         }
-        reader.close();
     }
     
     public void saveFramesAsPPM(String filename) {
@@ -44,20 +78,6 @@ public class H265FileLoader extends AbstractVolumeFileLoader {
         accept(reader, acceptor);
     }
 
-    /**
-     * Save the frames into an acceptor, and hand back the populated acceptor.
-     * 
-     * @param reader generated around an input file.
-     * @return the acceptor.
-     * @throws Exception 
-     */
-    private ByteGatherAcceptor gatherBytes(H5JLoader reader) throws Exception {
-        ByteGatherAcceptor acceptor = new ByteGatherAcceptor();
-        accept(reader, acceptor);
-        //helper.dumpMeta(acceptor);
-        return acceptor;
-    }
-    
     private void accept(H5JLoader reader, FFMPGByteAcceptor acceptor) {
         try {
             ImageStack image = reader.extractAllChannels();
@@ -6,9 +6,13 @@
 
 package org.janelia.workstation.img_3d_loader;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferUShort;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
 import Jama.Matrix;
 import java.util.List;
@@ -292,6 +296,17 @@ public class LoaderSubsetHelper {
         setSz(boundingBox[ END_Z_INX ] - boundingBox[ START_Z_INX ]);
     }
     
+    /**
+     * @return the part of each source sheet which is in the subset, after
+     * {@link #calculateBoundingBox(int)}.
+     */
+    public Rectangle getSourceRegion() {
+        return new Rectangle(
+                boundingBox[ START_X_INX ], boundingBox[ START_Y_INX ],
+                boundingBox[ END_X_INX ] - boundingBox[ START_X_INX ],
+                boundingBox[ END_Y_INX ] - boundingBox[ START_Y_INX ]);
+    }
+
     /**
      * If this read is meant to take only a subset of the input and push that
      * to the output buffer, this method will carve out that chunk, and place
@@ -302,16 +317,14 @@ public class LoaderSubsetHelper {
      * @param zSlice a buffered image from which to extract a partial sheet.
      */
     public void storeSubsetToBuffer(int destZ, int destSheetSize, BufferedImage zSlice) {
-        DataMover dataMover;
+        int destOffset = ((destZ * destSheetSize) * getPixelBytes());
         if ( getPixelBytes() == 1 ) {
             DataBufferByte db = ((DataBufferByte)zSlice.getTile(0, 0).getDataBuffer());
-            byte[] pixels = db.getData();
-            dataMover = new ByteDataMover( pixels );
+            transferByteRows(db.getData(), destOffset);
         }
         else if ( getPixelBytes() == 2 ) {
             DataBufferUShort db = ((DataBufferUShort)zSlice.getTile(0, 0).getDataBuffer());
-            short[] pixels = db.getData();
-            dataMover = new ShortDataMover( pixels );
+            transferShortRows(db.getData(), destOffset);
         }
         else if ( getPixelBytes() == 4 ) {            
             if ( tempIntBuffer == null ) {
@@ -319,40 +332,53 @@ public class LoaderSubsetHelper {
             }
             zSlice.getRGB(0, 0, getSx(), getSy(),
                     tempIntBuffer, 0, getSx());
-            dataMover = new IntDataMover( tempIntBuffer );
+            transferIntRows(tempIntBuffer, destOffset);
         }
         else {
             throw new IllegalStateException( "Unexpected pixelBytes count == " + getPixelBytes() );
         }
-        transferSubset(destZ, destSheetSize, dataMover);
     }
     
     public boolean inZSubset( int zOffset ) {
         return zOffset >= boundingBox[START_Z_INX] && zOffset < boundingBox[END_Z_INX];
     }
 
-    /**
-     * Convenience method encapsulating common functionality, to all widths
-     * of data that will be transferred.
-     * 
-     * @param destZ how far along in output.
-     * @param destSheetSize size of one x * y of data.
-     * @param dataMover specific to pixel bytes count.
-     */
-    private void transferSubset(int destZ, int destSheetSize, DataMover dataMover) {
-        // The source will be organized into one-voxel-per-array-entry.  That is
-        // the source will be in bytes, words, ints, etc.
-        int destOffset = ((destZ * destSheetSize) * getPixelBytes());
+    // The source is organized into one-voxel-per-array-entry, the destination
+    // into pixelBytes little-endian bytes per voxel.  Each moves a row at a time.
+
+    private void transferByteRows(byte[] pixels, int destOffset) {
+        final int rowLength = boundingBox[ END_X_INX ] - boundingBox[ START_X_INX ];
+        for ( int sourceY = boundingBox[ START_Y_INX ]; sourceY < boundingBox[ END_Y_INX ]; sourceY++ ) {
+            int sourceOffset = (getSourceWidth() * sourceY) + boundingBox[ START_X_INX ];
+            System.arraycopy(pixels, sourceOffset, getTextureByteArray(), destOffset, rowLength);
+            destOffset += rowLength;
+        }
+    }
+
+    private void transferShortRows(short[] pixels, int destOffset) {
+        final int rowLength = boundingBox[ END_X_INX ] - boundingBox[ START_X_INX ];
+        ShortBuffer destination = ByteBuffer.wrap(getTextureByteArray()).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        destination.position(destOffset / 2);
+        for ( int sourceY = boundingBox[ START_Y_INX ]; sourceY < boundingBox[ END_Y_INX ]; sourceY++ ) {
+            int sourceOffset = (getSourceWidth() * sourceY) + boundingBox[ START_X_INX ];
+            destination.put(pixels, sourceOffset, rowLength);
+        }
+    }
+
+    private void transferIntRows(int[] pixels, int destOffset) {
+        final byte[] textureByteArray = getTextureByteArray();
         for ( int sourceY = boundingBox[ START_Y_INX ]; sourceY < boundingBox[ END_Y_INX ]; sourceY++ ) {
             int sourceOffset = (getSourceWidth() * sourceY) + boundingBox[ START_X_INX ];
             for ( int sourceX = boundingBox[ START_X_INX ]; sourceX < boundingBox[ END_X_INX ]; sourceX++ ) {
-                // move pixelbytes worth of data from source to destination.
-                dataMover.moveData(sourceOffset, destOffset);
-                destOffset += getPixelBytes();
-                sourceOffset ++;
+                long value = pixels[sourceOffset++];
+                if ( value < 0 ) {
+                    value += Integer.MAX_VALUE;
+                }
+                for (int pi = 0; pi < getPixelBytes(); pi++) {
+                    textureByteArray[ destOffset++ ] = (byte) (value >>> (pi * 8) & 0x000000ff);
+                }
             }
         }
-        
     }
     
     private int clamp( int min, int max, int startingValue ) {
@@ -365,67 +391,5 @@ public class LoaderSubsetHelper {
         }
         return rtnVal;
     }
-
-    private interface DataMover {
-        void moveData(int sourceOffset, int destOffset);
-    }
-    
-    private class ByteDataMover implements DataMover {
-        private final byte[] pixels;
-        
-        public ByteDataMover(byte[] pixels) {
-            this.pixels = pixels;
-        }
-        
-        @Override
-        public void moveData( int sourceOffset, int destOffset ) {
-            System.arraycopy(pixels, sourceOffset, getTextureByteArray(), destOffset, getPixelBytes());            
-        }
-    }
-    
-    private class ShortDataMover implements DataMover {
-        private final short[] pixels;
-        
-        public ShortDataMover(short[] pixels) {
-            this.pixels = pixels;
-        }
-        
-        @Override
-        public void moveData( int sourceOffset, int destOffset ) {            
-            // Changing the order.
-            int unsignedPixelVal = pixels[ sourceOffset ];
-            if (unsignedPixelVal < 0) {
-                unsignedPixelVal += 65536;
-            }
-            byte byteVal = (byte) ((unsignedPixelVal & 0x0000ff00) >> 8);
-            if ( destOffset == getTextureByteArray().length ) {
-                System.out.println("Overflow.");
-            }
-            getTextureByteArray()[ destOffset + 1 ] = byteVal;
-            byteVal = (byte) (unsignedPixelVal & 0x000000ff);
-            getTextureByteArray()[ destOffset ] = byteVal;
-        }
-    }
-    
-    private class IntDataMover implements DataMover {
-        private final int[] pixels;
-        
-        public IntDataMover(int[] pixels) {
-            this.pixels = pixels;
-        }
-        
-        @Override
-        public void moveData( int sourceOffset, int destOffset ) {
-            // Changing the order.
-            long value = pixels[sourceOffset];
-            if ( value < 0 ) {
-                value += Integer.MAX_VALUE;
-            }
-            for (int pi = 0; pi < getPixelBytes(); pi++) {
-                byte piByte = (byte) (value >>> (pi * 8) & 0x000000ff);
-                getTextureByteArray()[ destOffset + pi ] = piByte;
-            }
-        }
-    }
     
 }
@@ -0,0 +1,279 @@
+package org.janelia.workstation.img_3d_loader;
+
+import com.sun.media.jai.codec.FileSeekableStream;
+import com.sun.media.jai.codec.ImageCodec;
+import com.sun.media.jai.codec.ImageDecoder;
+import com.sun.media.jai.codec.SeekableStream;
+
+import java.awt.Rectangle;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads a single channel 8 or 16 bit TIFF stack, or a sub-volume of it, straight into a
+ * texture byte array.
+ *
+ * Only the pages in the requested range are decoded, and of each page only the requested
+ * region is asked for, so strips or tiles outside of it are not decompressed. Each page
+ * is copied row by row to its Z offset in the destination as soon as it is decoded, so
+ * no more than one page per thread is held besides the destination. Pages are decoded
+ * in parallel, each thread with its own decoder, since a decoder may not be shared.
+ */
+public class TifStackReader {
+
+    private static final Logger logger = Logger.getLogger(TifStackReader.class);
+
+    interface PageDecoder extends Closeable {
+
+        int getPageCount() throws IOException;
+
+        /**
+         * @return the page, whose pixels need not be decoded until they are asked for
+         */
+        RenderedImage decodePage(int page) throws IOException;
+    }
+
+    interface PageDecoderFactory {
+        PageDecoder open() throws IOException;
+    }
+
+    private final PageDecoderFactory decoderFactory;
+    private final int parallelism;
+    private final int pageCount;
+    private final int width;
+    private final int height;
+    private final int bands;
+    private final int sampleBytes;
+    private volatile boolean failed;
+
+    public TifStackReader(File file) throws IOException {
+        this(() -> new JaiPageDecoder(file), Runtime.getRuntime().availableProcessors());
+    }
+
+    TifStackReader(PageDecoderFactory decoderFactory, int parallelism) throws IOException {
+        this.decoderFactory = decoderFactory;
+        this.parallelism = Math.max(1, parallelism);
+        try (PageDecoder decoder = decoderFactory.open()) {
+            this.pageCount = decoder.getPageCount();
+            RenderedImage firstPage = decoder.decodePage(0);
+            this.width = firstPage.getWidth();
+            this.height = firstPage.getHeight();
+            SampleModel sampleModel = firstPage.getSampleModel();
+            this.bands = sampleModel.getNumBands();
+            this.sampleBytes = DataBuffer.getDataTypeSize(sampleModel.getDataType()) / 8;
+        }
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return whether the pages can be stored in a texture with the given bytes per voxel
+     */
+    public boolean canRead(int pixelBytes) {
+        return bands == 1 && sampleBytes == pixelBytes && (pixelBytes == 1 || pixelBytes == 2);
+    }
+
+    /**
+     * Decodes the region of the given pages into the destination, page after page, row
+     * after row. 16 bit values are stored little-endian.
+     */
+    public void read(Rectangle region, int firstPage, int count, byte[] destination) throws IOException {
+        if (!canRead(sampleBytes)) {
+            throw new IOException("Unsupported TIFF layout: " + bands + " bands of " + sampleBytes + " bytes");
+        }
+        if (firstPage < 0 || firstPage + count > pageCount) {
+            throw new IllegalArgumentException("Pages " + firstPage + "-" + (firstPage + count - 1)
+                    + " are outside 0-" + (pageCount - 1));
+        }
+        long sheetBytes = (long) region.width * region.height * sampleBytes;
+        if (sheetBytes * count > destination.length) {
+            throw new IllegalArgumentException("Destination of " + destination.length + " bytes is too small for "
+                    + count + " pages of " + sheetBytes + " bytes");
+        }
+        AtomicInteger nextPage = new AtomicInteger(firstPage);
+        int threads = Math.min(parallelism, count);
+        failed = false;
+        if (threads <= 1) {
+            readPages(nextPage, firstPage, count, region, destination);
+            return;
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "TifStackReader-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> reads = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                reads.add(executor.submit(() -> {
+                    try {
+                        readPages(nextPage, firstPage, count, region, destination);
+                    }
+                    catch (Exception e) {
+                        // Stop the other threads early
+                        failed = true;
+                        throw e;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> read : reads) {
+                read.get();
+            }
+        }
+        catch (InterruptedException e) {
+            failed = true;
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading TIFF pages");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to read TIFF pages", cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void readPages(AtomicInteger nextPage, int firstPage, int count, Rectangle region, byte[] destination)
+            throws IOException {
+        int sheetBytes = region.width * region.height * sampleBytes;
+        try (PageDecoder decoder = decoderFactory.open()) {
+            int page;
+            while (!failed && (page = nextPage.getAndIncrement()) < firstPage + count) {
+                RenderedImage image = decoder.decodePage(page);
+                if (image.getWidth() != width || image.getHeight() != height) {
+                    throw new IllegalStateException("Image number " + page +
+                            " with HEIGHT=" + image.getHeight() + " and WIDTH=" +
+                            image.getWidth() + " has dimensions which do not match previous width * height of "
+                            + width + " * " + height);
+                }
+                copyRegion(image.getData(region), region, destination, (page - firstPage) * sheetBytes);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Read page " + page + " on " + Thread.currentThread().getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the region of the raster to the destination, one row at a time.
+     */
+    static void copyRegion(Raster raster, Rectangle region, byte[] destination, int offset) {
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (sampleModel instanceof ComponentSampleModel
+                && ((ComponentSampleModel) sampleModel).getPixelStride() == 1
+                && dataBuffer.getNumBanks() == 1) {
+            ComponentSampleModel componentModel = (ComponentSampleModel) sampleModel;
+            int scanlineStride = componentModel.getScanlineStride();
+            int sourceOffset = dataBuffer.getOffset() + componentModel.getOffset(
+                    region.x - raster.getSampleModelTranslateX(), region.y - raster.getSampleModelTranslateY());
+            if (dataBuffer instanceof DataBufferByte) {
+                byte[] pixels = ((DataBufferByte) dataBuffer).getData();
+                for (int y = 0; y < region.height; y++) {
+                    System.arraycopy(pixels, sourceOffset + y * scanlineStride,
+                            destination, offset + y * region.width, region.width);
+                }
+                return;
+            }
+            short[] pixels = null;
+            if (dataBuffer instanceof DataBufferUShort) {
+                pixels = ((DataBufferUShort) dataBuffer).getData();
+            }
+            else if (dataBuffer instanceof DataBufferShort) {
+                pixels = ((DataBufferShort) dataBuffer).getData();
+            }
+            if (pixels != null) {
+                ShortBuffer target = ByteBuffer.wrap(destination).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                for (int y = 0; y < region.height; y++) {
+                    target.position(offset / 2 + y * region.width);
+                    target.put(pixels, sourceOffset + y * scanlineStride, region.width);
+                }
+                return;
+            }
+        }
+
+        // Any other layout, one row of samples at a time
+        int sampleBytes = DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+        int[] row = new int[region.width];
+        int target = offset;
+        for (int y = region.y; y < region.y + region.height; y++) {
+            raster.getSamples(region.x, y, region.width, 1, 0, row);
+            for (int x = 0; x < region.width; x++) {
+                for (int b = 0; b < sampleBytes; b++) {
+                    destination[target++] = (byte) (row[x] >>> (b * 8));
+                }
+            }
+        }
+    }
+
+    private static class JaiPageDecoder implements PageDecoder {
+
+        private final SeekableStream stream;
+        private final ImageDecoder decoder;
+
+        JaiPageDecoder(File file) throws IOException {
+            stream = new FileSeekableStream(file);
+            decoder = ImageCodec.createImageDecoder("tiff", stream, null);
+        }
+
+        @Override
+        public int getPageCount() throws IOException {
+            return decoder.getNumPages();
+        }
+
+        @Override
+        public RenderedImage decodePage(int page) throws IOException {
+            return decoder.decodeAsRenderedImage(page);
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+}
@@ -12,6 +12,7 @@ import javax.media.jai.NullOpImage;
 import javax.media.jai.OpImage;
 import javax.media.jai.RenderedImageAdapter;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferUShort;
@@ -65,59 +66,71 @@ public class TifVolumeFileLoader extends AbstractVolumeFileLoader {
         setUnCachedFileName(fileName);
         
         final File file = new File(fileName);
+        TifStackReader stackReader = new TifStackReader(file);
+        sheetCountFromFile = stackReader.getPageCount();
+
+        Rectangle region;
+        int firstPage;
+        int sheetSize;
+        if ( subsetHelper != null ) {
+            subsetHelper.setSourceDepth( sheetCountFromFile );
+            subsetHelper.setSourceWidth( stackReader.getWidth() );
+            subsetHelper.setSourceHeight( stackReader.getHeight() );
+            subsetHelper.calculateBoundingZ( sheetCountFromFile );
+            subsetHelper.calculateBoundingBox( sheetCountFromFile );
+
+            // Apply volume characteristics 'learned' from subset helper.
+            setSx(subsetHelper.getSx());
+            setSy(subsetHelper.getSy());
+            setSz(subsetHelper.getSz());
+
+            sheetSize = subsetHelper.initializeStorage(file.length());
+            setPixelBytes( subsetHelper.getPixelBytes() );
+            setArgbTextureIntArray(subsetHelper.getArgbTextureIntArray());
+            setTextureByteArray(subsetHelper.getTextureByteArray());
+            region = subsetHelper.getSourceRegion();
+            firstPage = subsetHelper.getStartingZ();
+        }
+        else {
+            setSx( stackReader.getWidth() );
+            setSy( stackReader.getHeight() );
+            setSz( sheetCountFromFile );
+            sheetSize = initializeStorage(file.length());
+            region = new Rectangle( 0, 0, getSx(), getSy() );
+            firstPage = 0;
+        }
+
+        if ( getTextureByteArray() != null  &&  stackReader.canRead( getPixelBytes() ) ) {
+            logger.debug("Reading " + getSz() + " of " + sheetCountFromFile + " images straight to texture.");
+            stackReader.read( region, firstPage, getSz(), getTextureByteArray() );
+        }
+        else {
+            loadAllImages( file, sheetSize );
+        }
+    }
+
+    /**
+     * Decodes every image needed, and then copies them into the texture.  Used for
+     * layouts, such as RGB, which the stack reader does not handle.
+     */
+    private void loadAllImages( File file, int sheetSize ) throws Exception {
         logger.debug("Loading the subset of images.");
         Collection<BufferedImage> allImages = loadTIFF( file );
         if ( allImages == null ) {
-            throw new Exception("Failed to read data from " + fileName + ".");
+            throw new Exception("Failed to read data from " + file + ".");
         }
 
-        // Sentinal values.
-        setSx(SENTINAL_INT_VAL);
-        setSy(SENTINAL_INT_VAL);
-        setSz(SENTINAL_INT_VAL);
-        setPixelBytes(SENTINAL_INT_VAL);
-        int sheetSize = SENTINAL_INT_VAL;
-        int expectedWidth = SENTINAL_INT_VAL;
-        int expectedHeight = SENTINAL_INT_VAL;
+        int expectedWidth = subsetHelper == null ? getSx() : subsetHelper.getSourceWidth();
+        int expectedHeight = subsetHelper == null ? getSy() : subsetHelper.getSourceHeight();
 
         logger.debug("Traversing images.");
-        // Initial values.
         int zOffset = 0;
         int targetOffset = 0;
         for ( BufferedImage zSlice: allImages ) {
-            if ( expectedWidth == SENTINAL_INT_VAL ) {
-                expectedWidth = zSlice.getWidth();
-                expectedHeight = zSlice.getHeight();
-            }
-            if ( getSy() == SENTINAL_INT_VAL ) {
-                if ( subsetHelper != null ) {
-                    subsetHelper.setSourceWidth(zSlice.getWidth());
-                    subsetHelper.setSourceHeight(zSlice.getHeight());
-                    subsetHelper.calculateBoundingBox(sheetCountFromFile);
-
-                    // Apply volume characteristics 'learned' from subset helper.
-                    setSx(subsetHelper.getSx());
-                    setSy(subsetHelper.getSy());
-                    setSz(subsetHelper.getSz());
-                
-                    sheetSize = subsetHelper.initializeStorage(file.length());
-                    setPixelBytes( subsetHelper.getPixelBytes() );
-                    setArgbTextureIntArray(subsetHelper.getArgbTextureIntArray());
-                    setTextureByteArray(subsetHelper.getTextureByteArray());
-                }
-                else {
-                    setSx( zSlice.getWidth() );
-                    setSy( zSlice.getHeight() );
-                    setSz( allImages.size() );
-                    sheetSize = initializeStorage(file.length());
-                }
-            }
-            else {
-                if ( expectedWidth != zSlice.getWidth()  ||  expectedHeight != zSlice.getHeight() ) {
-                    throw new IllegalStateException( "Image number " + zOffset +
-                            " with HEIGHT=" + zSlice.getHeight() + " and WIDTH=" + 
-                            zSlice.getWidth() + " has dimensions which do not match previous width * height of " + expectedWidth + " * " + expectedHeight );
-                }
+            if ( expectedWidth != zSlice.getWidth()  ||  expectedHeight != zSlice.getHeight() ) {
+                throw new IllegalStateException( "Image number " + zOffset +
+                        " with HEIGHT=" + zSlice.getHeight() + " and WIDTH=" + 
+                        zSlice.getWidth() + " has dimensions which do not match previous width * height of " + expectedWidth + " * " + expectedHeight );
             }
 
             // Store only things that are within the targetted depth.
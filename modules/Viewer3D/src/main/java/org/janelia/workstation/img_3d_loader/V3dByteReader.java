@@ -2,6 +2,11 @@ package org.janelia.workstation.img_3d_loader;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeSet;
 import org.janelia.workstation.image.stream.V3dRawImageStream;
@@ -22,6 +27,17 @@ public class V3dByteReader {
 
     private byte[] textureByteArray;
     private boolean invertedY = true;
+    private final int parallelism;
+    private final int chunkBytes;
+
+    public V3dByteReader() {
+        this(Runtime.getRuntime().availableProcessors(), V3dSliceReader.DEFAULT_CHUNK_BYTES);
+    }
+
+    V3dByteReader(int parallelism, int chunkBytes) {
+        this.parallelism = parallelism;
+        this.chunkBytes = chunkBytes;
+    }
 
     public byte[] getTextureBytes() {
         return textureByteArray;
@@ -29,7 +45,11 @@ public class V3dByteReader {
 
     /**
      * This method reads all information from the slice stream into the internal mask-byte-array (1-D) without
-     * attempting to subset or interpret the values.
+     * attempting to subset or interpret the values. Values are stored little-endian, and values which are not
+     * positive are stored as zero.
+     *
+     * Whole rows are copied at a time, and Z-ranges of slices are decoded on separate threads while the
+     * stream reads on.
      *
      * @param sliceStream source for data.
      * @return distinct set of all values found in the stream.
@@ -37,39 +57,112 @@ public class V3dByteReader {
      */
     public Set<Integer> readBytes(V3dRawImageStream sliceStream, int sx, int sy, int sz, int sc, int pixelBytes)
             throws IOException {
+        if (pixelBytes != 1 && pixelBytes != 2 && pixelBytes != 4) {
+            throw new IOException("Unexpected pixelbytes count of " + pixelBytes);
+        }
         textureByteArray = new byte[(sx * sy * sz * sc) * pixelBytes];
 
         logger.info("readBytes 1 start");
 
+        // Every 8 or 16 bit value is flagged in place; wider labels are collected in a set
+        boolean[] present = new boolean[pixelBytes == 1 ? 256 : Short.MAX_VALUE + 1];
         Set<Integer> values = new TreeSet<>();
-        for (int c = 0; c < sc; c++) {
-            int cOffset = c * sx * sy * sz * pixelBytes;
-            for (int z = 0; z < sz; z++) {
-                int zOffset = z * sx * sy;
-                sliceStream.loadNextSlice();
-                V3dRawImageStream.Slice slice = sliceStream.getCurrentSlice();
-                for (int y = 0; y < sy; y++) {
-                    int yOffset = zOffset + calcYOffset(y, sy) * sx;
-                    for (int x = 0; x < sx; x++) {
-                        Integer value = slice.getValue(x, y);
-                        if (value > 0) {
-                            values.add(value);
-                            for (int pi = 0; pi < pixelBytes; pi++) {
-                                byte piByte = (byte) (value >>> (pi * 8) & 0x000000ff);
-                                textureByteArray[cOffset + (yOffset * pixelBytes) + (x * pixelBytes) + (pi)] = piByte;
-                            }
+        try {
+            new V3dSliceReader(parallelism, chunkBytes).read(sliceStream, 0, sz * sc, (chunk, firstSlice, sliceCount) -> {
+                boolean[] chunkPresent = new boolean[present.length];
+                Set<Integer> chunkValues = new HashSet<>();
+                ByteBuffer texture = ByteBuffer.wrap(textureByteArray).order(ByteOrder.LITTLE_ENDIAN);
+                ShortBuffer shortSource = chunk.asShortBuffer();
+                ShortBuffer shortTarget = texture.asShortBuffer();
+                IntBuffer intSource = chunk.asIntBuffer();
+                IntBuffer intTarget = texture.asIntBuffer();
+                short[] shortRow = new short[pixelBytes == 2 ? sx : 0];
+                int[] intRow = new int[pixelBytes == 4 ? sx : 0];
+                for (int s = 0; s < sliceCount; s++) {
+                    int c = (firstSlice + s) / sz;
+                    int z = (firstSlice + s) % sz;
+                    int zOffset = (c * sz + z) * sx * sy;
+                    for (int y = 0; y < sy; y++) {
+                        int source = (s * sy + y) * sx;
+                        int target = zOffset + calcYOffset(y, sy) * sx;
+                        if (pixelBytes == 1) {
+                            copyByteRow(chunk, source, target, sx, chunkPresent);
+                        }
+                        else if (pixelBytes == 2) {
+                            copyShortRow(shortSource, shortTarget, source, target, shortRow, chunkPresent);
                         }
+                        else {
+                            copyIntRow(intSource, intTarget, source, target, intRow, chunkValues);
+                        }
+                    }
+                }
+                synchronized (present) {
+                    for (int i = 0; i < present.length; i++) {
+                        present[i] |= chunkPresent[i];
                     }
+                    values.addAll(chunkValues);
                 }
+            });
+        }
+        finally {
+            sliceStream.close();
+        }
+        for (int i = 1; i < present.length; i++) {
+            if (present[i]) {
+                values.add(i);
             }
         }
-        sliceStream.close();
 
         logger.info("readBytes 1 end");
 
         return values;
     }
 
+    private void copyByteRow(ByteBuffer chunk, int source, int target, int sx, boolean[] present) {
+        byte[] bytes = chunk.array();
+        System.arraycopy(bytes, source, textureByteArray, target, sx);
+        for (int i = source; i < source + sx; i++) {
+            present[bytes[i] & 0xff] = true;
+        }
+    }
+
+    private static void copyShortRow(ShortBuffer sourceBuffer, ShortBuffer targetBuffer, int source, int target,
+            short[] row, boolean[] present) {
+        sourceBuffer.position(source);
+        sourceBuffer.get(row);
+        for (int x = 0; x < row.length; x++) {
+            short value = row[x];
+            if (value < 0) {
+                row[x] = 0;
+            }
+            else {
+                present[value] = true;
+            }
+        }
+        targetBuffer.position(target);
+        targetBuffer.put(row);
+    }
+
+    private static void copyIntRow(IntBuffer sourceBuffer, IntBuffer targetBuffer, int source, int target,
+            int[] row, Set<Integer> values) {
+        sourceBuffer.position(source);
+        sourceBuffer.get(row);
+        int previous = 0;
+        for (int x = 0; x < row.length; x++) {
+            int value = row[x];
+            if (value <= 0) {
+                row[x] = 0;
+            }
+            else if (value != previous) {
+                // Labels come in runs, so most voxels are not looked up
+                values.add(value);
+                previous = value;
+            }
+        }
+        targetBuffer.position(target);
+        targetBuffer.put(row);
+    }
+
     /**
      * This method reads all information from the slice stream into the internal mask-byte-array (1-D).
      *
@@ -62,15 +62,19 @@ public class V3dSignalFileLoader extends LociFileLoader {
         
         logger.info("loadV3dIntRaw");
 
-        double scale = 1.0;
-        if (sliceStream.getPixelBytes() > 1)
-            scale = 255.0 / 4095.0; // assume it's 12 bits
+        int pixelBytes = sliceStream.getPixelBytes();
+        if (pixelBytes != 2 && pixelBytes != 4) {
+            throw new IOException("Unexpected pixelbytes count of " + pixelBytes);
+        }
+        double scale = 255.0 / 4095.0; // assume it's 12 bits
 
         int sx = getSx();
         int sy = getSy();
         int sz = getSz();
         initArgbTextureIntArray();
         int[] argbTextureIntArray = getArgbTextureIntArray();
+        V3dSliceReader sliceReader = new V3dSliceReader(
+                Runtime.getRuntime().availableProcessors(), V3dSliceReader.DEFAULT_CHUNK_BYTES);
         for (int c = 0; c < sc; ++c) {
             // create a mask to manipulate one color byte of a 32-bit ARGB int
             int bitShift = 8 * (c + 2);
@@ -78,29 +82,44 @@ public class V3dSignalFileLoader extends LociFileLoader {
             bitShift = 32 - bitShift;  // opposite shift inside loop
             int mask = (0x000000ff << bitShift);
             int notMask = ~mask;
-            for (int z = 0; z < sz; ++z) {
-                int zOffset = z * sx * sy;
-                sliceStream.loadNextSlice();
-                V3dRawImageStream.Slice slice = sliceStream.getCurrentSlice();
-                for (int y = 0; y < sy; ++y) {
-                    int yOffset = zOffset + y * sx;
-                    for (int x = 0; x < sx; ++x) {
-                        int argb = argbTextureIntArray[yOffset + x] & notMask; // zero color component
-                        double value = scale * slice.getValue(x, y);
-                        int ival = (int)(value + 0.5);
-                        if (ival < 0) ival = 0;
-                        if (ival > 255) ival = 255;
-                        ival = ival << bitShift;
-                        argb = argb | ival; // insert updated color component
-                        argbTextureIntArray[yOffset + x] = argb;
+            int channelShift = bitShift;
+            int firstChannelSlice = c * sz;
+            // Channels share each ARGB int, so one channel is finished before the next starts
+            sliceReader.read(sliceStream, firstChannelSlice, sz, (chunk, firstSlice, sliceCount) -> {
+                int offset = (firstSlice - firstChannelSlice) * sx * sy;
+                int voxelCount = sliceCount * sx * sy;
+                if (pixelBytes == 2) {
+                    short[] values = new short[voxelCount];
+                    chunk.asShortBuffer().get(values);
+                    for (int i = 0; i < voxelCount; ++i) {
+                        argbTextureIntArray[offset + i] = insertComponent(
+                                argbTextureIntArray[offset + i], values[i], scale, notMask, channelShift);
+                    }
+                }
+                else {
+                    int[] values = new int[voxelCount];
+                    chunk.asIntBuffer().get(values);
+                    for (int i = 0; i < voxelCount; ++i) {
+                        argbTextureIntArray[offset + i] = insertComponent(
+                                argbTextureIntArray[offset + i], values[i], scale, notMask, channelShift);
                     }
                 }
-            }
+            });
         }
 
         setHeader(sliceStream.getHeaderKey());
     }
 
+    private static int insertComponent(int argb, int rawValue, double scale, int notMask, int bitShift) {
+        argb = argb & notMask; // zero color component
+        double value = scale * rawValue;
+        int ival = (int)(value + 0.5);
+        if (ival < 0) ival = 0;
+        if (ival > 255) ival = 255;
+        ival = ival << bitShift;
+        return argb | ival; // insert updated color component
+    }
+
     private void loadV3dByteRaw(V3dRawImageStream sliceStream)
             throws IOException, DataFormatException {
         
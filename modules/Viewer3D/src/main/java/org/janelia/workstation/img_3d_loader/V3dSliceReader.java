@@ -0,0 +1,134 @@
+package org.janelia.workstation.img_3d_loader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.workstation.image.stream.V3dRawImageStream;
+
+/**
+ * Reads the slices of a V3D stream on the calling thread, which is where any
+ * decompression happens, and decodes them on a pool of threads. Consecutive slices are
+ * read in chunks of a few megabytes, and each chunk is handed to a decoding thread as
+ * one Z-range, so that decoding overlaps with reading the next range. The chunk buffers
+ * are reused, which also bounds how far reading can run ahead of decoding.
+ */
+class V3dSliceReader {
+
+    static final int DEFAULT_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    interface ChunkDecoder {
+        /**
+         * @param chunk the slices, starting at position 0, in the byte order of the stream
+         * @param firstSlice stream index of the first slice in the chunk, counting all channels
+         */
+        void decode(ByteBuffer chunk, int firstSlice, int sliceCount) throws IOException;
+    }
+
+    private final int parallelism;
+    private final int chunkBytes;
+
+    V3dSliceReader(int parallelism, int chunkBytes) {
+        this.parallelism = Math.max(1, parallelism);
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Reads the given number of slices from the stream, which must be positioned at
+     * firstSlice, and returns once they have all been decoded.
+     */
+    void read(V3dRawImageStream sliceStream, int firstSlice, int sliceCount, ChunkDecoder decoder)
+            throws IOException {
+        int sliceBytes = Math.max(1, sliceStream.getSliceByteCount());
+        int slicesPerChunk = Math.max(1, Math.min(sliceCount, chunkBytes / sliceBytes));
+        ByteOrder order = sliceStream.getEndian();
+        if (parallelism == 1 || sliceCount <= slicesPerChunk) {
+            // Nothing to overlap
+            byte[] buffer = new byte[slicesPerChunk * sliceBytes];
+            for (int s = 0; s < sliceCount; s += slicesPerChunk) {
+                int count = Math.min(slicesPerChunk, sliceCount - s);
+                sliceStream.readSlices(buffer, 0, count);
+                decode(decoder, buffer, order, firstSlice + s, count);
+            }
+            return;
+        }
+
+        int threads = Math.min(parallelism, (sliceCount + slicesPerChunk - 1) / slicesPerChunk);
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "V3dSliceReader-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // One chunk being read while each thread decodes another
+        BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(threads + 1);
+        for (int i = 0; i <= threads; i++) {
+            freeBuffers.add(new byte[slicesPerChunk * sliceBytes]);
+        }
+        List<Future<?>> decodes = new LinkedList<>();
+        try {
+            for (int s = 0; s < sliceCount; s += slicesPerChunk) {
+                byte[] buffer = freeBuffers.take();
+                int count = Math.min(slicesPerChunk, sliceCount - s);
+                int chunkFirstSlice = firstSlice + s;
+                sliceStream.readSlices(buffer, 0, count);
+                decodes.add(executor.submit(() -> {
+                    try {
+                        decode(decoder, buffer, order, chunkFirstSlice, count);
+                    }
+                    finally {
+                        freeBuffers.add(buffer);
+                    }
+                    return null;
+                }));
+                // Stop reading as soon as a chunk has failed
+                for (Iterator<Future<?>> i = decodes.iterator(); i.hasNext(); ) {
+                    Future<?> decode = i.next();
+                    if (decode.isDone()) {
+                        decode.get();
+                        i.remove();
+                    }
+                }
+            }
+            for (Future<?> decode : decodes) {
+                decode.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding slices");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to decode slices", cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void decode(ChunkDecoder decoder, byte[] buffer, ByteOrder order, int firstSlice, int sliceCount)
+            throws IOException {
+        decoder.decode(ByteBuffer.wrap(buffer).order(order), firstSlice, sliceCount);
+    }
+}
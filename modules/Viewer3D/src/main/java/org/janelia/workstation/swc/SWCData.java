@@ -51,6 +51,7 @@ public class SWCData {
     private static final Logger logger = LoggerFactory.getLogger(SWCData.class);
     private static final String COLOR_HEADER_PREFIX = "COLOR";
     private static final String NAME_HEADER_PREFIX = "NAME";
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
     private File swcFile;
 
     private List<SWCNode> nodeList = new ArrayList<>();
@@ -97,19 +98,21 @@ public class SWCData {
     }
 
     private void readParseFile() throws IOException {
-        List<String> lines = Files.readAllLines(swcFile.toPath(), Charset.defaultCharset());
-
-        for (String line: lines) {
-            line = line.trim();
-
-            if (line.length() == 0) {
-                // if blank, skip--do nothing
-            } else if (line.startsWith("#")) {
-                // if starts with #, into header list
-                headerList.add(line);
-            } else {
-                // if not, create SWCNode; put into node list
-                nodeList.add(SWCNode.parseLine(line));
+        // read line by line rather than holding the whole file as strings
+        try (BufferedReader reader = Files.newBufferedReader(swcFile.toPath(), Charset.defaultCharset())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                if (line.length() == 0) {
+                    // if blank, skip--do nothing
+                } else if (line.startsWith("#")) {
+                    // if starts with #, into header list
+                    headerList.add(line);
+                } else {
+                    // if not, create SWCNode; put into node list
+                    nodeList.add(SWCNode.parseLine(line));
+                }
             }
         }
     }
@@ -136,13 +139,17 @@ public class SWCData {
                     parentDirName = swcFileName + "-dir";
                 }
                 File parentDir = new File(swcFile.getParent(), parentDirName);
-                // If anyone ever made a file of the name we wish to call our
-                // directory, we'll make an alternative with unique name.
-                if (parentDir.exists()  &&  !parentDir.isDirectory()) {
-                    parentDir = new File(parentDir.getParentFile(), parentDirName + "_" + new java.util.Date().getTime());                    
-                }
-                if (! parentDir.exists() ) {
-                    parentDir.mkdirs();
+                // neurons may be written from several threads at once; the
+                // first one in sets up the directory
+                synchronized (SWCData.class) {
+                    // If anyone ever made a file of the name we wish to call our
+                    // directory, we'll make an alternative with unique name.
+                    if (parentDir.exists()  &&  !parentDir.isDirectory()) {
+                        parentDir = new File(parentDir.getParentFile(), parentDirName + "_" + new java.util.Date().getTime());
+                    }
+                    if (! parentDir.exists() ) {
+                        parentDir.mkdirs();
+                    }
                 }
 
                 // use neuron name for the file name, but increment if it's
@@ -156,8 +163,7 @@ public class SWCData {
                     swcFile = new File(parentDir, newName);
                 }
             }
-            FileWriter writer = new FileWriter(swcFile);
-            writeSwcFile(writer);
+            writeSwcFile(Files.newBufferedWriter(swcFile.toPath(), Charset.defaultCharset()));
             this.swcFile = swcFile;
         }
         else {
@@ -189,12 +195,14 @@ public class SWCData {
 
     /**
      * given a filename, return a filename in the input directory that
-     * is unique, adding integers as needed
+     * is unique, adding integers as needed; the file is created here, so
+     * two neurons with the same name written at the same time can't both
+     * claim it
      */
-    private File getUniqueSWCFile(File parentDir, String basename) {
+    private File getUniqueSWCFile(File parentDir, String basename) throws IOException {
         File testFile = new File(parentDir, basename + STD_SWC_EXTENSION);
         int counter = 1;
-        while (testFile.exists()) {
+        while (!testFile.createNewFile()) {
             counter++;
             testFile = new File(parentDir, basename + "_" + counter + STD_SWC_EXTENSION);
         }
@@ -530,14 +538,33 @@ public class SWCData {
                 bufferedWriter.newLine();
             }
             
+            // node lines are built up in one buffer and written out in
+            //  chunks, rather than formatted into a string apiece
+            String newLine = System.lineSeparator();
+            StringBuilder lines = new StringBuilder(WRITE_CHUNK_SIZE + 128);
+            char[] chunk = new char[0];
             for (SWCNode node: getNodeList()) {
-                bufferedWriter.write(node.toSWCline());
-                bufferedWriter.newLine();
+                node.appendSWCline(lines);
+                lines.append(newLine);
+                if (lines.length() >= WRITE_CHUNK_SIZE) {
+                    chunk = writeChunk(bufferedWriter, lines, chunk);
+                }
             }
+            writeChunk(bufferedWriter, lines, chunk);
         }
 
     }
 
+    private static char[] writeChunk(Writer writer, StringBuilder lines, char[] chunk) throws IOException {
+        if (chunk.length < lines.length()) {
+            chunk = new char[lines.length()];
+        }
+        lines.getChars(0, lines.length(), chunk, 0);
+        writer.write(chunk, 0, lines.length());
+        lines.setLength(0);
+        return chunk;
+    }
+
     private void writeErrorSWC() throws IllegalStateException, IOException {
         final String message = String.format(
                 "can't write SWC data; invalid for reason: %s",
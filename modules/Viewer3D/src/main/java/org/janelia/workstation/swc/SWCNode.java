@@ -41,30 +41,140 @@ public class SWCNode {
     private double radius;
     private int parentIndex;
 
+    // powers of ten that are exact as doubles
+    private static final double[] EXACT_POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
     /**
      * create a node from a line of a swc file; null if it fails
+     *
+     * fields are found by scanning the line rather than with String.split,
+     * which runs a regex and makes a string per field, for every line of
+     * every file
      */
     public static SWCNode parseLine(String line) {
         if (line == null) {
             return null;
         }
 
-        String [] items = line.split("\\s+");
-        if (items.length != 7) {
+        // start and end of each of the seven fields
+        int[] fields = new int[14];
+        int nFields = 0;
+        int length = line.length();
+        int i = 0;
+        while (true) {
+            while (i < length && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            if (nFields == 7) {
+                return null;
+            }
+            fields[2 * nFields] = i;
+            while (i < length && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            fields[2 * nFields + 1] = i;
+            nFields++;
+        }
+        if (nFields != 7) {
             return null;
         }
 
         return new SWCNode(
-                Integer.parseInt(items[0]),
-                decodeToSegment.get(Integer.parseInt(items[1])),
-                Double.parseDouble(items[2]),
-                Double.parseDouble(items[3]),
-                Double.parseDouble(items[4]),
-                Double.parseDouble(items[5]),
-                Integer.parseInt(items[6])
+                parseInt(line, fields[0], fields[1]),
+                decodeToSegment.get(parseInt(line, fields[2], fields[3])),
+                parseDouble(line, fields[4], fields[5]),
+                parseDouble(line, fields[6], fields[7]),
+                parseDouble(line, fields[8], fields[9]),
+                parseDouble(line, fields[10], fields[11]),
+                parseInt(line, fields[12], fields[13])
         );
     }
 
+    /**
+     * parses a plain decimal integer; anything else goes to Integer.parseInt,
+     * so errors are reported as before
+     */
+    private static int parseInt(String line, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+            negative = line.charAt(i) == '-';
+            i++;
+        }
+        if (i == end || end - i > 9) {
+            return Integer.parseInt(line.substring(start, end));
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.parseInt(line.substring(start, end));
+            }
+            value = 10 * value + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * parses a decimal number, like "-123.456" or "1.5e3"; when the digits
+     * and exponent are small enough, a single multiply or divide by an exact
+     * power of ten gives the same, correctly rounded result as
+     * Double.parseDouble, which handles everything else
+     */
+    private static double parseDouble(String line, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+            negative = line.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int nDigits = 0;
+        int exponent = 0;
+        boolean seenPoint = false;
+        boolean seenDigit = false;
+        for (; i < end; i++) {
+            char c = line.charAt(i);
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if (nDigits > 0 || c != '0') {
+                    nDigits++;
+                }
+                mantissa = 10 * mantissa + (c - '0');
+                if (seenPoint) {
+                    exponent--;
+                }
+                if (nDigits > 15) {
+                    return Double.parseDouble(line.substring(start, end));
+                }
+            } else if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (i < end) {
+            char c = line.charAt(i);
+            if ((c != 'e' && c != 'E') || end - i > 4) {
+                return Double.parseDouble(line.substring(start, end));
+            }
+            exponent += parseInt(line, i + 1, end);
+        }
+        if (!seenDigit || exponent < -22 || exponent > 22) {
+            return Double.parseDouble(line.substring(start, end));
+        }
+        double value = exponent < 0
+                ? mantissa / EXACT_POWERS_OF_TEN[-exponent]
+                : mantissa * EXACT_POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
     /**
      * @param index = index of node
      * @param segmentType = segment type; see types in code comments
@@ -105,12 +215,47 @@ public class SWCNode {
      * (we will import any number of whitespace as separator)
      */
     public String toSWCline () {
-        return String.format("%d %d %f %f %f %f %d",
-                index,
-                segmentType.decode(),
-                x, y, z,
-                radius,
-                parentIndex);
+        StringBuilder line = new StringBuilder(64);
+        appendSWCline(line);
+        return line.toString();
+    }
+
+    /**
+     * appends the same text as toSWCline(), without a Formatter or
+     * intermediate strings, for writing many nodes
+     */
+    public void appendSWCline(StringBuilder line) {
+        line.append(index).append(' ').append(segmentType.decode()).append(' ');
+        appendDecimal(line, x);
+        line.append(' ');
+        appendDecimal(line, y);
+        line.append(' ');
+        appendDecimal(line, z);
+        line.append(' ');
+        appendDecimal(line, radius);
+        line.append(' ').append(parentIndex);
+    }
+
+    /**
+     * appends the value with six decimal places, like %f
+     */
+    private static void appendDecimal(StringBuilder line, double value) {
+        if (Double.isNaN(value) || Math.abs(value) >= 1e12) {
+            line.append(String.format("%f", value));
+            return;
+        }
+        long scaled = Math.round(Math.abs(value) * 1e6);
+        if (value < 0 && scaled != 0) {
+            line.append('-');
+        }
+        line.append(scaled / 1000000).append('.');
+        long fraction = scaled % 1000000;
+        for (long place = 100000; place > 0 && fraction < place; place /= 10) {
+            line.append('0');
+        }
+        if (fraction > 0) {
+            line.append(fraction);
+        }
     }
 
     public int getIndex() {
@@ -0,0 +1,381 @@
+package org.janelia.workstation.ffmpeg;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestH5JVolumeDecoder {
+
+    private static volatile int workSink;
+
+    // Voxel value of a channel at a position, so that misplaced bytes are detected
+    private static byte voxel(int channel, int frame, int pixel) {
+        return (byte) (channel * 67 + frame * 13 + pixel * 7);
+    }
+
+    // Produces frames from voxel() instead of decoding a video stream
+    private static class SyntheticChannel implements H5JVolumeDecoder.ChannelDecoder {
+        final int channel;
+        final int width;
+        final int height;
+        final int frames;
+        final int expectedFrames;
+        final int workPerPixel;
+        boolean started = false;
+        volatile boolean released = false;
+        Runnable beforeEachFrame = () -> {};
+
+        SyntheticChannel(int channel, int width, int height, int frames, int expectedFrames, int workPerPixel) {
+            this.channel = channel;
+            this.width = width;
+            this.height = height;
+            this.frames = frames;
+            this.expectedFrames = expectedFrames;
+            this.workPerPixel = workPerPixel;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getExpectedFrames() {
+            return expectedFrames;
+        }
+
+        byte[] decodeFrame(int frame) {
+            byte[] pixels = new byte[width * height];
+            int checksum = 0;
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = voxel(channel, frame, i);
+                // Stands in for the cost of video decoding
+                int value = pixels[i];
+                for (int w = 0; w < workPerPixel; w++) {
+                    value = value * 31 + w;
+                }
+                checksum += value;
+            }
+            workSink = checksum;
+            return pixels;
+        }
+
+        @Override
+        public void decode(FFMpegLoader.FrameConsumer consumer) throws Exception {
+            for (int frame = 0; frame < frames; frame++) {
+                beforeEachFrame.run();
+                consumer.accept(frame, decodeFrame(frame), width, height);
+            }
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private static H5JVolumeDecoder decoder(int channelCount) {
+        List<String> names = new ArrayList<>();
+        for (int c = 0; c < channelCount; c++) {
+            names.add("Channel_" + c);
+        }
+        return new H5JVolumeDecoder("synthetic.h5j", names);
+    }
+
+    private static void assertVolume(byte[] volume, int width, int height, int frames, int components, int channels) {
+        int pixels = width * height;
+        assertEquals(pixels * frames * components, volume.length);
+        for (int frame = 0; frame < frames; frame++) {
+            for (int i = 0; i < pixels; i++) {
+                for (int c = 0; c < components; c++) {
+                    byte expected = c < channels ? voxel(c, frame, i) : 0;
+                    assertEquals("frame " + frame + " pixel " + i + " channel " + c,
+                            expected, volume[(frame * pixels + i) * components + c]);
+                }
+            }
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testChannelsAreInterleavedInPlace() throws Exception {
+        H5JVolumeDecoder decoder = decoder(3);
+        decoder.setParallelism(2);
+        List<SyntheticChannel> channels = new ArrayList<>();
+        InterleavedVolume volume = decoder.decodeChannels(c -> {
+            SyntheticChannel channel = new SyntheticChannel(c, 7, 5, 4, 4, 0);
+            channels.add(channel);
+            return channel;
+        }, 3, 3);
+        assertEquals(4, volume.getFrameCount());
+        byte[] bytes = volume.toByteArray();
+        // The preallocated array is handed over without a copy
+        assertSame(bytes, volume.toByteArray());
+        assertVolume(bytes, 7, 5, 4, 3, 3);
+        for (SyntheticChannel channel : channels) {
+            assertTrue(channel.released);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testUnknownFrameCount() throws Exception {
+        H5JVolumeDecoder decoder = decoder(2);
+        InterleavedVolume volume = decoder.decodeChannels(
+                c -> new SyntheticChannel(c, 4, 3, 6, 0, 0), 2, 3);
+        assertEquals(6, volume.getFrameCount());
+        assertVolume(volume.toByteArray(), 4, 3, 6, 3, 2);
+        List<byte[]> pages = volume.toPages();
+        assertEquals(6, pages.size());
+        assertEquals(voxel(1, 5, 2), pages.get(5)[2 * 3 + 1]);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testWrongFrameCountEstimate() throws Exception {
+        H5JVolumeDecoder decoder = decoder(1);
+        InterleavedVolume more = decoder.decodeChannels(c -> new SyntheticChannel(c, 3, 3, 5, 3, 0), 1, 1);
+        assertVolume(more.toByteArray(), 3, 3, 5, 1, 1);
+        InterleavedVolume fewer = decoder.decodeChannels(c -> new SyntheticChannel(c, 3, 3, 2, 4, 0), 1, 1);
+        assertVolume(fewer.toByteArray(), 3, 3, 2, 1, 1);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testParallelismIsBounded() throws Exception {
+        H5JVolumeDecoder decoder = decoder(6);
+        decoder.setParallelism(2);
+        AtomicInteger live = new AtomicInteger();
+        AtomicInteger maxLive = new AtomicInteger();
+        decoder.decodeChannels(c -> {
+            // Created means its encoded stream has been read into memory
+            maxLive.accumulateAndGet(live.incrementAndGet(), Math::max);
+            return new SyntheticChannel(c, 16, 16, 10, 10, 0) {
+                @Override
+                public void release() {
+                    live.decrementAndGet();
+                }
+            };
+        }, 6, 6);
+        assertEquals(0, live.get());
+        assertTrue("max live channels " + maxLive.get(), maxLive.get() <= 2);
+    }
+
+    @Test(timeout = 10000)
+    @Category(TestCategories.FastTests.class)
+    public void testCancel() throws Exception {
+        H5JVolumeDecoder decoder = decoder(3);
+        decoder.setParallelism(3);
+        CountDownLatch decoding = new CountDownLatch(1);
+        List<SyntheticChannel> channels = Collections.synchronizedList(new ArrayList<>());
+        Thread canceller = new Thread(() -> {
+            try {
+                decoding.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            decoder.cancel();
+        });
+        canceller.start();
+        try {
+            decoder.decodeChannels(c -> {
+                SyntheticChannel channel = new SyntheticChannel(c, 8, 8, Integer.MAX_VALUE, 0, 0);
+                channel.beforeEachFrame = decoding::countDown;
+                channels.add(channel);
+                return channel;
+            }, 3, 3);
+            fail("Decoding should have been cancelled");
+        }
+        catch (CancellationException e) {
+            // expected
+        }
+        canceller.join();
+        assertTrue(decoder.isCancelled());
+        for (SyntheticChannel channel : channels) {
+            assertTrue(channel.released);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testFailedChannelIsSkipped() throws Exception {
+        H5JVolumeDecoder decoder = decoder(3);
+        decoder.setParallelism(3);
+        List<SyntheticChannel> channels = Collections.synchronizedList(new ArrayList<>());
+        InterleavedVolume volume = decoder.decodeChannels(c -> {
+            SyntheticChannel channel = new SyntheticChannel(c, 8, 8, 10, 10, 0);
+            if (c == 2) {
+                // Fails part way through, after some of its frames are written
+                AtomicInteger frames = new AtomicInteger();
+                channel.beforeEachFrame = () -> {
+                    if (frames.incrementAndGet() > 4) {
+                        throw new IllegalStateException("corrupt stream");
+                    }
+                };
+            }
+            channels.add(channel);
+            return channel;
+        }, 3, 3);
+        // The failed channel is left at zero, as if it were missing
+        assertVolume(volume.toByteArray(), 8, 8, 10, 3, 2);
+        assertFalse(decoder.isCancelled());
+        for (SyntheticChannel channel : channels) {
+            assertTrue(channel.released);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testUnreadableChannelIsSkipped() throws Exception {
+        H5JVolumeDecoder decoder = decoder(3);
+        InterleavedVolume volume = decoder.decodeChannels(c -> {
+            if (c == 2) {
+                throw new IOException("unreadable channel");
+            }
+            return new SyntheticChannel(c, 4, 4, 3, 3, 0);
+        }, 3, 3);
+        assertVolume(volume.toByteArray(), 4, 4, 3, 3, 2);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testFailureIsReportedWhenNoChannelDecodes() throws Exception {
+        H5JVolumeDecoder decoder = decoder(2);
+        decoder.setParallelism(2);
+        try {
+            decoder.decodeChannels(c -> {
+                SyntheticChannel channel = new SyntheticChannel(c, 8, 8, 1000, 0, 0);
+                channel.beforeEachFrame = () -> {
+                    throw new IllegalStateException("corrupt stream");
+                };
+                return channel;
+            }, 2, 3);
+            fail("Decoding should have failed");
+        }
+        catch (IllegalStateException e) {
+            assertEquals("corrupt stream", e.getMessage());
+        }
+        assertFalse(decoder.isCancelled());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testMismatchedChannelIsSkipped() throws Exception {
+        H5JVolumeDecoder decoder = decoder(2);
+        decoder.setParallelism(1);
+        InterleavedVolume volume = decoder.decodeChannels(
+                c -> new SyntheticChannel(c, 8, c == 0 ? 8 : 9, 2, 2, 0), 2, 3);
+        assertVolume(volume.toByteArray(), 8, 8, 2, 3, 1);
+    }
+
+    private static List<MemoryPoolMXBean> resetHeapPeaks() {
+        System.gc();
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private static long peakHeap(List<MemoryPoolMXBean> pools) {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    /**
+     * Compares the previous load path (each channel decoded in turn and kept whole, then
+     * interleaved frame by frame, then joined into one array) with the decoder, over
+     * synthetic 3 channel fixtures, reporting wall time and peak heap.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkDecode() throws Exception {
+        int width = 512;
+        int height = 512;
+        int frames = 120;
+        int channelCount = 3;
+        int work = 8;
+
+        List<MemoryPoolMXBean> pools = resetHeapPeaks();
+        long t0 = System.nanoTime();
+        List<List<byte[]>> stacks = new ArrayList<>();
+        for (int c = 0; c < channelCount; c++) {
+            SyntheticChannel channel = new SyntheticChannel(c, width, height, frames, frames, work);
+            List<byte[]> stack = new ArrayList<>();
+            for (int frame = 0; frame < frames; frame++) {
+                stack.add(channel.decodeFrame(frame));
+            }
+            stacks.add(stack);
+        }
+        List<byte[]> pages = new ArrayList<>();
+        for (int frame = 0; frame < frames; frame++) {
+            byte[] page = new byte[width * height * channelCount];
+            for (int c = 0; c < channelCount; c++) {
+                byte[] plane = stacks.get(c).get(frame);
+                for (int i = 0; i < plane.length; i++) {
+                    page[channelCount * i + c] = plane[i];
+                }
+            }
+            pages.add(page);
+        }
+        byte[] serialVolume = new byte[width * height * channelCount * frames];
+        for (int frame = 0; frame < frames; frame++) {
+            System.arraycopy(pages.get(frame), 0, serialVolume, frame * pages.get(frame).length, pages.get(frame).length);
+        }
+        double serialSeconds = (System.nanoTime() - t0) / 1e9;
+        long serialPeak = peakHeap(pools);
+        stacks = null;
+        pages = null;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        H5JVolumeDecoder decoder = decoder(channelCount);
+        decoder.setParallelism(threads);
+        byte[] keep = serialVolume;
+        serialVolume = null;
+        pools = resetHeapPeaks();
+        t0 = System.nanoTime();
+        InterleavedVolume volume = decoder.decodeChannels(
+                c -> new SyntheticChannel(c, width, height, frames, frames, work), channelCount, channelCount);
+        byte[] parallelVolume = volume.toByteArray();
+        double parallelSeconds = (System.nanoTime() - t0) / 1e9;
+        long parallelPeak = peakHeap(pools) - keep.length;
+        assertTrue(Arrays.equals(keep, parallelVolume));
+
+        System.out.println(String.format("%d channels of %dx%dx%d on %d threads: serial %.2f s, peak heap %d MB; "
+                + "decoder %.2f s, peak heap %d MB",
+                channelCount, width, height, frames, threads,
+                serialSeconds, serialPeak / (1024 * 1024), parallelSeconds, parallelPeak / (1024 * 1024)));
+    }
+}
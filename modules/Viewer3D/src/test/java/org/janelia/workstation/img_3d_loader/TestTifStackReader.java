@@ -0,0 +1,322 @@
+package org.janelia.workstation.img_3d_loader;
+
+import static org.junit.Assert.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.media.jai.NullOpImage;
+import javax.media.jai.OpImage;
+import javax.media.jai.RenderedImageAdapter;
+
+import com.sun.media.jai.codec.FileSeekableStream;
+import com.sun.media.jai.codec.ImageCodec;
+import com.sun.media.jai.codec.ImageDecoder;
+import com.sun.media.jai.codec.ImageEncoder;
+import com.sun.media.jai.codec.TIFFEncodeParam;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+public class TestTifStackReader {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static int voxel(int x, int y, int z, int bits) {
+        return (x * 131 + y * 17 + z * 1009) & ((1 << bits) - 1);
+    }
+
+    private static BufferedImage page(int width, int height, int z, int bits) {
+        BufferedImage image = new BufferedImage(width, height,
+                bits == 8 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_USHORT_GRAY);
+        int[] pixel = {0};
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixel[0] = voxel(x, y, z, bits);
+                image.getRaster().setPixel(x, y, pixel);
+            }
+        }
+        return image;
+    }
+
+    // Pages held in memory, recording which pages and regions were decoded
+    private static class SyntheticDecoder implements TifStackReader.PageDecoder {
+        final List<BufferedImage> pages;
+        final List<Integer> decodedPages;
+        final List<Rectangle> decodedRegions;
+
+        SyntheticDecoder(List<BufferedImage> pages, List<Integer> decodedPages, List<Rectangle> decodedRegions) {
+            this.pages = pages;
+            this.decodedPages = decodedPages;
+            this.decodedRegions = decodedRegions;
+        }
+
+        @Override
+        public int getPageCount() {
+            return pages.size();
+        }
+
+        @Override
+        public RenderedImage decodePage(int page) {
+            BufferedImage image = pages.get(page);
+            return new BufferedImage(image.getColorModel(), image.getRaster(), false, null) {
+                @Override
+                public Raster getData(Rectangle region) {
+                    decodedPages.add(page);
+                    decodedRegions.add(region);
+                    return super.getData(region);
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static List<BufferedImage> pages(int width, int height, int depth, int bits) {
+        List<BufferedImage> pages = new ArrayList<>();
+        for (int z = 0; z < depth; z++) {
+            pages.add(page(width, height, z, bits));
+        }
+        return pages;
+    }
+
+    private static void assertVoxels(byte[] texture, Rectangle region, int firstPage, int count, int bits) {
+        int pixelBytes = bits / 8;
+        int i = 0;
+        for (int z = firstPage; z < firstPage + count; z++) {
+            for (int y = region.y; y < region.y + region.height; y++) {
+                for (int x = region.x; x < region.x + region.width; x++) {
+                    int expected = voxel(x, y, z, bits);
+                    int actual = texture[i] & 0xff;
+                    if (pixelBytes == 2) {
+                        actual |= (texture[i + 1] & 0xff) << 8;
+                    }
+                    assertEquals("x=" + x + " y=" + y + " z=" + z, expected, actual);
+                    i += pixelBytes;
+                }
+            }
+        }
+        assertEquals(texture.length, i);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testWholeStack() throws Exception {
+        List<BufferedImage> pages = pages(37, 21, 9, 8);
+        List<Integer> decoded = Collections.synchronizedList(new ArrayList<>());
+        TifStackReader reader = new TifStackReader(
+                () -> new SyntheticDecoder(pages, decoded, new ArrayList<>()), 3);
+        assertEquals(9, reader.getPageCount());
+        assertEquals(37, reader.getWidth());
+        assertEquals(21, reader.getHeight());
+        assertTrue(reader.canRead(1));
+        assertFalse(reader.canRead(2));
+        byte[] texture = new byte[37 * 21 * 9];
+        Rectangle region = new Rectangle(0, 0, 37, 21);
+        reader.read(region, 0, 9, texture);
+        assertVoxels(texture, region, 0, 9, 8);
+        Collections.sort(decoded);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8), decoded);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testSubsetDecodesOnlyItsPagesAndRegion() throws Exception {
+        List<BufferedImage> pages = pages(40, 30, 12, 16);
+        List<Integer> decoded = Collections.synchronizedList(new ArrayList<>());
+        List<Rectangle> regions = Collections.synchronizedList(new ArrayList<>());
+        TifStackReader reader = new TifStackReader(() -> new SyntheticDecoder(pages, decoded, regions), 2);
+        assertTrue(reader.canRead(2));
+        Rectangle region = new Rectangle(7, 5, 19, 11);
+        byte[] texture = new byte[19 * 11 * 2 * 4];
+        reader.read(region, 6, 4, texture);
+        assertVoxels(texture, region, 6, 4, 16);
+        Collections.sort(decoded);
+        assertEquals(Arrays.asList(6, 7, 8, 9), decoded);
+        for (Rectangle decodedRegion : regions) {
+            assertEquals(region, decodedRegion);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testOtherRasterLayoutsAreCopiedBySample() throws Exception {
+        // Packed samples are not a plain array of values
+        WritableRaster raster = Raster.createPackedRaster(DataBuffer.TYPE_USHORT, 9, 4, 1, 16, null);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 9; x++) {
+                raster.setSample(x, y, 0, voxel(x, y, 0, 16));
+            }
+        }
+        Rectangle region = new Rectangle(2, 1, 5, 3);
+        byte[] texture = new byte[5 * 3 * 2];
+        TifStackReader.copyRegion(raster, region, texture, 0);
+        assertVoxels(texture, region, 0, 1, 16);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testMismatchedPageSize() throws Exception {
+        List<BufferedImage> pages = pages(10, 10, 3, 8);
+        pages.set(2, page(10, 11, 2, 8));
+        TifStackReader reader = new TifStackReader(
+                () -> new SyntheticDecoder(pages, new ArrayList<>(), new ArrayList<>()), 1);
+        try {
+            reader.read(new Rectangle(0, 0, 10, 10), 0, 3, new byte[300]);
+            fail("A page of a different size should be rejected");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private File writeStack(int width, int height, int depth, int bits) throws IOException {
+        List<BufferedImage> pages = pages(width, height, depth, bits);
+        File tiffFile = temporaryFolder.newFile("stack" + bits + "x" + depth + ".tif");
+        TIFFEncodeParam params = new TIFFEncodeParam();
+        Iterator<BufferedImage> it = pages.iterator();
+        it.next(); // Avoid duplicate first page
+        params.setExtraImages(it);
+        try (OutputStream out = new FileOutputStream(tiffFile)) {
+            ImageEncoder encoder = ImageCodec.createImageEncoder("tiff", out, params);
+            encoder.encode(pages.get(0));
+        }
+        return tiffFile;
+    }
+
+    private static TifVolumeFileLoader subsetLoader(int[] center, int[] size) {
+        double[][] identity = {{1, 0, 0, 0}, {0, 1, 0, 0}, {0, 0, 1, 0}, {0, 0, 0, 1}};
+        TifVolumeFileLoader loader = new TifVolumeFileLoader();
+        loader.setOutputDimensions(size);
+        loader.setConversionCharacteristics(identity, identity, new int[] {0, 0, 0}, new int[] {0, 0, 0},
+                Arrays.asList(center[0], center[1], center[2]));
+        return loader;
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testLoaderReadsTiffFile() throws Exception {
+        File tiffFile = writeStack(45, 33, 10, 16);
+        TifVolumeFileLoader loader = new TifVolumeFileLoader();
+        loader.loadVolumeFile(tiffFile.getAbsolutePath());
+        assertEquals(2, loader.getPixelBytes());
+        assertEquals(10, loader.getSz());
+        assertVoxels(loader.getTextureByteArray(), new Rectangle(0, 0, 45, 33), 0, 10, 16);
+
+        TifVolumeFileLoader subset = subsetLoader(new int[] {20, 15, 5}, new int[] {16, 8, 4});
+        subset.loadVolumeFile(tiffFile.getAbsolutePath());
+        assertEquals(16, subset.getSx());
+        assertEquals(8, subset.getSy());
+        assertEquals(4, subset.getSz());
+        assertVoxels(subset.getTextureByteArray(), new Rectangle(12, 11, 16, 8), 3, 4, 16);
+    }
+
+    // The previous load path: every page decoded to a BufferedImage, then copied
+    private static byte[] loadAllPages(File tiffFile, int width, int height, int depth) throws IOException {
+        List<BufferedImage> images = new ArrayList<>();
+        try (FileSeekableStream stream = new FileSeekableStream(tiffFile)) {
+            ImageDecoder decoder = ImageCodec.createImageDecoder("tiff", stream, null);
+            for (int page = 0; page < decoder.getNumPages(); page++) {
+                RenderedImage op = new NullOpImage(decoder.decodeAsRenderedImage(page), null, OpImage.OP_IO_BOUND, null);
+                images.add(new RenderedImageAdapter(op).getAsBufferedImage());
+            }
+        }
+        byte[] texture = new byte[width * height * depth * 2];
+        int offset = 0;
+        for (BufferedImage image : images) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int value = image.getRaster().getSample(x, y, 0);
+                    texture[offset++] = (byte) value;
+                    texture[offset++] = (byte) (value >>> 8);
+                }
+            }
+        }
+        return texture;
+    }
+
+    private static List<MemoryPoolMXBean> resetHeapPeaks() {
+        System.gc();
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private static long peakHeap(List<MemoryPoolMXBean> pools) {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    /**
+     * Compares loading a 16 bit stack, whole and as a quarter sized subset, through the
+     * previous path and through the loader, reporting pages per second and peak heap.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkLoad() throws Exception {
+        int width = 1024;
+        int height = 1024;
+        int depth = 64;
+        File tiffFile = writeStack(width, height, depth, 16);
+
+        List<MemoryPoolMXBean> pools = resetHeapPeaks();
+        long t0 = System.nanoTime();
+        byte[] expected = loadAllPages(tiffFile, width, height, depth);
+        double allPagesSeconds = (System.nanoTime() - t0) / 1e9;
+        long allPagesPeak = peakHeap(pools);
+        expected = null;
+
+        pools = resetHeapPeaks();
+        t0 = System.nanoTime();
+        TifVolumeFileLoader loader = new TifVolumeFileLoader();
+        loader.loadVolumeFile(tiffFile.getAbsolutePath());
+        double loaderSeconds = (System.nanoTime() - t0) / 1e9;
+        long loaderPeak = peakHeap(pools);
+        loader = null;
+
+        pools = resetHeapPeaks();
+        t0 = System.nanoTime();
+        TifVolumeFileLoader subset = subsetLoader(new int[] {width / 2, height / 2, depth / 2},
+                new int[] {width / 2, height / 2, depth / 2});
+        subset.loadVolumeFile(tiffFile.getAbsolutePath());
+        double subsetSeconds = (System.nanoTime() - t0) / 1e9;
+        long subsetPeak = peakHeap(pools);
+
+        System.out.println(String.format("%dx%dx%d 16 bit on %d threads: all pages %.0f pages/s, peak heap %d MB; "
+                + "stack reader %.0f pages/s, peak heap %d MB; half size subset %.2f s, peak heap %d MB",
+                width, height, depth, Runtime.getRuntime().availableProcessors(),
+                depth / allPagesSeconds, allPagesPeak / (1024 * 1024),
+                depth / loaderSeconds, loaderPeak / (1024 * 1024),
+                subsetSeconds, subsetPeak / (1024 * 1024)));
+    }
+}
@@ -0,0 +1,227 @@
+package org.janelia.workstation.img_3d_loader;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.janelia.it.jacs.model.TestCategories;
+import org.janelia.workstation.image.stream.V3dRawImageStream;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TestV3dByteReader {
+
+    // Label-like value of a voxel: runs along X, blocks of background, and for
+    // wider pixels some values which do not fit a signed short
+    private static int voxel(int c, int z, int y, int x, int pixelBytes) {
+        if ((x / 5 + y / 3 + z) % 4 == 0) {
+            return 0;
+        }
+        int label = x / 6 + y * 3 + z * 11 + c * 29;
+        if (pixelBytes == 1) {
+            return label & 0xff;
+        }
+        if (pixelBytes == 2) {
+            return label * 97 & 0xffff;
+        }
+        return (label % 7 == 0) ? -label : label * 100003;
+    }
+
+    private static byte[] v3dRaw(int sx, int sy, int sz, int sc, int pixelBytes, ByteOrder order, int voxelCount) {
+        ByteBuffer buffer = ByteBuffer.allocate(43 + voxelCount * pixelBytes).order(order);
+        buffer.put(V3dRawImageStream.V3DRAW_MAGIC_COOKIE[0].getBytes());
+        buffer.put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 'L' : 'B'));
+        buffer.putShort((short) pixelBytes);
+        buffer.putInt(sx).putInt(sy).putInt(sz).putInt(sc);
+        int written = 0;
+        for (int c = 0; c < sc; c++) {
+            for (int z = 0; z < sz; z++) {
+                for (int y = 0; y < sy; y++) {
+                    for (int x = 0; x < sx && written < voxelCount; x++, written++) {
+                        int value = voxel(c, z, y, x, pixelBytes);
+                        if (pixelBytes == 1) {
+                            buffer.put((byte) value);
+                        }
+                        else if (pixelBytes == 2) {
+                            buffer.putShort((short) value);
+                        }
+                        else {
+                            buffer.putInt(value);
+                        }
+                    }
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+    private static byte[] v3dRaw(int sx, int sy, int sz, int sc, int pixelBytes, ByteOrder order) {
+        return v3dRaw(sx, sy, sz, sc, pixelBytes, order, sx * sy * sz * sc);
+    }
+
+    private static V3dRawImageStream stream(byte[] raw) {
+        return new V3dRawImageStream(new ByteArrayInputStream(raw));
+    }
+
+    // The previous implementation of readBytes, one boxed voxel at a time
+    private static byte[] readPerVoxel(V3dRawImageStream sliceStream, int sx, int sy, int sz, int sc, int pixelBytes,
+            boolean invertedY, Set<Integer> values) throws IOException {
+        byte[] textureByteArray = new byte[(sx * sy * sz * sc) * pixelBytes];
+        for (int c = 0; c < sc; c++) {
+            int cOffset = c * sx * sy * sz * pixelBytes;
+            for (int z = 0; z < sz; z++) {
+                int zOffset = z * sx * sy;
+                sliceStream.loadNextSlice();
+                V3dRawImageStream.Slice slice = sliceStream.getCurrentSlice();
+                for (int y = 0; y < sy; y++) {
+                    int yOffset = zOffset + (invertedY ? (sy - y - 1) : y) * sx;
+                    for (int x = 0; x < sx; x++) {
+                        Integer value = slice.getValue(x, y);
+                        if (value > 0) {
+                            values.add(value);
+                            for (int pi = 0; pi < pixelBytes; pi++) {
+                                byte piByte = (byte) (value >>> (pi * 8) & 0x000000ff);
+                                textureByteArray[cOffset + (yOffset * pixelBytes) + (x * pixelBytes) + (pi)] = piByte;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        sliceStream.close();
+        return textureByteArray;
+    }
+
+    private static void assertMatchesPerVoxel(int sx, int sy, int sz, int sc, int pixelBytes, ByteOrder order,
+            boolean invertedY, int parallelism, int chunkBytes) throws IOException {
+        byte[] raw = v3dRaw(sx, sy, sz, sc, pixelBytes, order);
+        Set<Integer> expectedValues = new TreeSet<>();
+        byte[] expected = readPerVoxel(stream(raw), sx, sy, sz, sc, pixelBytes, invertedY, expectedValues);
+
+        V3dByteReader reader = new V3dByteReader(parallelism, chunkBytes);
+        reader.setInvertedY(invertedY);
+        Set<Integer> values = reader.readBytes(stream(raw), sx, sy, sz, sc, pixelBytes);
+        assertEquals(expectedValues, values);
+        assertArrayEquals(expected, reader.getTextureBytes());
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testBytesMatchPerVoxelReader() throws Exception {
+        // A few slices per chunk, so that Z-ranges go to different threads
+        assertMatchesPerVoxel(37, 23, 19, 2, 1, ByteOrder.LITTLE_ENDIAN, true, 3, 37 * 23 * 3);
+        assertMatchesPerVoxel(37, 23, 19, 1, 1, ByteOrder.BIG_ENDIAN, false, 1, 37 * 23 * 3);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testShortsMatchPerVoxelReader() throws Exception {
+        // Values above 32767 read as negative, and are left out as before
+        assertMatchesPerVoxel(41, 17, 13, 2, 2, ByteOrder.BIG_ENDIAN, true, 4, 41 * 17 * 2 * 2);
+        assertMatchesPerVoxel(41, 17, 13, 1, 2, ByteOrder.LITTLE_ENDIAN, false, 2, 41 * 17 * 2 * 5);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testIntsMatchPerVoxelReader() throws Exception {
+        assertMatchesPerVoxel(19, 11, 9, 1, 4, ByteOrder.LITTLE_ENDIAN, true, 2, 19 * 11 * 4);
+        assertMatchesPerVoxel(19, 11, 9, 1, 4, ByteOrder.BIG_ENDIAN, true, 1, V3dSliceReader.DEFAULT_CHUNK_BYTES);
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testTruncatedStreamIsZeroFilled() throws Exception {
+        int sx = 10;
+        int sy = 10;
+        int sz = 6;
+        int present = sx * sy * 3 + 15;
+        byte[] raw = v3dRaw(sx, sy, sz, 1, 2, ByteOrder.LITTLE_ENDIAN, present);
+        V3dByteReader reader = new V3dByteReader(2, sx * sy * 2);
+        reader.setInvertedY(false);
+        reader.readBytes(stream(raw), sx, sy, sz, 1, 2);
+        byte[] texture = reader.getTextureBytes();
+        byte[] complete = v3dRaw(sx, sy, sz, 1, 2, ByteOrder.LITTLE_ENDIAN);
+        V3dByteReader completeReader = new V3dByteReader(1, V3dSliceReader.DEFAULT_CHUNK_BYTES);
+        completeReader.setInvertedY(false);
+        completeReader.readBytes(stream(complete), sx, sy, sz, 1, 2);
+        assertArrayEquals(Arrays.copyOf(completeReader.getTextureBytes(), present * 2), Arrays.copyOf(texture, present * 2));
+        for (int i = present * 2; i < texture.length; i++) {
+            assertEquals(0, texture[i]);
+        }
+    }
+
+    @Test
+    @Category(TestCategories.FastTests.class)
+    public void testSignalChannelsArePackedIntoArgb() throws Exception {
+        int sx = 13;
+        int sy = 7;
+        int sz = 9;
+        int sc = 3;
+        File file = File.createTempFile("signal", ".v3draw");
+        try {
+            Files.write(file.toPath(), v3dRaw(sx, sy, sz, sc, 2, ByteOrder.BIG_ENDIAN));
+            V3dSignalFileLoader loader = new V3dSignalFileLoader();
+            loader.loadVolumeFile(file.getAbsolutePath());
+            int[] argb = loader.getArgbTextureIntArray();
+            assertEquals(sx * sy * sz, argb.length);
+            int[] shifts = {16, 8, 0};
+            for (int z = 0; z < sz; z++) {
+                for (int y = 0; y < sy; y++) {
+                    for (int x = 0; x < sx; x++) {
+                        int expected = 0;
+                        for (int c = 0; c < sc; c++) {
+                            int value = (short) voxel(c, z, y, x, 2);
+                            int ival = Math.max(0, Math.min(255, (int) (value * 255.0 / 4095.0 + 0.5)));
+                            expected |= ival << shifts[c];
+                        }
+                        assertEquals(expected, argb[(z * sy + y) * sx + x]);
+                    }
+                }
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Compares the previous per-voxel reader with the bulk reader over synthetic 8 and 16 bit
+     * label volumes, reporting the time to fill the texture array.
+     */
+    @Test
+    @Category(TestCategories.PrototypeTests.class)
+    public void benchmarkReadBytes() throws Exception {
+        int sx = 512;
+        int sy = 512;
+        int sz = 160;
+        int repeats = 3;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int pixelBytes : new int[] {1, 2}) {
+            byte[] raw = v3dRaw(sx, sy, sz, 1, pixelBytes, ByteOrder.LITTLE_ENDIAN);
+            double perVoxel = Double.MAX_VALUE;
+            double bulk = Double.MAX_VALUE;
+            byte[] expected = null;
+            for (int r = 0; r < repeats; r++) {
+                long t0 = System.nanoTime();
+                expected = readPerVoxel(stream(raw), sx, sy, sz, 1, pixelBytes, true, new TreeSet<>());
+                perVoxel = Math.min(perVoxel, (System.nanoTime() - t0) / 1e6);
+
+                V3dByteReader reader = new V3dByteReader();
+                t0 = System.nanoTime();
+                reader.readBytes(stream(raw), sx, sy, sz, 1, pixelBytes);
+                bulk = Math.min(bulk, (System.nanoTime() - t0) / 1e6);
+                assertArrayEquals(expected, reader.getTextureBytes());
+            }
+            System.out.println(String.format("%d bit %dx%dx%d on %d threads: per voxel %.1f ms, bulk %.1f ms",
+                    pixelBytes * 8, sx, sy, sz, threads, perVoxel, bulk));
+        }
+    }
+}